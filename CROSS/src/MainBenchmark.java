@@ -0,0 +1,307 @@
+import cross.utils.TLSContexts;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+public class MainBenchmark {
+
+    // Connections benchmark.
+    // Opens many connections to a running server and keeps them ALL open, then sends a request on each of them and waits for the responses.
+    // So the server holds all the connections concurrently, as many idle clients would do.
+    //
+    // Usage: java MainBenchmark [connections] [server ip] [server port], by default 50000 connections to 127.0.0.1:8080.
+    // E.g. start the server with a small heap and the virtual threads transport (server_transport=virtual):
+    //     java -Xmx256m MainServer
+    // The process limit of the open files (ulimit -n) must be over the connections, both for the server and for the benchmark.
+    //
+    // The benchmark itself uses a virtual thread for each connection.
+    //
+    // TLS benchmark.
+    // Measures the handshakes of the connections to a running server with TLS (tls_enabled=true), one at a time: full, invalidating the session of each connection, and resumed, with the sessions cached by the shared TLS context (see TLSContexts).
+    // Then the steady state on a single connection: the round trip of the requests sent one at a time, and the throughput of the requests pipelined.
+    //
+    // Usage: java MainBenchmark tls [truststore] [truststore password] [connections] [requests] [server ip] [server port], by default ./Configs/cross.p12, 1000 connections and 100000 requests to 127.0.0.1:8080.
+    // The truststore is the server's keystore itself, with a self-signed certificate for 127.0.0.1 (see the keytool command in the server's configuration file).
+    // With "none" as truststore it benchmarks a server without TLS, the handshake is only the TCP connection.
+    // So the steady-state overhead of TLS is the difference of two runs on the same transport, e.g.:
+    //     java MainBenchmark tls ./Configs/cross.p12 changeit      (server with tls_enabled=true)
+    //     java MainBenchmark tls none                               (server with tls_enabled=false)
+
+    public static void main(String[] args) throws InterruptedException, IOException, GeneralSecurityException {
+
+        if (args.length > 0 && args[0].equals("tls")) {
+            MainBenchmark.benchmarkTLS(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
+        Integer connections = args.length > 0 ? Integer.valueOf(args[0]) : 50000;
+        String serverIP = args.length > 1 ? args[1] : "127.0.0.1";
+        Integer serverPort = args.length > 2 ? Integer.valueOf(args[2]) : 8080;
+
+        InetAddress serverAddress = InetAddress.getByName(serverIP);
+
+        System.out.printf("Benchmarking %d concurrent connections to %s:%d...\n", connections, serverIP, serverPort);
+
+        Socket[] sockets = new Socket[connections];
+        AtomicInteger connected = new AtomicInteger(0);
+        AtomicInteger connectErrors = new AtomicInteger(0);
+
+        // Opening all the connections.
+        long start = System.nanoTime();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < connections; i++) {
+                final int index = i;
+                executor.execute(() -> {
+
+                    Socket socket = new Socket();
+                    try {
+                        // A single source address has less than 30000 ephemeral ports.
+                        // On the loopback, the source addresses are spread on 127.0.0.2, 127.0.0.3...
+                        if (serverAddress.isLoopbackAddress()) {
+                            socket.bind(new InetSocketAddress(String.format("127.0.0.%d", 2 + index / 20000), 0));
+                        }
+                        socket.connect(new InetSocketAddress(serverAddress, serverPort), 30000);
+                        sockets[index] = socket;
+                        connected.incrementAndGet();
+                    } catch (IOException ex) {
+                        connectErrors.incrementAndGet();
+                        try {
+                            socket.close();
+                        } catch (IOException ex2) {}
+                    }
+
+                });
+            }
+        }
+        long connectMillis = (System.nanoTime() - start) / 1000000;
+
+        System.out.printf("Opened %d connections (%d errors) in %d ms.\n", connected.get(), connectErrors.get(), connectMillis);
+
+        // A request on each connection, while all of them are open.
+        // The login of an user not existing, answered by the server without touching the disk.
+        byte[] request = "{\"operation\":\"login\",\"values\":{\"username\":\"benchmark\",\"password\":\"benchmark\"}}\n".getBytes(StandardCharsets.UTF_8);
+        long[] latencies = new long[connections];
+        Arrays.fill(latencies, -1);
+        AtomicInteger responses = new AtomicInteger(0);
+        AtomicInteger requestErrors = new AtomicInteger(0);
+
+        start = System.nanoTime();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < connections; i++) {
+                final int index = i;
+                if (sockets[index] == null) {
+                    continue;
+                }
+                executor.execute(() -> {
+
+                    try {
+                        long requestStart = System.nanoTime();
+                        OutputStream out = sockets[index].getOutputStream();
+                        out.write(request);
+                        out.flush();
+                        BufferedReader in = new BufferedReader(new InputStreamReader(sockets[index].getInputStream(), StandardCharsets.UTF_8));
+                        // The responses are '\n' terminated JSONs, preceded by a '\n'.
+                        String line;
+                        do {
+                            line = in.readLine();
+                        } while (line != null && line.isBlank());
+                        if (line == null) {
+                            requestErrors.incrementAndGet();
+                            return;
+                        }
+                        latencies[index] = System.nanoTime() - requestStart;
+                        responses.incrementAndGet();
+                    } catch (IOException ex) {
+                        requestErrors.incrementAndGet();
+                    }
+
+                });
+            }
+        }
+        long requestsMillis = (System.nanoTime() - start) / 1000000;
+
+        long[] measured = Arrays.stream(latencies).filter(latency -> latency >= 0).sorted().toArray();
+        System.out.printf("Received %d responses (%d errors) in %d ms.\n", responses.get(), requestErrors.get(), requestsMillis);
+        if (measured.length > 0) {
+            System.out.printf("Latency: p50 %.2f ms - p99 %.2f ms - max %.2f ms.\n", measured[measured.length / 2] / 1e6, measured[(int) (measured.length * 0.99)] / 1e6, measured[measured.length - 1] / 1e6);
+        }
+
+        // Closing all the connections.
+        for (Socket socket : sockets) {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException ex) {}
+            }
+        }
+
+        System.out.println("Benchmark ended.");
+
+    }
+
+    public static void benchmarkTLS(String[] args) throws InterruptedException, IOException, GeneralSecurityException {
+
+        String truststorePath = args.length > 0 ? args[0] : "./Configs/cross.p12";
+        String truststorePassword = args.length > 1 ? args[1] : "changeit";
+        Integer connections = args.length > 2 ? Integer.valueOf(args[2]) : 1000;
+        Integer requests = args.length > 3 ? Integer.valueOf(args[3]) : 100000;
+        String serverIP = args.length > 4 ? args[4] : "127.0.0.1";
+        Integer serverPort = args.length > 5 ? Integer.valueOf(args[5]) : 8080;
+
+        Boolean tls = !truststorePath.equals("none");
+        System.out.printf("Benchmarking %s to %s:%d, %d connections and %d requests...\n", tls ? "TLS" : "plain TCP", serverIP, serverPort, connections, requests);
+
+        // The login of an user not existing, answered by the server without touching the disk.
+        byte[] request = "{\"operation\":\"login\",\"values\":{\"username\":\"benchmark\",\"password\":\"benchmark\"}}\n".getBytes(StandardCharsets.UTF_8);
+
+        // The handshakes, each pass after a first connection, initializing its context and caching a session.
+        long[] latencies = new long[connections];
+        if (tls) {
+            SSLContext uncached = MainBenchmark.newClientContext(truststorePath, truststorePassword);
+            MainBenchmark.timeConnection(uncached, serverIP, serverPort, request, false);
+            for (int i = 0; i < connections; i++) {
+                latencies[i] = MainBenchmark.timeConnection(uncached, serverIP, serverPort, request, false);
+            }
+            MainBenchmark.printLatencies("Full handshake", latencies);
+
+            SSLContext shared = TLSContexts.getClientContext(truststorePath, truststorePassword, 0, 0);
+            MainBenchmark.timeConnection(shared, serverIP, serverPort, request, true);
+            for (int i = 0; i < connections; i++) {
+                latencies[i] = MainBenchmark.timeConnection(shared, serverIP, serverPort, request, true);
+            }
+            MainBenchmark.printLatencies("Resumed handshake", latencies);
+        } else {
+            for (int i = 0; i < connections; i++) {
+                latencies[i] = MainBenchmark.timeConnection(null, serverIP, serverPort, request, true);
+            }
+            MainBenchmark.printLatencies("TCP connection", latencies);
+        }
+
+        // The steady state, on a single connection.
+        try (Socket socket = MainBenchmark.connect(tls ? TLSContexts.getClientContext(truststorePath, truststorePassword, 0, 0) : null, serverIP, serverPort)) {
+
+            OutputStream out = socket.getOutputStream();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+
+            // One at a time.
+            latencies = new long[requests];
+            for (int i = 0; i < requests; i++) {
+                long start = System.nanoTime();
+                out.write(request);
+                out.flush();
+                if (MainBenchmark.readResponse(in) == null) {
+                    throw new IOException("Connection closed by the server.");
+                }
+                latencies[i] = System.nanoTime() - start;
+            }
+            MainBenchmark.printLatencies("Round trip", latencies);
+
+            // Pipelined, written by another thread while the responses are read.
+            long start = System.nanoTime();
+            Thread writer = Thread.ofVirtual().start(() -> {
+                try {
+                    for (int i = 0; i < requests; i++) {
+                        out.write(request);
+                    }
+                    out.flush();
+                } catch (IOException ex) {}
+            });
+            int responses = 0;
+            while (responses < requests && MainBenchmark.readResponse(in) != null) {
+                responses++;
+            }
+            writer.join();
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("Pipelined: %d responses in %d ms, %.0f requests/s.\n", responses, elapsed / 1000000, responses / (elapsed / 1e9));
+
+        }
+
+        System.out.println("Benchmark ended.");
+
+    }
+
+    // SUPPORT METHODS
+    // A TLS context not shared, its sessions are invalidated to always do the full handshake.
+    private static SSLContext newClientContext(String truststorePath, String truststorePassword) throws IOException, GeneralSecurityException {
+
+        TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(KeyStore.getInstance(new File(truststorePath), truststorePassword.toCharArray()));
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, trustManagers.getTrustManagers(), null);
+        return context;
+
+    }
+    // Connects as the Client class does, with TLS if the context is not null, completing the handshake.
+    private static Socket connect(SSLContext context, String serverIP, Integer serverPort) throws IOException {
+
+        if (context == null) {
+            return new Socket(serverIP, serverPort);
+        }
+        SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket(serverIP, serverPort);
+        SSLParameters parameters = socket.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        socket.setSSLParameters(parameters);
+        try {
+            socket.startHandshake();
+        } catch (IOException ex) {
+            socket.close();
+            throw ex;
+        }
+        return socket;
+
+    }
+    // Times the connection and its handshake, then sends a request, not timed.
+    // With TLS 1.3 the session to resume is received after the handshake, read with the response.
+    private static long timeConnection(SSLContext context, String serverIP, Integer serverPort, byte[] request, Boolean resumable) throws IOException {
+
+        long start = System.nanoTime();
+        try (Socket socket = MainBenchmark.connect(context, serverIP, serverPort)) {
+            long elapsed = System.nanoTime() - start;
+            socket.getOutputStream().write(request);
+            socket.getOutputStream().flush();
+            if (MainBenchmark.readResponse(new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) == null) {
+                throw new IOException("Connection closed by the server.");
+            }
+            if (!resumable && socket instanceof SSLSocket sslSocket) {
+                // Removed from the cache, the next connection can't resume it.
+                sslSocket.getSession().invalidate();
+            }
+            return elapsed;
+        }
+
+    }
+    // The responses are '\n' terminated JSONs, preceded by a '\n'.
+    private static String readResponse(BufferedReader in) throws IOException {
+
+        String line;
+        do {
+            line = in.readLine();
+        } while (line != null && line.isBlank());
+        return line;
+
+    }
+    private static void printLatencies(String name, long[] latencies) {
+
+        long[] sorted = latencies.clone();
+        Arrays.sort(sorted);
+        System.out.printf("%s: p50 %.3f ms - p99 %.3f ms - max %.3f ms - mean %.3f ms.\n", name, sorted[sorted.length / 2] / 1e6, sorted[(int) (sorted.length * 0.99)] / 1e6, sorted[sorted.length - 1] / 1e6, Arrays.stream(sorted).average().orElse(0) / 1e6);
+
+    }
+
+}
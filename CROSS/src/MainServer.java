@@ -1,6 +1,8 @@
 import cross.exceptions.InvalidConfig;
 import cross.server.Server;
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 
 public class MainServer {
 
@@ -11,8 +13,9 @@ public class MainServer {
 
         System.out.println("Starting main server...");
 
+        Server server = null;
         try {
-            Server server = new Server("./Configs/server-config.properties");
+            server = new Server("./Configs/server-config.properties");
             server.initializeServer("./DB/Users/users.json", "./DB/Orders/orders.json");
             server.startServer();
             server.startAccept();
@@ -21,8 +24,30 @@ public class MainServer {
             System.err.println("Error: " + ex.getMessage());
         }
 
+        if (server != null && server.isAccepting()) {
+
+            // Graceful shutdown on SIGTERM and SIGINT (Ctrl+C).
+            Runtime.getRuntime().addShutdownHook(new Thread(server::shutdown, "ShutdownHook"));
+
+            // Graceful shutdown with the "shutdown" command on the console.
+            System.out.println("Type \"shutdown\" to stop the server.");
+            try {
+                BufferedReader console = new BufferedReader(new InputStreamReader(System.in));
+                String line;
+                while ((line = console.readLine()) != null) {
+                    if (line.trim().equalsIgnoreCase("shutdown")) {
+                        server.shutdown();
+                        break;
+                    }
+                }
+            } catch (IOException ex) {
+                System.err.println("Error reading the console: " + ex.getMessage());
+            }
+
+        }
+
         System.out.println("Main server ended.");
 
     }
-    
+
 }
@@ -4,17 +4,65 @@ import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
+import java.util.Objects;
 import java.util.Random;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import cross.api.requests.Request;
+import cross.api.requests.user.LogoutRequest;
+import cross.api.responses.Response;
+import cross.api.responses.orders.Balance;
+import cross.api.responses.orders.ExecutionResponse;
+import cross.api.binary.BinaryFrame;
+import cross.api.binary.BinaryProtocol;
+import cross.api.requests.orders.CancelRequest;
+import cross.api.requests.orders.CreateRequest;
+import cross.api.responses.ResponseCode;
+import cross.api.responses.ResponseCode.ResponseContent;
+import cross.api.responses.ResponseCode.ResponseType;
+import cross.api.responses.user.UserResponse;
+import cross.api.responses.orders.OpenOrdersResponse;
+import cross.api.notifications.Notification;
+import cross.api.notifications.Trade;
+import cross.api.JSONAPIMessage;
+import cross.utils.ByteBufferPool;
+import cross.utils.DebugLogger;
+import cross.utils.TLSContexts;
+import cross.logging.Log;
+import cross.logging.Log.Category;
+import cross.logging.Log.Level;
+import cross.metrics.LatencyHistogram;
+import cross.metrics.Metrics;
+import cross.metrics.Metrics.Stage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
 import cross.exceptions.InvalidOrder;
 import cross.exceptions.InvalidUser;
 import cross.orderbook.OrderBook;
+import cross.orderbook.OrderBookDepth;
 import cross.orderbook.OrderBookLine;
+import cross.orderbook.db.DBOrderBookEvents;
+import cross.orderbook.db.DBOrderBookSnapshot;
 import cross.orders.LimitOrder;
 import cross.orders.MarketOrder;
 import cross.orders.Order;
+import cross.orders.OrderType;
 import cross.orders.StopOrder;
 import cross.orders.db.DBOrdersInterface;
 import cross.orders.db.Orders;
@@ -26,10 +74,28 @@ import cross.types.price.SpecificPrice;
 import cross.users.User;
 import cross.users.db.DBUsersInterface;
 import cross.users.db.Users;
+import cross.utils.ClientActionsUtils.ClientActions;
 import cross.utils.Separator;
+import cross.utils.TokenBucket;
+import cross.utils.AdmissionControl;
+import cross.utils.LineFramer;
+import cross.utils.ByteBufferWriter;
 import cross.utils.UniqueNumber;
 import java.util.concurrent.RejectedExecutionException;
 import com.google.gson.JsonSyntaxException;
+import java.util.stream.Stream;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.DatagramSocket;
+import java.net.ServerSocket;
+import cross.exceptions.InvalidConfig;
+import cross.server.Server;
+import cross.users.Session;
+import java.util.Base64;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import com.google.gson.JsonParser;
 
 /**
  *
@@ -104,6 +170,176 @@ public class MainTests {
         }
         System.out.println("Test passed, all unique numbers are unique.");
 
+        // Unique number, restored state (as after an order book snapshot recovery).
+        Long restored = UniqueNumber.getLastNumber() + 1000000000L;
+        UniqueNumber.restoreLastNumber(restored);
+        if (new UniqueNumber().getNumber() <= restored) {
+            throw new IllegalStateException("Unique number generated is not greater than the restored one.");
+        }
+        System.out.println("Test passed, unique numbers are greater than the restored one.");
+
+        // Token bucket.
+        // Invalid rate.
+        try {
+            new TokenBucket(0, 1);
+            throw new IllegalStateException("Token bucket with zero rate created.");
+        } catch (IllegalArgumentException ex) {
+            System.out.println("Test passed, blocked invalid token bucket rate.");
+        }
+        // 10 tokens per second, burst of 3, with a fake clock.
+        long now = System.nanoTime() + 10_000_000_000L;
+        TokenBucket bucket = new TokenBucket(10, 3);
+        for (int i = 0; i < 3; i++) {
+            if (!bucket.tryAcquire(now)) {
+                throw new IllegalStateException("Token bucket refused a request in the burst.");
+            }
+        }
+        if (bucket.tryAcquire(now)) {
+            throw new IllegalStateException("Token bucket allowed a request over the burst.");
+        }
+        System.out.println("Test passed, token bucket blocked the requests over the burst.");
+        // After 100 milliseconds a single token is refilled.
+        now += 100_000_000L;
+        if (!bucket.tryAcquire(now) || bucket.tryAcquire(now)) {
+            throw new IllegalStateException("Token bucket not refilled with its rate.");
+        }
+        // After a long time the bucket is full, but not over its capacity.
+        now += 60_000_000_000L;
+        int allowed = 0;
+        while (bucket.tryAcquire(now)) {
+            allowed++;
+        }
+        if (allowed != 3) {
+            throw new IllegalStateException("Token bucket refilled over its capacity.");
+        }
+        System.out.println("Test passed, token bucket refilled with its rate up to its capacity.");
+
+        // Admission control.
+        // Invalid limits.
+        try {
+            new AdmissionControl(-1, 0, 0);
+            throw new IllegalStateException("Admission control with a negative limit created.");
+        } catch (IllegalArgumentException ex) {
+            System.out.println("Test passed, blocked invalid admission control limits.");
+        }
+        // 2 connections, 3 requests in flight for each connection, 1 request in the engine.
+        AdmissionControl admissionControl = new AdmissionControl(2, 3, 1);
+        if (!admissionControl.tryAdmitConnection() || !admissionControl.tryAdmitConnection() || admissionControl.tryAdmitConnection()) {
+            throw new IllegalStateException("Admission control not limiting the connections.");
+        }
+        admissionControl.releaseConnection();
+        if (!admissionControl.tryAdmitConnection() || admissionControl.tryAdmitConnection()) {
+            throw new IllegalStateException("Admission control not admitting a connection after a release.");
+        }
+        System.out.println("Test passed, admission control limited the connections, admitting again after a release.");
+        if (!admissionControl.admitsInflightRequest(0) || !admissionControl.admitsInflightRequest(2) || admissionControl.admitsInflightRequest(3)) {
+            throw new IllegalStateException("Admission control not limiting the requests in flight.");
+        }
+        System.out.println("Test passed, admission control limited the requests in flight of a connection.");
+        if (!admissionControl.tryEnterEngine() || admissionControl.tryEnterEngine()) {
+            throw new IllegalStateException("Admission control not limiting the requests in the engine.");
+        }
+        admissionControl.exitEngine();
+        if (!admissionControl.tryEnterEngine()) {
+            throw new IllegalStateException("Admission control not admitting a request in the engine after an exit.");
+        }
+        admissionControl.exitEngine();
+        System.out.println("Test passed, admission control limited the requests in the engine, admitting again after an exit.");
+        LinkedHashMap<String, Long> admissionMetrics = admissionControl.getMetrics();
+        if (admissionMetrics.get("connections_active") != 2 || admissionMetrics.get("connections_rejected_total") != 2 || admissionMetrics.get("requests_inflight_rejected_total") != 1
+                || admissionMetrics.get("engine_queue_depth") != 0 || admissionMetrics.get("engine_queue_depth_peak") != 1 || admissionMetrics.get("engine_rejected_total") != 1) {
+            throw new IllegalStateException("Admission control metrics not counted: " + admissionMetrics);
+        }
+        System.out.println("Test passed, admission control metrics counted.");
+        // Zero, no limits, but counted.
+        AdmissionControl unlimited = new AdmissionControl(0, 0, 0);
+        for (int i = 0; i < 1000; i++) {
+            if (!unlimited.tryAdmitConnection() || !unlimited.admitsInflightRequest(i) || !unlimited.tryEnterEngine()) {
+                throw new IllegalStateException("Admission control without limits rejected.");
+            }
+        }
+        if (unlimited.getMetrics().get("connections_active") != 1000 || unlimited.getMetrics().get("engine_queue_depth_peak") != 1000) {
+            throw new IllegalStateException("Admission control without limits not counting.");
+        }
+        System.out.println("Test passed, admission control without limits admitted all.");
+        // Server busy response, as received by a client.
+        Response serverBusy = new Response(AdmissionControl.serverBusyResponse(9L).toJSONString());
+        ResponseCode serverBusyCode = ((UserResponse) serverBusy.getResponse()).getResponseCode();
+        if (serverBusy.getType() != null || serverBusy.getRequestId() != 9L || serverBusyCode.getType() != ResponseType.SERVER_BUSY || serverBusyCode.getCode() != 503
+                || AdmissionControl.serverBusyResponse(null).toJSONString().contains("requestId")) {
+            throw new IllegalStateException("Server busy response not valid.");
+        }
+        System.out.println("Test passed, server busy response parsed with its code and request id.");
+
+        // Line framer, of the NIO transport.
+        // Invalid sizes.
+        try {
+            new LineFramer(16, 8);
+            throw new IllegalStateException("Line framer with the initial size over the max length created.");
+        } catch (IllegalArgumentException ex) {
+            System.out.println("Test passed, blocked invalid line framer sizes.");
+        }
+        LineFramer framer = new LineFramer(4, 64);
+        LinkedList<String> lines = new LinkedList<>();
+        // Two lines in a chunk, a line split between chunks, a '\r' before the '\n' and blank lines.
+        try {
+            framer.feed(ByteBuffer.wrap("first\nsec".getBytes(StandardCharsets.UTF_8)), lines::add);
+            if (lines.size() != 1 || !lines.getFirst().equals("first") || framer.getPendingBytes() != 3) {
+                throw new IllegalStateException("Line framer split the lines not on the '\\n'.");
+            }
+            framer.feed(ByteBuffer.wrap("ond\r\n\n  \r\nthi\rrd\n".getBytes(StandardCharsets.UTF_8)), lines::add);
+        } catch (IOException ex) {
+            throw new IllegalStateException("Line framer refused valid lines.");
+        }
+        if (lines.size() != 3 || !lines.get(1).equals("second") || !lines.get(2).equals("thi\rrd") || framer.getPendingBytes() != 0) {
+            throw new IllegalStateException("Line framer didn't join the split line, drop the '\\r' before the '\\n' or skip the blank lines.");
+        }
+        System.out.println("Test passed, line framer split the chunks in lines, dropping the '\\r' before the '\\n' and the blank lines.");
+        // A character split between chunks is decoded once the line is complete.
+        byte[] euro = "\u20ac\n".getBytes(StandardCharsets.UTF_8);
+        lines.clear();
+        try {
+            framer.feed(ByteBuffer.wrap(euro, 0, 2), lines::add);
+            framer.feed(ByteBuffer.wrap(euro, 2, euro.length - 2), lines::add);
+        } catch (IOException ex) {
+            throw new IllegalStateException("Line framer refused a valid line.");
+        }
+        if (lines.size() != 1 || !lines.getFirst().equals("\u20ac")) {
+            throw new IllegalStateException("Line framer didn't decode a character split between chunks.");
+        }
+        System.out.println("Test passed, line framer decoded a character split between chunks.");
+        // The line not terminated at the close is discarded, not delivered.
+        lines.clear();
+        try {
+            framer.feed(ByteBuffer.wrap("{\"operation\":\"logout\"".getBytes(StandardCharsets.UTF_8)), lines::add);
+        } catch (IOException ex) {
+            throw new IllegalStateException("Line framer refused a partial line.");
+        }
+        if (!lines.isEmpty() || framer.finish() != 21 || framer.getPendingBytes() != 0 || framer.finish() != 0) {
+            throw new IllegalStateException("Line framer delivered or kept the line not terminated at the close.");
+        }
+        System.out.println("Test passed, line framer discarded the line not terminated at the close.");
+        // A line up to the max length is accepted, a longer one closes the stream.
+        byte[] longest = new byte[65];
+        Arrays.fill(longest, (byte) 'a');
+        longest[64] = '\n';
+        lines.clear();
+        try {
+            framer.feed(ByteBuffer.wrap(longest), lines::add);
+        } catch (IOException ex) {
+            throw new IllegalStateException("Line framer refused a line of the max length.");
+        }
+        if (lines.size() != 1 || lines.getFirst().length() != 64) {
+            throw new IllegalStateException("Line framer didn't deliver a line of the max length.");
+        }
+        try {
+            framer.feed(ByteBuffer.wrap(longest, 0, 64), lines::add);
+            framer.feed(ByteBuffer.wrap(longest, 0, 1), lines::add);
+            throw new IllegalStateException("Line framer accepted a line over the max length.");
+        } catch (IOException ex) {
+            System.out.println("Test passed, line framer blocked a line over the max length.");
+        }
+
         // FileHandler Class tested in the users tests.
         
     }
@@ -580,6 +816,24 @@ public class MainTests {
             System.out.println("Test passed, blocked re-adding order FROM ORDERS.");
         }
 
+        // Stop order executed, its quantity and timestamp written back in the columns (as the stop orders executor does).
+        StopOrder stopOrder = new StopOrder(new SpecificPrice(90, PriceType.ASK, Currency.getDefaultPrimaryCurrency(), Currency.getDefaultSecondaryCurrency()), new Quantity(5), true);
+        Orders.addOrder((Order) stopOrder, false, true);
+        Long stopId = stopOrder.getId().longValue();
+        if (!Orders.updateOrderById(stopId, new Quantity(3), 1700000000L)) {
+            throw new IllegalStateException("Stop order not found to update.");
+        }
+        Order updated = Orders.getOrderById(stopId);
+        if (updated.getQuantity().getValue() != 3 || updated.getTimestamp() != 1700000000L || !Orders.toStringOrders().contains(String.format("ID [%d] - Side [ASK] - Price Value [90] - Quantity [3] - Timestamp [1700000000]", stopId))) {
+            throw new IllegalStateException("Stop order update not written back in the orders database.");
+        }
+        System.out.println("Test passed, stop order update written back in the orders database.");
+        // Unsatisfied stop order removed, its row marked as removed.
+        if (!Orders.removeOrderById(stopId) || Orders.getOrderById(stopId) != null || Orders.toStringOrders().contains(String.format("ID [%d]", stopId)) || Orders.removeOrderById(stopId) || Orders.updateOrderById(stopId, new Quantity(1), null)) {
+            throw new IllegalStateException("Stop order not removed from the orders database.");
+        }
+        System.out.println("Test passed, stop order removed from the orders database.");
+
     }
 
     // ORDER BOOK TESTS
@@ -792,12 +1046,1562 @@ public class MainTests {
 
 
 
+    // USERS ORDERS INDEX TESTS
+    public static void TestUserOrders() throws NullPointerException, IllegalArgumentException, IllegalStateException {
+
+        // Test the per-user index of an order book.
+        System.out.println("Testing users orders index...");
+
+        OrderBook orderBook = new OrderBook(new GenericPrice(1));
+        User user = new User("testuserindex", "testpasswordindex");
+        User otherUser = new User("testuserother", "testpasswordother");
+        Currency primaryCurrency = Currency.getDefaultPrimaryCurrency();
+        Currency secondaryCurrency = Currency.getDefaultSecondaryCurrency();
+
+        // Resting orders of two users.
+        LimitOrder askOrder = new LimitOrder(new SpecificPrice(200, PriceType.ASK, primaryCurrency, secondaryCurrency), new Quantity(5), true);
+        askOrder.setUser(user);
+        orderBook.executeOrder(askOrder);
+        LimitOrder bidOrder = new LimitOrder(new SpecificPrice(100, PriceType.BID, primaryCurrency, secondaryCurrency), new Quantity(3), true);
+        bidOrder.setUser(user);
+        orderBook.executeOrder(bidOrder);
+        LimitOrder otherOrder = new LimitOrder(new SpecificPrice(201, PriceType.ASK, primaryCurrency, secondaryCurrency), new Quantity(1), true);
+        otherOrder.setUser(otherUser);
+        orderBook.executeOrder(otherOrder);
+        StopOrder stopOrder = new StopOrder(new SpecificPrice(90, PriceType.ASK, primaryCurrency, secondaryCurrency), new Quantity(2), true);
+        stopOrder.setUser(user);
+        orderBook.executeOrder(stopOrder);
+
+        if (orderBook.getOpenOrders(user).size() != 3 || orderBook.getOpenOrders(otherUser).size() != 1) {
+            throw new IllegalStateException("Wrong number of open orders in the users orders index.");
+        }
+        if (orderBook.getOpenOrders(user).getFirst().getOrderId().longValue() != askOrder.getId().longValue()) {
+            throw new IllegalStateException("Open orders of the users orders index not in arrival order.");
+        }
+        System.out.println("Test passed, open orders of each user from the users orders index.");
+
+        // Partial fill from the orders journal, the remaining quantity is the one in the book.
+        orderBook.applyJournalFill(askOrder.getId().longValue(), new Quantity(2));
+        if (orderBook.getOpenOrders(user).getFirst().getSize().getValue() != 3) {
+            throw new IllegalStateException("Partial fill not reflected in the users orders index.");
+        }
+        // Full fill, the order leaves the index.
+        orderBook.applyJournalFill(bidOrder.getId().longValue(), new Quantity(3));
+        if (orderBook.getOpenOrders(user).size() != 2) {
+            throw new IllegalStateException("Filled order still in the users orders index.");
+        }
+        System.out.println("Test passed, fills reflected in the users orders index.");
+
+        // Exposure limits.
+        orderBook.setUserLimits(3, 0L);
+        LimitOrder allowedOrder = new LimitOrder(new SpecificPrice(210, PriceType.ASK, primaryCurrency, secondaryCurrency), new Quantity(1), true);
+        allowedOrder.setUser(user);
+        orderBook.executeOrder(allowedOrder);
+        try {
+            LimitOrder refusedOrder = new LimitOrder(new SpecificPrice(211, PriceType.ASK, primaryCurrency, secondaryCurrency), new Quantity(1), true);
+            refusedOrder.setUser(user);
+            orderBook.executeOrder(refusedOrder);
+            throw new IllegalArgumentException("Order over the max open orders accepted.");
+        } catch (IllegalStateException ex) {
+            System.out.println("Test passed, blocked order over the max open orders of the user.");
+        }
+        orderBook.setUserLimits(0, 6L);
+        try {
+            LimitOrder refusedOrder = new LimitOrder(new SpecificPrice(212, PriceType.ASK, primaryCurrency, secondaryCurrency), new Quantity(1), true);
+            refusedOrder.setUser(user);
+            orderBook.executeOrder(refusedOrder);
+            throw new IllegalArgumentException("Order over the max open quantity accepted.");
+        } catch (IllegalStateException ex) {
+            System.out.println("Test passed, blocked order over the max open quantity of the user.");
+        }
+        orderBook.setUserLimits(0, 0L);
+
+        // Ownership, an user cannot cancel the orders of another user through its index.
+        if (orderBook.cancelUserOrder(otherUser, askOrder.getId().longValue())) {
+            throw new IllegalStateException("Order of another user cancelled through the users orders index.");
+        }
+        if (!orderBook.cancelUserOrder(user, stopOrder.getId().longValue()) || orderBook.getOrderById(stopOrder.getId().longValue()) != null) {
+            throw new IllegalStateException("Own order not cancelled through the users orders index.");
+        }
+        System.out.println("Test passed, orders cancelled only by their user.");
+
+        // Cancel all.
+        Integer cancelled = orderBook.cancelUserOrders(user);
+        if (cancelled != 2 || !orderBook.getOpenOrders(user).isEmpty() || orderBook.getOrderById(askOrder.getId().longValue()) != null) {
+            throw new IllegalStateException("Cancel all orders of an user not complete.");
+        }
+        if (orderBook.getOpenOrders(otherUser).size() != 1 || orderBook.getOrderById(otherOrder.getId().longValue()) == null) {
+            throw new IllegalStateException("Cancel all orders of an user cancelled orders of another user.");
+        }
+        System.out.println("Test passed, cancelled all the orders of an user.");
+
+    }
+    public static void TestUserBalances() throws NullPointerException, IllegalArgumentException, IllegalStateException {
+
+        // Test the per-user balances of an order book.
+        System.out.println("Testing users balances...");
+
+        OrderBook orderBook = new OrderBook(new GenericPrice(1));
+        orderBook.enableBalances(10L, 1000L);
+        User buyer = new User("testuserbuyer", "testpasswordbuyer");
+        User seller = new User("testuserseller", "testpasswordseller");
+        // Another pair, only one order book per pair can have prices.
+        Currency primaryCurrency = Currency.ETH;
+        Currency secondaryCurrency = Currency.EUR;
+
+        // A bid reserves the secondary currency, price by size.
+        LimitOrder bidOrder = new LimitOrder(new SpecificPrice(100, PriceType.BID, primaryCurrency, secondaryCurrency), new Quantity(5), true);
+        bidOrder.setUser(buyer);
+        orderBook.executeOrder(bidOrder);
+        if (orderBook.getUserBalances(buyer).getLast().getAvailable() != 500) {
+            throw new IllegalStateException("Bid order not reserved on the secondary balance.");
+        }
+        try {
+            LimitOrder refusedOrder = new LimitOrder(new SpecificPrice(100, PriceType.BID, primaryCurrency, secondaryCurrency), new Quantity(6), true);
+            refusedOrder.setUser(buyer);
+            orderBook.executeOrder(refusedOrder);
+            throw new IllegalArgumentException("Bid order over the available secondary balance accepted.");
+        } catch (IllegalStateException ex) {
+            System.out.println("Test passed, blocked bid order over the available balance of the user.");
+        }
+
+        // An ask reserves the primary currency, released on cancel.
+        try {
+            LimitOrder refusedOrder = new LimitOrder(new SpecificPrice(200, PriceType.ASK, primaryCurrency, secondaryCurrency), new Quantity(11), true);
+            refusedOrder.setUser(seller);
+            orderBook.executeOrder(refusedOrder);
+            throw new IllegalArgumentException("Ask order over the available primary balance accepted.");
+        } catch (IllegalStateException ex) {
+            System.out.println("Test passed, blocked ask order over the available balance of the user.");
+        }
+        LimitOrder askOrder = new LimitOrder(new SpecificPrice(200, PriceType.ASK, primaryCurrency, secondaryCurrency), new Quantity(4), true);
+        askOrder.setUser(seller);
+        orderBook.executeOrder(askOrder);
+        if (orderBook.getUserBalances(seller).getFirst().getAvailable() != 6) {
+            throw new IllegalStateException("Ask order not reserved on the primary balance.");
+        }
+        orderBook.cancelUserOrder(seller, askOrder.getId().longValue());
+        if (orderBook.getUserBalances(seller).getFirst().getAvailable() != 10) {
+            throw new IllegalStateException("Cancelled order reservation not released.");
+        }
+        System.out.println("Test passed, reservations released on cancel.");
+
+        // A fill from the orders journal releases its reservation and settles both the currencies.
+        orderBook.applyJournalFill(bidOrder.getId().longValue(), new Quantity(2));
+        LimitOrder fill = new LimitOrder(new SpecificPrice(100, PriceType.BID, primaryCurrency, secondaryCurrency), new Quantity(2), true);
+        fill.setUser(buyer);
+        orderBook.applyJournalSettlement(fill);
+        LinkedList<Balance> balances = orderBook.getUserBalances(buyer);
+        if (balances.getFirst().getBalance() != 12 || balances.getLast().getBalance() != 800 || balances.getLast().getAvailable() != 500) {
+            throw new IllegalStateException("Fill not settled on the balances of the user.");
+        }
+        System.out.println("Test passed, fills settled on the balances of the user.");
+
+    }
+    public static void TestRequestId() throws NullPointerException, IllegalArgumentException, IllegalStateException, InvalidUser {
+
+        // Test the optional request id of the requests, echoed back in the responses.
+        System.out.println("Testing requests ids...");
+
+        Request request = new Request(ClientActions.LOGOUT, new LogoutRequest(), 42L);
+        if (new Request(request.toJSONString(), true).getRequestId() != 42L) {
+            throw new IllegalStateException("Request id lost in the JSON request.");
+        }
+        if (new Request(new Request(ClientActions.LOGOUT, new LogoutRequest()).toJSONString(), true).getRequestId() != null) {
+            throw new IllegalStateException("Request id present in a JSON request without it.");
+        }
+        try {
+            new Request("{\"operation\":\"logout\",\"values\":{},\"requestId\":-1}", true);
+            throw new IllegalStateException("Negative request id accepted.");
+        } catch (IllegalArgumentException ex) {
+            System.out.println("Test passed, refused negative request id.");
+        }
+        System.out.println("Test passed, request id sent in the JSON request.");
+
+        Response response = new Response(new ExecutionResponse(7L), ClientActions.INSERT_LIMIT_ORDER);
+        response.setRequestId(42L);
+        Response received = new Response(response.toJSONString());
+        if (received.getRequestId() != 42L || ((ExecutionResponse) received.getResponse()).getOrderId().longValue() != 7L) {
+            throw new IllegalStateException("Request id not echoed in the JSON response.");
+        }
+        System.out.println("Test passed, request id echoed in the JSON response.");
+
+    }
+    public static void TestBinaryProtocol() throws NullPointerException, IllegalArgumentException, IllegalStateException, InvalidUser {
+
+        // Test the buffers pool and the binary protocol's codec, without a server.
+        System.out.println("Testing binary protocol...");
+
+        ByteBufferPool pool = new ByteBufferPool(1024, 2);
+        ByteBuffer pooled = pool.acquire(64);
+        pool.release(pooled);
+        if (pool.getPooled() != 1 || pool.acquire(16) != pooled) {
+            throw new IllegalStateException("Buffer not reused by the pool.");
+        }
+        ByteBuffer large = pool.acquire(4096);
+        pool.release(large);
+        if (large.capacity() != 4096 || pool.getPooled() != 0) {
+            throw new IllegalStateException("Buffer over the size of the pool pooled.");
+        }
+        System.out.println("Test passed, buffers reused by the pool.");
+
+        BinaryFrame frame = new BinaryFrame();
+        Currency primaryCurrency = Currency.getDefaultPrimaryCurrency();
+        Currency secondaryCurrency = Currency.getDefaultSecondaryCurrency();
+
+        // Create, fixed layout.
+        LimitOrder limitOrder = new LimitOrder(new SpecificPrice(58000, PriceType.ASK, primaryCurrency, secondaryCurrency), new Quantity(3), true);
+        ByteBuffer buffer = BinaryProtocol.encodeRequest(new Request(ClientActions.INSERT_LIMIT_ORDER, new CreateRequest(limitOrder), 5L), pool);
+        if (BinaryProtocol.frameLength(buffer) != buffer.remaining()) {
+            throw new IllegalStateException("Wrong length of the create frame.");
+        }
+        BinaryProtocol.getFrame(buffer, frame);
+        pool.release(buffer);
+        Request request = BinaryProtocol.toRequest(frame);
+        CreateRequest createRequest = (CreateRequest) request.getValues();
+        if (frame.getType() != BinaryProtocol.TYPE_CREATE || request.getRequestId() != 5L || !request.getOperation().equals("insertLimitOrder") || createRequest.getType() != PriceType.ASK || createRequest.getSize().getValue() != 3 || createRequest.getPrice().getValue() != 58000) {
+            throw new IllegalStateException("Create request changed by the binary protocol.");
+        }
+        System.out.println("Test passed, create request encoded and decoded.");
+
+        // Cancel, fixed layout.
+        buffer = BinaryProtocol.encodeRequest(new Request(ClientActions.CANCEL_ORDER, new CancelRequest(123L)), pool);
+        BinaryProtocol.getFrame(buffer, frame);
+        request = BinaryProtocol.toRequest(frame);
+        if (frame.getType() != BinaryProtocol.TYPE_CANCEL || request.getRequestId() != null || ((CancelRequest) request.getValues()).getOrderId().longValue() != 123L) {
+            throw new IllegalStateException("Cancel request changed by the binary protocol.");
+        }
+        System.out.println("Test passed, cancel request encoded and decoded.");
+
+        // Others, JSON frame.
+        buffer = BinaryProtocol.encodeRequest(new Request(ClientActions.LOGOUT, new LogoutRequest(), 6L), pool);
+        BinaryProtocol.getFrame(buffer, frame);
+        if (frame.getType() != BinaryProtocol.TYPE_JSON || new Request(frame.getJSON(), true).getRequestId() != 6L) {
+            throw new IllegalStateException("JSON request changed by the binary protocol.");
+        }
+        System.out.println("Test passed, JSON request encoded and decoded.");
+
+        // Execution and status responses.
+        Response response = new Response(new ExecutionResponse(7L), ClientActions.INSERT_LIMIT_ORDER);
+        response.setRequestId(8L);
+        buffer = BinaryProtocol.encodeResponse(response, pool);
+        BinaryProtocol.getFrame(buffer, frame);
+        Response received = BinaryProtocol.toResponse(frame);
+        if (frame.getType() != BinaryProtocol.TYPE_EXECUTION || received.getRequestId() != 8L || ((ExecutionResponse) received.getResponse()).getOrderId().longValue() != 7L) {
+            throw new IllegalStateException("Execution response changed by the binary protocol.");
+        }
+        ResponseCode rateLimitCode = new ResponseCode(ResponseType.RATE_LIMIT, ResponseContent.TOO_MANY_REQUESTS);
+        buffer = BinaryProtocol.encodeResponse(new Response(new UserResponse(rateLimitCode, rateLimitCode.getDefaultMessage()), null), pool);
+        BinaryProtocol.getFrame(buffer, frame);
+        received = BinaryProtocol.toResponse(frame);
+        if (frame.getType() != BinaryProtocol.TYPE_STATUS || received.getType() != null || ((UserResponse) received.getResponse()).getResponseCode().getCode() != 429) {
+            throw new IllegalStateException("Rate limit response changed by the binary protocol.");
+        }
+        ResponseCode serverErrorCode = new ResponseCode(ResponseType.SERVER_ERROR, ResponseContent.SERVER_ERROR);
+        buffer = BinaryProtocol.encodeResponse(new Response(new UserResponse(serverErrorCode, serverErrorCode.getDefaultMessage()), null), pool);
+        BinaryProtocol.getFrame(buffer, frame);
+        received = BinaryProtocol.toResponse(frame);
+        ResponseCode receivedCode = ((UserResponse) received.getResponse()).getResponseCode();
+        if (frame.getType() != BinaryProtocol.TYPE_STATUS || received.getType() != null || receivedCode.getCode() != 500 || receivedCode.getType() != ResponseType.SERVER_ERROR) {
+            throw new IllegalStateException("Server error response changed by the binary protocol.");
+        }
+        System.out.println("Test passed, execution and status responses encoded and decoded.");
+
+        // User's orders.
+        limitOrder.setId(9L);
+        LinkedList<Trade> trades = new LinkedList<>();
+        trades.add(new Trade(limitOrder));
+        buffer = BinaryProtocol.encodeResponse(new Response(new OpenOrdersResponse(trades), ClientActions.GET_OPEN_ORDERS), pool);
+        BinaryProtocol.getFrame(buffer, frame);
+        received = BinaryProtocol.toResponse(frame);
+        Trade trade = ((OpenOrdersResponse) received.getResponse()).getOpenOrders()[0];
+        if (frame.getType() != BinaryProtocol.TYPE_TRADES || received.getType() != ClientActions.GET_OPEN_ORDERS || trade.getOrderId().longValue() != 9L || trade.getPrice().getValue() != 58000 || trade.getSize().getValue() != 3 || !Objects.equals(trade.getTimestamp(), limitOrder.getTimestamp())) {
+            throw new IllegalStateException("Open orders response changed by the binary protocol.");
+        }
+        System.out.println("Test passed, open orders response encoded and decoded.");
+
+        // Partial frame.
+        buffer = BinaryProtocol.encodeResponse(response, pool);
+        buffer.limit(buffer.limit() - 1);
+        if (BinaryProtocol.frameLength(buffer) != -1) {
+            throw new IllegalStateException("Partial frame decoded.");
+        }
+        System.out.println("Test passed, partial frame waited.");
+
+        // Credentials not valid flagged, not parsed twice.
+        if (!new Request("{\"operation\":\"login\",\"values\":{\"username\":\"tester\",\"password\":\"y\"}}", true).hasInvalidUser()) {
+            throw new IllegalStateException("Credentials not valid not flagged.");
+        }
+        System.out.println("Test passed, credentials not valid flagged in the request.");
+
+    }
+    public static void TestResponseBuffers() throws NullPointerException, IllegalArgumentException, IllegalStateException {
+
+        // Test the responses encoded in the pooled direct buffers, and the sampling of the debug logger.
+        System.out.println("Testing responses buffers...");
+
+        ByteBufferPool pool = new ByteBufferPool(64, 2, true);
+        ByteBuffer encoded = pool.encode("{\"orderId\":7}\n");
+        byte[] bytes = new byte[encoded.remaining()];
+        encoded.get(bytes);
+        if (!encoded.isDirect() || !new String(bytes, StandardCharsets.UTF_8).equals("{\"orderId\":7}\n")) {
+            throw new IllegalStateException("JSON response not encoded in a direct buffer.");
+        }
+        pool.release(encoded);
+        if (pool.getPooled() != 1) {
+            throw new IllegalStateException("Direct buffer not pooled.");
+        }
+        System.out.println("Test passed, JSON response encoded in a direct buffer.");
+
+        // Not ASCII, longer than its chars.
+        String text = "{\"errorMessage\":\"Prezzo \u20ac non valido \u00e8\"}";
+        encoded = pool.encode(text);
+        bytes = new byte[encoded.remaining()];
+        encoded.get(bytes);
+        if (!Arrays.equals(bytes, text.getBytes(StandardCharsets.UTF_8))) {
+            throw new IllegalStateException("Text not ASCII encoded wrong.");
+        }
+        System.out.println("Test passed, text not ASCII encoded.");
+
+        // JSON frame, from a direct buffer.
+        encoded = BinaryProtocol.encodeResponse(new Response(new UserResponse(new ResponseCode(ResponseType.LOGOUT, ResponseContent.OK), "Logged out successfully."), ClientActions.LOGOUT), pool);
+        BinaryFrame frame = new BinaryFrame();
+        BinaryProtocol.getFrame(encoded, frame);
+        if (frame.getType() != BinaryProtocol.TYPE_JSON || ((UserResponse) new Response(frame.getJSON()).getResponse()).getResponseCode().getCode() != 100) {
+            throw new IllegalStateException("JSON frame encoded wrong in a direct buffer.");
+        }
+        System.out.println("Test passed, JSON frame encoded in a direct buffer.");
+
+        // Messages serialized directly in the buffers, the same bytes of their strings, also growing the buffer.
+        ByteBufferPool smallPool = new ByteBufferPool(16, 2, true);
+        LimitOrder limitOrder = new LimitOrder(new SpecificPrice(58000, PriceType.BID, Currency.getDefaultPrimaryCurrency(), Currency.getDefaultSecondaryCurrency()), new Quantity(2), true);
+        limitOrder.setId(11L);
+        LinkedList<Trade> trades = new LinkedList<>();
+        trades.add(new Trade(limitOrder));
+        Response openOrders = new Response(new OpenOrdersResponse(trades), ClientActions.GET_OPEN_ORDERS);
+        openOrders.setRequestId(12L);
+        JSONAPIMessage[] messages = {
+            new Response(new ExecutionResponse(7L), ClientActions.INSERT_LIMIT_ORDER),
+            openOrders,
+            new Response(new UserResponse(new ResponseCode(ResponseType.LOGOUT, ResponseContent.OK), "Prezzo \u20ac non valido \u00e8 \ud83d\ude00 <ok>"), ClientActions.LOGOUT),
+            new Request(ClientActions.INSERT_LIMIT_ORDER, new CreateRequest(limitOrder), 13L),
+        };
+        for (JSONAPIMessage message : messages) {
+            encoded = message.toJSONBuffer(smallPool, 0).flip();
+            bytes = new byte[encoded.remaining()];
+            encoded.get(bytes);
+            if (!Arrays.equals(bytes, message.toJSONString().getBytes(StandardCharsets.UTF_8))) {
+                throw new IllegalStateException("Message serialized in a buffer not as its string: " + new String(bytes, StandardCharsets.UTF_8));
+            }
+        }
+        // A surrogate pair split between two writes, and a lone one.
+        ByteBufferWriter writer = new ByteBufferWriter(smallPool, 5);
+        writer.write("a\ud83d", 0, 2);
+        writer.write("\ude00b\ud83d", 0, 3);
+        encoded = writer.getBuffer().flip().position(5);
+        bytes = new byte[encoded.remaining()];
+        encoded.get(bytes);
+        if (!Arrays.equals(bytes, "a\ud83d\ude00b\ud83d".getBytes(StandardCharsets.UTF_8))) {
+            throw new IllegalStateException("Surrogates written in a buffer wrong.");
+        }
+        System.out.println("Test passed, messages serialized directly in the buffers.");
+
+        // One event every 3, with the debug level enabled.
+        Log.setLevel(Category.NETWORK, Level.DEBUG);
+        DebugLogger.setSampleRate(3);
+        int sampled = 0;
+        for (int i = 0; i < 9; i++) {
+            if (DebugLogger.isSampled(Category.NETWORK)) sampled++;
+        }
+        Log.setLevel(Category.NETWORK, Level.INFO);
+        if (sampled != 3 || DebugLogger.isSampled(Category.NETWORK)) {
+            throw new IllegalStateException("Debug events not sampled.");
+        }
+        DebugLogger.setSampleRate(0);
+        System.out.println("Test passed, debug events sampled.");
+
+    }
+    public static void TestLog() throws NullPointerException, IllegalArgumentException, IllegalStateException {
+
+        // Test the levels of the log's categories, the messages built only if logged, and the ring buffer of the background writer.
+        System.out.println("Testing log...");
+
+        Log.setLevel(Level.INFO);
+        Log.setLevel(Category.ENGINE, Level.DEBUG);
+        if (!Log.isEnabled(Category.ENGINE, Level.DEBUG) || Log.isEnabled(Category.NETWORK, Level.DEBUG) || !Log.isEnabled(Category.NETWORK, Level.WARN)) {
+            throw new IllegalStateException("Levels of the categories not applied.");
+        }
+        System.out.println("Test passed, levels of the categories applied.");
+
+        // Not built at the INFO level.
+        Boolean[] built = {false};
+        Log.debug(Category.NETWORK, () -> {
+            built[0] = true;
+            return "Built.";
+        });
+        if (built[0]) {
+            throw new IllegalStateException("Debug message built at the info level.");
+        }
+        System.out.println("Test passed, debug message not built at the info level.");
+
+        // Written in order by the background writer, captured.
+        PrintStream stdout = System.out;
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        Log.startAsync(4);
+        try {
+            System.setOut(new PrintStream(captured, true));
+            for (int i = 0; i < 3; i++) {
+                Log.info(Category.SERVER, "Message %d.", i);
+                Log.flush();
+            }
+        } finally {
+            Log.stopAsync();
+            System.setOut(stdout);
+        }
+        Log.setLevel(Level.INFO);
+        String written = captured.toString();
+        if (!written.contains("INFO  [server]") || written.indexOf("Message 0.") < 0 || written.indexOf("Message 0.") > written.indexOf("Message 1.") || written.indexOf("Message 1.") > written.indexOf("Message 2.")) {
+            throw new IllegalStateException("Messages not written in order by the background writer.");
+        }
+        System.out.println("Test passed, messages written in order by the background writer.");
+
+    }
+    public static void TestTLS() throws IOException, GeneralSecurityException, InterruptedException, IllegalStateException {
+
+        // Test the TLS contexts cached, and the sessions resumed by a second connection, with a self-signed keystore made by the JDK's keytool.
+        System.out.println("Testing TLS...");
+
+        File keystore = File.createTempFile("cross-tests", ".p12");
+        keystore.delete();
+        keystore.deleteOnExit();
+        Process keytool = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "keytool").toString(), "-genkeypair", "-alias", "cross", "-keyalg", "EC", "-validity", "1", "-dname", "CN=localhost", "-ext", "SAN=ip:127.0.0.1", "-storetype", "PKCS12", "-keystore", keystore.getPath(), "-storepass", "changeit").redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+        if (keytool.waitFor() != 0) {
+            throw new IllegalStateException("Keystore not made by keytool.");
+        }
+
+        SSLContext serverContext = TLSContexts.getServerContext(keystore.getPath(), "changeit", 100, 60);
+        SSLContext clientContext = TLSContexts.getClientContext(keystore.getPath(), "changeit", 0, 0);
+        if (serverContext != TLSContexts.getServerContext(keystore.getPath(), "changeit", 100, 60) || clientContext != TLSContexts.getClientContext(keystore.getPath(), "changeit", 0, 0) || serverContext == clientContext) {
+            throw new IllegalStateException("TLS contexts not cached.");
+        }
+        System.out.println("Test passed, TLS contexts cached.");
+
+        // Each connection reads a byte from the server, with TLS 1.3 the session to resume is received after the handshake.
+        long[] creationTimes = new long[2];
+        try (SSLServerSocket serverSocket = (SSLServerSocket) serverContext.getServerSocketFactory().createServerSocket(0, 2, InetAddress.getLoopbackAddress())) {
+            Thread server = new Thread(() -> {
+                for (int i = 0; i < creationTimes.length; i++) {
+                    try (Socket socket = serverSocket.accept()) {
+                        socket.getOutputStream().write(1);
+                        socket.getOutputStream().flush();
+                        socket.getInputStream().read();
+                    } catch (IOException ex) {
+                        return;
+                    }
+                }
+            });
+            server.start();
+            for (int i = 0; i < creationTimes.length; i++) {
+                try (SSLSocket socket = (SSLSocket) clientContext.getSocketFactory().createSocket("127.0.0.1", serverSocket.getLocalPort())) {
+                    if (socket.getInputStream().read() != 1) {
+                        throw new IllegalStateException("TLS connection not working.");
+                    }
+                    creationTimes[i] = socket.getSession().getCreationTime();
+                }
+            }
+            server.join();
+        }
+        // A resumed session keeps the creation time of the first one.
+        if (creationTimes[0] != creationTimes[1]) {
+            throw new IllegalStateException("TLS session not resumed.");
+        }
+        System.out.println("Test passed, TLS session resumed by the second connection.");
+
+        try {
+            TLSContexts.getServerContext(keystore.getPath(), "wrong", 0, 0);
+            throw new IllegalStateException("TLS keystore read with a wrong password.");
+        } catch (IOException ex) {
+            System.out.println("Test passed, TLS keystore not read with a wrong password.");
+        }
+
+    }
+
+    // SHUTDOWN TESTS
+    public static void TestNotificationBatches() throws NullPointerException, IllegalArgumentException {
+
+        // Test the notifications built from the trades converted once, as batched by the notification dispatcher.
+        System.out.println("Testing notifications batches...");
+
+        Notification first = new Notification();
+        Notification second = new Notification();
+        for (Integer price : new Integer[] {100, 101, 102}) {
+            LimitOrder limitOrder = new LimitOrder(new SpecificPrice(price, PriceType.ASK, Currency.getDefaultPrimaryCurrency(), Currency.getDefaultSecondaryCurrency()), new Quantity(price), true);
+            limitOrder.setId(price.longValue());
+            (price < 102 ? first : second).addTrade(new Trade(limitOrder));
+        }
+
+        if (!Notification.toJSONString(Arrays.asList(first.toJSONTrades())).equals(first.toJSONString())) {
+            throw new IllegalStateException("Notification from the converted trades different from the notification.");
+        }
+        System.out.println("Test passed, notification from the converted trades same as the notification.");
+
+        LinkedList<String> batched = new LinkedList<>(Arrays.asList(first.toJSONTrades()));
+        batched.addAll(Arrays.asList(second.toJSONTrades()));
+        Notification parsed = new Notification(Notification.toJSONString(batched).trim());
+        if (parsed.getTrades().length != 3 || parsed.getTrades()[2].getOrderId().longValue() != 102 || !parsed.getTrades()[0].getOrderType().equals(OrderType.LIMIT)) {
+            throw new IllegalStateException("Batched notification not parsed with all the trades in order.");
+        }
+        System.out.println("Test passed, batched notification parsed with all the trades in order.");
+
+        // Sequence numbers and parts, absent from the notifications without them.
+        String sequenced = Notification.toJSONString(Long.MAX_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, Arrays.asList(second.toJSONTrades()));
+        parsed = new Notification(sequenced.trim());
+        if (parsed.getEpoch() != Long.MAX_VALUE || parsed.getSeq() != Long.MAX_VALUE || parsed.getPart() != Integer.MAX_VALUE || parsed.getParts() != Integer.MAX_VALUE || parsed.isLost() || parsed.getTrades().length != 1
+                || sequenced.length() != Notification.MAX_ENVELOPE_BYTES + second.toJSONTrades()[0].length()
+                || new Notification(first.toJSONString()).getSeq() != null || new Notification(first.toJSONString()).getEpoch() != null || first.toJSONString().contains("seq")) {
+            throw new IllegalStateException("Sequenced notification not parsed with its sequence number and parts.");
+        }
+        parsed = new Notification(Notification.toLostJSONString(3, 7).trim());
+        if (parsed.getEpoch() != 3 || parsed.getSeq() != 7 || !parsed.isLost() || parsed.getPart() != null || parsed.getTrades().length != 0) {
+            throw new IllegalStateException("Lost notification not parsed as lost.");
+        }
+        System.out.println("Test passed, sequenced and lost notifications parsed with their sequence numbers.");
+
+    }
+    public static void TestMetrics() throws NullPointerException, IllegalArgumentException, IllegalStateException, InvalidOrder {
+
+        // Test the latency histograms, the metrics in the Prometheus text format and the order book depth of the admin endpoint.
+        System.out.println("Testing metrics...");
+
+        // Power of two buckets in microseconds, the latencies over the last one in the overflow.
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(500);
+        histogram.record(1000);
+        histogram.record(3000);
+        histogram.record(4000);
+        histogram.record(4001);
+        histogram.record(2000000000L);
+        long[] buckets = histogram.getBuckets();
+        if (buckets[0] != 2 || buckets[2] != 2 || buckets[3] != 1 || buckets[LatencyHistogram.BUCKETS] != 1 || histogram.getCount() != 6 || histogram.getSumNanos() != 2000012501L) {
+            throw new IllegalStateException("Latencies not recorded in their buckets.");
+        }
+        System.out.println("Test passed, latencies recorded in their buckets.");
+
+        // Disabled, nothing is counted nor timed.
+        Metrics.setEnabled(false);
+        long requests = Metrics.getRequests(ClientActions.INSERT_LIMIT_ORDER);
+        Metrics.countRequest(ClientActions.INSERT_LIMIT_ORDER);
+        if (Metrics.startTimer() != 0L || Metrics.getRequests(ClientActions.INSERT_LIMIT_ORDER) != requests) {
+            throw new IllegalStateException("Metrics collected while disabled.");
+        }
+        System.out.println("Test passed, metrics not collected while disabled.");
+
+        Metrics.setEnabled(true);
+        try {
+            Metrics.countRequest(ClientActions.INSERT_LIMIT_ORDER);
+            Metrics.countNotificationDropped();
+            Metrics.recordLatency(Stage.JOURNAL, Metrics.startTimer());
+        } finally {
+            Metrics.setEnabled(false);
+        }
+        StringBuilder out = new StringBuilder();
+        Metrics.writePrometheus(out);
+        String text = out.toString();
+        if (!text.contains("# TYPE cross_requests_total counter\n") || !text.contains("cross_requests_total{action=\"insert_limit_order\"} " + (requests + 1) + "\n")
+                || !text.contains("cross_stage_latency_seconds_bucket{stage=\"journal\",le=\"+Inf\"} " + Metrics.getLatencies(Stage.JOURNAL).getCount() + "\n")
+                || !text.contains("cross_notifications_dropped_total " + Metrics.getNotificationsDropped() + "\n") || Metrics.getNotificationsDropped() < 1) {
+            throw new IllegalStateException("Metrics not written in the Prometheus text format.");
+        }
+        System.out.println("Test passed, metrics written in the Prometheus text format.");
+
+        // Depth from the best prices outward, on a market not used by the other tests.
+        OrderBook orderBook = new OrderBook(new GenericPrice(1));
+        for (Integer price : new Integer[] {120, 110, 110}) {
+            orderBook.executeOrder(new LimitOrder(new SpecificPrice(price, PriceType.ASK, Currency.ETH, Currency.USD), new Quantity(2), true));
+        }
+        for (Integer price : new Integer[] {80, 90}) {
+            orderBook.executeOrder(new LimitOrder(new SpecificPrice(price, PriceType.BID, Currency.ETH, Currency.USD), new Quantity(3), true));
+        }
+        OrderBookDepth depth = orderBook.getDepth(1);
+        if (depth.getBestAsk() != 110 || depth.getBestBid() != 90 || depth.getAskLevels() != 2 || depth.getBidLevels() != 2 || depth.getAsks().size() != 1 || depth.getBids().size() != 1
+                || depth.getAsks().getFirst().getQuantity() != 4 || depth.getAsks().getFirst().getOrders() != 2 || depth.getBids().getFirst().getPrice() != 90 || depth.getBidsQuantity() != 3) {
+            throw new IllegalStateException("Order book depth not copied from the best prices.");
+        }
+        depth = orderBook.getDepth(10);
+        if (depth.getAsks().getLast().getPrice() != 120 || depth.getBids().getLast().getPrice() != 80 || !depth.toJSONString().contains("\"bestAsk\":110")) {
+            throw new IllegalStateException("Order book depth not copied from the best prices.");
+        }
+        System.out.println("Test passed, order book depth copied from the best prices.");
+
+    }
+    public static void TestOrderBookRecovery(String snapshotFilePath) throws IOException, NullPointerException, IllegalArgumentException, IllegalStateException, InvalidOrder {
+
+        // Test the order book recovered from a snapshot, the orders journal tail and the order book events.
+        System.out.println("Testing order book recovery...");
+
+        String eventsFilePath = snapshotFilePath.substring(0, snapshotFilePath.length() - ".json".length()) + "-events.jsonl";
+        Files.deleteIfExists(Path.of(snapshotFilePath));
+        Files.deleteIfExists(Path.of(eventsFilePath));
+        DBOrderBookSnapshot.setFile(snapshotFilePath);
+
+        // Another pair, only one order book per pair can have prices.
+        Currency primaryCurrency = Currency.BTC;
+        Currency secondaryCurrency = Currency.EUR;
+        OrderBook orderBook = new OrderBook(new GenericPrice(1));
+        orderBook.setEventsLogged(true);
+
+        // Before the snapshot.
+        LimitOrder askA = new LimitOrder(new SpecificPrice(100, PriceType.ASK, primaryCurrency, secondaryCurrency), new Quantity(5), true);
+        orderBook.executeOrder(askA);
+        LimitOrder askB = new LimitOrder(new SpecificPrice(101, PriceType.ASK, primaryCurrency, secondaryCurrency), new Quantity(3), true);
+        orderBook.executeOrder(askB);
+        if (DBOrderBookSnapshot.writeSnapshot(orderBook) == null || DBOrderBookEvents.readEvents(0L).size() != 0) {
+            throw new IllegalStateException("Order book snapshot not written or its events not dropped.");
+        }
+
+        // After the snapshot, an order placed, a stop order placed, a fill and a cancel.
+        LimitOrder askC = new LimitOrder(new SpecificPrice(102, PriceType.ASK, primaryCurrency, secondaryCurrency), new Quantity(2), true);
+        orderBook.executeOrder(askC);
+        StopOrder stopS = new StopOrder(new SpecificPrice(200, PriceType.BID, primaryCurrency, secondaryCurrency), new Quantity(1), true);
+        orderBook.executeOrder(stopS);
+        // The fill written in the orders journal as a market order does, without the notifications of the server.
+        LimitOrder fillA = new LimitOrder(new SpecificPrice(100, PriceType.ASK, primaryCurrency, secondaryCurrency), new Quantity(4), true);
+        fillA.setId(askA.getId().longValue());
+        DBOrdersInterface.writeOrderOnFile(fillA);
+        orderBook.applyJournalFill(askA.getId().longValue(), new Quantity(4));
+        orderBook.cancelOrder(askB.getId().longValue());
+        if (DBOrderBookEvents.readEvents(0L).size() != 3) {
+            throw new IllegalStateException("Resting orders added and removed not logged in the order book events file.");
+        }
+        System.out.println("Test passed, resting orders added and removed logged in the order book events file.");
+
+        // The live order book is emptied without logging, so the recovered one can have the same pair.
+        orderBook.setEventsLogged(false);
+        orderBook.cancelOrder(askA.getId().longValue());
+        orderBook.cancelOrder(askC.getId().longValue());
+        orderBook.cancelOrder(stopS.getId().longValue());
+
+        // A damaged line and an added event without its order, skipped by the recovery instead of aborting it.
+        DBOrderBookEvents.readEvents(0L);
+        Files.writeString(Path.of(eventsFilePath), "{\"seq\":\n{\"seq\":99,\"journal\":0,\"event\":\"add\",\"orderId\":1}\n", StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+
+        OrderBook recoveredOrderBook = new OrderBook(new GenericPrice(1));
+        if (DBOrderBookSnapshot.recoverOrderBook(recoveredOrderBook) == null) {
+            throw new IllegalStateException("Order book not recovered from the snapshot with invalid events.");
+        }
+        LimitOrder recoveredA = (LimitOrder) recoveredOrderBook.getOrderById(askA.getId().longValue());
+        if (recoveredA == null || recoveredA.getQuantity().getValue() != 1) {
+            throw new IllegalStateException("Fill after the snapshot not replayed on the recovered order book.");
+        }
+        if (recoveredOrderBook.getOrderById(askB.getId().longValue()) != null) {
+            throw new IllegalStateException("Order cancelled after the snapshot back on the recovered order book.");
+        }
+        if (recoveredOrderBook.getOrderById(askC.getId().longValue()) == null || recoveredOrderBook.getOrderById(stopS.getId().longValue()) == null) {
+            throw new IllegalStateException("Orders placed after the snapshot lost on the recovered order book.");
+        }
+        System.out.println("Test passed, order book recovered with the orders placed, filled and cancelled after the snapshot.");
+
+        // The recovered order book logs its events.
+        recoveredOrderBook.cancelOrder(askC.getId().longValue());
+        LinkedList<DBOrderBookEvents.Event> events = DBOrderBookEvents.readEvents(0L);
+        if (!events.getLast().getEvent().equals(DBOrderBookEvents.Event.REMOVE) || events.getLast().getOrderId().longValue() != askC.getId().longValue()) {
+            throw new IllegalStateException("Recovered order book not logging its events.");
+        }
+        System.out.println("Test passed, recovered order book logging its events.");
+
+        recoveredOrderBook.setEventsLogged(false);
+        recoveredOrderBook.cancelOrder(askA.getId().longValue());
+        recoveredOrderBook.cancelOrder(stopS.getId().longValue());
+        DBOrderBookEvents.closeFile();
+        Files.deleteIfExists(Path.of(snapshotFilePath));
+        Files.deleteIfExists(Path.of(eventsFilePath));
+
+    }
+    public static void TestShutdown(String dbOrdersFilePath) throws IOException, NoSuchMethodException, IllegalStateException {
+
+        // Test the databases files closed at the shutdown of the server.
+        System.out.println("Testing databases files closed at the shutdown...");
+
+        String before = Files.readString(Path.of(dbOrdersFilePath), StandardCharsets.UTF_8);
+        DBOrdersInterface.closeFile();
+        // Already closed.
+        DBOrdersInterface.closeFile();
+
+        SpecificPrice specificPrice = new SpecificPrice(100, PriceType.ASK, Currency.getDefaultPrimaryCurrency(), Currency.getDefaultSecondaryCurrency());
+        LimitOrder limitOrder = new LimitOrder(specificPrice, new Quantity(1), true);
+        Boolean written = true;
+        try {
+            DBOrdersInterface.writeOrderOnFile((Order) limitOrder);
+        } catch (IllegalStateException ex) {
+            written = false;
+        }
+        if (written) {
+            throw new IllegalStateException("Order written on the closed orders database file.");
+        }
+        System.out.println("Test passed, blocked writing order on the closed orders database file.");
+
+        String after = Files.readString(Path.of(dbOrdersFilePath), StandardCharsets.UTF_8);
+        if (!before.equals(after)) {
+            throw new IllegalStateException("Closed orders database file changed.");
+        }
+        JsonParser.parseString(after);
+        System.out.println("Test passed, closed orders database file untouched and valid.");
+
+        DBUsersInterface.closeFile();
+        written = true;
+        try {
+            DBUsersInterface.writeUserOnFile(new User("testshutdown", "testpassword"));
+        } catch (IllegalStateException ex) {
+            written = false;
+        }
+        if (written) {
+            throw new IllegalStateException("User written on the closed users database file.");
+        }
+        System.out.println("Test passed, blocked writing user on the closed users database file.");
+
+    }
+
+
+    // RELOAD TESTS
+    // Runs this class in a new JVM, as a restart of the server, with the given arguments, and returns the state it prints.
+    public static LinkedList<String> runReload(String... args) throws IOException, InterruptedException, IllegalStateException {
+
+        return runReloadWithOptions(new LinkedList<>(), args);
+
+    }
+    // As runReload, with the given options of the new JVM.
+    public static LinkedList<String> runReloadWithOptions(LinkedList<String> jvmOptions, String... args) throws IOException, InterruptedException, IllegalStateException {
+
+        LinkedList<String> command = new LinkedList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvmOptions);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("MainTests");
+        command.add("reload");
+        command.addAll(Arrays.asList(args));
+
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        if (process.waitFor() != 0) {
+            throw new IllegalStateException("Reload " + Arrays.toString(args) + " failed:\n" + output);
+        }
+
+        // Only the state, without the logs.
+        LinkedList<String> state = new LinkedList<>();
+        for (String line : output.split("\n")) {
+            if (line.startsWith("state: ")) {
+                state.add(line);
+            }
+        }
+        return state;
+
+    }
+    // Executed in the new JVM, attaches and loads the databases files and prints their state, after writing the records asked.
+    public static void Reload(String[] args) throws IOException, JsonSyntaxException, InvalidOrder, NoSuchMethodException, IllegalStateException, InterruptedException, InvalidUser, IllegalAccessException, InvalidConfig {
+
+        switch (args[1]) {
+            case "orders" -> ReloadOrders(args);
+            case "users" -> ReloadUsers(args);
+            case "server" -> ReloadServer(args);
+            case "balances" -> ReloadBalances(args);
+            case "pinning" -> ReloadPinning(args);
+            default -> throw new IllegalArgumentException("Unknown reload: " + args[1]);
+        }
+
+    }
+    // reload orders <write | read> <file> [mapped <mapped file>] [segments <max active bytes>] [ids <id,id,...>]
+    public static void ReloadOrders(String[] args) throws IOException, JsonSyntaxException, InvalidOrder, NoSuchMethodException, IllegalStateException, InterruptedException {
+
+        Boolean write = args[2].equals("write");
+        Boolean segments = false;
+        long segmentMaxBytes = 0;
+        // Ids of the orders to print one by one, with the segments some orders are only in the archives.
+        LinkedHashSet<Long> orderIds = new LinkedHashSet<>();
+        for (int i = 4; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "mapped" -> Orders.useMappedFile(args[i + 1]);
+                case "segments" -> {
+                    segmentMaxBytes = Long.parseLong(args[i + 1]);
+                    DBOrdersInterface.setSegmentsPolicy(segmentMaxBytes, 0L);
+                    segments = true;
+                }
+                case "ids" -> {
+                    for (String id : args[i + 1].split(",")) {
+                        orderIds.add(Long.parseLong(id));
+                    }
+                }
+                default -> throw new IllegalArgumentException("Unknown reload option: " + args[i]);
+            }
+        }
+        DBOrdersInterface.setFile(args[3]);
+        DBOrdersInterface.readFile();
+        Orders.loadOrders(true, true);
+
+        if (write) {
+            Currency primaryCurrency = Currency.getDefaultPrimaryCurrency();
+            Currency secondaryCurrency = Currency.getDefaultSecondaryCurrency();
+            // 1 January 2026.
+            long timestamp = 1767225600L;
+            for (int i = 0; i < 20; i++) {
+                LimitOrder ask = new LimitOrder(new SpecificPrice(58000 + i, PriceType.ASK, primaryCurrency, secondaryCurrency), new Quantity(1 + i % 4), true);
+                ask.setTimestamp(timestamp + i * 3600L);
+                Orders.addOrder((Order) ask, false, true);
+                StopOrder stop = new StopOrder(new SpecificPrice(50000 + i, PriceType.BID, primaryCurrency, secondaryCurrency), new Quantity(2), true);
+                Orders.addOrder((Order) stop, false, true);
+                MarketOrder market = new MarketOrder(PriceType.BID, primaryCurrency, secondaryCurrency, new Quantity(1));
+                // A bid market order is executed at an ask price.
+                market.setExecutionPrice(new SpecificPrice(58000 + i, PriceType.ASK, primaryCurrency, secondaryCurrency));
+                market.setTimestamp(timestamp + i * 3600L + 1);
+                Orders.addOrder((Order) market, false, true);
+                // A partial fill of the same limit order, a second row of its id.
+                ask.setQuantity(new Quantity(1));
+                Orders.addOrder((Order) ask, true, true);
+                orderIds.add(ask.getId().longValue());
+                orderIds.add(stop.getId().longValue());
+                orderIds.add(market.getId().longValue());
+            }
+            if (segments) {
+                // Waiting the background seals, the orders database file is sealed when over the max size.
+                for (int i = 0; Files.size(Path.of(args[3])) >= segmentMaxBytes; i++) {
+                    if (i == 300) {
+                        throw new IllegalStateException("Orders database file not sealed.");
+                    }
+                    Thread.sleep(100);
+                }
+                // As an order book snapshot covering all the journal, so all the sealed segments are settled.
+                DBOrdersInterface.setSettledEntries(DBOrdersInterface.getJournalEntries());
+                // Waiting the background compaction of all the sealed segments, so the reload reads them from the archives.
+                Path directory = Path.of(args[3].substring(0, args[3].length() - ".json".length()) + "-segments");
+                for (int i = 0; segmentsNotCompacted(directory) > 0; i++) {
+                    if (i == 300) {
+                        throw new IllegalStateException("Orders journal segments not compacted.");
+                    }
+                    Thread.sleep(100);
+                }
+            }
+            DBOrdersInterface.closeFile();
+        }
+
+        System.out.printf("state: orders journal entries %d\n", DBOrdersInterface.getJournalEntries());
+        if (segments) {
+            // Only the orders not compacted are in memory, the others are read from the archives.
+            for (Long orderId : orderIds) {
+                Order order = Orders.getOrderById(orderId);
+                SpecificPrice price = order instanceof MarketOrder marketOrder ? marketOrder.getExecutionPrice() : order.getPrice();
+                System.out.printf("state: order %s %d %s %d %s\n", order.getOrderType().name(), orderId, price.getType().name(), price.getValue(), order.getTimestamp());
+            }
+        } else {
+            System.out.printf("state: orders %d\n", Orders.getOrdersSize());
+            for (String line : Orders.toStringOrders().split("\n")) {
+                System.out.printf("state: %s\n", line);
+            }
+        }
+        System.out.printf("state: price history %s\n", new Response(Orders.getPriceHistory("012026"), ClientActions.GET_PRICE_HISTORY).toJSONString().trim());
+
+    }
+    // Number of the sealed segments files not yet compacted in archives.
+    public static long segmentsNotCompacted(Path directory) throws IOException {
+
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(file -> file.getFileName().toString()).filter(name -> name.startsWith("segment-") && name.endsWith(".json")).count();
+        }
+
+    }
+    // reload users <write | read | sessions | concurrent | migrate> <file> [login <username> <password>]...
+    public static void ReloadUsers(String[] args) throws IOException, JsonSyntaxException, NoSuchMethodException, IllegalStateException, InterruptedException, InvalidUser, IllegalAccessException, InvalidConfig {
+
+        String mode = args[2];
+        Path filePath = Path.of(args[3]);
+        DBUsersInterface.setFile(args[3]);
+        DBUsersInterface.readFile();
+        // Not started, only to bind the sessions to the clients' addresses.
+        Users.loadUsers(new Server("./Configs/server-config.properties"));
+
+        switch (mode) {
+            case "write" -> {
+                // The log has enough superseded records for a compaction.
+                waitUsersCompaction(filePath);
+                // Appended after the compaction, a new user and a password change.
+                Users.addUser(new User("reloadusernew", "reloadpassword"));
+                Users.updateCredentials(Users.getUserByUsername("reloaduser0"), new User("reloaduser0", "reloadupdated"));
+                DBUsersInterface.closeFile();
+            }
+            case "sessions" -> {
+                ReloadSessions();
+                DBUsersInterface.closeFile();
+            }
+            case "concurrent" -> {
+                ReloadConcurrentUsers();
+                DBUsersInterface.closeFile();
+            }
+            case "migrate" -> {
+                // The plaintext records superseded by the migration are compacted.
+                waitUsersCompaction(filePath);
+                DBUsersInterface.closeFile();
+            }
+            case "read" -> {
+            }
+            default -> throw new IllegalArgumentException("Unknown reload users mode: " + mode);
+        }
+
+        System.out.printf("state: users %d\n", Users.getUsersSize());
+        System.out.printf("state: users file records %d\n", usersFileRecords(filePath));
+        for (String line : Users.toStringUsers().split("\n")) {
+            System.out.printf("state: %s\n", line);
+        }
+
+        // The logins asked, after the state, each on its own connection.
+        try (ServerSocket listener = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            for (int i = 4; i + 2 < args.length && args[i].equals("login"); i += 3) {
+                try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort())) {
+                    Users.login(new User(args[i + 1], args[i + 2]), socket);
+                    System.out.printf("state: login %s %s ok\n", args[i + 1], args[i + 2]);
+                } catch (InvalidUser ex) {
+                    System.out.printf("state: login %s %s failed\n", args[i + 1], args[i + 2]);
+                }
+            }
+        }
+
+    }
+    // Logins, credentials update and logouts of reloaduser0 (password reloadpassword) on some connections, checking their sessions.
+    public static void ReloadSessions() throws IOException, NoSuchMethodException, IllegalStateException, InvalidUser, IllegalAccessException {
+
+        try (ServerSocket listener = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+             Socket first = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+             Socket second = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+             Socket other = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort())) {
+
+            User stored = Users.getUserByUsername("reloaduser0");
+            Session session = Users.login(new User("reloaduser0", "reloadpassword"), first);
+            if (session.getUser() != stored || Users.getSession(first) != session || Users.getLoggedInUser(first) != stored || !Users.isLoggedIn(stored, first) || Users.getSessionsSize() != 1) {
+                throw new IllegalStateException("Session not bound to the connection at the login.");
+            }
+
+            // A connection has a single session.
+            try {
+                Users.login(new User("reloaduser0", "reloadpassword"), first);
+                throw new IllegalStateException("Second login on the same connection not blocked.");
+            } catch (IllegalAccessException ex) {
+            }
+            // Wrong password, no session.
+            try {
+                Users.login(new User("reloaduser0", "wrongpassword"), other);
+                throw new IllegalStateException("Login with a wrong password not blocked.");
+            } catch (InvalidUser ex) {
+            }
+            if (Users.isLoggedIn(other) || Users.getSession(other) != null) {
+                throw new IllegalStateException("Session bound after a failed login.");
+            }
+
+            // Same user on another connection.
+            Session secondSession = Users.login(new User("reloaduser0", "reloadpassword"), second);
+            if (Users.getSessionsSize() != 2 || secondSession == session) {
+                throw new IllegalStateException("Session of the second connection not bound.");
+            }
+
+            // The sessions follow the new user object after a credentials update.
+            Users.updateCredentials(stored, new User("reloaduser0", "reloadupdated"));
+            User updated = Users.getUserByUsername("reloaduser0");
+            if (updated == stored || session.getUser() != updated || secondSession.getUser() != updated || !Users.isLoggedIn(updated, first) || !Users.isLoggedIn(updated, second) || Users.isLoggedIn(stored, first)) {
+                throw new IllegalStateException("Sessions not rebound to the updated user.");
+            }
+
+            Users.logout(session.getUser(), first);
+            if (Users.getSession(first) != null || Users.isLoggedIn(first) || Users.getSessionsSize() != 1 || Users.getSession(second) != secondSession) {
+                throw new IllegalStateException("Session not removed at the logout.");
+            }
+            try {
+                Users.logout(updated, first);
+                throw new IllegalStateException("Second logout of the same connection not blocked.");
+            } catch (IllegalArgumentException ex) {
+            }
+            Users.logout(secondSession.getUser(), second);
+            if (Users.getSessionsSize() != 0) {
+                throw new IllegalStateException("Sessions left after the logouts.");
+            }
+
+        }
+
+    }
+    // Adds, updates, logins and lookups of different users from many threads at the same time, on reloaduser0-7 (password reloadpassword).
+    public static void ReloadConcurrentUsers() throws IOException, InterruptedException, IllegalStateException {
+
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        LinkedList<Throwable> errors = new LinkedList<>();
+        try (ServerSocket listener = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+
+            for (int i = 0; i < 4; i++) {
+                int user = i;
+                // New users.
+                executor.execute(() -> {
+                    try {
+                        Users.addUser(new User("reloadusernew" + user, "reloadpassword"));
+                    } catch (Throwable ex) {
+                        synchronized (errors) {
+                            errors.add(ex);
+                        }
+                    }
+                });
+                // Password changes.
+                executor.execute(() -> {
+                    try {
+                        Users.updateCredentials(new User("reloaduser" + user, "reloadpassword"), new User("reloaduser" + user, "reloadupdated"));
+                    } catch (Throwable ex) {
+                        synchronized (errors) {
+                            errors.add(ex);
+                        }
+                    }
+                });
+                // Logins and logouts of the other users, with their lookups, on the same connection.
+                executor.execute(() -> {
+                    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort())) {
+                        for (int j = 0; j < 20; j++) {
+                            Session session = Users.login(new User("reloaduser" + (user + 4), "reloadpassword"), socket);
+                            if (Users.getUserByUsername("reloaduser" + (user + 4)) != session.getUser() || Users.getSession(socket) != session) {
+                                throw new IllegalStateException("Session not bound to the user logged in.");
+                            }
+                            Users.logout(session.getUser(), socket);
+                        }
+                    } catch (Throwable ex) {
+                        synchronized (errors) {
+                            errors.add(ex);
+                        }
+                    }
+                });
+            }
+
+            executor.shutdown();
+            if (!executor.awaitTermination(120, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("Concurrent users operations not ended.");
+            }
+
+        }
+        if (!errors.isEmpty()) {
+            throw new IllegalStateException("Concurrent users operations failed: " + errors.getFirst());
+        }
+        if (Users.getUsersSize() != 12 || Users.getSessionsSize() != 0) {
+            throw new IllegalStateException("Concurrent users operations lost some users or sessions.");
+        }
+
+    }
+    // reload server <transport> <config file> <users file> <orders file>
+    // Starts the server with the given transport, then logins and logouts transportuser0-3 (password transportpassword) as its clients, printing their responses.
+    public static void ReloadServer(String[] args) throws IOException, InterruptedException, IllegalStateException, InvalidConfig {
+
+        Server server = new Server(args[3]);
+        if (!server.getTransport().equals(args[2])) {
+            throw new IllegalStateException("Server's transport not the one asked.");
+        }
+        server.initializeServer(args[4], args[5]);
+        server.startServer();
+        server.startAccept();
+
+        String[][] responses = new String[4][];
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        LinkedList<Throwable> errors = new LinkedList<>();
+        for (int i = 0; i < 4; i++) {
+            int client = i;
+            executor.execute(() -> {
+                try (Socket socket = new Socket(server.getServerAddress(), server.getServerPort())) {
+                    socket.setSoTimeout(30000);
+                    OutputStream out = socket.getOutputStream();
+                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                    String login = String.format("{\"operation\":\"login\",\"values\":{\"username\":\"transportuser%d\",\"password\":\"transportpassword\"}}\n", client);
+                    String logout = "{\"operation\":\"logout\",\"values\":{}}\n";
+                    // A request split in two writes.
+                    out.write(login.substring(0, 20).getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                    Thread.sleep(100);
+                    out.write(login.substring(20).getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                    // Many requests in a single write, with a blank and an invalid line ignored between them.
+                    out.write(("\n{\"operation\":\"invalid\"}\n" + login + logout + logout).getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                    // The responses are '\n' terminated JSONs, preceded by a '\n'.
+                    String[] lines = new String[4];
+                    for (int j = 0; j < lines.length; j++) {
+                        do {
+                            lines[j] = in.readLine();
+                        } while (lines[j] != null && lines[j].isBlank());
+                    }
+                    responses[client] = lines;
+                } catch (Throwable ex) {
+                    synchronized (errors) {
+                        errors.add(ex);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        if (!executor.awaitTermination(60, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Server's clients not ended.");
+        }
+        if (!errors.isEmpty()) {
+            throw new IllegalStateException("Server's clients failed: " + errors.getFirst());
+        }
+
+        server.shutdown();
+
+        for (int i = 0; i < responses.length; i++) {
+            for (String line : responses[i]) {
+                System.out.printf("state: client %d %s\n", i, line);
+            }
+        }
+
+    }
+    // reload balances <users file> <orders file>
+    // A market bid of an user with balances on two ask lines, with the databases loaded, so its fills can be notified and stored.
+    public static void ReloadBalances(String[] args) throws IOException, JsonSyntaxException, NoSuchMethodException, IllegalStateException, InvalidUser, InvalidOrder, InvalidConfig {
+
+        DBUsersInterface.setFile(args[2]);
+        DBUsersInterface.readFile();
+        // Not started, only to notify the fills.
+        Users.loadUsers(new Server("./Configs/server-config.properties"));
+        DBOrdersInterface.setFile(args[3]);
+        DBOrdersInterface.readFile();
+        Orders.loadOrders(true, true);
+
+        OrderBook orderBook = new OrderBook(new GenericPrice(1));
+        orderBook.enableBalances(10L, 500L);
+        User buyer = new User("testuserbuyer", "testpasswordbuyer");
+        User seller = new User("testuserseller", "testpasswordseller");
+        for (int price : new int[] {200, 300}) {
+            LimitOrder askOrder = new LimitOrder(new SpecificPrice(price, PriceType.ASK, Currency.BTC, Currency.ETH), new Quantity(2), true);
+            askOrder.setUser(seller);
+            orderBook.executeOrder(askOrder);
+        }
+        MarketOrder bidOrder = new MarketOrder(PriceType.BID, Currency.BTC, Currency.ETH, new Quantity(2));
+        bidOrder.setUser(buyer);
+        Boolean executed = orderBook.executeOrder(bidOrder);
+
+        System.out.printf("state: market bid executed %s\n", executed);
+        System.out.printf("state: buyer secondary balance %d\n", orderBook.getUserBalances(buyer).getLast().getBalance());
+
+    }
+    // reload pinning <events file>
+    // Virtual threads entering and cancelling orders on two order books, sharing the order book events file, so its lock is contended.
+    // Run with -Djdk.tracePinnedThreads=full, the stack of a virtual thread parked while holding a monitor is printed on the standard output.
+    public static void ReloadPinning(String[] args) throws IOException, JsonSyntaxException, InterruptedException, IllegalStateException {
+
+        DBOrderBookEvents.setFile(args[2]);
+        OrderBook[] orderBooks = new OrderBook[] {new OrderBook(new GenericPrice(1)), new OrderBook(new GenericPrice(1))};
+        for (OrderBook orderBook : orderBooks) {
+            orderBook.setEventsLogged(true);
+        }
+
+        // The pinned stacks are printed on the standard output, captured to count them.
+        PrintStream standardOutput = System.out;
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(captured, true, StandardCharsets.UTF_8));
+        // Reading the whole events file holds its lock for long, so the virtual threads appending the events park waiting for it.
+        AtomicBoolean entering = new AtomicBoolean(true);
+        Thread reader = new Thread(() -> {
+            while (entering.get()) {
+                try {
+                    DBOrderBookEvents.readEvents(Long.MAX_VALUE);
+                } catch (IOException ex) {
+                    return;
+                }
+            }
+        });
+        reader.start();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < 16; i++) {
+                OrderBook orderBook = orderBooks[i % 2];
+                int thread = i;
+                executor.submit(() -> {
+                    for (int j = 0; j < 200; j++) {
+                        LimitOrder limitOrder = new LimitOrder(new SpecificPrice(60000 + thread * 200 + j, PriceType.ASK, Currency.BTC, Currency.ETH), new Quantity(1), true);
+                        orderBook.executeOrder(limitOrder);
+                        StopOrder stopOrder = new StopOrder(new SpecificPrice(50000 - thread * 200 - j, PriceType.BID, Currency.BTC, Currency.ETH), new Quantity(1), true);
+                        orderBook.executeOrder(stopOrder);
+                        orderBook.cancelOrder(limitOrder);
+                        orderBook.cancelOrder(stopOrder);
+                    }
+                    return null;
+                });
+            }
+        } finally {
+            entering.set(false);
+            reader.join();
+            System.setOut(standardOutput);
+        }
+        DBOrderBookEvents.closeFile();
+
+        long pinned = captured.toString(StandardCharsets.UTF_8).lines().filter(line -> line.contains("<== monitors")).count();
+        System.out.printf("state: pinned stacks %d\n", pinned);
+        // All the limit orders cancelled, so no best ask price.
+        System.out.printf("state: order books empty %s\n", orderBooks[0].getActualPriceAsk() == null && orderBooks[1].getActualPriceAsk() == null);
+
+    }
+    // Waits the background compaction of the users database file, scheduled by the loading.
+    public static void waitUsersCompaction(Path filePath) throws IOException, InterruptedException, IllegalStateException {
+
+        for (int i = 0; usersFileRecords(filePath) > Users.getUsersSize(); i++) {
+            if (i == 300) {
+                throw new IllegalStateException("Users database file not compacted.");
+            }
+            Thread.sleep(100);
+        }
+
+    }
+    // Number of the users records in the users database file, the superseded ones included.
+    public static long usersFileRecords(Path filePath) throws IOException {
+
+        return Files.readAllLines(filePath, StandardCharsets.UTF_8).stream().filter(line -> line.contains("\"username\"")).count();
+
+    }
+    // A password as stored in the users database file, hashed with the given iterations.
+    public static String storedPassword(String password, int iterations) throws GeneralSecurityException {
+
+        byte[] salt = new byte[16];
+        new Random().nextBytes(salt);
+        byte[] hash = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA512").generateSecret(new PBEKeySpec(password.toCharArray(), salt, iterations, 256)).getEncoded();
+        Base64.Encoder encoder = Base64.getEncoder().withoutPadding();
+        return String.format("pbkdf2-sha512$%d$%s$%s", iterations, encoder.encodeToString(salt), encoder.encodeToString(hash));
+
+    }
+    public static void TestUsersLogReload(String dbUsersFilePath) throws IOException, InterruptedException, IllegalStateException, GeneralSecurityException {
+
+        // Test the users log, with many superseded records, compacted at the loading, appended and loaded again by a new JVM.
+        System.out.println("Testing users log reload...");
+
+        // 10 users with 8 records each, the last one wins, so 70 superseded records to compact.
+        // Few iterations, so the test doesn't wait for the slow hashing.
+        StringBuilder log = new StringBuilder("[\n");
+        for (int record = 0; record < 8; record++) {
+            for (int i = 0; i < 10; i++) {
+                log.append(String.format("{\"username\":\"reloaduser%d\",\"password\":\"%s\"}", i, storedPassword("reloadpassword" + record, 1000)));
+                log.append(record == 7 && i == 9 ? "\n]" : ",\n");
+            }
+        }
+        Files.writeString(Path.of(dbUsersFilePath), log.toString(), StandardCharsets.UTF_8);
+
+        LinkedList<String> written = runReload("users", "write", dbUsersFilePath);
+        LinkedList<String> reloaded = runReload("users", "read", dbUsersFilePath, "login", "reloaduser0", "reloadupdated", "login", "reloaduser1", "reloadpassword7", "login", "reloaduser1", "reloadpassword0");
+        LinkedList<String> logins = new LinkedList<>(reloaded.subList(written.size(), reloaded.size()));
+        // The compacted 10 records and the 2 appended.
+        if (!written.get(0).equals("state: users 11") || !written.get(1).equals("state: users file records 12") || !written.equals(reloaded.subList(0, written.size())) || !logins.equals(Arrays.asList("state: login reloaduser0 reloadupdated ok", "state: login reloaduser1 reloadpassword7 ok", "state: login reloaduser1 reloadpassword0 failed"))) {
+            throw new IllegalStateException("Users reloaded different from the users written:\n" + String.join("\n", written) + "\n" + String.join("\n", reloaded));
+        }
+        Files.deleteIfExists(Path.of(dbUsersFilePath));
+        System.out.println("Test passed, users reloaded from the compacted users log same as written.");
+
+    }
+    public static void TestSessionsReload(String dbUsersFilePath) throws IOException, InterruptedException, IllegalStateException, GeneralSecurityException {
+
+        // Test the sessions bound to the connections by a new JVM, the credentials updated in them are loaded by another one.
+        System.out.println("Testing sessions reload...");
+
+        Files.writeString(Path.of(dbUsersFilePath), String.format("[\n{\"username\":\"reloaduser0\",\"password\":\"%s\"},\n{\"username\":\"reloaduser1\",\"password\":\"%s\"}\n]", storedPassword("reloadpassword", 1000), storedPassword("reloadpassword", 1000)), StandardCharsets.UTF_8);
+
+        LinkedList<String> written = runReload("users", "sessions", dbUsersFilePath);
+        LinkedList<String> reloaded = runReload("users", "read", dbUsersFilePath, "login", "reloaduser0", "reloadupdated", "login", "reloaduser0", "reloadpassword");
+        LinkedList<String> logins = new LinkedList<>(reloaded.subList(written.size(), reloaded.size()));
+        if (!written.get(0).equals("state: users 2") || !written.equals(reloaded.subList(0, written.size())) || !logins.equals(Arrays.asList("state: login reloaduser0 reloadupdated ok", "state: login reloaduser0 reloadpassword failed"))) {
+            throw new IllegalStateException("Users reloaded after the sessions different from the users written:\n" + String.join("\n", written) + "\n" + String.join("\n", reloaded));
+        }
+        Files.deleteIfExists(Path.of(dbUsersFilePath));
+        System.out.println("Test passed, sessions bound, rebound and removed, credentials updated reloaded.");
+
+    }
+    public static void TestConcurrentUsersReload(String dbUsersFilePath) throws IOException, InterruptedException, IllegalStateException, GeneralSecurityException {
+
+        // Test the users added, updated and logged in concurrently by a new JVM, loaded again by another one.
+        System.out.println("Testing concurrent users reload...");
+
+        StringBuilder log = new StringBuilder("[\n");
+        for (int i = 0; i < 8; i++) {
+            log.append(String.format("{\"username\":\"reloaduser%d\",\"password\":\"%s\"}", i, storedPassword("reloadpassword", 1000)));
+            log.append(i == 7 ? "\n]" : ",\n");
+        }
+        Files.writeString(Path.of(dbUsersFilePath), log.toString(), StandardCharsets.UTF_8);
+
+        LinkedList<String> written = runReload("users", "concurrent", dbUsersFilePath);
+        LinkedList<String> reloaded = runReload("users", "read", dbUsersFilePath, "login", "reloaduser3", "reloadupdated", "login", "reloadusernew3", "reloadpassword", "login", "reloaduser7", "reloadpassword");
+        LinkedList<String> logins = new LinkedList<>(reloaded.subList(written.size(), reloaded.size()));
+        // 8 records, 4 new users and 4 password changes.
+        if (!written.get(0).equals("state: users 12") || !written.get(1).equals("state: users file records 16") || !written.equals(reloaded.subList(0, written.size())) || !logins.equals(Arrays.asList("state: login reloaduser3 reloadupdated ok", "state: login reloadusernew3 reloadpassword ok", "state: login reloaduser7 reloadpassword ok"))) {
+            throw new IllegalStateException("Users reloaded different from the users written concurrently:\n" + String.join("\n", written) + "\n" + String.join("\n", reloaded));
+        }
+        Files.deleteIfExists(Path.of(dbUsersFilePath));
+        System.out.println("Test passed, users written concurrently reloaded same as written.");
+
+    }
+    public static void TestPasswordsMigrationReload(String dbUsersFilePath) throws IOException, InterruptedException, IllegalStateException {
+
+        // Test the plaintext passwords of an old users database file, migrated to hashes by a new JVM, then logged in by another one.
+        System.out.println("Testing passwords migration reload...");
+
+        // An old file, with a line blanked by an update.
+        Files.writeString(Path.of(dbUsersFilePath), "[\n{\"username\":\"reloaduser0\",\"password\":\"reloadpassword\"},\n" + " ".repeat(40) + "\n{\"username\":\"reloaduser1\",\"password\":\"otherpassword\"}\n]", StandardCharsets.UTF_8);
+
+        LinkedList<String> migrated = runReload("users", "migrate", dbUsersFilePath);
+        String content = Files.readString(Path.of(dbUsersFilePath), StandardCharsets.UTF_8);
+        if (content.contains("reloadpassword") || content.contains("otherpassword") || content.split("\"pbkdf2-sha512\\$210000\\$", -1).length != 3) {
+            throw new IllegalStateException("Plaintext passwords left in the users database file after the migration:\n" + content);
+        }
+
+        LinkedList<String> reloaded = runReload("users", "read", dbUsersFilePath, "login", "reloaduser0", "reloadpassword", "login", "reloaduser1", "otherpassword", "login", "reloaduser0", "otherpassword");
+        LinkedList<String> logins = new LinkedList<>(reloaded.subList(migrated.size(), reloaded.size()));
+        if (!migrated.get(0).equals("state: users 2") || !migrated.get(1).equals("state: users file records 2") || !migrated.equals(reloaded.subList(0, migrated.size())) || !logins.equals(Arrays.asList("state: login reloaduser0 reloadpassword ok", "state: login reloaduser1 otherpassword ok", "state: login reloaduser0 otherpassword failed"))) {
+            throw new IllegalStateException("Users reloaded different from the users migrated:\n" + String.join("\n", migrated) + "\n" + String.join("\n", reloaded));
+        }
+        Files.deleteIfExists(Path.of(dbUsersFilePath));
+        System.out.println("Test passed, plaintext passwords migrated, compacted and logged in after the reload.");
+
+    }
+    public static void TestLargeUsersReload(String dbUsersFilePath) throws IOException, InterruptedException, IllegalStateException, GeneralSecurityException {
+
+        // Test a users database file large enough to be loaded in many parallel chunks, loaded twice by new JVMs.
+        System.out.println("Testing large users reload...");
+
+        // The same hashes for all the users, hashing 5000 passwords would be too slow.
+        String password = storedPassword("reloadpassword", 1000);
+        String updated = storedPassword("reloadupdated", 1000);
+        // Username to its last record, the expected user state.
+        LinkedHashMap<String, String> expected = new LinkedHashMap<>();
+        StringBuilder log = new StringBuilder("[\n");
+        long line = 1;
+        for (int i = 0; i < 5100; i++) {
+            // The last 100 records supersede records of the first chunks.
+            String username = "reloaduser" + (i < 5000 ? i : (i - 5000) * 50);
+            String storedPassword = i < 5000 ? password : updated;
+            if (i % 7 == 0) {
+                // Not in the shape written by Gson, parsed by the general parser.
+                log.append(String.format("{ \"password\": \"%s\", \"username\": \"%s\" }", storedPassword, username));
+            } else {
+                log.append(String.format("{\"username\":\"%s\",\"password\":\"%s\"}", username, storedPassword));
+            }
+            log.append(i == 5099 ? "\n]" : ",\n");
+            expected.put(username, String.format("state: User [Username [%s] - Password [%s] - FileLineID [%d]]", username, storedPassword, line));
+            line++;
+            // Some lines blanked by the updates of an old file.
+            if (i % 1000 == 999) {
+                log.append(" ".repeat(40)).append("\n");
+                line++;
+            }
+        }
+        Files.writeString(Path.of(dbUsersFilePath), log.toString(), StandardCharsets.UTF_8);
+
+        LinkedList<String> first = runReload("users", "read", dbUsersFilePath, "login", "reloaduser4999", "reloadpassword", "login", "reloaduser50", "reloadupdated", "login", "reloaduser50", "reloadpassword");
+        LinkedList<String> second = runReload("users", "read", dbUsersFilePath, "login", "reloaduser4999", "reloadpassword", "login", "reloaduser50", "reloadupdated", "login", "reloaduser50", "reloadpassword");
+        LinkedList<String> users = new LinkedList<>(first.subList(2, first.size() - 3));
+        LinkedList<String> logins = new LinkedList<>(first.subList(first.size() - 3, first.size()));
+        if (!first.get(0).equals("state: users 5000") || !first.get(1).equals("state: users file records 5100") || !first.equals(second)) {
+            throw new IllegalStateException("Large users database file loaded twice different:\n" + String.join("\n", first.subList(0, 2)) + "\n" + String.join("\n", second.subList(0, 2)));
+        }
+        for (String user : users) {
+            String username = user.substring(user.indexOf("Username [") + "Username [".length(), user.indexOf("] - Password"));
+            if (!user.equals(expected.get(username))) {
+                throw new IllegalStateException("User loaded from the large users database file different from its last record:\n" + user + "\n" + expected.get(username));
+            }
+        }
+        if (!logins.equals(Arrays.asList("state: login reloaduser4999 reloadpassword ok", "state: login reloaduser50 reloadupdated ok", "state: login reloaduser50 reloadpassword failed"))) {
+            throw new IllegalStateException("Logins on the large users database file not valid:\n" + String.join("\n", logins));
+        }
+        Files.deleteIfExists(Path.of(dbUsersFilePath));
+        System.out.println("Test passed, large users database file loaded in chunks same as written.");
+
+    }
+    public static void TestServerTransports(String configFilePath, String dbUsersFilePath, String dbOrdersFilePath) throws IOException, InterruptedException, IllegalStateException, GeneralSecurityException {
+
+        // Test the same requests of some clients answered in the same way by the server with each transport, in a new JVM.
+        System.out.println("Testing server transports...");
+
+        LinkedList<String> threads = null;
+        for (String transport : Arrays.asList("threads", "nio", "virtual")) {
+
+            StringBuilder log = new StringBuilder("[\n");
+            for (int i = 0; i < 4; i++) {
+                log.append(String.format("{\"username\":\"transportuser%d\",\"password\":\"%s\"}", i, storedPassword("transportpassword", 1000)));
+                log.append(i == 3 ? "\n]" : ",\n");
+            }
+            Files.writeString(Path.of(dbUsersFilePath), log.toString(), StandardCharsets.UTF_8);
+            Files.deleteIfExists(Path.of(dbOrdersFilePath));
+            // Free ports for the server.
+            int port;
+            int notificationsPort;
+            try (ServerSocket probe = new ServerSocket(0, 50, InetAddress.getLoopbackAddress()); DatagramSocket notificationsProbe = new DatagramSocket(0)) {
+                port = probe.getLocalPort();
+                notificationsPort = notificationsProbe.getLocalPort();
+            }
+            Files.writeString(Path.of(configFilePath), String.format("server_ip=127.0.0.1\nserver_port=%d\nserver_notifications_port=%d\nserver_transport=%s\n", port, notificationsPort, transport), StandardCharsets.UTF_8);
+
+            LinkedList<String> responses = runReload("server", transport, configFilePath, dbUsersFilePath, dbOrdersFilePath);
+            if (threads == null) {
+                threads = responses;
+            }
+            if (responses.size() != 16 || !responses.equals(threads)) {
+                throw new IllegalStateException("Server's responses with the " + transport + " transport different:\n" + String.join("\n", threads) + "\n" + String.join("\n", responses));
+            }
+
+        }
+        // Each client logged in, already logged in, logged out and not logged in.
+        int[] codes = {100, 102, 100, 101};
+        for (int i = 0; i < threads.size(); i++) {
+            if (!threads.get(i).startsWith(String.format("state: client %d {\"response\":%d,", i / 4, codes[i % 4]))) {
+                throw new IllegalStateException("Server's response not valid: " + threads.get(i));
+            }
+        }
+        Files.deleteIfExists(Path.of(configFilePath));
+        Files.deleteIfExists(Path.of(dbUsersFilePath));
+        Files.deleteIfExists(Path.of(dbOrdersFilePath));
+        System.out.println("Test passed, same responses with the threads, the nio and the virtual threads transports.");
+
+    }
+    public static void TestMarketOrderBalanceReload(String dbUsersFilePath, String dbOrdersFilePath) throws IOException, InterruptedException, IllegalStateException, GeneralSecurityException {
+
+        // Test a market bid checked on the ask lines it consumes, from the best one, in a new JVM where the fills can be notified.
+        System.out.println("Testing market order balance...");
+
+        Files.writeString(Path.of(dbUsersFilePath), String.format("[\n{\"username\":\"testuserbuyer\",\"password\":\"%s\"}\n]", storedPassword("testpasswordbuyer", 1000)), StandardCharsets.UTF_8);
+        // 2 at 200 are 400, in the 500 of the buyer, the 600 of the worst ask line would not be.
+        Files.deleteIfExists(Path.of(dbOrdersFilePath));
+        LinkedList<String> state = runReload("balances", dbUsersFilePath, dbOrdersFilePath);
+        if (!state.equals(Arrays.asList("state: market bid executed true", "state: buyer secondary balance 100"))) {
+            throw new IllegalStateException("Market bid order not checked on the best ask lines:\n" + String.join("\n", state));
+        }
+        Files.deleteIfExists(Path.of(dbUsersFilePath));
+        Files.deleteIfExists(Path.of(dbOrdersFilePath));
+        System.out.println("Test passed, market bid order checked on the best ask lines.");
+
+    }
+    public static void TestOrderBookPinning(String dbEventsFilePath) throws IOException, InterruptedException, IllegalStateException {
+
+        // Test the orders entered by virtual threads, no virtual thread parks while holding a monitor, pinning its carrier thread.
+        System.out.println("Testing order book pinning...");
+
+        Files.deleteIfExists(Path.of(dbEventsFilePath));
+        LinkedList<String> state = runReloadWithOptions(new LinkedList<>(Arrays.asList("-Djdk.tracePinnedThreads=full", "-Djdk.virtualThreadScheduler.parallelism=4")), "pinning", dbEventsFilePath);
+        if (!state.equals(Arrays.asList("state: pinned stacks 0", "state: order books empty true"))) {
+            throw new IllegalStateException("Virtual threads pinned entering the orders:\n" + String.join("\n", state));
+        }
+        Files.deleteIfExists(Path.of(dbEventsFilePath));
+        System.out.println("Test passed, no virtual thread pinned entering the orders.");
+
+    }
+    public static void TestOrdersReload(String dbOrdersFilePath) throws IOException, InterruptedException, IllegalStateException {
+
+        // Test the orders written in the columnar store, loaded again from the orders database file by a new JVM.
+        System.out.println("Testing orders reload...");
+
+        Files.deleteIfExists(Path.of(dbOrdersFilePath));
+        LinkedList<String> written = runReload("orders", "write", dbOrdersFilePath);
+        LinkedList<String> reloaded = runReload("orders", "read", dbOrdersFilePath);
+        if (!written.get(1).equals("state: orders 80") || !executedOrders(written).equals(reloaded)) {
+            throw new IllegalStateException("Orders reloaded different from the orders written:\n" + String.join("\n", written) + "\n" + String.join("\n", reloaded));
+        }
+        Files.deleteIfExists(Path.of(dbOrdersFilePath));
+        System.out.println("Test passed, orders reloaded from the orders database file same as written.");
+
+    }
+    public static void TestOrdersLoadContext(String dbOrdersFilePath) throws IOException, InterruptedException, IllegalStateException {
+
+        // Test the orders loaded (WriteContext.LOAD) only in memory, the orders database file is not written again by the loads.
+        System.out.println("Testing orders load context...");
+
+        Files.deleteIfExists(Path.of(dbOrdersFilePath));
+        runReload("orders", "write", dbOrdersFilePath);
+        byte[] written = Files.readAllBytes(Path.of(dbOrdersFilePath));
+        LinkedList<String> first = runReload("orders", "read", dbOrdersFilePath);
+        byte[] firstLoad = Files.readAllBytes(Path.of(dbOrdersFilePath));
+        LinkedList<String> second = runReload("orders", "read", dbOrdersFilePath);
+        byte[] secondLoad = Files.readAllBytes(Path.of(dbOrdersFilePath));
+        if (!Arrays.equals(written, firstLoad) || !Arrays.equals(written, secondLoad)) {
+            throw new IllegalStateException("Orders database file written again by the orders loading.");
+        }
+        if (!first.getFirst().equals("state: orders journal entries 80") || !first.equals(second)) {
+            throw new IllegalStateException("Orders loaded twice different:\n" + String.join("\n", first) + "\n" + String.join("\n", second));
+        }
+        Files.deleteIfExists(Path.of(dbOrdersFilePath));
+        System.out.println("Test passed, orders database file not written by the orders loading.");
+
+    }
+    public static void TestOrdersMappedReload(String dbOrdersFilePath, String mappedFilePath) throws IOException, InterruptedException, IllegalStateException {
+
+        // Test the orders written in the mapped columns, loaded again in the mapped columns and in the heap ones.
+        System.out.println("Testing orders mapped reload...");
+
+        Files.deleteIfExists(Path.of(dbOrdersFilePath));
+        LinkedList<String> written = runReload("orders", "write", dbOrdersFilePath, "mapped", mappedFilePath);
+        // The mapped file is truncated and refilled by the load.
+        LinkedList<String> mapped = runReload("orders", "read", dbOrdersFilePath, "mapped", mappedFilePath);
+        LinkedList<String> heap = runReload("orders", "read", dbOrdersFilePath);
+        if (!written.get(1).equals("state: orders 80") || !executedOrders(written).equals(mapped) || !mapped.equals(heap)) {
+            throw new IllegalStateException("Mapped orders reloaded different from the orders written:\n" + String.join("\n", written) + "\n" + String.join("\n", mapped) + "\n" + String.join("\n", heap));
+        }
+        Files.deleteIfExists(Path.of(dbOrdersFilePath));
+        Files.deleteIfExists(Path.of(mappedFilePath));
+        System.out.println("Test passed, mapped orders reloaded from the orders database file same as written.");
+
+    }
+    public static void TestOrdersSegmentsReload(String dbOrdersFilePath) throws IOException, InterruptedException, IllegalStateException {
+
+        // Test the orders sealed in segments and compacted in archives, found again by id and in the price history by a new JVM.
+        System.out.println("Testing orders segments reload...");
+
+        Path directory = Path.of(dbOrdersFilePath.substring(0, dbOrdersFilePath.length() - ".json".length()) + "-segments");
+        Files.deleteIfExists(Path.of(dbOrdersFilePath));
+        deleteDirectory(directory);
+        // About 10 orders for each segment.
+        LinkedList<String> written = runReload("orders", "write", dbOrdersFilePath, "segments", "1024");
+        LinkedList<String> orderIds = new LinkedList<>();
+        for (String line : written) {
+            if (line.startsWith("state: order ")) {
+                orderIds.add(line.split(" ")[3]);
+            }
+        }
+        long archives;
+        try (Stream<Path> files = Files.list(directory)) {
+            archives = files.filter(file -> file.getFileName().toString().endsWith(".gz")).count();
+        }
+        LinkedList<String> reloaded = runReload("orders", "read", dbOrdersFilePath, "segments", "1024", "ids", String.join(",", orderIds));
+        if (!written.getFirst().equals("state: orders journal entries 80") || orderIds.size() != 60 || archives == 0 || !written.equals(reloaded)) {
+            throw new IllegalStateException("Orders reloaded from the segments different from the orders written:\n" + String.join("\n", written) + "\n" + String.join("\n", reloaded));
+        }
+        Files.deleteIfExists(Path.of(dbOrdersFilePath));
+        deleteDirectory(directory);
+        System.out.println("Test passed, orders reloaded from the orders journal segments same as written.");
+
+    }
+    public static void deleteDirectory(Path directory) throws IOException {
+
+        if (!Files.exists(directory)) {
+            return;
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.toList()) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+
+    }
+    // The orders loaded from the orders database file are already executed, their quantity is 0.
+    public static LinkedList<String> executedOrders(LinkedList<String> state) {
+
+        LinkedList<String> executed = new LinkedList<>();
+        for (String line : state) {
+            executed.add(line.replaceAll("Quantity \\[\\d+\\]", "Quantity [0]"));
+        }
+        return executed;
+
+    }
+
     /**
      *
      * Main method to execute some tests.
      *
      */
-    public static void main(String[] args) throws NullPointerException, IllegalArgumentException, RejectedExecutionException, IllegalStateException, InterruptedException, IOException, RuntimeException, InvalidUser, JsonSyntaxException, NoSuchMethodException, InvalidOrder, IllegalAccessException {
+    public static void main(String[] args) throws NullPointerException, IllegalArgumentException, RejectedExecutionException, IllegalStateException, InterruptedException, IOException, RuntimeException, InvalidUser, JsonSyntaxException, NoSuchMethodException, InvalidOrder, IllegalAccessException, InvalidConfig, GeneralSecurityException {
+
+        // A reload of the databases files, in a new JVM started by the reload tests.
+        if (args.length > 0 && args[0].equals("reload")) {
+            Reload(args);
+            System.exit(0);
+        }
 
         // Execute all the tests.
         System.out.println("Executing all tests...");
@@ -833,6 +2637,78 @@ public class MainTests {
         TestOrdersFile("./DB/Orders/orders.json");
         System.out.println(separator);
 
+        TestUserOrders();
+        System.out.println(separator);
+
+        TestUserBalances();
+        System.out.println(separator);
+
+        TestRequestId();
+        System.out.println(separator);
+
+        TestBinaryProtocol();
+        System.out.println(separator);
+
+        TestResponseBuffers();
+        System.out.println(separator);
+
+        TestLog();
+        System.out.println(separator);
+
+        TestTLS();
+        System.out.println(separator);
+
+        TestMetrics();
+        System.out.println(separator);
+
+        TestNotificationBatches();
+        System.out.println(separator);
+
+        // After the orders database file test, it replays the orders journal.
+        TestOrderBookRecovery("./DB/Orders/test-orderbook-snapshot.json");
+        System.out.println(separator);
+
+        // Closes the databases files, so it's the last one.
+        TestShutdown("./DB/Orders/orders.json");
+        System.out.println(separator);
+
+        // In new JVMs, on their own databases files.
+        TestOrdersReload("./DB/Orders/test-reload-orders.json");
+        System.out.println(separator);
+
+        TestOrdersLoadContext("./DB/Orders/test-reload-orders.json");
+        System.out.println(separator);
+
+        TestOrdersMappedReload("./DB/Orders/test-reload-orders.json", "./DB/Orders/test-reload-orders.columns");
+        System.out.println(separator);
+
+        TestOrdersSegmentsReload("./DB/Orders/test-reload-orders.json");
+        System.out.println(separator);
+
+        TestUsersLogReload("./DB/Users/test-reload-users.json");
+        System.out.println(separator);
+
+        TestSessionsReload("./DB/Users/test-reload-users.json");
+        System.out.println(separator);
+
+        TestConcurrentUsersReload("./DB/Users/test-reload-users.json");
+        System.out.println(separator);
+
+        TestPasswordsMigrationReload("./DB/Users/test-reload-users.json");
+        System.out.println(separator);
+
+        TestLargeUsersReload("./DB/Users/test-reload-users.json");
+        System.out.println(separator);
+
+        TestServerTransports("./Configs/test-server-config.properties", "./DB/Users/test-reload-users.json", "./DB/Orders/test-reload-orders.json");
+        System.out.println(separator);
+
+        TestMarketOrderBalanceReload("./DB/Users/test-reload-users.json", "./DB/Orders/test-reload-orders.json");
+        System.out.println(separator);
+
+        TestOrderBookPinning("./DB/Orders/test-pinning-events.jsonl");
+        System.out.println(separator);
+
         // TestOrderBook();
         // System.out.println(separator);
 
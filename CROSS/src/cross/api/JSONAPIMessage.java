@@ -4,6 +4,13 @@ package cross.api;
 // It's used to convert the Java objects to JSON strings.
 // The JSON strings are used in the project to send / receive data through the network like an API with TCP sockets from / to client and server.
 import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+
+import cross.utils.ByteBufferPool;
+import cross.utils.ByteBufferWriter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  *
@@ -23,6 +30,9 @@ import com.google.gson.Gson;
  */
 public abstract class JSONAPIMessage {
 
+    // Shared, the Gson instances are thread safe.
+    protected static final Gson gson = new Gson();
+
     /**
      *
      * Method that converts the Java object (request or response) itself to a JSON string to be sent through the network like an API with TCP sockets from / to client and server.
@@ -32,15 +42,136 @@ public abstract class JSONAPIMessage {
      */
     public String toJSONString() {
 
-        Gson gson = new Gson();
-
         // Get as one line string, '\n' terminated.
-        String json = gson.toJson(this).replace("\n", "").replace("\r", "").replace("\t", "").trim() + "\n";
+        // The compact output of Gson is already on one line, the control chars in the strings are escaped.
+        String json = gson.toJson(this) + "\n";
 
         // Replace "orderIdL" with "orderId" in the JSON string.
-        json = json.replace("\"orderIdL\":", "\"orderId\":");
+        return JSONAPIMessage.renameOrderIdL(json);
+
+    }
+    /**
+     *
+     * Method that converts the Java object (request or response) itself to JSON, as toJSONString(), directly in a buffer of a pool, without building the String.
+     *
+     * Used by the server to write the responses, the bytes are the same of toJSONString() encoded in UTF-8.
+     *
+     * @param pool The pool of the buffers.
+     * @param headroom The bytes left free before the JSON, for a header written later by the caller.
+     *
+     * @return A buffer with the JSON, '\n' terminated, after the headroom, in write mode, its position at the end of the JSON.
+     *
+     * @throws NullPointerException If the pool is null.
+     * @throws IllegalArgumentException If the headroom is negative.
+     *
+     */
+    public ByteBuffer toJSONBuffer(ByteBufferPool pool, int headroom) throws NullPointerException, IllegalArgumentException {
+
+        return JSONAPIMessage.toJSONBuffer(this, null, pool, headroom);
+
+    }
+    /**
+     *
+     * Serializes an object to JSON, directly in a buffer of a pool.
+     *
+     * The "orderIdL" keys are renamed to "orderId" while written, as renameOrderIdL() does on the string.
+     *
+     * @param content The object to serialize, as JSON object.
+     * @param requestId The request id added as the last field of the root, null for none.
+     * @param pool The pool of the buffers.
+     * @param headroom The bytes left free before the JSON.
+     *
+     * @return A buffer with the JSON, '\n' terminated, after the headroom, in write mode, its position at the end of the JSON.
+     *
+     * @throws NullPointerException If the pool is null.
+     * @throws IllegalArgumentException If the headroom is negative.
+     *
+     */
+    protected static ByteBuffer toJSONBuffer(Object content, Long requestId, ByteBufferPool pool, int headroom) throws NullPointerException, IllegalArgumentException {
+
+        ByteBufferWriter out = new ByteBufferWriter(pool, headroom);
+        try {
+            MessageJsonWriter writer = new MessageJsonWriter(out, requestId);
+            gson.toJson(content, content.getClass(), writer);
+            writer.flush();
+        } catch (IOException ex) {
+            // Not thrown by a buffer writer.
+            throw new IllegalStateException(ex);
+        }
+        out.write('\n');
+        return out.getBuffer();
+
+    }
+    /**
+     *
+     * Replaces the "orderIdL" keys, as serialized by Gson, with "orderId" in a JSON string.
+     *
+     * @param json The JSON string.
+     *
+     * @return The JSON string with the keys replaced.
+     *
+     */
+    protected static String renameOrderIdL(String json) {
+
+        if (json.indexOf("\"orderIdL\":") == -1) {
+            return json;
+        }
+        return json.replace("\"orderIdL\":", "\"orderId\":");
+
+    }
+
+    // JsonWriter renaming the "orderIdL" keys and adding the request id, if any, at the end of the root object.
+    private static class MessageJsonWriter extends JsonWriter {
+
+        private final Long requestId;
+        // Nesting of the objects and arrays written.
+        private int depth = 0;
+
+        MessageJsonWriter(ByteBufferWriter out, Long requestId) {
+
+            super(out);
+            this.requestId = requestId;
+
+        }
+
+        @Override
+        public JsonWriter name(String name) throws IOException {
+
+            return super.name("orderIdL".equals(name) ? "orderId" : name);
+
+        }
+        @Override
+        public JsonWriter beginObject() throws IOException {
+
+            this.depth++;
+            return super.beginObject();
+
+        }
+        @Override
+        public JsonWriter endObject() throws IOException {
+
+            if (this.depth == 1 && this.requestId != null) {
+                super.name("requestId");
+                super.value(this.requestId.longValue());
+            }
+            this.depth--;
+            return super.endObject();
+
+        }
+        @Override
+        public JsonWriter beginArray() throws IOException {
+
+            this.depth++;
+            return super.beginArray();
+
+        }
+        @Override
+        public JsonWriter endArray() throws IOException {
+
+            this.depth--;
+            return super.endArray();
 
-        return json;
+        }
 
     }
     
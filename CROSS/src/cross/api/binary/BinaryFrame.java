@@ -0,0 +1,269 @@
+package cross.api.binary;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ *
+ * This class rapresents a frame of the binary protocol, decoded by BinaryProtocol.getFrame().
+ *
+ * It's mutable and reused for all the frames read by a connection, so decoding a frame doesn't allocate.
+ * Only the fields of the frame's type are meaningful, the others keep the values of the previous frames.
+ *
+ * The variable parts, the JSON text and the trades, are not copied: the frame keeps the buffer and their position in it.
+ * So they are valid only until the buffer is reused, see getJSON() and BinaryProtocol.toResponse().
+ *
+ * Not thread safe, used by a single thread at a time.
+ *
+ * @version 1.0
+ * @author Giulio Nisi
+ *
+ * @see BinaryProtocol
+ *
+ */
+public class BinaryFrame {
+
+    // Type of the frame, one of the BinaryProtocol's frame types.
+    private byte type;
+
+    // Request id, -1 if none.
+    private long requestId;
+
+    // Create.
+    private byte orderType;
+    private byte side;
+    private int size;
+    private int price;
+
+    // Cancel and execution.
+    private long orderId;
+
+    // Status.
+    private int code;
+
+    // Trades, the kind (open orders or user's trades) and the count of the trades.
+    private byte tradesKind;
+    private int tradesCount;
+
+    // JSON text and trades, in the decoded buffer.
+    private ByteBuffer payloadBuffer;
+    private int payloadOffset;
+    private int payloadLength;
+
+    /**
+     *
+     * Constructor of the class, an empty frame to be filled by BinaryProtocol.getFrame().
+     *
+     */
+    public BinaryFrame() {
+
+        this.type = -1;
+        this.requestId = -1;
+
+    }
+
+    /**
+     *
+     * Decodes the JSON text of a JSON frame.
+     *
+     * @return The JSON text.
+     *
+     * @throws IllegalStateException If the frame is not a JSON frame.
+     *
+     */
+    public String getJSON() throws IllegalStateException {
+
+        if (this.type != BinaryProtocol.TYPE_JSON) {
+            throw new IllegalStateException("Only a JSON frame has a JSON text.");
+        }
+
+        if (this.payloadBuffer.hasArray()) {
+            return new String(this.payloadBuffer.array(), this.payloadBuffer.arrayOffset() + this.payloadOffset, this.payloadLength, StandardCharsets.UTF_8);
+        }
+        byte[] bytes = new byte[this.payloadLength];
+        this.payloadBuffer.get(this.payloadOffset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+
+    }
+
+    // GETTERS
+    /**
+     *
+     * Getter for the type of the frame.
+     *
+     * @return The type, one of the BinaryProtocol's frame types.
+     *
+     */
+    public byte getType() {
+
+        return this.type;
+
+    }
+    /**
+     *
+     * Getter for the request id.
+     *
+     * @return The request id, null if none.
+     *
+     */
+    public Long getRequestId() {
+
+        return this.requestId < 0 ? null : this.requestId;
+
+    }
+    /**
+     *
+     * Getter for the order's type of a create frame.
+     *
+     * @return One of the BinaryProtocol's order types.
+     *
+     */
+    public byte getOrderType() {
+
+        return this.orderType;
+
+    }
+    /**
+     *
+     * Getter for the side of a create frame.
+     *
+     * @return One of the BinaryProtocol's sides.
+     *
+     */
+    public byte getSide() {
+
+        return this.side;
+
+    }
+    /**
+     *
+     * Getter for the size of a create frame.
+     *
+     * @return The size.
+     *
+     */
+    public int getSize() {
+
+        return this.size;
+
+    }
+    /**
+     *
+     * Getter for the price of a create frame.
+     *
+     * @return The price, zero for a market order.
+     *
+     */
+    public int getPrice() {
+
+        return this.price;
+
+    }
+    /**
+     *
+     * Getter for the order's id of a cancel or execution frame.
+     *
+     * @return The order's id, -1 for an execution refused.
+     *
+     */
+    public long getOrderId() {
+
+        return this.orderId;
+
+    }
+    /**
+     *
+     * Getter for the response code of a status frame.
+     *
+     * @return The response code.
+     *
+     */
+    public int getCode() {
+
+        return this.code;
+
+    }
+    /**
+     *
+     * Getter for the kind of the trades of a trades frame.
+     *
+     * @return One of the BinaryProtocol's trades kinds.
+     *
+     */
+    public byte getTradesKind() {
+
+        return this.tradesKind;
+
+    }
+    /**
+     *
+     * Getter for the count of the trades of a trades frame.
+     *
+     * @return The count of the trades.
+     *
+     */
+    public int getTradesCount() {
+
+        return this.tradesCount;
+
+    }
+
+    // SETTERS
+    // Package-private, used only by BinaryProtocol while decoding.
+    void setHeader(byte type, long requestId) {
+
+        this.type = type;
+        this.requestId = requestId;
+
+    }
+    void setCreate(byte orderType, byte side, int size, int price) {
+
+        this.orderType = orderType;
+        this.side = side;
+        this.size = size;
+        this.price = price;
+
+    }
+    void setOrderId(long orderId) {
+
+        this.orderId = orderId;
+
+    }
+    void setCode(int code) {
+
+        this.code = code;
+
+    }
+    void setTrades(byte tradesKind, int tradesCount) {
+
+        this.tradesKind = tradesKind;
+        this.tradesCount = tradesCount;
+
+    }
+    void setPayload(ByteBuffer payloadBuffer, int payloadOffset, int payloadLength) {
+
+        this.payloadBuffer = payloadBuffer;
+        this.payloadOffset = payloadOffset;
+        this.payloadLength = payloadLength;
+
+    }
+    // Package-private getters of the payload, for BinaryProtocol.
+    ByteBuffer getPayloadBuffer() {
+
+        return this.payloadBuffer;
+
+    }
+    int getPayloadOffset() {
+
+        return this.payloadOffset;
+
+    }
+
+    @Override
+    public String toString() {
+
+        return String.format("BinaryFrame [Type [%d] - Request id [%d]]", this.type, this.requestId);
+
+    }
+
+}
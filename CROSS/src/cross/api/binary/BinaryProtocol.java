@@ -0,0 +1,599 @@
+package cross.api.binary;
+
+import cross.api.JSONAPIMessage;
+import cross.api.notifications.Notification;
+import cross.api.notifications.Trade;
+import cross.api.requests.Request;
+import cross.api.requests.orders.CancelRequest;
+import cross.api.requests.orders.CreateRequest;
+import cross.api.responses.Response;
+import cross.api.responses.ResponseCode;
+import cross.api.responses.ResponseCode.ResponseType;
+import cross.api.responses.orders.CancelResponse;
+import cross.api.responses.orders.ExecutionResponse;
+import cross.api.responses.orders.MyTradesResponse;
+import cross.api.responses.orders.OpenOrdersResponse;
+import cross.api.responses.user.UserResponse;
+import cross.orders.LimitOrder;
+import cross.orders.MarketOrder;
+import cross.orders.Order;
+import cross.orders.OrderType;
+import cross.orders.StopOrder;
+import cross.types.Currency;
+import cross.types.Quantity;
+import cross.types.price.PriceType;
+import cross.types.price.SpecificPrice;
+import cross.utils.ByteBufferPool;
+import cross.utils.ClientActionsUtils;
+import cross.utils.ClientActionsUtils.ClientActions;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.LinkedList;
+
+/**
+ *
+ * Added by me, a compact binary protocol, alternative to the '\n' terminated JSONs of the assignment on the same TCP connection.
+ *
+ * The JSON protocol is the default and it's unchanged, the binary one is negotiated by the client at the connection:
+ * - The client sends the hello, two bytes: MAGIC and the highest version it supports. A JSON request never starts with the MAGIC byte, so the server distinguishes the two protocols by the first byte received.
+ * - The server answers with MAGIC and the version chosen, the lowest between the client's and its own, or NO_VERSION if it doesn't support the client's one, closing the connection.
+ * After the hello, both sides send only frames.
+ *
+ * A frame is the length (int32) of the rest of the frame, the type (one byte) and the payload of the type.
+ * All the numbers are little endian, the request id is -1 if none.
+ * - TYPE_JSON: any request or response as JSON text in UTF-8, for the messages without a fixed layout (user's requests, balances, price history...).
+ * - TYPE_CREATE: request id (int64), order type (byte, ORDER_*), side (byte, SIDE_*), size (int32), price (int32, zero for a market order).
+ * - TYPE_CANCEL: request id (int64), order id (int64).
+ * - TYPE_EXECUTION: request id (int64), order id (int64, -1 if refused), the response to a create.
+ * - TYPE_STATUS: request id (int64), response code (int32), the response to a cancel, or a rate limit or a server busy response.
+ * - TYPE_TRADES: request id (int64), kind (byte, TRADES_*), count (int32), then for each trade order id (int64), order type (byte), side (byte), size (int32), price (int32), timestamp (int64, -1 if none).
+ *
+ * The fixed layout frames are encoded and decoded in place, without building the JSON strings nor parsing them.
+ * The buffers are taken from a ByteBufferPool and the decoded frames are kept in a reused BinaryFrame.
+ * The asynchronous notifications are not affected, they are sent as JSON on UDP.
+ *
+ * It is not instantiable. It only contains static methods, for this reason it is abstract.
+ *
+ * @version 1.0
+ * @author Giulio Nisi
+ *
+ * @see BinaryFrame
+ * @see ByteBufferPool
+ * @see Request
+ * @see Response
+ *
+ */
+public abstract class BinaryProtocol {
+
+    // Hello.
+    public static final byte MAGIC = (byte) 0xCB;
+    public static final byte VERSION = 1;
+    public static final byte NO_VERSION = 0;
+    public static final int HELLO_LENGTH = 2;
+
+    // Frames.
+    // Length of the length prefix, and max length of a frame after it.
+    public static final int LENGTH_PREFIX = 4;
+    public static final int MAX_FRAME_LENGTH = 1024 * 1024;
+
+    public static final byte TYPE_JSON = 0;
+    public static final byte TYPE_CREATE = 1;
+    public static final byte TYPE_CANCEL = 2;
+    public static final byte TYPE_EXECUTION = 3;
+    public static final byte TYPE_STATUS = 4;
+    public static final byte TYPE_TRADES = 5;
+
+    public static final byte ORDER_LIMIT = 0;
+    public static final byte ORDER_MARKET = 1;
+    public static final byte ORDER_STOP = 2;
+
+    public static final byte SIDE_BID = 0;
+    public static final byte SIDE_ASK = 1;
+
+    public static final byte TRADES_OPEN_ORDERS = 0;
+    public static final byte TRADES_MY_TRADES = 1;
+
+    public static final long NO_REQUEST_ID = -1;
+
+    // Lengths, after the length prefix, of the fixed layout frames and of a trade.
+    private static final int CREATE_LENGTH = 1 + 8 + 1 + 1 + 4 + 4;
+    private static final int ORDER_ID_LENGTH = 1 + 8 + 8;
+    private static final int STATUS_LENGTH = 1 + 8 + 4;
+    private static final int TRADES_HEADER_LENGTH = 1 + 8 + 1 + 4;
+    private static final int TRADE_LENGTH = 8 + 1 + 1 + 4 + 4 + 8;
+
+    // HELLO
+    /**
+     *
+     * Writes the hello, or its answer, in a buffer.
+     *
+     * @param buffer The buffer.
+     * @param version The version, the highest supported by the client, or the one chosen by the server.
+     *
+     */
+    public static void putHello(ByteBuffer buffer, byte version) {
+
+        buffer.put(MAGIC);
+        buffer.put(version);
+
+    }
+    /**
+     *
+     * Chooses the version to use, server side, from the one of the client's hello.
+     *
+     * @param clientVersion The highest version supported by the client.
+     *
+     * @return The version to use, or NO_VERSION if the client's one is not supported.
+     *
+     */
+    public static byte negotiateVersion(byte clientVersion) {
+
+        if (clientVersion < 1) {
+            return NO_VERSION;
+        }
+        return clientVersion < VERSION ? clientVersion : VERSION;
+
+    }
+
+    // FRAMES DECODING
+    /**
+     *
+     * Checks if a buffer contains a whole frame, from its position.
+     *
+     * @param buffer The buffer, in read mode.
+     *
+     * @return The whole length of the frame, length prefix included, or -1 if the frame is not all in the buffer yet.
+     *
+     * @throws IllegalArgumentException If the length of the frame is not valid.
+     *
+     */
+    public static int frameLength(ByteBuffer buffer) throws IllegalArgumentException {
+
+        if (buffer.remaining() < LENGTH_PREFIX) {
+            return -1;
+        }
+        int length = buffer.getInt(buffer.position());
+        if (buffer.order() != ByteOrder.LITTLE_ENDIAN) {
+            length = Integer.reverseBytes(length);
+        }
+        if (length < 1 || length > MAX_FRAME_LENGTH) {
+            throw new IllegalArgumentException("The length of the binary frame is not valid.");
+        }
+        if (buffer.remaining() < LENGTH_PREFIX + length) {
+            return -1;
+        }
+        return LENGTH_PREFIX + length;
+
+    }
+    /**
+     *
+     * Decodes a whole frame from a buffer, from its position, moving the position after the frame.
+     *
+     * The JSON text and the trades are not copied, the frame refers to them in the buffer.
+     *
+     * @param buffer The buffer, in read mode, with a whole frame (see frameLength()).
+     * @param frame The frame to fill, reused.
+     *
+     * @throws IllegalArgumentException If the frame is not whole, or its type or its length are not valid.
+     *
+     */
+    public static void getFrame(ByteBuffer buffer, BinaryFrame frame) throws IllegalArgumentException {
+
+        int frameLength = BinaryProtocol.frameLength(buffer);
+        if (frameLength == -1) {
+            throw new IllegalArgumentException("The binary frame is not whole.");
+        }
+
+        ByteOrder order = buffer.order();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            int start = buffer.position();
+            int end = start + frameLength;
+            buffer.position(start + LENGTH_PREFIX);
+            byte type = buffer.get();
+            int length = frameLength - LENGTH_PREFIX;
+
+            switch (type) {
+                case TYPE_JSON -> {
+                    frame.setHeader(type, NO_REQUEST_ID);
+                    frame.setPayload(buffer, buffer.position(), length - 1);
+                }
+                case TYPE_CREATE -> {
+                    BinaryProtocol.checkLength(length, CREATE_LENGTH);
+                    frame.setHeader(type, buffer.getLong());
+                    frame.setCreate(buffer.get(), buffer.get(), buffer.getInt(), buffer.getInt());
+                }
+                case TYPE_CANCEL, TYPE_EXECUTION -> {
+                    BinaryProtocol.checkLength(length, ORDER_ID_LENGTH);
+                    frame.setHeader(type, buffer.getLong());
+                    frame.setOrderId(buffer.getLong());
+                }
+                case TYPE_STATUS -> {
+                    BinaryProtocol.checkLength(length, STATUS_LENGTH);
+                    frame.setHeader(type, buffer.getLong());
+                    frame.setCode(buffer.getInt());
+                }
+                case TYPE_TRADES -> {
+                    if (length < TRADES_HEADER_LENGTH) {
+                        throw new IllegalArgumentException("The length of the binary frame is not valid for its type.");
+                    }
+                    frame.setHeader(type, buffer.getLong());
+                    byte kind = buffer.get();
+                    int count = buffer.getInt();
+                    if (count < 0 || (long) TRADES_HEADER_LENGTH + (long) count * TRADE_LENGTH != length) {
+                        throw new IllegalArgumentException("The count of the trades in the binary frame is not valid.");
+                    }
+                    frame.setTrades(kind, count);
+                    frame.setPayload(buffer, buffer.position(), count * TRADE_LENGTH);
+                }
+                default -> throw new IllegalArgumentException("The type of the binary frame is not valid.");
+            }
+
+            buffer.position(end);
+        } finally {
+            buffer.order(order);
+        }
+
+    }
+
+    // FRAMES ENCODING
+    /**
+     *
+     * Writes a JSON frame in a buffer.
+     *
+     * @param buffer The buffer, with enough space.
+     * @param json The JSON text.
+     *
+     */
+    public static void putJSON(ByteBuffer buffer, byte[] json) {
+
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(1 + json.length);
+        buffer.put(TYPE_JSON);
+        buffer.put(json);
+
+    }
+    /**
+     *
+     * Writes a create frame in a buffer.
+     *
+     * @param buffer The buffer, with enough space.
+     * @param requestId The request id, NO_REQUEST_ID if none.
+     * @param orderType The order's type, ORDER_*.
+     * @param side The side, SIDE_*.
+     * @param size The size.
+     * @param price The price, zero for a market order.
+     *
+     */
+    public static void putCreate(ByteBuffer buffer, long requestId, byte orderType, byte side, int size, int price) {
+
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(CREATE_LENGTH);
+        buffer.put(TYPE_CREATE);
+        buffer.putLong(requestId);
+        buffer.put(orderType);
+        buffer.put(side);
+        buffer.putInt(size);
+        buffer.putInt(price);
+
+    }
+    /**
+     *
+     * Writes a cancel or an execution frame in a buffer.
+     *
+     * @param buffer The buffer, with enough space.
+     * @param type TYPE_CANCEL or TYPE_EXECUTION.
+     * @param requestId The request id, NO_REQUEST_ID if none.
+     * @param orderId The order's id.
+     *
+     */
+    public static void putOrderId(ByteBuffer buffer, byte type, long requestId, long orderId) {
+
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(ORDER_ID_LENGTH);
+        buffer.put(type);
+        buffer.putLong(requestId);
+        buffer.putLong(orderId);
+
+    }
+    /**
+     *
+     * Writes a status frame in a buffer.
+     *
+     * @param buffer The buffer, with enough space.
+     * @param requestId The request id, NO_REQUEST_ID if none.
+     * @param code The response code.
+     *
+     */
+    public static void putStatus(ByteBuffer buffer, long requestId, int code) {
+
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(STATUS_LENGTH);
+        buffer.put(TYPE_STATUS);
+        buffer.putLong(requestId);
+        buffer.putInt(code);
+
+    }
+    /**
+     *
+     * Writes a trades frame in a buffer.
+     *
+     * @param buffer The buffer, with enough space (see tradesLength()).
+     * @param requestId The request id, NO_REQUEST_ID if none.
+     * @param kind The kind of the trades, TRADES_*.
+     * @param trades The trades.
+     *
+     */
+    public static void putTrades(ByteBuffer buffer, long requestId, byte kind, Trade[] trades) {
+
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(TRADES_HEADER_LENGTH + trades.length * TRADE_LENGTH);
+        buffer.put(TYPE_TRADES);
+        buffer.putLong(requestId);
+        buffer.put(kind);
+        buffer.putInt(trades.length);
+        for (Trade trade : trades) {
+            SpecificPrice price = trade.getPrice();
+            Long timestamp = trade.getTimestamp();
+            buffer.putLong(trade.getOrderId().longValue());
+            buffer.put(BinaryProtocol.orderTypeCode(trade.getOrderType()));
+            buffer.put(trade.getType() == PriceType.BID ? SIDE_BID : SIDE_ASK);
+            buffer.putInt(trade.getSize().getValue());
+            buffer.putInt(price != null ? price.getValue() : 0);
+            buffer.putLong(timestamp != null ? timestamp : -1);
+        }
+
+    }
+    /**
+     *
+     * Gets the whole length of a trades frame, length prefix included.
+     *
+     * @param count The count of the trades.
+     *
+     * @return The length of the frame.
+     *
+     */
+    public static int tradesLength(int count) {
+
+        return LENGTH_PREFIX + TRADES_HEADER_LENGTH + count * TRADE_LENGTH;
+
+    }
+
+    // MESSAGES
+    /**
+     *
+     * Builds the request of a create or cancel frame, as the Request's constructor does for the JSON ones.
+     * So the server handles it as any other request.
+     *
+     * @param frame The decoded frame, a create or a cancel.
+     *
+     * @return The request.
+     *
+     * @throws IllegalArgumentException If the frame is not a create or a cancel, or its values are not valid.
+     *
+     */
+    public static Request toRequest(BinaryFrame frame) throws IllegalArgumentException {
+
+        Long requestId = frame.getRequestId();
+
+        if (frame.getType() == TYPE_CANCEL) {
+            return new Request(ClientActions.CANCEL_ORDER, new CancelRequest(frame.getOrderId()), requestId);
+        }
+        if (frame.getType() != TYPE_CREATE) {
+            throw new IllegalArgumentException("Only a create or a cancel binary frame is a request.");
+        }
+
+        PriceType type = BinaryProtocol.priceType(frame.getSide());
+        Currency primaryCurrency = Currency.getDefaultPrimaryCurrency();
+        Currency secondaryCurrency = Currency.getDefaultSecondaryCurrency();
+        Quantity size = new Quantity(frame.getSize());
+
+        ClientActions action;
+        Order order;
+        switch (frame.getOrderType()) {
+            case ORDER_LIMIT -> {
+                action = ClientActions.INSERT_LIMIT_ORDER;
+                order = new LimitOrder(new SpecificPrice(frame.getPrice(), type, primaryCurrency, secondaryCurrency), size, true);
+            }
+            case ORDER_STOP -> {
+                action = ClientActions.INSERT_STOP_ORDER;
+                order = new StopOrder(new SpecificPrice(frame.getPrice(), type, primaryCurrency, secondaryCurrency), size, true);
+            }
+            case ORDER_MARKET -> {
+                action = ClientActions.INSERT_MARKET_ORDER;
+                order = new MarketOrder(type, primaryCurrency, secondaryCurrency, size);
+            }
+            default -> throw new IllegalArgumentException("The order's type in the binary frame is not valid.");
+        }
+
+        return new Request(action, new CreateRequest(order), requestId);
+
+    }
+    /**
+     *
+     * Encodes a request in a frame, client side.
+     *
+     * The create and cancel requests have their fixed layout frames, the others are sent as JSON frames.
+     *
+     * @param request The request.
+     * @param pool The pool of the buffers.
+     *
+     * @return A buffer of the pool with the frame, in read mode, to be released after writing it.
+     *
+     */
+    public static ByteBuffer encodeRequest(Request request, ByteBufferPool pool) {
+
+        long requestId = request.getRequestId() != null ? request.getRequestId() : NO_REQUEST_ID;
+        Object values = request.getValues();
+
+        ByteBuffer buffer;
+        if (values instanceof CreateRequest createRequest && !(values instanceof Trade)) {
+            SpecificPrice price = createRequest.getPrice();
+            byte orderType = switch (ClientActionsUtils.actionFromString(request.getOperation())) {
+                case INSERT_LIMIT_ORDER -> ORDER_LIMIT;
+                case INSERT_STOP_ORDER -> ORDER_STOP;
+                default -> ORDER_MARKET;
+            };
+            buffer = pool.acquire(LENGTH_PREFIX + CREATE_LENGTH);
+            BinaryProtocol.putCreate(buffer, requestId, orderType, createRequest.getType() == PriceType.BID ? SIDE_BID : SIDE_ASK, createRequest.getSize().getValue(), price != null ? price.getValue() : 0);
+        } else if (values instanceof CancelRequest cancelRequest && !(values instanceof ExecutionResponse)) {
+            buffer = pool.acquire(LENGTH_PREFIX + ORDER_ID_LENGTH);
+            BinaryProtocol.putOrderId(buffer, TYPE_CANCEL, requestId, cancelRequest.getOrderId().longValue());
+        } else {
+            buffer = BinaryProtocol.encodeJSON(request, pool);
+        }
+
+        buffer.flip();
+        return buffer;
+
+    }
+    /**
+     *
+     * Encodes a response in a frame, server side.
+     *
+     * The executions, the cancel results, the rate limit and server busy responses and the user's orders have their fixed layout frames, the others are sent as JSON frames.
+     *
+     * @param response The response.
+     * @param pool The pool of the buffers.
+     *
+     * @return A buffer of the pool with the frame, in read mode, to be released after writing it.
+     *
+     */
+    public static ByteBuffer encodeResponse(Response response, ByteBufferPool pool) {
+
+        long requestId = response.getRequestId() != null ? response.getRequestId() : NO_REQUEST_ID;
+        Object content = response.getResponse();
+
+        ByteBuffer buffer;
+        if (content instanceof ExecutionResponse executionResponse) {
+            buffer = pool.acquire(LENGTH_PREFIX + ORDER_ID_LENGTH);
+            BinaryProtocol.putOrderId(buffer, TYPE_EXECUTION, requestId, executionResponse.getOrderId().longValue());
+        } else if (content instanceof CancelResponse || (content instanceof UserResponse && response.getType() == null)) {
+            buffer = pool.acquire(LENGTH_PREFIX + STATUS_LENGTH);
+            BinaryProtocol.putStatus(buffer, requestId, ((UserResponse) content).getResponseCode().getCode());
+        } else if (content instanceof OpenOrdersResponse openOrdersResponse) {
+            Trade[] trades = openOrdersResponse.getOpenOrders();
+            buffer = pool.acquire(BinaryProtocol.tradesLength(trades.length));
+            BinaryProtocol.putTrades(buffer, requestId, TRADES_OPEN_ORDERS, trades);
+        } else if (content instanceof MyTradesResponse myTradesResponse) {
+            Trade[] trades = myTradesResponse.getMyTrades();
+            buffer = pool.acquire(BinaryProtocol.tradesLength(trades.length));
+            BinaryProtocol.putTrades(buffer, requestId, TRADES_MY_TRADES, trades);
+        } else {
+            buffer = BinaryProtocol.encodeJSON(response, pool);
+        }
+
+        buffer.flip();
+        return buffer;
+
+    }
+    /**
+     *
+     * Builds the response of a frame, client side, as the Response's constructor does for the JSON ones.
+     *
+     * @param frame The decoded frame, with its buffer not reused yet.
+     *
+     * @return The response.
+     *
+     * @throws IllegalArgumentException If the frame is not a response, or its values are not valid.
+     *
+     */
+    public static Response toResponse(BinaryFrame frame) throws IllegalArgumentException {
+
+        Response response;
+        switch (frame.getType()) {
+            case TYPE_JSON -> {
+                return new Response(frame.getJSON());
+            }
+            case TYPE_EXECUTION -> response = new Response(new ExecutionResponse(frame.getOrderId()), ClientActions.INSERT_MARKET_ORDER);
+            case TYPE_STATUS -> {
+                int code = frame.getCode();
+                ResponseCode responseCode;
+                if ((responseCode = ResponseCode.fromCode(ResponseType.RATE_LIMIT, code)) != null || (responseCode = ResponseCode.fromCode(ResponseType.SERVER_BUSY, code)) != null || (responseCode = ResponseCode.fromCode(ResponseType.SERVER_ERROR, code)) != null) {
+                    // Sent instead of the response of any request, so it has no action type.
+                    response = new Response(new UserResponse(responseCode, responseCode.getDefaultMessage()), null);
+                } else if ((responseCode = ResponseCode.fromCode(ResponseType.CANCEL_ORDER, code)) != null) {
+                    response = new Response(new CancelResponse(responseCode, responseCode.getDefaultMessage()), ClientActions.CANCEL_ORDER);
+                } else {
+                    throw new IllegalArgumentException("The response code in the binary frame is not valid.");
+                }
+            }
+            case TYPE_TRADES -> {
+                LinkedList<Trade> trades = new LinkedList<>();
+                ByteBuffer buffer = frame.getPayloadBuffer();
+                ByteOrder order = buffer.order();
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                try {
+                    int offset = frame.getPayloadOffset();
+                    for (int i = 0; i < frame.getTradesCount(); i++, offset += TRADE_LENGTH) {
+                        long timestamp = buffer.getLong(offset + 18);
+                        trades.add(Notification.buildTrade(buffer.getLong(offset), BinaryProtocol.orderType(buffer.get(offset + 8)), BinaryProtocol.priceType(buffer.get(offset + 9)), buffer.getInt(offset + 14), new Quantity(buffer.getInt(offset + 10)), timestamp < 0 ? null : timestamp));
+                    }
+                } catch (RuntimeException ex) {
+                    throw new IllegalArgumentException("The trades in the binary frame are not valid.");
+                } finally {
+                    buffer.order(order);
+                }
+                if (frame.getTradesKind() == TRADES_OPEN_ORDERS) {
+                    response = new Response(new OpenOrdersResponse(trades), ClientActions.GET_OPEN_ORDERS);
+                } else {
+                    response = new Response(new MyTradesResponse(trades), ClientActions.GET_MY_TRADES);
+                }
+            }
+            default -> throw new IllegalArgumentException("The binary frame is not a response.");
+        }
+
+        response.setRequestId(frame.getRequestId());
+        return response;
+
+    }
+
+    // SUPPORT METHODS
+    // Encodes a JSON message in a JSON frame, the only encoding allocating, for the bytes of the text.
+    // The JSON text is serialized directly in the buffer, after the room for the header.
+    private static ByteBuffer encodeJSON(JSONAPIMessage message, ByteBufferPool pool) {
+
+        ByteBuffer buffer = message.toJSONBuffer(pool, LENGTH_PREFIX + 1);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(0, buffer.position() - LENGTH_PREFIX);
+        buffer.put(LENGTH_PREFIX, TYPE_JSON);
+        return buffer;
+
+    }
+    private static void checkLength(int length, int expected) throws IllegalArgumentException {
+
+        if (length != expected) {
+            throw new IllegalArgumentException("The length of the binary frame is not valid for its type.");
+        }
+
+    }
+    private static byte orderTypeCode(OrderType orderType) {
+
+        return switch (orderType) {
+            case LIMIT -> ORDER_LIMIT;
+            case MARKET -> ORDER_MARKET;
+            case STOP -> ORDER_STOP;
+        };
+
+    }
+    private static OrderType orderType(byte code) throws IllegalArgumentException {
+
+        return switch (code) {
+            case ORDER_LIMIT -> OrderType.LIMIT;
+            case ORDER_MARKET -> OrderType.MARKET;
+            case ORDER_STOP -> OrderType.STOP;
+            default -> throw new IllegalArgumentException("The order's type in the binary frame is not valid.");
+        };
+
+    }
+    private static PriceType priceType(byte side) throws IllegalArgumentException {
+
+        return switch (side) {
+            case SIDE_BID -> PriceType.BID;
+            case SIDE_ASK -> PriceType.ASK;
+            default -> throw new IllegalArgumentException("The side in the binary frame is not valid.");
+        };
+
+    }
+
+}
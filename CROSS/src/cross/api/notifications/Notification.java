@@ -17,6 +17,7 @@ import cross.types.price.PriceType;
 import cross.types.price.SpecificPrice;
 import cross.utils.ClientActionsUtils;
 import cross.utils.Separator;
+import java.util.List;
 
 /**
  *
@@ -41,6 +42,20 @@ public class Notification extends JSONAPIMessage {
     // A simple array of trades to be notified to the client to avoid problems with JSON serialization (if using different objects from the array).
     private Trade[] trades;
 
+    // Reliable delivery, set only on the notifications datagrams of the server (see Users.deliverNotifications()), absent from the JSON otherwise.
+    // Sequence number of the datagram for its user, increasing by one, to detect the lost and the reordered datagrams.
+    private Long seq = null;
+    // Epoch of the sequence numbers, greater for a new sequence of the user (the server restarted, or the user logged in again).
+    private Long epoch = null;
+    // Part of a notification split over more datagrams (from 1) and the number of its parts, absent if not split.
+    private Integer part = null;
+    private Integer parts = null;
+    // True if the datagram of the sequence number is lost, no more in the server's history to retransmit it.
+    private Boolean lost = null;
+
+    // Max bytes of the JSON of a datagram without its trades, with the largest sequence number and parts.
+    public static final int MAX_ENVELOPE_BYTES = Notification.toJSONString(Long.MAX_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, List.of()).length();
+
     /**
      *
      * Constructor for the class.
@@ -73,8 +88,6 @@ public class Notification extends JSONAPIMessage {
         if (JSONnotification == null)
             throw new NullPointerException("JSON notification string in the notification cannot be null.");
 
-        Currency defaultPrimaryCurrency = Currency.getDefaultPrimaryCurrency();
-        Currency defaultSecondaryCurrency = Currency.getDefaultSecondaryCurrency();
         JsonObject jsonObject = null;
         try {
             jsonObject = JsonParser.parseString(JSONnotification).getAsJsonObject();
@@ -82,55 +95,27 @@ public class Notification extends JSONAPIMessage {
             throw new IllegalArgumentException("JSON notification string in the notification is not a valid JSON object.");
         }
         try {
+            // Reliable delivery fields, optional.
+            if (jsonObject.has("seq")) {
+                this.seq = jsonObject.get("seq").getAsLong();
+            }
+            if (jsonObject.has("epoch")) {
+                this.epoch = jsonObject.get("epoch").getAsLong();
+            }
+            if (jsonObject.has("part") && jsonObject.has("parts")) {
+                this.part = jsonObject.get("part").getAsInt();
+                this.parts = jsonObject.get("parts").getAsInt();
+            }
+            if (jsonObject.has("lost")) {
+                this.lost = jsonObject.get("lost").getAsBoolean();
+            }
+
             JsonArray tradeArray = jsonObject.get("trades").getAsJsonArray();
 
             for (int i = 0; i < tradeArray.size(); i++) {
                 JsonObject tradeObject = tradeArray.get(i).getAsJsonObject();
 
-                String tradeOrderId = tradeObject.get("orderId").getAsString();
-                Number orderIdNumber = ClientActionsUtils.getOrderIDFromString(tradeOrderId);
-
-                String tradeOrderType = tradeObject.get("orderType").getAsString();
-                OrderType orderType = ClientActionsUtils.getOrderTypeFromString(tradeOrderType);
-
-                String tradePriceType = tradeObject.get("type").getAsString();
-                PriceType priceType = ClientActionsUtils.getPriceTypeFromString(tradePriceType);
-
-                String tradePrice = tradeObject.get("price").getAsString();
-                GenericPrice genericPrice = ClientActionsUtils.getPriceFromString(tradePrice);
-                
-                String tradeQuantity = tradeObject.get("size").getAsString();
-                Quantity quantity = ClientActionsUtils.getSizeFromString(tradeQuantity);
-
-                JsonElement timestampJson = tradeObject.get("timestamp");
-                Long timestamp = null;
-                if (timestampJson != null)
-                    timestamp = timestampJson.getAsLong();
-
-                SpecificPrice specificPrice = new SpecificPrice(genericPrice.getValue(), priceType, defaultPrimaryCurrency, defaultSecondaryCurrency);
-
-                Trade trade = null;
-                switch (orderType) {
-                    case LIMIT -> {
-                        LimitOrder limitOrder = new LimitOrder(specificPrice, quantity, true);
-                        limitOrder.setId(orderIdNumber.longValue());
-                        if (timestamp != null) limitOrder.setTimestamp(timestamp);
-                        trade = new Trade(limitOrder);
-                    }
-                    case MARKET -> {
-                        MarketOrder marketOrder = new MarketOrder(priceType, defaultPrimaryCurrency, defaultSecondaryCurrency, quantity);
-                        marketOrder.setId(orderIdNumber.longValue());
-                        if (timestamp != null) marketOrder.setTimestamp(timestamp);
-                        marketOrder.setExecutionPrice(specificPrice);
-                        trade = new Trade(marketOrder);
-                    }
-                    case STOP -> {
-                        StopOrder stopOrder = new StopOrder(specificPrice, quantity, true);
-                        stopOrder.setId(orderIdNumber.longValue());
-                        if (timestamp != null) stopOrder.setTimestamp(timestamp);
-                        trade = new Trade(stopOrder);
-                    }
-                }
+                Trade trade = Notification.parseTrade(tradeObject);
 
                 this.addTrade(trade);
 
@@ -144,6 +129,92 @@ public class Notification extends JSONAPIMessage {
     }
 
 
+    /**
+     *
+     * Parses a single trade from its JSON object, the same format used in the notifications and in the user's orders responses.
+     *
+     * @param tradeObject The JSON object of the trade.
+     *
+     * @return The trade.
+     *
+     * @throws RuntimeException If some trade's field is missing or not valid.
+     *
+     */
+    public static Trade parseTrade(JsonObject tradeObject) throws RuntimeException {
+
+        String tradeOrderId = tradeObject.get("orderId").getAsString();
+        Number orderIdNumber = ClientActionsUtils.getOrderIDFromString(tradeOrderId);
+
+        String tradeOrderType = tradeObject.get("orderType").getAsString();
+        OrderType orderType = ClientActionsUtils.getOrderTypeFromString(tradeOrderType);
+
+        String tradePriceType = tradeObject.get("type").getAsString();
+        PriceType priceType = ClientActionsUtils.getPriceTypeFromString(tradePriceType);
+
+        String tradePrice = tradeObject.get("price").getAsString();
+        GenericPrice genericPrice = ClientActionsUtils.getPriceFromString(tradePrice);
+        
+        String tradeQuantity = tradeObject.get("size").getAsString();
+        Quantity quantity = ClientActionsUtils.getSizeFromString(tradeQuantity);
+
+        JsonElement timestampJson = tradeObject.get("timestamp");
+        Long timestamp = null;
+        if (timestampJson != null)
+            timestamp = timestampJson.getAsLong();
+
+        return Notification.buildTrade(orderIdNumber, orderType, priceType, genericPrice.getValue(), quantity, timestamp);
+
+    }
+    /**
+     *
+     * Builds a single trade from its fields, already parsed.
+     * Used by parseTrade() and by the binary protocol, that has the fields without the JSON.
+     *
+     * @param orderId The order's id.
+     * @param orderType The order's type.
+     * @param priceType The price's type, ask or bid.
+     * @param price The price, the execution price for a market order.
+     * @param quantity The size.
+     * @param timestamp The timestamp, null if not present.
+     *
+     * @return The trade.
+     *
+     * @throws RuntimeException If some trade's field is null or not valid.
+     *
+     */
+    public static Trade buildTrade(Number orderId, OrderType orderType, PriceType priceType, Integer price, Quantity quantity, Long timestamp) throws RuntimeException {
+
+        Currency defaultPrimaryCurrency = Currency.getDefaultPrimaryCurrency();
+        Currency defaultSecondaryCurrency = Currency.getDefaultSecondaryCurrency();
+
+        SpecificPrice specificPrice = new SpecificPrice(price, priceType, defaultPrimaryCurrency, defaultSecondaryCurrency);
+
+        Trade trade = null;
+        switch (orderType) {
+            case LIMIT -> {
+                LimitOrder limitOrder = new LimitOrder(specificPrice, quantity, true);
+                limitOrder.setId(orderId.longValue());
+                if (timestamp != null) limitOrder.setTimestamp(timestamp);
+                trade = new Trade(limitOrder);
+            }
+            case MARKET -> {
+                MarketOrder marketOrder = new MarketOrder(priceType, defaultPrimaryCurrency, defaultSecondaryCurrency, quantity);
+                marketOrder.setId(orderId.longValue());
+                if (timestamp != null) marketOrder.setTimestamp(timestamp);
+                marketOrder.setExecutionPrice(specificPrice);
+                trade = new Trade(marketOrder);
+            }
+            case STOP -> {
+                StopOrder stopOrder = new StopOrder(specificPrice, quantity, true);
+                stopOrder.setId(orderId.longValue());
+                if (timestamp != null) stopOrder.setTimestamp(timestamp);
+                trade = new Trade(stopOrder);
+            }
+        }
+
+        return trade;
+
+    }
     /**
      *
      * Add a trade to the array of trades to be notified to the client.
@@ -201,7 +272,149 @@ public class Notification extends JSONAPIMessage {
 
         return this.trades;
     }
-    
+    /**
+     *
+     * Getter for the epoch of the sequence numbers of the notification datagram.
+     *
+     * @return The epoch, null if not received from a datagram with it.
+     *
+     */
+    public Long getEpoch() {
+
+        return this.epoch;
+
+    }
+    /**
+     *
+     * Getter for the sequence number of the notification datagram.
+     *
+     * @return The sequence number, null if not received from a datagram with it.
+     *
+     */
+    public Long getSeq() {
+
+        return this.seq;
+
+    }
+    /**
+     *
+     * Getter for the part of a notification split over more datagrams.
+     *
+     * @return The part, from 1, null if the notification is not split.
+     *
+     */
+    public Integer getPart() {
+
+        return this.part;
+
+    }
+    /**
+     *
+     * Getter for the parts of a notification split over more datagrams.
+     *
+     * @return The parts, null if the notification is not split.
+     *
+     */
+    public Integer getParts() {
+
+        return this.parts;
+
+    }
+    /**
+     *
+     * Checks if the notification datagram is lost, no more in the server's history to retransmit it.
+     *
+     * @return True if lost, false otherwise.
+     *
+     */
+    public Boolean isLost() {
+
+        return this.lost != null && this.lost;
+
+    }
+
+    // JSON BATCHES
+    /**
+     *
+     * Converts each trade of the notification to JSON, once, to be batched with the trades of other notifications (see toJSONString(List)).
+     *
+     * @return The JSON objects of the trades, in order, without the '\n' terminator.
+     *
+     */
+    public String[] toJSONTrades() {
+
+        String[] tradesJSON = new String[this.trades.length];
+        for (int i = 0; i < this.trades.length; i++) {
+            tradesJSON[i] = JSONAPIMessage.renameOrderIdL(gson.toJson(this.trades[i]));
+        }
+        return tradesJSON;
+
+    }
+    /**
+     *
+     * Builds the JSON string of a notification from the JSON objects of its trades, as returned by toJSONTrades().
+     *
+     * The same JSON string of toJSONString(), '\n' terminated, with the trades of one or more notifications.
+     *
+     * @param tradesJSON The JSON objects of the trades, in order.
+     *
+     * @return The JSON string of the notification.
+     *
+     * @throws NullPointerException If the trades are null.
+     *
+     */
+    public static String toJSONString(List<String> tradesJSON) throws NullPointerException {
+
+        // Null check.
+        if (tradesJSON == null) {
+            throw new NullPointerException("JSON trades of a notification cannot be null.");
+        }
+
+        return "{\"trades\":[" + String.join(",", tradesJSON) + "]}\n";
+
+    }
+    /**
+     *
+     * Builds the JSON string of a notification datagram, with its sequence number, from the JSON objects of its trades, as returned by toJSONTrades().
+     *
+     * @param epoch The epoch of the sequence numbers.
+     * @param seq The sequence number of the datagram.
+     * @param part The part of the notification (from 1), null if the notification is not split.
+     * @param parts The parts of the notification, null if the notification is not split.
+     * @param tradesJSON The JSON objects of the trades, in order.
+     *
+     * @return The JSON string of the datagram, '\n' terminated.
+     *
+     * @throws NullPointerException If the epoch, the sequence number or the trades are null.
+     *
+     */
+    public static String toJSONString(Long epoch, Long seq, Integer part, Integer parts, List<String> tradesJSON) throws NullPointerException {
+
+        // Null check.
+        if (epoch == null || seq == null || tradesJSON == null) {
+            throw new NullPointerException("Epoch, sequence number and JSON trades of a notification cannot be null.");
+        }
+
+        String split = part != null && parts != null ? ",\"part\":" + part + ",\"parts\":" + parts : "";
+        return "{\"epoch\":" + epoch + ",\"seq\":" + seq + split + ",\"trades\":[" + String.join(",", tradesJSON) + "]}\n";
+
+    }
+    /**
+     *
+     * Builds the JSON string of a lost notification datagram, answering a retransmission of a datagram no more in the server's history.
+     *
+     * @param epoch The epoch of the sequence numbers.
+     * @param seq The sequence number of the lost datagram.
+     *
+     * @return The JSON string of the lost datagram, '\n' terminated.
+     *
+     */
+    public static String toLostJSONString(long epoch, long seq) {
+
+        return "{\"epoch\":" + epoch + ",\"seq\":" + seq + ",\"trades\":[],\"lost\":true}\n";
+
+    }
+
 
     public String toString(Long mainOrderId) {
 
@@ -7,6 +7,7 @@ import com.google.gson.JsonParser;
 import cross.api.JSONAPIMessage;
 import cross.api.requests.orders.CancelRequest;
 import cross.api.requests.orders.CreateRequest;
+import cross.api.requests.orders.UserOrdersRequest;
 import cross.api.requests.pricehistory.PriceHistoryRequest;
 import cross.api.requests.user.LogoutRequest;
 import cross.api.requests.user.RegisterLoginRequest;
@@ -39,6 +40,10 @@ import cross.utils.ClientActionsUtils.ClientActions;
  * It also contains the values, that are the arguments for the operation. These values are request dependent.
  * So, they are rapresented as a generic Object.
  *
+ * Added by me, an optional request id, chosen by the client and echoed back by the server in the response.
+ * So a client can send more requests without waiting for the responses (pipelining) and match each response to its request.
+ * Not present in the JSON if null.
+ *
  * @version 1.0
  * @author Giulio Nisi
  *
@@ -51,6 +56,7 @@ import cross.utils.ClientActionsUtils.ClientActions;
  * 
  * @see cross.api.requests.orders.CreateRequest
  * @see cross.api.requests.orders.CancelRequest
+ * @see cross.api.requests.orders.UserOrdersRequest
  * 
  * @see cross.api.requests.pricehistory.PriceHistoryRequest
  * 
@@ -68,6 +74,13 @@ public class Request extends JSONAPIMessage {
     private final String operation;
     private final Object values;
 
+    // Optional, null if not used.
+    private final Long requestId;
+
+    // True if the user's credentials were not valid and ignored while parsing, see hasInvalidUser().
+    // transient to avoid serialization in JSON by Gson.
+    private final transient Boolean invalidUser;
+
     /**
      *
      * Constructor of the class.
@@ -80,15 +93,37 @@ public class Request extends JSONAPIMessage {
      */
     public Request(ClientActionsUtils.ClientActions action, Object values) throws NullPointerException {
 
+        this(action, values, null);
+
+    }
+    /**
+     *
+     * Constructor of the class, with a request id.
+     *
+     * @param action The action requested by the client as a ClientActions enum. Will be converted to a string.
+     * @param values The values for the action as generic Object. Values are request dependent. Values can be null, for example for the EXIT request.
+     * @param requestId The request id, echoed back by the server in the response, null for none.
+     *
+     * @throws NullPointerException If the action object is null.
+     * @throws IllegalArgumentException If the request id is negative.
+     *
+     */
+    public Request(ClientActionsUtils.ClientActions action, Object values, Long requestId) throws NullPointerException, IllegalArgumentException {
+
         // Null check.
         if (action == null)
             throw new NullPointerException("Action in the request cannot be null.");
 
+        if (requestId != null && requestId < 0)
+            throw new IllegalArgumentException("Request id in the request cannot be negative.");
+
         // Get the (NO TO LOWERCASE, BUT AS WRITTEN IN THE MAP AND IN THE ASSIGNMENT'S TEXT) string command from the action.
         String command = ClientActionsUtils.getKeywordCommand(action);
 
         this.operation = command;
         this.values = values;
+        this.requestId = requestId;
+        this.invalidUser = false;
 
     }
     /**
@@ -99,11 +134,12 @@ public class Request extends JSONAPIMessage {
      * Must be called only server side.
      *
      * @param JSONrequest The JSON request string.
+     * @param ignoreInvalidUser If true, the user's credentials not valid (too short, too long or with invalid characters) are accepted, and hasInvalidUser() returns true.
      *
-     * @throws NullPointerException If the JSON request string is null.
+     * @throws NullPointerException If the JSON request string or the flag are null.
      * @throws IllegalArgumentException If the JSON request string is not a valid JSON object or the content is invalid.
      * @throws IllegalStateException If the registered string commands associated with the client actions enum are invalid.
-     * @throws InvalidUser If the user credentials in the JSON request are not valid, too short, too long or with invalid characters and ignore invalid user is true.
+     * @throws InvalidUser If the user credentials in the JSON request are missing, or not valid and ignore invalid user is false.
      *
      */
     public Request(String JSONrequest, Boolean ignoreInvalidUser) throws NullPointerException, IllegalArgumentException, IllegalStateException, InvalidUser {
@@ -140,6 +176,18 @@ public class Request extends JSONAPIMessage {
         }
         this.operation = operation;
 
+        // Get the optional request id.
+        Long requestId = null;
+        if (jsonObject.has("requestId")) {
+            try {
+                requestId = jsonObject.get("requestId").getAsLong();
+                if (requestId < 0) throw new NumberFormatException();
+            } catch (NumberFormatException | UnsupportedOperationException | IllegalStateException ex) {
+                throw new IllegalArgumentException("The request id in the JSON request is not valid.");
+            }
+        }
+        this.requestId = requestId;
+
         // Get the values.
         JsonElement elementValues;
         try {
@@ -149,6 +197,7 @@ public class Request extends JSONAPIMessage {
         }
 
         // Parse the values.
+        Boolean invalidUser = false;
         String username;
         String password;
         // Use OrderBook is ok since this method should be called only server side.
@@ -167,6 +216,7 @@ public class Request extends JSONAPIMessage {
                 } catch (IllegalArgumentException ex) {
                     if (ignoreInvalidUser == true) {
                         user = new User(username, password, true);
+                        invalidUser = true;
                     } else {
                         throw new InvalidUser("The username or password in the JSON request are not valid.");
                     }
@@ -191,6 +241,7 @@ public class Request extends JSONAPIMessage {
                     if (ignoreInvalidUser == true) {
                         userOld = new User(username, password, true);
                         userNew = new User(username, newPassword, true);
+                        invalidUser = true;
                     } else {
                         throw new InvalidUser("The username or the new password or the old password in the JSON request are not valid.");
                     }
@@ -202,6 +253,7 @@ public class Request extends JSONAPIMessage {
                 }
             }
             case LOGOUT -> this.values = new LogoutRequest();
+            case GET_OPEN_ORDERS, GET_MY_TRADES, GET_BALANCES -> this.values = new UserOrdersRequest();
             case CANCEL_ORDER -> {
                 Number orderId;
                 try {
@@ -343,7 +395,7 @@ public class Request extends JSONAPIMessage {
             case EXIT -> this.values = null;
             default -> throw new IllegalArgumentException("The operation in the JSON request is not valid.");
         }
-        
+        this.invalidUser = invalidUser;
         
     }
 
@@ -372,5 +424,30 @@ public class Request extends JSONAPIMessage {
         return this.values;
 
     }
+    /**
+     *
+     * Getter for the request id.
+     *
+     * @return The request id, null if not present.
+     *
+     */
+    public Long getRequestId() {
+
+        return this.requestId;
+
+    }
+    /**
+     *
+     * Checks if the user's credentials in the parsed JSON request were not valid, and accepted only because ignore invalid user was true.
+     * So the server can answer without parsing the JSON request again.
+     *
+     * @return True if the user's credentials were not valid, false otherwise or for a request without credentials.
+     *
+     */
+    public Boolean hasInvalidUser() {
+
+        return this.invalidUser;
+
+    }
 
 }
@@ -0,0 +1,31 @@
+package cross.api.requests.orders;
+
+/**
+ *
+ * UserOrdersRequest is a class used to submit the API requests about the orders of the logged in user, its open orders or its recent trades.
+ *
+ * It's empty, since the user is the one logged in with the connection, like the LogoutRequest.
+ *
+ * It's used as values in the Request object.
+ *
+ * @version 1.0
+ * @author Giulio Nisi
+ *
+ * @see Request
+ * @see cross.api.requests.user.LogoutRequest
+ *
+ */
+public class UserOrdersRequest {
+
+    /**
+     *
+     * Constructor for the UserOrdersRequest class.
+     *
+     */
+    public UserOrdersRequest() {
+
+        // Empty constructor as the request is empty.
+
+    }
+
+}
@@ -1,22 +1,32 @@
 package cross.api.responses;
 
+import java.nio.ByteBuffer;
 import java.time.Instant;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeFormatterBuilder;
 import java.time.format.DateTimeParseException;
+import java.util.LinkedList;
 import java.util.Locale;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParseException;
 import com.google.gson.JsonParser;
 import cross.api.JSONAPIMessage;
+import cross.api.notifications.Notification;
+import cross.api.notifications.Trade;
+import cross.api.responses.orders.Balance;
+import cross.api.responses.orders.BalancesResponse;
 import cross.api.responses.orders.CancelResponse;
 import cross.api.responses.orders.ExecutionResponse;
+import cross.api.responses.orders.MyTradesResponse;
+import cross.api.responses.orders.OpenOrdersResponse;
 import cross.api.responses.pricehistory.DailyPriceStats;
 import cross.api.responses.pricehistory.PriceHistoryResponse;
 import cross.api.responses.user.UserResponse;
+import cross.types.Currency;
 import cross.types.price.GenericPrice;
+import cross.utils.ByteBufferPool;
 import cross.utils.ClientActionsUtils;
 import cross.utils.ClientActionsUtils.ClientActions;
 
@@ -34,6 +44,9 @@ import cross.utils.ClientActionsUtils.ClientActions;
  * 
  * @see CancelResponse
  * @see ExecutionResponse
+ * @see OpenOrdersResponse
+ * @see MyTradesResponse
+ * @see BalancesResponse
  * @see PriceHistoryResponse
  * @see UserResponse
  * 
@@ -53,6 +66,10 @@ public class Response extends JSONAPIMessage {
     // transient to avoid serialization in JSON by Gson.
     private final transient ClientActions type;
 
+    // Request id of the request answered, echoed back, null if the request had none.
+    // Added to the JSON root by toJSONString(), transient as the type.
+    private transient Long requestId = null;
+
     /**
      *
      * Constructor of the class.
@@ -60,7 +77,7 @@ public class Response extends JSONAPIMessage {
      * Object since it takes any type of response.
      *
      * @param response The response as Object.
-     * @param type The type of the response as ClientActions or null if it's a notification.
+     * @param type The type of the response as ClientActions or null if it's a notification, a rate limit or a server busy response.
      *
      * @throws NullPointerException If the response is null.
      *
@@ -100,6 +117,14 @@ public class Response extends JSONAPIMessage {
             throw new IllegalArgumentException("JSON response string in the response is not a valid JSON object.");
         }
 
+        // The optional request id, present in any type of response.
+        if (jsonObject.has("requestId")) {
+            try {
+                this.requestId = jsonObject.get("requestId").getAsLong();
+            } catch (NumberFormatException | UnsupportedOperationException | IllegalStateException ex) {
+                throw new IllegalArgumentException("The request id in the response is not valid.");
+            }
+        }
 
         // Trying to parse the response of an user's data request.
         String responseCode = null;
@@ -147,6 +172,11 @@ public class Response extends JSONAPIMessage {
                     this.response = new CancelResponse(responseCodeObject, responseCodeObject.getDefaultMessage());
                     this.type = ClientActions.CANCEL_ORDER;
                 }
+                case RATE_LIMIT, SERVER_BUSY, SERVER_ERROR -> {
+                    // Sent instead of the response of any request, so it has no action type.
+                    this.response = new UserResponse(responseCodeObject, responseCodeObject.getDefaultMessage());
+                    this.type = null;
+                }
                 default -> throw new IllegalArgumentException("The response code is not valid.");
             }
             return;
@@ -169,6 +199,46 @@ public class Response extends JSONAPIMessage {
             return;
         }
 
+        // Trying to parse the response of an user's orders request, open orders or recent trades.
+        String tradesField = jsonObject.has("openOrders") ? "openOrders" : jsonObject.has("myTrades") ? "myTrades" : null;
+        if (tradesField != null) {
+            LinkedList<Trade> trades = new LinkedList<>();
+            try {
+                JsonArray tradesArray = jsonObject.get(tradesField).getAsJsonArray();
+                for (int i = 0; i < tradesArray.size(); i++) {
+                    trades.add(Notification.parseTrade(tradesArray.get(i).getAsJsonObject()));
+                }
+            } catch (RuntimeException ex) {
+                throw new IllegalArgumentException("The user's orders in the response are not valid.");
+            }
+            if (tradesField.equals("openOrders")) {
+                this.response = new OpenOrdersResponse(trades);
+                this.type = ClientActions.GET_OPEN_ORDERS;
+            } else {
+                this.response = new MyTradesResponse(trades);
+                this.type = ClientActions.GET_MY_TRADES;
+            }
+            return;
+        }
+
+        // Trying to parse the response of a balances request.
+        if (jsonObject.has("balances")) {
+            LinkedList<Balance> balances = new LinkedList<>();
+            try {
+                JsonArray balancesArray = jsonObject.get("balances").getAsJsonArray();
+                for (int i = 0; i < balancesArray.size(); i++) {
+                    JsonObject balanceObject = balancesArray.get(i).getAsJsonObject();
+                    Currency currency = Currency.valueOf(balanceObject.get("currency").getAsString());
+                    balances.add(new Balance(currency, balanceObject.get("balance").getAsLong(), balanceObject.get("available").getAsLong()));
+                }
+            } catch (RuntimeException ex) {
+                throw new IllegalArgumentException("The user's balances in the response are not valid.");
+            }
+            this.response = new BalancesResponse(balances);
+            this.type = ClientActions.GET_BALANCES;
+            return;
+        }
+
         // Trying to parse the response of a price history request.
         try {
             JsonArray priceHistory = null;
@@ -237,11 +307,24 @@ public class Response extends JSONAPIMessage {
          * Need to remove the first parenthesis couple with the response field.
          * The "..." is the response content.
          * Must be extracted in this object root.
+         * So the response content is serialized directly, without the wrapper and without parsing it again.
+         * The request id, if any, is added to it.
          *
          */
-        String nested = super.toJSONString();
-        JsonObject jsonObject = JsonParser.parseString(nested).getAsJsonObject();
-        return jsonObject.get("response").getAsJsonObject().toString().replace("\n", "").replace("\r", "").replace("\t", "").trim() + "\n";
+        if (this.requestId == null) {
+            return JSONAPIMessage.renameOrderIdL(gson.toJson(this.response) + "\n");
+        }
+        JsonObject root = gson.toJsonTree(this.response).getAsJsonObject();
+        root.addProperty("requestId", this.requestId);
+        return JSONAPIMessage.renameOrderIdL(gson.toJson(root) + "\n");
+
+    }
+
+    @Override
+    public ByteBuffer toJSONBuffer(ByteBufferPool pool, int headroom) throws NullPointerException, IllegalArgumentException {
+
+        // The response content in this object root, as toJSONString(), with the request id streamed at its end.
+        return JSONAPIMessage.toJSONBuffer(this.response, this.requestId, pool, headroom);
 
     }
 
@@ -270,5 +353,31 @@ public class Response extends JSONAPIMessage {
         return this.type;
 
     }
+    /**
+     *
+     * Getter for the request id.
+     *
+     * @return The request id of the request answered, null if the request had none.
+     *
+     */
+    public Long getRequestId() {
+
+        return this.requestId;
+
+    }
+
+    // SETTERS
+    /**
+     *
+     * Setter for the request id, echoing back the one of the request answered.
+     *
+     * @param requestId The request id, null for none.
+     *
+     */
+    public void setRequestId(Long requestId) {
+
+        this.requestId = requestId;
+
+    }
 
 }
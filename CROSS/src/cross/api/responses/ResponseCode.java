@@ -11,6 +11,7 @@ package cross.api.responses;
  * For that I used different enums and this dedicated class with methods to do some mapping.
  * 
  * Used in CancelResponse, UserResponse.
+ * UserResponse is used also for the rate limit, server busy and server error responses, sent instead of the response of a throttled, rejected or failed request.
  *
  * @version 1.0
  * @author Giulio Nisi
@@ -35,6 +36,15 @@ public class ResponseCode {
 
         CANCEL_ORDER,
 
+        // Added by me. Sent instead of the response of any request throttled by the server's rate limits.
+        RATE_LIMIT,
+
+        // Added by me. Sent instead of the response of any request (or at the connection) rejected by the server's admission control, when overloaded.
+        SERVER_BUSY,
+
+        // Added by me. Sent instead of the response of a request the server failed to answer, e.g. for an error reading the orders journal from disk.
+        SERVER_ERROR,
+
         // Some others responses types doesn't exist here, since they have no response code.
 
     }
@@ -65,6 +75,15 @@ public class ResponseCode {
 
         // CancelOrder
         ORDER_DOES_NOT_EXIST_OR_BELONGS_TO_DIFFERENT_USER_OR_HAS_ALREADY_BEEN_FINALIZED_OR_OTHER_ERROR_CASES,
+
+        // RateLimit
+        TOO_MANY_REQUESTS,
+
+        // ServerBusy
+        SERVER_BUSY,
+
+        // ServerError
+        SERVER_ERROR,
     }
 
     // Binding the response code and its content to the type of the response.
@@ -268,6 +287,99 @@ public class ResponseCode {
 
     }
 
+    // Added by me, the code is the same of the HTTP one, to be distinct from all the others.
+    private static enum responseRateLimit {
+
+        TOO_MANY_REQUESTS(429),;
+
+        private final int code;
+        private final String defaultMessage;
+
+        responseRateLimit(int code) {
+            // Checking of the code is not necessary, as it is an enum.
+            // It's done by the compiler.
+            this.code = code;
+            switch (code) {
+                case 429:
+                    this.defaultMessage = "Too many requests, retry later.";
+                    break;
+                default:
+                    this.defaultMessage = "The response code is not valid.";
+            }
+        }
+
+        public int getCode() {
+            return code;
+        }
+
+        public String getDefaultMessage() {
+            return defaultMessage;
+        }
+
+    }
+
+    // Added by me, the code is the same of the HTTP one, to be distinct from all the others.
+    private static enum responseServerBusy {
+
+        SERVER_BUSY(503),;
+
+        private final int code;
+        private final String defaultMessage;
+
+        responseServerBusy(int code) {
+            // Checking of the code is not necessary, as it is an enum.
+            // It's done by the compiler.
+            this.code = code;
+            switch (code) {
+                case 503:
+                    this.defaultMessage = "Server busy, retry later.";
+                    break;
+                default:
+                    this.defaultMessage = "The response code is not valid.";
+            }
+        }
+
+        public int getCode() {
+            return code;
+        }
+
+        public String getDefaultMessage() {
+            return defaultMessage;
+        }
+
+    }
+
+    // Added by me, the code is the same of the HTTP one, to be distinct from all the others.
+    private static enum responseServerError {
+
+        SERVER_ERROR(500),;
+
+        private final int code;
+        private final String defaultMessage;
+
+        responseServerError(int code) {
+            // Checking of the code is not necessary, as it is an enum.
+            // It's done by the compiler.
+            this.code = code;
+            switch (code) {
+                case 500:
+                    this.defaultMessage = "Server error, retry later.";
+                    break;
+                default:
+                    this.defaultMessage = "The response code is not valid.";
+            }
+        }
+
+        public int getCode() {
+            return code;
+        }
+
+        public String getDefaultMessage() {
+            return defaultMessage;
+        }
+
+    }
+
     // The type of the response as an enum.
     private ResponseType type;
 
@@ -357,12 +469,70 @@ public class ResponseCode {
             }
         }
 
+        for (responseRateLimit response : responseRateLimit.values()) {
+            if (response.getCode() == code && response.getDefaultMessage().compareTo(responseDefaultMessage) == 0) {
+                this.type = ResponseType.RATE_LIMIT;
+                this.responseContent = ResponseContent.valueOf(response.name());
+            }
+        }
+
+        for (responseServerBusy response : responseServerBusy.values()) {
+            if (response.getCode() == code && response.getDefaultMessage().compareTo(responseDefaultMessage) == 0) {
+                this.type = ResponseType.SERVER_BUSY;
+                this.responseContent = ResponseContent.valueOf(response.name());
+            }
+        }
+
+        for (responseServerError response : responseServerError.values()) {
+            if (response.getCode() == code && response.getDefaultMessage().compareTo(responseDefaultMessage) == 0) {
+                this.type = ResponseType.SERVER_ERROR;
+                this.responseContent = ResponseContent.valueOf(response.name());
+            }
+        }
+
         if (this.type == null) {
             throw new IllegalArgumentException("The response code associated to the default message is not valid.");
         }
         
     }
 
+    /**
+     *
+     * Finds the response code of a type with the given code, without the default message.
+     * Used to decode the binary responses, that have only the code.
+     *
+     * @param type The type of the response.
+     * @param code The code of the response.
+     *
+     * @return The response code, or null if the type has no such code.
+     *
+     * @throws NullPointerException If the type or the code are null.
+     *
+     */
+    public static ResponseCode fromCode(ResponseType type, Integer code) throws NullPointerException {
+
+        // Null check.
+        if (type == null) {
+            throw new NullPointerException("Type of the response in the response code generation cannot be null.");
+        }
+        if (code == null) {
+            throw new NullPointerException("Code in the response code generation cannot be null.");
+        }
+
+        for (ResponseContent responseContent : ResponseContent.values()) {
+            ResponseCode responseCode = new ResponseCode(type, responseContent);
+            try {
+                if (responseCode.getCode().equals(code)) {
+                    return responseCode;
+                }
+            } catch (IllegalArgumentException ex) {
+                // Content not of this type.
+            }
+        }
+        return null;
+
+    }
+
     // GETTERS
     /**
      *
@@ -404,6 +574,9 @@ public class ResponseCode {
             case LOGIN -> i = responseLogin.valueOf(responseContent.name()).getCode();
             case LOGOUT -> i = responseLogout.valueOf(responseContent.name()).getCode();
             case CANCEL_ORDER -> i = responseCancelOrder.valueOf(responseContent.name()).getCode();
+            case RATE_LIMIT -> i = responseRateLimit.valueOf(responseContent.name()).getCode();
+            case SERVER_BUSY -> i = responseServerBusy.valueOf(responseContent.name()).getCode();
+            case SERVER_ERROR -> i = responseServerError.valueOf(responseContent.name()).getCode();
         }
 
         return (Integer) i;
@@ -425,6 +598,9 @@ public class ResponseCode {
             case LOGIN -> responseLogin.valueOf(responseContent.name()).getDefaultMessage();
             case LOGOUT -> responseLogout.valueOf(responseContent.name()).getDefaultMessage();
             case CANCEL_ORDER -> responseCancelOrder.valueOf(responseContent.name()).getDefaultMessage();
+            case RATE_LIMIT -> responseRateLimit.valueOf(responseContent.name()).getDefaultMessage();
+            case SERVER_BUSY -> responseServerBusy.valueOf(responseContent.name()).getDefaultMessage();
+            case SERVER_ERROR -> responseServerError.valueOf(responseContent.name()).getDefaultMessage();
             default -> "The response code is not valid.";
         };
 
@@ -0,0 +1,80 @@
+package cross.api.responses.orders;
+
+import cross.types.Currency;
+
+/**
+ *
+ * Balance is a class that represents the balance of an user in a currency.
+ *
+ * It contains the currency, the balance and the available part of it, the balance minus the part reserved by the user's resting orders.
+ *
+ * It's used as element in the BalancesResponse object.
+ *
+ * @version 1.0
+ * @author Giulio Nisi
+ *
+ * @see BalancesResponse
+ * @see Currency
+ *
+ */
+public class Balance {
+
+    private final String currency;
+    private final Long balance;
+    private final Long available;
+
+    /**
+     *
+     * Constructor for the class.
+     *
+     * @param currency The currency of the balance.
+     * @param balance The balance.
+     * @param available The available part of the balance.
+     *
+     * @throws NullPointerException If the currency, the balance or the available balance are null.
+     *
+     */
+    public Balance(Currency currency, Long balance, Long available) throws NullPointerException {
+
+        // Null checks.
+        if (currency == null) {
+            throw new NullPointerException("Currency of a balance cannot be null.");
+        }
+        if (balance == null) {
+            throw new NullPointerException("Balance of a balance cannot be null.");
+        }
+        if (available == null) {
+            throw new NullPointerException("Available balance of a balance cannot be null.");
+        }
+
+        this.currency = currency.name();
+        this.balance = balance;
+        this.available = available;
+
+    }
+
+    // GETTERS
+    public Currency getCurrency() {
+
+        return Currency.valueOf(this.currency);
+
+    }
+    public Long getBalance() {
+
+        return this.balance;
+
+    }
+    public Long getAvailable() {
+
+        return this.available;
+
+    }
+
+    @Override
+    public String toString() {
+
+        return String.format("Balance [Currency [%s] - Balance [%d] - Available [%d]]", this.currency, this.balance, this.available);
+
+    }
+
+}
@@ -0,0 +1,81 @@
+package cross.api.responses.orders;
+
+import cross.utils.Separator;
+import java.util.List;
+
+/**
+ *
+ * BalancesResponse is a class used by the server to respond to a balances client's request.
+ *
+ * It contains the balances of the logged in user, in the primary and then in the secondary currency of the pair.
+ * It's empty if the balances are not enabled on the server.
+ *
+ * It's used as object in the Response object.
+ *
+ * @version 1.0
+ * @author Giulio Nisi
+ *
+ * @see Balance
+ *
+ * @see Separator
+ *
+ * @see Response
+ *
+ */
+public class BalancesResponse {
+
+    private final Balance[] balances;
+
+    /**
+     *
+     * Constructor for the class.
+     *
+     * @param balances The balances to respond with.
+     *
+     * @throws NullPointerException If the balances are null.
+     *
+     */
+    public BalancesResponse(List<Balance> balances) throws NullPointerException {
+
+        // Null check.
+        if (balances == null) {
+            throw new NullPointerException("Balances of a balances response cannot be null.");
+        }
+
+        this.balances = balances.toArray(new Balance[0]);
+
+    }
+
+    // GETTERS
+    /**
+     *
+     * Getter for the balances field.
+     *
+     * @return The balances field as an array of Balance.
+     *
+     */
+    public Balance[] getBalances() {
+
+        return this.balances;
+
+    }
+
+    @Override
+    public String toString() {
+
+        Separator separator = new Separator("=", 6);
+
+        String result = separator + " " + "Balances Response" + " " + separator + "\n";
+        if (balances.length == 0) {
+            result += "Balances not enabled on the server.\n";
+        }
+
+        for (Balance balance : balances) {
+            result += "\t" + balance.toString() + "\n";
+        }
+
+        return result;
+
+    }
+
+}
@@ -0,0 +1,81 @@
+package cross.api.responses.orders;
+
+import cross.api.notifications.Trade;
+import cross.utils.Separator;
+import java.util.List;
+
+/**
+ *
+ * MyTradesResponse is a class used by the server to respond to a my trades client's request.
+ *
+ * It contains the recent fills of the logged in user, the oldest first.
+ * Each one is a Trade object, the same format of the trades in the notifications.
+ *
+ * It's used as object in the Response object.
+ *
+ * @version 1.0
+ * @author Giulio Nisi
+ *
+ * @see Trade
+ * @see cross.api.notifications.Notification
+ *
+ * @see Separator
+ *
+ * @see Response
+ *
+ */
+public class MyTradesResponse {
+
+    private final Trade[] myTrades;
+
+    /**
+     *
+     * Constructor for the class.
+     *
+     * @param myTrades The trades to respond with.
+     *
+     * @throws NullPointerException If the trades are null.
+     *
+     */
+    public MyTradesResponse(List<Trade> myTrades) throws NullPointerException {
+
+        // Null check.
+        if (myTrades == null) {
+            throw new NullPointerException("Trades of a my trades response cannot be null.");
+        }
+
+        this.myTrades = myTrades.toArray(new Trade[0]);
+
+    }
+
+    // GETTERS
+    /**
+     *
+     * Getter for the myTrades field.
+     *
+     * @return The myTrades field as an array of Trade.
+     *
+     */
+    public Trade[] getMyTrades() {
+
+        return this.myTrades;
+
+    }
+
+    @Override
+    public String toString() {
+
+        Separator separator = new Separator("=", 6);
+
+        String result = separator + " " + "My Trades Response" + " " + separator + "\n";
+        result += "Trades:\n";
+
+        for (Trade trade : myTrades) {
+            result += "\t" + trade.toString() + "\n";
+        }
+
+        return result;
+
+    }
+
+}
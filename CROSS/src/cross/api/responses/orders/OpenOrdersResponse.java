@@ -0,0 +1,81 @@
+package cross.api.responses.orders;
+
+import cross.api.notifications.Trade;
+import cross.utils.Separator;
+import java.util.List;
+
+/**
+ *
+ * OpenOrdersResponse is a class used by the server to respond to an open orders client's request.
+ *
+ * It contains the resting orders (limit and stop) of the logged in user, in arrival order, with their remaining quantity.
+ * Each one is a Trade object, the same format of the trades in the notifications.
+ *
+ * It's used as object in the Response object.
+ *
+ * @version 1.0
+ * @author Giulio Nisi
+ *
+ * @see Trade
+ * @see cross.api.notifications.Notification
+ *
+ * @see Separator
+ *
+ * @see Response
+ *
+ */
+public class OpenOrdersResponse {
+
+    private final Trade[] openOrders;
+
+    /**
+     *
+     * Constructor for the class.
+     *
+     * @param openOrders The trades to respond with.
+     *
+     * @throws NullPointerException If the trades are null.
+     *
+     */
+    public OpenOrdersResponse(List<Trade> openOrders) throws NullPointerException {
+
+        // Null check.
+        if (openOrders == null) {
+            throw new NullPointerException("Open orders of an open orders response cannot be null.");
+        }
+
+        this.openOrders = openOrders.toArray(new Trade[0]);
+
+    }
+
+    // GETTERS
+    /**
+     *
+     * Getter for the openOrders field.
+     *
+     * @return The openOrders field as an array of Trade.
+     *
+     */
+    public Trade[] getOpenOrders() {
+
+        return this.openOrders;
+
+    }
+
+    @Override
+    public String toString() {
+
+        Separator separator = new Separator("=", 6);
+
+        String result = separator + " " + "Open Orders Response" + " " + separator + "\n";
+        result += "Trades:\n";
+
+        for (Trade trade : openOrders) {
+            result += "\t" + trade.toString() + "\n";
+        }
+
+        return result;
+
+    }
+
+}
@@ -1,8 +1,12 @@
 package cross.client;
 
+import cross.api.binary.BinaryProtocol;
 import cross.api.requests.Request;
+import cross.api.responses.Response;
 import cross.exceptions.InvalidConfig;
+import cross.utils.ByteBufferPool;
 import cross.utils.ClientActionsUtils;
+import cross.utils.TLSContexts;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
@@ -14,9 +18,20 @@ import java.io.OutputStream;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
 
 /**
  *
@@ -36,6 +51,16 @@ import java.util.Properties;
  * There is also a dedicated thread to handle the responses / notifications from the server and print them.
  * This thread is unique per client instance.
  *
+ * Added by me, an async API, sendRequestAsync(), to send requests without waiting for the responses (pipelining).
+ * Each request gets a request id, echoed back by the server, and a future completed by the responses thread when its response is received.
+ * So the requests sent on a connection are bounded by the server, not by the round trip time.
+ *
+ * Added by me, the optional binary protocol (see BinaryProtocol), chosen with the "protocol" key of the configuration file.
+ * It's negotiated at the connection, falling back to JSON if the server doesn't support it.
+ *
+ * Added by me, the optional TLS on the connection, chosen with the "tls_enabled" key of the configuration file, verifying the server's certificate and name.
+ * The TLS context is shared by all the clients of the process (see TLSContexts), so connecting again resumes the TLS session, with an abbreviated handshake.
+ *
  * @version 1.0
  * @author Giulio Nisi
  *
@@ -44,6 +69,7 @@ import java.util.Properties;
  * 
  * @see ClientActionsUtils
  * @see Request
+ * @see BinaryProtocol
  * 
  * @see InvalidConfig
  * 
@@ -55,6 +81,20 @@ public class Client {
     private final Integer serverPort;
     private final Integer serverNotificationsPort;
     private final InetAddress serverAddress;
+    // The server's IP or name as configured, verified in the server's certificate with TLS.
+    private final String serverHost;
+
+    // Factory of the TLS sockets, from the shared TLS context, null without TLS.
+    private final SSLSocketFactory sslSocketFactory;
+
+    // If the binary protocol is requested in the configuration file, and if it's used on the current connection, after the negotiation.
+    private final Boolean binaryProtocol;
+    private Boolean binaryNegotiated = false;
+    // Buffers of the binary frames sent.
+    private final ByteBufferPool bufferPool = new ByteBufferPool(1024, 16);
+
+    // Max time to wait for the answer to the binary protocol's hello, in milliseconds.
+    private static final int HELLO_TIMEOUT_MILLIS = 5000;
 
     // TCP server socket.
     private Socket socket = null;
@@ -85,18 +125,58 @@ public class Client {
     // Thread for notifications from server.
     private NotificationsThread notificationsThread = null;
 
+    // Async requests waiting for their responses, by request id, and the next request id.
+    private final ConcurrentHashMap<Long, CompletableFuture<Response>> pendingRequests = new ConcurrentHashMap<>();
+    private final AtomicLong nextRequestId = new AtomicLong(1);
+
     // only for pretty printing and distinguishing the your own orders from the matched ones in the notifications printing.
-    private LinkedList<Long> executedOrders = new LinkedList<>();
+    // Written by the responses thread and waited by the notifications thread, guarded by its monitor.
+    private final HashSet<Long> executedOrders = new HashSet<>();
     public void addExecutedOrder(Long orderId) {
 
-        // Adding the order id to the executed orders list.
-        this.executedOrders.add(orderId);
+        // Adding the order id to the executed orders set, waking up the notifications thread waiting for it.
+        synchronized (this.executedOrders) {
+            this.executedOrders.add(orderId);
+            this.executedOrders.notifyAll();
+        }
         
     }
     public Boolean containsExecutedOrder(Long orderId) {
 
-        // Returning the executed orders list.
-        return this.executedOrders.contains(orderId);
+        synchronized (this.executedOrders) {
+            return this.executedOrders.contains(orderId);
+        }
+
+    }
+    /**
+     *
+     * Waits for one of some orders to be executed by this client, since a notification may arrive before the response of its order.
+     *
+     * @param orderIds The orders ids.
+     * @param timeoutMillis Max time to wait, in milliseconds.
+     *
+     * @return The first order id executed by this client, null if none of them within the timeout.
+     *
+     * @throws InterruptedException If the thread waiting is interrupted.
+     *
+     */
+    public Long awaitExecutedOrder(List<Long> orderIds, long timeoutMillis) throws InterruptedException {
+
+        long deadline = System.nanoTime() + timeoutMillis * 1_000_000L;
+        synchronized (this.executedOrders) {
+            while (true) {
+                for (Long orderId : orderIds) {
+                    if (this.executedOrders.contains(orderId)) {
+                        return orderId;
+                    }
+                }
+                long remainingMillis = (deadline - System.nanoTime()) / 1_000_000L;
+                if (remainingMillis <= 0) {
+                    return null;
+                }
+                this.executedOrders.wait(remainingMillis);
+            }
+        }
 
     }
 
@@ -157,6 +237,26 @@ public class Client {
 
             // Parsing IP.
             this.serverAddress = InetAddress.getByName(server);
+            this.serverHost = server.trim();
+
+            // Parsing the optional protocol, "json" by default.
+            String protocol = props.getProperty("protocol", "json").trim().toLowerCase();
+            if (!protocol.equals("json") && !protocol.equals("binary")) {
+                throw new InvalidConfig("Invalid protocol in the client's configuration file. Must be json or binary.");
+            }
+            this.binaryProtocol = protocol.equals("binary");
+
+            // Parsing the optional TLS parameters, without a truststore the server's certificate must be trusted by the JVM.
+            if (Boolean.valueOf(props.getProperty("tls_enabled", "false").trim())) {
+                String truststorePath = props.getProperty("tls_truststore");
+                try {
+                    this.sslSocketFactory = TLSContexts.getClientContext(truststorePath != null ? truststorePath.trim() : null, props.getProperty("tls_truststore_password"), 0, 0).getSocketFactory();
+                } catch (IOException | GeneralSecurityException ex) {
+                    throw new InvalidConfig("Invalid TLS truststore, or its password, in the client's configuration file.");
+                }
+            } else {
+                this.sslSocketFactory = null;
+            }
 
             // Saving the path to the configuration file.
             this.pathToConfigPropertiesFile = pathToConfigPropertiesFile;
@@ -214,7 +314,18 @@ public class Client {
 
         try {
             // Getting the socket.
-            this.socket = new Socket(serverAddress, serverPort);
+            if (this.sslSocketFactory != null) {
+                // Created with the server's name and port, the keys of the TLS session to resume.
+                SSLSocket sslSocket = (SSLSocket) this.sslSocketFactory.createSocket(this.serverHost, this.serverPort);
+                this.socket = sslSocket;
+                SSLParameters parameters = sslSocket.getSSLParameters();
+                parameters.setEndpointIdentificationAlgorithm("HTTPS");
+                sslSocket.setSSLParameters(parameters);
+                // Done now, so an untrusted server is reported by the connection.
+                sslSocket.startHandshake();
+            } else {
+                this.socket = new Socket(serverAddress, serverPort);
+            }
 
             // Getting the input and output streams.
             this.outputStream = socket.getOutputStream();
@@ -224,12 +335,15 @@ public class Client {
             this.bin = new BufferedInputStream(inputStream);
             this.bout = new BufferedOutputStream(outputStream);
 
+            // Negotiating the binary protocol, if requested.
+            this.binaryNegotiated = this.binaryProtocol && this.negotiateBinaryProtocol();
+
             // Creating the UDP socket.
             // The port is not specified, so the OS will assign a random port, an ephemeral one.
             this.datagramSocket = new DatagramSocket(0);
 
             // Printing the connection success.
-            System.out.println(String.format("Client connected succesfully to %s:%d!", this.serverAddress, this.serverPort));
+            System.out.println(String.format("Client connected succesfully to %s:%d%s%s!", this.serverAddress, this.serverPort, this.sslSocketFactory != null ? " with TLS" : "", this.binaryNegotiated ? " with the binary protocol" : ""));
         }catch (IOException ex) {
 
             // Difference with the server:
@@ -314,10 +428,9 @@ public class Client {
         // Send an EXIT request to the server to exit gracefully.
         ClientActionsUtils.ClientActions action = ClientActionsUtils.ClientActions.EXIT;
         Request request = new Request(action, null);
-        String json = request.toJSONString();
 
         try {
-            this.sendJSONToServer(json);
+            this.sendRequest(request);
             // IllegalStateException is not thrown here, since the output stream and the socket are not null, checked before.
         }catch (IOException ex) {
             // Trying to continue to close the output stream and the socket anyway.
@@ -370,6 +483,7 @@ public class Client {
      *
      * Send a JSON string to the server.
      * The JSON is sent through the TCP socket and rapresent a request to the server.
+     * With the binary protocol, it's sent in a JSON frame.
      *
      * Synchronized to avoid multiple requests at the same time on the same socket.
      * E.g: The main thread and the CLI thread could try to send a request at the same time.
@@ -393,13 +507,187 @@ public class Client {
             throw new NullPointerException("JSON to send to the server cannot be null.");
 
         try {
-            this.bout.write(json.getBytes());
+            if (this.binaryNegotiated) {
+                byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+                ByteBuffer frame = this.bufferPool.acquire(BinaryProtocol.LENGTH_PREFIX + 1 + bytes.length);
+                BinaryProtocol.putJSON(frame, bytes);
+                this.bout.write(frame.array(), frame.arrayOffset(), frame.position());
+                this.bufferPool.release(frame);
+            } else {
+                this.bout.write(json.getBytes(StandardCharsets.UTF_8));
+            }
             this.bout.flush();
         } catch (IOException ex) {
             throw new IOException("Error sending your JSON request to the server. Ignoring it.");
             // I decided to not close the output stream and the socket here for only one bad request.
         }
 
+    }
+    /**
+     *
+     * Send a request to the server, in the protocol of the connection.
+     *
+     * With the binary protocol, the create and cancel requests are sent in their fixed layout frames, the others in JSON frames.
+     * Otherwise as sendJSONToServer().
+     *
+     * Synchronized to avoid multiple requests at the same time on the same socket.
+     *
+     * @param request The request to send to the server.
+     *
+     * @throws NullPointerException If the request is null.
+     * @throws IllegalStateException If the client is not connected.
+     * @throws IOException If there is an I/O error sending the request to the server.
+     *
+     */
+    public synchronized void sendRequest(Request request) throws NullPointerException, IllegalStateException, IOException {
+
+        // Null check.
+        if (request == null)
+            throw new NullPointerException("Request to send to the server cannot be null.");
+
+        if (!this.binaryNegotiated) {
+            this.sendJSONToServer(request.toJSONString());
+            return;
+        }
+
+        // No output stream / socket check.
+        if (this.outputStream == null || this.socket == null) {
+            throw new IllegalStateException("Client cannot be disconnected to send a request to the server. Call connectClient() before.");
+        }
+
+        ByteBuffer frame = BinaryProtocol.encodeRequest(request, this.bufferPool);
+        try {
+            this.bout.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+            this.bout.flush();
+        } catch (IOException ex) {
+            throw new IOException("Error sending your request to the server. Ignoring it.");
+        } finally {
+            this.bufferPool.release(frame);
+        }
+
+    }
+
+    /**
+     *
+     * Sends a request to the server without waiting for its response.
+     *
+     * The request gets a new request id, echoed back by the server in the response.
+     * The returned future is completed by the responses thread when the response is received, so the responses thread must be started (see responsesStart()).
+     * More requests can be sent without waiting, the server handles the requests of a connection in order.
+     * The requests the server ignores (invalid) have no response, so their futures are never completed, use a timeout.
+     * The futures still pending when the server closes the connection are completed exceptionally.
+     *
+     * @param action The action requested.
+     * @param values The values for the action, request dependent.
+     *
+     * @return The future of the response. The responses of the requests throttled or rejected by the server have no action type (see Response.getType()).
+     *
+     * @throws NullPointerException If the action is null.
+     * @throws IllegalStateException If the client is not connected.
+     * @throws IOException If there is an I/O error sending the request to the server.
+     *
+     */
+    public CompletableFuture<Response> sendRequestAsync(ClientActionsUtils.ClientActions action, Object values) throws NullPointerException, IllegalStateException, IOException {
+
+        Long requestId = this.nextRequestId.getAndIncrement();
+        Request request = new Request(action, values, requestId);
+
+        CompletableFuture<Response> future = new CompletableFuture<>();
+        this.pendingRequests.put(requestId, future);
+        try {
+            this.sendRequest(request);
+        } catch (IllegalStateException | IOException ex) {
+            this.pendingRequests.remove(requestId);
+            throw ex;
+        }
+        return future;
+
+    }
+    /**
+     *
+     * Completes the future of an async request with its response.
+     *
+     * Visible only to the package, used only in the ResponsesThread class.
+     *
+     * @param response The response received.
+     *
+     * @return True if the response was of an async request, false otherwise (e.g. a request of the CLI, without a request id).
+     *
+     */
+    Boolean completeRequest(Response response) {
+
+        if (response.getRequestId() == null) {
+            return false;
+        }
+        CompletableFuture<Response> future = this.pendingRequests.remove(response.getRequestId());
+        if (future == null) {
+            return false;
+        }
+        future.complete(response);
+        return true;
+
+    }
+    /**
+     *
+     * Completes exceptionally the futures of all the async requests still waiting for their responses.
+     *
+     * Visible only to the package, used only in the ResponsesThread class when the server closes the connection.
+     *
+     * @param ex The exception.
+     *
+     */
+    void failPendingRequests(Throwable ex) {
+
+        for (Long requestId : this.pendingRequests.keySet()) {
+            CompletableFuture<Response> future = this.pendingRequests.remove(requestId);
+            if (future != null) {
+                future.completeExceptionally(ex);
+            }
+        }
+
+    }
+
+    /**
+     *
+     * Negotiates the binary protocol with the server, just after the connection.
+     *
+     * Sends the hello and waits for its answer, for at most HELLO_TIMEOUT_MILLIS.
+     * A server without the binary protocol waits for the end of a JSON line instead of answering, so the hello is terminated and ignored as an invalid request.
+     * Another answer (e.g. the server busy response of a rejected connection) is left to the responses thread.
+     *
+     * @return True if the binary protocol is used, false if the connection stays in JSON.
+     *
+     * @throws IOException If there is an I/O error, or the server doesn't support the client's version.
+     *
+     */
+    private Boolean negotiateBinaryProtocol() throws IOException {
+
+        this.bout.write(BinaryProtocol.MAGIC);
+        this.bout.write(BinaryProtocol.VERSION);
+        this.bout.flush();
+
+        int timeout = this.socket.getSoTimeout();
+        this.socket.setSoTimeout(HELLO_TIMEOUT_MILLIS);
+        try {
+            this.bin.mark(BinaryProtocol.HELLO_LENGTH);
+            int magic = this.bin.read();
+            int version = this.bin.read();
+            if (magic == (BinaryProtocol.MAGIC & 0xFF) && version != -1) {
+                if (version == BinaryProtocol.NO_VERSION) {
+                    throw new IOException("Binary protocol version not supported by the server.");
+                }
+                return true;
+            }
+            this.bin.reset();
+            return false;
+        } catch (SocketTimeoutException ex) {
+            this.bout.write('\n');
+            this.bout.flush();
+            return false;
+        } finally {
+            this.socket.setSoTimeout(timeout);
+        }
+
     }
 
     // CLI
@@ -566,6 +854,18 @@ public class Client {
 
         return this.serverAddress;
 
+    }
+    /**
+     *
+     * Check if the binary protocol is used on the current connection.
+     *
+     * @return Boolean, true if the binary protocol was negotiated, false if the connection uses JSON.
+     *
+     */
+    public Boolean isBinaryProtocol() {
+
+        return this.binaryNegotiated;
+
     }
     /**
      *
@@ -3,6 +3,7 @@ package cross.client;
 import cross.api.requests.Request;
 import cross.api.requests.orders.CancelRequest;
 import cross.api.requests.orders.CreateRequest;
+import cross.api.requests.orders.UserOrdersRequest;
 import cross.api.requests.pricehistory.PriceHistoryRequest;
 import cross.api.requests.user.LogoutRequest;
 import cross.api.requests.user.RegisterLoginRequest;
@@ -353,6 +354,9 @@ abstract class ClientCLICommandParser {
                     parsedArgs.add(monthyear);
                     break;
 
+                case GET_OPEN_ORDERS:
+                case GET_MY_TRADES:
+                case GET_BALANCES:
                 case EXIT:
                     // No arguments to parse.
 
@@ -555,6 +559,13 @@ abstract class ClientCLICommandParser {
                     request = new Request(ClientActions.GET_PRICE_HISTORY, priceHistoryRequest);
                     break;
 
+                case GET_OPEN_ORDERS:
+                case GET_MY_TRADES:
+                case GET_BALANCES:
+                    // No arguments, the user is the one logged in with the connection.
+                    request = new Request(action, new UserOrdersRequest());
+                    break;
+
                 case EXIT:
                     // No arguments to parse.
                     request = new Request(ClientActions.EXIT, null);
@@ -24,9 +24,9 @@ import cross.utils.ClientActionsUtils.ClientActions;
 
         parseArgs -> ClientCLICommandParser -> CROSS OBJECTS
 
-        getJSONRequest -> ClientCLICommandParser -> APIs OBJECTS-> JSON STRING
+        getRequest -> ClientCLICommandParser -> APIs OBJECTS
 
-        sendJSONToServer -> Client
+        sendRequest -> Client -> JSON STRING OR BINARY FRAME
         
  * 
  */
@@ -371,12 +371,9 @@ class ClientCLIThread extends Thread {
         }
         // IllegalStateException HERE IS DIFFERENT, must be catched before.
 
-        // Get the JSON request as string.
-        String jsonToSend = ClientCLICommandParser.getJSONRequest(request);
-
-        // Send the JSON request to the server.
+        // Send the request to the server, in the protocol of the connection.
         try {
-            this.client.sendJSONToServer(jsonToSend);
+            this.client.sendRequest(request);
             System.out.println("Request succesfully sent to the server.");
         } catch (IllegalStateException ex) {
             // This is a critical error.
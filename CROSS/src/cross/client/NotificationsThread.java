@@ -5,6 +5,11 @@ import cross.api.notifications.Trade;
 
 import java.io.IOException;
 import java.net.DatagramPacket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Objects;
+import java.util.TreeMap;
 
 /**
  *
@@ -12,20 +17,57 @@ import java.net.DatagramPacket;
  * It's a dedicated thread, started with the notificationsStart() method from the Client class.
  *
  * It has an associated client that will be used to read from the UDP socket the notifications.
- * 
+ *
  * The notifications are received from the server with UDP and DatagramSocket.
  *
+ * UDP may lose, duplicate and reorder the datagrams, so each notification datagram of the server has a sequence number, increasing by one for the user.
+ * The datagrams are printed in their sequence order: the duplicates are ignored and the ones after a gap are kept, while the gap is asked again
+ * to the server ("retransmit <from> <to>", on the same port of the registration).
+ * If the gap is not filled after some retransmissions, or the server answers it as lost, the missing datagrams are reported as lost and skipped.
+ * A notification too large for a datagram is split by the server in parts, printed together once all of them are received.
+ * Each sequence of the server has an epoch, greater for a new sequence (the server restarted, or the user logged in again), that restarts from 1.
+ * So also the first datagram received starts from 1: if it's after 1, the datagrams before it are a gap, asked again as the others.
+ * The datagrams of an older epoch are late duplicates, ignored.
+ *
+ * The notifications without a sequence number, from an older server, are printed as they are received.
+ *
  * @version 1.0
  * @author Giulio Nisi
  *
  * @see Client
- * 
+ * @see Notification
+ *
  */
 class NotificationsThread extends Thread {
-    
+
+    // Receive buffer, the max UDP payload, so a datagram is never truncated.
+    private static final int BUFFER_BYTES = 65507;
+
+    // Time to wait for a gap to be filled before asking it again to the server, in milliseconds.
+    private static final int GAP_TIMEOUT_MILLIS = 200;
+    // Retransmissions asked for a gap before reporting it as lost.
+    private static final int MAX_RETRANSMISSIONS = 3;
+    // Datagrams after a gap kept at most, the history of the server, the older gap is reported as lost over it.
+    private static final int MAX_PENDING = 256;
+
+    // Max time to wait for the response of an order of a notification, arriving after the notification, in milliseconds.
+    private static final long EXECUTED_ORDER_WAIT_MILLIS = 1000;
+
     // The client object that will be used with this thread to receive notifications from the server.
     private final Client client;
 
+    // Epoch and sequence number of the next datagram to print, null before the first one.
+    private Long epoch = null;
+    private Long expectedSeq = null;
+    // Datagrams received after a gap, by sequence number.
+    private final TreeMap<Long, Notification> pending = new TreeMap<>();
+    // When the current gap has been detected or asked again, in nanoseconds, and the retransmissions asked for it.
+    private long gapNanos = 0;
+    private int retransmissions = 0;
+
+    // Parts received of the notification split, in order.
+    private final ArrayList<Notification> parts = new ArrayList<>();
+
     /**
      *
      * Constructor of the class.
@@ -52,10 +94,8 @@ class NotificationsThread extends Thread {
         // Registration for receiving notifications.
         // These REGISTER data is not about UDP, it's about TCP, used to link the TCP socket with the user authentication and the notifications system server-side.
         String registerMessage = String.format("register %s:%d", client.getSocket().getInetAddress().getHostAddress(), client.getSocket().getLocalPort());
-        byte[] data = registerMessage.getBytes();
-        DatagramPacket regPacket = new DatagramPacket(data, data.length, client.getServerAddress(), client.getServerNotificationsPort());
         try {
-            client.getDatagramSocket().send(regPacket);
+            this.sendToServer(registerMessage);
             System.out.println("Registration message sent to the server for receiving notifications.");
         } catch (IOException ex) {
             // Since this is a dedicated thread, I don't backward the exception.
@@ -64,12 +104,22 @@ class NotificationsThread extends Thread {
             return;
         }
 
+        // Woken up periodically to check the gaps, even without datagrams.
+        try {
+            client.getDatagramSocket().setSoTimeout(GAP_TIMEOUT_MILLIS);
+        } catch (SocketException ex) {
+            System.err.println("Error while setting the timeout of the notifications socket. The lost notifications will be detected only receiving the next ones.");
+        }
+
+        byte[] buffer = new byte[BUFFER_BYTES];
         while (!Thread.currentThread().isInterrupted()) {
-            
-            byte[] buffer = new byte[1024];
+
             DatagramPacket receivePacket = new DatagramPacket(buffer, buffer.length);
             try {
                 client.getDatagramSocket().receive(receivePacket);
+            } catch (SocketTimeoutException ex) {
+                this.checkGap();
+                continue;
             } catch (IOException ex) {
                 // Since this is a dedicated thread, I don't backward the exception.
                 try {
@@ -82,51 +132,210 @@ class NotificationsThread extends Thread {
                 // Trying to continue the thread ignoring the exception.
                 continue;
             }
-            
+
+            if (receivePacket.getLength() == buffer.length) {
+                System.err.println("The notification received from the server is too large and has been truncated. Continuing...");
+                continue;
+            }
+
             String JSONnotification = new String(receivePacket.getData(), 0, receivePacket.getLength());
-            //System.out.println("DEBUG: JSONnotification " + JSONnotification);
-            
+
             Notification notification;
             try {
                 notification = new Notification(JSONnotification);
             } catch (IllegalArgumentException ex) {
-                ex.printStackTrace();
                 // Since this is a dedicated thread, I don't backward the exception.
                 System.err.println("The JSON notification received from the server is not valid. Continuing...");
                 // Trying to continue the thread ignoring the exception.
                 continue;
             }
 
-            Long orderId = null;
-            // attemps is needed because the notification may arrive before the order is saved in the executed list.
-            // a more elegant solution would be to wait for the order to be saved in the executed list before printing the notification.
-            // but that implementation would be more complex and it's not worth it since all is just for a pretty print.
-            // this is a simple solution that works, wait 1 second x5 times and try to find the order in the executed list.
-            // if the order is not found, it will print the notification without the pretty print.
-            Integer attempts = 5;
-            while (true) {
-                for (Trade trade : notification.getTrades()) {
-                    Long cmpOrderId = Long.valueOf(trade.getOrderId().longValue());
-                    if (client.containsExecutedOrder(cmpOrderId)) {
-                        orderId = trade.getOrderId().longValue();
-                        break;
-                    }
-                }
-                if (orderId != null || attempts == 0) break;
-                try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException ex) {
-                }
-                attempts--;
+            if (notification.getSeq() == null) {
+                // Older server, without sequence numbers.
+                this.printNotification(notification);
+                continue;
             }
-            synchronized (Client.clientCLI.buffer) {
-                System.out.printf("\nServer notification ->\n\n");
-                System.out.println(notification.toString(orderId));
-                System.out.print("Client CLI -> " + Client.clientCLI.buffer.toString());
+            this.receive(notification);
+            this.checkGap();
+
+        }
+
+    }
+
+    // SEQUENCING
+    // Orders a datagram received by its sequence number.
+    private void receive(Notification notification) {
+
+        long seq = notification.getSeq();
+        Long epoch = notification.getEpoch();
+
+        if (this.expectedSeq == null) {
+            // The first datagram, the ones before it of its epoch are a gap.
+            // Without an epoch (older server) the sequence starts from it.
+            this.epoch = epoch;
+            this.expectedSeq = epoch != null ? 1L : seq;
+        } else if (epoch != null && (this.epoch == null || epoch > this.epoch)) {
+            // A new sequence of the server, from 1, the datagrams before this one are a gap.
+            this.epoch = epoch;
+            this.expectedSeq = 1L;
+            this.pending.clear();
+            this.parts.clear();
+        } else if (!Objects.equals(epoch, this.epoch)) {
+            // A late datagram of an older sequence.
+            return;
+        }
+
+        if (seq < this.expectedSeq || this.pending.containsKey(seq)) {
+            // Duplicated, or retransmitted after received.
+            return;
+        }
+
+        if (seq > this.expectedSeq) {
+            // After a gap, kept until the gap is filled.
+            if (this.pending.isEmpty()) {
+                this.gapNanos = System.nanoTime();
+                this.retransmissions = 0;
+            }
+            this.pending.put(seq, notification);
+            if (this.pending.size() > MAX_PENDING) {
+                this.skipGap();
             }
+            return;
+        }
+
+        this.deliver(notification);
+        this.expectedSeq++;
+        this.drainPending();
+
+    }
+    // Prints the datagrams kept after the gap filled, until the next gap.
+    private void drainPending() {
+
+        Notification next;
+        while ((next = this.pending.remove(this.expectedSeq)) != null) {
+            this.deliver(next);
+            this.expectedSeq++;
+        }
 
+        if (!this.pending.isEmpty()) {
+            // A new gap.
+            this.gapNanos = System.nanoTime();
+            this.retransmissions = 0;
+        }
+
+    }
+    // Asks the current gap again to the server, or skips it after the max retransmissions.
+    private void checkGap() {
+
+        if (this.pending.isEmpty() || System.nanoTime() - this.gapNanos < GAP_TIMEOUT_MILLIS * 1_000_000L) {
+            return;
+        }
+
+        if (this.retransmissions >= MAX_RETRANSMISSIONS) {
+            this.skipGap();
+            return;
+        }
+
+        String retransmitMessage = String.format("retransmit %d %d", this.expectedSeq, this.pending.firstKey() - 1);
+        try {
+            this.sendToServer(retransmitMessage);
+        } catch (IOException ex) {
+            // Since this is a dedicated thread, I don't backward the exception.
+            System.err.println("Error while asking the lost notifications to the server. Continuing...");
+        }
+        this.retransmissions++;
+        this.gapNanos = System.nanoTime();
+
+    }
+    // Reports the current gap as lost and prints the datagrams after it.
+    private void skipGap() {
+
+        long lastLost = this.pending.firstKey() - 1;
+        this.printLost(this.expectedSeq, lastLost);
+        this.expectedSeq = lastLost + 1;
+        this.parts.clear();
+        this.drainPending();
+
+    }
+    // Prints a datagram in sequence, joining the parts of a notification split.
+    private void deliver(Notification notification) {
+
+        if (notification.isLost()) {
+            this.printLost(notification.getSeq(), notification.getSeq());
+            this.parts.clear();
+            return;
+        }
+
+        if (notification.getPart() == null) {
+            this.printNotification(notification);
+            return;
+        }
+
+        if (notification.getPart() == 1) {
+            this.parts.clear();
+        }
+        if (notification.getPart() != this.parts.size() + 1) {
+            // A part before lost, the notification cannot be joined.
+            this.parts.clear();
+            return;
+        }
+        this.parts.add(notification);
+        if (this.parts.size() < notification.getParts()) {
+            return;
+        }
+
+        Notification joined = new Notification();
+        for (Notification part : this.parts) {
+            for (Trade trade : part.getTrades()) {
+                joined.addTrade(trade);
+            }
+        }
+        this.parts.clear();
+        this.printNotification(joined);
+
+    }
+
+    // SUPPORT METHODS
+    private void sendToServer(String message) throws IOException {
+
+        byte[] data = message.getBytes();
+        DatagramPacket packet = new DatagramPacket(data, data.length, client.getServerAddress(), client.getServerNotificationsPort());
+        client.getDatagramSocket().send(packet);
+
+    }
+    private void printNotification(Notification notification) {
+
+        // The notification may arrive before the response of its order, saved in the executed list.
+        // Waiting for it a bounded time, if the order is not found, it will print the notification without the pretty print.
+        ArrayList<Long> orderIds = new ArrayList<>();
+        for (Trade trade : notification.getTrades()) {
+            orderIds.add(Long.valueOf(trade.getOrderId().longValue()));
+        }
+        Long orderId = null;
+        try {
+            orderId = client.awaitExecutedOrder(orderIds, EXECUTED_ORDER_WAIT_MILLIS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (Client.clientCLI.buffer) {
+            System.out.printf("\nServer notification ->\n\n");
+            System.out.println(notification.toString(orderId));
+            System.out.print("Client CLI -> " + Client.clientCLI.buffer.toString());
+        }
+
+    }
+    private void printLost(long fromSeq, long toSeq) {
+
+        synchronized (Client.clientCLI.buffer) {
+            if (fromSeq == toSeq) {
+                System.err.printf("\nServer notification %d lost, some trades may not be shown.\n", fromSeq);
+            } else {
+                System.err.printf("\nServer notifications from %d to %d lost, some trades may not be shown.\n", fromSeq, toSeq);
+            }
+            System.out.print("Client CLI -> " + Client.clientCLI.buffer.toString());
         }
 
     }
 
-}
\ No newline at end of file
+}
@@ -1,12 +1,20 @@
 package cross.client;
 
 import cross.api.responses.Response;
+import cross.api.responses.orders.BalancesResponse;
 import cross.api.responses.orders.CancelResponse;
 import cross.api.responses.orders.ExecutionResponse;
+import cross.api.responses.orders.MyTradesResponse;
+import cross.api.responses.orders.OpenOrdersResponse;
 import cross.api.responses.pricehistory.PriceHistoryResponse;
 import cross.api.responses.user.UserResponse;
 import cross.utils.ClientActionsUtils.ClientActions;
+import cross.api.binary.BinaryFrame;
+import cross.api.binary.BinaryProtocol;
 import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.NoSuchElementException;
 import java.util.Scanner;
 
@@ -68,6 +76,27 @@ class ResponsesThread extends Thread {
             return;
         }
 
+        if (client.isBinaryProtocol()) {
+            this.readFrames(bin);
+        } else {
+            this.readLines(bin);
+        }
+
+        System.out.println("\nServer closed the connection.");
+        client.failPendingRequests(new IOException("Server closed the connection."));
+        System.exit(0);
+
+    }
+
+    /**
+     *
+     * Reads the responses of the JSON protocol, '\n' terminated, until the server closes the connection.
+     *
+     * @param bin The buffered input stream of the client's socket.
+     *
+     */
+    private void readLines(BufferedInputStream bin) {
+
         try (Scanner scanner = new Scanner(bin)) {
             
             String JSONresponse;
@@ -90,56 +119,143 @@ class ResponsesThread extends Thread {
                     continue;
                 }
 
-                synchronized (Client.clientCLI.buffer) {
-                    System.out.printf("\nServer response -> ");
-                    switch (response.getType()) {
-                        // All these cases are for the user's data requests and handled in the same way.
-                        case REGISTER, LOGIN, UPDATE_CREDENTIALS, LOGOUT, CANCEL_ORDER -> {
-                            Integer code;
-                            String message;
-                            if (response.getType() == ClientActions.CANCEL_ORDER) {
-                                CancelResponse cancelResponse = (CancelResponse) response.getResponse();
-                                code = cancelResponse.getResponseCode().getCode();
-                                message = cancelResponse.getMessage();
-                            }else {
-                                UserResponse userResponse = (UserResponse) response.getResponse();
-                                code = userResponse.getResponseCode().getCode();
-                                message = userResponse.getMessage();
-                            }
-                            if (code == 100) {
-                                System.out.println("Code: " + code + " Message: " + message);
-                            } else {
-                                System.err.println("Code: " + code + " Message: " + message);
-                            }
-                        }
-                        // Limit and stop orders execution responses are also handled here for simplicity.
-                        // Since they have the same response format with only the orderId.
-                        case INSERT_MARKET_ORDER -> {
-                            ExecutionResponse executionResponse = (ExecutionResponse) response.getResponse();
-                            Number orderId = executionResponse.getOrderId();
-                            if (orderId.intValue() == -1) {
-                                System.err.println("Error. Order ID: " + orderId);
-                            } else {
-                                System.out.println("OK. Order ID: " + orderId);
-                                client.addExecutedOrder(Long.valueOf(orderId.longValue()));
-                            }
-                        }
-                        case GET_PRICE_HISTORY -> {
-                            PriceHistoryResponse priceHistoryResponse = (PriceHistoryResponse) response.getResponse();
-                            System.out.println("\n" + priceHistoryResponse.toString());
-                        }
-                        default -> System.err.println("The received response type got from the server is not valid.");
-                    }
+                this.handleResponse(response);
 
-  
-                    System.out.print("Client CLI -> " + Client.clientCLI.buffer);
+            }
+
+        }
+
+    }
+    /**
+     *
+     * Reads the responses of the binary protocol, length prefixed frames, until the server closes the connection.
+     *
+     * The frames are read in a reused buffer and decoded in a reused frame.
+     *
+     * @param bin The buffered input stream of the client's socket.
+     *
+     */
+    private void readFrames(BufferedInputStream bin) {
+
+        byte[] frameBytes = new byte[1024];
+        ByteBuffer frameBuffer = ByteBuffer.wrap(frameBytes).order(ByteOrder.LITTLE_ENDIAN);
+        BinaryFrame frame = new BinaryFrame();
+
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+
+                if (bin.readNBytes(frameBytes, 0, BinaryProtocol.LENGTH_PREFIX) < BinaryProtocol.LENGTH_PREFIX) {
+                    return;
                 }
+                int length = frameBuffer.getInt(0);
+                if (length < 1 || length > BinaryProtocol.MAX_FRAME_LENGTH) {
+                    System.err.println("The binary response received from the server is not valid. Closing...");
+                    return;
+                }
+                if (BinaryProtocol.LENGTH_PREFIX + length > frameBytes.length) {
+                    byte[] larger = new byte[BinaryProtocol.LENGTH_PREFIX + length];
+                    System.arraycopy(frameBytes, 0, larger, 0, BinaryProtocol.LENGTH_PREFIX);
+                    frameBytes = larger;
+                    frameBuffer = ByteBuffer.wrap(frameBytes).order(ByteOrder.LITTLE_ENDIAN);
+                }
+                if (bin.readNBytes(frameBytes, BinaryProtocol.LENGTH_PREFIX, length) < length) {
+                    return;
+                }
+                frameBuffer.clear().limit(BinaryProtocol.LENGTH_PREFIX + length);
+
+                Response response;
+                try {
+                    BinaryProtocol.getFrame(frameBuffer, frame);
+                    response = BinaryProtocol.toResponse(frame);
+                } catch (IllegalArgumentException ex) {
+                    // Since this is a dedicated thread, I don't backward the exception.
+                    System.err.println("The binary response received from the server is not valid. Continuing...");
+                    continue;
+                }
+
+                this.handleResponse(response);
 
             }
-        
-            System.out.println("\nServer closed the connection.");
-            System.exit(0);
+        } catch (IOException ex) {
+            // Handled as the connection closed.
+        }
 
+    }
+    /**
+     *
+     * Handles a response received, completing its async request or printing it.
+     *
+     * @param response The response.
+     *
+     */
+    private void handleResponse(Response response) {
+
+        // A response of an async request, handled by its future and not printed.
+        if (client.completeRequest(response)) {
+            return;
+        }
+
+        synchronized (Client.clientCLI.buffer) {
+            System.out.printf("\nServer response -> ");
+            // A request throttled by the server's rate limits, it has no action type.
+            if (response.getType() == null && response.getResponse() instanceof UserResponse userResponse) {
+                System.err.println("Code: " + userResponse.getResponseCode().getCode() + " Message: " + userResponse.getMessage());
+                System.out.print("Client CLI -> " + Client.clientCLI.buffer);
+                return;
+            }
+            switch (response.getType()) {
+                // All these cases are for the user's data requests and handled in the same way.
+                case REGISTER, LOGIN, UPDATE_CREDENTIALS, LOGOUT, CANCEL_ORDER -> {
+                    Integer code;
+                    String message;
+                    if (response.getType() == ClientActions.CANCEL_ORDER) {
+                        CancelResponse cancelResponse = (CancelResponse) response.getResponse();
+                        code = cancelResponse.getResponseCode().getCode();
+                        message = cancelResponse.getMessage();
+                    }else {
+                        UserResponse userResponse = (UserResponse) response.getResponse();
+                        code = userResponse.getResponseCode().getCode();
+                        message = userResponse.getMessage();
+                    }
+                    if (code == 100) {
+                        System.out.println("Code: " + code + " Message: " + message);
+                    } else {
+                        System.err.println("Code: " + code + " Message: " + message);
+                    }
+                }
+                // Limit and stop orders execution responses are also handled here for simplicity.
+                // Since they have the same response format with only the orderId.
+                case INSERT_MARKET_ORDER -> {
+                    ExecutionResponse executionResponse = (ExecutionResponse) response.getResponse();
+                    Number orderId = executionResponse.getOrderId();
+                    if (orderId.intValue() == -1) {
+                        System.err.println("Error. Order ID: " + orderId);
+                    } else {
+                        System.out.println("OK. Order ID: " + orderId);
+                        client.addExecutedOrder(Long.valueOf(orderId.longValue()));
+                    }
+                }
+                case GET_OPEN_ORDERS -> {
+                    OpenOrdersResponse openOrdersResponse = (OpenOrdersResponse) response.getResponse();
+                    System.out.println("\n" + openOrdersResponse.toString());
+                }
+                case GET_MY_TRADES -> {
+                    MyTradesResponse myTradesResponse = (MyTradesResponse) response.getResponse();
+                    System.out.println("\n" + myTradesResponse.toString());
+                }
+                case GET_BALANCES -> {
+                    BalancesResponse balancesResponse = (BalancesResponse) response.getResponse();
+                    System.out.println("\n" + balancesResponse.toString());
+                }
+                case GET_PRICE_HISTORY -> {
+                    PriceHistoryResponse priceHistoryResponse = (PriceHistoryResponse) response.getResponse();
+                    System.out.println("\n" + priceHistoryResponse.toString());
+                }
+                default -> System.err.println("The received response type got from the server is not valid.");
+            }
+
+  
+            System.out.print("Client CLI -> " + Client.clientCLI.buffer);
         }
 
     }
@@ -0,0 +1,344 @@
+package cross.logging;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+/**
+ *
+ * This class is the logging facade of the server, used instead of System.out and System.err.
+ *
+ * Each message has a level and a category, a message is logged only if its level is at least the level of its category.
+ * The check is a single array read, done before building the message: the formats are applied only to the messages logged, and the supplied messages are built only if logged.
+ * So a disabled message on the hot path costs nothing more than the check.
+ *
+ * By default the messages are written directly by the calling thread.
+ * After startAsync(), the messages are put in a lock-free ring buffer and written by a background thread (see LogAppenderThread).
+ * So the threads logging don't wait for the console, whose streams are synchronized, nor for each other.
+ * If the ring buffer is full, the messages are dropped and counted, never blocking the caller.
+ *
+ * Each message is a single line: the time, the level, the category, the thread and the message.
+ * The WARN and ERROR messages are written on the standard error, the others on the standard output.
+ *
+ * Thread safe.
+ *
+ * @version 1.0
+ * @author Giulio Nisi
+ *
+ * @see LogAppenderThread
+ *
+ */
+public abstract class Log {
+
+    // Levels of the messages, in increasing order of severity.
+    // OFF is only a category's level, to disable all its messages.
+    public static enum Level {
+
+        DEBUG,
+        INFO,
+        WARN,
+        ERROR,
+        OFF
+
+    }
+
+    // Categories of the messages, each with its level.
+    public static enum Category {
+
+        // Connections, requests and notifications.
+        NETWORK,
+        // Order books and orders' execution.
+        ENGINE,
+        // Databases, orders journal and order book snapshots.
+        PERSISTENCE,
+        // Server's startup and configuration.
+        SERVER
+
+    }
+
+    // Min level logged of each category, by ordinals.
+    // Replaced as a whole when a level changes, so reading it needs no lock.
+    private static volatile int[] thresholds = Log.allThresholds(Level.INFO);
+
+    // Background writer of the messages, null if the messages are written directly.
+    private static volatile LogAppenderThread appender = null;
+
+    /**
+     *
+     * Sets the level of all the categories.
+     *
+     * @param level The min level logged.
+     *
+     * @throws NullPointerException If the level is null.
+     *
+     */
+    public static synchronized void setLevel(Level level) throws NullPointerException {
+
+        // Null check.
+        if (level == null) {
+            throw new NullPointerException("Level of the log cannot be null.");
+        }
+
+        thresholds = Log.allThresholds(level);
+
+    }
+    /**
+     *
+     * Sets the level of a category.
+     *
+     * @param category The category.
+     * @param level The min level logged of the category.
+     *
+     * @throws NullPointerException If the category or the level are null.
+     *
+     */
+    public static synchronized void setLevel(Category category, Level level) throws NullPointerException {
+
+        // Null check.
+        if (category == null || level == null) {
+            throw new NullPointerException("Category and level of the log cannot be null.");
+        }
+
+        int[] updated = thresholds.clone();
+        updated[category.ordinal()] = level.ordinal();
+        thresholds = updated;
+
+    }
+    /**
+     *
+     * Gets the level of a category.
+     *
+     * @param category The category.
+     *
+     * @return The min level logged of the category.
+     *
+     * @throws NullPointerException If the category is null.
+     *
+     */
+    public static Level getLevel(Category category) throws NullPointerException {
+
+        // Null check.
+        if (category == null) {
+            throw new NullPointerException("Category of the log cannot be null.");
+        }
+
+        return Level.values()[thresholds[category.ordinal()]];
+
+    }
+    /**
+     *
+     * Checks if the messages of a level and a category are logged.
+     *
+     * To be used before building a message expensive to build, not passed as a supplier.
+     *
+     * @param category The category.
+     * @param level The level of the messages.
+     *
+     * @return True if the messages are logged, false otherwise.
+     *
+     */
+    public static Boolean isEnabled(Category category, Level level) {
+
+        return level.ordinal() >= thresholds[category.ordinal()] && level != Level.OFF;
+
+    }
+
+    /**
+     *
+     * Starts writing the messages in the background, from a ring buffer.
+     *
+     * The messages already queued are written before the JVM exits.
+     *
+     * @param bufferSize The messages held by the ring buffer, rounded up to a power of two.
+     *
+     * @throws IllegalArgumentException If the size is not positive.
+     * @throws IllegalStateException If the messages are already written in the background.
+     *
+     */
+    public static synchronized void startAsync(int bufferSize) throws IllegalArgumentException, IllegalStateException {
+
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("The size of the log's ring buffer must be positive.");
+        }
+        if (appender != null) {
+            throw new IllegalStateException("The log is already written in the background.");
+        }
+
+        LogAppenderThread started = new LogAppenderThread(bufferSize);
+        started.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::stopAsync));
+        appender = started;
+
+    }
+    /**
+     *
+     * Stops writing the messages in the background, after writing the ones queued.
+     *
+     * The next messages are written directly. Does nothing if the messages are already written directly.
+     *
+     */
+    public static synchronized void stopAsync() {
+
+        LogAppenderThread stopped = appender;
+        if (stopped == null) {
+            return;
+        }
+        appender = null;
+        stopped.shutdown();
+
+    }
+    /**
+     *
+     * Checks if the messages are written in the background.
+     *
+     * @return True if the messages are written in the background, false if they are written directly.
+     *
+     */
+    public static Boolean isAsync() {
+
+        return appender != null;
+
+    }
+    /**
+     *
+     * Waits until the messages already logged are written.
+     *
+     * Returns immediately if the messages are written directly.
+     *
+     */
+    public static void flush() {
+
+        LogAppenderThread current = appender;
+        if (current != null) {
+            current.flush();
+        }
+
+    }
+
+    /**
+     *
+     * Logs a message, formatted only if logged.
+     *
+     * @param category The category.
+     * @param level The level, not OFF.
+     * @param format The message, or its format if there are arguments (see String.format()). A trailing new line is removed.
+     * @param args The arguments of the format.
+     *
+     */
+    public static void log(Category category, Level level, String format, Object... args) {
+
+        if (!Log.isEnabled(category, level)) {
+            return;
+        }
+        Log.write(category, level, args.length == 0 ? format : String.format(format, args));
+
+    }
+    /**
+     *
+     * Logs a message, built only if logged.
+     *
+     * @param category The category.
+     * @param level The level, not OFF.
+     * @param message The supplier of the message.
+     *
+     */
+    public static void log(Category category, Level level, Supplier<String> message) {
+
+        if (!Log.isEnabled(category, level)) {
+            return;
+        }
+        Log.write(category, level, message.get());
+
+    }
+    // Shortcuts of log(), for each level.
+    public static void debug(Category category, String format, Object... args) {
+
+        Log.log(category, Level.DEBUG, format, args);
+
+    }
+    public static void debug(Category category, Supplier<String> message) {
+
+        Log.log(category, Level.DEBUG, message);
+
+    }
+    public static void info(Category category, String format, Object... args) {
+
+        Log.log(category, Level.INFO, format, args);
+
+    }
+    public static void warn(Category category, String format, Object... args) {
+
+        Log.log(category, Level.WARN, format, args);
+
+    }
+    public static void error(Category category, String format, Object... args) {
+
+        Log.log(category, Level.ERROR, format, args);
+
+    }
+
+    // SUPPORT METHODS
+    private static int[] allThresholds(Level level) {
+
+        int[] all = new int[Category.values().length];
+        Arrays.fill(all, level.ordinal());
+        return all;
+
+    }
+    private static void write(Category category, Level level, String message) {
+
+        if (message == null) {
+            message = "null";
+        }
+        if (message.endsWith("\n")) {
+            message = message.substring(0, message.length() - 1);
+        }
+        Entry entry = new Entry(System.currentTimeMillis(), level, category, Thread.currentThread().getName(), message);
+
+        LogAppenderThread current = appender;
+        if (current == null || !current.offer(entry)) {
+            // Written directly, or the background writer is stopping.
+            Log.print(entry.level, entry.format());
+        }
+
+    }
+    // Package-private, used also by the background writer.
+    static void print(Level level, CharSequence lines) {
+
+        if (level.ordinal() >= Level.WARN.ordinal()) {
+            System.err.println(lines);
+        } else {
+            System.out.println(lines);
+        }
+
+    }
+
+    // A message logged, formatted as a line only when written.
+    // Package-private, queued in the ring buffer of the background writer.
+    static final class Entry {
+
+        final long timestamp;
+        final Level level;
+        final Category category;
+        final String thread;
+        final String message;
+
+        Entry(long timestamp, Level level, Category category, String thread, String message) {
+
+            this.timestamp = timestamp;
+            this.level = level;
+            this.category = category;
+            this.thread = thread;
+            this.message = message;
+
+        }
+
+        String format() {
+
+            return String.format("%s %-5s [%s] [%s] %s", Instant.ofEpochMilli(this.timestamp), this.level, this.category.name().toLowerCase(), this.thread, this.message);
+
+        }
+
+    }
+
+}
@@ -0,0 +1,213 @@
+package cross.logging;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import cross.logging.Log.Entry;
+import cross.logging.Log.Level;
+
+/**
+ *
+ * This thread writes the log's messages in the background, see Log.startAsync().
+ *
+ * The messages are queued in a ring buffer, a fixed array of slots, without locks.
+ * A logging thread claims the next slot moving the tail forward with a compareAndSet, then it publishes its message in the slot.
+ * This thread takes the messages in order from the head, freeing their slots, and writes them in batches, a single write for each stream.
+ * If the ring buffer is full, the message is dropped and counted, the count is written with the next batch.
+ *
+ * While the ring buffer is empty this thread parks, and the logging threads wake it up only if it's parked.
+ *
+ * It's a daemon thread, the messages queued are written by the shutdown hook registered by Log.startAsync().
+ *
+ * @version 1.0
+ * @author Giulio Nisi
+ *
+ * @see Log
+ *
+ */
+class LogAppenderThread extends Thread {
+
+    // Max wait while parked, in nanoseconds, if a wake up is missed.
+    private static final long PARK_NANOS = 100_000_000L;
+
+    // Max time to write the messages queued when stopping, in milliseconds.
+    private static final long SHUTDOWN_MILLIS = 5000;
+
+    // Slots of the ring buffer, a power of two, null if free.
+    private final AtomicReferenceArray<Entry> slots;
+    private final int mask;
+
+    // Sequences of the next slot to claim and of the next slot to take, growing forever, the slot is the sequence masked.
+    // The head is moved only by this thread.
+    private final AtomicLong tail = new AtomicLong(0);
+    private volatile long head = 0;
+
+    // Sequence of the next message to write, to wait for the messages written by flush().
+    private volatile long written = 0;
+
+    // Messages dropped with the ring buffer full, not reported yet.
+    private final AtomicLong dropped = new AtomicLong(0);
+
+    // If this thread is parked, or it's going to, waiting for messages.
+    private volatile Boolean parked = false;
+
+    private volatile Boolean isRunning = true;
+
+    /**
+     *
+     * Constructor of the class.
+     *
+     * @param bufferSize The messages held by the ring buffer, rounded up to a power of two.
+     *
+     * @throws IllegalArgumentException If the size is not positive or too large.
+     *
+     */
+    public LogAppenderThread(int bufferSize) throws IllegalArgumentException {
+
+        if (bufferSize <= 0 || bufferSize > (1 << 30)) {
+            throw new IllegalArgumentException("The size of the log's ring buffer must be positive and at most 2^30.");
+        }
+
+        int capacity = Integer.highestOneBit(bufferSize);
+        if (capacity < bufferSize) {
+            capacity <<= 1;
+        }
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+
+        this.setName("log-appender");
+        this.setDaemon(true);
+
+    }
+
+    /**
+     *
+     * Queues a message, without blocking.
+     *
+     * @param entry The message.
+     *
+     * @return True if the message is queued or dropped with the ring buffer full, false if this thread is stopping and the caller must write it.
+     *
+     */
+    public Boolean offer(Entry entry) {
+
+        if (!this.isRunning) {
+            return false;
+        }
+
+        while (true) {
+            long sequence = this.tail.get();
+            if (sequence - this.head > this.mask) {
+                // Full.
+                this.dropped.incrementAndGet();
+                return true;
+            }
+            if (this.tail.compareAndSet(sequence, sequence + 1)) {
+                this.slots.set((int) (sequence & this.mask), entry);
+                break;
+            }
+        }
+
+        if (this.parked) {
+            this.parked = false;
+            LockSupport.unpark(this);
+        }
+        return true;
+
+    }
+
+    /**
+     *
+     * Waits until the messages already queued are written.
+     *
+     */
+    public void flush() {
+
+        long target = this.tail.get();
+        while (this.written < target && this.isAlive()) {
+            LockSupport.unpark(this);
+            LockSupport.parkNanos(100_000L);
+        }
+
+    }
+
+    /**
+     *
+     * Stops the thread, after writing the messages queued.
+     *
+     * The messages logged while stopping are written by the logging threads.
+     *
+     */
+    public void shutdown() {
+
+        this.isRunning = false;
+        LockSupport.unpark(this);
+        try {
+            this.join(SHUTDOWN_MILLIS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+    }
+
+    @Override
+    public void run() {
+
+        StringBuilder out = new StringBuilder();
+        StringBuilder err = new StringBuilder();
+
+        while (true) {
+
+            // The messages published, in order, until a free slot or a slot claimed and not published yet.
+            long sequence = this.head;
+            Entry entry;
+            while ((entry = this.slots.get((int) (sequence & this.mask))) != null) {
+                this.slots.set((int) (sequence & this.mask), null);
+                sequence++;
+                this.head = sequence;
+                StringBuilder lines = entry.level.ordinal() >= Level.WARN.ordinal() ? err : out;
+                if (lines.length() > 0) {
+                    lines.append('\n');
+                }
+                lines.append(entry.format());
+            }
+
+            long lost = this.dropped.getAndSet(0);
+            if (lost > 0) {
+                if (err.length() > 0) {
+                    err.append('\n');
+                }
+                err.append(new Entry(System.currentTimeMillis(), Level.WARN, Log.Category.SERVER, this.getName(), String.format("%d log messages dropped, the log's ring buffer was full.", lost)).format());
+            }
+
+            if (out.length() > 0) {
+                Log.print(Level.INFO, out);
+                out.setLength(0);
+            }
+            if (err.length() > 0) {
+                Log.print(Level.ERROR, err);
+                err.setLength(0);
+            }
+            this.written = sequence;
+
+            if (this.tail.get() != sequence) {
+                // A slot claimed and not published yet, it's going to be.
+                Thread.onSpinWait();
+                continue;
+            }
+            if (!this.isRunning) {
+                break;
+            }
+
+            // Parked only if nothing was queued after declaring it.
+            this.parked = true;
+            if (this.tail.get() == sequence && this.isRunning) {
+                LockSupport.parkNanos(this, PARK_NANOS);
+            }
+            this.parked = false;
+
+        }
+
+    }
+
+}
@@ -0,0 +1,145 @@
+package cross.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * This class is a lock-free histogram of latencies, with power of two buckets in microseconds.
+ *
+ * The bucket i counts the latencies up to 2^i microseconds, from 1 microsecond to about 1 second, the last one counts the latencies over it.
+ * The bucket of a latency is found with a single leading zeros count, without loops nor comparisons.
+ * Each bucket, the count and the sum are LongAdders: the threads recording at the same time update different cells, so they don't contend on a single counter.
+ *
+ * The buckets are read without stopping the recording threads, so a read concurrent with a record can see it in the count but not yet in its bucket.
+ * Good enough for metrics scraped every few seconds.
+ *
+ * Thread safe.
+ *
+ * @version 1.0
+ * @author Giulio Nisi
+ *
+ * @see Metrics
+ *
+ */
+public class LatencyHistogram {
+
+    // Buckets up to 2^20 microseconds (about 1 second), plus the one of the latencies over it.
+    public static final int BUCKETS = 21;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS + 1];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumNanos = new LongAdder();
+
+    /**
+     *
+     * Constructor of the class.
+     *
+     */
+    public LatencyHistogram() {
+
+        for (int i = 0; i < this.buckets.length; i++) {
+            this.buckets[i] = new LongAdder();
+        }
+
+    }
+
+    /**
+     *
+     * Records a latency.
+     *
+     * @param nanos The latency in nanoseconds, the negatives ones are recorded as zero.
+     *
+     */
+    public void record(long nanos) {
+
+        if (nanos < 0) {
+            nanos = 0;
+        }
+
+        this.buckets[LatencyHistogram.bucketOf(nanos)].increment();
+        this.count.increment();
+        this.sumNanos.add(nanos);
+
+    }
+
+    // GETTERS
+    /**
+     *
+     * Getter for the latencies recorded in each bucket, not cumulative.
+     *
+     * @return The counts of the buckets, the last one is the count of the latencies over the last bound.
+     *
+     */
+    public long[] getBuckets() {
+
+        long[] counts = new long[this.buckets.length];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = this.buckets[i].sum();
+        }
+        return counts;
+
+    }
+    /**
+     *
+     * Getter for the number of latencies recorded.
+     *
+     * @return The number of latencies recorded.
+     *
+     */
+    public long getCount() {
+
+        return this.count.sum();
+
+    }
+    /**
+     *
+     * Getter for the sum of the latencies recorded.
+     *
+     * @return The sum of the latencies recorded, in nanoseconds.
+     *
+     */
+    public long getSumNanos() {
+
+        return this.sumNanos.sum();
+
+    }
+
+    // SUPPORT METHODS
+    /**
+     *
+     * Gets the upper bound of a bucket.
+     *
+     * @param bucket The bucket, from 0 to BUCKETS - 1.
+     *
+     * @return The upper bound of the bucket in microseconds.
+     *
+     */
+    public static long upperBoundMicros(int bucket) {
+
+        return 1L << bucket;
+
+    }
+    /**
+     *
+     * Gets the bucket of a latency: the first whose upper bound is not lower than it.
+     *
+     * @param nanos The latency in nanoseconds, not negative.
+     *
+     * @return The bucket of the latency, BUCKETS if it's over the last upper bound.
+     *
+     */
+    static int bucketOf(long nanos) {
+
+        // Rounding up to the microsecond, so no latency is counted in a bucket lower than it.
+        long micros = (nanos + 999) / 1000;
+        if (micros <= 1) {
+            return 0;
+        }
+
+        // Ceiling of the base 2 logarithm.
+        int bucket = 64 - Long.numberOfLeadingZeros(micros - 1);
+        return Math.min(bucket, BUCKETS);
+
+    }
+
+}
@@ -0,0 +1,335 @@
+package cross.metrics;
+
+import cross.utils.ClientActionsUtils.ClientActions;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * This class collects the metrics of the requests handling, exposed by the server in the Prometheus text format (see the AdminServer class).
+ *
+ * It counts the requests of each action, the notifications sent and the ones dropped, and records the latency of each stage of the handling of a request in a histogram.
+ * The counters are LongAdders and the histograms are lock-free (see LatencyHistogram), so the threads handling the requests never wait for each other nor for the scrapes.
+ *
+ * Disabled by default: the server enables it only when the admin endpoint is configured.
+ * Disabled, a stage timer is not even started (no clock read) and a record is a single volatile read, so the metrics cost nothing when not used.
+ *
+ * Thread safe.
+ *
+ * @version 1.0
+ * @author Giulio Nisi
+ *
+ * @see LatencyHistogram
+ * @see ClientActions
+ *
+ */
+public abstract class Metrics {
+
+    // Stages of the handling of a request, each with its latency histogram.
+    public static enum Stage {
+
+        // Parsing of the request line, JSON.
+        PARSE,
+        // Execution of the request, on the order book and the databases, journal included.
+        EXECUTE,
+        // Append of an executed order on the orders journal.
+        JOURNAL,
+        // Encoding of the response and its write on the connection.
+        RESPONSE,
+        // Send of the notifications of a trade, on UDP.
+        NOTIFY
+
+    }
+
+    private static volatile boolean enabled = false;
+
+    // Requests by the ordinal of their action.
+    private static final LongAdder[] requests = Metrics.adders(ClientActions.values().length);
+
+    // Latencies by the ordinal of their stage.
+    private static final LatencyHistogram[] latencies = Metrics.histograms(Stage.values().length);
+
+    // Notifications datagrams sent, and the ones not sent for an I/O error.
+    private static final LongAdder notificationsSent = new LongAdder();
+    private static final LongAdder notificationsDropped = new LongAdder();
+    private static final LongAdder notificationsRetransmitted = new LongAdder();
+
+    /**
+     *
+     * Enables or disables the metrics.
+     *
+     * The values already collected are kept.
+     *
+     * @param enabled True to collect the metrics, false otherwise.
+     *
+     * @throws NullPointerException If enabled is null.
+     *
+     */
+    public static void setEnabled(Boolean enabled) throws NullPointerException {
+
+        // Null check.
+        if (enabled == null) {
+            throw new NullPointerException("Metrics enabled flag cannot be null.");
+        }
+
+        Metrics.enabled = enabled;
+
+    }
+    /**
+     *
+     * Checks if the metrics are collected.
+     *
+     * @return True if the metrics are collected, false otherwise.
+     *
+     */
+    public static Boolean isEnabled() {
+
+        return Metrics.enabled;
+
+    }
+
+    // RECORDING
+    /**
+     *
+     * Starts the timer of a stage.
+     *
+     * @return The start of the stage, to pass to recordLatency(), or zero if the metrics are disabled.
+     *
+     */
+    public static long startTimer() {
+
+        return Metrics.enabled ? System.nanoTime() : 0L;
+
+    }
+    /**
+     *
+     * Records the latency of a stage, from its start to now.
+     *
+     * Does nothing if the timer was not started (metrics disabled at its start).
+     *
+     * @param stage The stage.
+     * @param start The start of the stage, returned by startTimer().
+     *
+     */
+    public static void recordLatency(Stage stage, long start) {
+
+        if (start == 0L) {
+            return;
+        }
+
+        Metrics.latencies[stage.ordinal()].record(System.nanoTime() - start);
+
+    }
+    /**
+     *
+     * Counts a request of an action.
+     *
+     * @param action The action of the request.
+     *
+     */
+    public static void countRequest(ClientActions action) {
+
+        if (Metrics.enabled) {
+            Metrics.requests[action.ordinal()].increment();
+        }
+
+    }
+    /**
+     *
+     * Counts a notification datagram sent.
+     *
+     */
+    public static void countNotificationSent() {
+
+        if (Metrics.enabled) {
+            Metrics.notificationsSent.increment();
+        }
+
+    }
+    /**
+     *
+     * Counts a notification datagram dropped, not sent for an I/O error.
+     *
+     */
+    public static void countNotificationDropped() {
+
+        if (Metrics.enabled) {
+            Metrics.notificationsDropped.increment();
+        }
+
+    }
+    /**
+     *
+     * Counts a notification datagram retransmitted, asked by a client for a gap.
+     *
+     */
+    public static void countNotificationRetransmitted() {
+
+        if (Metrics.enabled) {
+            Metrics.notificationsRetransmitted.increment();
+        }
+
+    }
+
+    // GETTERS
+    /**
+     *
+     * Getter for the requests counted of an action.
+     *
+     * @param action The action.
+     *
+     * @return The requests counted.
+     *
+     */
+    public static long getRequests(ClientActions action) {
+
+        return Metrics.requests[action.ordinal()].sum();
+
+    }
+    /**
+     *
+     * Getter for the latency histogram of a stage.
+     *
+     * @param stage The stage.
+     *
+     * @return The histogram of the stage, still recording.
+     *
+     */
+    public static LatencyHistogram getLatencies(Stage stage) {
+
+        return Metrics.latencies[stage.ordinal()];
+
+    }
+    /**
+     *
+     * Getter for the notifications datagrams sent.
+     *
+     * @return The notifications sent.
+     *
+     */
+    public static long getNotificationsSent() {
+
+        return Metrics.notificationsSent.sum();
+
+    }
+    /**
+     *
+     * Getter for the notifications datagrams dropped.
+     *
+     * @return The notifications dropped.
+     *
+     */
+    public static long getNotificationsDropped() {
+
+        return Metrics.notificationsDropped.sum();
+
+    }
+    /**
+     *
+     * Getter for the notifications datagrams retransmitted.
+     *
+     * @return The datagrams retransmitted.
+     *
+     */
+    public static long getNotificationsRetransmitted() {
+
+        return Metrics.notificationsRetransmitted.sum();
+
+    }
+
+    // PROMETHEUS TEXT FORMAT
+    /**
+     *
+     * Writes the metrics collected in the Prometheus text format (version 0.0.4).
+     *
+     * @param out Where to write the metrics.
+     *
+     */
+    public static void writePrometheus(StringBuilder out) {
+
+        Metrics.writeFamily(out, "cross_requests_total", "counter", "Requests handled, by action.");
+        for (ClientActions action : ClientActions.values()) {
+            Metrics.writeSample(out, "cross_requests_total", "action=\"" + action.name().toLowerCase() + "\"", Metrics.getRequests(action));
+        }
+
+        Metrics.writeFamily(out, "cross_stage_latency_seconds", "histogram", "Latency of the stages of the requests handling.");
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram histogram = Metrics.getLatencies(stage);
+            String stageLabel = "stage=\"" + stage.name().toLowerCase() + "\"";
+            // Read once, so the buckets are coherent with the count written.
+            long[] buckets = histogram.getBuckets();
+            long cumulative = 0;
+            for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+                cumulative += buckets[i];
+                Metrics.writeSample(out, "cross_stage_latency_seconds_bucket", stageLabel + ",le=\"" + (LatencyHistogram.upperBoundMicros(i) / 1e6) + "\"", cumulative);
+            }
+            cumulative += buckets[LatencyHistogram.BUCKETS];
+            Metrics.writeSample(out, "cross_stage_latency_seconds_bucket", stageLabel + ",le=\"+Inf\"", cumulative);
+            out.append("cross_stage_latency_seconds_sum{").append(stageLabel).append("} ").append(histogram.getSumNanos() / 1e9).append('\n');
+            Metrics.writeSample(out, "cross_stage_latency_seconds_count", stageLabel, cumulative);
+        }
+
+        Metrics.writeFamily(out, "cross_notifications_sent_total", "counter", "Notifications datagrams sent.");
+        Metrics.writeSample(out, "cross_notifications_sent_total", null, Metrics.getNotificationsSent());
+        Metrics.writeFamily(out, "cross_notifications_dropped_total", "counter", "Notifications datagrams not sent for an I/O error.");
+        Metrics.writeSample(out, "cross_notifications_dropped_total", null, Metrics.getNotificationsDropped());
+        Metrics.writeFamily(out, "cross_notifications_retransmitted_total", "counter", "Notifications datagrams retransmitted, asked by the clients for the gaps.");
+        Metrics.writeSample(out, "cross_notifications_retransmitted_total", null, Metrics.getNotificationsRetransmitted());
+
+    }
+    /**
+     *
+     * Writes the help and the type lines of a metric family, in the Prometheus text format.
+     *
+     * @param out Where to write the lines.
+     * @param name The name of the family.
+     * @param type The type of the family: counter, gauge or histogram.
+     * @param help The description of the family.
+     *
+     */
+    public static void writeFamily(StringBuilder out, String name, String type, String help) {
+
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+
+    }
+    /**
+     *
+     * Writes a sample of a metric, in the Prometheus text format.
+     *
+     * @param out Where to write the sample.
+     * @param name The name of the metric.
+     * @param labels The labels, already formatted (name="value" separated by commas), null for none.
+     * @param value The value.
+     *
+     */
+    public static void writeSample(StringBuilder out, String name, String labels, long value) {
+
+        out.append(name);
+        if (labels != null) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+
+    }
+
+    // SUPPORT METHODS
+    private static LongAdder[] adders(int size) {
+
+        LongAdder[] adders = new LongAdder[size];
+        for (int i = 0; i < size; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+
+    }
+    private static LatencyHistogram[] histograms(int size) {
+
+        LatencyHistogram[] histograms = new LatencyHistogram[size];
+        for (int i = 0; i < size; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+        return histograms;
+
+    }
+
+}
@@ -1,21 +1,38 @@
 package cross.orderbook;
 
 import cross.api.notifications.Notification;
+import cross.api.notifications.Trade;
+import cross.api.responses.orders.Balance;
 import cross.exceptions.InvalidOrder;
+import cross.logging.Log;
+import cross.logging.Log.Category;
+import cross.logging.Log.Level;
+import cross.orderbook.db.DBOrderBookEvents;
+import cross.orderbook.db.OrderBookSnapshot;
 import cross.orders.LimitOrder;
 import cross.orders.MarketOrder;
 import cross.orders.Order;
+import cross.orders.OrderType;
 import cross.orders.StopOrder;
+import cross.orders.db.DBOrdersInterface;
 import cross.types.Currency;
 import cross.types.Quantity;
 import cross.types.price.GenericPrice;
 import cross.types.price.PriceType;
 import cross.types.price.SpecificPrice;
+import cross.users.User;
 import cross.users.db.Users;
 import cross.utils.Separator;
+import cross.utils.UniqueNumber;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.NavigableMap;
 import java.util.TreeMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  *
@@ -72,6 +89,13 @@ public class OrderBook implements Comparable<OrderBook> {
     private TreeMap<SpecificPrice, OrderBookLine<StopOrder>> stopBook = null;
 
     private final LinkedList<MarketOrder> stopNowMarketOrdersToExecute = new LinkedList<>();
+    // Lock of the stop, now market orders list, with the condition signalled when the list changes, to synchronize with the StopOrdersExecutorThread.
+    private final ReentrantLock stopNowLock = new ReentrantLock();
+    private final Condition stopNowChanged = this.stopNowLock.newCondition();
+
+    // Lock of the order book, taken by every operation on the books, the best prices and the users' orders.
+    // A ReentrantLock, see ClientThread.
+    private final ReentrantLock bookLock = new ReentrantLock();
 
     // Technically the order book contains only the limit orders.
     // The majority of the brokers not show the stop orders in the order book.
@@ -90,8 +114,26 @@ public class OrderBook implements Comparable<OrderBook> {
     // So, for example, if the increment is 1, the prices could be 1, 2, 3, 4, 5, ...
     private final GenericPrice increment;
 
+    // Per-user index of the resting orders and of the recent fills, by username.
+    // Maintained incrementally while holding the lock on the book, so the user's queries never scan the book.
+    private final HashMap<String, UserOrders> usersOrders = new HashMap<>();
+
+    // Per-user exposure limits on the resting orders, zero for no limit.
+    private Integer maxOpenOrdersPerUser = 0;
+    private Long maxOpenQuantityPerUser = 0L;
+
+    // If true, the resting orders of an user are cancelled when its last connection is closed.
+    private volatile Boolean cancelOrdersOnDisconnect = false;
+
+    // If true, each user has balances in the two currencies of the pair, checked before accepting an order and settled on each fill.
+    // The balances live in the users' index, so the checks run in the matching step, holding the lock already held by the execution.
+    private Boolean balancesEnabled = false;
+    // Balances given to an user the first time it's seen by the book.
+    private Long initialPrimaryBalance = 0L;
+    private Long initialSecondaryBalance = 0L;
+
     /**
-     * 
+     *
      * Initializes the order book by adding it to the list of all the order books created.
      * 
      * Private because it's used only by the class.
@@ -312,28 +354,35 @@ public class OrderBook implements Comparable<OrderBook> {
      * @throws NullPointerException If the order id is null.
      * 
      */
-    public synchronized Order getOrderById(Long orderId) throws NullPointerException {
+    public Order getOrderById(Long orderId) throws NullPointerException {
 
-        // Null check.
-        if (orderId == null) {
-            throw new NullPointerException("The order id to be used to get an order from an order book cannot be null.");
-        }
+        this.bookLock.lock();
+        try {
 
-        for (OrderBookLine<LimitOrder> line : limitBook.values()) {
-            LimitOrder order = line.getOrderById(orderId);
-            if (order != null) {
-                return order;
+            // Null check.
+            if (orderId == null) {
+                throw new NullPointerException("The order id to be used to get an order from an order book cannot be null.");
             }
-        }
 
-        for (OrderBookLine<StopOrder> line : stopBook.values()) {
-            StopOrder order = line.getOrderById(orderId);
-            if (order != null) {
-                return order;
+            for (OrderBookLine<LimitOrder> line : limitBook.values()) {
+                LimitOrder order = line.getOrderById(orderId);
+                if (order != null) {
+                    return order;
+                }
             }
-        }
 
-        return null;
+            for (OrderBookLine<StopOrder> line : stopBook.values()) {
+                StopOrder order = line.getOrderById(orderId);
+                if (order != null) {
+                    return order;
+                }
+            }
+
+            return null;
+
+        } finally {
+            this.bookLock.unlock();
+        }
 
     }
 
@@ -349,7 +398,7 @@ public class OrderBook implements Comparable<OrderBook> {
      * This method is intended to create a NEW LINE, if the line with the specified price value already exists, an exception will be throwed.
      *
      * Synchronized to avoid concurrency problems, to protect the limit book and the stop book.
-     * Synchronized on the first order to avoid modifications of it during the execution.
+     * Not synchronized on the first order, it's modified only holding the book lock.
      *
      * @param <GenericOrder> Order type, could be LimitOrder or StopOrder.
      * @param firstOrder The first order to add to the line.
@@ -358,14 +407,15 @@ public class OrderBook implements Comparable<OrderBook> {
      * @throws IllegalArgumentException If the price line with extracted from the first order already exists in the book or if the first order's currencies don't match with the order book currencies.
      *
      */
-    private synchronized <GenericOrder extends Order> void addLine(GenericOrder firstOrder) throws NullPointerException, IllegalArgumentException {
+    private <GenericOrder extends Order> void addLine(GenericOrder firstOrder) throws NullPointerException, IllegalArgumentException {
 
-        // Null checks.
-        if (firstOrder == null) {
-            throw new NullPointerException("First order to be used to add an order book line cannot be null.");
-        }
+        this.bookLock.lock();
+        try {
 
-        synchronized (firstOrder) {
+            // Null checks.
+            if (firstOrder == null) {
+                throw new NullPointerException("First order to be used to add an order book line cannot be null.");
+            }
 
             // All coherence checks (linePrice and initialOrder) are done in the OrderBookLine constructor.
 
@@ -384,33 +434,35 @@ public class OrderBook implements Comparable<OrderBook> {
 
             switch (firstOrder) {
                 case LimitOrder limitOrder -> {
-                    
+
                     // Checking if the line already exists.
                     if (this.limitBook.containsKey(firstOrder.getPrice()))
                         throw new IllegalArgumentException("An order book limit line with this price already exists in the limit book.");
-                    
+
                     OrderBookLine<LimitOrder> line = new OrderBookLine<>(limitOrder);
-                    
+
                     this.limitBook.put(firstOrder.getPrice(), line);
 
                     this.updateActualPricesAdd(firstOrder.getPrice());
-                    
+
                 }
                 case StopOrder stopOrder -> {
-                    
+
                     if (this.stopBook.containsKey(firstOrder.getPrice()))
                         throw new IllegalArgumentException("An order book line with this price already exists in the stop book.");
-                    
+
                     OrderBookLine<StopOrder> line = new OrderBookLine<>(stopOrder);
-                    
+
                     this.stopBook.put(firstOrder.getPrice(), line);
 
                     // No need to update the actual prices, since the stop orders are not executed.
-                    
+
                 }
                 default -> throw new IllegalArgumentException("The initial order to be used to create a new order book line must be a LimitOrder or a StopOrder.");
             }
 
+        } finally {
+            this.bookLock.unlock();
         }
 
     }
@@ -432,27 +484,34 @@ public class OrderBook implements Comparable<OrderBook> {
      * @throws IllegalArgumentException If the line price to remove with this price not exists in the limit book or if the line price to remove with this price contains more than zero orders.
      *
      */
-    private synchronized void removeLimitLine(SpecificPrice linePrice) throws IllegalArgumentException, NullPointerException {
+    private void removeLimitLine(SpecificPrice linePrice) throws IllegalArgumentException, NullPointerException {
 
-        // Null check.
-        if (linePrice == null) {
-            throw new NullPointerException("Limit line price to be used to remove an order book limit line cannot be null.");
-        }
+        this.bookLock.lock();
+        try {
+
+            // Null check.
+            if (linePrice == null) {
+                throw new NullPointerException("Limit line price to be used to remove an order book limit line cannot be null.");
+            }
 
-        // Price has no setters, no synchronization needed.
+            // Price has no setters, no synchronization needed.
+
+            // Checking if the line exists.
+            if (!this.limitBook.containsKey(linePrice))
+                throw new IllegalArgumentException("Limit line price to remove with this price not exists in the limit book.");
 
-        // Checking if the line exists.
-        if (!this.limitBook.containsKey(linePrice))
-            throw new IllegalArgumentException("Limit line price to remove with this price not exists in the limit book.");
+            // Preventing the removal of a line with more than zero order.
+            if (this.limitBook.get(linePrice).getOrdersNumber() != 0)
+                throw new IllegalArgumentException("Limit line price to remove with this price contains more than zero orders.");
 
-        // Preventing the removal of a line with more than zero order.
-        if (this.limitBook.get(linePrice).getOrdersNumber() != 0)
-            throw new IllegalArgumentException("Limit line price to remove with this price contains more than zero orders.");
+            // Removing the line.
+            this.limitBook.remove(linePrice);
 
-        // Removing the line.
-        this.limitBook.remove(linePrice);
+            this.updateActualPricesRemove(linePrice);
 
-        this.updateActualPricesRemove(linePrice);
+        } finally {
+            this.bookLock.unlock();
+        }
 
     }    
     /**
@@ -473,25 +532,32 @@ public class OrderBook implements Comparable<OrderBook> {
      * @throws IllegalArgumentException If the line price to remove with this price not exists in the stop book or if the line price to remove with this price contains more than zero orders.
      *
      */
-    private synchronized void removeStopLine(SpecificPrice linePrice) throws IllegalArgumentException, NullPointerException {
+    private void removeStopLine(SpecificPrice linePrice) throws IllegalArgumentException, NullPointerException {
 
-        // Null check.
-        if (linePrice == null) {
-            throw new NullPointerException("Stop line price to be used to remove an order book stop line cannot be null.");
-        }
+        this.bookLock.lock();
+        try {
+
+            // Null check.
+            if (linePrice == null) {
+                throw new NullPointerException("Stop line price to be used to remove an order book stop line cannot be null.");
+            }
 
-        // Price has no setters, no synchronization needed.
+            // Price has no setters, no synchronization needed.
+
+            // Checking if the line exists.
+            if (!this.stopBook.containsKey(linePrice))
+                throw new IllegalArgumentException("Stop line price to remove with this price not exists in the stop book.");
 
-        // Checking if the line exists.
-        if (!this.stopBook.containsKey(linePrice))
-            throw new IllegalArgumentException("Stop line price to remove with this price not exists in the stop book.");
+            // Preventing the removal of a line with more than zero order.
+            if (this.stopBook.get(linePrice).getOrdersNumber() != 0)
+                throw new IllegalArgumentException("Stop line price to remove with this price contains more than zero orders.");
 
-        // Preventing the removal of a line with more than zero order.
-        if (this.stopBook.get(linePrice).getOrdersNumber() != 0)
-            throw new IllegalArgumentException("Stop line price to remove with this price contains more than zero orders.");
+            // Removing the line.
+            this.stopBook.remove(linePrice);
 
-        // Removing the line.
-        this.stopBook.remove(linePrice);
+        } finally {
+            this.bookLock.unlock();
+        }
 
     }
 
@@ -514,59 +580,66 @@ public class OrderBook implements Comparable<OrderBook> {
      * @throws IllegalArgumentException If the price line added not exists in the limit book.
      *
      */
-    private synchronized void updateActualPricesAdd(SpecificPrice linePriceAdded) throws NullPointerException, IllegalArgumentException {
+    private void updateActualPricesAdd(SpecificPrice linePriceAdded) throws NullPointerException, IllegalArgumentException {
 
-        // Null check.
-        if (linePriceAdded == null) {
-            throw new NullPointerException("Line price added, to be used to update the actuals (best) order book prices, cannot be null.");
-        }
+        this.bookLock.lock();
+        try {
 
-        // Price has no setters, no synchronization needed.
+            // Null check.
+            if (linePriceAdded == null) {
+                throw new NullPointerException("Line price added, to be used to update the actuals (best) order book prices, cannot be null.");
+            }
 
-        // Checking if the line exists.
-        OrderBookLine<LimitOrder> limitLine = this.limitBook.get(linePriceAdded);
-        if (limitLine == null) {
-            throw new IllegalArgumentException("Line price added, to be used to update the actuals (best) order book prices, not exists in the limit book.");
-        }
-        if (!this.containsLine(limitLine))
-            throw new IllegalArgumentException("Line price added, to be used to update the actuals (best) order book prices, not exists in the limit book.");
+            // Price has no setters, no synchronization needed.
 
-        // Iterating in ascending order price lines. E.g.:
-        // ask, ask, best ask, best bid, bid, bid
+            // Checking if the line exists.
+            OrderBookLine<LimitOrder> limitLine = this.limitBook.get(linePriceAdded);
+            if (limitLine == null) {
+                throw new IllegalArgumentException("Line price added, to be used to update the actuals (best) order book prices, not exists in the limit book.");
+            }
+            if (!this.containsLine(limitLine))
+                throw new IllegalArgumentException("Line price added, to be used to update the actuals (best) order book prices, not exists in the limit book.");
 
-        SpecificPrice bestAsk = this.actualPriceAsk;
-        SpecificPrice bestBid = this.actualPriceBid;
-        if (linePriceAdded.getType() == PriceType.ASK) {
+            // Iterating in ascending order price lines. E.g.:
+            // ask, ask, best ask, best bid, bid, bid
 
-            if (bestAsk == null) {
-                // First ask line.
-                // Both methods are synchronized, and of the same class.
-                this.setActualPriceAsk(linePriceAdded);
-                this.triggerStopOrders();
-            } else {
-                if (linePriceAdded.getValue() < bestAsk.getValue()) {
+            SpecificPrice bestAsk = this.actualPriceAsk;
+            SpecificPrice bestBid = this.actualPriceBid;
+            if (linePriceAdded.getType() == PriceType.ASK) {
+
+                if (bestAsk == null) {
+                    // First ask line.
                     // Both methods are synchronized, and of the same class.
                     this.setActualPriceAsk(linePriceAdded);
                     this.triggerStopOrders();
                 } else {
-                    // The added price is not more convenient of the present one.
+                    if (linePriceAdded.getValue() < bestAsk.getValue()) {
+                        // Both methods are synchronized, and of the same class.
+                        this.setActualPriceAsk(linePriceAdded);
+                        this.triggerStopOrders();
+                    } else {
+                        // The added price is not more convenient of the present one.
+                    }
                 }
-            }
 
-        } else if (linePriceAdded.getType() == PriceType.BID) {
+            } else if (linePriceAdded.getType() == PriceType.BID) {
 
-            if (bestBid == null) {
-                // First bid line.
-                this.setActualPriceBid(linePriceAdded);
-                this.triggerStopOrders();
-            } else {
-                if (linePriceAdded.getValue() > bestBid.getValue()) {
+                if (bestBid == null) {
+                    // First bid line.
                     this.setActualPriceBid(linePriceAdded);
                     this.triggerStopOrders();
                 } else {
-                    // The added price is not more convenient of the present one.
+                    if (linePriceAdded.getValue() > bestBid.getValue()) {
+                        this.setActualPriceBid(linePriceAdded);
+                        this.triggerStopOrders();
+                    } else {
+                        // The added price is not more convenient of the present one.
+                    }
                 }
             }
+
+        } finally {
+            this.bookLock.unlock();
         }
 
     }
@@ -587,67 +660,74 @@ public class OrderBook implements Comparable<OrderBook> {
      * @throws NullPointerException If the price line removed is null.
      *
      */
-    private synchronized void updateActualPricesRemove(SpecificPrice linePriceRemoved) throws NullPointerException {
+    private void updateActualPricesRemove(SpecificPrice linePriceRemoved) throws NullPointerException {
 
-        // Null check.
-        if (linePriceRemoved == null) {
-            throw new NullPointerException("Line price removed, to be used to update the actuals (best) order book prices, cannot be null.");
-        }
+        this.bookLock.lock();
+        try {
+
+            // Null check.
+            if (linePriceRemoved == null) {
+                throw new NullPointerException("Line price removed, to be used to update the actuals (best) order book prices, cannot be null.");
+            }
+
+            // Price has no setters, no synchronization needed.
 
-        // Price has no setters, no synchronization needed.
+            // Iterating in ascending order. E.g.:
+            // ask, ask, best ask, best bid, bid, bid
 
-        // Iterating in ascending order. E.g.:
-        // ask, ask, best ask, best bid, bid, bid
+            SpecificPrice bestAsk = this.actualPriceAsk;
+            SpecificPrice bestBid = this.actualPriceBid;
+            if (linePriceRemoved.getType() == PriceType.ASK) {
 
-        SpecificPrice bestAsk = this.actualPriceAsk;
-        SpecificPrice bestBid = this.actualPriceBid;
-        if (linePriceRemoved.getType() == PriceType.ASK) {
+                if (bestAsk.getValue().compareTo(linePriceRemoved.getValue()) == 0) {
 
-            if (bestAsk.getValue().compareTo(linePriceRemoved.getValue()) == 0) {
+                    // The removed line is the best ask.
+                    // I need to find the new best ask.
+                    SpecificPrice newBestAsk = null;
+                    SpecificPrice previousPrice = null;
+                    for (SpecificPrice price : limitBook.keySet()) {
 
-                // The removed line is the best ask.
-                // I need to find the new best ask.
-                SpecificPrice newBestAsk = null;
-                SpecificPrice previousPrice = null;
-                for (SpecificPrice price : limitBook.keySet()) {
+                        if (price.getType() == PriceType.ASK) {
+                            previousPrice = price;
+                        }else {
+                            // First bid line, the best ask is the previous one.
+                            newBestAsk = previousPrice;
+                            break;
+                        }
 
-                    if (price.getType() == PriceType.ASK) {
-                        previousPrice = price;
-                    }else {
-                        // First bid line, the best ask is the previous one.
-                        newBestAsk = previousPrice;
-                        break;
                     }
+                    if (newBestAsk == null) newBestAsk = previousPrice;
+                    // Both methods are synchronized, and of the same class.
+                    this.setActualPriceAsk(newBestAsk);
+                    this.triggerStopOrders();
 
                 }
-                if (newBestAsk == null) newBestAsk = previousPrice;
-                // Both methods are synchronized, and of the same class.
-                this.setActualPriceAsk(newBestAsk);
-                this.triggerStopOrders();
-
-            }
 
-        } else if (linePriceRemoved.getType() == PriceType.BID) {
+            } else if (linePriceRemoved.getType() == PriceType.BID) {
 
-            if (bestBid.getValue().compareTo(linePriceRemoved.getValue()) == 0) {
+                if (bestBid.getValue().compareTo(linePriceRemoved.getValue()) == 0) {
 
-                // The removed line is the best bid.
-                // I need to find the new best bid.
-                SpecificPrice newBestBid = null;
-                for (SpecificPrice price : limitBook.keySet()) {
-                    // The first bid line found is the new best bid.
-                    if (price.getType() == PriceType.BID) {
-                        newBestBid = price;
-                        break;
+                    // The removed line is the best bid.
+                    // I need to find the new best bid.
+                    SpecificPrice newBestBid = null;
+                    for (SpecificPrice price : limitBook.keySet()) {
+                        // The first bid line found is the new best bid.
+                        if (price.getType() == PriceType.BID) {
+                            newBestBid = price;
+                            break;
+                        }
                     }
-                }
 
-                // Both methods are synchronized, and of the same class.
-                this.setActualPriceBid(newBestBid);
-                this.triggerStopOrders();
+                    // Both methods are synchronized, and of the same class.
+                    this.setActualPriceBid(newBestBid);
+                    this.triggerStopOrders();
+
+                }
 
             }
 
+        } finally {
+            this.bookLock.unlock();
         }
 
     }
@@ -662,75 +742,97 @@ public class OrderBook implements Comparable<OrderBook> {
      * Synchronized to avoid concurrency problems.
      *
      */
-    private synchronized void triggerStopOrders() {
+    private void triggerStopOrders() {
 
-        while (true) {
+        this.bookLock.lock();
+        try {
 
-            SpecificPrice bestAsk = this.actualPriceAsk;
-            SpecificPrice bestBid = this.actualPriceBid;
+            // While recovering from a snapshot, the stop orders triggered are already written in the orders journal tail, so they must not be executed again.
+            if (this.recovering) {
+                return;
+            }
+
+            while (true) {
+
+                SpecificPrice bestAsk = this.actualPriceAsk;
+                SpecificPrice bestBid = this.actualPriceBid;
 
-            LinkedList<SpecificPrice> stopLinesTriggered = new LinkedList<>();
-            if (bestAsk != null) {
-                for (SpecificPrice price : stopBook.descendingKeySet()) {
-                    if (price.getType() == PriceType.BID && price.getValue() <= bestAsk.getValue()) {
-                        stopLinesTriggered.add(price);
+                LinkedList<SpecificPrice> stopLinesTriggered = new LinkedList<>();
+                if (bestAsk != null) {
+                    for (SpecificPrice price : stopBook.descendingKeySet()) {
+                        if (price.getType() == PriceType.BID && price.getValue() <= bestAsk.getValue()) {
+                            stopLinesTriggered.add(price);
+                        }
                     }
                 }
-            }
-            if (bestBid != null) {
-                for (SpecificPrice price : stopBook.keySet()) {
-                    if (price.getType() == PriceType.ASK && price.getValue() >= bestBid.getValue()) {
-                        stopLinesTriggered.add(price);
+                if (bestBid != null) {
+                    for (SpecificPrice price : stopBook.keySet()) {
+                        if (price.getType() == PriceType.ASK && price.getValue() >= bestBid.getValue()) {
+                            stopLinesTriggered.add(price);
+                        }
                     }
                 }
-            }
 
-            if (stopLinesTriggered.isEmpty()) break;
+                if (stopLinesTriggered.isEmpty()) break;
 
-            while (true) {
+                while (true) {
 
-                if (stopLinesTriggered.isEmpty()){
-                    break;
-                }
+                    if (stopLinesTriggered.isEmpty()){
+                        break;
+                    }
 
-                SpecificPrice priceLine = stopLinesTriggered.poll();
-                OrderBookLine<StopOrder> triggeredAskLine = priceLine.getType() == PriceType.ASK ? stopBook.get(priceLine) : null;
-                OrderBookLine<StopOrder> triggeredBidLine = priceLine.getType() == PriceType.BID ? stopBook.get(priceLine) : null;
+                    SpecificPrice priceLine = stopLinesTriggered.poll();
+                    OrderBookLine<StopOrder> triggeredAskLine = priceLine.getType() == PriceType.ASK ? stopBook.get(priceLine) : null;
+                    OrderBookLine<StopOrder> triggeredBidLine = priceLine.getType() == PriceType.BID ? stopBook.get(priceLine) : null;
 
-                MarketOrder marketOrder;
-                if (triggeredAskLine != null) {
+                    MarketOrder marketOrder;
+                    if (triggeredAskLine != null) {
 
 
-                    marketOrder = triggeredAskLine.executeStopOrderFromStopLine(this);
+                        marketOrder = triggeredAskLine.executeStopOrderFromStopLine(this);
+                        this.unindexTriggeredStopOrder(marketOrder);
+                        this.logRemovedOrder(marketOrder.getComingFromStopOrderId());
 
-                    if (triggeredAskLine.getOrdersNumber() == 0) {
-                        // The line is empty, must be removed.
-                        this.removeStopLine(triggeredAskLine.getLinePrice());
-                    }
+                        if (triggeredAskLine.getOrdersNumber() == 0) {
+                            // The line is empty, must be removed.
+                            this.removeStopLine(triggeredAskLine.getLinePrice());
+                        }
+
+                        this.stopNowLock.lock();
+                        try {
+                            this.stopNowMarketOrdersToExecute.add(marketOrder);
+                        } finally {
+                            this.stopNowLock.unlock();
+                        }
 
-                    synchronized (this.stopNowMarketOrdersToExecute) {
-                        this.stopNowMarketOrdersToExecute.add(marketOrder);
                     }
 
-                }
+                    if (triggeredBidLine != null) {
 
-                if (triggeredBidLine != null) {
+                        marketOrder = triggeredBidLine.executeStopOrderFromStopLine(this);
+                        this.unindexTriggeredStopOrder(marketOrder);
+                        this.logRemovedOrder(marketOrder.getComingFromStopOrderId());
 
-                    marketOrder = triggeredBidLine.executeStopOrderFromStopLine(this);
+                        if (triggeredBidLine.getOrdersNumber() == 0) {
+                            // The line is empty, must be removed.
+                            this.removeStopLine(triggeredBidLine.getLinePrice());
+                        }
 
-                    if (triggeredBidLine.getOrdersNumber() == 0) {
-                        // The line is empty, must be removed.
-                        this.removeStopLine(triggeredBidLine.getLinePrice());
-                    }
+                        this.stopNowLock.lock();
+                        try {
+                            this.stopNowMarketOrdersToExecute.add(marketOrder);
+                        } finally {
+                            this.stopNowLock.unlock();
+                        }
 
-                    synchronized (this.stopNowMarketOrdersToExecute) {
-                        this.stopNowMarketOrdersToExecute.add(marketOrder);
                     }
 
                 }
 
             }
 
+        } finally {
+            this.bookLock.unlock();
         }
 
     }
@@ -749,8 +851,10 @@ public class OrderBook implements Comparable<OrderBook> {
      *
      * The order is updated with the actual price of the market.
      *
+     * If the balances are enabled, an order whose user's available balance does not cover it is not executed, as an unsatisfiable one.
+     *
      * Synchronized to avoid concurrency problems, to protect the limit book.
-     * Synchronized also on the order to avoid modifications of it during the execution.
+     * Not synchronized on the order, since it's modified only by the thread executing it, holding the book lock.
      *
      * @param order The market order to execute.
      *
@@ -769,123 +873,118 @@ public class OrderBook implements Comparable<OrderBook> {
             throw new NullPointerException("A market order, to be executed in a order book, cannot be null.");
         }
 
-        synchronized (order) {
-            // Synchronized in this way, since we do later a wait(), and the wait() does not release the lock on the MAIN THIS object, if we use public synchronized executeOrder(MarketOrder order) DEADLOCK!
-            synchronized (this) {
+        // Locked in this way, not for the whole method, since we do later a wait for the StopOrdersExecutorThread, after releasing the book.
+        this.bookLock.lock();
+        try {
 
-                // Void limit book check.
-                if (limitBook.isEmpty()) {
-                    // do not throw an exception, but return false, otherwise the order is not created, and cannot send -1.
-                    return false;
-                }
+            // Void limit book check.
+            if (limitBook.isEmpty()) {
+                // do not throw an exception, but return false, otherwise the order is not created, and cannot send -1.
+                return false;
+            }
 
-                // Currencies checks.
-                if (this.getPrimaryCurrency() != null && this.getSecondaryCurrency() != null && (order.getMarketOrderPrimaryCurrency().compareTo(this.getPrimaryCurrency()) != 0 || order.getMarketOrderSecondaryCurrency().compareTo(this.getSecondaryCurrency()) != 0)) {
-                    throw new IllegalArgumentException("A market order's currencies, to be executed in a order book, not match with order book currencies.");
-                }
+            // Currencies checks.
+            if (this.getPrimaryCurrency() != null && this.getSecondaryCurrency() != null && (order.getMarketOrderPrimaryCurrency().compareTo(this.getPrimaryCurrency()) != 0 || order.getMarketOrderSecondaryCurrency().compareTo(this.getSecondaryCurrency()) != 0)) {
+                throw new IllegalArgumentException("A market order's currencies, to be executed in a order book, not match with order book currencies.");
+            }
 
-                // Update market order execution price.
-                try {
-                    order.setUpdatedExecutionPrice();
-                } catch (IllegalStateException ex) {
-                    // No actual prices set, the order is not satisfiable.
-                    if (this.verboseLogging) {
-                        System.out.println("\n\n\n\n\n\n\n\n\n");
-                        System.out.println("DEBUG: INSATISFIABLE MARKET ORDER: " + order.toString());
-                        System.out.println("\n\n\n\n\n\n\n\n\n");
-                    }
-                    order.setId(-1);
-                    return false;
-                }
+            // Update market order execution price.
+            try {
+                order.setUpdatedExecutionPrice();
+            } catch (IllegalStateException ex) {
+                // No actual prices set, the order is not satisfiable.
+                Log.debug(Category.ENGINE, "INSATISFIABLE MARKET ORDER: %s", order);
+                order.setId(-1);
+                return false;
+            }
 
-                // Checking satisfability.
-                Boolean satisfiable = false;
-                Quantity totalQuantity = new Quantity(0);
-                for (SpecificPrice price : limitBook.keySet()) {
+            // Checking satisfability.
+            Boolean satisfiable = false;
+            Quantity totalQuantity = new Quantity(0);
+            for (SpecificPrice price : limitBook.keySet()) {
 
-                    OrderBookLine<LimitOrder> line = limitBook.get(price);
+                OrderBookLine<LimitOrder> line = limitBook.get(price);
 
-                    // Calculating the total quantity.
-                    if (order.getExecutionPrice().getType() == PriceType.BID) {
-                        if (line.getLinePrice().getType() == PriceType.ASK) {
-                            continue;
-                        }
-                        totalQuantity =  new Quantity(totalQuantity.getValue() + line.getTotalQuantity().getValue());
-                    }else if (order.getExecutionPrice().getType() == PriceType.ASK) {
-                        // We can exit before the last line, at the first ask line found, thanks to the sorted order book.
-                        if (line.getLinePrice().getType() == PriceType.BID) {
-                            break;
-                        }
-                        totalQuantity =  new Quantity(totalQuantity.getValue() + line.getTotalQuantity().getValue());
+                // Calculating the total quantity.
+                if (order.getExecutionPrice().getType() == PriceType.BID) {
+                    if (line.getLinePrice().getType() == PriceType.ASK) {
+                        continue;
                     }
-
-                    // Satisability check.
-                    if (totalQuantity.getValue() >= order.getQuantity().getValue()) {
-                        satisfiable = true;
+                    totalQuantity =  new Quantity(totalQuantity.getValue() + line.getTotalQuantity().getValue());
+                }else if (order.getExecutionPrice().getType() == PriceType.ASK) {
+                    // We can exit before the last line, at the first ask line found, thanks to the sorted order book.
+                    if (line.getLinePrice().getType() == PriceType.BID) {
                         break;
                     }
+                    totalQuantity =  new Quantity(totalQuantity.getValue() + line.getTotalQuantity().getValue());
+                }
 
+                // Satisability check.
+                if (totalQuantity.getValue() >= order.getQuantity().getValue()) {
+                    satisfiable = true;
+                    break;
                 }
 
-                if (satisfiable) {
-                    // Execute the order.
-                    if (this.verboseLogging) {
-                        System.out.println("\n\n\n\n\n\n\n\n\n");
-                        System.out.println("DEBUG: Executing a SATISFIABLE MARKET ORDER: " + order.toString());
-                        System.out.println("DEBUG: LIMIT BOOK BEFORE MARKET order execution: " + this.toStringWithLimitBook());
-                        System.out.println("DEBUG: STOP BOOK BEFORE MARKET order execution: " + this.toStringWithStopBook());
-                    }
-                    while (true) {
+            }
 
-                        Notification notification = new Notification();
-                        // Update market order execution price.
-                        try {
-                            order.setUpdatedExecutionPrice();
-                        } catch (IllegalStateException ex) {
-                            // This should never happen, because the order is satisfiable.
-                            throw new IllegalStateException("The order book to be used to execute a market order, must have actual prices set.");
-                        }
+            // Per-user balance, checked on the same lines that the order will consume.
+            if (satisfiable && !this.checkMarketOrderBalance(order)) {
+                Log.debug(Category.ENGINE, "MARKET ORDER OVER THE USER'S BALANCE: %s", order);
+                order.setId(-1);
+                return false;
+            }
 
-                        // Getting the best price.
-                        SpecificPrice bestPrice = order.getExecutionPrice();
-                        OrderBookLine<LimitOrder> bestLine = limitBook.get(bestPrice);
+            if (satisfiable) {
+                // Execute the order.
+                Log.debug(Category.ENGINE, "Executing a SATISFIABLE MARKET ORDER: %s", order);
+                Log.debug(Category.ENGINE, () -> "LIMIT BOOK BEFORE MARKET order execution: " + this.toStringWithLimitBook());
+                Log.debug(Category.ENGINE, () -> "STOP BOOK BEFORE MARKET order execution: " + this.toStringWithStopBook());
+                while (true) {
 
-                        // Executing the order.
-                        Integer executed;
-                        executed = bestLine.executeMarketOrderOnLimitLine(order, notification);
-                        Users.notifyUsers(notification);
+                    Notification notification = new Notification();
+                    // Update market order execution price.
+                    try {
+                        order.setUpdatedExecutionPrice();
+                    } catch (IllegalStateException ex) {
+                        // This should never happen, because the order is satisfiable.
+                        throw new IllegalStateException("The order book to be used to execute a market order, must have actual prices set.");
+                    }
 
-                        if (bestLine.getOrdersNumber() == 0) {
-                            // The line is empty, must be removed.
-                            this.removeLimitLine(bestLine.getLinePrice());
-                        }
+                    // Getting the best price.
+                    SpecificPrice bestPrice = order.getExecutionPrice();
+                    OrderBookLine<LimitOrder> bestLine = limitBook.get(bestPrice);
 
-                        // Market order fullfilled.
-                        if (executed == 0 || executed == 2) {
-                            // TODO: Here, executed market order or stop now market.
-                            break;
-                        }else {
-                            // Market order not fullfilled, continue.
-                        }
+                    // Executing the order.
+                    Integer executed;
+                    executed = bestLine.executeMarketOrderOnLimitLine(order, notification);
+                    this.indexTrades(notification);
+                    Users.notifyUsers(notification);
 
+                    if (bestLine.getOrdersNumber() == 0) {
+                        // The line is empty, must be removed.
+                        this.removeLimitLine(bestLine.getLinePrice());
                     }
-                }else{
-                    // The order is not satisfiable.
-                    if (this.verboseLogging) {
-                        System.out.println("\n\n\n\n\n\n\n\n\n");
-                        System.out.println("DEBUG: INSATISFIABLE MARKET ORDER: " + order.toString());
-                        System.out.println("\n\n\n\n\n\n\n\n\n");
+
+                    // Market order fullfilled.
+                    if (executed == 0 || executed == 2) {
+                        // TODO: Here, executed market order or stop now market.
+                        break;
+                    }else {
+                        // Market order not fullfilled, continue.
                     }
-                    order.setId(-1);
-                    return false;
-                }
 
-                if (this.verboseLogging) {
-                    System.out.println("DEBUG: LIMIT BOOK AFTER MARKET order execution: " + this.toStringWithLimitBook());
-                    System.out.println("DEBUG: STOP BOOK AFTER MARKET order execution: " + this.toStringWithStopBook());
-                    System.out.println("\n\n\n\n\n\n\n\n\n");
                 }
+            }else{
+                // The order is not satisfiable.
+                Log.debug(Category.ENGINE, "INSATISFIABLE MARKET ORDER: %s", order);
+                order.setId(-1);
+                return false;
             }
+
+            Log.debug(Category.ENGINE, () -> "LIMIT BOOK AFTER MARKET order execution: " + this.toStringWithLimitBook());
+            Log.debug(Category.ENGINE, () -> "STOP BOOK AFTER MARKET order execution: " + this.toStringWithStopBook());
+        } finally {
+            this.bookLock.unlock();
         }
 
         // The ClientThread threads must synchronize with the StopOrdersExecutorThread AND WAITS FOR IT, to avoid concurrency problems with ORDER EXECUTION (ARRIVAL PRIORITY) of the book orders.
@@ -897,17 +996,20 @@ public class OrderBook implements Comparable<OrderBook> {
         // This check is needed because the StopOrdersExecutorThread also use this method to execute the stop orders, so we must distinguish between the calls from the ClientThread threads and the calls from the StopOrdersExecutorThread.
         if (!Thread.currentThread().getName().equalsIgnoreCase(StopOrdersExecutorThread.class.getSimpleName())) {
 
-            synchronized (this.stopNowMarketOrdersToExecute) {
+            this.stopNowLock.lock();
+            try {
                 while (!this.stopNowMarketOrdersToExecute.isEmpty()) {
                     // this wakes up the StopOrdersExecutorThread, to execute the stop orders.
                     // but also could wakes up others ClientThread threads, that are waiting for the StopOrdersExecutorThread to finish.
                     // these ClientThread threads will wait in the while below.
-                    this.stopNowMarketOrdersToExecute.notifyAll();
+                    this.stopNowChanged.signalAll();
                     try {
-                        while (!this.stopNowMarketOrdersToExecute.isEmpty()) this.stopNowMarketOrdersToExecute.wait();
+                        while (!this.stopNowMarketOrdersToExecute.isEmpty()) this.stopNowChanged.await();
                     } catch (InterruptedException ex) {
                     }
                 }
+            } finally {
+                this.stopNowLock.unlock();
             }
             
         }
@@ -923,46 +1025,54 @@ public class OrderBook implements Comparable<OrderBook> {
      * A check if the order is already present in the list is omitted, because a O(n) operation would be needed, and the O(1) operation speed given by the list would be lost.
      *
      * Synchronized to avoid concurrency problems, to protect the limit book.
-     * Synchronized also on the order to avoid modifications of it during the execution.
+     * Not synchronized on the order, it's modified only holding the book lock.
      *
      * @param order The limit order to execute.
      *
      * @throws NullPointerException If the order is null.
      * @throws IllegalArgumentException If the order's currencies not match with order book currencies.
+     * @throws IllegalStateException If the order exceeds the exposure limits or the available balance of its user.
      *
      */
-    public synchronized void executeOrder(LimitOrder order) throws NullPointerException, IllegalArgumentException {
+    public void executeOrder(LimitOrder order) throws NullPointerException, IllegalArgumentException, IllegalStateException {
 
-        // Null check.
-        if (order == null) {
-            throw new NullPointerException("A limit order, to be executed in a order book, cannot be null.");
-        }
+        this.bookLock.lock();
+        try {
 
-        SpecificPrice price;
-        synchronized (order) {
+            // Null check.
+            if (order == null) {
+                throw new NullPointerException("A limit order, to be executed in a order book, cannot be null.");
+            }
 
             // Currencies checks.
             if (this.getPrimaryCurrency() != null && this.getSecondaryCurrency() != null && (order.getPrice().getPrimaryCurrency().compareTo(this.getPrimaryCurrency()) != 0 || order.getPrice().getSecondaryCurrency().compareTo(this.getSecondaryCurrency()) != 0)) {
                 throw new IllegalArgumentException("A limit order's currencies, to be executed in a order book, not match with order book currencies.");
             }   
 
-            price = order.getPrice();
+            SpecificPrice price = order.getPrice();
 
-            // Safe because synchronized.
+            // Per-user exposure limits and balance.
+            this.checkUserLimits(order);
+
+            // Safe because holding the book lock.
             OrderBookLine<LimitOrder> limitLine = limitBook.get(price);
 
-            // New price line creation.
             if (limitLine == null) {
+                // New price line creation.
                 this.addLine(order);
                 // Order added in the constructor of the new line.
-                return;
                 // Best prices updated in the addLine method.
+            } else {
+                // A check if the order is already present in the list is omitted, because a O(n) operation would be needed, and the O(1) operation speed given by the list would be lost.
+                // Adding the order to the line.
+                limitLine.addOrder(order);
             }
 
-            // A check if the order is already present in the list is omitted, because a O(n) operation would be needed, and the O(1) operation speed given by the list would be lost.
-            // Adding the order to the line.
-            limitLine.addOrder(order);
+            this.indexOrder(order);
+            this.logAddedOrder(order);
 
+        } finally {
+            this.bookLock.unlock();
         }
 
     }
@@ -974,46 +1084,54 @@ public class OrderBook implements Comparable<OrderBook> {
      * A check if the order is already present in the list is omitted, because a O(n) operation would be needed, and the O(1) operation speed given by the list would be lost.
      *
      * Synchronized to avoid concurrency problems, to protect the stop book.
-     * Synchronized also on the order to avoid modifications of it during the execution.
+     * Not synchronized on the order, it's modified only holding the book lock.
      *
      * @param order The stop order to execute.
      *
      * @throws NullPointerException If the order is null.
      * @throws IllegalArgumentException If the order's currencies not match with order book currencies.
+     * @throws IllegalStateException If the order exceeds the exposure limits or the available balance of its user.
      *
      */
-    public synchronized void executeOrder(StopOrder order) throws NullPointerException, IllegalArgumentException {
+    public void executeOrder(StopOrder order) throws NullPointerException, IllegalArgumentException, IllegalStateException {
 
-        // Null check.
-        if (order == null) {
-            throw new NullPointerException("A stop order, to be executed in a order book, cannot be null.");
-        }
+        this.bookLock.lock();
+        try {
 
-        SpecificPrice price;
-        synchronized (order) {
+            // Null check.
+            if (order == null) {
+                throw new NullPointerException("A stop order, to be executed in a order book, cannot be null.");
+            }
 
             // Currencies checks.
             if (this.getPrimaryCurrency() != null && this.getSecondaryCurrency() != null && (order.getPrice().getPrimaryCurrency().compareTo(this.getPrimaryCurrency()) != 0 || order.getPrice().getSecondaryCurrency().compareTo(this.getSecondaryCurrency()) != 0)) {
                 throw new IllegalArgumentException("A stop order's currencies, to be executed in a order book, not match with order book currencies.");
             }   
 
-            price = order.getPrice();
+            SpecificPrice price = order.getPrice();
 
-            // Safe because synchronized.
+            // Per-user exposure limits and balance.
+            this.checkUserLimits(order);
+
+            // Safe because holding the book lock.
             OrderBookLine<StopOrder> stopLine = stopBook.get(price);
 
-            // New price line creation.
             if (stopLine == null) {
+                // New price line creation.
                 this.addLine(order);
                 // Order added in the constructor of the new line.
-                return;
                 // Best prices updated in the addLine method.
+            } else {
+                // A check if the order is already present in the list is omitted, because a O(n) operation would be needed, and the O(1) operation speed given by the list would be lost.
+                // Adding the order to the line.
+                stopLine.addOrder(order);
             }
 
-            // A check if the order is already present in the list is omitted, because a O(n) operation would be needed, and the O(1) operation speed given by the list would be lost.
-            // Adding the order to the line.
-            stopLine.addOrder(order);
+            this.indexOrder(order);
+            this.logAddedOrder(order);
 
+        } finally {
+            this.bookLock.unlock();
         }
 
     }
@@ -1026,7 +1144,7 @@ public class OrderBook implements Comparable<OrderBook> {
      * It's a O(n) operation.
      *
      * Synchronized method to avoid concurrency problems, to protect the limit book.
-     * Synchronized on the order, since the order could be modified by other threads.
+     * Not synchronized on the order, it's modified only holding the book lock.
      *
      * @param order The limit order to be cancelled from the limit orders book.
      *
@@ -1034,14 +1152,15 @@ public class OrderBook implements Comparable<OrderBook> {
      * @throws IllegalArgumentException If the limit order to cancel is not present in the limit orders book.
      *
      */
-    public synchronized void cancelOrder(LimitOrder order) throws NullPointerException, IllegalArgumentException {
+    public void cancelOrder(LimitOrder order) throws NullPointerException, IllegalArgumentException {
 
-        // Null check.
-        if (order == null) {
-            throw new NullPointerException("The limit order to cancel from the limit orders book cannot be null.");
-        }
+        this.bookLock.lock();
+        try {
 
-        synchronized (order) {
+            // Null check.
+            if (order == null) {
+                throw new NullPointerException("The limit order to cancel from the limit orders book cannot be null.");
+            }
 
             // Searching for the line in the limit book.
             OrderBookLine<LimitOrder> line = limitBook.get(order.getPrice());
@@ -1051,11 +1170,15 @@ public class OrderBook implements Comparable<OrderBook> {
 
             // Cancelling the order from the line.
             line.cancelOrder(order);
+            this.unindexOrder(order);
+            this.logRemovedOrder(order.getId().longValue());
 
             if (line.getOrdersNumber() == 0) {
                 this.removeLimitLine(order.getPrice());
             }
 
+        } finally {
+            this.bookLock.unlock();
         }
 
     }
@@ -1066,7 +1189,7 @@ public class OrderBook implements Comparable<OrderBook> {
      * It's a O(n) operation.
      *
      * Synchronized method to avoid concurrency problems, to protect the stop book.
-     * Synchronized on the order, since the order could be modified by other threads.
+     * Not synchronized on the order, it's modified only holding the book lock.
      *
      * @param order The stop order to be cancelled from the stop orders book.
      *
@@ -1074,14 +1197,15 @@ public class OrderBook implements Comparable<OrderBook> {
      * @throws IllegalArgumentException If the stop order to cancel is not present in the stop orders book.
      *
      */
-    public synchronized void cancelOrder(StopOrder order) throws NullPointerException, IllegalArgumentException {
+    public void cancelOrder(StopOrder order) throws NullPointerException, IllegalArgumentException {
 
-        // Null check.
-        if (order == null) {
-            throw new NullPointerException("The stop order to cancel from the stop orders book cannot be null.");
-        }
+        this.bookLock.lock();
+        try {
 
-        synchronized (order) {
+            // Null check.
+            if (order == null) {
+                throw new NullPointerException("The stop order to cancel from the stop orders book cannot be null.");
+            }
 
             // Searching for the line in the stop book.
             OrderBookLine<StopOrder> line = stopBook.get(order.getPrice());
@@ -1091,11 +1215,15 @@ public class OrderBook implements Comparable<OrderBook> {
 
             // Cancelling the order from the line.
             line.cancelOrder(order);
+            this.unindexOrder(order);
+            this.logRemovedOrder(order.getId().longValue());
 
             if (line.getOrdersNumber() == 0) {
                 this.removeStopLine(order.getPrice());
             }
 
+        } finally {
+            this.bookLock.unlock();
         }
 
     }
@@ -1112,36 +1240,47 @@ public class OrderBook implements Comparable<OrderBook> {
      * @return True if the order was cancelled, false otherwise.
      *
      */
-    public synchronized Boolean cancelOrder(Long orderId) throws NullPointerException {
+    public Boolean cancelOrder(Long orderId) throws NullPointerException {
 
-        // Null check.
-        if (orderId == null) {
-            throw new NullPointerException("The order id to be used to cancel an order from the order book cannot be null.");
-        }
+        this.bookLock.lock();
+        try {
+
+            // Null check.
+            if (orderId == null) {
+                throw new NullPointerException("The order id to be used to cancel an order from the order book cannot be null.");
+            }
 
-        for (OrderBookLine<LimitOrder> line : limitBook.values()) {
-            LimitOrder order = (LimitOrder) line.getOrderById(orderId);
-            if (order != null) {
-                line.cancelOrder(order);
-                if (line.getOrdersNumber() == 0) {
-                    this.removeLimitLine(order.getPrice());
+            for (OrderBookLine<LimitOrder> line : limitBook.values()) {
+                LimitOrder order = (LimitOrder) line.getOrderById(orderId);
+                if (order != null) {
+                    line.cancelOrder(order);
+                    this.unindexOrder(order);
+                    this.logRemovedOrder(orderId);
+                    if (line.getOrdersNumber() == 0) {
+                        this.removeLimitLine(order.getPrice());
+                    }
+                    return true;
                 }
-                return true;
             }
-        }
 
-        for (OrderBookLine<StopOrder> line : stopBook.values()) {
-            StopOrder order = (StopOrder) line.getOrderById(orderId);
-            if (order != null) {
-                line.cancelOrder(order);
-                if (line.getOrdersNumber() == 0) {
-                    this.removeStopLine(order.getPrice());
+            for (OrderBookLine<StopOrder> line : stopBook.values()) {
+                StopOrder order = (StopOrder) line.getOrderById(orderId);
+                if (order != null) {
+                    line.cancelOrder(order);
+                    this.unindexOrder(order);
+                    this.logRemovedOrder(orderId);
+                    if (line.getOrdersNumber() == 0) {
+                        this.removeStopLine(order.getPrice());
+                    }
+                    return true;
                 }
-                return true;
             }
-        }
 
-        return false;
+            return false;
+
+        } finally {
+            this.bookLock.unlock();
+        }
 
     }
 
@@ -1158,52 +1297,59 @@ public class OrderBook implements Comparable<OrderBook> {
      * @throws IllegalStateException If an order book with the same currencies already exists.
      *
      */
-    private synchronized void setActualPriceAsk(SpecificPrice actualPriceAsk) throws IllegalArgumentException, IllegalStateException {
+    private void setActualPriceAsk(SpecificPrice actualPriceAsk) throws IllegalArgumentException, IllegalStateException {
 
-        // Null check.
-        if (actualPriceAsk == null) {
-            this.actualPriceAsk = null;
-            return;
-        }
+        this.bookLock.lock();
+        try {
 
-        // Prices cannot change, have no setters, no synchronization needed.
+            // Null check.
+            if (actualPriceAsk == null) {
+                this.actualPriceAsk = null;
+                return;
+            }
 
-        // The actual price ask must be an ask price.
-        if (actualPriceAsk.getType() != PriceType.ASK) {
-            throw new IllegalArgumentException("The actual (best) price ask to set as actual (best) price ask must be an ask price.");
-        }
+            // Prices cannot change, have no setters, no synchronization needed.
 
-        if (this.actualPriceBid != null) {
-            // The new actual ask price must be GREATER than the actual bid price.
-            if (actualPriceAsk.getValue() < this.actualPriceBid.getValue()) {
-                throw new IllegalArgumentException("The actual (best) price ask to set as actual (best) price ask must be GREATER than the actual (best) price bid.");
+            // The actual price ask must be an ask price.
+            if (actualPriceAsk.getType() != PriceType.ASK) {
+                throw new IllegalArgumentException("The actual (best) price ask to set as actual (best) price ask must be an ask price.");
             }
-            // Currencies check between the actual bid and the new actual ask.
-            if (actualPriceAsk.getPrimaryCurrency().compareTo(this.actualPriceBid.getPrimaryCurrency()) != 0 || actualPriceAsk.getSecondaryCurrency().compareTo(this.actualPriceBid.getSecondaryCurrency()) != 0) {
-                throw new IllegalArgumentException("The actual (best) price ask to set as actual (best) price ask must have the same primary and secondary currencies as the actual (best) price bid.");
+
+            if (this.actualPriceBid != null) {
+                // The new actual ask price must be GREATER than the actual bid price.
+                if (actualPriceAsk.getValue() < this.actualPriceBid.getValue()) {
+                    throw new IllegalArgumentException("The actual (best) price ask to set as actual (best) price ask must be GREATER than the actual (best) price bid.");
+                }
+                // Currencies check between the actual bid and the new actual ask.
+                if (actualPriceAsk.getPrimaryCurrency().compareTo(this.actualPriceBid.getPrimaryCurrency()) != 0 || actualPriceAsk.getSecondaryCurrency().compareTo(this.actualPriceBid.getSecondaryCurrency()) != 0) {
+                    throw new IllegalArgumentException("The actual (best) price ask to set as actual (best) price ask must have the same primary and secondary currencies as the actual (best) price bid.");
+                }
             }
-        }
 
-        if (this.actualPriceAsk != null) {
-            // Currencies check between the actual ask and the new actual ask.
-            if (actualPriceAsk.getPrimaryCurrency().compareTo(this.actualPriceAsk.getPrimaryCurrency()) != 0 || actualPriceAsk.getSecondaryCurrency().compareTo(this.actualPriceAsk.getSecondaryCurrency()) != 0) {
-                throw new IllegalArgumentException("The actual (best) price ask to set as actual (best) price ask must have the same primary and secondary currencies as the actual (best) price ask.");
+            if (this.actualPriceAsk != null) {
+                // Currencies check between the actual ask and the new actual ask.
+                if (actualPriceAsk.getPrimaryCurrency().compareTo(this.actualPriceAsk.getPrimaryCurrency()) != 0 || actualPriceAsk.getSecondaryCurrency().compareTo(this.actualPriceAsk.getSecondaryCurrency()) != 0) {
+                    throw new IllegalArgumentException("The actual (best) price ask to set as actual (best) price ask must have the same primary and secondary currencies as the actual (best) price ask.");
+                }
             }
-        }
 
-        // Prevent the creation of a new order book with the same currencies.
-        if (this.actualPriceAsk == null && this.actualPriceBid == null) {
-            // Check only on the first set of a best ask or a best bid.
-            Currency primaryCurrency = actualPriceAsk.getPrimaryCurrency();
-            Currency secondaryCurrency = actualPriceAsk.getSecondaryCurrency();
-            for (OrderBook orderBook : orderBooks) {
-                if (orderBook != this && orderBook.getPrimaryCurrency() == primaryCurrency && orderBook.getSecondaryCurrency() == secondaryCurrency) {
-                    throw new IllegalStateException("The order book with the same currencies already exists.");
+            // Prevent the creation of a new order book with the same currencies.
+            if (this.actualPriceAsk == null && this.actualPriceBid == null) {
+                // Check only on the first set of a best ask or a best bid.
+                Currency primaryCurrency = actualPriceAsk.getPrimaryCurrency();
+                Currency secondaryCurrency = actualPriceAsk.getSecondaryCurrency();
+                for (OrderBook orderBook : orderBooks) {
+                    if (orderBook != this && orderBook.getPrimaryCurrency() == primaryCurrency && orderBook.getSecondaryCurrency() == secondaryCurrency) {
+                        throw new IllegalStateException("The order book with the same currencies already exists.");
+                    }
                 }
             }
-        }
 
-        this.actualPriceAsk = actualPriceAsk;
+            this.actualPriceAsk = actualPriceAsk;
+
+        } finally {
+            this.bookLock.unlock();
+        }
 
     }
     /**
@@ -1218,52 +1364,59 @@ public class OrderBook implements Comparable<OrderBook> {
      * @throws IllegalStateException If an order book with the same currencies already exists.
      *
      */
-    private synchronized void setActualPriceBid(SpecificPrice actualPriceBid) throws IllegalArgumentException, IllegalStateException {
+    private void setActualPriceBid(SpecificPrice actualPriceBid) throws IllegalArgumentException, IllegalStateException {
 
-        // Null check.
-        if (actualPriceBid == null) {
-            this.actualPriceBid = null;
-            return;
-        }
+        this.bookLock.lock();
+        try {
 
-        // Prices cannot change, have no setters, no synchronization needed.
+            // Null check.
+            if (actualPriceBid == null) {
+                this.actualPriceBid = null;
+                return;
+            }
 
-        // The actual price bid must be a bid price.
-        if (actualPriceBid.getType() != PriceType.BID) {
-            throw new IllegalArgumentException("The actual (best) price bid to set as actual (best) price bid must be a bid price.");
-        }
+            // Prices cannot change, have no setters, no synchronization needed.
 
-        if (this.actualPriceBid != null) {
-            // Currency check.
-            if (actualPriceBid.getPrimaryCurrency().compareTo(this.actualPriceBid.getPrimaryCurrency()) != 0 || actualPriceBid.getSecondaryCurrency().compareTo(this.actualPriceBid.getSecondaryCurrency()) != 0) {
-                throw new IllegalArgumentException("The actual (best) price bid to set as actual (best) price bid must have the same primary and secondary currencies as the actual (best) price bid.");
+            // The actual price bid must be a bid price.
+            if (actualPriceBid.getType() != PriceType.BID) {
+                throw new IllegalArgumentException("The actual (best) price bid to set as actual (best) price bid must be a bid price.");
             }
-        }
 
-        if (this.actualPriceAsk != null) {
-            // The new actual bid price must be LESS than the actual ask price.
-            if (actualPriceBid.getValue() > this.actualPriceAsk.getValue()) {
-                throw new IllegalArgumentException("The actual (best) price bid to set as actual (best) price bid must be LESS than the actual (best) price ask.");
+            if (this.actualPriceBid != null) {
+                // Currency check.
+                if (actualPriceBid.getPrimaryCurrency().compareTo(this.actualPriceBid.getPrimaryCurrency()) != 0 || actualPriceBid.getSecondaryCurrency().compareTo(this.actualPriceBid.getSecondaryCurrency()) != 0) {
+                    throw new IllegalArgumentException("The actual (best) price bid to set as actual (best) price bid must have the same primary and secondary currencies as the actual (best) price bid.");
+                }
             }
-            // Currencies check between the actual ask and the new actual bid.
-            if (actualPriceBid.getPrimaryCurrency().compareTo(this.actualPriceAsk.getPrimaryCurrency()) != 0 || actualPriceBid.getSecondaryCurrency().compareTo(this.actualPriceAsk.getSecondaryCurrency()) != 0) {
-                throw new IllegalArgumentException("The actual (best) price bid to set as actual (best) price bid must have the same primary and secondary currencies as the actual (best) price ask.");
+
+            if (this.actualPriceAsk != null) {
+                // The new actual bid price must be LESS than the actual ask price.
+                if (actualPriceBid.getValue() > this.actualPriceAsk.getValue()) {
+                    throw new IllegalArgumentException("The actual (best) price bid to set as actual (best) price bid must be LESS than the actual (best) price ask.");
+                }
+                // Currencies check between the actual ask and the new actual bid.
+                if (actualPriceBid.getPrimaryCurrency().compareTo(this.actualPriceAsk.getPrimaryCurrency()) != 0 || actualPriceBid.getSecondaryCurrency().compareTo(this.actualPriceAsk.getSecondaryCurrency()) != 0) {
+                    throw new IllegalArgumentException("The actual (best) price bid to set as actual (best) price bid must have the same primary and secondary currencies as the actual (best) price ask.");
+                }
             }
-        }
 
-        // Prevent the creation of a new order book with the same currencies.
-        if (this.actualPriceAsk == null && this.actualPriceBid == null) {
-            // Check only on the first set of a best ask or a best bid.
-            Currency primaryCurrency = actualPriceBid.getPrimaryCurrency();
-            Currency secondaryCurrency = actualPriceBid.getSecondaryCurrency();
-            for (OrderBook orderBook : orderBooks) {
-                if (orderBook != this && orderBook.getPrimaryCurrency() == primaryCurrency && orderBook.getSecondaryCurrency() == secondaryCurrency) {
-                    throw new IllegalStateException("The order book with the same currencies already exists.");
+            // Prevent the creation of a new order book with the same currencies.
+            if (this.actualPriceAsk == null && this.actualPriceBid == null) {
+                // Check only on the first set of a best ask or a best bid.
+                Currency primaryCurrency = actualPriceBid.getPrimaryCurrency();
+                Currency secondaryCurrency = actualPriceBid.getSecondaryCurrency();
+                for (OrderBook orderBook : orderBooks) {
+                    if (orderBook != this && orderBook.getPrimaryCurrency() == primaryCurrency && orderBook.getSecondaryCurrency() == secondaryCurrency) {
+                        throw new IllegalStateException("The order book with the same currencies already exists.");
+                    }
                 }
             }
-        }
 
-        this.actualPriceBid = actualPriceBid;
+            this.actualPriceBid = actualPriceBid;
+
+        } finally {
+            this.bookLock.unlock();
+        }
 
     }
 
@@ -1286,14 +1439,21 @@ public class OrderBook implements Comparable<OrderBook> {
 
     // TOSTRING METHODS
     @Override
-    public synchronized String toString() {
+    public String toString() {
+
+        this.bookLock.lock();
+        try {
+
+            String bestAsk = this.getActualPriceAsk() == null ? "null" : this.getActualPriceAsk().toString();
+            String bestBid = this.getActualPriceBid() == null ? "null" : this.getActualPriceBid().toString();
+            String primaryCurrency = this.getPrimaryCurrency() == null ? "null" : this.getPrimaryCurrency().name();
+            String secondaryCurrency = this.getSecondaryCurrency() == null ? "null" : this.getSecondaryCurrency().name();
 
-        String bestAsk = this.getActualPriceAsk() == null ? "null" : this.getActualPriceAsk().toString();
-        String bestBid = this.getActualPriceBid() == null ? "null" : this.getActualPriceBid().toString();
-        String primaryCurrency = this.getPrimaryCurrency() == null ? "null" : this.getPrimaryCurrency().name();
-        String secondaryCurrency = this.getSecondaryCurrency() == null ? "null" : this.getSecondaryCurrency().name();
+            return String.format("Pair [%s/%s] - Actual Ask [%s] - Actual Bid [%s] - Price Increment [%s]", primaryCurrency, secondaryCurrency, bestAsk, bestBid, this.getIncrement().toString());
 
-        return String.format("Pair [%s/%s] - Actual Ask [%s] - Actual Bid [%s] - Price Increment [%s]", primaryCurrency, secondaryCurrency, bestAsk, bestBid, this.getIncrement().toString());
+        } finally {
+            this.bookLock.unlock();
+        }
 
     }
     /**
@@ -1303,14 +1463,21 @@ public class OrderBook implements Comparable<OrderBook> {
      * @return A short string representation of the order book.
      *
      */
-    public synchronized String toStringShort() {
+    public String toStringShort() {
+
+        this.bookLock.lock();
+        try {
+
+            String bestAskValue = this.getActualPriceAsk() == null ? "null" : this.getActualPriceAsk().getValue().toString();
+            String bestBidValue = this.getActualPriceBid() == null ? "null" : this.getActualPriceBid().getValue().toString();
+            String primaryCurrency = this.getPrimaryCurrency() == null ? "null" : this.getPrimaryCurrency().name();
+            String secondaryCurrency = this.getSecondaryCurrency() == null ? "null" : this.getSecondaryCurrency().name();
 
-        String bestAskValue = this.getActualPriceAsk() == null ? "null" : this.getActualPriceAsk().getValue().toString();
-        String bestBidValue = this.getActualPriceBid() == null ? "null" : this.getActualPriceBid().getValue().toString();
-        String primaryCurrency = this.getPrimaryCurrency() == null ? "null" : this.getPrimaryCurrency().name();
-        String secondaryCurrency = this.getSecondaryCurrency() == null ? "null" : this.getSecondaryCurrency().name();
+            return String.format("Pair [%s/%s] - Actual Ask Value [%s] - Actual Bid Value [%s] - Price Increment [%s]", primaryCurrency, secondaryCurrency, bestAskValue, bestBidValue, this.getIncrement().toString());
 
-        return String.format("Pair [%s/%s] - Actual Ask Value [%s] - Actual Bid Value [%s] - Price Increment [%s]", primaryCurrency, secondaryCurrency, bestAskValue, bestBidValue, this.getIncrement().toString());
+        } finally {
+            this.bookLock.unlock();
+        }
 
     }
     /**
@@ -1320,41 +1487,48 @@ public class OrderBook implements Comparable<OrderBook> {
      * @return A string representation of the order book with the limit book.
      *
      */
-    public synchronized String toStringWithLimitBook() {
+    public String toStringWithLimitBook() {
 
-        String info = this.toStringShort();
+        this.bookLock.lock();
+        try {
 
-        // Length is good since the super.toString() is a one line string.
-        String separator = new Separator("-", info.length() + "LIMIT BOOK ".length()).toString();
+            String info = this.toStringShort();
 
-        // Adding the basic market info.
-        String result = "\n" + separator + "\n" + "LIMIT BOOK " + info + "\n" + separator;
+            // Length is good since the super.toString() is a one line string.
+            String separator = new Separator("-", info.length() + "LIMIT BOOK ".length()).toString();
 
-        // I want to divide the best ask and the best bid.
-        // From top to bottom: ask, ask, best ask, best bid, bid, bid.
-        Boolean firstBid = true;
-        String lineStr;
-        for (SpecificPrice price : limitBook.keySet()) {
+            // Adding the basic market info.
+            String result = "\n" + separator + "\n" + "LIMIT BOOK " + info + "\n" + separator;
 
-            OrderBookLine<LimitOrder> line = limitBook.get(price);
-            // Removing additionals infos.
-            lineStr = line.toString().split("Type")[1].trim();
+            // I want to divide the best ask and the best bid.
+            // From top to bottom: ask, ask, best ask, best bid, bid, bid.
+            Boolean firstBid = true;
+            String lineStr;
+            for (SpecificPrice price : limitBook.keySet()) {
 
-            if (price.getType() == PriceType.ASK) {
-                result += "\n" + lineStr;
-            } else {
-                if (firstBid) {
-                    String separator2 = new Separator("*", lineStr.length()).toString();
-                    result += "\n" + separator2;
-                    firstBid = false;
+                OrderBookLine<LimitOrder> line = limitBook.get(price);
+                // Removing additionals infos.
+                lineStr = line.toString().split("Type")[1].trim();
+
+                if (price.getType() == PriceType.ASK) {
+                    result += "\n" + lineStr;
+                } else {
+                    if (firstBid) {
+                        String separator2 = new Separator("*", lineStr.length()).toString();
+                        result += "\n" + separator2;
+                        firstBid = false;
+                    }
+                    result += "\n" + lineStr;
                 }
-                result += "\n" + lineStr;
+
             }
 
-        }
+            result += "\n" + separator + "\n";
+            return result;
 
-        result += "\n" + separator + "\n";
-        return result;
+        } finally {
+            this.bookLock.unlock();
+        }
 
     }
     /**
@@ -1364,57 +1538,119 @@ public class OrderBook implements Comparable<OrderBook> {
      * @return A string representation of the order book with the stop book.
      *
      */
-    public synchronized String toStringWithStopBook() {
+    public String toStringWithStopBook() {
 
-        String info = this.toStringShort();
+        this.bookLock.lock();
+        try {
 
-        String askBidView = "STOP BOOK (ASK/BID REVERSED) - ";
+            String info = this.toStringShort();
 
-        // Length is good since the super.toString() is a one line string.
-        String separator = new Separator("-", info.length() + askBidView.length()).toString();
+            String askBidView = "STOP BOOK (ASK/BID REVERSED) - ";
 
-        // Adding the basic market info.
-        String result = "\n" + separator + "\n" + askBidView + info + "\n" + separator;
+            // Length is good since the super.toString() is a one line string.
+            String separator = new Separator("-", info.length() + askBidView.length()).toString();
 
-        // I want to divide the best ask and the best bid.
-        // From top to bottom: ask, ask, best ask, best bid, bid, bid.
-        Boolean firstAsk = true;
-        String lineStr;
-        Iterator<SpecificPrice> iterator = stopBook.keySet().iterator();
-        Iterator<SpecificPrice> iteratorNext = stopBook.keySet().iterator();
-        SpecificPrice bestBid = this.getActualPriceBid();
-        while (iterator.hasNext()) {
-            SpecificPrice price = iterator.next();
+            // Adding the basic market info.
+            String result = "\n" + separator + "\n" + askBidView + info + "\n" + separator;
 
-            SpecificPrice priceNext = null;
-            if (iteratorNext.hasNext()) {
-                priceNext = iteratorNext.next();
-            }
+            // I want to divide the best ask and the best bid.
+            // From top to bottom: ask, ask, best ask, best bid, bid, bid.
+            Boolean firstAsk = true;
+            String lineStr;
+            Iterator<SpecificPrice> iterator = stopBook.keySet().iterator();
+            Iterator<SpecificPrice> iteratorNext = stopBook.keySet().iterator();
+            SpecificPrice bestBid = this.getActualPriceBid();
+            while (iterator.hasNext()) {
+                SpecificPrice price = iterator.next();
 
-            OrderBookLine<StopOrder> line = stopBook.get(price);
-            // Removing additionals infos.
-            lineStr = line.toString().split("Type")[1].trim();
+                SpecificPrice priceNext = null;
+                if (iteratorNext.hasNext()) {
+                    priceNext = iteratorNext.next();
+                }
 
-            if (priceNext != null && bestBid != null && priceNext.getValue() <= bestBid.getValue() && price.getValue() >= bestBid.getValue()) {
-                String separator2 = new Separator("$", lineStr.length()).toString();
-                result += "\n" + separator2;
-            }
+                OrderBookLine<StopOrder> line = stopBook.get(price);
+                // Removing additionals infos.
+                lineStr = line.toString().split("Type")[1].trim();
 
-            if (price.getType() == PriceType.BID) {
-                result += "\n" + lineStr;
-            } else {
-                if (firstAsk) {
-                    String separator2 = new Separator("*", lineStr.length()).toString();
+                if (priceNext != null && bestBid != null && priceNext.getValue() <= bestBid.getValue() && price.getValue() >= bestBid.getValue()) {
+                    String separator2 = new Separator("$", lineStr.length()).toString();
                     result += "\n" + separator2;
-                    firstAsk = false;
                 }
-                result += "\n" + lineStr;
+
+                if (price.getType() == PriceType.BID) {
+                    result += "\n" + lineStr;
+                } else {
+                    if (firstAsk) {
+                        String separator2 = new Separator("*", lineStr.length()).toString();
+                        result += "\n" + separator2;
+                        firstAsk = false;
+                    }
+                    result += "\n" + lineStr;
+                }
+
             }
 
+            result += "\n" + separator + "\n";
+            return result;
+
+        } finally {
+            this.bookLock.unlock();
+        }
+
+    }
+    /**
+     *
+     * Gets the depth of the limit book: the best price levels of each side, with their quantity and orders.
+     *
+     * Only the values of the levels in the depth are copied while holding the book lock, the caller renders them after the lock is released.
+     * The levels are found starting from the best prices, so the copy doesn't scan the levels out of the depth.
+     *
+     * @param maxLevels The max levels of each side in the depth.
+     *
+     * @return The depth of the limit book.
+     *
+     * @throws NullPointerException If the max levels are null.
+     * @throws IllegalArgumentException If the max levels are negative.
+     *
+     */
+    public OrderBookDepth getDepth(Integer maxLevels) throws NullPointerException, IllegalArgumentException {
+
+        // Null check.
+        if (maxLevels == null) {
+            throw new NullPointerException("Max levels of the order book depth cannot be null.");
+        }
+        if (maxLevels < 0) {
+            throw new IllegalArgumentException("Max levels of the order book depth cannot be negative.");
+        }
+
+        this.bookLock.lock();
+        try {
+
+            // The book is sorted from the highest price, so the asks are before the best ask and the bids after the best bid.
+            SpecificPrice bestAsk = this.getActualPriceAsk();
+            SpecificPrice bestBid = this.getActualPriceBid();
+            NavigableMap<SpecificPrice, OrderBookLine<LimitOrder>> asks = bestAsk == null ? Collections.emptyNavigableMap() : this.limitBook.headMap(bestAsk, true).descendingMap();
+            NavigableMap<SpecificPrice, OrderBookLine<LimitOrder>> bids = bestBid == null ? Collections.emptyNavigableMap() : this.limitBook.tailMap(bestBid, true);
+
+            OrderBookDepth depth = new OrderBookDepth(bestAsk == null ? null : bestAsk.getValue(), bestBid == null ? null : bestBid.getValue(), asks.size(), bids.size());
+            OrderBook.copyLevels(asks, maxLevels, depth.getAsks());
+            OrderBook.copyLevels(bids, maxLevels, depth.getBids());
+            return depth;
+
+        } finally {
+            this.bookLock.unlock();
         }
 
-        result += "\n" + separator + "\n";
-        return result;
+    }
+    // The first levels of a side, the caller holds the book lock.
+    private static void copyLevels(NavigableMap<SpecificPrice, OrderBookLine<LimitOrder>> side, Integer maxLevels, LinkedList<OrderBookDepth.DepthLevel> levels) {
+
+        for (OrderBookLine<LimitOrder> line : side.values()) {
+            if (levels.size() >= maxLevels) {
+                break;
+            }
+            levels.add(new OrderBookDepth.DepthLevel(line.getLinePrice().getValue(), line.getTotalQuantity().getValue(), line.getOrdersNumber()));
+        }
 
     }
 
@@ -1431,7 +1667,8 @@ public class OrderBook implements Comparable<OrderBook> {
 
         // Fill the list and process if there are some ready stop orders to execute.
         this.triggerStopOrders();
-        synchronized (this.stopNowMarketOrdersToExecute) {
+        this.stopNowLock.lock();
+        try {
 
             stopOrdersExecutorThread = new StopOrdersExecutorThread(this);
             stopOrdersExecutorThread.start();
@@ -1439,10 +1676,12 @@ public class OrderBook implements Comparable<OrderBook> {
             // The other thread is just started, it will wait on the lock and then will wake up us (the main thread).
 
             try {
-                this.stopNowMarketOrdersToExecute.wait();
+                this.stopNowChanged.await();
             } catch (InterruptedException ex) {
             }
         
+        } finally {
+            this.stopNowLock.unlock();
         }
 
     }
@@ -1461,15 +1700,830 @@ public class OrderBook implements Comparable<OrderBook> {
         return this.stopNowMarketOrdersToExecute;
 
     }
-    private Boolean verboseLogging = false;
+    protected ReentrantLock getStopNowLock() {
+
+        return this.stopNowLock;
+
+    }
+    protected Condition getStopNowChanged() {
+
+        return this.stopNowChanged;
+
+    }
+    /**
+     *
+     * Gets the lock of the order book.
+     *
+     * Taken by the orders that read the best prices of the book while they are created or executed, to see them coherent with the books.
+     * It's reentrant, so it can be taken also by the order book operations that already hold it.
+     *
+     * @return The lock of the order book.
+     *
+     */
+    public ReentrantLock getBookLock() {
+
+        return this.bookLock;
+
+    }
+    // Verbose logging, the debug messages of the engine's category of the log (see Log).
     public void setVerboseLogging(Boolean verboseLogging) {
 
-        this.verboseLogging = verboseLogging;
+        Log.setLevel(Category.ENGINE, verboseLogging ? Level.DEBUG : Level.INFO);
 
     }
     public Boolean getVerboseLogging() {
 
-        return this.verboseLogging;
+        return Log.isEnabled(Category.ENGINE, Level.DEBUG);
+
+    }
+
+
+
+    // SNAPSHOT AND RECOVERY
+    // True while the order book is rebuilt from a snapshot and the orders journal tail.
+    private Boolean recovering = false;
+    // True if the resting orders added and removed are logged in the order book events file, only for the order book recovered from the snapshots.
+    private Boolean eventsLogged = false;
+    /**
+     *
+     * Sets if the resting orders added and removed (not filled) are logged in the order book events file, so the recovery rebuilds them (see DBOrderBookEvents).
+     *
+     * Enabled by the recovery on the order book recovered, the events file must be attached.
+     *
+     * Synchronized to avoid concurrency problems with the orders execution.
+     *
+     * @param eventsLogged True to log the events, false otherwise.
+     *
+     * @throws NullPointerException If the events logged flag is null.
+     *
+     */
+    public void setEventsLogged(Boolean eventsLogged) throws NullPointerException {
+
+        this.bookLock.lock();
+        try {
+
+            // Null check.
+            if (eventsLogged == null) {
+                throw new NullPointerException("Events logged flag of an order book cannot be null.");
+            }
+
+            this.eventsLogged = eventsLogged;
+
+        } finally {
+            this.bookLock.unlock();
+        }
+
+    }
+    /**
+     *
+     * Takes a consistent snapshot of the order book state.
+     *
+     * The snapshot is taken at an engine cycle boundary: when the StopOrdersExecutorThread has no stop, now market orders to execute.
+     * The lock on the stop, now market orders list is taken BEFORE the lock on the book, the same order used by the StopOrdersExecutorThread.
+     * While holding both, no order can be executed, so the resting orders, the users' balances, the best prices, the unique number generator state, the orders journal position and the order book events position are coherent.
+     *
+     * The state is only copied while holding the locks, the serialization and the file writing are done by the caller, so the matching is stopped only for the copy.
+     *
+     * @return The snapshot of the order book, or null if the order book is not at a cycle boundary (some stop, now market orders are waiting to be executed). In this case, retry later.
+     *
+     */
+    public OrderBookSnapshot takeSnapshot() {
+
+        this.stopNowLock.lock();
+        try {
+
+            if (!this.stopNowMarketOrdersToExecute.isEmpty()) {
+                return null;
+            }
+
+            this.bookLock.lock();
+            try {
+
+                OrderBookSnapshot snapshot = new OrderBookSnapshot(DBOrdersInterface.getJournalEntries(), DBOrderBookEvents.getLastSeq(), UniqueNumber.getLastNumber(), this.actualPriceAsk, this.actualPriceBid);
+
+                for (OrderBookLine<LimitOrder> line : this.limitBook.values()) {
+                    for (LimitOrder order : line.getOrdersInArrivalOrder()) {
+                        snapshot.addLimitOrder(order);
+                    }
+                }
+                for (OrderBookLine<StopOrder> line : this.stopBook.values()) {
+                    for (StopOrder order : line.getOrdersInArrivalOrder()) {
+                        snapshot.addStopOrder(order);
+                    }
+                }
+                if (this.balancesEnabled) {
+                    for (String username : this.usersOrders.keySet()) {
+                        UserOrders userOrders = this.usersOrders.get(username);
+                        snapshot.addBalance(username, userOrders.getPrimaryBalance(), userOrders.getSecondaryBalance());
+                    }
+                }
+
+                return snapshot;
+
+            } finally {
+                this.bookLock.unlock();
+            }
+
+        } finally {
+            this.stopNowLock.unlock();
+        }
+
+    }
+    /**
+     *
+     * Sets the recovering state of the order book.
+     *
+     * While recovering, the stop orders are not triggered by the best prices changes, since the triggered ones are already in the orders journal tail.
+     * When the recovering ends, the stop orders are checked once, to trigger the ones left ready by the recovery.
+     *
+     * Synchronized to avoid concurrency problems with the stop orders trigger.
+     *
+     * @param recovering True to start the recovery, false to end it.
+     *
+     * @throws NullPointerException If the recovering flag is null.
+     *
+     */
+    public void setRecovering(Boolean recovering) throws NullPointerException {
+
+        this.bookLock.lock();
+        try {
+
+            // Null check.
+            if (recovering == null) {
+                throw new NullPointerException("Recovering flag of an order book cannot be null.");
+            }
+
+            Boolean wasRecovering = this.recovering;
+            this.recovering = recovering;
+
+            if (wasRecovering && !recovering) {
+                this.triggerStopOrders();
+            }
+
+        } finally {
+            this.bookLock.unlock();
+        }
+
+    }
+    /**
+     *
+     * Applies a limit order fill, read from the orders journal tail, to a resting limit order.
+     *
+     * Used only while recovering the order book, the resting limit order keeps its priority in the line.
+     * If the order is fully filled, it's removed from the line, and the line from the book if empty.
+     *
+     * Synchronized to avoid concurrency problems, to protect the limit book.
+     *
+     * @param orderId The id of the resting limit order filled.
+     * @param filled The filled quantity.
+     *
+     * @return True if the order was found in the limit book, false otherwise.
+     *
+     * @throws NullPointerException If the order id or the filled quantity are null.
+     *
+     */
+    public Boolean applyJournalFill(Long orderId, Quantity filled) throws NullPointerException {
+
+        this.bookLock.lock();
+        try {
+
+            // Null checks.
+            if (orderId == null) {
+                throw new NullPointerException("The order id of a journal fill to apply to an order book cannot be null.");
+            }
+            if (filled == null) {
+                throw new NullPointerException("The filled quantity of a journal fill to apply to an order book cannot be null.");
+            }
+
+            for (OrderBookLine<LimitOrder> line : limitBook.values()) {
+                LimitOrder order = line.getOrderById(orderId);
+                if (order != null) {
+                    Integer before = order.getQuantity().getValue();
+                    line.reduceOrder(order, filled);
+                    this.indexFill(order, before - order.getQuantity().getValue());
+                    if (line.getOrdersNumber() == 0) {
+                        this.removeLimitLine(line.getLinePrice());
+                    }
+                    return true;
+                }
+            }
+
+            return false;
+
+        } finally {
+            this.bookLock.unlock();
+        }
+
+    }
+    /**
+     *
+     * Restores the balances of an user, read from a snapshot.
+     *
+     * Used only while recovering the order book, before adding the resting orders, that rebuild the reservations.
+     *
+     * Synchronized to avoid concurrency problems with the orders execution.
+     *
+     * @param username The username of the user.
+     * @param primaryBalance The balance in the primary currency.
+     * @param secondaryBalance The balance in the secondary currency.
+     *
+     * @throws NullPointerException If the username or the balances are null.
+     *
+     */
+    public void restoreUserBalances(String username, Long primaryBalance, Long secondaryBalance) throws NullPointerException {
+
+        this.bookLock.lock();
+        try {
+
+            // Null checks.
+            if (username == null) {
+                throw new NullPointerException("The username of the balances to restore in an order book cannot be null.");
+            }
+            if (primaryBalance == null || secondaryBalance == null) {
+                throw new NullPointerException("The balances to restore in an order book cannot be null.");
+            }
+
+            if (!this.balancesEnabled) {
+                return;
+            }
+            this.userOrdersFor(username).setBalances(primaryBalance, secondaryBalance);
+
+        } finally {
+            this.bookLock.unlock();
+        }
+
+    }
+    /**
+     *
+     * Settles the balances of the user of a fill, read from the orders journal tail.
+     *
+     * Each entry of the orders journal is a fill, with its side, price and size, and the username of its user if any.
+     * Used only while recovering the order book, the reservations of the filled resting orders are released by applyJournalFill().
+     *
+     * Synchronized to avoid concurrency problems with the orders execution.
+     *
+     * @param fill The order of the journal entry.
+     *
+     * @throws NullPointerException If the order is null.
+     *
+     */
+    public void applyJournalSettlement(Order fill) throws NullPointerException {
+
+        this.bookLock.lock();
+        try {
+
+            // Null check.
+            if (fill == null) {
+                throw new NullPointerException("The journal fill to settle in an order book cannot be null.");
+            }
+
+            if (!this.balancesEnabled || fill.getUser() == null) {
+                return;
+            }
+
+            long price = fill instanceof MarketOrder marketOrder ? marketOrder.getExecutionPrice().getValue() : fill.getPrice().getValue();
+            this.userOrdersFor(fill.getUser().getUsername()).settle(UserOrders.sideOf(fill), price, fill.getQuantity().getValue());
+
+        } finally {
+            this.bookLock.unlock();
+        }
+
+    }
+
+
+
+    // USERS ORDERS INDEX
+    /**
+     *
+     * Sets the per-user exposure limits on the resting orders.
+     *
+     * An user cannot have more resting orders (limit and stop) than the max open orders, nor a sum of their remaining quantities over the max open quantity.
+     * An order over the limits is refused, the market orders are not limited since they never rest on the book.
+     *
+     * Synchronized to avoid concurrency problems with the orders execution.
+     *
+     * @param maxOpenOrders The max number of resting orders of an user, zero for no limit.
+     * @param maxOpenQuantity The max sum of the remaining quantities of the resting orders of an user, zero for no limit.
+     *
+     * @throws NullPointerException If the limits are null.
+     * @throws IllegalArgumentException If the limits are negative.
+     *
+     */
+    public void setUserLimits(Integer maxOpenOrders, Long maxOpenQuantity) throws NullPointerException, IllegalArgumentException {
+
+        this.bookLock.lock();
+        try {
+
+            // Null checks.
+            if (maxOpenOrders == null) {
+                throw new NullPointerException("The max open orders per user of an order book cannot be null.");
+            }
+            if (maxOpenQuantity == null) {
+                throw new NullPointerException("The max open quantity per user of an order book cannot be null.");
+            }
+
+            if (maxOpenOrders < 0 || maxOpenQuantity < 0) {
+                throw new IllegalArgumentException("The exposure limits per user of an order book cannot be negative.");
+            }
+
+            this.maxOpenOrdersPerUser = maxOpenOrders;
+            this.maxOpenQuantityPerUser = maxOpenQuantity;
+
+        } finally {
+            this.bookLock.unlock();
+        }
+
+    }
+    /**
+     *
+     * Sets if the resting orders of an user are cancelled when its last connection is closed.
+     *
+     * @param cancelOrdersOnDisconnect True to cancel them, false to keep them on the book.
+     *
+     * @throws NullPointerException If the flag is null.
+     *
+     */
+    public void setCancelOrdersOnDisconnect(Boolean cancelOrdersOnDisconnect) throws NullPointerException {
+
+        // Null check.
+        if (cancelOrdersOnDisconnect == null) {
+            throw new NullPointerException("The cancel orders on disconnect flag of an order book cannot be null.");
+        }
+
+        this.cancelOrdersOnDisconnect = cancelOrdersOnDisconnect;
+
+    }
+    public Boolean getCancelOrdersOnDisconnect() {
+
+        return this.cancelOrdersOnDisconnect;
+
+    }
+    /**
+     *
+     * Enables the per-user balances, in the primary and secondary currencies of the pair.
+     *
+     * Each user starts with the initial balances, the first time it's seen by the book.
+     * Then a limit or a stop order is accepted only if the user's available balance covers it, and the needed balance is reserved until the order is cancelled, triggered or filled.
+     * A market order is executed only if the user's available balance covers the lines it will consume.
+     * Each fill settles the balances of both the users involved.
+     *
+     * Must be called before any order is executed, also before the recovery, since the reservations of the resting orders are rebuilt while adding them.
+     *
+     * Synchronized to avoid concurrency problems with the orders execution.
+     *
+     * @param initialPrimaryBalance The initial balance of each user in the primary currency.
+     * @param initialSecondaryBalance The initial balance of each user in the secondary currency.
+     *
+     * @throws NullPointerException If the initial balances are null.
+     * @throws IllegalArgumentException If the initial balances are negative.
+     *
+     */
+    public void enableBalances(Long initialPrimaryBalance, Long initialSecondaryBalance) throws NullPointerException, IllegalArgumentException {
+
+        this.bookLock.lock();
+        try {
+
+            // Null checks.
+            if (initialPrimaryBalance == null) {
+                throw new NullPointerException("The initial primary balance per user of an order book cannot be null.");
+            }
+            if (initialSecondaryBalance == null) {
+                throw new NullPointerException("The initial secondary balance per user of an order book cannot be null.");
+            }
+
+            if (initialPrimaryBalance < 0 || initialSecondaryBalance < 0) {
+                throw new IllegalArgumentException("The initial balances per user of an order book cannot be negative.");
+            }
+
+            this.initialPrimaryBalance = initialPrimaryBalance;
+            this.initialSecondaryBalance = initialSecondaryBalance;
+            this.balancesEnabled = true;
+
+        } finally {
+            this.bookLock.unlock();
+        }
+
+    }
+    public Boolean getBalancesEnabled() {
+
+        this.bookLock.lock();
+        try {
+
+            return this.balancesEnabled;
+
+        } finally {
+            this.bookLock.unlock();
+        }
+
+    }
+    /**
+     *
+     * Gets the balances of an user, in the primary and then in the secondary currency of the pair.
+     *
+     * Synchronized to avoid concurrency problems with the orders execution.
+     *
+     * @param user The user.
+     *
+     * @return The balances of the user, empty if the balances are not enabled.
+     *
+     * @throws NullPointerException If the user is null.
+     *
+     */
+    public LinkedList<Balance> getUserBalances(User user) throws NullPointerException {
+
+        this.bookLock.lock();
+        try {
+
+            // Null check.
+            if (user == null) {
+                throw new NullPointerException("The user to get the balances of cannot be null.");
+            }
+
+            LinkedList<Balance> balances = new LinkedList<>();
+            if (!this.balancesEnabled) {
+                return balances;
+            }
+
+            Currency primaryCurrency = this.getPrimaryCurrency() != null ? this.getPrimaryCurrency() : Currency.getDefaultPrimaryCurrency();
+            Currency secondaryCurrency = this.getSecondaryCurrency() != null ? this.getSecondaryCurrency() : Currency.getDefaultSecondaryCurrency();
+            UserOrders userOrders = this.userOrdersFor(user.getUsername());
+            balances.add(new Balance(primaryCurrency, userOrders.getPrimaryBalance(), userOrders.getPrimaryAvailable()));
+            balances.add(new Balance(secondaryCurrency, userOrders.getSecondaryBalance(), userOrders.getSecondaryAvailable()));
+            return balances;
+
+        } finally {
+            this.bookLock.unlock();
+        }
+
+    }
+    /**
+     *
+     * Gets the resting orders (limit and stop) of an user, in arrival order.
+     *
+     * It's a O(k) operation, where k is the number of resting orders of the user, the book is not scanned.
+     * The orders are returned as trades, the same format of the notifications, with their remaining quantity.
+     * They are built holding the lock on the book, so the quantities are coherent.
+     *
+     * Synchronized to avoid concurrency problems with the orders execution.
+     *
+     * @param user The user.
+     *
+     * @return The resting orders of the user, empty if none.
+     *
+     * @throws NullPointerException If the user is null.
+     *
+     */
+    public LinkedList<Trade> getOpenOrders(User user) throws NullPointerException {
+
+        this.bookLock.lock();
+        try {
+
+            // Null check.
+            if (user == null) {
+                throw new NullPointerException("The user to get the open orders of cannot be null.");
+            }
+
+            LinkedList<Trade> openOrders = new LinkedList<>();
+            UserOrders userOrders = this.usersOrders.get(user.getUsername());
+            if (userOrders != null) {
+                for (Order order : userOrders.getOpenOrders()) {
+                    openOrders.add(new Trade(order));
+                }
+            }
+            return openOrders;
+
+        } finally {
+            this.bookLock.unlock();
+        }
+
+    }
+    /**
+     *
+     * Gets the recent fills of an user, the oldest first.
+     *
+     * Only the last fills are kept, see UserOrders.MAX_RECENT_TRADES, the whole history is in the orders database.
+     *
+     * Synchronized to avoid concurrency problems with the orders execution.
+     *
+     * @param user The user.
+     *
+     * @return The recent fills of the user, empty if none.
+     *
+     * @throws NullPointerException If the user is null.
+     *
+     */
+    public LinkedList<Trade> getUserTrades(User user) throws NullPointerException {
+
+        this.bookLock.lock();
+        try {
+
+            // Null check.
+            if (user == null) {
+                throw new NullPointerException("The user to get the trades of cannot be null.");
+            }
+
+            UserOrders userOrders = this.usersOrders.get(user.getUsername());
+            if (userOrders == null) {
+                return new LinkedList<>();
+            }
+            return new LinkedList<>(userOrders.getRecentTrades());
+
+        } finally {
+            this.bookLock.unlock();
+        }
+
+    }
+    /**
+     *
+     * Cancels a resting order of an user, found through the user's index.
+     *
+     * So the ownership is checked and the order is found without scanning the book.
+     *
+     * Synchronized to avoid concurrency problems with the orders execution.
+     *
+     * @param user The user, owner of the order.
+     * @param orderId The id of the order to cancel.
+     *
+     * @return True if the order was a resting order of the user and has been cancelled, false otherwise.
+     *
+     * @throws NullPointerException If the user or the order id are null.
+     *
+     */
+    public Boolean cancelUserOrder(User user, Long orderId) throws NullPointerException {
+
+        this.bookLock.lock();
+        try {
+
+            // Null checks.
+            if (user == null) {
+                throw new NullPointerException("The user to cancel an order of cannot be null.");
+            }
+            if (orderId == null) {
+                throw new NullPointerException("The order id to cancel for an user cannot be null.");
+            }
+
+            UserOrders userOrders = this.usersOrders.get(user.getUsername());
+            if (userOrders == null) {
+                return false;
+            }
+            Order order = userOrders.getOrder(orderId);
+            if (order == null) {
+                return false;
+            }
+
+            this.cancelIndexedOrder(order);
+            return true;
+
+        } finally {
+            this.bookLock.unlock();
+        }
+
+    }
+    /**
+     *
+     * Cancels all the resting orders of an user.
+     *
+     * It's a O(k) operation, where k is the number of resting orders of the user, the book is not scanned.
+     * Used when the last connection of the user is closed.
+     *
+     * Synchronized to avoid concurrency problems with the orders execution.
+     *
+     * @param user The user.
+     *
+     * @return The number of orders cancelled.
+     *
+     * @throws NullPointerException If the user is null.
+     *
+     */
+    public Integer cancelUserOrders(User user) throws NullPointerException {
+
+        this.bookLock.lock();
+        try {
+
+            // Null check.
+            if (user == null) {
+                throw new NullPointerException("The user to cancel the orders of cannot be null.");
+            }
+
+            UserOrders userOrders = this.usersOrders.get(user.getUsername());
+            if (userOrders == null) {
+                return 0;
+            }
+
+            Integer cancelled = 0;
+            // A copy, since the cancellation removes the orders from the index.
+            for (Order order : userOrders.getOpenOrders()) {
+                this.cancelIndexedOrder(order);
+                cancelled++;
+            }
+            return cancelled;
+
+        } finally {
+            this.bookLock.unlock();
+        }
+
+    }
+
+    // USERS ORDERS INDEX SUPPORT
+    // All these methods are called holding the lock on the book.
+    private UserOrders userOrdersFor(User user) {
+
+        return this.userOrdersFor(user.getUsername());
+
+    }
+    private UserOrders userOrdersFor(String username) {
+
+        return this.usersOrders.computeIfAbsent(username, newUsername -> new UserOrders(this.initialPrimaryBalance, this.initialSecondaryBalance));
+
+    }
+    private void checkUserLimits(Order order) throws IllegalStateException {
+
+        // The recovered orders were already accepted.
+        if (order.getUser() == null || this.recovering) {
+            return;
+        }
+
+        UserOrders userOrders = this.usersOrders.get(order.getUser().getUsername());
+        int openOrders = userOrders == null ? 0 : userOrders.getOpenOrdersNumber();
+        long openQuantity = userOrders == null ? 0 : userOrders.getOpenQuantity();
+
+        if (this.maxOpenOrdersPerUser > 0 && openOrders + 1 > this.maxOpenOrdersPerUser) {
+            throw new IllegalStateException("The user has reached the max number of open orders.");
+        }
+        if (this.maxOpenQuantityPerUser > 0 && openQuantity + order.getQuantity().getValue() > this.maxOpenQuantityPerUser) {
+            throw new IllegalStateException("The user has reached the max open quantity.");
+        }
+
+        if (this.balancesEnabled) {
+            PriceType side = UserOrders.sideOf(order);
+            long size = order.getQuantity().getValue();
+            long amount;
+            try {
+                amount = side == PriceType.BID ? UserOrders.counterValue(order.getPrice().getValue(), size) : size;
+            } catch (ArithmeticException ex) {
+                throw new IllegalStateException("The order's counter value is too large.");
+            }
+            if (!this.userOrdersFor(order.getUser()).canSpend(side, amount)) {
+                throw new IllegalStateException("The user has not enough available balance.");
+            }
+        }
+
+    }
+    private Boolean checkMarketOrderBalance(MarketOrder order) {
+
+        if (!this.balancesEnabled || order.getUser() == null) {
+            return true;
+        }
+
+        PriceType side = order.getMarketOrderPriceType();
+        long size = order.getQuantity().getValue();
+        if (side == PriceType.ASK) {
+            return this.userOrdersFor(order.getUser()).canSpend(side, size);
+        }
+
+        // A bid consumes the ask lines from the best one, the lowest, the counter value is summed on the same lines.
+        // The limit book has the higher prices first, so it's walked backwards, the bid lines come before the ask ones.
+        long remaining = size;
+        long amount = 0;
+        try {
+            for (OrderBookLine<LimitOrder> line : this.limitBook.descendingMap().values()) {
+                if (line.getLinePrice().getType() != PriceType.ASK) {
+                    continue;
+                }
+                long filled = Math.min(remaining, line.getTotalQuantity().getValue());
+                amount = Math.addExact(amount, UserOrders.counterValue(line.getLinePrice().getValue(), filled));
+                remaining -= filled;
+                if (remaining == 0) {
+                    break;
+                }
+            }
+        } catch (ArithmeticException ex) {
+            // Too large to be spent by anyone.
+            return false;
+        }
+        return remaining == 0 && this.userOrdersFor(order.getUser()).canSpend(side, amount);
+
+    }
+    private void indexOrder(Order order) {
+
+        if (order.getUser() == null) {
+            return;
+        }
+        UserOrders userOrders = this.userOrdersFor(order.getUser());
+        if (userOrders.getOrder(order.getId().longValue()) == null && this.balancesEnabled) {
+            userOrders.reserve(UserOrders.sideOf(order), order.getPrice().getValue(), order.getQuantity().getValue());
+        }
+        userOrders.addOrder(order);
+
+    }
+    private void unindexOrder(Order order) {
+
+        if (order.getUser() == null) {
+            return;
+        }
+        UserOrders userOrders = this.usersOrders.get(order.getUser().getUsername());
+        if (userOrders != null && userOrders.removeOrder(order.getId().longValue(), order.getQuantity().getValue()) != null && this.balancesEnabled) {
+            userOrders.release(UserOrders.sideOf(order), order.getPrice().getValue(), order.getQuantity().getValue());
+        }
+
+    }
+    private void unindexTriggeredStopOrder(MarketOrder marketOrder) {
+
+        // The market order has the user, the id and the quantity of the triggered stop order.
+        if (marketOrder.getUser() == null || marketOrder.getComingFromStopOrderId() == null) {
+            return;
+        }
+        UserOrders userOrders = this.usersOrders.get(marketOrder.getUser().getUsername());
+        if (userOrders == null) {
+            return;
+        }
+        // The stop order keeps its stop price, the one used for the reservation.
+        Order stopOrder = userOrders.removeOrder(marketOrder.getComingFromStopOrderId(), marketOrder.getQuantity().getValue());
+        if (stopOrder != null && this.balancesEnabled) {
+            userOrders.release(UserOrders.sideOf(stopOrder), stopOrder.getPrice().getValue(), marketOrder.getQuantity().getValue());
+        }
+
+    }
+    private void indexFill(Order restingOrder, long filledQuantity) {
+
+        if (restingOrder.getUser() == null) {
+            return;
+        }
+        UserOrders userOrders = this.usersOrders.get(restingOrder.getUser().getUsername());
+        if (userOrders == null || userOrders.getOrder(restingOrder.getId().longValue()) == null) {
+            return;
+        }
+
+        userOrders.reduceOpenQuantity(filledQuantity);
+        if (this.balancesEnabled) {
+            userOrders.release(UserOrders.sideOf(restingOrder), restingOrder.getPrice().getValue(), filledQuantity);
+        }
+        if (restingOrder.getQuantity().getValue() == 0) {
+            // Fully filled, already removed from the book.
+            userOrders.removeOrder(restingOrder.getId().longValue(), 0);
+        }
+
+    }
+    private void indexTrades(Notification notification) {
+
+        for (Trade trade : notification.getTrades()) {
+
+            if (trade.getUser() == null) {
+                continue;
+            }
+
+            UserOrders userOrders = this.userOrdersFor(trade.getUser());
+            userOrders.addTrade(trade);
+            if (this.balancesEnabled) {
+                userOrders.settle(trade.getType(), trade.getPrice().getValue(), trade.getSize().getValue());
+            }
+
+            // A fill of a resting limit order of the user.
+            if (trade.getOrderType() == OrderType.LIMIT) {
+                Order restingOrder = userOrders.getOrder(trade.getOrderId().longValue());
+                if (restingOrder != null) {
+                    this.indexFill(restingOrder, trade.getSize().getValue());
+                }
+            }
+
+        }
+
+    }
+    private void cancelIndexedOrder(Order order) {
+
+        switch (order) {
+            case LimitOrder limitOrder -> this.cancelOrder(limitOrder);
+            case StopOrder stopOrder -> this.cancelOrder(stopOrder);
+            default -> this.unindexOrder(order);
+        }
+
+    }
+
+    // ORDER BOOK EVENTS SUPPORT
+    // Called holding the lock on the book, so the events are in the same order of the orders journal entries.
+    // The order is already in the book, a logging error must not fail it: the order is lost only by a restart before the next snapshot.
+    private void logAddedOrder(Order order) {
+
+        if (!this.eventsLogged || this.recovering) {
+            return;
+        }
+        try {
+            DBOrderBookEvents.appendAdd(order, DBOrdersInterface.getJournalEntries());
+        } catch (IOException | IllegalStateException ex) {
+            Log.warn(Category.PERSISTENCE, "Error logging the resting order %s added: %s Trying to continue...", order.getId(), ex.getMessage());
+        }
+
+    }
+    private void logRemovedOrder(Long orderId) {
+
+        if (!this.eventsLogged || this.recovering || orderId == null) {
+            return;
+        }
+        try {
+            DBOrderBookEvents.appendRemove(orderId, DBOrdersInterface.getJournalEntries());
+        } catch (IOException | IllegalStateException ex) {
+            Log.warn(Category.PERSISTENCE, "Error logging the resting order %d removed: %s Trying to continue...", orderId, ex.getMessage());
+        }
 
     }
 
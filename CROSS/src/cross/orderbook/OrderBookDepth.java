@@ -0,0 +1,203 @@
+package cross.orderbook;
+
+import com.google.gson.Gson;
+import java.util.LinkedList;
+
+/**
+ *
+ * This class represents the depth of an order book: the best price levels of each side, with their quantity and orders.
+ *
+ * It's a plain data class, created by the OrderBook class (see getDepth()), that copies only the levels' values while holding the book lock.
+ * So the depth is rendered (e.g. in JSON by the admin endpoint) after releasing the lock, without stopping the matching for the whole render.
+ *
+ * @version 1.0
+ * @author Giulio Nisi
+ *
+ * @see OrderBook
+ *
+ */
+public class OrderBookDepth {
+
+    /**
+     *
+     * A single price level of the depth.
+     *
+     */
+    public static class DepthLevel {
+
+        private final Integer price;
+        private final Integer quantity;
+        private final Integer orders;
+
+        /**
+         *
+         * Constructor of the class.
+         *
+         * @param price The price of the level.
+         * @param quantity The total quantity of the orders on the level.
+         * @param orders The number of orders on the level.
+         *
+         */
+        public DepthLevel(Integer price, Integer quantity, Integer orders) {
+
+            this.price = price;
+            this.quantity = quantity;
+            this.orders = orders;
+
+        }
+
+        // GETTERS
+        public Integer getPrice() {
+
+            return this.price;
+
+        }
+        public Integer getQuantity() {
+
+            return this.quantity;
+
+        }
+        public Integer getOrders() {
+
+            return this.orders;
+
+        }
+
+    }
+
+    // Shared, the Gson instances are thread safe.
+    private static final Gson gson = new Gson();
+
+    // Best prices, null if the side is empty.
+    private final Integer bestAsk;
+    private final Integer bestBid;
+
+    // Price levels of each side of the book, not only the ones in the depth.
+    private final Integer askLevels;
+    private final Integer bidLevels;
+
+    // Levels in the depth, from the best price outward.
+    private final LinkedList<DepthLevel> asks = new LinkedList<>();
+    private final LinkedList<DepthLevel> bids = new LinkedList<>();
+
+    /**
+     *
+     * Constructor of the class.
+     *
+     * Package-private, the depth is created only by the OrderBook class, that adds the levels.
+     *
+     * @param bestAsk The best ask price, null if no asks.
+     * @param bestBid The best bid price, null if no bids.
+     * @param askLevels The ask price levels of the book.
+     * @param bidLevels The bid price levels of the book.
+     *
+     */
+    OrderBookDepth(Integer bestAsk, Integer bestBid, Integer askLevels, Integer bidLevels) {
+
+        this.bestAsk = bestAsk;
+        this.bestBid = bestBid;
+        this.askLevels = askLevels;
+        this.bidLevels = bidLevels;
+
+    }
+
+    // GETTERS
+    public Integer getBestAsk() {
+
+        return this.bestAsk;
+
+    }
+    public Integer getBestBid() {
+
+        return this.bestBid;
+
+    }
+    public Integer getAskLevels() {
+
+        return this.askLevels;
+
+    }
+    public Integer getBidLevels() {
+
+        return this.bidLevels;
+
+    }
+    /**
+     *
+     * Getter for the ask levels in the depth.
+     *
+     * @return The ask levels, from the best (lowest) price upward.
+     *
+     */
+    public LinkedList<DepthLevel> getAsks() {
+
+        return this.asks;
+
+    }
+    /**
+     *
+     * Getter for the bid levels in the depth.
+     *
+     * @return The bid levels, from the best (highest) price downward.
+     *
+     */
+    public LinkedList<DepthLevel> getBids() {
+
+        return this.bids;
+
+    }
+    /**
+     *
+     * Sums the quantity of the ask levels in the depth.
+     *
+     * @return The total quantity of the ask levels in the depth.
+     *
+     */
+    public Long getAsksQuantity() {
+
+        long quantity = 0;
+        for (DepthLevel level : this.asks) {
+            quantity += level.getQuantity();
+        }
+        return quantity;
+
+    }
+    /**
+     *
+     * Sums the quantity of the bid levels in the depth.
+     *
+     * @return The total quantity of the bid levels in the depth.
+     *
+     */
+    public Long getBidsQuantity() {
+
+        long quantity = 0;
+        for (DepthLevel level : this.bids) {
+            quantity += level.getQuantity();
+        }
+        return quantity;
+
+    }
+
+    // TOSTRING METHODS
+    /**
+     *
+     * Returns the depth in JSON.
+     *
+     * @return The JSON of the depth.
+     *
+     */
+    public String toJSONString() {
+
+        return OrderBookDepth.gson.toJson(this);
+
+    }
+
+    @Override
+    public String toString() {
+
+        return String.format("Order Book Depth [Best ask [%s] - Best bid [%s] - Ask levels [%d] - Bid levels [%d] - Asks in depth [%d] - Bids in depth [%d]]", this.bestAsk, this.bestBid, this.askLevels, this.bidLevels, this.asks.size(), this.bids.size());
+
+    }
+
+}
@@ -1,13 +1,17 @@
 package cross.orderbook;
 
 import java.io.IOException;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.google.gson.JsonSyntaxException;
 
 import cross.api.notifications.Notification;
 import cross.api.notifications.Trade;
 import cross.exceptions.InvalidOrder;
+import cross.logging.Log;
+import cross.logging.Log.Category;
 import cross.orders.LimitOrder;
 import cross.orders.MarketOrder;
 import cross.orders.Order;
@@ -49,6 +53,9 @@ import cross.utils.Separator;
  *
  */
 public final class OrderBookLine<GenericOrder extends Order> {
+
+    // Lock of the line, a ReentrantLock (see ClientThread).
+    private final ReentrantLock lineLock = new ReentrantLock();
     
     // This quantity is the sum of all orders quantities in this line.
     // It's useful to know the total quantity of orders in the line, without iterating over all orders each time to calculate it.
@@ -216,7 +223,7 @@ public final class OrderBookLine<GenericOrder extends Order> {
      * E.g.: ORDER X -> ORDER X - 1 -> ORDER X - 2 -> ... -> ORDER X - N
      * The returned order is: X - N.
      *
-     * Synchronized method to avoid concurrency problems, to protect the list of orders.
+     * Locked ON LINE (with the line lock) to avoid concurrency problems, to protect the list of orders.
      *
      * WARNING: NEED TO UPDATE MANUALLY THE LINE TOTAL QUANTITY AFTER THE REMOVAL OF THE ORDER.
      *
@@ -227,27 +234,34 @@ public final class OrderBookLine<GenericOrder extends Order> {
      * @throws NullPointerException If the remove it parameter is null.
      *
      */
-    private synchronized GenericOrder extractLastOrder(Boolean removeIt) throws NullPointerException {
+    private GenericOrder extractLastOrder(Boolean removeIt) throws NullPointerException {
 
-        // Null check.
-        if (removeIt == null) {
-            throw new NullPointerException("Remove it parameter, in the extraction of an order from an order book line, cannot be null.");
-        }
+        this.lineLock.lock();
+        try {
 
-        // Empty line check.
-        if (orders.isEmpty()) {
-            return null;
-        }
+            // Null check.
+            if (removeIt == null) {
+                throw new NullPointerException("Remove it parameter, in the extraction of an order from an order book line, cannot be null.");
+            }
 
-        GenericOrder order = orders.getLast();
-        if (removeIt) {
+            // Empty line check.
+            if (orders.isEmpty()) {
+                return null;
+            }
 
-            // Remove the order from the line.
-            orders.removeLast();
+            GenericOrder order = orders.getLast();
+            if (removeIt) {
 
-        }
+                // Remove the order from the line.
+                orders.removeLast();
 
-        return order;
+            }
+
+            return order;
+
+        } finally {
+            this.lineLock.unlock();
+        }
 
     }
 
@@ -267,7 +281,7 @@ public final class OrderBookLine<GenericOrder extends Order> {
      *
      * A check if the order is already present in the list is omitted, because a O(n) operation would be needed, making useless the O(1) add operation.
      *
-     * Synchronized method to avoid concurrency problems, to protect the list of orders and the total quantity.
+     * Locked ON LINE (with the line lock) to avoid concurrency problems, to protect the list of orders and the total quantity.
      * Synchronized on the order, since the order could be modified by other threads.
      *
      * @param order The order to be added to the line.
@@ -276,27 +290,34 @@ public final class OrderBookLine<GenericOrder extends Order> {
      * @throws IllegalArgumentException If the order has some problems with the line attributes.
      *
      */
-    public synchronized void addOrder(GenericOrder order) throws NullPointerException, IllegalArgumentException {
+    public void addOrder(GenericOrder order) throws NullPointerException, IllegalArgumentException {
 
-        // Null check.
-        if (order == null)
-            throw new NullPointerException("The order to add to an order book line cannot be null.");
+        this.lineLock.lock();
+        try {
 
-        synchronized (order) {
+            // Null check.
+            if (order == null)
+                throw new NullPointerException("The order to add to an order book line cannot be null.");
+
+            synchronized (order) {
 
-            // Coherence checks.
-            this.coherenceOrderChecks(order);
+                // Coherence checks.
+                this.coherenceOrderChecks(order);
 
-            // The order is added at the beginning of the list, to follow a FIFO policy.
+                // The order is added at the beginning of the list, to follow a FIFO policy.
 
-            // A check if the order is already present in the list is omitted, because a O(n) operation would be needed, making useless the O(1) add operation.
+                // A check if the order is already present in the list is omitted, because a O(n) operation would be needed, making useless the O(1) add operation.
 
-            orders.addFirst(order);
+                orders.addFirst(order);
 
-            // Updating total quantity on this line.
-            Quantity newQuantity = new Quantity(this.getTotalQuantity().getValue() + order.getQuantity().getValue());
-            this.totalQuantity = newQuantity;
+                // Updating total quantity on this line.
+                Quantity newQuantity = new Quantity(this.getTotalQuantity().getValue() + order.getQuantity().getValue());
+                this.totalQuantity = newQuantity;
 
+            }
+
+        } finally {
+            this.lineLock.unlock();
         }
 
     }
@@ -311,7 +332,7 @@ public final class OrderBookLine<GenericOrder extends Order> {
      *
      * It's a O(n) operation.
      *
-     * Synchronized method to avoid concurrency problems, to protect the list of orders and the total quantity.
+     * Locked ON LINE (with the line lock) to avoid concurrency problems, to protect the list of orders and the total quantity.
      * Synchronized on the order, since the order could be modified by other threads.
      *
      * @param order The order to be cancelled from the line.
@@ -320,31 +341,38 @@ public final class OrderBookLine<GenericOrder extends Order> {
      * @throws IllegalArgumentException If the order to cancel is not present in the line.
      *
      */
-    public synchronized void cancelOrder(GenericOrder order) throws NullPointerException, IllegalArgumentException {
+    public void cancelOrder(GenericOrder order) throws NullPointerException, IllegalArgumentException {
 
-        // Null check.
-        if (order == null) {
-            throw new NullPointerException("The order to cancel from an order book line cannot be null.");
-        }
+        this.lineLock.lock();
+        try {
 
-        synchronized (order) {
+            // Null check.
+            if (order == null) {
+                throw new NullPointerException("The order to cancel from an order book line cannot be null.");
+            }
 
-            // Searching for the order in the list.
-            for (GenericOrder o : orders) {
-                if (o.compareTo(order) == 0) {
-                    // Found the order, remove it.
-                    int index = orders.indexOf(o);
-                    o = orders.remove(index);
-                    // Update the total quantity on this line.
-                    Quantity newQuantity = new Quantity(this.getTotalQuantity().getValue() - order.getQuantity().getValue());
-                    this.totalQuantity = newQuantity;
-                    return;
+            synchronized (order) {
+
+                // Searching for the order in the list.
+                for (GenericOrder o : orders) {
+                    if (o.compareTo(order) == 0) {
+                        // Found the order, remove it.
+                        int index = orders.indexOf(o);
+                        o = orders.remove(index);
+                        // Update the total quantity on this line.
+                        Quantity newQuantity = new Quantity(this.getTotalQuantity().getValue() - order.getQuantity().getValue());
+                        this.totalQuantity = newQuantity;
+                        return;
+                    }
                 }
-            }
 
-            // Order not found in the list.
-            throw new IllegalArgumentException("The order to cancel from an order book line is not present in the line.");
+                // Order not found in the list.
+                throw new IllegalArgumentException("The order to cancel from an order book line is not present in the line.");
 
+            }
+
+        } finally {
+            this.lineLock.unlock();
         }
 
     }
@@ -359,20 +387,81 @@ public final class OrderBookLine<GenericOrder extends Order> {
      * @throws NullPointerException If the order id is null.
      * 
      */
-    public synchronized GenericOrder getOrderById(Long orderId) throws NullPointerException {
+    public GenericOrder getOrderById(Long orderId) throws NullPointerException {
 
-        // Null check.
-        if (orderId == null) {
-            throw new NullPointerException("The order id to be used to get an order from an order book line cannot be null.");
-        }
+        this.lineLock.lock();
+        try {
 
-        for (GenericOrder o : orders) {
-            if (o.getId().equals(orderId)) {
-                return o;
+            // Null check.
+            if (orderId == null) {
+                throw new NullPointerException("The order id to be used to get an order from an order book line cannot be null.");
+            }
+
+            for (GenericOrder o : orders) {
+                if (o.getId().equals(orderId)) {
+                    return o;
+                }
             }
+
+            return null;
+
+        } finally {
+            this.lineLock.unlock();
         }
 
-        return null;
+    }
+
+    /**
+     *
+     * Reduces the quantity of an order present on this line by a given filled quantity.
+     *
+     * Used only while recovering the order book from a snapshot, to replay the fills written on the orders journal after the snapshot.
+     * The order keeps its position in the line, so the FIFO priority is preserved.
+     * If the remaining quantity reaches zero, the order is removed from the line.
+     *
+     * Locked ON LINE (with the line lock) to avoid concurrency problems, to protect the list of orders and the total quantity.
+     * Synchronized on the order, since the order could be modified by other threads.
+     *
+     * @param order The order present on the line to reduce.
+     * @param filled The filled quantity to subtract from the order.
+     *
+     * @throws NullPointerException If the order or the filled quantity are null.
+     * @throws IllegalArgumentException If the order is not present in the line.
+     *
+     */
+    public void reduceOrder(GenericOrder order, Quantity filled) throws NullPointerException, IllegalArgumentException {
+
+        this.lineLock.lock();
+        try {
+
+            // Null checks.
+            if (order == null) {
+                throw new NullPointerException("The order to reduce on an order book line cannot be null.");
+            }
+            if (filled == null) {
+                throw new NullPointerException("The filled quantity to reduce an order on an order book line cannot be null.");
+            }
+
+            synchronized (order) {
+
+                if (!orders.contains(order)) {
+                    throw new IllegalArgumentException("The order to reduce on an order book line is not present in the line.");
+                }
+
+                // Never going under zero, the journal could contain a fill bigger than the remaining quantity.
+                Integer reduction = Math.min(filled.getValue(), order.getQuantity().getValue());
+                order.setQuantity(new Quantity(order.getQuantity().getValue() - reduction));
+                this.totalQuantity = new Quantity(this.getTotalQuantity().getValue() - reduction);
+
+                if (order.getQuantity().getValue() == 0) {
+                    orders.remove(order);
+                }
+
+            }
+
+        } finally {
+            this.lineLock.unlock();
+        }
 
     }
 
@@ -395,8 +484,8 @@ public final class OrderBookLine<GenericOrder extends Order> {
      * 
      * The method modifies the quantities of the orders.
      *
-     * Synchronized method to avoid concurrency problems on the line.
-     * Synchronized also on the market order, to avoid order modifications from other threads.
+     * Locked ON LINE (with the line lock) to avoid concurrency problems on the line.
+     * Not synchronized on the market order, since it's modified only by the thread executing it, holding the order book lock.
      *
      * @param marketOrder The market order to be executed.
      *
@@ -410,17 +499,18 @@ public final class OrderBookLine<GenericOrder extends Order> {
      * 
      * 
      */
-    public synchronized Integer executeMarketOrderOnLimitLine(MarketOrder marketOrder, Notification notification) throws NullPointerException, RuntimeException, IllegalStateException, IllegalArgumentException, InvalidOrder {
+    public Integer executeMarketOrderOnLimitLine(MarketOrder marketOrder, Notification notification) throws NullPointerException, RuntimeException, IllegalStateException, IllegalArgumentException, InvalidOrder {
 
-        // Null checks.
-        if (marketOrder == null) {
-            throw new NullPointerException("The market order to execute in an order book line cannot be null.");
-        }
-        if (notification == null) {
-            throw new NullPointerException("The notification to be used to execute a market order on a limit line cannot be null.");
-        }
+        this.lineLock.lock();
+        try {
 
-        synchronized (marketOrder) {
+            // Null checks.
+            if (marketOrder == null) {
+                throw new NullPointerException("The market order to execute in an order book line cannot be null.");
+            }
+            if (notification == null) {
+                throw new NullPointerException("The notification to be used to execute a market order on a limit line cannot be null.");
+            }
 
             // Check if this line is a limit line.
             if (this.getLineType() != LimitOrder.class) {
@@ -564,6 +654,9 @@ public final class OrderBookLine<GenericOrder extends Order> {
 
             return resultCode;
 
+
+        } finally {
+            this.lineLock.unlock();
         }
 
     }
@@ -587,7 +680,7 @@ public final class OrderBookLine<GenericOrder extends Order> {
      * 
      * If this method is called on a limit line, it will throw a RuntimeException.
      *
-     * Synchronized method to avoid concurrency problems on the line.
+     * Locked ON LINE (with the line lock) to avoid concurrency problems on the line.
      * Synchronized also on the order book to avoid modifications of the best prices from other threads.
      *
      * @param orderBook The order book to use to execute a stop order in an order book line. The stop order from this line (and thus the line itself) must be present in the order book.
@@ -600,65 +693,71 @@ public final class OrderBookLine<GenericOrder extends Order> {
      * @throws IllegalStateException If the order book is void, and the best prices are not set or the current market price doesn't match with the stop order price or the line is empty.
      * 
      */
-    public synchronized MarketOrder executeStopOrderFromStopLine(OrderBook orderBook) throws RuntimeException, NullPointerException, IllegalArgumentException, IllegalStateException {
-
-        // Null check.
-        if (orderBook == null) {
-            throw new NullPointerException("The order book, to be used to execute a stop order in an order book stop line, cannot be null.");
-        }
+    public MarketOrder executeStopOrderFromStopLine(OrderBook orderBook) throws RuntimeException, NullPointerException, IllegalArgumentException, IllegalStateException {
 
-        synchronized (orderBook) {
+        this.lineLock.lock();
+        try {
 
-            // Check if this line is a stop line.
-            if (this.lineType.getClass() != StopOrder.class) {
-                throw new RuntimeException("Line type where execute a stop order doesn't match with StopOrder class.");
+            // Null check.
+            if (orderBook == null) {
+                throw new NullPointerException("The order book, to be used to execute a stop order in an order book stop line, cannot be null.");
             }
 
-            // CANNOT USE THE COHERENCE CHECKS METHOD BECAUSE THE ORDER IS A MARKET ORDER, NOT A LIMIT OR STOP ORDER TO COMPARE WITH THE LINE.
+            orderBook.getBookLock().lock();
+            try {
 
-            // Check if the line exists in the order book.
-            OrderBookLine<StopOrder> stopOrderLine = orderBook.getStopBookLine(this.linePrice);
-            if (stopOrderLine == null || !orderBook.containsLine(stopOrderLine)) {
-                throw new IllegalArgumentException("The order book to be used to execute a stop order in an order book stop line doesn't contain the line itself.");
-            }
+                // Check if this line is a stop line.
+                if (this.lineType.getClass() != StopOrder.class) {
+                    throw new RuntimeException("Line type where execute a stop order doesn't match with StopOrder class.");
+                }
 
-            // Safe cast because we checked the line type before.
-            // Removing the stop order from the line ALWAYS, since it's executed.
-            StopOrder toProcess = (StopOrder) this.extractLastOrder(true);
-            if (toProcess == null) {
-                // A line with no orders, MUST NOT EXIST.
-                throw new IllegalStateException("Executing a stop order on a order book line with no orders.");
-            }
+                // CANNOT USE THE COHERENCE CHECKS METHOD BECAUSE THE ORDER IS A MARKET ORDER, NOT A LIMIT OR STOP ORDER TO COMPARE WITH THE LINE.
 
-            if (orderBook.getVerboseLogging()) {
-                System.out.println("\n\n\n\n\n\n\n\n\n");
-                System.out.println("DEBUG: PREPARING to execute a STOP order, ADDED to the list: " + toProcess.toString());
-                System.out.println("\n\n\n\n\n\n\n\n\n");
-            }
+                // Check if the line exists in the order book.
+                OrderBookLine<StopOrder> stopOrderLine = orderBook.getStopBookLine(this.linePrice);
+                if (stopOrderLine == null || !orderBook.containsLine(stopOrderLine)) {
+                    throw new IllegalArgumentException("The order book to be used to execute a stop order in an order book stop line doesn't contain the line itself.");
+                }
 
-            // Update total quantity on this line.
-            this.totalQuantity = new Quantity(this.getTotalQuantity().getValue() - toProcess.getQuantity().getValue());
+                // Safe cast because we checked the line type before.
+                // Removing the stop order from the line ALWAYS, since it's executed.
+                StopOrder toProcess = (StopOrder) this.extractLastOrder(true);
+                if (toProcess == null) {
+                    // A line with no orders, MUST NOT EXIST.
+                    throw new IllegalStateException("Executing a stop order on a order book line with no orders.");
+                }
 
-            // Coherence checks executed when the stop order was added to the line in the addOrder() method.
+                Log.debug(Category.ENGINE, "PREPARING to execute a STOP order, ADDED to the list: %s", toProcess);
 
-            // Converting the stop order to a market order.
-            MarketOrder order = new MarketOrder(toProcess.getPrice().getType(), toProcess.getPrice().getPrimaryCurrency(), toProcess.getPrice().getSecondaryCurrency(), toProcess.getQuantity());
+                // Update total quantity on this line.
+                this.totalQuantity = new Quantity(this.getTotalQuantity().getValue() - toProcess.getQuantity().getValue());
 
-            // Using a new id for the market order, since mantaining the old id generates problems in the database.
-            order.setComingFromStopOrderId(toProcess.getId().longValue());
-            if (toProcess.getUser() != null) {
-                order.setUser(toProcess.getUser());
-            }
+                // Coherence checks executed when the stop order was added to the line in the addOrder() method.
 
-            try {
-                Orders.addOrder(toProcess, true, false);
-            } catch (JsonSyntaxException | NullPointerException | NoSuchMethodException | IllegalStateException | InvalidOrder | IOException ex) {
-            }
-            
-            // Stop order removed from the line (already) before above.
+                // Converting the stop order to a market order.
+                MarketOrder order = new MarketOrder(toProcess.getPrice().getType(), toProcess.getPrice().getPrimaryCurrency(), toProcess.getPrice().getSecondaryCurrency(), toProcess.getQuantity());
 
-            return order;
+                // Using a new id for the market order, since mantaining the old id generates problems in the database.
+                order.setComingFromStopOrderId(toProcess.getId().longValue());
+                if (toProcess.getUser() != null) {
+                    order.setUser(toProcess.getUser());
+                }
+
+                try {
+                    Orders.addOrder(toProcess, true, false);
+                } catch (JsonSyntaxException | NullPointerException | NoSuchMethodException | IllegalStateException | InvalidOrder | IOException ex) {
+                }
+
+                // Stop order removed from the line (already) before above.
+
+                return order;
+
+            } finally {
+                orderBook.getBookLock().unlock();
+            }
 
+        } finally {
+            this.lineLock.unlock();
         }
 
     }
@@ -675,6 +774,36 @@ public final class OrderBookLine<GenericOrder extends Order> {
 
         return orders.size();
 
+    }
+    /**
+     *
+     * Getter for a copy of the orders on this line, in arrival order.
+     *
+     * The first order of the returned list is the first added to the line, so the next to be processed.
+     * Adding the returned orders to a new line in the same order rebuilds the same FIFO priority.
+     *
+     * Locked ON LINE (with the line lock) to avoid concurrency problems, to protect the list of orders.
+     *
+     * @return A new list with the orders of this line, from the oldest to the newest.
+     *
+     */
+    public LinkedList<GenericOrder> getOrdersInArrivalOrder() {
+
+        this.lineLock.lock();
+        try {
+
+            LinkedList<GenericOrder> copy = new LinkedList<>();
+            Iterator<GenericOrder> iterator = orders.descendingIterator();
+            while (iterator.hasNext()) {
+                copy.add(iterator.next());
+            }
+
+            return copy;
+
+        } finally {
+            this.lineLock.unlock();
+        }
+
     }
     /**
      *
@@ -715,10 +844,17 @@ public final class OrderBookLine<GenericOrder extends Order> {
 
     // TOSTRING METHODS
     @Override
-    public synchronized String toString() {
+    public String toString() {
 
-        // Synchronized method to avoid concurrency problems with the total quantity.
-        return String.format("Line Type [%s|%s] - Price Value [%s] - Line Size [%s] - Total [%d]", this.getLineType().getSimpleName(), this.linePrice.getType().name().toUpperCase(), this.linePrice.getValue().toString(), this.getTotalQuantity().toString(), this.getTotalQuantity().getValue() * this.getLinePrice().getValue());
+        this.lineLock.lock();
+        try {
+
+            // Locked to avoid concurrency problems with the total quantity.
+            return String.format("Line Type [%s|%s] - Price Value [%s] - Line Size [%s] - Total [%d]", this.getLineType().getSimpleName(), this.linePrice.getType().name().toUpperCase(), this.linePrice.getValue().toString(), this.getTotalQuantity().toString(), this.getTotalQuantity().getValue() * this.getLinePrice().getValue());
+
+        } finally {
+            this.lineLock.unlock();
+        }
 
     }
     /**
@@ -726,35 +862,42 @@ public final class OrderBookLine<GenericOrder extends Order> {
      * A to string method with all the orders contained in the line list.
      * The orders are displayed in the short format.
      *
-     * Synchronized method to avoid concurrency problems.
+     * Locked ON LINE (with the line lock) to avoid concurrency problems.
      *
      * @return A string with all the orders contained in the line list in the short format.
      *
      */
-    public synchronized String toStringWithOrders() {
-
-        String lineStr = this.toString();
-
-        Separator sep = new Separator("%", lineStr.length());
-
-        lineStr = sep.toString() + "\n" + lineStr + "\n" + sep.toString() + "\n\tOrders: -> ";
-        
-        String spaces = "           ";
-        Boolean start = true;
-        for (GenericOrder order : orders) {
-            // First tab to align with the beginning of "Orders: -> ".
-            // Spaces to align with the end of "Orders: -> ".
-            // The toStringShort() method is synchronized on the order itself.
-            if (!start) lineStr += "\t" + spaces + order.toStringShort() + "\n";
-            else {
-                lineStr += order.toStringShort() + "\n";
-                start = false;
+    public String toStringWithOrders() {
+
+        this.lineLock.lock();
+        try {
+
+            String lineStr = this.toString();
+
+            Separator sep = new Separator("%", lineStr.length());
+
+            lineStr = sep.toString() + "\n" + lineStr + "\n" + sep.toString() + "\n\tOrders: -> ";
+
+            String spaces = "           ";
+            Boolean start = true;
+            for (GenericOrder order : orders) {
+                // First tab to align with the beginning of "Orders: -> ".
+                // Spaces to align with the end of "Orders: -> ".
+                // The toStringShort() method is synchronized on the order itself.
+                if (!start) lineStr += "\t" + spaces + order.toStringShort() + "\n";
+                else {
+                    lineStr += order.toStringShort() + "\n";
+                    start = false;
+                }
             }
-        }
 
-        lineStr += sep.toString();
+            lineStr += sep.toString();
+
+            return lineStr;
 
-        return lineStr;
+        } finally {
+            this.lineLock.unlock();
+        }
 
     }
 
@@ -1,10 +1,15 @@
 package cross.orderbook;
 
 import java.util.LinkedList;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import cross.api.notifications.Notification;
 import cross.api.notifications.Trade;
 import cross.exceptions.InvalidOrder;
+import cross.logging.Log;
+import cross.logging.Log.Category;
+import cross.logging.Log.Level;
 import cross.orders.MarketOrder;
 import cross.orders.StopOrder;
 import cross.orders.db.Orders;
@@ -31,29 +36,25 @@ public class StopOrdersExecutorThread extends Thread {
         Thread.currentThread().setName(this.getClass().getSimpleName());
 
         LinkedList<MarketOrder> sharedList = this.orderBook.getStopNowMarketOrdersToExecute();
+        ReentrantLock stopNowLock = this.orderBook.getStopNowLock();
+        Condition stopNowChanged = this.orderBook.getStopNowChanged();
 
         while (this.isRunning) {
 
             LinkedList<MarketOrder> ordersToProcessThisCycle = new LinkedList<>();
 
             // synch to prevent main thread from adding new stop orders after market orders execution and make concurrent modifications.
-            synchronized (sharedList) {
+            stopNowLock.lock();
+            try {
 
                     while (sharedList.isEmpty() && this.isRunning) {
                         try {
-                            if (this.orderBook.getVerboseLogging()) {
-                                System.out.println("\n\n\n\n\n\n\n\n\n");
-                                System.out.printf("DEBUG: %s is WAITING, NO STOP, NOW MARKET ORDERS TO EXECUTE.\n", this.getClass().getSimpleName());
-                                System.out.println("\n\n\n\n\n\n\n\n\n");
-                            }
-                            sharedList.notify();
-                            sharedList.wait();
+                            Log.debug(Category.ENGINE, "%s is WAITING, NO STOP, NOW MARKET ORDERS TO EXECUTE.", this.getClass().getSimpleName());
+                            stopNowChanged.signalAll();
+                            stopNowChanged.await();
                         } catch (InterruptedException ex) {
                             // I have been woken up by the main thread to work or interrupted to stop.
-                            if (this.orderBook.getVerboseLogging()) {
-                                System.out.println("\n\n\n\n\n\n\n\n\n");
-                                System.out.printf("DEBUG: %s was INTERRUPTED.\n", this.getClass().getSimpleName());
-                            }
+                            Log.debug(Category.ENGINE, "%s was INTERRUPTED.", this.getClass().getSimpleName());
                             if (!this.isRunning) {
                                 return;
                             }
@@ -63,25 +64,27 @@ public class StopOrdersExecutorThread extends Thread {
                     ordersToProcessThisCycle.addAll(sharedList);
                     sharedList.clear();
 
-                    if (this.orderBook.getVerboseLogging()) {
+                    if (Log.isEnabled(Category.ENGINE, Level.DEBUG)) {
                         for (MarketOrder marketOrder : ordersToProcessThisCycle) {
-                            System.out.printf("DEBUG: %s will EXECUTE the following STOP, NOW MARKET ORDER: %s.\n", this.getClass().getSimpleName(), marketOrder.toString());
+                            Log.debug(Category.ENGINE, "%s will EXECUTE the following STOP, NOW MARKET ORDER: %s.", this.getClass().getSimpleName(), marketOrder.toString());
                         }
                     }
 
                     for (MarketOrder marketOrder : ordersToProcessThisCycle) {
-                        if (this.orderBook.getVerboseLogging()) {
-                            System.out.printf("DEBUG: %s EXECUTING the following STOP, NOW MARKET ORDER: %s.\n", this.getClass().getSimpleName(), marketOrder.toString());
-                        }
+                        Log.debug(Category.ENGINE, "%s EXECUTING the following STOP, NOW MARKET ORDER: %s.", this.getClass().getSimpleName(), marketOrder);
                         Boolean executed = false;
                         try {
                             executed = this.orderBook.executeOrder(marketOrder);
                             StopOrder originalStop = null;
                             originalStop = (StopOrder) Orders.getOrderById(marketOrder.getComingFromStopOrderId());
+                            // With the mapped orders columns the stop order is rebuilt from its row, without the user.
+                            if (originalStop != null && originalStop.getUser() == null && marketOrder.getUser() != null) {
+                                originalStop.setUser(marketOrder.getUser());
+                            }
                             if (executed) {
                                 if (originalStop != null) {
-                                    originalStop.setQuantity(marketOrder.getQuantity());
-                                    originalStop.setTimestamp(marketOrder.getTimestamp());
+                                    // Written back through the orders database, the stop order found may be a copy.
+                                    Orders.updateOrderById(marketOrder.getComingFromStopOrderId(), marketOrder.getQuantity(), marketOrder.getTimestamp());
                                 }
                             } else{
                                 // Unsatisfied stop order.
@@ -95,22 +98,18 @@ public class StopOrdersExecutorThread extends Thread {
                                 Users.notifyUsers(notification);
                             }
                         } catch (NullPointerException | IllegalArgumentException | IllegalStateException| InvalidOrder ex) {
-                            System.err.println("Error executing the STOP, NOW MARKET ORDER. Trying to continue skipping it.");
+                            Log.warn(Category.ENGINE, "Error executing the STOP, NOW MARKET ORDER. Trying to continue skipping it.");
                             continue;
                         }
                         if (executed) { 
-                            if (this.orderBook.getVerboseLogging()) {
-                                System.out.printf("DEBUG: %s EXECUTED a STOP, NOW MARKET ORDER: %s.\n", this.getClass().getSimpleName(), marketOrder.toString());
-                                System.out.println("\n\n\n\n\n\n\n\n\n");
-                            }
+                            Log.debug(Category.ENGINE, "%s EXECUTED a STOP, NOW MARKET ORDER: %s.", this.getClass().getSimpleName(), marketOrder);
                         }else {
-                            if (this.orderBook.getVerboseLogging()) {
-                                System.out.printf("DEBUG: %s DID NOT EXECUTE a STOP, NOW MARKET, INSATISFIED ORDER: %s.\n", this.getClass().getSimpleName(), marketOrder.toString());
-                                System.out.println("\n\n\n\n\n\n\n\n\n");
-                            }
+                            Log.debug(Category.ENGINE, "%s DID NOT EXECUTE a STOP, NOW MARKET, INSATISFIED ORDER: %s.", this.getClass().getSimpleName(), marketOrder);
                         }
                     }
 
+            } finally {
+                stopNowLock.unlock();
             }
 
         }
@@ -0,0 +1,324 @@
+package cross.orderbook;
+
+import cross.api.notifications.Trade;
+import cross.orders.MarketOrder;
+import cross.orders.Order;
+import cross.types.price.PriceType;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ *
+ * This class is the index of a single user in an order book.
+ *
+ * It contains the resting orders (limit and stop) of the user, by id and in arrival order, and the user's recent fills.
+ * It also keeps the user's open quantity, the sum of the remaining quantities of its resting orders, so the exposure limits are checked in O(1).
+ *
+ * The resting orders are the same objects present in the order book lines, so their remaining quantity is always the one in the book.
+ * The recent fills are the trades sent in the notifications, only the last MAX_RECENT_TRADES are kept.
+ *
+ * The index is maintained incrementally by the order book, while executing, cancelling and triggering the orders.
+ * So the user's queries and the cancellation of all the user's orders never scan the book.
+ *
+ * If the order book has the balances enabled, it's also the user's account in the two currencies of the pair.
+ * For each currency it keeps the balance and the reserved part of it, the available amount is their difference.
+ * A resting order reserves what it could spend: the secondary currency (price by size) for a bid, the primary currency (size) for an ask.
+ * The reservation is released when the order is cancelled, triggered or filled, and each fill settles both the currencies.
+ * The quantities and the prices are the integer units used in the whole project, so the counter value of a size at a price is their product.
+ *
+ * NOT THREAD SAFE, it's always used holding the lock on the order book that owns it.
+ *
+ * Package-private, it's used only by the OrderBook class.
+ *
+ * @version 1.0
+ * @author Giulio Nisi
+ *
+ * @see OrderBook
+ * @see Order
+ * @see Trade
+ *
+ */
+final class UserOrders {
+
+    // Recent fills kept for each user.
+    static final int MAX_RECENT_TRADES = 100;
+
+    // Resting orders by id, LinkedHashMap to keep the arrival order.
+    private final LinkedHashMap<Long, Order> openOrders = new LinkedHashMap<>();
+
+    // Sum of the remaining quantities of the resting orders.
+    private long openQuantity = 0;
+
+    // Recent fills, the oldest first.
+    private final ArrayDeque<Trade> recentTrades = new ArrayDeque<>();
+
+    // Balances in the primary and secondary currencies of the pair, and their parts reserved by the resting orders.
+    private long primaryBalance;
+    private long secondaryBalance;
+    private long primaryReserved = 0;
+    private long secondaryReserved = 0;
+
+    /**
+     *
+     * Constructor of the class.
+     *
+     * @param primaryBalance The initial balance in the primary currency.
+     * @param secondaryBalance The initial balance in the secondary currency.
+     *
+     */
+    UserOrders(long primaryBalance, long secondaryBalance) {
+
+        this.primaryBalance = primaryBalance;
+        this.secondaryBalance = secondaryBalance;
+
+    }
+
+    // OPEN ORDERS
+    /**
+     *
+     * Adds a resting order to the index.
+     *
+     * @param order The resting order.
+     *
+     */
+    void addOrder(Order order) {
+
+        if (this.openOrders.putIfAbsent(order.getId().longValue(), order) == null) {
+            this.openQuantity += order.getQuantity().getValue();
+        }
+
+    }
+    /**
+     *
+     * Removes a resting order from the index, when cancelled, fully filled or triggered.
+     *
+     * Its remaining quantity (the one still in the book before the removal) is subtracted from the open quantity.
+     *
+     * @param orderId The id of the resting order.
+     * @param remainingQuantity The remaining quantity of the order when removed.
+     *
+     * @return The removed order, or null if not present.
+     *
+     */
+    Order removeOrder(Long orderId, long remainingQuantity) {
+
+        Order order = this.openOrders.remove(orderId);
+        if (order != null) {
+            this.openQuantity = Math.max(0, this.openQuantity - remainingQuantity);
+        }
+        return order;
+
+    }
+    /**
+     *
+     * Records a partial fill of a resting order, only the open quantity changes.
+     *
+     * @param filledQuantity The filled quantity.
+     *
+     */
+    void reduceOpenQuantity(long filledQuantity) {
+
+        this.openQuantity = Math.max(0, this.openQuantity - filledQuantity);
+
+    }
+
+    // RECENT TRADES
+    /**
+     *
+     * Records a fill of the user, dropping the oldest one over MAX_RECENT_TRADES.
+     *
+     * @param trade The trade of the fill.
+     *
+     */
+    void addTrade(Trade trade) {
+
+        if (this.recentTrades.size() == MAX_RECENT_TRADES) {
+            this.recentTrades.pollFirst();
+        }
+        this.recentTrades.addLast(trade);
+
+    }
+
+    // BALANCES
+    /**
+     *
+     * Sets the balances, used when they are recovered from an order book snapshot.
+     *
+     * The reservations are not touched, they are rebuilt by the resting orders.
+     *
+     * @param primaryBalance The balance in the primary currency.
+     * @param secondaryBalance The balance in the secondary currency.
+     *
+     */
+    void setBalances(long primaryBalance, long secondaryBalance) {
+
+        this.primaryBalance = primaryBalance;
+        this.secondaryBalance = secondaryBalance;
+
+    }
+    /**
+     *
+     * Checks if the available balance covers a spending.
+     *
+     * @param side The side of the order, a bid spends the secondary currency, an ask the primary one.
+     * @param amount The amount to spend, in the currency of the side.
+     *
+     * @return True if the available balance is enough, false otherwise.
+     *
+     */
+    boolean canSpend(PriceType side, long amount) {
+
+        if (side == PriceType.BID) {
+            return this.getSecondaryAvailable() >= amount;
+        }
+        return this.getPrimaryAvailable() >= amount;
+
+    }
+    /**
+     *
+     * Reserves the balance needed by a size of a resting order.
+     *
+     * @param side The side of the order.
+     * @param price The price of the order.
+     * @param size The size to reserve for.
+     *
+     */
+    void reserve(PriceType side, long price, long size) {
+
+        if (side == PriceType.BID) {
+            this.secondaryReserved += UserOrders.counterValue(price, size);
+        } else {
+            this.primaryReserved += size;
+        }
+
+    }
+    /**
+     *
+     * Releases the balance reserved for a size of a resting order, when cancelled, triggered or filled.
+     *
+     * @param side The side of the order.
+     * @param price The price of the order.
+     * @param size The size to release.
+     *
+     */
+    void release(PriceType side, long price, long size) {
+
+        if (side == PriceType.BID) {
+            this.secondaryReserved = Math.max(0, this.secondaryReserved - UserOrders.counterValue(price, size));
+        } else {
+            this.primaryReserved = Math.max(0, this.primaryReserved - size);
+        }
+
+    }
+    /**
+     *
+     * Settles a fill: a bid receives the primary currency and pays the secondary one, an ask the opposite.
+     *
+     * @param side The side of the filled order.
+     * @param price The price of the fill.
+     * @param size The filled size.
+     *
+     */
+    void settle(PriceType side, long price, long size) {
+
+        long counterValue = UserOrders.counterValue(price, size);
+        if (side == PriceType.BID) {
+            this.primaryBalance += size;
+            this.secondaryBalance -= counterValue;
+        } else {
+            this.primaryBalance -= size;
+            this.secondaryBalance += counterValue;
+        }
+
+    }
+
+    // SUPPORT METHODS
+    /**
+     *
+     * Gets the counter value, in the secondary currency, of a size at a price.
+     *
+     * @param price The price.
+     * @param size The size.
+     *
+     * @return The counter value.
+     *
+     * @throws ArithmeticException If the counter value overflows a long.
+     *
+     */
+    static long counterValue(long price, long size) throws ArithmeticException {
+
+        return Math.multiplyExact(price, size);
+
+    }
+    /**
+     *
+     * Gets the side of an order, the market orders keep it in the price type.
+     *
+     * @param order The order.
+     *
+     * @return The side of the order.
+     *
+     */
+    static PriceType sideOf(Order order) {
+
+        if (order instanceof MarketOrder marketOrder) {
+            return marketOrder.getMarketOrderPriceType();
+        }
+        return order.getPrice().getType();
+
+    }
+
+    // GETTERS
+    Order getOrder(Long orderId) {
+
+        return this.openOrders.get(orderId);
+
+    }
+    ArrayList<Order> getOpenOrders() {
+
+        return new ArrayList<>(this.openOrders.values());
+
+    }
+    ArrayList<Trade> getRecentTrades() {
+
+        return new ArrayList<>(this.recentTrades);
+
+    }
+    int getOpenOrdersNumber() {
+
+        return this.openOrders.size();
+
+    }
+    long getOpenQuantity() {
+
+        return this.openQuantity;
+
+    }
+    long getPrimaryBalance() {
+
+        return this.primaryBalance;
+
+    }
+    long getSecondaryBalance() {
+
+        return this.secondaryBalance;
+
+    }
+    long getPrimaryAvailable() {
+
+        return this.primaryBalance - this.primaryReserved;
+
+    }
+    long getSecondaryAvailable() {
+
+        return this.secondaryBalance - this.secondaryReserved;
+
+    }
+    Boolean isEmpty() {
+
+        return this.openOrders.isEmpty() && this.recentTrades.isEmpty();
+
+    }
+
+}
@@ -0,0 +1,507 @@
+package cross.orderbook.db;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import cross.logging.Log;
+import cross.logging.Log.Category;
+import cross.orders.Order;
+
+/**
+ *
+ * This class is an interface to handle the order book events file, the log of the resting orders entries and removals.
+ *
+ * The orders journal (the orders database file) contains only the fills, so a resting order inserted, or cancelled, after the latest snapshot is not in it.
+ * Each resting order added to the book (a limit or a stop order) and each one removed without being filled (a cancellation, a cancellation on disconnect, a stop order triggered) is appended here as an event.
+ * Each event has its sequence number and the orders journal position (the journal entries written) when it happened, so the recovery replays the events and the fills in the same order they happened.
+ *
+ * The file has an event per line, each one a JSON object, appended without rewriting the file.
+ * The events covered by a snapshot are dropped after it has been written (see compact()), so the file only holds the events after the latest snapshot.
+ *
+ * The appends are group committed: an event is only buffered, holding the order book lock, and a background thread flushes all the events buffered meanwhile at once.
+ * So a busy order book pays a single write to the OS for many events, not one for each of them.
+ * The events are anyway flushed before being read, compacted or closed.
+ *
+ * Abstract class because I assume that I don't want to handle different events files at the same time.
+ * So I will use only static methods and variables.
+ *
+ * @version 1.0
+ * @author Giulio Nisi
+ *
+ * @see DBOrderBookSnapshot
+ * @see OrderBookSnapshot
+ *
+ */
+public abstract class DBOrderBookEvents {
+
+    /**
+     *
+     * A single event of the order book events file.
+     *
+     * Contains only primitive values, the added order is copied as in the snapshots.
+     *
+     */
+    public static class Event {
+
+        // Events types.
+        public static final String ADD = "add";
+        public static final String REMOVE = "remove";
+
+        private final Long seq;
+        // Orders journal entries written when the event happened, the event is replayed after them.
+        private final Long journal;
+        private final String event;
+        private final Long orderId;
+        // Only for the added orders.
+        private final OrderBookSnapshot.SnapshotOrder order;
+        private final String primaryCurrency;
+        private final String secondaryCurrency;
+
+        private Event(Long seq, Long journal, String event, Long orderId, Order order) {
+
+            this.seq = seq;
+            this.journal = journal;
+            this.event = event;
+            this.orderId = orderId;
+            this.order = order != null ? new OrderBookSnapshot.SnapshotOrder(order) : null;
+            this.primaryCurrency = order != null ? order.getPrice().getPrimaryCurrency().name() : null;
+            this.secondaryCurrency = order != null ? order.getPrice().getSecondaryCurrency().name() : null;
+
+        }
+
+        // GETTERS
+        public Long getSeq() {
+
+            return this.seq;
+
+        }
+        public Long getJournal() {
+
+            return this.journal;
+
+        }
+        public String getEvent() {
+
+            return this.event;
+
+        }
+        public Long getOrderId() {
+
+            return this.orderId;
+
+        }
+        public OrderBookSnapshot.SnapshotOrder getOrder() {
+
+            return this.order;
+
+        }
+        public String getPrimaryCurrency() {
+
+            return this.primaryCurrency;
+
+        }
+        public String getSecondaryCurrency() {
+
+            return this.secondaryCurrency;
+
+        }
+
+    }
+
+    // Lock of the events file, a ReentrantLock (see ClientThread).
+    private static final ReentrantLock lock = new ReentrantLock();
+
+    // Order book events file path.
+    private static String filePath = null;
+
+    // Append stream of the events file.
+    private static BufferedOutputStream fileOutBuffered = null;
+
+    // Sequence number of the last event appended, or of the last one dropped by a compaction.
+    private static Long lastSeq = 0L;
+
+    // Set while a flush of the events buffered is scheduled and not started yet.
+    private static Boolean flushScheduled = false;
+
+    // Single background thread for the group commits, the flushes of the events buffered.
+    private static final ExecutorService flusher = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, DBOrderBookEvents.class.getSimpleName());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Shared, the Gson instances are thread safe.
+    private static final Gson gson = new Gson();
+
+    /**
+     *
+     * Sets the order book events file to handle, and reads the sequence number of its last event.
+     *
+     * If the file is not found, it will be created empty.
+     * The file is rewritten with its valid events, dropping a last one written partially by a crash and the invalid ones.
+     *
+     * Locked ON CLASS (with the class lock) to avoid multiple threads to set the file at the same time.
+     *
+     * @param filePath The path to the order book events file as String.
+     *
+     * @throws NullPointerException If the file path is null.
+     * @throws IllegalStateException If the file is already attached.
+     * @throws IOException If there's an I/O error reading or creating the file.
+     *
+     */
+    public static void setFile(String filePath) throws NullPointerException, IllegalStateException, IOException {
+
+        lock.lock();
+        try {
+
+            // Null check.
+            if (filePath == null) {
+                throw new NullPointerException("Order book events file path to set cannot be null.");
+            }
+
+            // File already attached.
+            if (DBOrderBookEvents.filePath != null) {
+                throw new IllegalStateException("Order book events file already attached.");
+            }
+
+            DBOrderBookEvents.filePath = filePath;
+            for (Event event : DBOrderBookEvents.readEvents(0L)) {
+                DBOrderBookEvents.lastSeq = Math.max(DBOrderBookEvents.lastSeq, event.getSeq());
+            }
+            DBOrderBookEvents.openAppend();
+            // Rewritten, so a last event written partially by a crash is not followed by the new ones.
+            DBOrderBookEvents.compact(0L);
+
+            Log.info(Category.PERSISTENCE, "Order book events file %s attached.", filePath);
+
+        } finally {
+            lock.unlock();
+        }
+
+    }
+    /**
+     *
+     * Checks if the events file is attached.
+     *
+     * @return True if attached, false otherwise.
+     *
+     */
+    public static Boolean isAttached() {
+
+        lock.lock();
+        try {
+            return DBOrderBookEvents.fileOutBuffered != null;
+        } finally {
+            lock.unlock();
+        }
+
+    }
+
+    // EVENTS
+    /**
+     *
+     * Appends the event of a resting order added to the book.
+     *
+     * Called by the order book while holding its lock, so the events and the orders journal entries are in the same order they happened.
+     *
+     * @param order The resting order added, a limit or a stop order.
+     * @param journalEntries The orders journal entries written.
+     *
+     * @throws NullPointerException If the order or the journal entries are null.
+     * @throws IllegalStateException If the file is not attached.
+     * @throws IOException If there's an I/O error writing the file.
+     *
+     */
+    public static void appendAdd(Order order, Long journalEntries) throws NullPointerException, IllegalStateException, IOException {
+
+        // Null check.
+        if (order == null) {
+            throw new NullPointerException("Order added to log in the order book events file cannot be null.");
+        }
+
+        DBOrderBookEvents.append(Event.ADD, order.getId().longValue(), order, journalEntries);
+
+    }
+    /**
+     *
+     * Appends the event of a resting order removed from the book without being filled.
+     *
+     * Called by the order book while holding its lock, so the events and the orders journal entries are in the same order they happened.
+     *
+     * @param orderId The id of the resting order removed.
+     * @param journalEntries The orders journal entries written.
+     *
+     * @throws NullPointerException If the order id or the journal entries are null.
+     * @throws IllegalStateException If the file is not attached.
+     * @throws IOException If there's an I/O error writing the file.
+     *
+     */
+    public static void appendRemove(Long orderId, Long journalEntries) throws NullPointerException, IllegalStateException, IOException {
+
+        // Null check.
+        if (orderId == null) {
+            throw new NullPointerException("Order id removed to log in the order book events file cannot be null.");
+        }
+
+        DBOrderBookEvents.append(Event.REMOVE, orderId, null, journalEntries);
+
+    }
+    /**
+     *
+     * Gets the sequence number of the last event appended.
+     *
+     * Read by the order book snapshots while holding the order book lock, so no event is appended meanwhile.
+     *
+     * @return The sequence number, 0 if no event has been appended yet.
+     *
+     */
+    public static Long getLastSeq() {
+
+        lock.lock();
+        try {
+            return DBOrderBookEvents.lastSeq;
+        } finally {
+            lock.unlock();
+        }
+
+    }
+    /**
+     *
+     * Reads the events after a sequence number, in the order they have been appended.
+     *
+     * The events buffered are flushed before, so they are read too.
+     * A last line written partially by a crash is ignored, an invalid line in the middle of the file is skipped and logged.
+     *
+     * @param afterSeq The sequence number of the last event not to return.
+     *
+     * @return The events, empty if none.
+     *
+     * @throws IllegalStateException If the file is not attached.
+     * @throws IOException If there's an I/O error flushing or reading the file.
+     *
+     */
+    public static LinkedList<Event> readEvents(Long afterSeq) throws IllegalStateException, IOException {
+
+        lock.lock();
+        try {
+
+            // File not attached.
+            if (DBOrderBookEvents.filePath == null) {
+                throw new IllegalStateException("Order book events file not attached. Set file before with setFile().");
+            }
+
+            DBOrderBookEvents.flushBuffered();
+
+            LinkedList<Event> events = new LinkedList<>();
+            File file = new File(DBOrderBookEvents.filePath);
+            if (!file.exists()) {
+                return events;
+            }
+
+            String[] lines;
+            try {
+                lines = Files.readString(file.toPath(), StandardCharsets.UTF_8).split("\n");
+            } catch (IOException | SecurityException ex) {
+                throw new IOException("Error reading the order book events file.");
+            }
+
+            for (int i = 0; i < lines.length; i++) {
+                if (lines[i].isBlank()) {
+                    continue;
+                }
+                Event event;
+                try {
+                    event = gson.fromJson(lines[i], Event.class);
+                    if (event == null || event.getSeq() == null || event.getJournal() == null || event.getEvent() == null || event.getOrderId() == null) {
+                        throw new JsonSyntaxException("Invalid order book event.");
+                    }
+                } catch (JsonSyntaxException ex) {
+                    if (i == lines.length - 1) {
+                        // Written partially by a crash.
+                        Log.warn(Category.PERSISTENCE, "Last order book event written partially, ignoring it.");
+                        break;
+                    }
+                    // A damaged event costs only its order, not the whole startup.
+                    Log.warn(Category.PERSISTENCE, "Invalid order book event at line %d, skipping it.", i + 1);
+                    continue;
+                }
+                if (event.getSeq() > afterSeq) {
+                    events.add(event);
+                }
+            }
+
+            return events;
+
+        } finally {
+            lock.unlock();
+        }
+
+    }
+    /**
+     *
+     * Drops the events covered by a snapshot, rewriting the file with only the events after it.
+     *
+     * Written on a temporary file and then atomically moved, so a crash never loses the events after the snapshot.
+     *
+     * @param uptoSeq The sequence number of the last event covered by the snapshot.
+     *
+     * @throws NullPointerException If the sequence number is null.
+     * @throws IllegalStateException If the file is not attached.
+     * @throws IOException If there's an I/O error rewriting the file.
+     *
+     */
+    public static void compact(Long uptoSeq) throws NullPointerException, IllegalStateException, IOException {
+
+        // Null check.
+        if (uptoSeq == null) {
+            throw new NullPointerException("Sequence number of the order book events to drop cannot be null.");
+        }
+
+        lock.lock();
+        try {
+
+            // File not attached.
+            if (DBOrderBookEvents.fileOutBuffered == null) {
+                throw new IllegalStateException("Order book events file not attached. Set file before with setFile().");
+            }
+
+            StringBuilder content = new StringBuilder();
+            for (Event event : DBOrderBookEvents.readEvents(uptoSeq)) {
+                content.append(gson.toJson(event)).append('\n');
+            }
+
+            try {
+                DBOrderBookEvents.fileOutBuffered.close();
+                Path path = new File(DBOrderBookEvents.filePath).toPath();
+                Path tmpPath = new File(DBOrderBookEvents.filePath + ".tmp").toPath();
+                Files.writeString(tmpPath, content.toString(), StandardCharsets.UTF_8);
+                Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException | UnsupportedOperationException | SecurityException ex) {
+                throw new IOException("Error compacting the order book events file.");
+            } finally {
+                DBOrderBookEvents.openAppend();
+            }
+
+        } finally {
+            lock.unlock();
+        }
+
+    }
+    /**
+     *
+     * Closes the events file attached, at the shutdown of the server.
+     *
+     * After it, the events are refused as without the file.
+     *
+     * @throws IOException If there's an I/O error closing the file.
+     *
+     */
+    public static void closeFile() throws IOException {
+
+        lock.lock();
+        try {
+
+            // Not attached or already closed.
+            if (DBOrderBookEvents.fileOutBuffered == null) {
+                return;
+            }
+
+            try {
+                DBOrderBookEvents.fileOutBuffered.close();
+            } catch (IOException ex) {
+                throw new IOException("Error closing the order book events file.");
+            } finally {
+                DBOrderBookEvents.fileOutBuffered = null;
+            }
+
+            Log.info(Category.PERSISTENCE, "Order book events file %s closed.", DBOrderBookEvents.filePath);
+
+        } finally {
+            lock.unlock();
+        }
+
+    }
+
+    // SUPPORT METHODS
+    private static void append(String type, Long orderId, Order order, Long journalEntries) throws NullPointerException, IllegalStateException, IOException {
+
+        // Null check.
+        if (journalEntries == null) {
+            throw new NullPointerException("Orders journal entries of an order book event cannot be null.");
+        }
+
+        lock.lock();
+        try {
+
+            // File not attached.
+            if (DBOrderBookEvents.fileOutBuffered == null) {
+                throw new IllegalStateException("Order book events file not attached. Set file before with setFile().");
+            }
+
+            Event event = new Event(DBOrderBookEvents.lastSeq + 1, journalEntries, type, orderId, order);
+            try {
+                DBOrderBookEvents.fileOutBuffered.write((gson.toJson(event) + "\n").getBytes(StandardCharsets.UTF_8));
+            } catch (IOException ex) {
+                throw new IOException("Error appending an event to the order book events file.");
+            }
+            DBOrderBookEvents.lastSeq = event.getSeq();
+
+            // Group commit, the events appended until the flusher takes the lock are flushed together.
+            if (!DBOrderBookEvents.flushScheduled) {
+                DBOrderBookEvents.flushScheduled = true;
+                flusher.execute(() -> {
+                    lock.lock();
+                    try {
+                        DBOrderBookEvents.flushBuffered();
+                    } catch (IOException ex) {
+                        // This is a background thread, so I don't backward the exception, instead I print it and I try to continue.
+                        Log.warn(Category.PERSISTENCE, "%s Trying to continue...", ex.getMessage());
+                    } finally {
+                        lock.unlock();
+                    }
+                });
+            }
+
+        } finally {
+            lock.unlock();
+        }
+
+    }
+    // The caller holds the class lock.
+    private static void flushBuffered() throws IOException {
+
+        DBOrderBookEvents.flushScheduled = false;
+        if (DBOrderBookEvents.fileOutBuffered == null) {
+            return;
+        }
+        try {
+            DBOrderBookEvents.fileOutBuffered.flush();
+        } catch (IOException ex) {
+            throw new IOException("Error flushing the order book events file.");
+        }
+
+    }
+    // The caller holds the class lock.
+    private static void openAppend() throws IOException {
+
+        try {
+            DBOrderBookEvents.fileOutBuffered = new BufferedOutputStream(new FileOutputStream(DBOrderBookEvents.filePath, true));
+        } catch (IOException | SecurityException ex) {
+            DBOrderBookEvents.fileOutBuffered = null;
+            throw new IOException("Error opening the order book events file.");
+        }
+
+    }
+
+}
@@ -0,0 +1,510 @@
+package cross.orderbook.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedList;
+import java.util.concurrent.locks.ReentrantLock;
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import cross.logging.Log;
+import cross.logging.Log.Category;
+import cross.orderbook.OrderBook;
+import cross.orders.LimitOrder;
+import cross.orders.Order;
+import cross.orders.StopOrder;
+import cross.orders.db.DBOrdersInterface;
+import cross.types.Currency;
+import cross.types.Quantity;
+import cross.types.price.PriceType;
+import cross.types.price.SpecificPrice;
+import cross.users.User;
+import cross.users.db.Users;
+import cross.utils.UniqueNumber;
+
+/**
+ *
+ * This class is an interface to handle the order book snapshot file.
+ *
+ * The order book lives only in RAM, while the orders database file (the orders journal) contains only the executed orders.
+ * So, to rebuild the resting orders after a restart, a snapshot of the order book is periodically written on file.
+ * On restart, the latest snapshot is loaded and only the orders journal entries written after it are replayed.
+ * In this way, the restart time does not depend on the whole orders history length.
+ *
+ * The snapshot file is written on a temporary file first and then atomically moved, so a crash during the write never corrupts the previous snapshot.
+ *
+ * The resting orders added or cancelled after the snapshot are not in the orders journal, they are in the order book events file (see DBOrderBookEvents),
+ * next to the snapshot file, replayed with the journal tail.
+ *
+ * Abstract class because I assume that I don't want to handle different snapshot files at the same time.
+ * So I will use only static methods and variables.
+ *
+ * @version 1.0
+ * @author Giulio Nisi
+ *
+ * @see OrderBook
+ * @see OrderBookSnapshot
+ * @see SnapshotThread
+ *
+ * @see DBOrdersInterface
+ * @see DBOrderBookEvents
+ *
+ */
+public abstract class DBOrderBookSnapshot {
+
+    // Lock of the snapshot file, a ReentrantLock (see ClientThread).
+    private static final ReentrantLock lock = new ReentrantLock();
+
+    // Order book snapshot file path.
+    private static String filePath = null;
+
+    // Shared, the Gson instances are thread safe.
+    private static final Gson gson = new Gson();
+
+    // Retries to do when the order book is not at a cycle boundary, and the waiting time between them in milliseconds.
+    private static final Integer SNAPSHOT_RETRIES = 50;
+    private static final Long SNAPSHOT_RETRY_WAIT_MILLIS = 20L;
+
+    /**
+     *
+     * Sets the order book snapshot file to handle.
+     *
+     * The file is not created here, it's created at the first snapshot written.
+     * The order book events file is attached too, with the same path ending with "-events.jsonl" instead of ".json".
+     *
+     * Locked ON CLASS (with the class lock) to avoid multiple threads to set the file at the same time.
+     *
+     * @param filePath The path to the order book snapshot file as String.
+     *
+     * @throws NullPointerException If the file path is null.
+     * @throws IllegalArgumentException If the file is not a JSON file.
+     * @throws IllegalStateException If the file is already attached.
+     * @throws IOException If there's an I/O error reading or creating the order book events file.
+     * @throws JsonSyntaxException If an event of the order book events file is not valid.
+     *
+     */
+    public static void setFile(String filePath) throws NullPointerException, IllegalArgumentException, IllegalStateException, IOException, JsonSyntaxException {
+
+        lock.lock();
+        try {
+
+            // Null check.
+            if (filePath == null) {
+                throw new NullPointerException("Order book snapshot file path to set cannot be null.");
+            }
+
+            // Check if the file is a JSON file.
+            if (!filePath.endsWith(".json")) {
+                throw new IllegalArgumentException("Order book snapshot file to set must be a JSON file.");
+            }
+
+            // File already attached.
+            if (DBOrderBookSnapshot.filePath != null) {
+                throw new IllegalStateException("Order book snapshot file already attached.");
+            }
+
+            DBOrderBookEvents.setFile(filePath.substring(0, filePath.length() - ".json".length()) + "-events.jsonl");
+            DBOrderBookSnapshot.filePath = filePath;
+
+            Log.info(Category.PERSISTENCE, "Order book snapshot file %s attached.", filePath);
+
+        } finally {
+            lock.unlock();
+        }
+
+    }
+
+    /**
+     *
+     * Takes a snapshot of the given order book and writes it on the snapshot file.
+     *
+     * The order book state is copied by the OrderBook.takeSnapshot() method at an engine cycle boundary.
+     * If the order book is not at a cycle boundary, the copy is retried a few times.
+     * The serialization and the writing are done without holding the order book locks.
+     *
+     * Locked ON CLASS (with the class lock) to avoid multiple threads to write the file at the same time.
+     *
+     * @param orderBook The order book to snapshot.
+     *
+     * @return The snapshot written, or null if the order book never reached a cycle boundary during the retries.
+     *
+     * @throws NullPointerException If the order book is null.
+     * @throws IllegalStateException If the file is not attached.
+     * @throws IOException If there's an I/O error writing the file.
+     *
+     */
+    public static OrderBookSnapshot writeSnapshot(OrderBook orderBook) throws NullPointerException, IllegalStateException, IOException {
+
+        lock.lock();
+        try {
+
+            // Null check.
+            if (orderBook == null) {
+                throw new NullPointerException("Order book to snapshot cannot be null.");
+            }
+
+            // File not attached.
+            if (DBOrderBookSnapshot.filePath == null) {
+                throw new IllegalStateException("Order book snapshot file not attached. Set file before with setFile().");
+            }
+
+            OrderBookSnapshot snapshot = null;
+            for (int i = 0; i < SNAPSHOT_RETRIES && snapshot == null; i++) {
+                snapshot = orderBook.takeSnapshot();
+                if (snapshot == null) {
+                    try {
+                        Thread.sleep(SNAPSHOT_RETRY_WAIT_MILLIS);
+                    } catch (InterruptedException ex) {
+                        return null;
+                    }
+                }
+            }
+            if (snapshot == null) {
+                return null;
+            }
+
+            // Writing on a temporary file and then moving it, to never leave a partial snapshot.
+            try {
+                Path path = new File(DBOrderBookSnapshot.filePath).toPath();
+                Path tmpPath = new File(DBOrderBookSnapshot.filePath + ".tmp").toPath();
+                Files.writeString(tmpPath, gson.toJson(snapshot), StandardCharsets.UTF_8);
+                Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException | UnsupportedOperationException | SecurityException ex) {
+                throw new IOException("Error writing the order book snapshot file.");
+            }
+
+            // The orders journal segments and the order book events before the snapshot will never be replayed.
+            DBOrdersInterface.setSettledEntries(snapshot.getJournalEntries());
+            DBOrderBookEvents.compact(snapshot.getEventsSeq());
+
+            return snapshot;
+
+        } finally {
+            lock.unlock();
+        }
+
+    }
+
+    /**
+     *
+     * Reads the latest snapshot from the snapshot file.
+     *
+     * Locked ON CLASS (with the class lock) to avoid reading the file during a write.
+     *
+     * @return The latest snapshot, or null if no snapshot has been written yet.
+     *
+     * @throws IllegalStateException If the file is not attached.
+     * @throws IOException If there's an I/O error reading the file.
+     * @throws JsonSyntaxException If the snapshot file content is not valid.
+     *
+     */
+    public static OrderBookSnapshot readSnapshot() throws IllegalStateException, IOException, JsonSyntaxException {
+
+        lock.lock();
+        try {
+
+            // File not attached.
+            if (DBOrderBookSnapshot.filePath == null) {
+                throw new IllegalStateException("Order book snapshot file not attached. Set file before with setFile().");
+            }
+
+            File file = new File(DBOrderBookSnapshot.filePath);
+            if (!file.exists()) {
+                return null;
+            }
+
+            String content;
+            try {
+                content = Files.readString(file.toPath(), StandardCharsets.UTF_8);
+            } catch (IOException | SecurityException ex) {
+                throw new IOException("Error reading the order book snapshot file.");
+            }
+
+            OrderBookSnapshot snapshot = gson.fromJson(content, OrderBookSnapshot.class);
+            if (snapshot == null || snapshot.getJournalEntries() == null || snapshot.getLastOrderId() == null) {
+                throw new JsonSyntaxException("Invalid order book snapshot file content.");
+            }
+
+            return snapshot;
+
+        } finally {
+            lock.unlock();
+        }
+
+    }
+
+    /**
+     *
+     * Recovers the given order book from the latest snapshot and the orders journal tail.
+     *
+     * The resting orders of the snapshot are added back to the book in arrival order, so their priority is the same.
+     * The unique number generator is restored, to never reuse an order id.
+     * Then, only the orders journal entries and the order book events written after the snapshot are replayed, in the order they happened:
+     * - A limit entry reduces (or removes) the corresponding resting limit order.
+     * - A stop entry removes the corresponding resting stop order, since it has been triggered and executed.
+     * - A market entry doesn't rest on the book, so nothing is done.
+     * - An add event adds back the resting order inserted after the snapshot.
+     * - A remove event removes the resting order cancelled (also on disconnect) or triggered after the snapshot.
+     * If the balances are enabled, they are restored from the snapshot before the resting orders, and each entry of the tail, being a fill, is settled on the balances of its user.
+     * Without a snapshot, all the events are replayed, with the journal entries written since the first one.
+     *
+     * During the recovery the stop orders are not triggered, they are checked once at the end.
+     *
+     * An invalid event or journal entry (e.g. of an order not in the book, or with a missing field) is skipped and logged, the others are replayed anyway.
+     * So a damaged record costs only its order, not the whole startup.
+     * An invalid snapshot order still aborts the recovery, since the snapshot is written atomically and a bad one is not a torn tail.
+     *
+     * The orders must be loaded from the orders database file before, with Orders.loadOrders().
+     * The users must be loaded before, to assign the resting orders to their users.
+     *
+     * If the orders journal has less entries than the snapshot, the journal has been replaced after the snapshot, so the snapshot is stale and it's ignored, with its events.
+     *
+     * At the end, the resting orders added and removed are logged in the order book events file by the recovered order book.
+     *
+     * Locked ON CLASS (with the class lock) to avoid a snapshot write during the recovery.
+     *
+     * @param orderBook The order book to recover, must be empty.
+     *
+     * @return The snapshot used to recover the book, or null if no valid snapshot is present.
+     *
+     * @throws NullPointerException If the order book is null.
+     * @throws IllegalStateException If the file is not attached or the orders are not loaded.
+     * @throws IOException If there's an I/O error reading the file.
+     * @throws JsonSyntaxException If the snapshot or the orders journal content are not valid, or if an order of the snapshot is not valid.
+     *
+     */
+    public static OrderBookSnapshot recoverOrderBook(OrderBook orderBook) throws NullPointerException, IllegalStateException, IOException, JsonSyntaxException {
+
+        lock.lock();
+        try {
+
+            // Null check.
+            if (orderBook == null) {
+                throw new NullPointerException("Order book to recover cannot be null.");
+            }
+
+            // Orders not loaded check.
+            if (DBOrdersInterface.ordersLoaded() == false) {
+                throw new IllegalStateException("Orders not loaded from the database orders file yet, needed to recover the order book. Call loadOrders() before.");
+            }
+
+            OrderBookSnapshot snapshot = DBOrderBookSnapshot.readSnapshot();
+            if (snapshot != null && snapshot.getJournalEntries() > DBOrdersInterface.getJournalEntries()) {
+                Log.info(Category.PERSISTENCE, "Order book snapshot is newer than the orders journal, ignoring it and its events, starting with an empty order book.");
+                DBOrderBookEvents.compact(DBOrderBookEvents.getLastSeq());
+                orderBook.setEventsLogged(true);
+                return null;
+            }
+
+            LinkedList<DBOrderBookEvents.Event> events = DBOrderBookEvents.readEvents(snapshot != null ? snapshot.getEventsSeq() : 0L);
+            if (snapshot == null && events.isEmpty()) {
+                Log.info(Category.PERSISTENCE, "No order book snapshot found, starting with an empty order book.");
+                orderBook.setEventsLogged(true);
+                return null;
+            }
+
+            if (snapshot != null) {
+                UniqueNumber.restoreLastNumber(snapshot.getLastOrderId());
+            }
+
+            orderBook.setRecovering(true);
+            try {
+
+                if (snapshot != null) {
+                    try {
+
+                        // Users' balances, before the resting orders that rebuild their reservations.
+                        for (OrderBookSnapshot.SnapshotBalance snapshotBalance : snapshot.getBalances()) {
+                            orderBook.restoreUserBalances(snapshotBalance.getUsername(), snapshotBalance.getPrimaryBalance(), snapshotBalance.getSecondaryBalance());
+                        }
+
+                        // Resting orders.
+                        for (OrderBookSnapshot.SnapshotOrder snapshotOrder : snapshot.getLimitOrders()) {
+                            LimitOrder limitOrder = new LimitOrder(DBOrderBookSnapshot.snapshotOrderPrice(snapshot.getPrimaryCurrency(), snapshot.getSecondaryCurrency(), snapshotOrder), new Quantity(snapshotOrder.getSize()), true);
+                            DBOrderBookSnapshot.restoreOrderFields(limitOrder, snapshotOrder);
+                            orderBook.executeOrder(limitOrder);
+                        }
+                        for (OrderBookSnapshot.SnapshotOrder snapshotOrder : snapshot.getStopOrders()) {
+                            StopOrder stopOrder = new StopOrder(DBOrderBookSnapshot.snapshotOrderPrice(snapshot.getPrimaryCurrency(), snapshot.getSecondaryCurrency(), snapshotOrder), new Quantity(snapshotOrder.getSize()), true);
+                            DBOrderBookSnapshot.restoreOrderFields(stopOrder, snapshotOrder);
+                            orderBook.executeOrder(stopOrder);
+                        }
+
+                    } catch (IllegalArgumentException | NullPointerException ex) {
+                        throw new JsonSyntaxException("Invalid order in the order book snapshot file.");
+                    }
+
+                }
+
+                // Journal tail and events, merged by the journal position of each event.
+                Long fromEntry = snapshot != null ? snapshot.getJournalEntries() : events.getFirst().getJournal();
+                LinkedList<Order> tail = DBOrdersInterface.getJournalTail(fromEntry);
+                Integer eventsReplayed = events.size();
+                Integer skipped = 0;
+                long entry = fromEntry;
+                for (Order order : tail) {
+                    // The events happened before this entry was written.
+                    while (!events.isEmpty() && events.getFirst().getJournal() <= entry) {
+                        skipped += DBOrderBookSnapshot.replayEvent(orderBook, events.removeFirst()) ? 0 : 1;
+                    }
+                    skipped += DBOrderBookSnapshot.replayJournalEntry(orderBook, order, entry) ? 0 : 1;
+                    entry++;
+                }
+                while (!events.isEmpty()) {
+                    skipped += DBOrderBookSnapshot.replayEvent(orderBook, events.removeFirst()) ? 0 : 1;
+                }
+
+                Log.info(Category.PERSISTENCE, "Order book recovered from snapshot %s, replayed %d orders journal entries and %d order book events, %d invalid skipped.", snapshot != null ? snapshot.toString() : "none", tail.size(), eventsReplayed, skipped);
+
+                if (snapshot != null) {
+                    DBOrdersInterface.setSettledEntries(snapshot.getJournalEntries());
+                }
+
+            } finally {
+                // Before the stop orders checked at the end, so the ones triggered are logged.
+                orderBook.setEventsLogged(true);
+                orderBook.setRecovering(false);
+            }
+
+            return snapshot;
+
+        } finally {
+            lock.unlock();
+        }
+
+    }
+
+    // SUPPORT METHODS
+    /**
+     *
+     * Replays an order book event on the order book recovering.
+     *
+     * The order added is added back to the book, the order removed is removed from it.
+     * The unique number generator is restored with the id of the order added, to never reuse it.
+     * An invalid event is skipped and logged, not to abort the recovery.
+     *
+     * Private method, since it's used only in the class.
+     *
+     * @param orderBook The order book recovering.
+     * @param event The event to replay.
+     *
+     * @return True if the event has been replayed, false if it's invalid and it has been skipped.
+     *
+     */
+    private static Boolean replayEvent(OrderBook orderBook, DBOrderBookEvents.Event event) {
+
+        try {
+
+            if (event.getEvent().equals(DBOrderBookEvents.Event.REMOVE)) {
+                orderBook.cancelOrder(event.getOrderId());
+                return true;
+            }
+
+            OrderBookSnapshot.SnapshotOrder snapshotOrder = event.getOrder();
+            SpecificPrice price = DBOrderBookSnapshot.snapshotOrderPrice(Currency.valueOf(event.getPrimaryCurrency()), Currency.valueOf(event.getSecondaryCurrency()), snapshotOrder);
+            UniqueNumber.restoreLastNumber(snapshotOrder.getOrderId());
+            if (snapshotOrder.getOrderType().equals("stop")) {
+                StopOrder stopOrder = new StopOrder(price, new Quantity(snapshotOrder.getSize()), true);
+                DBOrderBookSnapshot.restoreOrderFields(stopOrder, snapshotOrder);
+                orderBook.executeOrder(stopOrder);
+            } else {
+                LimitOrder limitOrder = new LimitOrder(price, new Quantity(snapshotOrder.getSize()), true);
+                DBOrderBookSnapshot.restoreOrderFields(limitOrder, snapshotOrder);
+                orderBook.executeOrder(limitOrder);
+            }
+            return true;
+
+        } catch (IllegalArgumentException | NullPointerException ex) {
+            Log.warn(Category.PERSISTENCE, "Invalid order book event %s of the order %s, skipping it: %s", event.getSeq(), event.getOrderId(), ex.getMessage());
+            return false;
+        }
+
+    }
+    /**
+     *
+     * Replays an orders journal entry on the order book recovering.
+     *
+     * Each entry is a fill, settled on the balances of its user.
+     * A limit entry reduces (or removes) the resting limit order, a stop entry removes the resting stop order, a market entry doesn't rest on the book.
+     * An invalid entry is skipped and logged, not to abort the recovery.
+     *
+     * Private method, since it's used only in the class.
+     *
+     * @param orderBook The order book recovering.
+     * @param order The order of the journal entry.
+     * @param entry The position of the entry in the orders journal, for the log.
+     *
+     * @return True if the entry has been replayed, false if it's invalid and it has been skipped.
+     *
+     */
+    private static Boolean replayJournalEntry(OrderBook orderBook, Order order, long entry) {
+
+        try {
+
+            orderBook.applyJournalSettlement(order);
+            switch (order) {
+                case LimitOrder limitOrder -> orderBook.applyJournalFill(limitOrder.getId().longValue(), limitOrder.getQuantity());
+                case StopOrder stopOrder -> orderBook.cancelOrder(stopOrder.getId().longValue());
+                default -> {
+                    // Market orders do not rest on the book.
+                }
+            }
+            return true;
+
+        } catch (IllegalArgumentException | NullPointerException ex) {
+            Log.warn(Category.PERSISTENCE, "Invalid orders journal entry %d, skipping it: %s", entry, ex.getMessage());
+            return false;
+        }
+
+    }
+    /**
+     *
+     * Builds the price of a snapshot order.
+     *
+     * Private method, since it's used only in the class.
+     *
+     * @param primaryCurrency The primary currency of the order, as in the snapshot.
+     * @param secondaryCurrency The secondary currency of the order, as in the snapshot.
+     * @param snapshotOrder The snapshot order.
+     *
+     * @return The price of the order as a SpecificPrice object.
+     *
+     * @throws IllegalArgumentException If the order's price is invalid.
+     * @throws NullPointerException If some order's field is missing.
+     *
+     */
+    private static SpecificPrice snapshotOrderPrice(Currency primaryCurrency, Currency secondaryCurrency, OrderBookSnapshot.SnapshotOrder snapshotOrder) throws IllegalArgumentException, NullPointerException {
+
+        PriceType priceType = PriceType.valueOf(snapshotOrder.getType().toUpperCase());
+        return new SpecificPrice(snapshotOrder.getPrice(), priceType, primaryCurrency, secondaryCurrency);
+
+    }
+    /**
+     *
+     * Restores the id, the timestamp and the user of an order from a snapshot order.
+     *
+     * Private method, since it's used only in the class.
+     *
+     * @param order The order to restore.
+     * @param snapshotOrder The snapshot order.
+     *
+     */
+    private static void restoreOrderFields(Order order, OrderBookSnapshot.SnapshotOrder snapshotOrder) {
+
+        order.setId(snapshotOrder.getOrderId());
+        if (snapshotOrder.getTimestamp() != null) {
+            order.setTimestamp(snapshotOrder.getTimestamp());
+        }
+        if (snapshotOrder.getUsername() != null) {
+            User user = Users.getUserByUsername(snapshotOrder.getUsername());
+            if (user != null) {
+                order.setUser(user);
+            }
+        }
+
+    }
+
+}
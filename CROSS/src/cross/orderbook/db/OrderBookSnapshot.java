@@ -0,0 +1,390 @@
+package cross.orderbook.db;
+
+import java.util.LinkedList;
+import cross.orders.LimitOrder;
+import cross.orders.Order;
+import cross.orders.StopOrder;
+import cross.types.Currency;
+import cross.types.price.SpecificPrice;
+
+/**
+ *
+ * This class represents a consistent snapshot of an order book state.
+ *
+ * It contains all the resting orders (limit and stop) in arrival order, the users' balances (if enabled), the actuals (best) prices, the unique number generator state,
+ * the number of entries of the orders journal (orders database file) and the last order book event (see DBOrderBookEvents) already applied to the book.
+ * So, to recover the order book, only the journal entries and the events written after the snapshot must be replayed.
+ *
+ * It's a plain data class, created by the OrderBook class (that copies its state) and serialized to JSON by the DBOrderBookSnapshot class.
+ *
+ * @version 1.0
+ * @author Giulio Nisi
+ *
+ * @see cross.orderbook.OrderBook
+ * @see DBOrderBookSnapshot
+ *
+ */
+public class OrderBookSnapshot {
+
+    /**
+     *
+     * A single resting order of the snapshot.
+     *
+     * Contains only primitive values, so it's serialized without the order's back references (e.g. the user).
+     *
+     */
+    public static class SnapshotOrder {
+
+        private final Long orderId;
+        // "limit" or "stop", as in the orders database file.
+        private final String orderType;
+        // "ask" or "bid", as in the orders database file.
+        private final String type;
+        private final Integer price;
+        private final Integer size;
+        private final Long timestamp;
+        private final String username;
+
+        /**
+         *
+         * Constructor of the class.
+         *
+         * Copies the values from a resting order.
+         *
+         * Synchronized on the order to avoid modifications of it during the copy.
+         *
+         * @param order The resting order (limit or stop) to copy.
+         *
+         * @throws NullPointerException If the order is null.
+         * @throws IllegalArgumentException If the order is not a limit or a stop order.
+         *
+         */
+        public SnapshotOrder(Order order) throws NullPointerException, IllegalArgumentException {
+
+            // Null check.
+            if (order == null) {
+                throw new NullPointerException("Order to copy in an order book snapshot cannot be null.");
+            }
+
+            synchronized (order) {
+
+                if (order instanceof LimitOrder) {
+                    this.orderType = "limit";
+                } else if (order instanceof StopOrder) {
+                    this.orderType = "stop";
+                } else {
+                    throw new IllegalArgumentException("Order to copy in an order book snapshot must be a limit or a stop order.");
+                }
+
+                this.orderId = order.getId().longValue();
+                this.type = order.getPrice().getType().name().toLowerCase();
+                this.price = order.getPrice().getValue();
+                this.size = order.getQuantity().getValue();
+                this.timestamp = order.getTimestamp();
+                this.username = order.getUser() != null ? order.getUser().getUsername() : null;
+
+            }
+
+        }
+
+        // GETTERS
+        public Long getOrderId() {
+
+            return this.orderId;
+
+        }
+        public String getOrderType() {
+
+            return this.orderType;
+
+        }
+        public String getType() {
+
+            return this.type;
+
+        }
+        public Integer getPrice() {
+
+            return this.price;
+
+        }
+        public Integer getSize() {
+
+            return this.size;
+
+        }
+        public Long getTimestamp() {
+
+            return this.timestamp;
+
+        }
+        public String getUsername() {
+
+            return this.username;
+
+        }
+
+    }
+
+    /**
+     *
+     * The balances of a single user of the snapshot.
+     *
+     * Only the balances, the reserved parts are rebuilt by the resting orders.
+     *
+     */
+    public static class SnapshotBalance {
+
+        private final String username;
+        private final Long primaryBalance;
+        private final Long secondaryBalance;
+
+        /**
+         *
+         * Constructor of the class.
+         *
+         * @param username The username of the user.
+         * @param primaryBalance The balance in the primary currency.
+         * @param secondaryBalance The balance in the secondary currency.
+         *
+         */
+        public SnapshotBalance(String username, Long primaryBalance, Long secondaryBalance) {
+
+            this.username = username;
+            this.primaryBalance = primaryBalance;
+            this.secondaryBalance = secondaryBalance;
+
+        }
+
+        // GETTERS
+        public String getUsername() {
+
+            return this.username;
+
+        }
+        public Long getPrimaryBalance() {
+
+            return this.primaryBalance;
+
+        }
+        public Long getSecondaryBalance() {
+
+            return this.secondaryBalance;
+
+        }
+
+    }
+
+    // When the snapshot has been taken, in milliseconds.
+    private final Long takenAt;
+
+    // Number of entries of the orders journal already applied to the book when the snapshot has been taken.
+    private final Long journalEntries;
+
+    // Sequence number of the last order book event already applied to the book, null in the snapshots written before the events.
+    private final Long eventsSeq;
+
+    // Unique number generator state.
+    private final Long lastOrderId;
+
+    // Currencies of the book, null if the book never had a best price.
+    private final String primaryCurrency;
+    private final String secondaryCurrency;
+
+    // Actuals (best) prices values, null if not set.
+    private final Integer bestAsk;
+    private final Integer bestBid;
+
+    // Resting orders, for each line in arrival order.
+    private final LinkedList<SnapshotOrder> limitOrders = new LinkedList<>();
+    private final LinkedList<SnapshotOrder> stopOrders = new LinkedList<>();
+
+    // Users' balances, empty if the balances are not enabled.
+    private final LinkedList<SnapshotBalance> balances = new LinkedList<>();
+
+    /**
+     *
+     * Constructor of the class.
+     *
+     * The orders are added after with the add methods.
+     *
+     * @param journalEntries Number of entries of the orders journal already applied to the book.
+     * @param eventsSeq Sequence number of the last order book event already applied to the book.
+     * @param lastOrderId The unique number generator state.
+     * @param bestAsk The actual (best) ask price, could be null.
+     * @param bestBid The actual (best) bid price, could be null.
+     *
+     * @throws NullPointerException If the journal entries, the events sequence number or the last order id are null.
+     *
+     */
+    public OrderBookSnapshot(Long journalEntries, Long eventsSeq, Long lastOrderId, SpecificPrice bestAsk, SpecificPrice bestBid) throws NullPointerException {
+
+        // Null checks.
+        if (journalEntries == null) {
+            throw new NullPointerException("Journal entries of an order book snapshot cannot be null.");
+        }
+        if (eventsSeq == null) {
+            throw new NullPointerException("Events sequence number of an order book snapshot cannot be null.");
+        }
+        if (lastOrderId == null) {
+            throw new NullPointerException("Last order id of an order book snapshot cannot be null.");
+        }
+
+        this.takenAt = System.currentTimeMillis();
+        this.journalEntries = journalEntries;
+        this.eventsSeq = eventsSeq;
+        this.lastOrderId = lastOrderId;
+
+        SpecificPrice anyPrice = bestAsk != null ? bestAsk : bestBid;
+        this.primaryCurrency = anyPrice != null ? anyPrice.getPrimaryCurrency().name() : null;
+        this.secondaryCurrency = anyPrice != null ? anyPrice.getSecondaryCurrency().name() : null;
+
+        this.bestAsk = bestAsk != null ? bestAsk.getValue() : null;
+        this.bestBid = bestBid != null ? bestBid.getValue() : null;
+
+    }
+
+    /**
+     *
+     * Adds a resting limit order to the snapshot.
+     *
+     * @param order The limit order to add.
+     *
+     * @throws NullPointerException If the order is null.
+     *
+     */
+    public void addLimitOrder(LimitOrder order) throws NullPointerException {
+
+        this.limitOrders.add(new SnapshotOrder(order));
+
+    }
+    /**
+     *
+     * Adds a resting stop order to the snapshot.
+     *
+     * @param order The stop order to add.
+     *
+     * @throws NullPointerException If the order is null.
+     *
+     */
+    public void addStopOrder(StopOrder order) throws NullPointerException {
+
+        this.stopOrders.add(new SnapshotOrder(order));
+
+    }
+    /**
+     *
+     * Adds the balances of an user to the snapshot.
+     *
+     * @param username The username of the user.
+     * @param primaryBalance The balance in the primary currency.
+     * @param secondaryBalance The balance in the secondary currency.
+     *
+     * @throws NullPointerException If the username is null.
+     *
+     */
+    public void addBalance(String username, Long primaryBalance, Long secondaryBalance) throws NullPointerException {
+
+        // Null check.
+        if (username == null) {
+            throw new NullPointerException("Username of the balances to add in an order book snapshot cannot be null.");
+        }
+
+        this.balances.add(new SnapshotBalance(username, primaryBalance, secondaryBalance));
+
+    }
+
+    // GETTERS
+    public Long getTakenAt() {
+
+        return this.takenAt;
+
+    }
+    public Long getJournalEntries() {
+
+        return this.journalEntries;
+
+    }
+    /**
+     *
+     * Getter for the sequence number of the last order book event applied to the book.
+     *
+     * @return The sequence number, 0 for the snapshots written before the events.
+     *
+     */
+    public Long getEventsSeq() {
+
+        return this.eventsSeq != null ? this.eventsSeq : 0L;
+
+    }
+    public Long getLastOrderId() {
+
+        return this.lastOrderId;
+
+    }
+    /**
+     *
+     * Getter for the primary currency of the snapshot.
+     *
+     * @return The primary currency, or the default one if the book had no best prices.
+     *
+     */
+    public Currency getPrimaryCurrency() {
+
+        return this.primaryCurrency != null ? Currency.valueOf(this.primaryCurrency) : Currency.getDefaultPrimaryCurrency();
+
+    }
+    /**
+     *
+     * Getter for the secondary currency of the snapshot.
+     *
+     * @return The secondary currency, or the default one if the book had no best prices.
+     *
+     */
+    public Currency getSecondaryCurrency() {
+
+        return this.secondaryCurrency != null ? Currency.valueOf(this.secondaryCurrency) : Currency.getDefaultSecondaryCurrency();
+
+    }
+    public Integer getBestAsk() {
+
+        return this.bestAsk;
+
+    }
+    public Integer getBestBid() {
+
+        return this.bestBid;
+
+    }
+    public LinkedList<SnapshotOrder> getLimitOrders() {
+
+        return this.limitOrders;
+
+    }
+    public LinkedList<SnapshotOrder> getStopOrders() {
+
+        return this.stopOrders;
+
+    }
+    /**
+     *
+     * Getter for the users' balances of the snapshot.
+     *
+     * @return The users' balances, empty if the balances were not enabled or the snapshot was written before them.
+     *
+     */
+    public LinkedList<SnapshotBalance> getBalances() {
+
+        // Null for the snapshots written before the balances.
+        return this.balances != null ? this.balances : new LinkedList<>();
+
+    }
+
+    @Override
+    public String toString() {
+
+        return String.format("Order Book Snapshot [Taken at [%d] - Journal entries [%d] - Events [%d] - Last order id [%d] - Best ask [%s] - Best bid [%s] - Limit orders [%d] - Stop orders [%d] - Balances [%d]]", this.takenAt, this.journalEntries, this.getEventsSeq(), this.lastOrderId, this.bestAsk, this.bestBid, this.limitOrders.size(), this.stopOrders.size(), this.getBalances().size());
+
+    }
+
+}
@@ -0,0 +1,119 @@
+package cross.orderbook.db;
+
+import java.io.IOException;
+import cross.logging.Log;
+import cross.logging.Log.Category;
+import cross.orderbook.OrderBook;
+
+/**
+ *
+ * This thread periodically writes a snapshot of an order book on the snapshot file.
+ *
+ * It's started by the server after the order book recovery, if the snapshot interval is configured.
+ * The matching is stopped only for the copy of the order book state, see OrderBook.takeSnapshot().
+ *
+ * @version 1.0
+ * @author Giulio Nisi
+ *
+ * @see DBOrderBookSnapshot
+ * @see OrderBook
+ *
+ */
+public class SnapshotThread extends Thread {
+
+    // The order book to snapshot.
+    private final OrderBook orderBook;
+
+    // Interval between two snapshots in milliseconds.
+    private final Long intervalMillis;
+
+    private volatile Boolean isRunning = true;
+
+    /**
+     *
+     * Constructor of the class.
+     *
+     * Private, the thread is created and started by startSnapshotThread().
+     *
+     * @param orderBook The order book to snapshot.
+     * @param intervalMillis Interval between two snapshots in milliseconds.
+     *
+     */
+    private SnapshotThread(OrderBook orderBook, Long intervalMillis) {
+
+        super(SnapshotThread.class.getSimpleName());
+
+        this.orderBook = orderBook;
+        this.intervalMillis = intervalMillis;
+
+    }
+    /**
+     *
+     * Creates and starts a daemon snapshot thread.
+     *
+     * The thread is configured and started here, after its construction, so it's never seen partially constructed.
+     *
+     * @param orderBook The order book to snapshot.
+     * @param intervalMillis Interval between two snapshots in milliseconds.
+     *
+     * @return The snapshot thread started.
+     *
+     * @throws NullPointerException If the order book or the interval are null.
+     * @throws IllegalArgumentException If the interval is not positive.
+     *
+     */
+    public static SnapshotThread startSnapshotThread(OrderBook orderBook, Long intervalMillis) throws NullPointerException, IllegalArgumentException {
+
+        // Null checks.
+        if (orderBook == null) {
+            throw new NullPointerException("Order book to snapshot in the snapshot thread cannot be null.");
+        }
+        if (intervalMillis == null) {
+            throw new NullPointerException("Snapshot interval in the snapshot thread cannot be null.");
+        }
+
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("Snapshot interval in the snapshot thread must be positive.");
+        }
+
+        SnapshotThread snapshotThread = new SnapshotThread(orderBook, intervalMillis);
+        snapshotThread.setDaemon(true);
+        snapshotThread.start();
+        return snapshotThread;
+
+    }
+
+    public void stopRunning() {
+
+        this.isRunning = false;
+
+    }
+
+    @Override
+    public void run() {
+
+        while (this.isRunning) {
+
+            try {
+                Thread.sleep(this.intervalMillis);
+            } catch (InterruptedException ex) {
+                if (!this.isRunning) {
+                    return;
+                }
+            }
+
+            try {
+                OrderBookSnapshot snapshot = DBOrderBookSnapshot.writeSnapshot(this.orderBook);
+                if (snapshot == null) {
+                    Log.warn(Category.PERSISTENCE, "Order book not at a cycle boundary, snapshot skipped. Trying to continue...");
+                }
+            } catch (IOException | IllegalStateException ex) {
+                // This is a dediacted thread, so I don't backward the exception, instead I print it and I try to continue.
+                Log.warn(Category.PERSISTENCE, "Error writing the order book snapshot: %s Trying to continue...", ex.getMessage());
+            }
+
+        }
+
+    }
+
+}
@@ -52,7 +52,8 @@ public class LimitOrder extends Order {
             throw new IllegalStateException("The order book with the given currencies to be used to check the price coherence has not been found. Create it before by setting a best ask or best bid price with these currencies by executing some orders.");
         }
 
-        synchronized (orderBook) {
+        orderBook.getBookLock().lock();
+        try {
 
             // Price coherence / order type (ask / bid) checks.
             /*
@@ -81,6 +82,8 @@ public class LimitOrder extends Order {
                 throw new IllegalArgumentException("The BID price to use to BUY with a LIMIT is higher-equal than the best ASK price in the market.");
             }
 
+        } finally {
+            orderBook.getBookLock().unlock();
         }
 
     }
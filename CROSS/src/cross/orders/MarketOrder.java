@@ -223,7 +223,8 @@ public class MarketOrder extends Order {
             throw new IllegalStateException("The order book with the given currencies to be used to set the updated execution price of a market order has not been found. Create it before by setting a best ask or best bid price with these currencies by executing some orders.");
         }
 
-        synchronized (orderBook) {
+        orderBook.getBookLock().lock();
+        try {
 
             // Check if the current market prices are valid.
             if ((orderBook.getActualPriceAsk() == null && this.getMarketOrderPriceType() == PriceType.BID) || (orderBook.getActualPriceBid() == null && this.getMarketOrderPriceType() == PriceType.ASK)) {
@@ -238,6 +239,8 @@ public class MarketOrder extends Order {
                 this.setExecutionPrice(orderBook.getActualPriceAsk());
             }
 
+        } finally {
+            orderBook.getBookLock().unlock();
         }
 
     }
@@ -54,7 +54,8 @@ public class StopOrder extends Order {
             throw new IllegalStateException("The order book with the given currencies to be used to check the price coherence has not been found. Create it before by setting a best ask or best bid price with these currencies by executing some orders.");
         }
 
-        synchronized (orderBook) {
+        orderBook.getBookLock().lock();
+        try {
 
             // Check if the price is valid for a stop order.
             if (orderBook.getActualPriceBid() != null && price.getType() == PriceType.ASK && price.getValue() >= orderBook.getActualPriceBid().getValue()) {
@@ -64,6 +65,8 @@ public class StopOrder extends Order {
                 throw new IllegalArgumentException("The BID price to use to BUY with a STOP is lower-equal than the best ASK price in the market.");
             }
 
+        } finally {
+            orderBook.getBookLock().unlock();
         }
 
     }
@@ -7,14 +7,26 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.LinkedList;
+import java.util.concurrent.locks.ReentrantLock;
 import com.google.gson.Gson;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
 import com.google.gson.JsonParser;
 import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.MalformedJsonException;
 import cross.exceptions.InvalidOrder;
+import cross.logging.Log;
+import cross.logging.Log.Category;
+import cross.metrics.Metrics;
+import cross.metrics.Metrics.Stage;
 import cross.orderbook.OrderBook;
 import cross.orders.LimitOrder;
 import cross.orders.MarketOrder;
@@ -25,14 +37,21 @@ import cross.types.Quantity;
 import cross.types.price.GenericPrice;
 import cross.types.price.PriceType;
 import cross.types.price.SpecificPrice;
+import cross.users.User;
+import cross.users.db.Users;
 import cross.utils.ClientActionsUtils;
 import cross.utils.FileHandler;
+import cross.utils.WriteContext;
 
 /**
  *
  * This class is an interface to handle orders database file.
  * It's used by the Orders class as support to load and save orders from and to a JSON orders database file.
  *
+ * The orders database file is the active segment of the orders journal.
+ * Optionally (see setSegmentsPolicy()), when it grows over a given size it's sealed in a segment file and restarted empty, see DBOrdersSegments.
+ * The sealed segments are loaded in memory with the active one, except the ones already compacted in archives, read from disk only when needed.
+ *
  * Abstract class because I assume that I don't want to handle different orders databases at the same time.
  * So I will use only static methods and variables.
  *
@@ -42,12 +61,16 @@ import cross.utils.FileHandler;
  * @see Order
  *
  * @see Orders
+ * @see DBOrdersSegments
  *
  * @see FileHandler
  *
  */
 public abstract class DBOrdersInterface {
 
+    // Lock of the orders database file, a ReentrantLock (see ClientThread).
+    private static final ReentrantLock lock = new ReentrantLock();
+
     // Orders database file path.
     private static String filePath = null;
 
@@ -60,8 +83,15 @@ public abstract class DBOrdersInterface {
     private static BufferedInputStream fileInBuffered = null;
     private static BufferedOutputStream fileOutBuffered = null;
 
-    // Orders database file content as String.
-    private static String fileContent = null;
+    // Orders database file read, by readFile(), and not closed.
+    // Its content is not kept in memory, it's read from disk only when needed (the journal tail, the seal).
+    private static Boolean fileRead = false;
+
+    // Size (in bytes) of the orders database file, to check if it must be sealed without reading it.
+    private static Long activeBytes = 0L;
+
+    // Shared, the Gson instances are thread safe.
+    private static final Gson gson = new Gson();
 
     // Costant for file handling.
     private static final String FILE_INIT = "{\"trades\": [\n]\n}";
@@ -70,12 +100,26 @@ public abstract class DBOrdersInterface {
     // Used in the Orders class to check if the orders has been already loaded before getting / searching an order.
     private static Boolean ordersLoaded = false;
 
+    // Number of orders (entries) written in the orders database file, that is the orders journal.
+    // Used by the order book snapshots to know from which entry the journal tail must be replayed.
+    private static Long journalEntries = 0L;
+
+    // Index of the first journal entry loaded in memory (in the Orders class).
+    // The entries before it are in the compacted segments, read from disk only when needed.
+    private static Long memoryFirstEntry = 0L;
+
+    // Journal entries covered by the latest order book snapshot, zero without snapshots.
+    private static Long snapshotEntries = 0L;
+
+    // True while a seal of the orders database file is scheduled on the segments background thread, so it's scheduled once.
+    private static Boolean sealScheduled = false;
+
     // FILE HANDLING
     /**
      *
      * Sets the orders database file to handle.
      *
-     * Synchronized ON CLASS to avoid multiple threads to set the file at the same time.
+     * Locked ON CLASS (with the class lock) to avoid multiple threads to set the file at the same time.
      * 
      * If the file is not found, it will be created with the initial content.
      *
@@ -89,7 +133,8 @@ public abstract class DBOrdersInterface {
      */
     public static void setFile(String filePath) throws IllegalArgumentException, NullPointerException, IllegalStateException, IOException {
 
-        synchronized (DBOrdersInterface.class) {
+        lock.lock();
+        try {
 
             // Null check.
             if (filePath == null) {
@@ -118,10 +163,10 @@ public abstract class DBOrdersInterface {
 
                 DBOrdersInterface.filePath = filePath;
 
-                System.out.printf("DB Orders file %s attached.\n", filePath);
+                Log.info(Category.PERSISTENCE, "DB Orders file %s attached.", filePath);
             } catch (FileNotFoundException ex) {
 
-                System.out.printf("DB Orders file %s not found. Creating it.\n", filePath);
+                Log.info(Category.PERSISTENCE, "DB Orders file %s not found. Creating it.", filePath);
 
                 // Create an empty file.
                 try {
@@ -138,14 +183,23 @@ public abstract class DBOrdersInterface {
 
                     DBOrdersInterface.filePath = filePath;
 
-                    System.out.printf("DB Orders file %s created and attached.\n", filePath);
+                    Log.info(Category.PERSISTENCE, "DB Orders file %s created and attached.", filePath);
                 } catch (IOException ex2) {
                     throw new IOException("Error creating the database orders file.");
                 }
 
             }
 
+            // Reading the sealed segments index, if any.
+            try {
+                DBOrdersSegments.open(filePath);
+            } catch (JsonSyntaxException ex) {
+                throw new IOException("Error parsing the orders journal segments index file.");
+            }
+
 
+        } finally {
+            lock.unlock();
         }
 
     }
@@ -153,9 +207,9 @@ public abstract class DBOrdersInterface {
      *
      * Reads the file attached, previously setted with setFile().
      *
-     * This fills the file content variable with the file content as String.
+     * The content is not kept in memory, the orders are streamed from the file by loadOrders().
      *
-     * Synchronized ON CLASS to avoid multiple threads to read the file at the same time.
+     * Locked ON CLASS (with the class lock) to avoid multiple threads to read the file at the same time.
      *
      * @throws IllegalStateException If the file is not attached or the file content is already readed.
      * @throws IOException If there's an I/O error reading the file.
@@ -163,7 +217,8 @@ public abstract class DBOrdersInterface {
      */
     public static void readFile() throws IOException, IllegalStateException {
 
-        synchronized (DBOrdersInterface.class) {
+        lock.lock();
+        try {
 
             // File not attached.
             if (file == null || fileIn == null || DBOrdersInterface.filePath == null) {
@@ -171,32 +226,78 @@ public abstract class DBOrdersInterface {
             }
 
             // File content already readed.
-            if (DBOrdersInterface.fileContent != null) {
+            if (DBOrdersInterface.fileRead) {
                 throw new IllegalStateException("Database orders file already readed.");
             }
 
-            // Read file.
-            StringBuilder fileContentBuilder = new StringBuilder();
-            Integer buffSize = 1024;
-            byte[] buffer = new byte[buffSize];
+            // Only its size, the content is streamed when loading the orders.
             try {
+                DBOrdersInterface.activeBytes = Files.size(DBOrdersInterface.file.toPath());
+            } catch (IOException | SecurityException ex) {
+                throw new IOException("Error reading the database orders file.");
+            }
+            DBOrdersInterface.fileRead = true;
 
-                while (true) {
-                    int bytesRead = fileInBuffered.read(buffer, 0, buffSize);
-                    if (bytesRead == -1) {
-                        // End of file.
-                        break;
-                    }
-                    fileContentBuilder.append(new String(buffer, 0, bytesRead));
-                }
+            Log.info(Category.PERSISTENCE, "DB Orders file %s readed.", filePath);
 
-                DBOrdersInterface.fileContent = fileContentBuilder.toString();
+        } finally {
+            lock.unlock();
+        }
 
-                System.out.printf("DB Orders file %s readed.\n", filePath);
-            } catch (IOException | IndexOutOfBoundsException ex) {
-                throw new IOException("Error reading the database orders file.");
-            }
+    }
+
+    /**
+     *
+     * Sets the orders journal segments policy.
+     *
+     * If the max active size is 0 (the default), the orders database file is never sealed in a segment.
+     *
+     * @param maxActiveBytes Size (in bytes) of the orders database file over which it's sealed in a segment, 0 to never seal.
+     * @param retentionDays Compacted segments older than this (in days) are deleted, 0 to keep them forever.
+     *
+     * @throws NullPointerException If some value is null.
+     * @throws IllegalArgumentException If some value is negative.
+     *
+     */
+    public static void setSegmentsPolicy(Long maxActiveBytes, Long retentionDays) throws NullPointerException, IllegalArgumentException {
+
+        // Null checks.
+        if (maxActiveBytes == null) {
+            throw new NullPointerException("Max orders journal active segment size cannot be null.");
+        }
+        if (retentionDays == null) {
+            throw new NullPointerException("Orders journal segments retention cannot be null.");
+        }
+
+        DBOrdersSegments.setPolicy(maxActiveBytes, retentionDays * 24 * 60 * 60);
+
+    }
+    /**
+     *
+     * Sets the orders journal entries covered by an order book snapshot.
+     *
+     * The sealed segments before it will never be replayed by a recovery, so they are compacted in background.
+     * If never called (no snapshots), no sealed segment is compacted.
+     *
+     * @param settledEntries The journal entries covered by the snapshot.
+     *
+     * @throws NullPointerException If the settled entries are null.
+     *
+     */
+    public static void setSettledEntries(Long settledEntries) throws NullPointerException {
+
+        // Null check.
+        if (settledEntries == null) {
+            throw new NullPointerException("Orders journal settled entries cannot be null.");
+        }
 
+        DBOrdersSegments.setSettledEntries(settledEntries);
+
+        lock.lock();
+        try {
+            DBOrdersInterface.snapshotEntries = settledEntries;
+        } finally {
+            lock.unlock();
         }
 
     }
@@ -208,8 +309,9 @@ public abstract class DBOrdersInterface {
      *
      * This appends the order to the orders database file, at the end, without rewriting all the file.
      *
-     * Synchronized ON CLASS to avoid multiple threads to write on the file at the same time.
-     * Syncronized ON ORDER to avoid multiple threads to modify the order's properties during the execution of this method.
+     * Locked ON CLASS (with the class lock) to avoid multiple threads to write on the file at the same time.
+     * Syncronized ON ORDER only while copying it in JSON, to avoid multiple threads to modify the order's properties during the copy.
+     * The file I/O is done without the monitor of the order.
      *
      * @param order The Order to write (append) to the orders database file.
      *
@@ -221,42 +323,27 @@ public abstract class DBOrdersInterface {
      */
     public static void writeOrderOnFile(Order order) throws NullPointerException, IOException, JsonSyntaxException {
 
-        synchronized (DBOrdersInterface.class) {
+        // The wait for the class lock included, it's part of the journal latency seen by the request.
+        long start = Metrics.startTimer();
+        lock.lock();
+        try {
 
             // Null check.
             if (order == null) {
                 throw new NullPointerException("Order to append to the orders database file cannot be null.");
             }
 
-            synchronized (order) {
-
-                // File not attached.
-                if (DBOrdersInterface.fileContent == null) {
-                    throw new IllegalStateException("Orders database file content is needed to append an order to the orders database file. Call readFile() before.");
-                }
-
-                String newFileContent = String.format("%s", DBOrdersInterface.fileContent);
-
-                // Remove last 2 lines.
-                try {
-                    FileHandler.removeLastLine(DBOrdersInterface.file);
-                    FileHandler.removeLastLine(DBOrdersInterface.file);
-
-                    // Updating also the file content to keep it in sync with the file on disk without reading it again.
-                    int lastNewLine = newFileContent.lastIndexOf('\n');
-                    lastNewLine = newFileContent.substring(0, lastNewLine).lastIndexOf('\n');
-                    if (lastNewLine == -1) {
-                        throw new IOException();
-                    }
-                    newFileContent = newFileContent.substring(0, lastNewLine);
-                } catch (IOException | IndexOutOfBoundsException ex) {
-                    throw new IOException("Error removing the last line from the orders database file.");
-                }
+            // File not attached.
+            if (!DBOrdersInterface.fileRead) {
+                throw new IllegalStateException("Orders database file must be read to append an order to the orders database file. Call readFile() before.");
+            }
 
-                // Append order on file.
+            // The order copied in JSON holding its monitor, only in memory.
+            String jsonOrder;
+            synchronized (order) {
                 try {
 
-                    String jsonOrder = new Gson().toJson(order);
+                    jsonOrder = gson.toJson(order);
                     
                     // {"orderId": 3, "type": "bid" , "orderType": "market", "size": 614, "price": 56000000, "timestamp": 1725149122}
                     JsonObject jsonObject = JsonParser.parseString(jsonOrder).getAsJsonObject();
@@ -310,58 +397,111 @@ public abstract class DBOrdersInterface {
                     }
                     jsonObject.addProperty("orderId", orderId);
 
-                    jsonOrder = new Gson().toJson(jsonObject);
-
-                    // Remove all the '\n' from the JSON order.
-                    jsonOrder = String.join("", jsonOrder.trim().split("\n"));
-                    if (DBOrdersInterface.fileContent.compareTo(FILE_INIT) == 0) {
-                        // First order.
-                        /*
-                        * {\n
-                        *  "trades": [\n
-                        *
-                        */
-                        jsonOrder = jsonOrder + "\n" + "]" + "\n}";
-                    } else {
-                        // Other orders.
-                        /*
-                        * [
-                        *  {order1}\n
-                        *
-                        */
-
-                        // Need to remove the last char "\n" before writing the ','.
-                        FileHandler.removeLastChar(DBOrdersInterface.file);
-                        try {
-                            newFileContent = newFileContent.substring(0, newFileContent.length() - 1);
-                        } catch (IndexOutOfBoundsException ex) {
-                            throw new IOException();
-                        }
+                    // The user of the fill, so the journal tail settles the users' balances when replayed.
+                    if (order.getUser() != null) {
+                        jsonObject.addProperty("username", order.getUser().getUsername());
+                    }
 
-                        jsonOrder = """
-                                    ,
-                                    """ + jsonOrder + "\n]" + "\n}";
+                    jsonOrder = gson.toJson(jsonObject);
 
-                    }
+                } catch (JsonSyntaxException | IllegalStateException | NullPointerException | UnsupportedOperationException | NumberFormatException ex) {
+                    throw new JsonSyntaxException("Error parsing the order to JSON.");
+                }
+            }
 
-                    // Append to the file.
-                    fileOutBuffered.write(jsonOrder.getBytes());
-                    fileOutBuffered.flush();
+            // Remove last 2 lines, and the '\n' left.
+            // The char before it, read from the file tail on disk, tells if the trades array is empty.
+            char previous;
+            try {
+                FileHandler.removeLastLine(DBOrdersInterface.file);
+                FileHandler.removeLastLine(DBOrdersInterface.file);
+                previous = FileHandler.removeLastChar(DBOrdersInterface.file);
+            } catch (IOException ex) {
+                throw new IOException("Error removing the last line from the orders database file.");
+            }
 
-                    // Update the file content by adding the new user.
-                    newFileContent = newFileContent + jsonOrder;
+            // Append order on file.
+            try {
 
-                    // Update the main file content variable.
-                    DBOrdersInterface.fileContent = newFileContent;
+                // Remove all the '\n' from the JSON order.
+                jsonOrder = String.join("", jsonOrder.trim().split("\n"));
+                if (previous == '[') {
+                    // First order.
+                    /*
+                    * {\n
+                    *  "trades": [
+                    *
+                    */
+                    jsonOrder = "\n" + jsonOrder + "\n" + "]" + "\n}";
+                } else {
+                    // Other orders.
+                    /*
+                    * [
+                    *  {order1}
+                    *
+                    */
+                    jsonOrder = """
+                                ,
+                                """ + jsonOrder + "\n]" + "\n}";
 
-                } catch (IOException ex) {
-                    throw new IOException("Error appending the new order to the orders database file.");
-                } catch (JsonSyntaxException | IllegalStateException | NullPointerException | UnsupportedOperationException | NumberFormatException ex) {
-                    throw new JsonSyntaxException("Error parsing the order to JSON.");
                 }
 
+                // Append to the file.
+                fileOutBuffered.write(jsonOrder.getBytes());
+                fileOutBuffered.flush();
+
+                DBOrdersInterface.activeBytes = DBOrdersInterface.file.length();
+
+                DBOrdersInterface.journalEntries++;
+
+            } catch (IOException ex) {
+                throw new IOException("Error appending the new order to the orders database file.");
+            }
+
+            // Sealed in background, the order is written and the request does not wait for the seal.
+            if (!DBOrdersInterface.sealScheduled && DBOrdersSegments.mustSeal(DBOrdersInterface.activeBytes)) {
+                DBOrdersInterface.sealScheduled = true;
+                DBOrdersSegments.scheduleSeal(DBOrdersInterface::sealInBackground);
+            }
+
+        } finally {
+            lock.unlock();
+            Metrics.recordLatency(Stage.JOURNAL, start);
+        }
+
+    }
+    /**
+     *
+     * Closes the orders database file attached, at the shutdown of the server.
+     *
+     * Locked ON CLASS (with the class lock), so it waits for the order being appended and the file is never left with a partial order.
+     * After it, the appends are refused as before reading the file, so the file is not touched anymore.
+     *
+     * @throws IOException If there's an I/O error closing the file.
+     *
+     */
+    public static void closeFile() throws IOException {
+
+        lock.lock();
+        try {
+
+            // Not read or already closed.
+            if (!DBOrdersInterface.fileRead) {
+                return;
+            }
+            DBOrdersInterface.fileRead = false;
+
+            try {
+                fileOutBuffered.close();
+                fileInBuffered.close();
+            } catch (IOException ex) {
+                throw new IOException("Error closing the orders database file.");
             }
 
+            Log.info(Category.PERSISTENCE, "DB Orders file %s closed.", DBOrdersInterface.filePath);
+
+        } finally {
+            lock.unlock();
         }
 
     }
@@ -393,12 +533,559 @@ public abstract class DBOrdersInterface {
 
     }
 
+    /**
+     *
+     * Get the number of orders (entries) written in the orders database file, the orders journal.
+     *
+     * Locked ON CLASS (with the class lock) to avoid reading it during a write.
+     *
+     * @return The number of entries of the orders journal as Long.
+     *
+     */
+    public static Long getJournalEntries() {
+
+        lock.lock();
+        try {
+
+            return DBOrdersInterface.journalEntries;
+
+        } finally {
+            lock.unlock();
+        }
+
+    }
+    /**
+     *
+     * Get the lag of the orders journal: the entries not covered by the latest order book snapshot, replayed by a restart.
+     *
+     * Without snapshots, all the entries are replayed, so the lag is the number of entries.
+     *
+     * Locked ON CLASS (with the class lock) to avoid reading it during a write.
+     *
+     * @return The entries of the orders journal after the latest snapshot as Long.
+     *
+     */
+    public static Long getJournalLag() {
+
+        lock.lock();
+        try {
+
+            return Math.max(0L, DBOrdersInterface.journalEntries - DBOrdersInterface.snapshotEntries);
+
+        } finally {
+            lock.unlock();
+        }
+
+    }
+    /**
+     *
+     * Get the orders written in the orders database file (the orders journal) starting from a given entry.
+     *
+     * Used to replay only the journal tail written after an order book snapshot.
+     * The orders returned keep the size written in the file, they are NOT added to the Orders class.
+     * The orders written with an username are assigned to their user, if it still exists.
+     *
+     * Locked ON CLASS (with the class lock) to avoid reading the file content during a write.
+     *
+     * @param fromEntry The index of the first journal entry to return, the number of entries already applied.
+     *
+     * @return A list with the orders of the journal tail, in the written order. Empty if there are no entries after the given one.
+     *
+     * @throws NullPointerException If the first entry index is null.
+     * @throws IllegalStateException If the file content is not readed.
+     * @throws JsonSyntaxException If there's an error parsing the JSON orders database file content.
+     *
+     */
+    public static LinkedList<Order> getJournalTail(Long fromEntry) throws NullPointerException, IllegalStateException, JsonSyntaxException {
+
+        lock.lock();
+        try {
+
+            // Null check.
+            if (fromEntry == null) {
+                throw new NullPointerException("First entry index of the orders journal tail cannot be null.");
+            }
+
+            // Orders database file content not readed check.
+            if (!DBOrdersInterface.fileRead) {
+                throw new IllegalStateException("Database orders file not read. Read it before with readFile().");
+            }
+
+            LinkedList<Order> tail = new LinkedList<>();
+
+            try {
+
+                // Sealed segments first, in journal order.
+                for (DBOrdersSegments.Segment segment : DBOrdersSegments.getSegmentsFrom(fromEntry)) {
+                    JsonArray jsonArray = DBOrdersInterface.parseEntries(DBOrdersSegments.readSegment(segment));
+                    for (int i = (int) Math.max(0L, fromEntry - segment.getFirstEntry()); i < jsonArray.size(); i++) {
+                        tail.add(DBOrdersInterface.parseJournalEntry(jsonArray.get(i).getAsJsonObject()));
+                    }
+                }
+
+                JsonArray jsonArray = DBOrdersInterface.parseEntries(DBOrdersInterface.readActiveFile());
+                for (int i = (int) Math.max(0L, fromEntry - DBOrdersSegments.getActiveFirstEntry()); i < jsonArray.size(); i++) {
+                    tail.add(DBOrdersInterface.parseJournalEntry(jsonArray.get(i).getAsJsonObject()));
+                }
+
+            } catch (NumberFormatException ex) {
+                throw new JsonSyntaxException(ex.getMessage());
+            } catch (NullPointerException | IllegalArgumentException | IllegalStateException | UnsupportedOperationException ex) {
+                throw new JsonSyntaxException("Error parsing the JSON orders database file.");
+            } catch (IOException ex) {
+                throw new JsonSyntaxException(ex.getMessage());
+            }
+
+            return tail;
+
+        } finally {
+            lock.unlock();
+        }
+
+    }
+
+    /**
+     *
+     * Get the orders of the compacted segments (not loaded in memory) that could be in a time range.
+     *
+     * The segments outside the time range are skipped without reading them, the orders returned could be outside it anyway.
+     * The orders returned keep the size written in the file, they are NOT added to the Orders class.
+     *
+     * Used by the Orders class to complete the in memory orders, e.g. for the price history.
+     *
+     * @param fromTimestamp The start of the time range, inclusive, in seconds.
+     * @param toTimestamp The end of the time range, exclusive, in seconds.
+     *
+     * @return The archived orders, in journal order. Empty if there are no compacted segments in the time range.
+     *
+     * @throws IOException If a segment cannot be read.
+     * @throws JsonSyntaxException If a segment cannot be parsed.
+     *
+     */
+    public static LinkedList<Order> getArchivedOrders(long fromTimestamp, long toTimestamp) throws IOException, JsonSyntaxException {
+
+        LinkedList<Order> orders = new LinkedList<>();
+
+        Long toEntry;
+        lock.lock();
+        try {
+            toEntry = DBOrdersInterface.memoryFirstEntry;
+        } finally {
+            lock.unlock();
+        }
+        if (toEntry == 0) {
+            return orders;
+        }
+
+        try {
+            for (String content : DBOrdersSegments.readSegmentsBefore(toEntry, fromTimestamp, toTimestamp)) {
+                for (JsonElement element : DBOrdersInterface.parseEntries(content)) {
+                    orders.add(DBOrdersInterface.parseOrder(element.getAsJsonObject(), true, Currency.getDefaultPrimaryCurrency(), Currency.getDefaultSecondaryCurrency()));
+                }
+            }
+        } catch (NumberFormatException ex) {
+            throw new JsonSyntaxException(ex.getMessage());
+        } catch (NullPointerException | IllegalArgumentException | IllegalStateException | UnsupportedOperationException ex) {
+            throw new JsonSyntaxException("Error parsing an orders journal segment.");
+        }
+
+        return orders;
+
+    }
+
+    /**
+     *
+     * Finds an order of the compacted segments (not loaded in memory) by its id.
+     *
+     * Only the segments whose orders' ids range contains the id are read, from disk.
+     * The order returned is the first entry of the id, in journal order, as the Orders class keeps the first order added with an id.
+     * It keeps the size written in the file, and it is NOT added to the Orders class.
+     *
+     * Used by the Orders class to complete the in memory orders, in Orders.getOrderById().
+     *
+     * @param orderId The order's id.
+     *
+     * @return The archived order, null if not found or if there are no compacted segments.
+     *
+     * @throws IOException If a segment cannot be read.
+     * @throws JsonSyntaxException If a segment cannot be parsed.
+     *
+     */
+    public static Order getArchivedOrder(long orderId) throws IOException, JsonSyntaxException {
+
+        Long toEntry;
+        lock.lock();
+        try {
+            toEntry = DBOrdersInterface.memoryFirstEntry;
+        } finally {
+            lock.unlock();
+        }
+        if (toEntry == 0) {
+            return null;
+        }
+
+        try {
+            for (String content : DBOrdersSegments.readSegmentsWithOrder(toEntry, orderId)) {
+                for (JsonElement element : DBOrdersInterface.parseEntries(content)) {
+                    JsonObject jsonObject = element.getAsJsonObject();
+                    JsonElement orderIdElement = jsonObject.get("orderId");
+                    if (orderIdElement == null || orderIdElement.getAsLong() != orderId) {
+                        continue;
+                    }
+                    return DBOrdersInterface.parseOrder(jsonObject, true, Currency.getDefaultPrimaryCurrency(), Currency.getDefaultSecondaryCurrency());
+                }
+            }
+        } catch (NumberFormatException ex) {
+            throw new JsonSyntaxException(ex.getMessage());
+        } catch (NullPointerException | IllegalArgumentException | IllegalStateException | UnsupportedOperationException ex) {
+            throw new JsonSyntaxException("Error parsing an orders journal segment.");
+        }
+
+        return null;
+
+    }
+
+    // SUPPORT METHODS
+    /**
+     *
+     * Parses the entries of an orders database file (or segment) content.
+     *
+     * @param content The file content.
+     *
+     * @return The entries, empty if the file has no orders.
+     *
+     * @throws JsonSyntaxException If the content is not valid JSON.
+     * @throws IllegalStateException If the content is not a JSON object with the trades array.
+     *
+     */
+    private static JsonArray parseEntries(String content) throws JsonSyntaxException, IllegalStateException {
+
+        if (content.compareTo(FILE_INIT) == 0) {
+            return new JsonArray();
+        }
+        return JsonParser.parseString(content).getAsJsonObject().getAsJsonArray("trades");
+
+    }
+    /**
+     *
+     * Opens a stream of the entries of an orders database file (or segment) content.
+     *
+     * The reader is positioned inside the trades array, each entry is read with JsonParser.parseReader() while hasNext() is true.
+     *
+     * @param reader The reader of the content, closed with the returned one.
+     *
+     * @return The JSON reader, inside the trades array.
+     *
+     * @throws IOException If the content cannot be read or it's not a JSON object with the trades array.
+     *
+     */
+    private static JsonReader openEntries(Reader reader) throws IOException {
+
+        JsonReader jsonReader = new JsonReader(reader);
+        try {
+            jsonReader.beginObject();
+            while (!jsonReader.nextName().equals("trades")) {
+                jsonReader.skipValue();
+            }
+            jsonReader.beginArray();
+        } catch (IOException | IllegalStateException ex) {
+            jsonReader.close();
+            throw new IOException("Orders database file content is not a JSON object with the trades array.");
+        }
+        return jsonReader;
+
+    }
+    /**
+     *
+     * Reads the orders database file content from disk.
+     *
+     * The caller holds the class lock.
+     *
+     * @return The file content.
+     *
+     * @throws IOException If the file cannot be read.
+     *
+     */
+    private static String readActiveFile() throws IOException {
+
+        try {
+            return Files.readString(DBOrdersInterface.file.toPath(), StandardCharsets.UTF_8);
+        } catch (IOException ex) {
+            throw new IOException("Error reading the orders database file.");
+        }
+
+    }
+    /**
+     *
+     * Seals the orders database file in a new segment, run by the segments background thread.
+     *
+     * Locked ON CLASS (with the class lock), the appends wait for the seal, but not the request that scheduled it.
+     * A sealing error must not fail the orders already written, the file will be sealed after the next append.
+     * After the file is closed, nothing is sealed.
+     *
+     */
+    private static void sealInBackground() {
+
+        lock.lock();
+        try {
+
+            DBOrdersInterface.sealScheduled = false;
+
+            // Closed, or already sealed.
+            if (!DBOrdersInterface.fileRead || !DBOrdersSegments.mustSeal(DBOrdersInterface.activeBytes)) {
+                return;
+            }
+
+            try {
+                DBOrdersInterface.sealActiveSegment();
+            } catch (IOException | JsonSyntaxException ex) {
+                Log.warn(Category.PERSISTENCE, "Error sealing the orders database file in a segment: %s Trying to continue...", ex.getMessage());
+            }
+
+        } finally {
+            lock.unlock();
+        }
+
+    }
+    /**
+     *
+     * Seals the orders database file content in a new segment and restarts the file empty.
+     *
+     * The caller holds the class lock.
+     *
+     * @throws IOException If the file cannot be read, the segment cannot be written or the file cannot be emptied.
+     * @throws JsonSyntaxException If the file content cannot be parsed.
+     *
+     */
+    private static void sealActiveSegment() throws IOException, JsonSyntaxException {
+
+        Long minTimestamp = null;
+        Long maxTimestamp = null;
+        Long minOrderId = null;
+        Long maxOrderId = null;
+        long entries = 0;
+        // Streamed from the file, one entry at a time.
+        try (JsonReader jsonReader = DBOrdersInterface.openEntries(Files.newBufferedReader(DBOrdersInterface.file.toPath(), StandardCharsets.UTF_8))) {
+            while (jsonReader.hasNext()) {
+                JsonObject element = JsonParser.parseReader(jsonReader).getAsJsonObject();
+                entries++;
+                JsonElement orderIdElement = element.get("orderId");
+                if (orderIdElement != null) {
+                    long orderId = orderIdElement.getAsLong();
+                    minOrderId = minOrderId == null ? orderId : Math.min(minOrderId, orderId);
+                    maxOrderId = maxOrderId == null ? orderId : Math.max(maxOrderId, orderId);
+                }
+                JsonElement timestampElement = element.get("timestamp");
+                if (timestampElement == null) {
+                    continue;
+                }
+                long timestamp = timestampElement.getAsLong();
+                minTimestamp = minTimestamp == null ? timestamp : Math.min(minTimestamp, timestamp);
+                maxTimestamp = maxTimestamp == null ? timestamp : Math.max(maxTimestamp, timestamp);
+            }
+        } catch (JsonParseException | IllegalStateException | UnsupportedOperationException | NumberFormatException ex) {
+            throw new JsonSyntaxException("Error parsing the orders database file to seal.");
+        }
+
+        DBOrdersSegments.seal(DBOrdersInterface.file.toPath(), entries, minTimestamp, maxTimestamp, minOrderId, maxOrderId);
+        DBOrdersInterface.emptyActiveFile();
+
+    }
+    /**
+     *
+     * Restarts the orders database file empty, after its content has been sealed in a segment.
+     *
+     * The caller holds the class lock.
+     *
+     * @throws IOException If the file cannot be emptied.
+     *
+     */
+    private static void emptyActiveFile() throws IOException {
+
+        // Not in append mode, to truncate it. The append stream keeps working, it always writes at the end.
+        try (FileOutputStream truncating = new FileOutputStream(DBOrdersInterface.file, false)) {
+            truncating.write(FILE_INIT.getBytes());
+        } catch (IOException ex) {
+            throw new IOException("Error emptying the orders database file after sealing it.");
+        }
+        DBOrdersInterface.activeBytes = (long) FILE_INIT.getBytes().length;
+
+    }
+    /**
+     *
+     * Parses a single order (entry) of the orders database file.
+     *
+     * Private method, since it's used only in the class.
+     *
+     * @param jsonObject The JSON object of the order.
+     * @param noPriceCoherenceChecks If true, the price coherence checks are not performed during the order creation.
+     * @param primaryCurrency The primary currency of the order.
+     * @param secondaryCurrency The secondary currency of the order.
+     *
+     * @return The order parsed, with the size written in the file.
+     *
+     * @throws NumberFormatException If the order type or the timestamp are invalid.
+     * @throws NullPointerException If some order's field is missing.
+     * @throws IllegalArgumentException If some order's field is invalid.
+     *
+     */
+    private static Order parseOrder(JsonObject jsonObject, Boolean noPriceCoherenceChecks, Currency primaryCurrency, Currency secondaryCurrency) throws NumberFormatException, NullPointerException, IllegalArgumentException {
+
+        // Convert each JSON string to the corresponding object.
+        Long timestamp = null;
+        if (jsonObject.get("timestamp") != null) {
+            String timestampStr = jsonObject.get("timestamp").getAsString();
+            try {
+                timestamp = Long.valueOf(timestampStr);
+            } catch (NumberFormatException ex) {
+                throw new NumberFormatException("Error parsing the timestamp from the JSON orders database file.");
+            }
+        }
+
+        String type = jsonObject.get("type").getAsString();
+        PriceType priceType = ClientActionsUtils.getPriceTypeFromString(type);
+
+        String price = jsonObject.get("price").getAsString();
+        GenericPrice genericPrice = ClientActionsUtils.getPriceFromString(price);
+        SpecificPrice specificPrice = new SpecificPrice(genericPrice.getValue(), priceType, primaryCurrency, secondaryCurrency);
+
+        String size = jsonObject.get("size").getAsString();
+        Quantity quantity = ClientActionsUtils.getSizeFromString(size);
+
+        String orderId = jsonObject.get("orderId").getAsString();
+        Number id = ClientActionsUtils.getOrderIDFromString(orderId);
+
+        Order order;
+        String orderType = jsonObject.get("orderType").getAsString();
+        switch (orderType) {
+
+            case "limit":
+
+                LimitOrder limitOrder = new LimitOrder(specificPrice, quantity, noPriceCoherenceChecks);
+                limitOrder.setId(id.longValue());
+                if (timestamp != null) {
+                    limitOrder.setTimestamp(timestamp);
+                }
+                order = limitOrder;
+                
+                break;
+
+            case "market":
+
+                PriceType invertedPriceType = priceType == PriceType.BID ? PriceType.ASK : PriceType.BID;
+                specificPrice = new SpecificPrice(genericPrice.getValue(), invertedPriceType, primaryCurrency, secondaryCurrency);
+                MarketOrder marketOrder = new MarketOrder(priceType, primaryCurrency, secondaryCurrency, quantity);
+                marketOrder.setId(id.longValue());
+                if (timestamp != null) {
+                    marketOrder.setTimestamp(timestamp);
+                }
+                marketOrder.setExecutionPrice(specificPrice);
+                order = marketOrder;
+
+                break;
+
+            case "stop":
+
+                StopOrder stopOrder = new StopOrder(specificPrice, quantity, noPriceCoherenceChecks);
+                stopOrder.setId(id.longValue());
+                if (timestamp != null) {
+                    stopOrder.setTimestamp(timestamp);
+                }
+                order = stopOrder;
+
+                break;
+
+            default:
+
+                // NumberFormatException is thrown to forward the error message.
+                throw new NumberFormatException("Invalid order type in the JSON orders database file.");
+
+        }
+
+        return order;
+
+    }
+
+    /**
+     *
+     * Parses a single entry of the orders journal tail, with its user.
+     *
+     * Private method, since it's used only in the class.
+     *
+     * @param jsonObject The JSON object of the entry.
+     *
+     * @return The order parsed, assigned to its user if the entry has an username of an existing user.
+     *
+     * @throws NumberFormatException If the order type or the timestamp are invalid.
+     * @throws NullPointerException If some order's field is missing.
+     * @throws IllegalArgumentException If some order's field is invalid.
+     *
+     */
+    private static Order parseJournalEntry(JsonObject jsonObject) throws NumberFormatException, NullPointerException, IllegalArgumentException {
+
+        Order order = DBOrdersInterface.parseOrder(jsonObject, true, Currency.getDefaultPrimaryCurrency(), Currency.getDefaultSecondaryCurrency());
+
+        // The entries written before the balances have no username.
+        JsonElement username = jsonObject.get("username");
+        if (username != null) {
+            User user = Users.getUserByUsername(username.getAsString());
+            if (user != null) {
+                order.setUser(user);
+            }
+        }
+
+        return order;
+
+    }
+
+    /**
+     *
+     * Streams the entries of an orders database file (or segment) content into the Orders class, one at a time.
+     *
+     * Private method, since it's used only in the class by loadOrders(), holding the class lock.
+     *
+     * @param reader The reader of the content, closed at the end.
+     * @param noPriceCoherenceChecks If true, the price coherence checks are not performed during the orders creation.
+     * @param noOrderPresenceCheck If true, the order already present in the database check is not performed.
+     * @param primaryCurrency The primary currency of the orders.
+     * @param secondaryCurrency The secondary currency of the orders.
+     *
+     * @return The number of entries loaded.
+     *
+     * @throws IOException If the content cannot be read.
+     * @throws MalformedJsonException If the content is not valid JSON.
+     * @throws JsonParseException If an entry is not valid JSON.
+     * @throws InvalidOrder If the order already exists in the database and the no order presence check flag is false.
+     *
+     */
+    private static long loadEntries(Reader reader, Boolean noPriceCoherenceChecks, Boolean noOrderPresenceCheck, Currency primaryCurrency, Currency secondaryCurrency) throws IOException, MalformedJsonException, JsonParseException, InvalidOrder, NullPointerException, IllegalArgumentException, IllegalStateException, NoSuchMethodException {
+
+        long entries = 0;
+        try (JsonReader jsonReader = DBOrdersInterface.openEntries(reader)) {
+            while (jsonReader.hasNext()) {
+
+                JsonObject jsonObject = JsonParser.parseReader(jsonReader).getAsJsonObject();
+
+                Order order = DBOrdersInterface.parseOrder(jsonObject, noPriceCoherenceChecks, primaryCurrency, secondaryCurrency);
+
+                // Orders loaded from the file are already executed.
+                order.setQuantity(new Quantity(0));
+
+                Orders.addOrder(order, noOrderPresenceCheck, WriteContext.LOAD);
+                entries++;
+
+            }
+        }
+        return entries;
+
+    }
+
     // MAIN SUPPORT (CALLED FROM THE Orders CLASS) METHOD
     /**
      *
-     * Load orders from the orders database file (previously readed and stored in the file content variable) to Orders class (in RAM).
+     * Load orders from the orders database file (previously readed) to Orders class (in RAM), streaming its entries.
      *
-     * Synchronized ON CLASS to avoid multiple threads to load orders at the same time.
+     * Locked ON CLASS (with the class lock) to avoid multiple threads to load orders at the same time.
      *
      * Before using this method, the file must be readed with readFile().
      *
@@ -416,12 +1103,13 @@ public abstract class DBOrdersInterface {
      * @throws IOException If an error occurs while writing the order on the orders database file.
      * @throws NullPointerException If the no price coherence checks or no order presence check flag are null.
      * @throws IllegalArgumentException If the file content is not a valid JSON object.
-     * @throws NoSuchMethodException If the loadOrders() method is not found or if the writeOrderOnFile() method in this class is not found in the DBOrdersInterface class.
+     * @throws NoSuchMethodException Never thrown anymore, the write context is given explicitly. Kept for the callers.
      *
      */
     public static void loadOrders(Boolean noPriceCoherenceChecks, Boolean noOrderPresenceCheck) throws IllegalStateException, JsonSyntaxException, InvalidOrder, IOException, NullPointerException, IllegalArgumentException, NoSuchMethodException {
 
-        synchronized (DBOrdersInterface.class) {
+        lock.lock();
+        try {
 
             // Null check.
             if (noPriceCoherenceChecks == null) {
@@ -432,7 +1120,7 @@ public abstract class DBOrdersInterface {
             }
 
             // Orders database file content not readed check.
-            if (DBOrdersInterface.fileContent == null) {
+            if (!DBOrdersInterface.fileRead) {
                 throw new IllegalStateException("Database orders file not read. Read it before with readFile().");
             }
 
@@ -441,12 +1129,43 @@ public abstract class DBOrdersInterface {
                 throw new IllegalStateException("Orders database already loaded.");
             }
 
+            // A crash after sealing the file in a segment and before emptying it.
+            try {
+                if (DBOrdersSegments.isLastSegmentContent(DBOrdersInterface.file.toPath())) {
+                    DBOrdersInterface.emptyActiveFile();
+                }
+            } catch (IOException ex) {
+                throw new IOException("Error checking the orders database file against the last orders journal segment.");
+            }
+
+            // The sealed segments not compacted are loaded in memory with the active one, in journal order.
+            LinkedList<DBOrdersSegments.Segment> segments = new LinkedList<>();
+            Long firstEntry = DBOrdersSegments.getActiveFirstEntry();
+            for (DBOrdersSegments.Segment segment : DBOrdersSegments.getSegmentsFrom(0L)) {
+                if (segment.isCompressed()) {
+                    continue;
+                }
+                if (segments.isEmpty()) {
+                    firstEntry = segment.getFirstEntry();
+                }
+                segments.add(segment);
+            }
+            DBOrdersInterface.memoryFirstEntry = firstEntry;
+
             // IMPORTANT: The file could be already initialized before from the program, but no orders has been added yet.
-            if (DBOrdersInterface.fileContent.compareTo(FILE_INIT) == 0) {
+            Boolean activeEmpty;
+            try (JsonReader jsonReader = DBOrdersInterface.openEntries(Files.newBufferedReader(DBOrdersInterface.file.toPath(), StandardCharsets.UTF_8))) {
+                activeEmpty = !jsonReader.hasNext();
+            } catch (IOException ex) {
+                throw new JsonSyntaxException("Error parsing the JSON orders database file.");
+            }
+            if (segments.isEmpty() && activeEmpty) {
+
+                DBOrdersInterface.journalEntries = DBOrdersSegments.getActiveFirstEntry();
 
                 DBOrdersInterface.ordersLoaded = true;
 
-                System.out.printf("Orders loaded from DB Orders file %s.\n", DBOrdersInterface.filePath);
+                Log.info(Category.PERSISTENCE, "Orders loaded from DB Orders file %s.", DBOrdersInterface.filePath);
 
                 return;
             }
@@ -469,112 +1188,27 @@ public abstract class DBOrdersInterface {
             }
             try {
 
-                // Will contains the final order objects.
-                LinkedList<Order> orders = new LinkedList<>();
-
                 // {"orderId": 3, "type": "bid" , "orderType": "market", "size": 614, "price": 56000000, "timestamp": 1725149122}
 
-                // Parse the JSON file content to a JSON object.
-                JsonObject jsonObject = JsonParser.parseString(DBOrdersInterface.fileContent).getAsJsonObject();
-                JsonArray jsonArray = jsonObject.getAsJsonArray("trades");
-
-                // Iterate over the JsonArray object.
-                for (JsonElement element : jsonArray) {
-                    // Convert each element to a JsonObject.
-                    jsonObject = element.getAsJsonObject();
-
-                    // Convert each JSON string to the corresponding object.
-                    Long timestamp = null;
-                    if (jsonObject.get("timestamp") != null) {
-                        String timestampStr = jsonObject.get("timestamp").getAsString();
-                        try {
-                            timestamp = Long.valueOf(timestampStr);
-                        } catch (NumberFormatException ex) {
-                            throw new NumberFormatException("Error parsing the timestamp from the JSON orders database file.");
-                        }
-                    }
-
-                    String type = jsonObject.get("type").getAsString();
-                    PriceType priceType = ClientActionsUtils.getPriceTypeFromString(type);
-
-                    String price = jsonObject.get("price").getAsString();
-                    GenericPrice genericPrice = ClientActionsUtils.getPriceFromString(price);
-                    SpecificPrice specificPrice = new SpecificPrice(genericPrice.getValue(), priceType, primaryCurrency, secondaryCurrency);
-
-                    String size = jsonObject.get("size").getAsString();
-                    Quantity quantity = ClientActionsUtils.getSizeFromString(size);
-
-                    String orderId = jsonObject.get("orderId").getAsString();
-                    Number id = ClientActionsUtils.getOrderIDFromString(orderId);
-
-                    Order order;
-                    String orderType = jsonObject.get("orderType").getAsString();
-                    switch (orderType) {
-
-                        case "limit":
-
-                            LimitOrder limitOrder = new LimitOrder(specificPrice, quantity, noPriceCoherenceChecks);
-                            limitOrder.setQuantity(new Quantity(0));
-                            limitOrder.setId(id.longValue());
-                            if (timestamp != null) {
-                                limitOrder.setTimestamp(timestamp);
-                            }
-                            order = limitOrder;
-                            
-                            break;
-
-                        case "market":
-
-                            PriceType invertedPriceType = priceType == PriceType.BID ? PriceType.ASK : PriceType.BID;
-                            specificPrice = new SpecificPrice(genericPrice.getValue(), invertedPriceType, primaryCurrency, secondaryCurrency);
-                            MarketOrder marketOrder = new MarketOrder(priceType, primaryCurrency, secondaryCurrency, quantity);
-                            marketOrder.setQuantity(new Quantity(0));
-                            marketOrder.setId(id.longValue());
-                            if (timestamp != null) {
-                                marketOrder.setTimestamp(timestamp);
-                            }
-                            marketOrder.setExecutionPrice(specificPrice);
-                            order = marketOrder;
-
-                            break;
-
-                        case "stop":
-
-                            StopOrder stopOrder = new StopOrder(specificPrice, quantity, noPriceCoherenceChecks);
-                            stopOrder.setQuantity(new Quantity(0));
-                            stopOrder.setId(id.longValue());
-                            if (timestamp != null) {
-                                stopOrder.setTimestamp(timestamp);
-                            }
-                            order = stopOrder;
-
-                            break;
-
-                        default:
-
-                            // NumberFormatException is thrown to forward the error message.
-                            throw new NumberFormatException("Invalid order type in the JSON orders database file.");
-
-                    }
-
-                    orders.add(order);
-
-                }
-
-                // Add orders to Orders (RAM).
-                for (Order order : orders) {
-                    Orders.addOrder(order, noOrderPresenceCheck, true);
+                // Streamed one entry at a time into the Orders class (RAM only, they are already on file), the segments and then the orders database file.
+                // Without keeping the parsed entries or the orders in a list.
+                for (DBOrdersSegments.Segment segment : segments) {
+                    DBOrdersInterface.loadEntries(new StringReader(DBOrdersSegments.readSegment(segment)), noPriceCoherenceChecks, noOrderPresenceCheck, primaryCurrency, secondaryCurrency);
                 }
+                long activeEntries = DBOrdersInterface.loadEntries(Files.newBufferedReader(DBOrdersInterface.file.toPath(), StandardCharsets.UTF_8), noPriceCoherenceChecks, noOrderPresenceCheck, primaryCurrency, secondaryCurrency);
 
                 // Exceptions throwed by the addOrder() method are backwarded to the caller.
 
+                // All the entries of the journal are now applied, the last content streamed is the orders database file.
+                DBOrdersInterface.journalEntries = DBOrdersSegments.getActiveFirstEntry() + activeEntries;
+
                 DBOrdersInterface.ordersLoaded = true;
 
-                System.out.printf("Orders loaded from DB Orders file %s.\n", DBOrdersInterface.filePath);
+                Log.info(Category.PERSISTENCE, "Orders loaded from DB Orders file %s.", DBOrdersInterface.filePath);
             } catch (NumberFormatException ex) {
                 // Forwarding exception's message.
                 throw new JsonSyntaxException(ex.getMessage());
-            } catch (NullPointerException | JsonSyntaxException | UnsupportedOperationException ex) {
+            } catch (NullPointerException | JsonParseException | UnsupportedOperationException | MalformedJsonException ex) {
                 throw new JsonSyntaxException("Error parsing the JSON orders database file.");
             } catch (InvalidOrder ex) {
                 throw new InvalidOrder(ex.getMessage());
@@ -584,10 +1218,10 @@ public abstract class DBOrdersInterface {
                 throw new IllegalArgumentException(ex.getMessage());
             } catch (IllegalStateException ex) {
                 throw new IllegalStateException(ex.getMessage());
-            } catch (NoSuchMethodException ex) {
-                throw new NoSuchMethodException("Error getting the order ID from the JSON orders database file.");
             }
 
+        } finally {
+            lock.unlock();
         }
 
     }
@@ -0,0 +1,816 @@
+package cross.orders.db;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.locks.ReentrantLock;
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import cross.logging.Log;
+import cross.logging.Log.Category;
+
+/**
+ *
+ * This class handles the sealed segments of the orders journal (the orders database file).
+ *
+ * The orders database file is the active segment, the only one written.
+ * When it grows over a configured size, its content is sealed in a new segment file of the segments directory and the active file restarts empty.
+ * So the active file never grows without limits, and a backup copies only the new segments.
+ *
+ * An index file (in the segments directory) keeps, for each segment, the journal entries, the time range (min and max timestamps) and the orders' ids range it contains.
+ * The time ranges are used to skip whole segments, e.g. in the price history of a month, the ids ranges to find an order by its id.
+ *
+ * A sealed segment is settled when no order book recovery can need to replay it, that is when an order book snapshot covers all its entries.
+ * The settled segments are compacted in GZIP archives by a background thread, and the archives older than the retention are deleted.
+ * The compacted segments are not loaded in memory at the start, they are read from disk only when needed.
+ *
+ * The segments files are read outside the class lock, only the list of the segments to read is copied holding it.
+ * Each segment counts its readers, a compaction or the retention deletes the files of a segment being read only when its last reader ends.
+ *
+ * Package-private, the segments are handled only through the DBOrdersInterface class.
+ * Abstract class because I assume that I don't want to handle different orders databases at the same time.
+ * So I will use only static methods and variables.
+ *
+ * @version 1.0
+ * @author Giulio Nisi
+ *
+ * @see DBOrdersInterface
+ * @see Orders
+ *
+ */
+abstract class DBOrdersSegments {
+
+    /**
+     *
+     * A sealed segment of the orders journal, as written in the index file.
+     *
+     */
+    static class Segment {
+
+        private Long sequence;
+        private String fileName;
+        // Index of the first journal entry of the segment and number of entries.
+        private Long firstEntry;
+        private Long entries;
+        // Time range of the segment entries, null if no entry has a timestamp.
+        private Long minTimestamp;
+        private Long maxTimestamp;
+        // Orders' ids range of the segment entries, null for the segments sealed before it was kept.
+        private Long minOrderId;
+        private Long maxOrderId;
+        private Boolean compressed;
+
+        // Threads reading the segment files outside the class lock, and the files to delete when the last one ends.
+        // Transient, not written in the index file.
+        private transient int readers = 0;
+        private transient LinkedList<Path> unreadDeletes = new LinkedList<>();
+
+        // GETTERS
+        public Boolean isCompressed() {
+
+            return this.compressed;
+
+        }
+        public Long getFirstEntry() {
+
+            return this.firstEntry;
+
+        }
+        public Long getEndEntry() {
+
+            return this.firstEntry + this.entries;
+
+        }
+        /**
+         *
+         * Checks if the segment time range overlaps a given time range.
+         *
+         * @param fromTimestamp The start of the time range, inclusive.
+         * @param toTimestamp The end of the time range, exclusive.
+         *
+         * @return True if the segment could contain entries in the time range, false otherwise.
+         *
+         */
+        public Boolean overlaps(long fromTimestamp, long toTimestamp) {
+
+            // Unknown time range, could contain anything.
+            if (this.minTimestamp == null || this.maxTimestamp == null) {
+                return true;
+            }
+            return this.minTimestamp < toTimestamp && this.maxTimestamp >= fromTimestamp;
+
+        }
+        /**
+         *
+         * Checks if the segment orders' ids range contains a given order's id.
+         *
+         * @param orderId The order's id.
+         *
+         * @return True if the segment could contain entries of the order, false otherwise.
+         *
+         */
+        public Boolean mayContainOrder(long orderId) {
+
+            // Unknown ids range, could contain anything.
+            if (this.minOrderId == null || this.maxOrderId == null) {
+                return true;
+            }
+            return this.minOrderId <= orderId && this.maxOrderId >= orderId;
+
+        }
+
+    }
+
+    /**
+     *
+     * The index file content.
+     *
+     */
+    private static class SegmentsIndex {
+
+        // Index of the first journal entry of the active segment (the orders database file).
+        private Long activeFirstEntry = 0L;
+        private Long nextSequence = 1L;
+        // Sealed segments, in journal order.
+        private LinkedList<Segment> segments = new LinkedList<>();
+
+    }
+
+    // Lock of the journal segments, a ReentrantLock (see ClientThread).
+    private static final ReentrantLock lock = new ReentrantLock();
+
+    private static final String INDEX_FILE_NAME = "segments-index.json";
+    private static final String SEGMENT_FILE_FORMAT = "segment-%06d.json";
+    private static final String ARCHIVE_EXTENSION = ".gz";
+
+    // Segments directory, next to the orders database file.
+    private static Path directory = null;
+    private static SegmentsIndex index = new SegmentsIndex();
+
+    // Size (in bytes) of the active segment over which it's sealed, 0 to never seal.
+    // Volatile, read at each append without the class lock.
+    private static volatile long maxActiveBytes = 0L;
+    // Archives older than this (in seconds) are deleted, 0 to keep them forever.
+    private static Long retentionSeconds = 0L;
+    // Journal entries covered by an order book snapshot, the segments before it are settled.
+    // Nothing is settled until the first snapshot, a recovery could need to replay any segment.
+    private static Long settledEntries = 0L;
+
+    // Shared, the Gson instances are thread safe.
+    private static final Gson gson = new Gson();
+
+    // Single background thread for the seals and the compactions, so they never run concurrently.
+    private static final ExecutorService compactor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, DBOrdersSegments.class.getSimpleName());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // FILE HANDLING
+    /**
+     *
+     * Opens the segments directory of an orders database file and reads its index, if present.
+     *
+     * The directory is created only when the first segment is sealed.
+     *
+     * Locked ON CLASS (with the class lock).
+     *
+     * @param ordersFilePath The path of the orders database file, ending with .json.
+     *
+     * @throws IOException If the index file cannot be read.
+     * @throws JsonSyntaxException If the index file is not valid.
+     *
+     */
+    static void open(String ordersFilePath) throws IOException, JsonSyntaxException {
+
+        lock.lock();
+        try {
+
+            String baseName = ordersFilePath.substring(0, ordersFilePath.length() - ".json".length());
+            DBOrdersSegments.directory = Path.of(baseName + "-segments");
+
+            Path indexPath = DBOrdersSegments.directory.resolve(INDEX_FILE_NAME);
+            if (!Files.exists(indexPath)) {
+                DBOrdersSegments.index = new SegmentsIndex();
+                return;
+            }
+
+            try {
+                SegmentsIndex read = gson.fromJson(Files.readString(indexPath, StandardCharsets.UTF_8), SegmentsIndex.class);
+                if (read == null || read.segments == null || read.activeFirstEntry == null || read.nextSequence == null) {
+                    throw new JsonSyntaxException("Orders journal segments index file is empty or incomplete.");
+                }
+                DBOrdersSegments.index = read;
+            } catch (IOException ex) {
+                throw new IOException("Error reading the orders journal segments index file.");
+            }
+
+        } finally {
+            lock.unlock();
+        }
+
+    }
+    /**
+     *
+     * Sets the segments policy.
+     *
+     * Locked ON CLASS (with the class lock).
+     *
+     * @param maxActiveBytes Size (in bytes) of the active segment over which it's sealed, 0 to never seal.
+     * @param retentionSeconds Archives older than this (in seconds) are deleted, 0 to keep them forever.
+     *
+     * @throws IllegalArgumentException If some value is negative.
+     *
+     */
+    static void setPolicy(Long maxActiveBytes, Long retentionSeconds) throws IllegalArgumentException {
+
+        lock.lock();
+        try {
+
+            if (maxActiveBytes < 0 || retentionSeconds < 0) {
+                throw new IllegalArgumentException("Orders journal segments policy values cannot be negative.");
+            }
+
+            DBOrdersSegments.maxActiveBytes = maxActiveBytes;
+            DBOrdersSegments.retentionSeconds = retentionSeconds;
+
+        } finally {
+            lock.unlock();
+        }
+
+    }
+    /**
+     *
+     * Sets the journal entries covered by an order book snapshot, and compacts the segments settled by it in background.
+     *
+     * Locked ON CLASS (with the class lock).
+     *
+     * @param settledEntries The journal entries covered by the snapshot.
+     *
+     */
+    static void setSettledEntries(Long settledEntries) {
+
+        lock.lock();
+        try {
+
+            DBOrdersSegments.settledEntries = settledEntries;
+            scheduleCompaction();
+
+        } finally {
+            lock.unlock();
+        }
+
+    }
+
+    // ACTIVE SEGMENT
+    /**
+     *
+     * Checks if the active segment must be sealed.
+     *
+     * Not locked, it's called at each append and the configured size is volatile.
+     *
+     * @param activeBytes The actual size of the active segment.
+     *
+     * @return True if the active segment is over the configured size.
+     *
+     */
+    static Boolean mustSeal(long activeBytes) {
+
+        long maxActiveBytes = DBOrdersSegments.maxActiveBytes;
+        return maxActiveBytes > 0 && activeBytes >= maxActiveBytes;
+
+    }
+    /**
+     *
+     * Runs a seal of the active segment on the background thread, so the append that filled it does not wait for it.
+     *
+     * The seal runs after the seals and the compactions already scheduled.
+     *
+     * @param seal The seal of the active segment.
+     *
+     */
+    static void scheduleSeal(Runnable seal) {
+
+        compactor.execute(seal);
+
+    }
+    /**
+     *
+     * Seals the active segment content in a new segment file and updates the index.
+     *
+     * The caller (DBOrdersInterface, holding its class lock) must empty the active file after this method.
+     * If a crash happens before, the active file has the same content of the last segment, see isLastSegmentContent().
+     *
+     * Locked ON CLASS (with the class lock).
+     *
+     * @param activeFile The active segment file, copied in the segment.
+     * @param entries The number of entries of the active segment.
+     * @param minTimestamp The min timestamp of the entries, could be null.
+     * @param maxTimestamp The max timestamp of the entries, could be null.
+     * @param minOrderId The min order's id of the entries, could be null.
+     * @param maxOrderId The max order's id of the entries, could be null.
+     *
+     * @throws IOException If the segment or the index cannot be written.
+     *
+     */
+    static void seal(Path activeFile, Long entries, Long minTimestamp, Long maxTimestamp, Long minOrderId, Long maxOrderId) throws IOException {
+
+        lock.lock();
+        try {
+
+            Segment segment = new Segment();
+            segment.sequence = index.nextSequence;
+            segment.fileName = String.format(SEGMENT_FILE_FORMAT, segment.sequence);
+            segment.firstEntry = index.activeFirstEntry;
+            segment.entries = entries;
+            segment.minTimestamp = minTimestamp;
+            segment.maxTimestamp = maxTimestamp;
+            segment.minOrderId = minOrderId;
+            segment.maxOrderId = maxOrderId;
+            segment.compressed = false;
+
+            try {
+                Files.createDirectories(directory);
+                Path path = directory.resolve(segment.fileName);
+                Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+                Files.copy(activeFile, temporary, StandardCopyOption.REPLACE_EXISTING);
+                Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException ex) {
+                throw new IOException("Error writing a new orders journal segment file.");
+            }
+
+            index.segments.add(segment);
+            index.nextSequence++;
+            index.activeFirstEntry = segment.getEndEntry();
+            try {
+                writeIndex();
+            } catch (IOException ex) {
+                // Rollback, the segment file is overwritten at the next seal.
+                index.segments.removeLast();
+                index.nextSequence--;
+                index.activeFirstEntry = segment.firstEntry;
+                throw ex;
+            }
+
+            scheduleCompaction();
+
+        } finally {
+            lock.unlock();
+        }
+
+    }
+    /**
+     *
+     * Checks if the active segment file has the same content of the last sealed segment.
+     *
+     * It happens only if a crash occurred after a seal and before emptying the active file.
+     *
+     * Locked ON CLASS (with the class lock) only to find the last segment, the files are compared without it.
+     *
+     * @param activeFile The active segment file.
+     *
+     * @return True if the active file must be emptied.
+     *
+     * @throws IOException If the last segment cannot be read.
+     *
+     */
+    static Boolean isLastSegmentContent(Path activeFile) throws IOException {
+
+        LinkedList<Segment> last = new LinkedList<>();
+        lock.lock();
+        try {
+
+            if (index.segments.isEmpty()) {
+                return false;
+            }
+            last.add(index.segments.getLast());
+
+        } finally {
+            lock.unlock();
+        }
+
+        Boolean compressed = addReader(last).getFirst();
+        try {
+            if (!compressed) {
+                return Files.mismatch(directory.resolve(last.getFirst().fileName), activeFile) == -1L;
+            }
+            return readSegmentFile(last.getFirst(), true).equals(Files.readString(activeFile, StandardCharsets.UTF_8));
+        } finally {
+            removeReader(last);
+        }
+
+    }
+
+    // GETTERS
+    static Long getActiveFirstEntry() {
+
+        lock.lock();
+        try {
+
+            return index.activeFirstEntry;
+
+        } finally {
+            lock.unlock();
+        }
+
+    }
+    /**
+     *
+     * Get the sealed segments with entries after a given journal entry.
+     *
+     * Locked ON CLASS (with the class lock).
+     *
+     * @param fromEntry The journal entry.
+     *
+     * @return The segments, in journal order.
+     *
+     */
+    static LinkedList<Segment> getSegmentsFrom(Long fromEntry) {
+
+        lock.lock();
+        try {
+
+            LinkedList<Segment> result = new LinkedList<>();
+            for (Segment segment : index.segments) {
+                if (segment.getEndEntry() > fromEntry) {
+                    result.add(segment);
+                }
+            }
+            return result;
+
+        } finally {
+            lock.unlock();
+        }
+
+    }
+    /**
+     *
+     * Get the contents of the sealed segments before a given journal entry and overlapping a time range.
+     *
+     * The segments outside the time range are skipped without reading them.
+     * Locked ON CLASS (with the class lock) only to choose the segments, the files are read without it, as readers of their segments.
+     *
+     * @param toEntry The journal entry, only the segments ending before it are read.
+     * @param fromTimestamp The start of the time range, inclusive.
+     * @param toTimestamp The end of the time range, exclusive.
+     *
+     * @return The segments contents, in journal order.
+     *
+     * @throws IOException If a segment cannot be read.
+     *
+     */
+    static LinkedList<String> readSegmentsBefore(Long toEntry, long fromTimestamp, long toTimestamp) throws IOException {
+
+        LinkedList<Segment> toRead = new LinkedList<>();
+        lock.lock();
+        try {
+
+            for (Segment segment : index.segments) {
+                if (segment.getEndEntry() > toEntry) {
+                    break;
+                }
+                if (!segment.overlaps(fromTimestamp, toTimestamp)) {
+                    continue;
+                }
+                toRead.add(segment);
+            }
+
+        } finally {
+            lock.unlock();
+        }
+        return readSegments(toRead);
+
+    }
+    /**
+     *
+     * Get the contents of the sealed segments before a given journal entry that could contain an order.
+     *
+     * The segments whose orders' ids range doesn't contain the order's id are skipped without reading them.
+     * Locked ON CLASS (with the class lock) only to choose the segments, the files are read without it, as readers of their segments.
+     *
+     * @param toEntry The journal entry, only the segments ending before it are read.
+     * @param orderId The order's id.
+     *
+     * @return The segments contents, in journal order.
+     *
+     * @throws IOException If a segment cannot be read.
+     *
+     */
+    static LinkedList<String> readSegmentsWithOrder(Long toEntry, long orderId) throws IOException {
+
+        LinkedList<Segment> toRead = new LinkedList<>();
+        lock.lock();
+        try {
+
+            for (Segment segment : index.segments) {
+                if (segment.getEndEntry() > toEntry) {
+                    break;
+                }
+                if (!segment.mayContainOrder(orderId)) {
+                    continue;
+                }
+                toRead.add(segment);
+            }
+
+        } finally {
+            lock.unlock();
+        }
+        return readSegments(toRead);
+
+    }
+    /**
+     *
+     * Reads the content of a sealed segment, decompressing it if archived.
+     *
+     * Locked ON CLASS (with the class lock) only to register as a reader of the segment, the file is read without it.
+     *
+     * @param segment The segment to read.
+     *
+     * @return The segment content.
+     *
+     * @throws IOException If the segment cannot be read.
+     *
+     */
+    static String readSegment(Segment segment) throws IOException {
+
+        LinkedList<Segment> toRead = new LinkedList<>();
+        toRead.add(segment);
+        return readSegments(toRead).getFirst();
+
+    }
+
+    // SEGMENTS READERS
+    /**
+     *
+     * Reads the contents of some sealed segments, in the given order, without holding the class lock.
+     *
+     * The thread is registered as a reader of all the segments before reading, so their files are not deleted meanwhile.
+     * The path read (the segment or its archive) is chosen at the registration, a compaction leaves the segment file until the reader ends.
+     *
+     * @param segments The segments to read.
+     *
+     * @return The segments contents.
+     *
+     * @throws IOException If a segment cannot be read.
+     *
+     */
+    private static LinkedList<String> readSegments(LinkedList<Segment> segments) throws IOException {
+
+        LinkedList<Boolean> compressed = addReader(segments);
+        try {
+
+            LinkedList<String> contents = new LinkedList<>();
+            Iterator<Boolean> compressedIterator = compressed.iterator();
+            for (Segment segment : segments) {
+                contents.add(readSegmentFile(segment, compressedIterator.next()));
+            }
+            return contents;
+
+        } finally {
+            removeReader(segments);
+        }
+
+    }
+    /**
+     *
+     * Registers the calling thread as a reader of some segments.
+     *
+     * Locked ON CLASS (with the class lock).
+     *
+     * @param segments The segments to read.
+     *
+     * @return For each segment, true if it's read from its archive, false from its segment file.
+     *
+     */
+    private static LinkedList<Boolean> addReader(LinkedList<Segment> segments) {
+
+        LinkedList<Boolean> compressed = new LinkedList<>();
+        lock.lock();
+        try {
+            for (Segment segment : segments) {
+                segment.readers++;
+                compressed.add(segment.compressed);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return compressed;
+
+    }
+    /**
+     *
+     * Unregisters the calling thread as a reader of some segments, deleting the files left to their last reader.
+     *
+     * Locked ON CLASS (with the class lock), the files are deleted after releasing it.
+     *
+     * @param segments The segments read.
+     *
+     */
+    private static void removeReader(LinkedList<Segment> segments) {
+
+        LinkedList<Path> toDelete = new LinkedList<>();
+        lock.lock();
+        try {
+            for (Segment segment : segments) {
+                segment.readers--;
+                if (segment.readers == 0) {
+                    toDelete.addAll(segment.unreadDeletes);
+                    segment.unreadDeletes.clear();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        deleteFiles(toDelete);
+
+    }
+    private static String readSegmentFile(Segment segment, Boolean compressed) throws IOException {
+
+        if (!compressed) {
+            try {
+                return Files.readString(directory.resolve(segment.fileName), StandardCharsets.UTF_8);
+            } catch (IOException ex) {
+                throw new IOException(String.format("Error reading the orders journal segment %s.", segment.fileName));
+            }
+        }
+
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(directory.resolve(segment.fileName + ARCHIVE_EXTENSION)))) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException ex) {
+            throw new IOException(String.format("Error reading the orders journal archive %s.", segment.fileName + ARCHIVE_EXTENSION));
+        }
+
+    }
+    /**
+     *
+     * Deletes a file of a segment, or leaves it to the last reader of the segment if it's being read.
+     *
+     * The caller holds the class lock.
+     *
+     * @param segment The segment.
+     * @param path The file of the segment to delete.
+     *
+     * @return True if the file must be deleted now, by the caller after releasing the class lock.
+     *
+     */
+    private static Boolean deleteWhenUnread(Segment segment, Path path) {
+
+        if (segment.readers > 0) {
+            segment.unreadDeletes.add(path);
+            return false;
+        }
+        return true;
+
+    }
+    private static void deleteFiles(LinkedList<Path> paths) {
+
+        for (Path path : paths) {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException ex) {
+                Log.warn(Category.PERSISTENCE, "Error deleting the orders journal file %s: %s Trying to continue...", path.getFileName(), ex.getMessage());
+            }
+        }
+
+    }
+
+    // COMPACTION AND RETENTION
+    private static void scheduleCompaction() {
+
+        compactor.execute(() -> {
+            try {
+                compact();
+            } catch (IOException ex) {
+                // This is a background thread, so I don't backward the exception, instead I print it and I try to continue.
+                Log.warn(Category.PERSISTENCE, "Error compacting the orders journal segments: %s Trying to continue...", ex.getMessage());
+            }
+        });
+
+    }
+    /**
+     *
+     * Compacts the settled segments in GZIP archives and deletes the archives older than the retention.
+     *
+     * The compression is done without holding the class lock, the sealed segments are immutable.
+     * Only the index update and the files deletion are done with the lock.
+     *
+     * Called only by the compactor thread.
+     *
+     * @throws IOException If a segment cannot be compacted or the index cannot be written.
+     *
+     */
+    private static void compact() throws IOException {
+
+        while (true) {
+
+            Segment toCompact = null;
+            lock.lock();
+            try {
+                for (Segment segment : index.segments) {
+                    if (!segment.compressed && segment.getEndEntry() <= settledEntries) {
+                        toCompact = segment;
+                        break;
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (toCompact == null) {
+                break;
+            }
+
+            Path source = directory.resolve(toCompact.fileName);
+            Path archive = directory.resolve(toCompact.fileName + ARCHIVE_EXTENSION);
+            try {
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                try (OutputStream out = new GZIPOutputStream(compressed)) {
+                    out.write(Files.readAllBytes(source));
+                }
+                writeAtomically(archive, compressed.toByteArray());
+            } catch (IOException ex) {
+                throw new IOException(String.format("Error compacting the orders journal segment %s.", toCompact.fileName));
+            }
+
+            LinkedList<Path> toDelete = new LinkedList<>();
+            lock.lock();
+            try {
+                toCompact.compressed = true;
+                writeIndex();
+                if (deleteWhenUnread(toCompact, source)) {
+                    toDelete.add(source);
+                }
+            } finally {
+                lock.unlock();
+            }
+            deleteFiles(toDelete);
+
+        }
+
+        LinkedList<Path> toDelete = new LinkedList<>();
+        lock.lock();
+        try {
+
+            if (retentionSeconds == 0) {
+                return;
+            }
+
+            // The orders timestamps are in seconds.
+            long oldest = System.currentTimeMillis() / 1000 - retentionSeconds;
+            Boolean removed = false;
+            Iterator<Segment> iterator = index.segments.iterator();
+            while (iterator.hasNext()) {
+                Segment segment = iterator.next();
+                // Only a prefix of archives, to keep the journal entries contiguous.
+                if (!segment.compressed || segment.maxTimestamp == null || segment.maxTimestamp >= oldest) {
+                    break;
+                }
+                iterator.remove();
+                removed = true;
+                Path archive = directory.resolve(segment.fileName + ARCHIVE_EXTENSION);
+                if (deleteWhenUnread(segment, archive)) {
+                    toDelete.add(archive);
+                }
+            }
+            if (!removed) {
+                return;
+            }
+            // Index first, a crash leaves only some orphan archives.
+            writeIndex();
+
+        } finally {
+            lock.unlock();
+        }
+        deleteFiles(toDelete);
+
+    }
+
+    // SUPPORT METHODS
+    private static void writeIndex() throws IOException {
+
+        try {
+            writeAtomically(directory.resolve(INDEX_FILE_NAME), gson.toJson(index).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException ex) {
+            throw new IOException("Error writing the orders journal segments index file.");
+        }
+
+    }
+    private static void writeAtomically(Path path, byte[] content) throws IOException {
+
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(temporary, content);
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+    }
+
+}
@@ -0,0 +1,173 @@
+package cross.orders.db;
+
+import cross.orders.Order;
+import cross.orders.OrderType;
+
+/**
+ *
+ * Heap implementation of the orders columns, the default one.
+ *
+ * The columns are split in fixed size chunks, that are never reallocated, only the (small) chunks directory is copied when full.
+ * The Order object of each row is kept too, so the orders found by id are the ones added, with their user.
+ *
+ * @version 1.0
+ * @author Giulio Nisi
+ *
+ * @see OrdersColumns
+ * @see Orders
+ *
+ */
+class HeapOrdersColumns extends OrdersColumns {
+
+    // Rows in each chunk, a power of two to split the row index with shifts.
+    private static final int CHUNK_BITS = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    /**
+     *
+     * A fixed size chunk of all the columns.
+     *
+     */
+    private static final class Chunk {
+
+        private final long[] ids = new long[CHUNK_SIZE];
+        private final long[] timestamps = new long[CHUNK_SIZE];
+        private final int[] prices = new int[CHUNK_SIZE];
+        private final int[] sizes = new int[CHUNK_SIZE];
+        private final byte[] sides = new byte[CHUNK_SIZE];
+        private final byte[] types = new byte[CHUNK_SIZE];
+        // Set when the order of the row is removed from the database.
+        private final boolean[] removed = new boolean[CHUNK_SIZE];
+        // The orders added, dropped when the row is removed.
+        private final Order[] orders = new Order[CHUNK_SIZE];
+
+    }
+
+    // Chunks directory, replaced (never modified) when a new chunk is needed.
+    private volatile Chunk[] chunks = new Chunk[0];
+
+    // Number of rows published, the readers must read it BEFORE the columns.
+    private volatile int rows = 0;
+
+    @Override
+    public int append(Order order) {
+
+        int row = this.rows;
+        int chunkIndex = row >>> CHUNK_BITS;
+        Chunk[] directory = this.chunks;
+        if (chunkIndex == directory.length) {
+            Chunk[] grown = new Chunk[directory.length + 1];
+            System.arraycopy(directory, 0, grown, 0, directory.length);
+            grown[directory.length] = new Chunk();
+            // Published before the rows counter, so the readers always find the chunk.
+            this.chunks = grown;
+            directory = grown;
+        }
+        Chunk chunk = directory[chunkIndex];
+        int offset = row & CHUNK_MASK;
+
+        // Synchronized on the order to avoid modifications of it during the copy.
+        synchronized (order) {
+
+            chunk.ids[offset] = order.getId().longValue();
+            chunk.timestamps[offset] = columnTimestamp(order);
+            chunk.prices[offset] = columnPrice(order);
+            chunk.sizes[offset] = order.getQuantity().getValue();
+            chunk.sides[offset] = columnSide(order);
+            chunk.types[offset] = (byte) order.getOrderType().ordinal();
+            chunk.removed[offset] = false;
+
+        }
+        chunk.orders[offset] = order;
+
+        // Publishing the row.
+        this.rows = row + 1;
+
+        return row;
+
+    }
+    @Override
+    public void removeLast() {
+
+        if (this.rows > 0) {
+            this.rows = this.rows - 1;
+            this.chunks[this.rows >>> CHUNK_BITS].orders[this.rows & CHUNK_MASK] = null;
+        }
+
+    }
+    @Override
+    public void markRemoved(int row) {
+
+        Chunk chunk = this.chunks[row >>> CHUNK_BITS];
+        chunk.removed[row & CHUNK_MASK] = true;
+        chunk.orders[row & CHUNK_MASK] = null;
+
+    }
+    @Override
+    public void update(int row, int quantity, long timestamp) {
+
+        Chunk chunk = this.chunks[row >>> CHUNK_BITS];
+        int offset = row & CHUNK_MASK;
+        chunk.sizes[offset] = quantity;
+        chunk.timestamps[offset] = timestamp;
+
+    }
+
+    // LOCK-FREE READERS
+    @Override
+    public int size() {
+
+        return this.rows;
+
+    }
+    @Override
+    public long id(int row) {
+
+        return this.chunks[row >>> CHUNK_BITS].ids[row & CHUNK_MASK];
+
+    }
+    @Override
+    public long timestamp(int row) {
+
+        return this.chunks[row >>> CHUNK_BITS].timestamps[row & CHUNK_MASK];
+
+    }
+    @Override
+    public int price(int row) {
+
+        return this.chunks[row >>> CHUNK_BITS].prices[row & CHUNK_MASK];
+
+    }
+    @Override
+    public int quantity(int row) {
+
+        return this.chunks[row >>> CHUNK_BITS].sizes[row & CHUNK_MASK];
+
+    }
+    @Override
+    public byte side(int row) {
+
+        return this.chunks[row >>> CHUNK_BITS].sides[row & CHUNK_MASK];
+
+    }
+    @Override
+    public OrderType type(int row) {
+
+        return ORDER_TYPES[this.chunks[row >>> CHUNK_BITS].types[row & CHUNK_MASK]];
+
+    }
+    @Override
+    public boolean isRemoved(int row) {
+
+        return this.chunks[row >>> CHUNK_BITS].removed[row & CHUNK_MASK];
+
+    }
+    @Override
+    public Order order(int row) {
+
+        return this.chunks[row >>> CHUNK_BITS].orders[row & CHUNK_MASK];
+
+    }
+
+}
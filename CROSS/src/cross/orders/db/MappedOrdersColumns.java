@@ -0,0 +1,221 @@
+package cross.orders.db;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import cross.orders.Order;
+import cross.orders.OrderType;
+
+/**
+ *
+ * Memory-mapped implementation of the orders columns.
+ *
+ * Each row is a fixed width record in a file, mapped in memory by regions.
+ * The OS pages in the records on demand and can evict them under memory pressure, so a large trade history doesn't live on the heap.
+ *
+ * Record layout (little endian, RECORD_BYTES bytes):
+ * - 0: id (long)
+ * - 8: timestamp (long)
+ * - 16: price (int)
+ * - 20: size (int)
+ * - 24: side (byte)
+ * - 25: type (byte, OrderType ordinal)
+ * - 26: removed (byte)
+ * - 27: padding up to RECORD_BYTES
+ *
+ * The file is not the source of truth, the orders database file (JSON) is.
+ * So it's truncated when opened and refilled by the orders loading at each start.
+ *
+ * The regions are never remapped, only the (small) regions directory is copied when a new region is needed.
+ * The readers use only absolute gets, that don't change the buffers' state, so they never lock.
+ *
+ * @version 1.0
+ * @author Giulio Nisi
+ *
+ * @see OrdersColumns
+ * @see Orders
+ *
+ */
+class MappedOrdersColumns extends OrdersColumns {
+
+    // Fixed width of a record, in bytes.
+    private static final int RECORD_BYTES = 32;
+
+    // Fields offsets in a record.
+    private static final int ID_OFFSET = 0;
+    private static final int TIMESTAMP_OFFSET = 8;
+    private static final int PRICE_OFFSET = 16;
+    private static final int SIZE_OFFSET = 20;
+    private static final int SIDE_OFFSET = 24;
+    private static final int TYPE_OFFSET = 25;
+    private static final int REMOVED_OFFSET = 26;
+
+    // Records in each mapped region (32 MB), a power of two to split the row index with shifts.
+    private static final int REGION_BITS = 20;
+    private static final int REGION_RECORDS = 1 << REGION_BITS;
+    private static final int REGION_MASK = REGION_RECORDS - 1;
+    private static final long REGION_BYTES = (long) REGION_RECORDS * RECORD_BYTES;
+
+    private final String filePath;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+
+    // Regions directory, replaced (never modified) when a new region is needed.
+    private volatile MappedByteBuffer[] regions = new MappedByteBuffer[0];
+
+    // Number of rows published, the readers must read it BEFORE the records.
+    private volatile int rows = 0;
+
+    /**
+     *
+     * Constructor of the class.
+     *
+     * Opens (or creates) and truncates the records file.
+     *
+     * @param filePath The path of the records file.
+     *
+     * @throws NullPointerException If the file path is null.
+     * @throws IOException If the file cannot be opened or truncated.
+     *
+     */
+    public MappedOrdersColumns(String filePath) throws NullPointerException, IOException {
+
+        // Null check.
+        if (filePath == null) {
+            throw new NullPointerException("Mapped orders file path cannot be null.");
+        }
+
+        try {
+            this.file = new RandomAccessFile(filePath, "rw");
+            this.channel = this.file.getChannel();
+            this.channel.truncate(0);
+        } catch (IOException ex) {
+            throw new IOException(String.format("Error opening the mapped orders file %s.", filePath));
+        }
+
+        this.filePath = filePath;
+
+    }
+
+    @Override
+    public int append(Order order) throws IllegalStateException {
+
+        int row = this.rows;
+        if (row == Integer.MAX_VALUE) {
+            throw new IllegalStateException("Mapped orders file is full.");
+        }
+        int regionIndex = row >>> REGION_BITS;
+        MappedByteBuffer[] directory = this.regions;
+        if (regionIndex == directory.length) {
+            MappedByteBuffer[] grown = new MappedByteBuffer[directory.length + 1];
+            System.arraycopy(directory, 0, grown, 0, directory.length);
+            try {
+                // Mapping beyond the end of the file grows it.
+                grown[directory.length] = this.channel.map(FileChannel.MapMode.READ_WRITE, (long) regionIndex * REGION_BYTES, REGION_BYTES);
+            } catch (IOException ex) {
+                throw new IllegalStateException(String.format("Error mapping a new region of the mapped orders file %s.", this.filePath));
+            }
+            grown[directory.length].order(ByteOrder.LITTLE_ENDIAN);
+            // Published before the rows counter, so the readers always find the region.
+            this.regions = grown;
+            directory = grown;
+        }
+        MappedByteBuffer region = directory[regionIndex];
+        int base = (row & REGION_MASK) * RECORD_BYTES;
+
+        // Synchronized on the order to avoid modifications of it during the copy.
+        synchronized (order) {
+
+            region.putLong(base + ID_OFFSET, order.getId().longValue());
+            region.putLong(base + TIMESTAMP_OFFSET, columnTimestamp(order));
+            region.putInt(base + PRICE_OFFSET, columnPrice(order));
+            region.putInt(base + SIZE_OFFSET, order.getQuantity().getValue());
+            region.put(base + SIDE_OFFSET, columnSide(order));
+            region.put(base + TYPE_OFFSET, (byte) order.getOrderType().ordinal());
+            region.put(base + REMOVED_OFFSET, (byte) 0);
+
+        }
+
+        // Publishing the row.
+        this.rows = row + 1;
+
+        return row;
+
+    }
+    @Override
+    public void removeLast() {
+
+        if (this.rows > 0) {
+            this.rows = this.rows - 1;
+        }
+
+    }
+    @Override
+    public void markRemoved(int row) {
+
+        this.regions[row >>> REGION_BITS].put((row & REGION_MASK) * RECORD_BYTES + REMOVED_OFFSET, (byte) 1);
+
+    }
+    @Override
+    public void update(int row, int quantity, long timestamp) {
+
+        MappedByteBuffer region = this.regions[row >>> REGION_BITS];
+        int base = (row & REGION_MASK) * RECORD_BYTES;
+        region.putInt(base + SIZE_OFFSET, quantity);
+        region.putLong(base + TIMESTAMP_OFFSET, timestamp);
+
+    }
+
+    // LOCK-FREE READERS
+    @Override
+    public int size() {
+
+        return this.rows;
+
+    }
+    @Override
+    public long id(int row) {
+
+        return this.regions[row >>> REGION_BITS].getLong((row & REGION_MASK) * RECORD_BYTES + ID_OFFSET);
+
+    }
+    @Override
+    public long timestamp(int row) {
+
+        return this.regions[row >>> REGION_BITS].getLong((row & REGION_MASK) * RECORD_BYTES + TIMESTAMP_OFFSET);
+
+    }
+    @Override
+    public int price(int row) {
+
+        return this.regions[row >>> REGION_BITS].getInt((row & REGION_MASK) * RECORD_BYTES + PRICE_OFFSET);
+
+    }
+    @Override
+    public int quantity(int row) {
+
+        return this.regions[row >>> REGION_BITS].getInt((row & REGION_MASK) * RECORD_BYTES + SIZE_OFFSET);
+
+    }
+    @Override
+    public byte side(int row) {
+
+        return this.regions[row >>> REGION_BITS].get((row & REGION_MASK) * RECORD_BYTES + SIDE_OFFSET);
+
+    }
+    @Override
+    public OrderType type(int row) {
+
+        return ORDER_TYPES[this.regions[row >>> REGION_BITS].get((row & REGION_MASK) * RECORD_BYTES + TYPE_OFFSET)];
+
+    }
+    @Override
+    public boolean isRemoved(int row) {
+
+        return this.regions[row >>> REGION_BITS].get((row & REGION_MASK) * RECORD_BYTES + REMOVED_OFFSET) != 0;
+
+    }
+
+}
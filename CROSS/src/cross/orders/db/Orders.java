@@ -4,26 +4,25 @@ import java.io.IOException;
 import java.time.Instant;
 import java.time.LocalDate;
 import java.time.ZoneId;
-import java.util.Comparator;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
+import java.time.ZonedDateTime;
 import java.util.Map;
-import java.util.TreeSet;
-import java.util.stream.Collectors;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
 import com.google.gson.JsonSyntaxException;
 import cross.api.responses.pricehistory.DailyPriceStats;
 import cross.api.responses.pricehistory.PriceHistoryResponse;
 import cross.exceptions.InvalidOrder;
-import cross.orderbook.OrderBook;
 import cross.orders.LimitOrder;
 import cross.orders.MarketOrder;
 import cross.orders.Order;
 import cross.orders.OrderType;
+import cross.orders.StopOrder;
 import cross.types.Currency;
 import cross.types.Quantity;
+import cross.types.price.GenericPrice;
 import cross.types.price.PriceType;
 import cross.types.price.SpecificPrice;
+import cross.utils.WriteContext;
 
 /**
  *
@@ -37,7 +36,13 @@ import cross.types.price.SpecificPrice;
  *
  * ALL OPERATIONS MUST BE DONE THROUGH THIS CLASS, THE DBOrdersInterface CLASS IS NOT TO BE USED DIRECTLY.
  *
- * It uses a TreeSet to store the orders in memory to add and search in complexity O(log n).
+ * Each order added is appended as a row in an append-only columnar store, used by the analytics (e.g. the price history) without locks.
+ * A primitive id index (id to first row) searches the orders by id in O(1) without locks, with no boxed key or map entry for each order.
+ * The writes are still serialized ON CLASS, to keep the memory and the file in the same order.
+ *
+ * Optionally (see useMappedFile()), the columns are kept in a memory-mapped file instead of the heap, for large trade histories.
+ * In this case no Order object is kept and the orders found by id are rebuilt from their row.
+ * The resting orders are anyway kept on the heap by the order book.
  *
  * @version 1.0
  * @author Giulio Nisi
@@ -45,28 +50,33 @@ import cross.types.price.SpecificPrice;
  * @see Order
  *
  * @see DBOrdersInterface
+ * @see OrdersColumns
+ * @see MappedOrdersColumns
+ * @see OrdersIdIndex
  *
  * @see InvalidOrder
  *
  */
 public abstract class Orders {
     
-    // Add and search in complexity O(log n).
-    private static TreeSet<Order> orders = new TreeSet<>();
-    // If the orders are loaded from the demo file, the orders have duplicates, so I need to store them in a different collection.
-    private static LinkedList<Order> ordersDuplicates = new LinkedList<>();
+    // Lock of the orders database, a ReentrantLock (see ClientThread).
+    private static final ReentrantLock lock = new ReentrantLock();
 
-    // These methods names are used to check who calls some functions of this class, so to perform some different operations in case the call comes from one of them.
-    private static final String LOADORDERS_METHOD_NAME = "loadOrders";
+    // Every order added, duplicates included, one row each, reads without locks.
+    private static volatile OrdersColumns columns = new HeapOrdersColumns();
+    // Search by id in complexity O(1), reads without locks, for both the columns.
+    // If the same id is added more times (e.g. partial fills of the same limit order), the first row added is kept.
+    private static final OrdersIdIndex idIndex = new OrdersIdIndex();
 
     // ORDERS HANDLING
     /**
      *
      * Adds an order to the orders database.
-     * The order is added BOTH to the TreeSet in memory and to the orders database file if not present.
+     * The order is added BOTH to the memory (id index and columns) and to the orders database file if not present.
      *
-     * Synchronized ON CLASS method to prevent multiple threads to add orders at the same time.
-     * Synchonized ON ORDER object to prevent multiple threads to modify the order's properties during the execution of this method.
+     * Locked ON CLASS (with the class lock) to prevent multiple threads to add orders at the same time.
+     * The order's properties are copied in the columns and in the file holding the monitor of the order, to prevent multiple threads to modify them meanwhile.
+     * No file I/O is done holding the monitor, see DBOrdersInterface.writeOrderOnFile().
      *
      * @param order The order to add to the orders database.
      * @param noOrderPresenceCheck If true, the order already present in the database check is not performed. Used to load orders from the demo file.
@@ -74,7 +84,7 @@ public abstract class Orders {
      *
      * @throws InvalidOrder If the order already exists in the database.
      * @throws NullPointerException If the order or the no order presence check are null.
-     * @throws NoSuchMethodException If the loadOrders() method is not found or if the writeOrderOnFile() method in this class is not found in the DBOrdersInterface class.
+     * @throws NoSuchMethodException Never thrown anymore, the write context is given explicitly. Kept for the callers.
      * @throws IOException If an error occurs while writing the order on the orders database file.
      * @throws IllegalStateException If the orders database file content is not loaded.
      * @throws JsonSyntaxException If the orders database file content is not valid JSON.
@@ -82,7 +92,38 @@ public abstract class Orders {
      */
     public static void addOrder(Order order, Boolean noOrderPresenceCheck, Boolean writeOnFile) throws InvalidOrder, NullPointerException, NoSuchMethodException, IOException, IllegalStateException, JsonSyntaxException {
 
-        synchronized (Orders.class) {
+        // Null check.
+        if (writeOnFile == null) {
+            throw new NullPointerException("Write on file flag in adding an order to the orders database cannot be null.");
+        }
+
+        Orders.addOrder(order, noOrderPresenceCheck, writeOnFile ? WriteContext.LIVE : WriteContext.LOAD);
+
+    }
+    /**
+     *
+     * Adds an order to the orders database, in a given write context.
+     *
+     * With the LOAD context the order is added only in memory, used by DBOrdersInterface.loadOrders() to not write AGAIN on file the orders just read from it.
+     * With the LIVE context the order is also written on the orders database file.
+     *
+     * Package-private, the public callers use addOrder() with the write on file flag.
+     *
+     * @param order The order to add to the orders database.
+     * @param noOrderPresenceCheck If true, the order already present in the database check is not performed.
+     * @param context The write context.
+     *
+     * @throws InvalidOrder If the order already exists in the database.
+     * @throws NullPointerException If the order, the no order presence check or the context are null.
+     * @throws IOException If an error occurs while writing the order on the orders database file.
+     * @throws IllegalStateException If the orders database file content is not loaded.
+     * @throws JsonSyntaxException If the orders database file content is not valid JSON.
+     *
+     */
+    static void addOrder(Order order, Boolean noOrderPresenceCheck, WriteContext context) throws InvalidOrder, NullPointerException, IOException, IllegalStateException, JsonSyntaxException {
+
+        lock.lock();
+        try {
 
             // Null checks.
             if (order == null) {
@@ -91,92 +132,112 @@ public abstract class Orders {
             if (noOrderPresenceCheck == null) {
                 throw new NullPointerException("No order presence check flag in adding an order to the orders database cannot be null.");
             }
-            if (writeOnFile == null) {
-                throw new NullPointerException("Write on file flag in adding an order to the orders database cannot be null.");
+            if (context == null) {
+                throw new NullPointerException("Write context in adding an order to the orders database cannot be null.");
             }
 
-            synchronized (order) {
+            // The order's properties are copied holding its monitor by the columns and by the journal write, not here.
+            // So no I/O (the journal write, the mapping of a new region of the mapped columns) is done holding it.
+            Long orderId = order.getId().longValue();
 
-                // Already exists check.
-                if (noOrderPresenceCheck == false && orders.contains(order)) {
-                    throw new InvalidOrder("Order to add to the orders database already exists.");
-                }
+            // Already exists check.
+            if (noOrderPresenceCheck == false && containsOrderId(orderId)) {
+                throw new InvalidOrder("Order to add to the orders database already exists.");
+            }
 
-                // Adds order to the TreeSet.
-                Boolean added = orders.add(order);
-                if (added == false) {
-                    ordersDuplicates.add(order);
-                }
+            // Adds order to the columns and to the id index.
+            int row = columns.append(order);
+            Boolean added = idIndex.putIfAbsent(orderId, row);
 
-                // Prevent double file writes when the method is called from DBOrdersInterface.loadOrders().
-                // That's because:
-                // DBOrdersInterface.loadOrders() read from file order X -> call addOrder() to add it in RAM -> writeOrderOnFile() write order X on file AGAIN.
-                String method = null;
-                try {   
-                    method = DBOrdersInterface.class.getMethod(LOADORDERS_METHOD_NAME, Boolean.class, Boolean.class).getName();
-                }catch (NoSuchMethodException ex) {
-                    throw new NoSuchMethodException(String.format("Method %s in the Orders class not found.", method));
-                }
+            // Prevent double file writes when the method is called from DBOrdersInterface.loadOrders() (LOAD context).
+            // That's because:
+            // DBOrdersInterface.loadOrders() read from file order X -> call addOrder() to add it in RAM -> writeOrderOnFile() write order X on file AGAIN.
+            if (context == WriteContext.LOAD) {
+                return;
+            }
 
-                StackTraceElement[] stackTrace = Thread.currentThread().getStackTrace();
-                String className = DBOrdersInterface.class.getName();
-                for (StackTraceElement stackTraceElement : stackTrace) {
-                    if (stackTraceElement.getClassName().equals(className)) {
-                        // Exit before writing on file.
-                        return;
-                    }
-                }
+            // Write order on file.
+            try {
+                DBOrdersInterface.writeOrderOnFile(order);
+            } catch (IllegalStateException ex) {
 
-                // Write order on file.
-                try {
-                    if (writeOnFile)
-                        DBOrdersInterface.writeOrderOnFile(order);
-                } catch (IllegalStateException ex) {
+                // Remove order from the id index and the columns.
+                rollbackAdd(orderId, added);
 
-                    // Remove order from TreeSet.
-                    orders.remove(order);
-                    if (added == false) {
-                        ordersDuplicates.remove(order);
-                    }
+                // Forwarding the exception's message.
+                throw new IllegalStateException(ex.getMessage());
 
-                    // Forwarding the exception's message.
-                    throw new IllegalStateException(ex.getMessage());
+            } catch (IOException ex) {
 
-                } catch (IOException ex) {
+                // Remove order from the id index and the columns.
+                rollbackAdd(orderId, added);
 
-                    // Remove order from TreeSet.
-                    orders.remove(order);
-                    if (added == false) {
-                        ordersDuplicates.remove(order);
-                    }
+                // Forwarding the exception's message.
+                throw new IOException(ex.getMessage());
 
-                    // Forwarding the exception's message.
-                    throw new IOException(ex.getMessage());
+            } catch (JsonSyntaxException ex) {
 
-                } catch (JsonSyntaxException ex) {
+                // Remove order from the id index and the columns.
+                rollbackAdd(orderId, added);
 
-                    // Remove order from TreeSet.
-                    orders.remove(order);
-                    if (added == false) {
-                        ordersDuplicates.remove(order);
-                    }
+                // Forwarding the exception's message.
+                throw new JsonSyntaxException(ex.getMessage());
 
-                    // Forwarding the exception's message.
-                    throw new JsonSyntaxException(ex.getMessage());
+            }
 
-                }
+        } finally {
+            lock.unlock();
+        }
 
+    }
+
+    /**
+     *
+     * Keeps the orders columns in a memory-mapped file of fixed width records, instead of the heap.
+     *
+     * The OS pages in the records on demand, so a large trade history doesn't fill the heap.
+     * getOrderById() and getPriceHistory() read the mapped records transparently.
+     *
+     * The file is only a cache of the orders database file, it's truncated and refilled by loadOrders().
+     * So it must be called before loadOrders().
+     *
+     * Locked ON CLASS (with the class lock), it replaces the columns.
+     *
+     * @param filePath The path of the mapped records file.
+     *
+     * @throws NullPointerException If the file path is null.
+     * @throws IllegalStateException If the orders are already loaded.
+     * @throws IOException If the file cannot be opened.
+     *
+     */
+    public static void useMappedFile(String filePath) throws NullPointerException, IllegalStateException, IOException {
+
+        lock.lock();
+        try {
+
+            // Null check.
+            if (filePath == null) {
+                throw new NullPointerException("Mapped orders file path cannot be null.");
             }
 
+            if (DBOrdersInterface.ordersLoaded() || columns.size() > 0) {
+                throw new IllegalStateException("Orders already loaded, the mapped orders file must be set before loading them.");
+            }
+
+            // Simply backward the exception to the caller.
+            columns = new MappedOrdersColumns(filePath);
+
+        } finally {
+            lock.unlock();
         }
 
     }
 
     /**
      *
-     * Loads all the orders from the JSON orders database file in the TreeSet in memory.
+     * Loads all the orders from the JSON orders database file in memory.
      *
-     * Synchronized ON CLASS method to prevent multiple threads to load orders from the file at the same time.
+     * Locked ON CLASS (with the class lock) to prevent multiple threads to load orders from the file at the same time.
      *
      * It's a wrapper method for the DBOrdersInterface.loadOrders() method.
      *
@@ -192,11 +253,14 @@ public abstract class Orders {
      */
     public static void loadOrders(Boolean noPriceCoherenceChecks, Boolean noOrderPresenceCheck) throws IllegalStateException, JsonSyntaxException, InvalidOrder, IOException, NoSuchMethodException, NullPointerException {
 
-        synchronized (Orders.class) {
+        lock.lock();
+        try {
 
             // Simply backward the exceptions to the caller.
             DBOrdersInterface.loadOrders(noPriceCoherenceChecks, noOrderPresenceCheck);
 
+        } finally {
+            lock.unlock();
         }
 
     }
@@ -206,51 +270,33 @@ public abstract class Orders {
      *
      * Finds an order with its order's id as Long in the orders database.
      *
+     * The orders in memory are found without locks.
+     * The orders of the compacted journal segments are not in memory, they are searched on disk, only in the segments whose ids range contains the id.
+     * So an order not in memory costs the read of some segments, it's rare since the resting orders are in the order book and the recent ones in memory.
+     * With the mapped columns, or from a compacted segment, the order is a copy rebuilt without the user, so its changes are not stored, see updateOrderById().
+     *
      * @param orderId The order's id of the order to find as a Long in the orders database.
      *
      * @return An Order object found with the given order's id if the order is found in the orders database, null otherwise.
      *
      * @throws NullPointerException If the order's id is null.
-     * @throws IllegalStateException If the orders are not loaded from the database orders file yet.
+     * @throws IllegalStateException If the orders are not loaded from the database orders file yet or if the compacted journal segments cannot be read.
      *
      */
     public static Order getOrderById(Long orderId) throws NullPointerException, IllegalStateException {
 
-        // Null check.
-        if (orderId == null) {
-            throw new NullPointerException("Order's id of the order to search in the orders database cannot be null.");
+        // Simply backward the null and not loaded exceptions to the caller.
+        Order order = getMemoryOrderById(orderId);
+        if (order != null) {
+            return order;
         }
 
-        // Orders not loaded from the database orders file yet check.
-        if (DBOrdersInterface.ordersLoaded() == false) {
-            throw new IllegalStateException("Orders not loaded from the database orders file yet, needed to search for an order by its id. Call loadOrders() before.");
-        }
-
-        Currency primaryCurrency = Currency.getDefaultPrimaryCurrency();
-        Currency secondaryCurrency = Currency.getDefaultSecondaryCurrency();
-        OrderBook orderBook = OrderBook.getOrderBookByCurrencies(Currency.getDefaultPrimaryCurrency(), Currency.getDefaultSecondaryCurrency());
-        if (orderBook == null) {
-            orderBook = OrderBook.getMainOrderBook();
-        }
-        if (orderBook != null) {
-            primaryCurrency = orderBook.getPrimaryCurrency();
-            secondaryCurrency = orderBook.getSecondaryCurrency();
+        try {
+            return DBOrdersInterface.getArchivedOrder(orderId);
+        } catch (IOException | JsonSyntaxException ex) {
+            throw new IllegalStateException(String.format("Error reading the compacted orders journal segments: %s", ex.getMessage()));
         }
 
-        // Used a lot of placeholders here, but it's not important since the comparison is done only on the id.
-        SpecificPrice price = new SpecificPrice(1, PriceType.ASK, primaryCurrency, secondaryCurrency);
-        Quantity quantity = new Quantity(1);
-        LimitOrder toSearchLimit = new LimitOrder(price, quantity);
-        toSearchLimit.setId(orderId);
-
-        Order toSearch = toSearchLimit;
-        Order result = orders.ceiling(toSearch);
-        if (result != null && result.getId().longValue() == orderId) {
-            return result;
-        }
-
-        return null;
-
     }
 
     /**
@@ -264,16 +310,16 @@ public abstract class Orders {
 
         // If the database is not loaded yet, return 0, do not throw an exception, otherwise problems during the orders loading.
 
-        return (Integer) orders.size() + ordersDuplicates.size();
+        return columns.size();
 
     }
 
     // TO STRING
     /**
      *
-     * Get a string with the whole orders database. Each order is on a new line.
+     * Get a string with the whole orders database. Each order (row) is on a new line.
      *
-     * Synchronized ON CLASS method to prevent multiple threads to modify the orders database during the execution of this method.
+     * Lock-free, it reads the rows published when the method is called.
      *
      * @return The orders database as list of string lines, joined in an unique string by '\n'.
      *
@@ -282,102 +328,365 @@ public abstract class Orders {
      */
     public static String toStringOrders() throws IllegalStateException {
 
-        synchronized (Orders.class) {
-
-            // Orders not loaded from the database orders file yet.
-            if (DBOrdersInterface.ordersLoaded() == false) {
-                throw new IllegalStateException("Orders not loaded from the database orders file yet. Call loadOrders() before.");
-            }
+        // Orders not loaded from the database orders file yet.
+        if (DBOrdersInterface.ordersLoaded() == false) {
+            throw new IllegalStateException("Orders not loaded from the database orders file yet. Call loadOrders() before.");
+        }
 
-            String result = "";
-            for (Order order : orders) {
-                // To string is itself synchronized on the order.
-                result += order.toString() + "\n";
-            }
-            for (Order order : ordersDuplicates) {
-                // To string is itself synchronized on the order.
-                result += order.toString() + "\n";
+        StringBuilder result = new StringBuilder();
+        int rows = columns.size();
+        for (int row = 0; row < rows; row++) {
+            if (columns.isRemoved(row)) {
+                continue;
             }
-
-            return result;
-
+            long timestamp = columns.timestamp(row);
+            result.append(String.format("Order's Type [%s] - ID [%d] - Side [%s] - Price Value [%d] - Quantity [%d] - Timestamp [%s]\n", columns.type(row).name(), columns.id(row), columns.side(row) == OrdersColumns.SIDE_BID ? "BID" : "ASK", columns.price(row), columns.quantity(row), timestamp == OrdersColumns.NO_TIMESTAMP ? "null" : Long.toString(timestamp)));
         }
 
+        return result.toString();
+
     }
 
-    public static PriceHistoryResponse getPriceHistory(String month) {
+    // ANALYTICS
+    /**
+     *
+     * Get the price history of a given month.
+     *
+     * For each day (GMT) of the month with some executed BID market orders, the high, low, open and close execution prices are calculated.
+     *
+     * Lock-free, it scans only the timestamp, price, side and type columns of the rows published when the method is called.
+     * The rows outside the month are skipped with a single comparison on the timestamp.
+     * The orders of the compacted journal segments (not in memory) are read from disk, only for the segments in the month.
+     *
+     * @param month The month as String in the MMYYYY format.
+     *
+     * @return The price history response with the daily price stats, sorted by day.
+     *
+     * @throws IllegalStateException If the orders are not loaded from the database orders file yet or if the compacted journal segments cannot be read.
+     * @throws NumberFormatException If the month is not in the MMYYYY format.
+     *
+     */
+    public static PriceHistoryResponse getPriceHistory(String month) throws IllegalStateException, NumberFormatException {
 
         PriceHistoryResponse priceHistoryResponse = new PriceHistoryResponse();
 
-        synchronized (Orders.class) {
+        // Orders not loaded from the database orders file yet.
+        if (DBOrdersInterface.ordersLoaded() == false) {
+            throw new IllegalStateException("Orders not loaded from the database orders file yet. Call loadOrders() before.");
+        }
 
-            // Orders not loaded from the database orders file yet.
-            if (DBOrdersInterface.ordersLoaded() == false) {
-                throw new IllegalStateException("Orders not loaded from the database orders file yet. Call loadOrders() before.");
-            }
+        int monthint = Integer.parseInt(month.substring(0, 2));
+        int yearint = Integer.parseInt(month.substring(2));
+        if (monthint < 1 || monthint > 12) {
+            // No orders in a non existent month.
+            return priceHistoryResponse;
+        }
 
-            LinkedList<Order> allOrders = new LinkedList<>(orders);
-            allOrders.addAll(ordersDuplicates);
+        // Month range in epoch seconds (the timestamps of the orders are in seconds).
+        ZoneId gmtZone = ZoneId.of("GMT");
+        ZonedDateTime monthStart = LocalDate.of(yearint, monthint, 1).atStartOfDay(gmtZone);
+        long fromSecond = monthStart.toEpochSecond();
+        long toSecond = monthStart.plusMonths(1).toEpochSecond();
 
-            // removing orders with no timestamp (if present).
-            List<Order> filtered = allOrders.stream().filter(order -> order.getTimestamp() != null).collect(Collectors.toList());
+        // For each day: open timestamp, open price, close timestamp, close price, high, low.
+        TreeMap<LocalDate, long[]> dailyStats = new TreeMap<>();
 
-            // removing orders that are not market orders and all ask market orders, to process only bid prices.
-            filtered = filtered.stream().filter(order -> order.getOrderType() != OrderType.LIMIT).collect(Collectors.toList());
-            filtered = filtered.stream().filter(order -> order.getOrderType() != OrderType.STOP).collect(Collectors.toList());
-            List<MarketOrder> marketOrders = new LinkedList<MarketOrder>();
-            for (Order order : filtered) {
-                if (order instanceof MarketOrder && ((MarketOrder)order).getMarketOrderPriceType() != PriceType.ASK) {
-                    marketOrders.add((MarketOrder) order);
+        // The compacted segments are older than all the orders in memory, so they are processed first.
+        try {
+            for (Order order : DBOrdersInterface.getArchivedOrders(fromSecond, toSecond)) {
+                if (!(order instanceof MarketOrder marketOrder) || marketOrder.getMarketOrderPriceType() != PriceType.BID) {
+                    continue;
                 }
+                Long timestamp = marketOrder.getTimestamp();
+                if (timestamp == null || timestamp < fromSecond || timestamp >= toSecond || marketOrder.getExecutionPrice() == null) {
+                    continue;
+                }
+                addToDailyStats(dailyStats, gmtZone, timestamp, marketOrder.getExecutionPrice().getValue());
             }
+        } catch (IOException | JsonSyntaxException ex) {
+            throw new IllegalStateException(String.format("Error reading the compacted orders journal segments: %s", ex.getMessage()));
+        }
+
+        int rows = columns.size();
+        for (int row = 0; row < rows; row++) {
 
-            ZoneId gmtZone = ZoneId.of("GMT");
-            Map<LocalDate, List<MarketOrder>> groupedByDay = marketOrders.stream().collect(Collectors.groupingBy(order -> Instant.ofEpochSecond(order.getTimestamp()).atZone(gmtZone).toLocalDate()));
-
-            // filter by month and year
-            int monthint = Integer.parseInt(month.substring(0, 2));
-            int yearint = Integer.parseInt(month.substring(2));
-            Iterator<Map.Entry<LocalDate, List<MarketOrder>>> iterator = groupedByDay.entrySet().iterator();
-            while (iterator.hasNext()) {
-                Map.Entry<LocalDate, List<MarketOrder>> entry = iterator.next();
-                LocalDate date = entry.getKey();
-                if (date.getMonthValue() != monthint || date.getYear() != yearint) {
-                    iterator.remove();
+            long timestamp = columns.timestamp(row);
+            if (timestamp < fromSecond || timestamp >= toSecond || timestamp == OrdersColumns.NO_TIMESTAMP) {
+                continue;
+            }
+            // Only the bid market orders, to process only bid prices.
+            if (columns.type(row) != OrderType.MARKET || columns.side(row) != OrdersColumns.SIDE_BID || columns.isRemoved(row)) {
+                continue;
+            }
+            int price = columns.price(row);
+            if (price == OrdersColumns.NO_PRICE) {
+                continue;
+            }
+
+            addToDailyStats(dailyStats, gmtZone, timestamp, price);
+
+        }
+
+        for (Map.Entry<LocalDate, long[]> entry : dailyStats.entrySet()) {
+            long[] stats = entry.getValue();
+            DailyPriceStats dailyPriceStats = new DailyPriceStats(entry.getKey().atStartOfDay(gmtZone).toInstant().toEpochMilli(), new GenericPrice((int) stats[4]), new GenericPrice((int) stats[5]), new GenericPrice((int) stats[1]), new GenericPrice((int) stats[3]));
+            priceHistoryResponse.addDailyPriceStats(dailyPriceStats);
+        }
+
+        return priceHistoryResponse;
+
+    }
+
+    /**
+     *
+     * Updates the quantity and the timestamp of an order of the orders database, only in memory.
+     *
+     * Used for the stop orders executed, whose market order is written on the file instead of them.
+     * The update is written in the row of the order in the columns and, without the mapped columns, in the Order object kept in the row.
+     * Needed since with the mapped columns getOrderById() returns a copy rebuilt from the row, its changes are not stored.
+     *
+     * For an order added once, as a stop order, the only row of it is updated.
+     * Only the orders in memory are updated, the compacted journal segments are never changed.
+     *
+     * Locked ON CLASS (with the class lock), it's a write.
+     *
+     * @param orderId The id of the order to update.
+     * @param quantity The new quantity.
+     * @param timestamp The new timestamp, null to keep it not set.
+     *
+     * @return True if the order was present and has been updated, false otherwise.
+     *
+     * @throws NullPointerException If the order's id or the quantity are null.
+     * @throws IllegalStateException If the orders are not loaded from the database orders file yet.
+     *
+     */
+    public static Boolean updateOrderById(Long orderId, Quantity quantity, Long timestamp) throws NullPointerException, IllegalStateException {
+
+        // Null check.
+        if (quantity == null) {
+            throw new NullPointerException("Quantity of the order to update in the orders database cannot be null.");
+        }
+
+        lock.lock();
+        try {
+
+            // Simply backward the null and not loaded exceptions to the caller.
+            int row = findRow(orderId);
+            if (row == OrdersIdIndex.NO_ROW)
+                return false;
+            columns.update(row, quantity.getValue(), timestamp != null ? timestamp : OrdersColumns.NO_TIMESTAMP);
+            Order order = columns.order(row);
+            if (order != null) {
+                // The object kept in the row, not a copy.
+                order.setQuantity(quantity);
+                if (timestamp != null) {
+                    order.setTimestamp(timestamp);
                 }
             }
+            return true;
+
+        } finally {
+            lock.unlock();
+        }
+
+    }
+
+    /**
+     *
+     * Removes an order from the orders database, only in memory.
+     *
+     * Used for the unsatisfied stop orders, that are not written on the file.
+     * The row of the order is marked as removed in the columns, for an order added once, as a stop order, its only row.
+     * Only the orders in memory are removed, the compacted journal segments are never changed.
+     *
+     * Locked ON CLASS (with the class lock), it's a write.
+     *
+     * @param orderId The id of the order to remove.
+     *
+     * @return True if the order was present and has been removed, false otherwise.
+     *
+     * @throws NullPointerException If the order's id is null.
+     * @throws IllegalStateException If the orders are not loaded from the database orders file yet.
+     *
+     */
+    public static Boolean removeOrderById(Long orderId) throws NullPointerException, IllegalStateException {
+
+        lock.lock();
+        try {
+
+            // Simply backward the null and not loaded exceptions to the caller.
+            int row = findRow(orderId);
+            if (row == OrdersIdIndex.NO_ROW)
+                return false;
+            idIndex.remove(orderId);
+            columns.markRemoved(row);
+            return true;
+
+        } finally {
+            lock.unlock();
+        }
+
+    }
+
+    // SUPPORT METHODS
+    /**
+     *
+     * Adds an executed price to the stats of its day, used by the price history.
+     *
+     * @param dailyStats For each day: open timestamp, open price, close timestamp, close price, high, low.
+     * @param zone The zone of the days.
+     * @param timestamp The execution timestamp, in seconds.
+     * @param price The execution price.
+     *
+     */
+    private static void addToDailyStats(TreeMap<LocalDate, long[]> dailyStats, ZoneId zone, long timestamp, int price) {
+
+        LocalDate day = Instant.ofEpochSecond(timestamp).atZone(zone).toLocalDate();
+        long[] stats = dailyStats.get(day);
+        if (stats == null) {
+            dailyStats.put(day, new long[] {timestamp, price, timestamp, price, price, price});
+            return;
+        }
+        // Strict on the open and not strict on the close, to keep the first and the last added with the same timestamp.
+        if (timestamp < stats[0]) {
+            stats[0] = timestamp;
+            stats[1] = price;
+        }
+        if (timestamp >= stats[2]) {
+            stats[2] = timestamp;
+            stats[3] = price;
+        }
+        stats[4] = Math.max(stats[4], price);
+        stats[5] = Math.min(stats[5], price);
+
+    }
+    /**
+     *
+     * Finds an order in memory, without locks.
+     *
+     * @param orderId The order's id.
+     *
+     * @return The order, rebuilt from its row with the mapped columns, null if not in memory.
+     *
+     * @throws NullPointerException If the order's id is null.
+     * @throws IllegalStateException If the orders are not loaded from the database orders file yet.
+     *
+     */
+    private static Order getMemoryOrderById(Long orderId) throws NullPointerException, IllegalStateException {
+
+        // Simply backward the null and not loaded exceptions to the caller.
+        int row = findRow(orderId);
+        if (row == OrdersIdIndex.NO_ROW) {
+            return null;
+        }
+        Order order = columns.order(row);
+        return order != null ? order : orderFromRow(row);
 
-            groupedByDay.forEach((date, ordersList) -> {
+    }
+    /**
+     *
+     * Finds the row of an order in memory, without locks.
+     *
+     * It's the first row of the order, from the id index, in O(1) for both the columns.
+     *
+     * @param orderId The id of the order.
+     *
+     * @return The row, or OrdersIdIndex.NO_ROW if not in memory.
+     *
+     * @throws NullPointerException If the order's id is null.
+     * @throws IllegalStateException If the orders are not loaded from the database orders file yet.
+     *
+     */
+    private static int findRow(Long orderId) throws NullPointerException, IllegalStateException {
+
+        // Null check.
+        if (orderId == null) {
+            throw new NullPointerException("Order's id of the order to search in the orders database cannot be null.");
+        }
+
+        // Orders not loaded from the database orders file yet check.
+        if (DBOrdersInterface.ordersLoaded() == false) {
+            throw new IllegalStateException("Orders not loaded from the database orders file yet, needed to search for an order by its id. Call loadOrders() before.");
+        }
 
-                ordersList.sort(Comparator.comparing(Order::getTimestamp));
+        // Lock-free read.
+        return idIndex.get(orderId);
 
-                // inverted max min since the compareTo of prices is inverted.
-                MarketOrder minPriceOrder = ordersList.stream().max(Comparator.comparing(MarketOrder::getExecutionPrice)).orElse(null);
-                MarketOrder maxPriceOrder = ordersList.stream().min(Comparator.comparing(MarketOrder::getExecutionPrice)).orElse(null);
-                MarketOrder openPriceOrder = ordersList.getFirst();
-                MarketOrder closePriceOrder = ordersList.getLast();
+    }
+    private static Boolean containsOrderId(Long orderId) {
 
-                DailyPriceStats dailyPriceStats = new DailyPriceStats(date.atStartOfDay(gmtZone).toInstant().toEpochMilli(), maxPriceOrder.getExecutionPrice(), minPriceOrder.getExecutionPrice(), openPriceOrder.getExecutionPrice(), closePriceOrder.getExecutionPrice());
-                priceHistoryResponse.addDailyPriceStats(dailyPriceStats);
-                
-            });
+        return idIndex.get(orderId) != OrdersIdIndex.NO_ROW;
 
-            return priceHistoryResponse; 
+    }
+    /**
+     *
+     * Removes the last order added from the columns and the id index, after a failed write on file.
+     *
+     * The caller holds the class lock.
+     *
+     * @param orderId The id of the order added.
+     * @param added If the order's id has been added to the id index.
+     *
+     */
+    private static void rollbackAdd(Long orderId, Boolean added) {
 
+        // The id first, so the lock-free readers never find the row removed.
+        if (added) {
+            idIndex.remove(orderId);
         }
-        
+        columns.removeLast();
+
     }
+    /**
+     *
+     * Rebuilds an order from its row in the columns, used with the mapped columns (no Order object kept).
+     *
+     * The rebuilt order has the default currencies and no user, since they are not stored in the columns.
+     * The price coherence checks are not performed, as in the orders loading.
+     *
+     * @param row The row of the order.
+     *
+     * @return The order rebuilt.
+     *
+     */
+    private static Order orderFromRow(int row) {
 
-    public static Boolean removeOrderById(Long orderId) {
+        PriceType side = columns.side(row) == OrdersColumns.SIDE_BID ? PriceType.BID : PriceType.ASK;
+        Currency primaryCurrency = Currency.getDefaultPrimaryCurrency();
+        Currency secondaryCurrency = Currency.getDefaultSecondaryCurrency();
+        Quantity quantity = new Quantity(columns.quantity(row));
+        int price = columns.price(row);
+
+        Order order;
+        switch (columns.type(row)) {
+
+            case LIMIT:
+                order = new LimitOrder(new SpecificPrice(price, side, primaryCurrency, secondaryCurrency), quantity, true);
+                break;
+
+            case STOP:
+                order = new StopOrder(new SpecificPrice(price, side, primaryCurrency, secondaryCurrency), quantity, true);
+                break;
+
+            default:
+                MarketOrder marketOrder = new MarketOrder(side, primaryCurrency, secondaryCurrency, quantity);
+                if (price != OrdersColumns.NO_PRICE) {
+                    // The execution price is the opposite of the market order's side.
+                    PriceType invertedSide = side == PriceType.BID ? PriceType.ASK : PriceType.BID;
+                    marketOrder.setExecutionPrice(new SpecificPrice(price, invertedSide, primaryCurrency, secondaryCurrency));
+                }
+                order = marketOrder;
+                break;
 
-        Order order = getOrderById(orderId);
-        if (order == null)
-            return false;
-        orders.remove(order);
-        if (ordersDuplicates.contains(order)) {
-            ordersDuplicates.remove(order);
         }
-        return true;
+
+        order.setId(columns.id(row));
+        long timestamp = columns.timestamp(row);
+        if (timestamp != OrdersColumns.NO_TIMESTAMP) {
+            order.setTimestamp(timestamp);
+        }
+
+        return order;
 
     }
 
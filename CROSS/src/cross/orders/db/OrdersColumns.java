@@ -0,0 +1,196 @@
+package cross.orders.db;
+
+import cross.orders.MarketOrder;
+import cross.orders.Order;
+import cross.orders.OrderType;
+import cross.types.price.PriceType;
+import cross.types.price.SpecificPrice;
+
+/**
+ *
+ * Append-only columnar store of the orders added to the orders database.
+ *
+ * Each order added is a new row, and each attribute is stored in its own primitive column (id, timestamp, price, size, side, type).
+ * So an analytics scan (e.g. the price history) touches only the columns it needs, without dereferencing the Order objects.
+ *
+ * There are two implementations:
+ * - HeapOrdersColumns, the default one, keeps the columns in chunked primitive arrays on the heap.
+ * - MappedOrdersColumns keeps the rows in a memory-mapped file of fixed width records, paged in on demand by the OS.
+ *
+ * There is a single writer at a time (the callers hold the Orders class lock), while the readers never lock.
+ * The writer fills the row and then publishes it by incrementing a volatile rows counter.
+ * A reader reads the rows counter first, so all the rows below it are completely written and visible.
+ *
+ * Package-private, since it's used only by the Orders class.
+ *
+ * @version 1.0
+ * @author Giulio Nisi
+ *
+ * @see Orders
+ * @see HeapOrdersColumns
+ * @see MappedOrdersColumns
+ *
+ */
+abstract class OrdersColumns {
+
+    // Sentinels for the missing values.
+    public static final long NO_TIMESTAMP = Long.MIN_VALUE;
+    public static final int NO_PRICE = -1;
+
+    // Cached, values() allocates a new array at each call.
+    protected static final OrderType[] ORDER_TYPES = OrderType.values();
+
+    // Side column values.
+    public static final byte SIDE_ASK = 0;
+    public static final byte SIDE_BID = 1;
+
+    // WRITERS
+    /**
+     *
+     * Appends an order as a new row.
+     *
+     * For a market order, the price is the execution price and the side is the market order's one.
+     *
+     * Must be called by a single writer at a time, the caller holds the Orders class lock.
+     *
+     * @param order The order to append.
+     *
+     * @return The index of the row appended.
+     *
+     * @throws IllegalStateException If the row cannot be stored.
+     *
+     */
+    public abstract int append(Order order) throws IllegalStateException;
+    /**
+     *
+     * Removes the last appended row, used to rollback a failed write on file.
+     *
+     * Must be called by a single writer at a time, the caller holds the Orders class lock.
+     *
+     */
+    public abstract void removeLast();
+    /**
+     *
+     * Marks a row as removed.
+     *
+     * Must be called by a single writer at a time, the caller holds the Orders class lock.
+     *
+     * @param row The row to mark as removed, published.
+     *
+     */
+    public abstract void markRemoved(int row);
+    /**
+     *
+     * Updates the size and the timestamp of a row already published, used for the stop orders executed.
+     *
+     * A reader at the same time may see only one of the two values updated.
+     *
+     * Must be called by a single writer at a time, the caller holds the Orders class lock.
+     *
+     * @param row The row to update, published.
+     * @param quantity The new size.
+     * @param timestamp The new timestamp, NO_TIMESTAMP if not set.
+     *
+     */
+    public abstract void update(int row, int quantity, long timestamp);
+
+    // LOCK-FREE READERS
+    /**
+     *
+     * Get the number of rows published.
+     *
+     * Read it before any other column.
+     *
+     * @return The number of rows.
+     *
+     */
+    public abstract int size();
+    public abstract long id(int row);
+    public abstract long timestamp(int row);
+    public abstract int price(int row);
+    public abstract int quantity(int row);
+    public abstract byte side(int row);
+    public abstract OrderType type(int row);
+    public abstract boolean isRemoved(int row);
+    /**
+     *
+     * Get the Order object of a row, if the implementation keeps it.
+     *
+     * Only the first row of an order is looked up, from the Orders id index, and a key found there has always its row published.
+     *
+     * @param row The row, published.
+     *
+     * @return The Order object appended in the row, null if not kept (e.g. the mapped columns) or if the row is removed.
+     *
+     */
+    public Order order(int row) {
+
+        return null;
+
+    }
+
+    // SUPPORT METHODS
+    /**
+     *
+     * Get the price stored in the columns for an order.
+     *
+     * The caller must hold the order's lock.
+     *
+     * @param order The order.
+     *
+     * @return The price value, or NO_PRICE if the order has not a price yet (e.g. a market order not executed).
+     *
+     */
+    protected static int columnPrice(Order order) {
+
+        SpecificPrice price;
+        if (order instanceof MarketOrder marketOrder) {
+            price = marketOrder.getExecutionPrice();
+        } else {
+            price = order.getPrice();
+        }
+
+        return price != null ? price.getValue() : NO_PRICE;
+
+    }
+    /**
+     *
+     * Get the side stored in the columns for an order.
+     *
+     * The caller must hold the order's lock.
+     *
+     * @param order The order.
+     *
+     * @return SIDE_BID or SIDE_ASK, for a market order it's the market order's side (not the execution price one).
+     *
+     */
+    protected static byte columnSide(Order order) {
+
+        PriceType side;
+        if (order instanceof MarketOrder marketOrder) {
+            side = marketOrder.getMarketOrderPriceType();
+        } else {
+            side = order.getPrice().getType();
+        }
+
+        return side == PriceType.BID ? SIDE_BID : SIDE_ASK;
+
+    }
+    /**
+     *
+     * Get the timestamp stored in the columns for an order.
+     *
+     * The caller must hold the order's lock.
+     *
+     * @param order The order.
+     *
+     * @return The timestamp, or NO_TIMESTAMP if not set.
+     *
+     */
+    protected static long columnTimestamp(Order order) {
+
+        return order.getTimestamp() != null ? order.getTimestamp() : NO_TIMESTAMP;
+
+    }
+
+}
@@ -0,0 +1,193 @@
+package cross.orders.db;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ *
+ * Primitive index from an order's id to its first row in the orders columns.
+ *
+ * Used with both the orders columns, instead of a map with a boxed key and an entry object for each id on the heap.
+ * It's an open addressing hash table (linear probing) with two primitive arrays, so each entry costs some bytes, not an object.
+ *
+ * There is a single writer at a time (the callers hold the Orders class lock), while the readers never lock.
+ * The writer sets the row before the key (release), a reader gets the key first (acquire), so a key found has always its row.
+ * When the table is full, the writer fills a new bigger table and then publishes it, the old one is never modified again.
+ *
+ * Package-private, since it's used only by the Orders class.
+ *
+ * @version 1.0
+ * @author Giulio Nisi
+ *
+ * @see Orders
+ * @see OrdersColumns
+ *
+ */
+class OrdersIdIndex {
+
+    // Free slot key.
+    private static final long EMPTY = Long.MIN_VALUE;
+    // Row of a removed entry, the key stays to not break the probing.
+    public static final int NO_ROW = -1;
+
+    private static final int INITIAL_CAPACITY = 1 << 12;
+
+    /**
+     *
+     * A table of the index, the capacity is a power of two.
+     *
+     */
+    private static final class Table {
+
+        private final AtomicLongArray keys;
+        private final AtomicIntegerArray rows;
+        private final int mask;
+
+        private Table(int capacity) {
+
+            this.keys = new AtomicLongArray(capacity);
+            this.rows = new AtomicIntegerArray(capacity);
+            this.mask = capacity - 1;
+            for (int i = 0; i < capacity; i++) {
+                this.keys.setPlain(i, EMPTY);
+            }
+
+        }
+
+    }
+
+    private volatile Table table = new Table(INITIAL_CAPACITY);
+
+    // Used slots, removed entries included. Written only by the writer.
+    private int used = 0;
+
+    /**
+     *
+     * Get the row of an order's id.
+     *
+     * @param orderId The order's id.
+     *
+     * @return The first row of the order, NO_ROW if not present.
+     *
+     */
+    public int get(long orderId) {
+
+        Table current = this.table;
+        int slot = slot(orderId, current.mask);
+        while (true) {
+            long key = current.keys.getAcquire(slot);
+            if (key == EMPTY) {
+                return NO_ROW;
+            }
+            if (key == orderId) {
+                return current.rows.getAcquire(slot);
+            }
+            slot = (slot + 1) & current.mask;
+        }
+
+    }
+    /**
+     *
+     * Sets the row of an order's id, if not present.
+     *
+     * Must be called by a single writer at a time, the caller holds the Orders class lock.
+     *
+     * @param orderId The order's id.
+     * @param row The row to set.
+     *
+     * @return True if the row has been set, false if the order's id was already present.
+     *
+     */
+    public boolean putIfAbsent(long orderId, int row) {
+
+        Table current = this.table;
+        int slot = slot(orderId, current.mask);
+        while (true) {
+            long key = current.keys.getPlain(slot);
+            if (key == EMPTY) {
+                break;
+            }
+            if (key == orderId) {
+                if (current.rows.getPlain(slot) != NO_ROW) {
+                    return false;
+                }
+                // Reusing the removed entry.
+                current.rows.setRelease(slot, row);
+                return true;
+            }
+            slot = (slot + 1) & current.mask;
+        }
+
+        // Keeping the load factor under 1/2.
+        if ((this.used + 1) * 2 > current.keys.length()) {
+            this.grow(current);
+            return this.putIfAbsent(orderId, row);
+        }
+
+        current.rows.setRelease(slot, row);
+        current.keys.setRelease(slot, orderId);
+        this.used++;
+        return true;
+
+    }
+    /**
+     *
+     * Removes an order's id from the index.
+     *
+     * Must be called by a single writer at a time, the caller holds the Orders class lock.
+     *
+     * @param orderId The order's id.
+     *
+     */
+    public void remove(long orderId) {
+
+        Table current = this.table;
+        int slot = slot(orderId, current.mask);
+        while (true) {
+            long key = current.keys.getPlain(slot);
+            if (key == EMPTY) {
+                return;
+            }
+            if (key == orderId) {
+                current.rows.setRelease(slot, NO_ROW);
+                return;
+            }
+            slot = (slot + 1) & current.mask;
+        }
+
+    }
+
+    // SUPPORT METHODS
+    private void grow(Table current) {
+
+        Table grown = new Table(current.keys.length() * 2);
+        int count = 0;
+        for (int i = 0; i < current.keys.length(); i++) {
+            long key = current.keys.getPlain(i);
+            int row = current.rows.getPlain(i);
+            // The removed entries are dropped.
+            if (key == EMPTY || row == NO_ROW) {
+                continue;
+            }
+            int slot = slot(key, grown.mask);
+            while (grown.keys.getPlain(slot) != EMPTY) {
+                slot = (slot + 1) & grown.mask;
+            }
+            grown.rows.setPlain(slot, row);
+            grown.keys.setPlain(slot, key);
+            count++;
+        }
+        this.used = count;
+
+        // Publishing the filled table.
+        this.table = grown;
+
+    }
+    private static int slot(long orderId, int mask) {
+
+        // Fibonacci hashing, the ids are time based so the low bits alone are not well distributed.
+        return (int) ((orderId * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+
+    }
+
+}
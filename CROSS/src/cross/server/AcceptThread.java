@@ -1,10 +1,19 @@
 package cross.server;
 
+import cross.logging.Log;
+import cross.logging.Log.Category;
+import cross.utils.AdmissionControl;
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLSocket;
 
 /**
  *
@@ -15,11 +24,23 @@ import java.util.concurrent.ThreadPoolExecutor;
  * It creates a new ClientThread for each new client connection accepted.
  * This latter thread is then executed by a CachedThreadPool.
  *
+ * With the "virtual" transport, each ClientThread is executed by a new virtual thread instead.
+ * The blocking reads of the idle clients park their virtual threads without holding a platform thread, so the connections cost only their stacks on the heap.
+ * See ClientThread for the locks on the requests path.
+ *
+ * The connections are admitted by the AdmissionControl of the server, so the client's threads are bounded by its max connections.
+ * A connection over it receives a server busy response and it's closed, without creating its thread.
+ *
+ * With TLS, the server socket is an SSLServerSocket and the handshake of each connection is done by its ClientThread, at the first read.
+ *
+ * At the shutdown of the server, the server socket is closed and this thread ends, then the server drains the client's threads with drain().
+ *
  * @version 1.0
  * @author Giulio Nisi
  *
  * @see Server
  * @see ClientThread
+ * @see AdmissionControl
  *
  */
 class AcceptThread extends Thread {
@@ -28,38 +49,50 @@ class AcceptThread extends Thread {
     private final Server server;
 
     // The executor to be used to execute the client's threads.
-    private final ThreadPoolExecutor executor;
+    private final ExecutorService executor;
+    private final Boolean virtualThreads;
+
+    // The client's threads running, to drain them at the shutdown.
+    private final Set<ClientThread> clientThreads = ConcurrentHashMap.newKeySet();
 
     /**
      *
      * Constructor of the AcceptThread class.
      *
      * @param server The server to be used to accept clients.
+     * @param virtualThreads True to execute each client's thread on a virtual thread, false to use a cached pool of platform threads.
      *
-     * @throws NullPointerException If the server is null.
+     * @throws NullPointerException If the server or the virtual threads flag are null.
      *
      */
-    public AcceptThread(Server server) throws NullPointerException {
+    public AcceptThread(Server server, Boolean virtualThreads) throws NullPointerException {
 
         // Null check.
         if (server == null)
             throw new NullPointerException("Server to be used to accept clients in AcceptThread cannot be null.");
+        if (virtualThreads == null)
+            throw new NullPointerException("Virtual threads flag in AcceptThread cannot be null.");
 
         this.server = server;
-        this.executor = (ThreadPoolExecutor) Executors.newCachedThreadPool();
+        this.virtualThreads = virtualThreads;
+        this.executor = virtualThreads ? Executors.newVirtualThreadPerTaskExecutor() : Executors.newCachedThreadPool();
 
     }
 
     @Override
     public void run() {
 
-        System.out.printf("I'm the thread that will be accept client. My thread id: %d.\n", Thread.currentThread().threadId());
+        Log.info(Category.NETWORK, "I'm the thread that will be accept client. My thread id: %d.", Thread.currentThread().threadId());
 
-        System.out.printf("Server started a CACHED pool of max %d threads.\n", executor.getMaximumPoolSize());
+        if (this.virtualThreads) {
+            Log.info(Category.NETWORK, "Server started a VIRTUAL thread per client executor.");
+        } else {
+            Log.info(Category.NETWORK, "Server started a CACHED pool of max %d threads.", ((ThreadPoolExecutor) executor).getMaximumPoolSize());
+        }
 
-        System.out.printf("Waiting for connections...\n");
+        Log.info(Category.NETWORK, "Waiting for connections...");
 
-        while (true) {
+        while (!this.server.isShuttingDown()) {
             Socket clientSocket = null;
             try {
                 // Accept connections from clients.
@@ -68,31 +101,109 @@ class AcceptThread extends Thread {
                 // The serverSocket is not null, since this thread is executed only after the startServer() method of the Server class.
                 clientSocket = server.getServerSocket().accept();
 
-                System.out.printf("Connection accepted from %s:%s.\n", clientSocket.getInetAddress().getHostAddress(), clientSocket.getPort());
+                Log.debug(Category.NETWORK, "Connection accepted from %s:%s.", clientSocket.getInetAddress().getHostAddress(), clientSocket.getPort());
+
+                // Over the max connections, rejected before creating its thread.
+                // The socket's send buffer is empty, so the short server busy response doesn't block this thread.
+                // With TLS, it would need the handshake in this thread, so the connection is only closed.
+                AdmissionControl admissionControl = server.getAdmissionControl();
+                if (!admissionControl.tryAdmitConnection()) {
+                    Log.warn(Category.NETWORK, "Connection from %s:%s rejected, too many connections.", clientSocket.getInetAddress().getHostAddress(), clientSocket.getPort());
+                    try {
+                        if (!(clientSocket instanceof SSLSocket)) {
+                            clientSocket.getOutputStream().write(AdmissionControl.serverBusyResponse(null).toJSONString().getBytes(StandardCharsets.UTF_8));
+                        }
+                    } finally {
+                        clientSocket.close();
+                    }
+                    continue;
+                }
 
-                // Create a new thread for the client.
-                executor.execute(new ClientThread(clientSocket));
+                // Create a new thread for the client, releasing its connection when it terminates.
+                ClientThread clientThread = new ClientThread(clientSocket, server.getRateLimiter(), admissionControl, server.getBufferPool());
+                this.clientThreads.add(clientThread);
+                try {
+                    executor.execute(() -> {
+                        try {
+                            clientThread.run();
+                        } finally {
+                            this.clientThreads.remove(clientThread);
+                            admissionControl.releaseConnection();
+                        }
+                    });
+                } catch (RejectedExecutionException ex) {
+                    this.clientThreads.remove(clientThread);
+                    admissionControl.releaseConnection();
+                    throw ex;
+                }
 
-                System.out.printf("Client's %s:%s thread submitted to the executor.\n", clientSocket.getInetAddress().getHostAddress(), clientSocket.getPort());
+                Log.debug(Category.NETWORK, "Client's %s:%s thread submitted to the executor.", clientSocket.getInetAddress().getHostAddress(), clientSocket.getPort());
 
                 // Execution ok printed in the ClientThread class.
             }catch (IOException ex) {
+                // The server socket closed by the shutdown.
+                if (this.server.isShuttingDown()) {
+                    break;
+                }
                 // This is a dediacted thread, so I don't backward the exception, instead I print it and I try to continue.
-                System.err.printf("An I/O error occurred while accepting a connection. Trying to continue...\n");
+                Log.warn(Category.NETWORK, "An I/O error occurred while accepting a connection. Trying to continue...");
                 // Socket is null if an error occurred, so I don't need to close it.
             } catch (RejectedExecutionException ex) {
                 // This is a dediacted thread, so I don't backward the exception, instead I print it and I try to continue.
-                System.err.printf("An error occurred while submitting a new client's thread to the executor. Trying to continue...\n");
+                Log.warn(Category.NETWORK, "An error occurred while submitting a new client's thread to the executor. Trying to continue...");
                 // Closing the client's socket.
                 try {
                     if (clientSocket != null)
                         clientSocket.close();
                 } catch (IOException ex2) {
-                    System.err.printf("An error occurred while closing the client's socket. Trying to continue...\n");
+                    Log.warn(Category.NETWORK, "An error occurred while closing the client's socket. Trying to continue...");
                 }
             }
         } // End of while.
 
+        Log.info(Category.NETWORK, "Stopped accepting connections.");
+
     }
-    
+
+    /**
+     *
+     * Drains the client's threads, at the shutdown of the server, after the server socket is closed.
+     *
+     * Each client's thread answers the request it's handling, then its connection is closed (see ClientThread.drain()).
+     * Over the deadline, the connections still open are closed, the requests still in the engine end by themselves without their responses.
+     *
+     * Called by the Server class.
+     *
+     * @param timeoutMillis The max time to wait for the client's threads, in milliseconds.
+     *
+     * @return True if all the client's threads ended, false if the deadline was reached.
+     *
+     * @throws InterruptedException If the caller is interrupted while waiting.
+     *
+     */
+    Boolean drain(long timeoutMillis) throws InterruptedException {
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+        // No client's thread is added after this thread ended.
+        this.join(timeoutMillis);
+
+        Log.info(Category.NETWORK, "Draining %d client's threads...", this.clientThreads.size());
+        for (ClientThread clientThread : this.clientThreads) {
+            clientThread.drain();
+        }
+
+        this.executor.shutdown();
+        if (this.executor.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+            return true;
+        }
+
+        Log.warn(Category.NETWORK, "%d client's threads not drained before the deadline, closing their connections.", this.clientThreads.size());
+        for (ClientThread clientThread : this.clientThreads) {
+            clientThread.abort();
+        }
+        return false;
+
+    }
+
 }
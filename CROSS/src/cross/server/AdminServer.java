@@ -0,0 +1,239 @@
+package cross.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import cross.logging.Log;
+import cross.logging.Log.Category;
+import cross.metrics.Metrics;
+import cross.orderbook.OrderBook;
+import cross.orderbook.OrderBookDepth;
+import cross.orders.db.DBOrdersInterface;
+import cross.users.db.Users;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ *
+ * This class is the admin endpoint of the server, an HTTP server (the JDK's one) on a port separated from the clients' one.
+ *
+ * It exposes:
+ * - /metrics: the metrics in the Prometheus text format (version 0.0.4). The requests by action and the latency histograms of the stages (see Metrics),
+ *   the order book depth, the orders journal lag, the connections and the sessions open, the notifications dropped, the rate limits and the admission control metrics.
+ * - /book: the depth of the order book in JSON, the best levels of each side. The "levels" query parameter sets the levels of each side, 20 by default.
+ *
+ * The requests are handled by a single thread, so the scrapes never compete with the clients for the CPU more than one core.
+ * The order book depth is copied while holding the book lock and rendered after releasing it (see OrderBook.getDepth()).
+ * All the other metrics are read without locks, or with the short locks of their counters.
+ *
+ * Package-private, it's started and stopped only by the Server class.
+ *
+ * @version 1.0
+ * @author Giulio Nisi
+ *
+ * @see Server
+ * @see Metrics
+ * @see OrderBookDepth
+ *
+ */
+class AdminServer {
+
+    // Levels of each side of the /book depth, by default and at most.
+    private static final int DEFAULT_BOOK_LEVELS = 20;
+    private static final int MAX_BOOK_LEVELS = 1000;
+    // Levels of each side summed in the depth quantity metrics.
+    private static final int METRICS_BOOK_LEVELS = 10;
+
+    private final Server server;
+    private final HttpServer httpServer;
+    private final ExecutorService executor;
+
+    /**
+     *
+     * Constructor of the class.
+     *
+     * Binds the admin port, the requests are handled only after start().
+     *
+     * @param server The server whose metrics are exposed.
+     * @param address The admin IP and port.
+     *
+     * @throws NullPointerException If the server or the address are null.
+     * @throws IOException If the admin port cannot be bound.
+     *
+     */
+    public AdminServer(Server server, InetSocketAddress address) throws NullPointerException, IOException {
+
+        // Null check.
+        if (server == null || address == null) {
+            throw new NullPointerException("Server and address of the admin endpoint cannot be null.");
+        }
+
+        this.server = server;
+        this.httpServer = HttpServer.create(address, 0);
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "AdminServer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.httpServer.setExecutor(this.executor);
+        this.httpServer.createContext("/metrics", this::handleMetrics);
+        this.httpServer.createContext("/book", this::handleBook);
+
+    }
+
+    /**
+     *
+     * Starts handling the requests.
+     *
+     */
+    public void start() {
+
+        this.httpServer.start();
+        Log.info(Category.SERVER, "Admin endpoint started on %s.", this.httpServer.getAddress());
+
+    }
+    /**
+     *
+     * Stops the admin endpoint, closing its port.
+     *
+     */
+    public void stop() {
+
+        this.httpServer.stop(0);
+        this.executor.shutdown();
+        Log.info(Category.SERVER, "Admin endpoint stopped.");
+
+    }
+
+    // HANDLERS
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+
+        if (!AdminServer.checkMethod(exchange)) {
+            return;
+        }
+
+        StringBuilder out = new StringBuilder(16384);
+        Metrics.writePrometheus(out);
+
+        // Connections and sessions.
+        AdminServer.writeGauge(out, "cross_sessions", "Sessions open, the users logged in on each connection.", Users.getSessionsSize());
+        AdminServer.writeGauge(out, "cross_users", "Users registered.", Users.getUsersSize());
+        AdminServer.writeMetrics(out, this.server.getAdmissionControlMetrics());
+        AdminServer.writeMetrics(out, this.server.getRateLimiterMetrics());
+
+        // Orders journal.
+        AdminServer.writeGauge(out, "cross_journal_entries", "Entries of the orders journal.", DBOrdersInterface.getJournalEntries());
+        AdminServer.writeGauge(out, "cross_journal_lag_entries", "Entries of the orders journal not covered by the latest order book snapshot, replayed by a restart.", DBOrdersInterface.getJournalLag());
+
+        // Order book depth.
+        OrderBook orderBook = OrderBook.getMainOrderBook();
+        if (orderBook != null) {
+            OrderBookDepth depth = orderBook.getDepth(METRICS_BOOK_LEVELS);
+            Metrics.writeFamily(out, "cross_book_levels", "gauge", "Price levels of the order book, by side.");
+            Metrics.writeSample(out, "cross_book_levels", "side=\"ask\"", depth.getAskLevels());
+            Metrics.writeSample(out, "cross_book_levels", "side=\"bid\"", depth.getBidLevels());
+            Metrics.writeFamily(out, "cross_book_depth_quantity", "gauge", "Quantity of the best " + METRICS_BOOK_LEVELS + " price levels of the order book, by side.");
+            Metrics.writeSample(out, "cross_book_depth_quantity", "side=\"ask\"", depth.getAsksQuantity());
+            Metrics.writeSample(out, "cross_book_depth_quantity", "side=\"bid\"", depth.getBidsQuantity());
+            Metrics.writeFamily(out, "cross_book_best_price", "gauge", "Best price of the order book, by side, absent if the side is empty.");
+            if (depth.getBestAsk() != null) {
+                Metrics.writeSample(out, "cross_book_best_price", "side=\"ask\"", depth.getBestAsk());
+            }
+            if (depth.getBestBid() != null) {
+                Metrics.writeSample(out, "cross_book_best_price", "side=\"bid\"", depth.getBestBid());
+            }
+        }
+
+        AdminServer.send(exchange, 200, "text/plain; version=0.0.4; charset=utf-8", out.toString());
+
+    }
+    private void handleBook(HttpExchange exchange) throws IOException {
+
+        if (!AdminServer.checkMethod(exchange)) {
+            return;
+        }
+
+        int levels = DEFAULT_BOOK_LEVELS;
+        String query = exchange.getRequestURI().getQuery();
+        if (query != null) {
+            for (String parameter : query.split("&")) {
+                if (!parameter.startsWith("levels=")) {
+                    continue;
+                }
+                try {
+                    levels = Integer.parseInt(parameter.substring("levels=".length()));
+                } catch (NumberFormatException ex) {
+                    levels = -1;
+                }
+                if (levels < 1 || levels > MAX_BOOK_LEVELS) {
+                    AdminServer.send(exchange, 400, "text/plain; charset=utf-8", "The levels must be between 1 and " + MAX_BOOK_LEVELS + ".\n");
+                    return;
+                }
+            }
+        }
+
+        OrderBook orderBook = OrderBook.getMainOrderBook();
+        if (orderBook == null) {
+            AdminServer.send(exchange, 503, "text/plain; charset=utf-8", "Order book not initialized.\n");
+            return;
+        }
+
+        // Copied with the lock, rendered without.
+        OrderBookDepth depth = orderBook.getDepth(levels);
+        AdminServer.send(exchange, 200, "application/json; charset=utf-8", depth.toJSONString());
+
+    }
+
+    // SUPPORT METHODS
+    // Only GET and HEAD, the others are answered with 405.
+    private static Boolean checkMethod(HttpExchange exchange) throws IOException {
+
+        String method = exchange.getRequestMethod();
+        if (method.equals("GET") || method.equals("HEAD")) {
+            return true;
+        }
+
+        exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+        AdminServer.send(exchange, 405, "text/plain; charset=utf-8", "Method not allowed.\n");
+        return false;
+
+    }
+    private static void send(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        try (exchange) {
+            if (exchange.getRequestMethod().equals("HEAD")) {
+                exchange.sendResponseHeaders(status, -1);
+            } else {
+                exchange.sendResponseHeaders(status, bytes.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(bytes);
+                }
+            }
+        }
+
+    }
+    private static void writeGauge(StringBuilder out, String name, String help, long value) {
+
+        Metrics.writeFamily(out, name, "gauge", help);
+        Metrics.writeSample(out, name, null, value);
+
+    }
+    // The metrics of the server's components, the ones ending with _total are counters.
+    private static void writeMetrics(StringBuilder out, LinkedHashMap<String, Long> metrics) {
+
+        for (Map.Entry<String, Long> metric : metrics.entrySet()) {
+            String name = "cross_" + metric.getKey();
+            Metrics.writeFamily(out, name, metric.getKey().endsWith("_total") ? "counter" : "gauge", metric.getKey().replace('_', ' ') + ".");
+            Metrics.writeSample(out, name, null, metric.getValue());
+        }
+
+    }
+
+}
@@ -1,5 +1,8 @@
 package cross.server;
 
+import cross.api.binary.BinaryFrame;
+import cross.api.binary.BinaryProtocol;
+import cross.api.notifications.Trade;
 import cross.api.requests.Request;
 import cross.api.requests.orders.CancelRequest;
 import cross.api.requests.orders.CreateRequest;
@@ -12,10 +15,18 @@ import cross.api.responses.ResponseCode.ResponseContent;
 import cross.api.responses.ResponseCode.ResponseType;
 import cross.api.responses.orders.CancelResponse;
 import cross.api.responses.orders.ExecutionResponse;
+import cross.api.responses.orders.Balance;
+import cross.api.responses.orders.BalancesResponse;
+import cross.api.responses.orders.MyTradesResponse;
+import cross.api.responses.orders.OpenOrdersResponse;
 import cross.api.responses.pricehistory.PriceHistoryResponse;
 import cross.api.responses.user.UserResponse;
 import cross.exceptions.InvalidOrder;
 import cross.exceptions.InvalidUser;
+import cross.logging.Log;
+import cross.logging.Log.Category;
+import cross.metrics.Metrics;
+import cross.metrics.Metrics.Stage;
 import cross.orderbook.OrderBook;
 import cross.orders.LimitOrder;
 import cross.orders.MarketOrder;
@@ -26,18 +37,25 @@ import cross.types.Currency;
 import cross.types.Quantity;
 import cross.types.price.PriceType;
 import cross.types.price.SpecificPrice;
+import cross.users.Session;
 import cross.users.User;
 import cross.users.db.Users;
+import cross.utils.AdmissionControl;
+import cross.utils.ByteBufferPool;
 import cross.utils.ClientActionsUtils;
 import cross.utils.ClientActionsUtils.ClientActions;
+import cross.utils.DebugLogger;
+import cross.utils.TokenBucket;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
-import java.util.NoSuchElementException;
-import java.util.Scanner;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedList;
 
 /**
  *
@@ -47,14 +65,35 @@ import java.util.Scanner;
  * This thread is started after a new client connection acceptance by the AcceptThread class.
  * This thread is then submitted to CachedThreadPool to be executed by the AcceptThread.
  *
+ * With the NIO transport the class is not run as a thread, each NioConnection uses it only for its requests handling logic.
+ * See handleRequest() and closeSession().
+ *
+ * The protocol of the client, the JSON lines or the binary frames (see BinaryProtocol), is detected by the first byte received.
+ *
+ * With the "virtual" transport this thread is a virtual thread, so its requests path must not pin the carrier thread.
+ * The shared locks on it (the order book and its lines, the orders and users databases and their files) are ReentrantLock and not monitors.
+ * A virtual thread waiting for them, or doing the files I/O holding them, parks or blocks without pinning its carrier thread.
+ * The monitors of the orders and the users are held only for short in-memory copies and updates, never around I/O.
+ *
  * @version 1.0
  * @author Giulio Nisi
  *
  * @see AcceptThread
+ * @see NioConnection
+ * @see BinaryProtocol
  *
  */
 class ClientThread implements Runnable {
 
+    // Size of the buffers of the socket's streams, and initial size of the line buffer, in bytes.
+    // Small, since with the virtual threads there could be many thousands of idle clients, each with its buffers on the heap.
+    // The requests are short JSONs, and a longer write skips the buffer.
+    private static final int STREAM_BUFFER_SIZE = 1024;
+    private static final int LINE_BUFFER_SIZE = 256;
+
+    // Max length of a request line, in bytes, over it the connection is closed.
+    private static final int MAX_LINE_BYTES = 1024 * 1024;
+
     // Specific client's socket. Will not change, so it's final.
     private final Socket clientSocket;
 
@@ -66,25 +105,63 @@ class ClientThread implements Runnable {
     private BufferedInputStream bin = null;
     private BufferedOutputStream bout = null;
 
+    // Buffer of the request line being read, reused for all the lines of the client.
+    private byte[] lineBuffer = new byte[LINE_BUFFER_SIZE];
+    // Array the direct buffers of the responses are copied in, to write them in the socket's stream, reused for all the responses.
+    private final byte[] writeArray = new byte[STREAM_BUFFER_SIZE];
+
+    // Session bound at the login, null if no user is logged in with this client.
+    // Checking the authorization is a read of this field, without looking up the users.
+    private Session session = null;
+
+    // Rate limiter shared by all the clients, and the token bucket of this connection, null if the connections are not limited.
+    private final RateLimiter rateLimiter;
+    // Admission control shared by all the clients, for the requests in the engine.
+    private final AdmissionControl admissionControl;
+    private final TokenBucket connectionBucket;
+    // Pool of the responses' buffers, shared by all the clients.
+    private final ByteBufferPool bufferPool;
+    // Requests of this connection throttled by the rate limits.
+    private Long throttledRequests = 0L;
+
+    // If the client sent the exit command.
+    private Boolean exited = false;
+
+    // If the server is shutting down and this thread must end after its current request, and if a request is being handled.
+    // Guarded by the thread itself, so a request read while draining is never handled.
+    private Boolean draining = false;
+    private Boolean busy = false;
 
     /**
      *
      * Constructor of the class.
      *
      * @param clientSocket The socket of the client that this thread will handle.
-     * @param server The server that this thread belongs to.
+     * @param rateLimiter The rate limiter of the server, shared by all the clients.
+     * @param admissionControl The admission control of the server, shared by all the clients.
+     * @param bufferPool The pool of the responses' buffers, shared by all the clients.
      *
-     * @throws NullPointerException If the client's socket is null.
+     * @throws NullPointerException If the client's socket, the rate limiter, the admission control or the pool are null.
      *
      */
-    public ClientThread(Socket clientSocket) throws NullPointerException {
+    public ClientThread(Socket clientSocket, RateLimiter rateLimiter, AdmissionControl admissionControl, ByteBufferPool bufferPool) throws NullPointerException {
 
 
         // Null check.
         if (clientSocket == null)
             throw new NullPointerException("Client's socket in the client's thread cannot be null.");
+        if (rateLimiter == null)
+            throw new NullPointerException("Rate limiter in the client's thread cannot be null.");
+        if (admissionControl == null)
+            throw new NullPointerException("Admission control in the client's thread cannot be null.");
+        if (bufferPool == null)
+            throw new NullPointerException("Buffer pool in the client's thread cannot be null.");
 
         this.clientSocket = clientSocket;
+        this.rateLimiter = rateLimiter;
+        this.admissionControl = admissionControl;
+        this.connectionBucket = rateLimiter.newConnectionBucket();
+        this.bufferPool = bufferPool;
 
     }
 
@@ -92,7 +169,7 @@ class ClientThread implements Runnable {
     @Override
     public void run() {
 
-        System.out.printf("%s thread started successfully.\n", this.toString());
+        Log.debug(Category.NETWORK, "%s thread started successfully.", this.toString());
 
         // Input from extern to our server.
         // Output from our server to extern.
@@ -102,20 +179,20 @@ class ClientThread implements Runnable {
         try {
             this.in = this.clientSocket.getInputStream();
             this.out = this.clientSocket.getOutputStream();
-            this.bin = new BufferedInputStream(this.in);
-            this.bout = new BufferedOutputStream(this.out);
+            this.bin = new BufferedInputStream(this.in, STREAM_BUFFER_SIZE);
+            this.bout = new BufferedOutputStream(this.out, STREAM_BUFFER_SIZE);
         }catch (IOException ex) {
 
             // This is a dediacted thread, so I don't backward the exception, instead I print it and I try to continue with the whole program, but the thread will be terminated.
 
-            System.err.printf("Error while getting input and output streams from client %s:%s. Closing this connection and terminating the thread...\n", this.getClientIP(), this.getClientPort());
+            Log.error(Category.NETWORK, "Error while getting input and output streams from client %s:%s. Closing this connection and terminating the thread...", this.getClientIP(), this.getClientPort());
 
             // Always close the buffered input (the outer) stream first.
             if (this.bin != null) {
                 try {
                     this.bin.close();
                 }catch (IOException ex2) {
-                    System.err.printf("Error while closing buffered input stream from client %s:%s.\n", this.getClientIP(), this.getClientPort());
+                    Log.warn(Category.NETWORK, "Error while closing buffered input stream from client %s:%s.", this.getClientIP(), this.getClientPort());
                 }
             }else{
                 // Maybe an error occurred while creating the buffered input stream, but the input stream is still valid.
@@ -123,7 +200,7 @@ class ClientThread implements Runnable {
                     try {
                         this.in.close();
                     }catch (IOException ex2) {
-                        System.err.printf("Error while closing input stream from client %s:%s.\n", this.getClientIP(), this.getClientPort());
+                        Log.warn(Category.NETWORK, "Error while closing input stream from client %s:%s.", this.getClientIP(), this.getClientPort());
                     }
                 }
             }
@@ -132,7 +209,7 @@ class ClientThread implements Runnable {
                 try {
                     this.bout.close();
                 }catch (IOException ex2) {
-                    System.err.printf("Error while closing buffered output stream from client %s:%s.\n", this.getClientIP(), this.getClientPort());
+                    Log.warn(Category.NETWORK, "Error while closing buffered output stream from client %s:%s.", this.getClientIP(), this.getClientPort());
                 }
             }else{
                 // Maybe an error occurred while creating the buffered output stream, but the output stream is still valid.
@@ -140,7 +217,7 @@ class ClientThread implements Runnable {
                     try {
                         this.out.close();
                     }catch (IOException ex2) {
-                        System.err.printf("Error while closing output stream from client %s:%s.\n", this.getClientIP(), this.getClientPort());
+                        Log.warn(Category.NETWORK, "Error while closing output stream from client %s:%s.", this.getClientIP(), this.getClientPort());
                     }
                 }
             }
@@ -149,7 +226,7 @@ class ClientThread implements Runnable {
                 if (this.clientSocket != null)
                     this.clientSocket.close();
             }catch (IOException ex2) {
-                System.err.printf("Error while closing client socket %s:%s.\n", this.getClientIP(), this.getClientPort());
+                Log.warn(Category.NETWORK, "Error while closing client socket %s:%s.", this.getClientIP(), this.getClientPort());
             }
 
             // Terminate the thread.
@@ -157,460 +234,1001 @@ class ClientThread implements Runnable {
 
         }
 
-        Scanner scanner = null;
-        // No exception should be thrown here, just to avoid the compiler warning.
+        // The first byte received chooses the protocol, without consuming it.
+        Boolean binary = false;
+        try {
+            this.bin.mark(1);
+            binary = this.bin.read() == (BinaryProtocol.MAGIC & 0xFF);
+            this.bin.reset();
+        } catch (IOException ex) {
+            // Left to the reading of the requests.
+        }
+
+        if (binary) {
+            this.serveBinary();
+        } else {
+            this.serveJSON();
+        }
+
+        // to clean notifications.
+        this.closeSession();
+
+        // Disconnect the client.
+
+        // Clean up.
+        Boolean error = false;
+
+        try {
+            this.bin.close();
+        }catch (IOException ex) {
+            error = true;
+            Log.warn(Category.NETWORK, "Error while closing buffered input stream from %s:%s.", this.getClientIP(), this.getClientPort());
+            try {
+                this.in.close();
+            }catch (IOException ex2) {
+                Log.warn(Category.NETWORK, "Error while closing input stream from %s:%s.", this.getClientIP(), this.getClientPort());
+            }
+        }
+
+        try {
+            this.bout.close();
+        }catch (IOException ex) {
+            error = true;
+            Log.warn(Category.NETWORK, "Error while closing buffered output stream from %s:%s.", this.getClientIP(), this.getClientPort());
+            try {
+                this.out.close();
+            }catch (IOException ex2) {
+                Log.warn(Category.NETWORK, "Error while closing output stream from %s:%s.", this.getClientIP(), this.getClientPort());
+            }
+        }
+
         try {
-            scanner = new Scanner(this.bin);
-        } catch (Exception ex) {}
+            this.clientSocket.close();
+        }catch (IOException ex) {
+            error = true;
+            Log.warn(Category.NETWORK, "Error while closing socket from %s:%s.", this.getClientIP(), this.getClientPort());
+        }
+
+        if (!error)
+            Log.debug(Category.NETWORK, "%s closed all resources successfully.", this.toString());
+
+        if (this.throttledRequests > 0)
+            Log.info(Category.NETWORK, "%s had %d requests throttled by the rate limits.", this.toString(), this.throttledRequests);
+
+        // Terminate the thread.
+
+    }
+
+    /**
+     *
+     * Serves the requests of a client of the JSON protocol, the '\n' terminated JSON lines, until it closes the connection or sends the exit command.
+     *
+     */
+    private void serveJSON() {
 
-        while (scanner != null && scanner.hasNextLine()) {
+        while (true) {
 
-            Boolean exit = false;
             String data = null;
             try {
                 // JSONs sent (also the ones received from the client) are always '\n' terminated.
-                data = scanner.nextLine();
+                data = this.readLine();
+            } catch (IOException ex) {
+                // Connection reset or request line too long, or closed by the drain.
+                if (!this.isDraining()) {
+                    Log.warn(Category.NETWORK, "Error while reading from client %s:%s. Closing this connection...", this.getClientIP(), this.getClientPort());
+                }
+                break;
+            }
 
-                if (data == null || data.isEmpty() || data.isBlank()) {
-                    throw new NoSuchElementException("");
+            // Connection closed by the client.
+            if (data == null) break;
+
+            // Nothing received.
+            // Ignoring request.
+            if (data.isBlank()) continue;
+
+            // Read while the server is shutting down, not handled.
+            if (!this.beginRequest()) break;
+
+            Response response = this.handleRequest(data);
+
+            // here to exit before without sending a response in case of exit command.
+            if (this.exited) break;
+
+            // Invalid request, ignored.
+            if (response != null) {
+                long start = Metrics.startTimer();
+                this.writeResponse(response.toJSONBuffer(this.bufferPool, 0).flip());
+                Metrics.recordLatency(Stage.RESPONSE, start);
+            }
+
+            if (!this.endRequest()) break;
+
+        } // End While.
+
+    }
+    /**
+     *
+     * Serves the requests of a client of the binary protocol, until it closes the connection or sends the exit command.
+     *
+     * Answers the client's hello, then reads the frames in the line buffer, decoded in place in a reused frame.
+     * The responses are encoded in buffers of the pool, released after being written.
+     *
+     */
+    private void serveBinary() {
+
+        // The hello, and its answer with the version chosen.
+        try {
+            if (this.bin.readNBytes(this.lineBuffer, 0, BinaryProtocol.HELLO_LENGTH) < BinaryProtocol.HELLO_LENGTH) {
+                return;
+            }
+            byte version = BinaryProtocol.negotiateVersion(this.lineBuffer[1]);
+            this.bout.write(BinaryProtocol.MAGIC);
+            this.bout.write(version);
+            this.bout.flush();
+            if (version == BinaryProtocol.NO_VERSION) {
+                Log.warn(Category.NETWORK, "Binary protocol version %d of client %s:%s not supported. Closing this connection...", this.lineBuffer[1], this.getClientIP(), this.getClientPort());
+                return;
+            }
+        } catch (IOException ex) {
+            Log.warn(Category.NETWORK, "Error while negotiating the binary protocol with client %s:%s. Closing this connection...", this.getClientIP(), this.getClientPort());
+            return;
+        }
+
+        BinaryFrame frame = new BinaryFrame();
+        ByteBuffer frameBuffer = ByteBuffer.wrap(this.lineBuffer).order(ByteOrder.LITTLE_ENDIAN);
+
+        while (true) {
+
+            // A whole frame, its length and the rest.
+            try {
+                if (this.bin.readNBytes(this.lineBuffer, 0, BinaryProtocol.LENGTH_PREFIX) < BinaryProtocol.LENGTH_PREFIX) {
+                    // Connection closed by the client.
+                    break;
                 }
-            } catch (NoSuchElementException ex) {
-                // Nothing received or '\n' NOT received.
-                // Ignoring request.
-                continue;
+                int length = frameBuffer.getInt(0);
+                if (length < 1 || length > BinaryProtocol.MAX_FRAME_LENGTH) {
+                    throw new IOException("Request frame length not valid.");
+                }
+                if (BinaryProtocol.LENGTH_PREFIX + length > this.lineBuffer.length) {
+                    byte[] larger = new byte[BinaryProtocol.LENGTH_PREFIX + length];
+                    System.arraycopy(this.lineBuffer, 0, larger, 0, BinaryProtocol.LENGTH_PREFIX);
+                    this.lineBuffer = larger;
+                    frameBuffer = ByteBuffer.wrap(this.lineBuffer).order(ByteOrder.LITTLE_ENDIAN);
+                }
+                if (this.bin.readNBytes(this.lineBuffer, BinaryProtocol.LENGTH_PREFIX, length) < length) {
+                    break;
+                }
+                frameBuffer.clear().limit(BinaryProtocol.LENGTH_PREFIX + length);
+            } catch (IOException ex) {
+                // Connection reset or request frame not valid, or closed by the drain.
+                if (!this.isDraining()) {
+                    Log.warn(Category.NETWORK, "Error while reading from client %s:%s. Closing this connection...", this.getClientIP(), this.getClientPort());
+                }
+                break;
             }
 
-            System.out.println("DEBUG: " + data);
-
-            Request req = null;
-            ClientActions action = null;
-            Response response = null;
-            User user = null;
-            RegisterLoginRequest registerLoginRequest = null;
-            PriceType priceType = null;
-            SpecificPrice specificPrice = null;
-            Quantity quantity = null;
-            CreateRequest createRequest = null;
-            OrderBook orderBook = OrderBook.getOrderBookByCurrencies(Currency.getDefaultPrimaryCurrency(), Currency.getDefaultSecondaryCurrency());
-            if (orderBook == null) {
-                orderBook = OrderBook.getMainOrderBook();
+            // Read while the server is shutting down, not handled.
+            if (!this.beginRequest()) break;
+
+            Response response;
+            try {
+                BinaryProtocol.getFrame(frameBuffer, frame);
+                response = switch (frame.getType()) {
+                    case BinaryProtocol.TYPE_JSON -> this.handleRequest(frame.getJSON());
+                    case BinaryProtocol.TYPE_CREATE, BinaryProtocol.TYPE_CANCEL -> this.handleRequest(BinaryProtocol.toRequest(frame));
+                    default -> throw new IllegalArgumentException("The binary frame is not a request.");
+                };
+            } catch (IllegalArgumentException ex) {
+                Log.debug(Category.NETWORK, "Invalid request received from client.");
+                response = null;
+            }
+
+            // A buffer grown by a long frame is not kept.
+            if (this.lineBuffer.length > STREAM_BUFFER_SIZE * 64) {
+                this.lineBuffer = new byte[LINE_BUFFER_SIZE];
+                frameBuffer = ByteBuffer.wrap(this.lineBuffer).order(ByteOrder.LITTLE_ENDIAN);
+            }
+
+            // here to exit before without sending a response in case of exit command.
+            if (this.exited) break;
+
+            // Invalid request, ignored.
+            if (response != null) {
+                long start = Metrics.startTimer();
+                this.writeResponse(BinaryProtocol.encodeResponse(response, this.bufferPool));
+                Metrics.recordLatency(Stage.RESPONSE, start);
             }
-            Currency primaryCurrency = orderBook.getPrimaryCurrency();
-            if (primaryCurrency == null) {
-                primaryCurrency = Currency.getDefaultPrimaryCurrency();
+
+            if (!this.endRequest()) break;
+
+        } // End While.
+
+    }
+    /**
+     *
+     * Writes an encoded response in the buffered output stream of the socket, then releases its buffer to the pool.
+     *
+     * The stream is flushed only if no other request is already received, so the responses of pipelined requests are sent together.
+     *
+     * @param encoded A buffer of the pool with the response, in read mode.
+     *
+     */
+    private void writeResponse(ByteBuffer encoded) {
+
+        try {
+            if (encoded.hasArray()) {
+                this.bout.write(encoded.array(), encoded.arrayOffset() + encoded.position(), encoded.remaining());
+            } else {
+                // A direct buffer, the streams of the socket need an array, copied in bulk in a reused one.
+                while (encoded.hasRemaining()) {
+                    int length = Math.min(encoded.remaining(), this.writeArray.length);
+                    encoded.get(this.writeArray, 0, length);
+                    this.bout.write(this.writeArray, 0, length);
+                }
             }
-            Currency secondaryCurrency = orderBook.getSecondaryCurrency();
-            if (secondaryCurrency == null) {
-                secondaryCurrency = Currency.getDefaultSecondaryCurrency();
+            if (this.bin.available() == 0) {
+                this.bout.flush();
             }
-            ResponseContent responseContent = null;
-            ResponseType responseType = null;
-            ClientActions clientAction = null;
-            ResponseCode responseCode = null;
-            UserResponse userResponse = null;
-            ExecutionResponse executionResponse = null;
+        } catch (IOException ex) {
+            Log.warn(Category.NETWORK, "Error while sending response to client %s:%s. Continuing...", this.getClientIP(), this.getClientPort());
+        } finally {
+            this.bufferPool.release(encoded);
+        }
+
+    }
+
+    /**
+     *
+     * Handles a single request of the client, a line without the '\n' terminator, and builds the response to send back.
+     *
+     * The handling doesn't depend on how the line is read and the response is written.
+     * It's used by the run() method of this thread, with the blocking streams of the socket.
+     * And by the NIO transport (see NioReactorThread), that reads the lines with a selector and calls this method from a worker thread.
+     * The requests of the same client must not be handled concurrently.
+     *
+     * A request throttled by the rate limits, or rejected by the admission control when the engine is full, is answered without being parsed.
+     *
+     * @param data The request line, in JSON.
+     *
+     * @return The response to send back, or null if the request is ignored (blank or invalid) or it's the exit command (see isExited()).
+     *
+     */
+    Response handleRequest(String data) {
+
+        // Blank lines are ignored.
+        if (data == null || data.isBlank()) {
+            return null;
+        }
+
+        // Rate limits, checked on the raw line before parsing it, so a throttled request never reaches the order book nor the disk.
+        if (!this.acquireRateLimits()) {
+            return ClientThread.rateLimitResponse(ClientThread.peekRequestId(data));
+        }
+
+        // Admission control, checked before parsing the request, so an overloaded engine rejects it without queuing it on its locks.
+        if (!this.admissionControl.tryEnterEngine()) {
+            return AdmissionControl.serverBusyResponse(ClientThread.peekRequestId(data));
+        }
+        try {
+            // Parsed once, the credentials not valid are flagged in the request.
+            Request req;
+            long start = Metrics.startTimer();
             try {
                 req = new Request(data, true);
-                action = ClientActionsUtils.actionFromString(req.getOperation());
             } catch (IllegalArgumentException | IllegalStateException | NullPointerException | InvalidUser ex) {
-                System.out.println("Invalid request received from client.");
-                continue;
+                Log.debug(Category.NETWORK, "Invalid request received from client.");
+                return null;
+            } finally {
+                Metrics.recordLatency(Stage.PARSE, start);
             }
-            switch (action) {
-                case REGISTER:
-                    responseType = ResponseType.REGISTER;
-                    clientAction = ClientActions.REGISTER;
-                    try {
-                        req = new Request(data, false);
-                        action = ClientActionsUtils.actionFromString(req.getOperation());
-                        try {
-                            registerLoginRequest = (RegisterLoginRequest) req.getValues();
-                            user = registerLoginRequest.getUser();
-                            Users.addUser(user);
-                            responseContent = ResponseContent.OK;
-                        }catch (InvalidUser ex) {
-                            responseContent = ResponseContent.USERNAME_NOT_AVAILABLE;
-                        } catch (NoSuchMethodException ex) {
-                            responseContent = ResponseContent.OTHER_ERROR;
-                        } catch (IOException ex) {
-                            responseContent = ResponseContent.OTHER_ERROR;
-                        } catch (IllegalStateException ex) {
-                            responseContent = ResponseContent.OTHER_ERROR;
-                        }
-                    } catch (IllegalArgumentException | IllegalStateException | NullPointerException ex) {
-                        responseContent = ResponseContent.OTHER_ERROR;
-                    } catch (InvalidUser ex) {
-                        responseContent = ResponseContent.INVALID_PASSWORD;
-                    }
-                    responseCode = new ResponseCode(responseType, responseContent);
-                    userResponse = new UserResponse(responseCode, responseCode.getDefaultMessage());
-                    response = new Response(userResponse, clientAction);
+            return this.executeRequest(req);
+        } finally {
+            this.admissionControl.exitEngine();
+        }
 
-                    break;
-                case LOGIN:
-                    responseType = ResponseType.LOGIN;
-                    clientAction = ClientActions.LOGIN;
+    }
+    /**
+     *
+     * Handles a single request of the client already decoded, from a binary frame, and builds the response to send back.
+     *
+     * As handleRequest(String), with the same rate limits and admission control.
+     *
+     * @param request The request.
+     *
+     * @return The response to send back, or null if the request is ignored (invalid) or it's the exit command (see isExited()).
+     *
+     * @throws NullPointerException If the request is null.
+     *
+     */
+    Response handleRequest(Request request) throws NullPointerException {
+
+        // Null check.
+        if (request == null)
+            throw new NullPointerException("Request in the client's thread cannot be null.");
+
+        if (!this.acquireRateLimits()) {
+            return ClientThread.rateLimitResponse(request.getRequestId());
+        }
+
+        if (!this.admissionControl.tryEnterEngine()) {
+            return AdmissionControl.serverBusyResponse(request.getRequestId());
+        }
+        try {
+            return this.executeRequest(request);
+        } finally {
+            this.admissionControl.exitEngine();
+        }
+
+    }
+    /**
+     *
+     * Executes a request admitted by the rate limits and the admission control, building its response.
+     *
+     * @param req The request, parsed.
+     *
+     * @return The response to send back, or null if the request is invalid or it's the exit command.
+     *
+     */
+    private Response executeRequest(Request req) {
+
+        long start = Metrics.startTimer();
+        try {
+            return this.execute(req);
+        } finally {
+            Metrics.recordLatency(Stage.EXECUTE, start);
+        }
+
+    }
+    // The execution of a request, its latency is recorded by executeRequest().
+    private Response execute(Request req) {
+
+        Boolean exit = false;
+
+        ClientActions action = null;
+        Response response = null;
+        User user = null;
+        RegisterLoginRequest registerLoginRequest = null;
+        PriceType priceType = null;
+        SpecificPrice specificPrice = null;
+        Quantity quantity = null;
+        CreateRequest createRequest = null;
+        OrderBook orderBook = OrderBook.getOrderBookByCurrencies(Currency.getDefaultPrimaryCurrency(), Currency.getDefaultSecondaryCurrency());
+        if (orderBook == null) {
+            orderBook = OrderBook.getMainOrderBook();
+        }
+        Currency primaryCurrency = orderBook.getPrimaryCurrency();
+        if (primaryCurrency == null) {
+            primaryCurrency = Currency.getDefaultPrimaryCurrency();
+        }
+        Currency secondaryCurrency = orderBook.getSecondaryCurrency();
+        if (secondaryCurrency == null) {
+            secondaryCurrency = Currency.getDefaultSecondaryCurrency();
+        }
+        ResponseContent responseContent = null;
+        ResponseType responseType = null;
+        ClientActions clientAction = null;
+        ResponseCode responseCode = null;
+        UserResponse userResponse = null;
+        ExecutionResponse executionResponse = null;
+        try {
+            action = ClientActionsUtils.actionFromString(req.getOperation());
+        } catch (IllegalArgumentException | IllegalStateException | NullPointerException ex) {
+            Log.debug(Category.NETWORK, "Invalid request received from client.");
+            return null;
+        }
+        Metrics.countRequest(action);
+
+        // Echoed back in the response.
+        Long requestId = req.getRequestId();
+
+        switch (action) {
+            case REGISTER:
+                responseType = ResponseType.REGISTER;
+                clientAction = ClientActions.REGISTER;
+                try {
+                    if (req.hasInvalidUser())
+                        throw new InvalidUser("The username or password in the request are not valid.");
                     try {
-                        req = new Request(data, false);
-                        action = ClientActionsUtils.actionFromString(req.getOperation());
-                        try {
-                            registerLoginRequest = (RegisterLoginRequest) req.getValues();
-                            user = registerLoginRequest.getUser();
-                            Users.login(user, this.clientSocket);
-                            responseContent = ResponseContent.OK;
-                        }catch (InvalidUser ex) {
-                            responseContent = ResponseContent.INVALID_USERNAME_PASSWORD_MATCH_OR_USERNAME_NOT_EXIST;
-                        } catch (IllegalStateException ex) {
-                            responseContent = ResponseContent.OTHER_ERROR;
-                        } catch (IllegalAccessException  ex) {
-                            responseContent = ResponseContent.USER_ALREADY_LOGGED_IN;
-                        }
-                    } catch (IllegalArgumentException | IllegalStateException | NullPointerException ex) {
+                        registerLoginRequest = (RegisterLoginRequest) req.getValues();
+                        user = registerLoginRequest.getUser();
+                        Users.addUser(user);
+                        responseContent = ResponseContent.OK;
+                    }catch (InvalidUser ex) {
+                        responseContent = ResponseContent.USERNAME_NOT_AVAILABLE;
+                    } catch (NoSuchMethodException ex) {
                         responseContent = ResponseContent.OTHER_ERROR;
-                    } catch (InvalidUser ex) {
+                    } catch (IOException ex) {
+                        responseContent = ResponseContent.OTHER_ERROR;
+                    } catch (IllegalStateException ex) {
                         responseContent = ResponseContent.OTHER_ERROR;
                     }
-                    responseCode = new ResponseCode(responseType, responseContent);
-                    userResponse = new UserResponse(responseCode, responseCode.getDefaultMessage());
-                    response = new Response(userResponse, clientAction);
-
-                    break;
-                case UPDATE_CREDENTIALS:
-                    responseType = ResponseType.UPDATE_CREDENTIALS;
-                    clientAction = ClientActions.UPDATE_CREDENTIALS;
+                } catch (IllegalArgumentException | IllegalStateException | NullPointerException ex) {
+                    responseContent = ResponseContent.OTHER_ERROR;
+                } catch (InvalidUser ex) {
+                    responseContent = ResponseContent.INVALID_PASSWORD;
+                }
+                responseCode = new ResponseCode(responseType, responseContent);
+                userResponse = new UserResponse(responseCode, responseCode.getDefaultMessage());
+                response = new Response(userResponse, clientAction);
+
+                break;
+            case LOGIN:
+                responseType = ResponseType.LOGIN;
+                clientAction = ClientActions.LOGIN;
+                try {
+                    if (req.hasInvalidUser())
+                        throw new InvalidUser("The username or password in the request are not valid.");
                     try {
-                        req = new Request(data, false);
-                        action = ClientActionsUtils.actionFromString(req.getOperation());
-                        try {
-                            UpdateCredentialsRequest updateCredentialsRequest = (UpdateCredentialsRequest) req.getValues();
-                            User userOld = updateCredentialsRequest.getUserOld();
-                            User userNew = updateCredentialsRequest.getUser();
-                            if (Users.isLoggedIn(this.clientSocket) == true) {
-                                responseContent = ResponseContent.USER_CURRENTLY_LOGGED_IN;
-                            } else {
-                                Users.updateUser(userOld, userNew);
-                                responseContent = ResponseContent.OK;
-                            }
-                        }catch (InvalidUser | IllegalAccessException ex) {
-                            responseContent = ResponseContent.INVALID_USERNAME_PASSWORD_MATCH_OR_USERNAME_NOT_EXIST;
-                        } catch (NoSuchMethodException ex) {
-                            responseContent = ResponseContent.OTHER_ERROR;
-                        } catch (IOException ex) {
-                            responseContent = ResponseContent.OTHER_ERROR;
-                        } catch (IllegalStateException ex) {
-                            responseContent = ResponseContent.OTHER_ERROR;
-                        } catch (IllegalArgumentException ex) {
-                            responseContent = ResponseContent.OTHER_ERROR;
-                        } catch (SecurityException ex) {
-                            responseContent = ResponseContent.NEW_PASSWORD_EQUAL_OLD;
-                        } catch (RuntimeException ex) {
-                            responseContent = ResponseContent.OTHER_ERROR;
-                        }
-                    } catch (IllegalArgumentException | IllegalStateException | NullPointerException ex) {
+                        registerLoginRequest = (RegisterLoginRequest) req.getValues();
+                        user = registerLoginRequest.getUser();
+                        this.session = Users.login(user, this.clientSocket);
+                        responseContent = ResponseContent.OK;
+                    }catch (InvalidUser ex) {
+                        responseContent = ResponseContent.INVALID_USERNAME_PASSWORD_MATCH_OR_USERNAME_NOT_EXIST;
+                    } catch (IllegalStateException ex) {
                         responseContent = ResponseContent.OTHER_ERROR;
-                    } catch (InvalidUser ex) {
-                        responseContent = ResponseContent.INVALID_NEW_PASSWORD;
+                    } catch (IllegalAccessException  ex) {
+                        responseContent = ResponseContent.USER_ALREADY_LOGGED_IN;
                     }
-                    responseCode = new ResponseCode(responseType, responseContent);
-                    userResponse = new UserResponse(responseCode, responseCode.getDefaultMessage());
-                    response = new Response(userResponse, clientAction);
-
-                    break;
-                case LOGOUT:
-                    responseType = ResponseType.LOGOUT;
-                    clientAction = ClientActions.LOGOUT;
+                } catch (IllegalArgumentException | IllegalStateException | NullPointerException ex) {
+                    responseContent = ResponseContent.OTHER_ERROR;
+                } catch (InvalidUser ex) {
+                    responseContent = ResponseContent.OTHER_ERROR;
+                }
+                responseCode = new ResponseCode(responseType, responseContent);
+                userResponse = new UserResponse(responseCode, responseCode.getDefaultMessage());
+                response = new Response(userResponse, clientAction);
+
+                break;
+            case UPDATE_CREDENTIALS:
+                responseType = ResponseType.UPDATE_CREDENTIALS;
+                clientAction = ClientActions.UPDATE_CREDENTIALS;
+                try {
+                    if (req.hasInvalidUser())
+                        throw new InvalidUser("The username or the new password or the old password in the request are not valid.");
                     try {
-                        req = new Request(data, false);
-                        action = ClientActionsUtils.actionFromString(req.getOperation());
-                        try {
-                            // LogoutRequest logoutRequest = (LogoutRequest) req.getValues();
-                            if (Users.isLoggedIn(this.clientSocket)) {
-                                user = Users.getLoggedInUser(this.clientSocket);
-                                // the user log out but could login back, the tcp connection is still open.
-                                Users.logout(user, this.clientSocket);
-                                responseContent = ResponseContent.OK;
-                            } else {
-                                responseContent = ResponseContent.USER_NOT_LOGGED_IN_OR_OTHER_ERROR;
-                            }
-                        }catch (IllegalArgumentException ex) {
-                            responseContent = ResponseContent.USER_NOT_LOGGED_IN_OR_OTHER_ERROR;
+                        UpdateCredentialsRequest updateCredentialsRequest = (UpdateCredentialsRequest) req.getValues();
+                        User userOld = updateCredentialsRequest.getUserOld();
+                        User userNew = updateCredentialsRequest.getUser();
+                        if (this.session != null) {
+                            responseContent = ResponseContent.USER_CURRENTLY_LOGGED_IN;
+                        } else {
+                            Users.updateUser(userOld, userNew);
+                            responseContent = ResponseContent.OK;
                         }
-                    } catch (IllegalArgumentException | IllegalStateException | NullPointerException ex) {
-                        responseContent = ResponseContent.USER_NOT_LOGGED_IN_OR_OTHER_ERROR;
-                    } catch (InvalidUser ex) {
-                        responseContent = ResponseContent.USER_NOT_LOGGED_IN_OR_OTHER_ERROR;
-                    }
-                    responseCode = new ResponseCode(responseType, responseContent);
-                    userResponse = new UserResponse(responseCode, responseCode.getDefaultMessage());
-                    response = new Response(userResponse, clientAction);
-                    
-                    break;  
-                case INSERT_MARKET_ORDER:
-                    try {
-                        req = new Request(data, false);
-                        action = ClientActionsUtils.actionFromString(req.getOperation());
-                    } catch (IllegalArgumentException | IllegalStateException | NullPointerException ex) {
+                    }catch (InvalidUser | IllegalAccessException ex) {
+                        responseContent = ResponseContent.INVALID_USERNAME_PASSWORD_MATCH_OR_USERNAME_NOT_EXIST;
+                    } catch (NoSuchMethodException ex) {
+                        responseContent = ResponseContent.OTHER_ERROR;
+                    } catch (IOException ex) {
+                        responseContent = ResponseContent.OTHER_ERROR;
+                    } catch (IllegalStateException ex) {
+                        responseContent = ResponseContent.OTHER_ERROR;
+                    } catch (IllegalArgumentException ex) {
                         responseContent = ResponseContent.OTHER_ERROR;
-                    } catch (InvalidUser ex) {
+                    } catch (SecurityException ex) {
+                        responseContent = ResponseContent.NEW_PASSWORD_EQUAL_OLD;
+                    } catch (RuntimeException ex) {
                         responseContent = ResponseContent.OTHER_ERROR;
                     }
-                    createRequest = (CreateRequest) req.getValues();
-                    MarketOrder marketOrder = null;
-                    priceType = createRequest.getType();
-                    specificPrice = createRequest.getPrice();
-                    quantity = createRequest.getSize();
-                    marketOrder = new MarketOrder(priceType, primaryCurrency, secondaryCurrency, quantity);
+                } catch (IllegalArgumentException | IllegalStateException | NullPointerException ex) {
+                    responseContent = ResponseContent.OTHER_ERROR;
+                } catch (InvalidUser ex) {
+                    responseContent = ResponseContent.INVALID_NEW_PASSWORD;
+                }
+                responseCode = new ResponseCode(responseType, responseContent);
+                userResponse = new UserResponse(responseCode, responseCode.getDefaultMessage());
+                response = new Response(userResponse, clientAction);
+
+                break;
+            case LOGOUT:
+                responseType = ResponseType.LOGOUT;
+                clientAction = ClientActions.LOGOUT;
+                try {
+                    // LogoutRequest logoutRequest = (LogoutRequest) req.getValues();
+                    if (this.session != null) {
+                        user = this.session.getUser();
+                        // the user log out but could login back, the tcp connection is still open.
+                        Users.logout(user, this.clientSocket);
+                        this.session = null;
+                        responseContent = ResponseContent.OK;
+                    } else {
+                        responseContent = ResponseContent.USER_NOT_LOGGED_IN_OR_OTHER_ERROR;
+                    }
+                } catch (IllegalArgumentException | IllegalStateException | NullPointerException ex) {
+                    responseContent = ResponseContent.USER_NOT_LOGGED_IN_OR_OTHER_ERROR;
+                }
+                responseCode = new ResponseCode(responseType, responseContent);
+                userResponse = new UserResponse(responseCode, responseCode.getDefaultMessage());
+                response = new Response(userResponse, clientAction);
+                
+                break;  
+            case INSERT_MARKET_ORDER:
+                createRequest = (CreateRequest) req.getValues();
+                MarketOrder marketOrder = null;
+                priceType = createRequest.getType();
+                specificPrice = createRequest.getPrice();
+                quantity = createRequest.getSize();
+                marketOrder = new MarketOrder(priceType, primaryCurrency, secondaryCurrency, quantity);
 
-                    try {
-                        if (Users.isLoggedIn(clientSocket)) {
-                            User userLogged = Users.getLoggedInUser(clientSocket);
-                            marketOrder.setUser(userLogged);
-                            Boolean executed = false;
-                            if (marketOrder.getQuantity().getValue() > 0) {
-                                try {
-                                    executed = orderBook.executeOrder(marketOrder);
-                                } catch (InvalidOrder ex) {
-                                    marketOrder.setId(-1);
-                                }
-                                System.out.println("DEBUG: Market order executed: " + executed);
-                                if (!executed) {
-                                    marketOrder.setId(-1);
-                                }
-                            } else {
+                try {
+                    if (this.session != null) {
+                        User userLogged = this.session.getUser();
+                        marketOrder.setUser(userLogged);
+                        Boolean executed = false;
+                        if (marketOrder.getQuantity().getValue() > 0) {
+                            try {
+                                executed = orderBook.executeOrder(marketOrder);
+                            } catch (InvalidOrder ex) {
+                                marketOrder.setId(-1);
+                            }
+                            if (!executed) {
                                 marketOrder.setId(-1);
                             }
                         } else {
                             marketOrder.setId(-1);
                         }
-                    } catch (IllegalArgumentException ex) {
-                    } catch (IllegalStateException ex) {
-                    } catch (NullPointerException ex) {
-                    }
-                    
-                    executionResponse = new ExecutionResponse(marketOrder);
-                    response = new Response(executionResponse, clientAction);
-
-                    break;
-                case INSERT_LIMIT_ORDER:
-                    try {
-                        req = new Request(data, false);
-                        action = ClientActionsUtils.actionFromString(req.getOperation());
-                    } catch (IllegalArgumentException | IllegalStateException | NullPointerException ex) {
-                        responseContent = ResponseContent.OTHER_ERROR;
-                    } catch (InvalidUser ex) {
-                        responseContent = ResponseContent.OTHER_ERROR;
+                    } else {
+                        marketOrder.setId(-1);
                     }
-                    createRequest = (CreateRequest) req.getValues();
-                    LimitOrder limitOrder = null;
-                    priceType = createRequest.getType();
-                    specificPrice = createRequest.getPrice();
-                    quantity = createRequest.getSize();
+                } catch (IllegalArgumentException ex) {
+                } catch (IllegalStateException ex) {
+                } catch (NullPointerException ex) {
+                }
+                
+                executionResponse = new ExecutionResponse(marketOrder);
+                response = new Response(executionResponse, clientAction);
+
+                break;
+            case INSERT_LIMIT_ORDER:
+                createRequest = (CreateRequest) req.getValues();
+                LimitOrder limitOrder = null;
+                priceType = createRequest.getType();
+                specificPrice = createRequest.getPrice();
+                quantity = createRequest.getSize();
 
-                    try {
-                        limitOrder = new LimitOrder(specificPrice, quantity, false);
-                        if (Users.isLoggedIn(clientSocket)) {
-                            User userLogged = Users.getLoggedInUser(clientSocket);
-                            limitOrder.setUser(userLogged);
-                            if (limitOrder.getQuantity().getValue() > 0) {
-                                orderBook.executeOrder(limitOrder);
-                            } else {
-                                limitOrder.setId(-1);
-                            }
+                try {
+                    limitOrder = new LimitOrder(specificPrice, quantity, false);
+                    if (this.session != null) {
+                        User userLogged = this.session.getUser();
+                        limitOrder.setUser(userLogged);
+                        if (limitOrder.getQuantity().getValue() > 0) {
+                            orderBook.executeOrder(limitOrder);
                         } else {
                             limitOrder.setId(-1);
                         }
-                    } catch (IllegalArgumentException ex) {
-                        limitOrder = new LimitOrder(specificPrice, quantity, true);
-                        limitOrder.setId(-1);
-                    } catch (IllegalStateException ex) {
-                        limitOrder = new LimitOrder(specificPrice, quantity, true);
-                        limitOrder.setId(-1);
-                    } catch (NullPointerException ex) {
-                        limitOrder = new LimitOrder(specificPrice, quantity, true);
+                    } else {
                         limitOrder.setId(-1);
                     }
-                    
-                    executionResponse = new ExecutionResponse(limitOrder);
-                    response = new Response(executionResponse, clientAction);
-
-                    break;
-                case INSERT_STOP_ORDER:
-                    try {
-                        req = new Request(data, false);
-                        action = ClientActionsUtils.actionFromString(req.getOperation());
-                    } catch (IllegalArgumentException | IllegalStateException | NullPointerException ex) {
-                        responseContent = ResponseContent.OTHER_ERROR;
-                    } catch (InvalidUser ex) {
-                        responseContent = ResponseContent.OTHER_ERROR;
-                    }
-                    createRequest = (CreateRequest) req.getValues();
-                    StopOrder stopOrder = null;
-                    priceType = createRequest.getType();
-                    specificPrice = createRequest.getPrice();
-                    quantity = createRequest.getSize();
+                } catch (IllegalArgumentException ex) {
+                    limitOrder = new LimitOrder(specificPrice, quantity, true);
+                    limitOrder.setId(-1);
+                } catch (IllegalStateException ex) {
+                    limitOrder = new LimitOrder(specificPrice, quantity, true);
+                    limitOrder.setId(-1);
+                } catch (NullPointerException ex) {
+                    limitOrder = new LimitOrder(specificPrice, quantity, true);
+                    limitOrder.setId(-1);
+                }
+                
+                executionResponse = new ExecutionResponse(limitOrder);
+                response = new Response(executionResponse, clientAction);
+
+                break;
+            case INSERT_STOP_ORDER:
+                createRequest = (CreateRequest) req.getValues();
+                StopOrder stopOrder = null;
+                priceType = createRequest.getType();
+                specificPrice = createRequest.getPrice();
+                quantity = createRequest.getSize();
 
-                    try {
-                        stopOrder = new StopOrder(specificPrice, quantity, false);
-                        if (Users.isLoggedIn(clientSocket)) {
-                            User userLogged = Users.getLoggedInUser(clientSocket);
-                            stopOrder.setUser(userLogged);
-                            if (stopOrder.getQuantity().getValue() > 0) {
-                                orderBook.executeOrder(stopOrder);
-                            } else {
-                                stopOrder.setId(-1);
-                            }
+                try {
+                    stopOrder = new StopOrder(specificPrice, quantity, false);
+                    if (this.session != null) {
+                        User userLogged = this.session.getUser();
+                        stopOrder.setUser(userLogged);
+                        if (stopOrder.getQuantity().getValue() > 0) {
+                            orderBook.executeOrder(stopOrder);
                         } else {
                             stopOrder.setId(-1);
                         }
-                    } catch (IllegalArgumentException ex) {
-                        stopOrder = new StopOrder(specificPrice, quantity, true);
-                        stopOrder.setId(-1);
-                    } catch (IllegalStateException ex) {
-                        stopOrder = new StopOrder(specificPrice, quantity, true);
-                        stopOrder.setId(-1);
-                    } catch (NullPointerException ex) {
-                        stopOrder = new StopOrder(specificPrice, quantity, true);
+                    } else {
                         stopOrder.setId(-1);
                     }
-                    
-                    executionResponse = new ExecutionResponse(stopOrder);
-                    response = new Response(executionResponse, clientAction);
-
-                    break;
-                case CANCEL_ORDER:
-                    try {
-                        req = new Request(data, false);
-                        action = ClientActionsUtils.actionFromString(req.getOperation());
-                    } catch (IllegalArgumentException | IllegalStateException | NullPointerException ex) {
-                        responseContent = ResponseContent.OTHER_ERROR;
-                    } catch (InvalidUser ex) {
-                        responseContent = ResponseContent.OTHER_ERROR;
-                    }
-
-                    CancelRequest cancelRequest = (CancelRequest) req.getValues();
-                    Number orderID = cancelRequest.getOrderId();
-
-                    if (Users.isLoggedIn(clientSocket)) {
-                        User userLogged = Users.getLoggedInUser(clientSocket);
-                        Order order = orderBook.getOrderById(orderID.longValue());
-                        if (order == null) {
+                } catch (IllegalArgumentException ex) {
+                    stopOrder = new StopOrder(specificPrice, quantity, true);
+                    stopOrder.setId(-1);
+                } catch (IllegalStateException ex) {
+                    stopOrder = new StopOrder(specificPrice, quantity, true);
+                    stopOrder.setId(-1);
+                } catch (NullPointerException ex) {
+                    stopOrder = new StopOrder(specificPrice, quantity, true);
+                    stopOrder.setId(-1);
+                }
+                
+                executionResponse = new ExecutionResponse(stopOrder);
+                response = new Response(executionResponse, clientAction);
+
+                break;
+            case CANCEL_ORDER:
+                CancelRequest cancelRequest = (CancelRequest) req.getValues();
+                Number orderID = cancelRequest.getOrderId();
+
+                if (this.session != null) {
+                    User userLogged = this.session.getUser();
+                    // Owned resting orders are found through the user's index, without scanning the book.
+                    Order order = null;
+                    if (orderBook.cancelUserOrder(userLogged, orderID.longValue())) {
+                        responseContent = ResponseContent.OK;
+                    } else if ((order = orderBook.getOrderById(orderID.longValue())) == null) {
+                        responseContent = ResponseContent.ORDER_DOES_NOT_EXIST_OR_BELONGS_TO_DIFFERENT_USER_OR_HAS_ALREADY_BEEN_FINALIZED_OR_OTHER_ERROR_CASES;
+                    } else {
+                        if (order.getUser() != null && !order.getUser().equals(userLogged)) {
                             responseContent = ResponseContent.ORDER_DOES_NOT_EXIST_OR_BELONGS_TO_DIFFERENT_USER_OR_HAS_ALREADY_BEEN_FINALIZED_OR_OTHER_ERROR_CASES;
                         } else {
-                            if (order.getUser() != null && !order.getUser().equals(userLogged)) {
-                                responseContent = ResponseContent.ORDER_DOES_NOT_EXIST_OR_BELONGS_TO_DIFFERENT_USER_OR_HAS_ALREADY_BEEN_FINALIZED_OR_OTHER_ERROR_CASES;
+                            Boolean canceled = orderBook.cancelOrder(orderID.longValue());
+                            if (canceled) {
+                                responseContent = ResponseContent.OK;
                             } else {
-                                Boolean canceled = orderBook.cancelOrder(orderID.longValue());
-                                if (canceled) {
-                                    responseContent = ResponseContent.OK;
-                                } else {
-                                    responseContent = ResponseContent.ORDER_DOES_NOT_EXIST_OR_BELONGS_TO_DIFFERENT_USER_OR_HAS_ALREADY_BEEN_FINALIZED_OR_OTHER_ERROR_CASES;
-                                }
+                                responseContent = ResponseContent.ORDER_DOES_NOT_EXIST_OR_BELONGS_TO_DIFFERENT_USER_OR_HAS_ALREADY_BEEN_FINALIZED_OR_OTHER_ERROR_CASES;
                             }
                         }
-                    } else {
-                        responseContent = ResponseContent.ORDER_DOES_NOT_EXIST_OR_BELONGS_TO_DIFFERENT_USER_OR_HAS_ALREADY_BEEN_FINALIZED_OR_OTHER_ERROR_CASES;
                     }
+                } else {
+                    responseContent = ResponseContent.ORDER_DOES_NOT_EXIST_OR_BELONGS_TO_DIFFERENT_USER_OR_HAS_ALREADY_BEEN_FINALIZED_OR_OTHER_ERROR_CASES;
+                }
 
-                    responseType = ResponseType.CANCEL_ORDER;
-                    responseCode = new ResponseCode(responseType, responseContent);
-                    CancelResponse cancelResponse = new CancelResponse(responseCode, responseCode.getDefaultMessage());
-                    response = new Response(cancelResponse, clientAction);
-
-                    break;
-                case GET_PRICE_HISTORY:
-                    try {
-                        req = new Request(data, false);
-                        action = ClientActionsUtils.actionFromString(req.getOperation());
-                    } catch (IllegalArgumentException | IllegalStateException | NullPointerException ex) {
-                        responseContent = ResponseContent.OTHER_ERROR;
-                    } catch (InvalidUser ex) {
-                        responseContent = ResponseContent.OTHER_ERROR;
+                responseType = ResponseType.CANCEL_ORDER;
+                responseCode = new ResponseCode(responseType, responseContent);
+                CancelResponse cancelResponse = new CancelResponse(responseCode, responseCode.getDefaultMessage());
+                response = new Response(cancelResponse, clientAction);
+
+                break;
+            case GET_OPEN_ORDERS, GET_MY_TRADES:
+                clientAction = action;
+                // Answered by the user's index of the order book, empty if not logged in.
+                LinkedList<Trade> trades = new LinkedList<>();
+                if (this.session != null) {
+                    User userLogged = this.session.getUser();
+                    if (clientAction == ClientActions.GET_OPEN_ORDERS) {
+                        trades = orderBook.getOpenOrders(userLogged);
+                    } else {
+                        trades = orderBook.getUserTrades(userLogged);
                     }
+                }
 
-                    PriceHistoryRequest priceHistoryRequest = (PriceHistoryRequest) req.getValues();
-                    String month = priceHistoryRequest.getMonth();
+                if (clientAction == ClientActions.GET_OPEN_ORDERS) {
+                    response = new Response(new OpenOrdersResponse(trades), clientAction);
+                } else {
+                    response = new Response(new MyTradesResponse(trades), clientAction);
+                }
 
-                    PriceHistoryResponse priceHistoryResponse = Orders.getPriceHistory(month);
-                    response = new Response(priceHistoryResponse, clientAction);
+                break;
+            case GET_BALANCES:
+                clientAction = action;
+                // Answered by the user's account in the order book, empty if not logged in or if the balances are not enabled.
+                LinkedList<Balance> balances = new LinkedList<>();
+                if (this.session != null) {
+                    balances = orderBook.getUserBalances(this.session.getUser());
+                }
+                response = new Response(new BalancesResponse(balances), clientAction);
 
+                break;
+            case GET_PRICE_HISTORY:
+                PriceHistoryRequest priceHistoryRequest = (PriceHistoryRequest) req.getValues();
+                String month = priceHistoryRequest.getMonth();
+
+                PriceHistoryResponse priceHistoryResponse;
+                try {
+                    priceHistoryResponse = Orders.getPriceHistory(month);
+                } catch (IllegalStateException ex) {
+                    // A compacted journal segment not readable, answered with an error instead of ending the client's thread.
+                    Log.warn(Category.PERSISTENCE, "Error reading the price history of %s. Answering with a server error and trying to continue... %s", month, ex.getMessage());
+                    response = ClientThread.serverErrorResponse(requestId);
                     break;
-                case EXIT:
-                    exit = true;
-                    break;
-            }
+                }
+                response = new Response(priceHistoryResponse, clientAction);
 
-            // here to exit before without sending a response in case of exit command.
-            if (exit) break;
+                break;
+            case EXIT:
+                exit = true;
+                break;
+        }
 
-            try {
-                System.out.println("DEBUG: sending response to client " + this.getClientIP() + ":" + this.getClientPort() + " with response " + response.toJSONString());
-                System.out.println("DEBUG: limit book: " + orderBook.toStringWithLimitBook());
-                System.out.println("DEBUG: stop book: " + orderBook.toStringWithStopBook());
-                // System.out.println("DEBUG: orders DB: " + Orders.toStringOrders());
-                this.bout.write(response.toJSONString().getBytes());
-                this.bout.flush();
-            } catch (IOException ex) {
-                System.err.printf("Error while sending response to client %s:%s. Continuing...\n", this.getClientIP(), this.getClientPort());
-            }
+        // here to exit before without sending a response in case of exit command.
+        if (exit) {
+            this.exited = true;
+            return null;
+        }
 
+        response.setRequestId(requestId);
 
-        } // End While.
+        // The order book's dumps only for the sampled requests, so the latency doesn't grow with the book's depth.
+        if (DebugLogger.isSampled(Category.NETWORK)) {
+            DebugLogger.log(Category.NETWORK, "response", "client", this.getClientIP() + ":" + this.getClientPort(), "operation", req.getOperation(), "requestId", requestId, "response", response.toJSONString().trim(), "limitBook", orderBook.toStringWithLimitBook(), "stopBook", orderBook.toStringWithStopBook());
+        }
+        return response;
 
-        // to clean notifications.
-        if (Users.isLoggedIn(this.clientSocket)) {
-            User user = Users.getLoggedInUser(this.clientSocket);
-            Users.logout(user, this.clientSocket);
+    }
+    /**
+     *
+     * Closes the session of the client, after its connection is closed or it sent the exit command.
+     *
+     * Logs out the user logged in with this client, if any, cancelling its resting orders if it was its last connection and it's configured.
+     * And closes the notifications socket of the client.
+     * It must be called before closing the client's socket, only once.
+     *
+     */
+    void closeSession() {
+
+        if (this.session != null) {
+            User userLogged = this.session.getUser();
+            Users.logout(userLogged, this.clientSocket);
+            this.session = null;
+
+            // Last connection of the user closed, its resting orders are cancelled if configured.
+            OrderBook orderBook = OrderBook.getOrderBookByCurrencies(Currency.getDefaultPrimaryCurrency(), Currency.getDefaultSecondaryCurrency());
+            if (orderBook == null) {
+                orderBook = OrderBook.getMainOrderBook();
+            }
+            if (orderBook != null && orderBook.getCancelOrdersOnDisconnect() && userLogged.getSocketsNumber() == 0) {
+                Integer cancelled = orderBook.cancelUserOrders(userLogged);
+                if (cancelled > 0) {
+                    Log.info(Category.ENGINE, "Cancelled %d resting orders of %s on disconnect.", cancelled, userLogged.getUsername());
+                }
+            }
         }
         Users.closeNotificationSocket(this.clientSocket);
 
-        // Disconnect the client.
-
-        // Clean up.
-        Boolean error = false;
+    }
+    /**
+     *
+     * Drains this thread, at the shutdown of the server: the request being handled is answered, then the connection is closed as by the client.
+     *
+     * If no request is being handled, the thread is waiting for the next one, so the input of the socket is shut down now to wake it up.
+     * Only the input, the responses of the pipelined requests not flushed yet are written when the thread closes the connection.
+     * A request received after this is not handled and not answered, so a client without a response knows its request was not executed.
+     *
+     * Called by the AcceptThread, not with the NIO transport.
+     *
+     */
+    void drain() {
 
-        try {
-            this.bin.close();
-        }catch (IOException ex) {
-            error = true;
-            System.err.printf("Error while closing buffered input stream from %s:%s.\n", this.getClientIP(), this.getClientPort());
-            try {
-                this.in.close();
-            }catch (IOException ex2) {
-                System.err.printf("Error while closing input stream from %s:%s.\n", this.getClientIP(), this.getClientPort());
+        synchronized (this) {
+            this.draining = true;
+            if (this.busy) {
+                // The thread ends after the response, see endRequest().
+                return;
             }
         }
 
         try {
-            this.bout.close();
-        }catch (IOException ex) {
-            error = true;
-            System.err.printf("Error while closing buffered output stream from %s:%s.\n", this.getClientIP(), this.getClientPort());
-            try {
-                this.out.close();
-            }catch (IOException ex2) {
-                System.err.printf("Error while closing output stream from %s:%s.\n", this.getClientIP(), this.getClientPort());
-            }
+            this.clientSocket.shutdownInput();
+        } catch (IOException ex) {
+            // Already closed by the client, or with TLS before the client's close message, the input is shut down anyway.
         }
 
-        // No exception should be thrown here.
-        if (scanner != null)
-            scanner.close();
+    }
+    /**
+     *
+     * Closes the client's socket now, also if a request is being handled, waking up the thread blocked on it.
+     *
+     * Called by the AcceptThread, when the drain is over its deadline.
+     *
+     */
+    void abort() {
+
+        synchronized (this) {
+            this.draining = true;
+        }
 
         try {
             this.clientSocket.close();
-        }catch (IOException ex) {
-            error = true;
-            System.err.printf("Error while closing socket from %s:%s.\n", this.getClientIP(), this.getClientPort());
+        } catch (IOException ex) {
+            Log.warn(Category.NETWORK, "Error while closing client socket %s:%s. Continuing...", this.getClientIP(), this.getClientPort());
         }
 
-        if (!error)
-            System.out.printf("%s closed all resources successfully.\n", this.toString());
+    }
 
-        // Terminate the thread.
+    // SUPPORT METHODS
+    /**
+     *
+     * Marks a request received as being handled, unless the thread is draining.
+     *
+     * @return True if the request must be handled, false if the thread is draining and must end without handling it.
+     *
+     */
+    private synchronized Boolean beginRequest() {
+
+        if (this.draining) {
+            return false;
+        }
+        this.busy = true;
+        return true;
+
+    }
+    /**
+     *
+     * Marks the request as answered.
+     *
+     * @return True if the thread can read the next request, false if it's draining and must end.
+     *
+     */
+    private synchronized Boolean endRequest() {
+
+        this.busy = false;
+        return !this.draining;
+
+    }
+    private synchronized Boolean isDraining() {
+
+        return this.draining;
+
+    }
+    /**
+     *
+     * Reads a request line from the client, blocking until its '\n' terminator is received.
+     *
+     * The bytes are accumulated in the line buffer of this client, reused for all the lines, so reading a line allocates only its String.
+     * A '\r' before the '\n' is dropped.
+     *
+     * @return The line without its terminator, or null if the connection has been closed by the client.
+     *
+     * @throws IOException If an I/O error occurs or the line is too long.
+     *
+     */
+    private String readLine() throws IOException {
+
+        int length = 0;
+        while (true) {
+            int b = this.bin.read();
+            if (b == -1) {
+                // The last line, not terminated.
+                if (length == 0) {
+                    return null;
+                }
+                break;
+            }
+            if (b == '\n') {
+                break;
+            }
+            if (length == this.lineBuffer.length) {
+                if (length >= MAX_LINE_BYTES) {
+                    throw new IOException("Request line too long.");
+                }
+                byte[] larger = new byte[Math.min(length * 2, MAX_LINE_BYTES)];
+                System.arraycopy(this.lineBuffer, 0, larger, 0, length);
+                this.lineBuffer = larger;
+            }
+            this.lineBuffer[length++] = (byte) b;
+        }
+
+        if (length > 0 && this.lineBuffer[length - 1] == '\r') {
+            length--;
+        }
+        String line = new String(this.lineBuffer, 0, length, StandardCharsets.UTF_8);
+
+        // A buffer grown by a long line is not kept.
+        if (this.lineBuffer.length > STREAM_BUFFER_SIZE * 64) {
+            this.lineBuffer = new byte[LINE_BUFFER_SIZE];
+        }
+
+        return line;
+
+    }
+
+    /**
+     *
+     * Consumes a token of the rate limits of the connection and of the user logged in, if any.
+     *
+     * @return True if the request is allowed, false if it's throttled.
+     *
+     */
+    private Boolean acquireRateLimits() {
+
+        if (!this.rateLimiter.tryAcquire(this.connectionBucket, this.session != null ? this.session.getUser() : null)) {
+            this.throttledRequests++;
+            return false;
+        }
+        return true;
+
+    }
+    /**
+     *
+     * Builds the rate limit response, sent instead of the response of a request throttled by the rate limits.
+     *
+     * @param requestId The request id of the request throttled, null for none.
+     *
+     * @return The rate limit response.
+     *
+     */
+    static Response rateLimitResponse(Long requestId) {
+
+        ResponseCode rateLimitCode = new ResponseCode(ResponseType.RATE_LIMIT, ResponseContent.TOO_MANY_REQUESTS);
+        Response rateLimitResponse = new Response(new UserResponse(rateLimitCode, rateLimitCode.getDefaultMessage()), null);
+        rateLimitResponse.setRequestId(requestId);
+        return rateLimitResponse;
+
+    }
+    /**
+     *
+     * Builds the server error response, sent instead of the response of a request the server failed to answer.
+     *
+     * @param requestId The request id of the request failed, null for none.
+     *
+     * @return The server error response.
+     *
+     */
+    static Response serverErrorResponse(Long requestId) {
+
+        ResponseCode serverErrorCode = new ResponseCode(ResponseType.SERVER_ERROR, ResponseContent.SERVER_ERROR);
+        Response serverErrorResponse = new Response(new UserResponse(serverErrorCode, serverErrorCode.getDefaultMessage()), null);
+        serverErrorResponse.setRequestId(requestId);
+        return serverErrorResponse;
+
+    }
+    /**
+     *
+     * Finds the request id of a request line without parsing the whole JSON.
+     *
+     * Used for the requests answered without being parsed, throttled or rejected, so their responses are matched by the clients as the others.
+     *
+     * @param data The request line, in JSON.
+     *
+     * @return The request id, null if not present or not valid.
+     *
+     */
+    static Long peekRequestId(String data) {
+
+        int index = data.indexOf("\"requestId\"");
+        if (index == -1) {
+            return null;
+        }
+        index = data.indexOf(':', index);
+        if (index == -1) {
+            return null;
+        }
+        index++;
+        while (index < data.length() && Character.isWhitespace(data.charAt(index))) {
+            index++;
+        }
+        int start = index;
+        while (index < data.length() && index - start < 18 && Character.isDigit(data.charAt(index))) {
+            index++;
+        }
+        if (index == start) {
+            return null;
+        }
+        return Long.valueOf(data.substring(start, index));
 
     }
 
     // GETTERS
+    /**
+     *
+     * Checks if the client sent the exit command, after that its connection must be closed.
+     *
+     * @return True if the client sent the exit command, false otherwise.
+     *
+     */
+    Boolean isExited() {
+
+        return this.exited;
+
+    }
+    /**
+     *
+     * Getter for the requests of the client throttled by the rate limits.
+     *
+     * @return The number of the throttled requests.
+     *
+     */
+    Long getThrottledRequests() {
+
+        return this.throttledRequests;
+
+    }
     /**
      *
      * Getter for the client's IP.
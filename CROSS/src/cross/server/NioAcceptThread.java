@@ -0,0 +1,227 @@
+package cross.server;
+
+import cross.logging.Log;
+import cross.logging.Log.Category;
+import cross.utils.AdmissionControl;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * This thread is responsible for accepting new connections from clients for the server, with the NIO transport.
+ *
+ * It's started, instead of the AcceptThread, by the Server class itself by the startAccept() method, if the server's transport is "nio".
+ *
+ * It accepts the connections with a selector and hands each of them, round-robin, to one of a few NioReactorThread.
+ * These latter threads read the requests and write the responses of their connections, without blocking.
+ * The requests are handled by a FixedThreadPool of workers, shared by all the reactors.
+ * So the threads are a fixed number, not one for each connection as with the AcceptThread, and the idle clients cost only their buffers.
+ *
+ * The protocol is the same of the AcceptThread, the '\n' terminated JSONs, handled by the same logic of the ClientThread.
+ *
+ * At the shutdown of the server, the server channel is closed and this thread ends, then the server drains the reactors and the workers with drain().
+ *
+ * @version 1.0
+ * @author Giulio Nisi
+ *
+ * @see Server
+ * @see NioReactorThread
+ * @see NioConnection
+ * @see AcceptThread
+ *
+ */
+class NioAcceptThread extends Thread {
+
+    // The server to be used to accept clients, and the selector of its channel.
+    private final Server server;
+    private final Selector selector;
+
+    // The reactors serving the accepted connections, and the next one to be used.
+    private final NioReactorThread[] reactors;
+    private int nextReactor = 0;
+
+    // The workers that handle the requests.
+    private final ThreadPoolExecutor workers;
+
+    /**
+     *
+     * Constructor of the NioAcceptThread class.
+     *
+     * @param server The server to be used to accept clients.
+     * @param reactorThreads The number of the reactor threads.
+     * @param workerThreads The number of the worker threads.
+     *
+     * @throws NullPointerException If the server is null.
+     * @throws IllegalArgumentException If the number of the reactor or of the worker threads is not positive.
+     * @throws IOException If the reactors' selectors cannot be opened.
+     *
+     */
+    public NioAcceptThread(Server server, Integer reactorThreads, Integer workerThreads) throws NullPointerException, IllegalArgumentException, IOException {
+
+        // Null check.
+        if (server == null)
+            throw new NullPointerException("Server to be used to accept clients in NioAcceptThread cannot be null.");
+
+        if (reactorThreads <= 0 || workerThreads <= 0)
+            throw new IllegalArgumentException("The reactor and worker threads of the NIO transport must be positive.");
+
+        this.server = server;
+        this.selector = Selector.open();
+        this.workers = (ThreadPoolExecutor) Executors.newFixedThreadPool(workerThreads);
+        this.reactors = new NioReactorThread[reactorThreads];
+        for (int i = 0; i < reactorThreads; i++) {
+            this.reactors[i] = new NioReactorThread(this.workers, server.getRateLimiter(), server.getAdmissionControl(), server.getBufferPool(), server.getSSLContext());
+        }
+
+    }
+
+    @Override
+    public void run() {
+
+        Log.info(Category.NETWORK, "I'm the thread that will be accept NIO clients. My thread id: %d.", Thread.currentThread().threadId());
+
+        for (NioReactorThread reactor : this.reactors) {
+            reactor.start();
+        }
+
+        Log.info(Category.NETWORK, "Server started %d NIO threads and a FIXED pool of %d workers.", this.reactors.length, this.workers.getMaximumPoolSize());
+
+        // The server channel is not null, since this thread is executed only after the startServer() method of the Server class.
+        ServerSocketChannel serverChannel = this.server.getServerSocketChannel();
+        Selector selector = this.selector;
+        try {
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException ex) {
+            // This is a dediacted thread, so I don't backward the exception, instead I print it and the thread will be terminated.
+            Log.error(Category.NETWORK, "An I/O error occurred while preparing the NIO accept. Terminating the thread...");
+            return;
+        }
+
+        Log.info(Category.NETWORK, "Waiting for connections...");
+
+        while (!this.server.isShuttingDown()) {
+
+            try {
+                selector.select();
+            } catch (IOException ex) {
+                // This is a dediacted thread, so I don't backward the exception, instead I print it and I try to continue.
+                Log.warn(Category.NETWORK, "An I/O error occurred while waiting for connections. Trying to continue...");
+                continue;
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                keys.next();
+                keys.remove();
+            }
+
+            // Accept all the pending connections.
+            while (true) {
+                SocketChannel clientChannel = null;
+                try {
+                    clientChannel = serverChannel.accept();
+                    if (clientChannel == null) {
+                        break;
+                    }
+                    clientChannel.configureBlocking(false);
+
+                    Log.debug(Category.NETWORK, "Connection accepted from %s.", clientChannel.getRemoteAddress());
+
+                    // Over the max connections, rejected before creating its state.
+                    // The channel's send buffer is empty, so the short server busy response is written at once.
+                    // With TLS, it would need the handshake, so the connection is only closed.
+                    if (!this.server.getAdmissionControl().tryAdmitConnection()) {
+                        Log.warn(Category.NETWORK, "Connection from %s rejected, too many connections.", clientChannel.getRemoteAddress());
+                        if (this.server.getSSLContext() == null) {
+                            clientChannel.write(ByteBuffer.wrap(AdmissionControl.serverBusyResponse(null).toJSONString().getBytes(StandardCharsets.UTF_8)));
+                        }
+                        clientChannel.close();
+                        continue;
+                    }
+
+                    this.reactors[this.nextReactor].register(clientChannel);
+                    this.nextReactor = (this.nextReactor + 1) % this.reactors.length;
+                } catch (IOException ex) {
+                    // The server channel closed by the shutdown.
+                    if (clientChannel == null && this.server.isShuttingDown()) {
+                        break;
+                    }
+                    // This is a dediacted thread, so I don't backward the exception, instead I print it and I try to continue.
+                    Log.warn(Category.NETWORK, "An I/O error occurred while accepting a connection. Trying to continue...");
+                    try {
+                        if (clientChannel != null)
+                            clientChannel.close();
+                    } catch (IOException ex2) {
+                        Log.warn(Category.NETWORK, "An error occurred while closing the client's channel. Trying to continue...");
+                    }
+                    break;
+                }
+            }
+
+        } // End of while.
+
+        try {
+            selector.close();
+        } catch (IOException ex) {
+            Log.warn(Category.NETWORK, "Error while closing the NIO accept selector.");
+        }
+        Log.info(Category.NETWORK, "Stopped accepting connections.");
+
+    }
+
+    /**
+     *
+     * Drains the reactors and the workers, at the shutdown of the server, after the server channel is closed.
+     *
+     * The reactors stop reading, the requests already received are answered, then the connections are closed (see NioConnection.drain()).
+     * Over the deadline, the reactors close the connections still open, the requests still in the engine end by themselves without their responses.
+     *
+     * Called by the Server class.
+     *
+     * @param timeoutMillis The max time to wait for the reactors and the workers, in milliseconds.
+     *
+     * @return True if all the connections were drained, false if the deadline was reached.
+     *
+     * @throws InterruptedException If the caller is interrupted while waiting.
+     *
+     */
+    Boolean drain(long timeoutMillis) throws InterruptedException {
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+        // No connection is handed to the reactors after this thread ended.
+        this.selector.wakeup();
+        this.join(timeoutMillis);
+
+        for (NioReactorThread reactor : this.reactors) {
+            reactor.drain();
+        }
+
+        Boolean drained = true;
+        for (NioReactorThread reactor : this.reactors) {
+            reactor.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            drained &= !reactor.isAlive();
+        }
+        if (!drained) {
+            Log.warn(Category.NETWORK, "NIO connections not drained before the deadline, closing them.");
+            for (NioReactorThread reactor : this.reactors) {
+                reactor.abort();
+            }
+        }
+
+        this.workers.shutdown();
+        return this.workers.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS) && drained;
+
+    }
+
+}
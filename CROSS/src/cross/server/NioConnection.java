@@ -0,0 +1,739 @@
+package cross.server;
+
+import cross.api.binary.BinaryFrame;
+import cross.api.binary.BinaryProtocol;
+import cross.api.requests.Request;
+import cross.api.responses.Response;
+import cross.logging.Log;
+import cross.logging.Log.Category;
+import cross.metrics.Metrics;
+import cross.metrics.Metrics.Stage;
+import cross.utils.AdmissionControl;
+import cross.utils.ByteBufferPool;
+import cross.utils.LineFramer;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ *
+ * This class rapresent a client's connection served by the NIO transport.
+ *
+ * It's the attachment of the client's channel in the selector of its NioReactorThread.
+ * The reactor reads the bytes received, without blocking, in a buffer reused for all the reads of the connection.
+ * The bytes are split in lines, the '\n' terminated JSONs of the protocol, by a LineFramer that accumulates them until the terminator is received.
+ * At most MAX_READS_PER_SELECTION reads are done for each selection, so a fast client doesn't hold the reactor, the bytes left are read at the next one.
+ *
+ * Each complete line is a request, queued and handled by a worker thread with a ClientThread, used only for its requests handling logic, without running it.
+ * The requests of a connection are handled one at a time, in the order received, so at most one worker at a time serves a connection.
+ * The responses are queued and written by the reactor, without blocking, when the channel is writable.
+ *
+ * A request is in flight until its response is written, not only encoded.
+ * The connection stops being read while its queued responses are over MAX_QUEUED_RESPONSE_BYTES or its queued requests, the rejected ones too, are over MAX_QUEUED_REQUESTS.
+ * So a client that sends requests without reading the responses is held by the TCP flow control, instead of filling the server's memory.
+ * The reading is resumed once the responses are written and the requests handled.
+ *
+ * With the binary protocol (see BinaryProtocol), detected by the first byte received, the bytes are accumulated in a reused buffer until a whole frame is received.
+ * The frames are decoded in place by the reactor.
+ *
+ * The responses of both protocols are encoded by the workers directly in buffers of the pool, direct with this transport without TLS, released by the reactor after writing them.
+ *
+ * With TLS, the bytes are decrypted and the responses encrypted by the NioTlsSession of the connection, between the channel and the buffers above.
+ *
+ * @version 1.0
+ * @author Giulio Nisi
+ *
+ * @see NioReactorThread
+ * @see ClientThread
+ * @see BinaryProtocol
+ * @see NioTlsSession
+ * @see LineFramer
+ *
+ */
+class NioConnection {
+
+    // Size of the read buffer, and initial size of the line and frame buffers, in bytes.
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    // Max length of a request line, in bytes, over it the connection is closed.
+    private static final int MAX_LINE_BYTES = 1024 * 1024;
+
+    // Max responses written with a single gathering write.
+    private static final int WRITE_BATCH_SIZE = 16;
+
+    // Max reads of the channel for each selection.
+    private static final int MAX_READS_PER_SELECTION = 4;
+
+    // Queued responses' bytes and queued requests over which the connection is not read anymore, until they are written and handled.
+    private static final long MAX_QUEUED_RESPONSE_BYTES = 1024 * 1024;
+    private static final int MAX_QUEUED_REQUESTS = 1024;
+
+    // Client's channel, its selection key and the reactor that serves it.
+    private final SocketChannel channel;
+    private final NioReactorThread reactor;
+    private SelectionKey key = null;
+
+    // Workers that handle the requests, shared by all the connections.
+    private final ExecutorService workers;
+
+    // Requests handling logic of the client, with its session and rate limits.
+    private final ClientThread handler;
+
+    // Buffer reused for all the reads of the connection, used only by the reactor.
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    // If the last reads stopped before the channel was empty, capped or paused, so there may be bytes received and not read, with TLS already decrypted.
+    private Boolean pendingInput = false;
+
+    // Protocol of the client, null until the first byte is received, and if its hello was answered.
+    // With the JSON lines, the framer of the lines, with the binary protocol, the buffer that accumulates the frames, decoded in place in the reused frame.
+    // Created at the first byte received, used only by the reactor, except the protocol, read also by the workers after the first request is queued.
+    private volatile Boolean binary = null;
+    private LineFramer lineFramer = null;
+    private Boolean helloDone = false;
+    private byte[] lineBuffer = null;
+    private int lineLength = 0;
+    private ByteBuffer frameBuffer = null;
+    private final BinaryFrame frame = new BinaryFrame();
+
+    // Pool of the responses' buffers, shared by all the connections.
+    private final ByteBufferPool bufferPool;
+
+    // Requests received and not handled yet, and if a worker is handling them.
+    // A request is a JSON line (String) or a decoded frame (Request), a rejected one is replaced by its response (Response).
+    // The requests in flight, received and their responses not written yet, without the rejected ones.
+    // The bytes of the responses queued and not written yet, and if the reading is paused by them or by the requests queued.
+    // Guarded by the connection itself.
+    private final ArrayDeque<Object> requests = new ArrayDeque<>();
+    private Boolean handling = false;
+    private int inflightRequests = 0;
+    private long queuedResponseBytes = 0;
+    private Boolean readPaused = false;
+
+    // Admission control of the server, for the requests in flight.
+    private final AdmissionControl admissionControl;
+    // If the connection is closing, after the client closed it or sent the exit command.
+    private Boolean closing = false;
+
+    // Responses to write, queued by the workers and written by the reactor.
+    // Buffers of the pool, direct, written with gathering writes of the reused batch array.
+    private final ConcurrentLinkedQueue<QueuedResponse> responses = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer[] writeBatch = new ByteBuffer[WRITE_BATCH_SIZE];
+
+    // TLS session of the connection, null without TLS.
+    private final NioTlsSession tls;
+
+    /**
+     *
+     * Constructor of the class.
+     *
+     * @param channel The client's channel, non-blocking.
+     * @param reactor The reactor that serves the connection.
+     * @param workers The workers that handle the requests.
+     * @param rateLimiter The rate limiter of the server, shared by all the clients.
+     * @param admissionControl The admission control of the server, shared by all the clients.
+     * @param bufferPool The pool of the responses' buffers, shared by all the clients.
+     * @param tls The TLS session of the connection, null without TLS.
+     *
+     * @throws NullPointerException If some argument, except the TLS session, is null.
+     *
+     */
+    public NioConnection(SocketChannel channel, NioReactorThread reactor, ExecutorService workers, RateLimiter rateLimiter, AdmissionControl admissionControl, ByteBufferPool bufferPool, NioTlsSession tls) throws NullPointerException {
+
+        // Null check.
+        if (channel == null || reactor == null || workers == null || rateLimiter == null || admissionControl == null || bufferPool == null)
+            throw new NullPointerException("Channel, reactor, workers, rate limiter, admission control and buffer pool of a NIO connection cannot be null.");
+
+        this.channel = channel;
+        this.reactor = reactor;
+        this.workers = workers;
+        this.admissionControl = admissionControl;
+        this.bufferPool = bufferPool;
+        this.tls = tls;
+
+        // The socket adaptor of the channel is always the same object, so it identifies the client's session as a blocking socket.
+        this.handler = new ClientThread(channel.socket(), rateLimiter, admissionControl, bufferPool);
+
+    }
+
+    /**
+     *
+     * Reads the bytes available on the channel, queuing the complete requests to the workers.
+     *
+     * Called only by the reactor, when the channel is readable.
+     * Reads at most MAX_READS_PER_SELECTION times, and not at all while the reading is paused (see isReadPaused()).
+     * If it stops before the channel is empty, hasPendingInput() is true.
+     *
+     * @return False if the client closed the connection, true otherwise.
+     *
+     * @throws IOException If an I/O error occurs, a request line is too long or a request frame is not valid.
+     *
+     */
+    public Boolean readRequests() throws IOException {
+
+        for (int reads = 0; reads < MAX_READS_PER_SELECTION; reads++) {
+
+            if (this.isReadPaused()) {
+                this.pendingInput = true;
+                return true;
+            }
+
+            int read = this.tls != null ? this.tls.read(this.channel, this.readBuffer) : this.channel.read(this.readBuffer);
+            if (read == -1) {
+                if (this.lineFramer != null && this.lineFramer.finish() > 0) {
+                    Log.debug(Category.NETWORK, "Request not terminated discarded at the close of %s.", this.toString());
+                }
+                this.pendingInput = false;
+                return false;
+            }
+            if (read == 0) {
+                if (this.tls != null && this.tls.hasPendingOutput()) {
+                    // Handshake's messages not written, the channel is full.
+                    this.reactor.requestWrite(this);
+                }
+                this.pendingInput = false;
+                return true;
+            }
+
+            this.readBuffer.flip();
+            // The first byte received chooses the protocol.
+            if (this.binary == null) {
+                if (this.readBuffer.get(0) == BinaryProtocol.MAGIC) {
+                    this.lineBuffer = new byte[READ_BUFFER_SIZE];
+                    this.frameBuffer = ByteBuffer.wrap(this.lineBuffer).order(ByteOrder.LITTLE_ENDIAN);
+                    this.binary = true;
+                } else {
+                    this.lineFramer = new LineFramer(READ_BUFFER_SIZE, MAX_LINE_BYTES);
+                    this.binary = false;
+                }
+            }
+            if (this.binary) {
+                this.readFrames();
+            } else {
+                this.lineFramer.feed(this.readBuffer, this::enqueueRequest);
+            }
+            this.readBuffer.clear();
+
+        }
+
+        // Capped, the bytes left are read at the next selection.
+        this.pendingInput = true;
+        return true;
+
+    }
+
+    /**
+     *
+     * Writes the queued responses, until the channel accepts bytes.
+     *
+     * The responses are written together, up to WRITE_BATCH_SIZE of them with a single gathering write, instead of a write for each one.
+     * The buffers written are released to the pool, with TLS as soon as they are encrypted.
+     * Called only by the reactor.
+     *
+     * @return True if all the queued responses are written, false if the channel is full and the remaining must be written when it's writable again.
+     *
+     * @throws IOException If an I/O error occurs.
+     *
+     */
+    public Boolean writeResponses() throws IOException {
+
+        while (true) {
+
+            // The first responses of the queue, only the reactor removes them.
+            int batched = 0;
+            for (QueuedResponse response : this.responses) {
+                this.writeBatch[batched++] = response.buffer;
+                if (batched == WRITE_BATCH_SIZE) {
+                    break;
+                }
+            }
+            if (batched == 0) {
+                return this.tls == null || this.tls.flush(this.channel);
+            }
+
+            if (this.tls != null) {
+                this.tls.write(this.channel, this.writeBatch, 0, batched);
+            } else {
+                this.channel.write(this.writeBatch, 0, batched);
+            }
+
+            long writtenBytes = 0;
+            int answered = 0;
+            Boolean full = false;
+            for (int i = 0; i < batched; i++) {
+                ByteBuffer response = this.writeBatch[i];
+                this.writeBatch[i] = null;
+                if (full || response.hasRemaining()) {
+                    // Channel full, the batch not written is kept in the queue.
+                    full = true;
+                    continue;
+                }
+                if (this.responses.poll().inflight) {
+                    answered++;
+                }
+                writtenBytes += response.limit();
+                this.bufferPool.release(response);
+            }
+            this.responsesWritten(writtenBytes, answered);
+            if (full) {
+                return false;
+            }
+
+        }
+
+    }
+
+    /**
+     *
+     * Marks the connection as closing, after the client closed it or an error occurred.
+     *
+     * The requests not handled yet are discarded, then a worker closes the client's session.
+     * Called only by the reactor.
+     *
+     */
+    public void close() {
+
+        synchronized (this) {
+            this.closing = true;
+            this.requests.clear();
+            if (this.handling) {
+                // The worker handling the requests will close the session.
+                return;
+            }
+            this.handling = true;
+        }
+        this.submitHandling();
+
+    }
+
+    /**
+     *
+     * Drains the connection, at the shutdown of the server: the requests already received are handled and answered, then a worker closes the client's session.
+     *
+     * The reactor doesn't read the connection anymore, so no request is received after this.
+     * Called only by the reactor.
+     *
+     */
+    public void drain() {
+
+        synchronized (this) {
+            if (this.closing) {
+                return;
+            }
+            this.closing = true;
+            if (this.handling) {
+                // The worker handling the requests will close the session after them.
+                return;
+            }
+            this.handling = true;
+        }
+        this.submitHandling();
+
+    }
+
+    /**
+     *
+     * Ends the TLS session of the connection, if any, writing its close message before the channel is closed.
+     *
+     * Called only by the reactor, after writing the last responses.
+     *
+     * @throws IOException If an I/O error occurs.
+     *
+     */
+    public void closeTls() throws IOException {
+
+        if (this.tls != null) {
+            this.tls.close(this.channel);
+        }
+
+    }
+
+    // SUPPORT METHODS
+    /**
+     *
+     * Accumulates the bytes read with the binary protocol, answering the hello and queuing the whole frames received.
+     *
+     * The frames are decoded in place, the incomplete one is moved to the start of the buffer.
+     *
+     * @throws IOException If a request frame is not valid.
+     *
+     */
+    private void readFrames() throws IOException {
+
+        int needed = this.lineLength + this.readBuffer.remaining();
+        if (needed > this.lineBuffer.length) {
+            if (needed > BinaryProtocol.LENGTH_PREFIX + BinaryProtocol.MAX_FRAME_LENGTH + READ_BUFFER_SIZE) {
+                throw new IOException("Request frame too long.");
+            }
+            byte[] larger = new byte[Math.max(this.lineBuffer.length * 2, needed)];
+            System.arraycopy(this.lineBuffer, 0, larger, 0, this.lineLength);
+            this.lineBuffer = larger;
+            this.frameBuffer = ByteBuffer.wrap(this.lineBuffer).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        int read = this.readBuffer.remaining();
+        this.readBuffer.get(this.lineBuffer, this.lineLength, read);
+        this.lineLength += read;
+
+        this.frameBuffer.limit(this.lineLength).position(0);
+
+        // The hello, answered before any response.
+        if (!this.helloDone) {
+            if (this.lineLength < BinaryProtocol.HELLO_LENGTH) {
+                return;
+            }
+            byte version = BinaryProtocol.negotiateVersion(this.lineBuffer[1]);
+            ByteBuffer hello = this.bufferPool.acquire(BinaryProtocol.HELLO_LENGTH);
+            BinaryProtocol.putHello(hello, version);
+            hello.flip();
+            this.queueResponse(hello, false);
+            this.reactor.requestWrite(this);
+            this.helloDone = true;
+            if (version == BinaryProtocol.NO_VERSION) {
+                // Closed after writing the answer, the next bytes are discarded.
+                Log.warn(Category.NETWORK, "Binary protocol version %d of %s not supported. Closing the connection...", this.lineBuffer[1], this.toString());
+                this.lineLength = 0;
+                this.close();
+                return;
+            }
+            this.frameBuffer.position(BinaryProtocol.HELLO_LENGTH);
+        }
+
+        try {
+            int frameLength;
+            while ((frameLength = BinaryProtocol.frameLength(this.frameBuffer)) != -1) {
+                int end = this.frameBuffer.position() + frameLength;
+                BinaryProtocol.getFrame(this.frameBuffer, this.frame);
+                try {
+                    switch (this.frame.getType()) {
+                        case BinaryProtocol.TYPE_JSON -> {
+                            String line = this.frame.getJSON();
+                            if (!line.isBlank()) {
+                                this.enqueueRequest(line);
+                            }
+                        }
+                        case BinaryProtocol.TYPE_CREATE, BinaryProtocol.TYPE_CANCEL -> this.enqueueRequest(BinaryProtocol.toRequest(this.frame));
+                        default -> throw new IllegalArgumentException("The binary frame is not a request.");
+                    }
+                } catch (IllegalArgumentException ex) {
+                    // Invalid request, ignored as the JSON ones.
+                    Log.debug(Category.NETWORK, "Invalid request received from client.");
+                }
+                this.frameBuffer.position(end);
+            }
+        } catch (IllegalArgumentException ex) {
+            throw new IOException("Request frame not valid.");
+        }
+
+        // The incomplete frame moved to the start.
+        int remaining = this.frameBuffer.remaining();
+        System.arraycopy(this.lineBuffer, this.frameBuffer.position(), this.lineBuffer, 0, remaining);
+        this.lineLength = remaining;
+
+        // A buffer grown by a long frame is not kept.
+        if (this.lineLength <= READ_BUFFER_SIZE && this.lineBuffer.length > READ_BUFFER_SIZE * 8) {
+            byte[] smaller = new byte[READ_BUFFER_SIZE];
+            System.arraycopy(this.lineBuffer, 0, smaller, 0, this.lineLength);
+            this.lineBuffer = smaller;
+            this.frameBuffer = ByteBuffer.wrap(this.lineBuffer).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+    }
+    /**
+     *
+     * Queues a request, submitting it to a worker if none is handling the requests of the connection.
+     *
+     * Over the max requests in flight of the connection, the request is dropped and its server busy response is queued in its place.
+     * So the response is written in the order of the requests, without parsing nor holding the request.
+     *
+     * @param request The request, a JSON line (String) or a decoded frame (Request).
+     *
+     */
+    private void enqueueRequest(Object request) {
+
+        synchronized (this) {
+            if (this.closing) {
+                return;
+            }
+            if (this.admissionControl.admitsInflightRequest(this.inflightRequests)) {
+                this.inflightRequests++;
+                this.requests.add(request);
+            } else {
+                Long requestId = request instanceof Request req ? req.getRequestId() : ClientThread.peekRequestId((String) request);
+                this.requests.add(AdmissionControl.serverBusyResponse(requestId));
+            }
+            if (this.handling) {
+                return;
+            }
+            this.handling = true;
+        }
+        this.submitHandling();
+
+    }
+    /**
+     *
+     * Submits the handling of the queued requests to a worker.
+     *
+     * If the workers refuse it, the client's session is closed without handling the requests.
+     *
+     */
+    private void submitHandling() {
+
+        try {
+            this.workers.execute(this::handleRequests);
+        } catch (RejectedExecutionException ex) {
+            Log.warn(Category.NETWORK, "An error occurred while submitting the requests of %s to the workers. Closing the connection and trying to continue...", this.toString());
+            synchronized (this) {
+                this.closing = true;
+                this.requests.clear();
+            }
+            this.handleRequests();
+        }
+
+    }
+    /**
+     *
+     * Handles the queued requests, in order, until the queue is empty.
+     *
+     * Executed by a worker thread, one at a time for each connection.
+     * If the connection is closing, the client's session is closed and the reactor is asked to close the channel.
+     *
+     */
+    private void handleRequests() {
+
+        while (true) {
+
+            Object request;
+            Boolean resume = false;
+            synchronized (this) {
+                request = this.requests.poll();
+                if (request == null) {
+                    if (!this.closing) {
+                        this.handling = false;
+                        return;
+                    }
+                }
+                if (this.readPaused && !this.isQueueFull()) {
+                    // The reactor resumes the reading when it writes the responses.
+                    this.readPaused = false;
+                    resume = true;
+                }
+            }
+            if (resume) {
+                this.reactor.requestWrite(this);
+            }
+
+            if (request == null) {
+                // Closing, the session is closed before the channel, since the session is identified by the client's address.
+                this.handler.closeSession();
+                if (this.handler.getThrottledRequests() > 0) {
+                    Log.info(Category.NETWORK, "%s had %d requests throttled by the rate limits.", this.toString(), this.handler.getThrottledRequests());
+                }
+                this.reactor.requestClose(this);
+                return;
+            }
+
+            Response response;
+            if (request instanceof Response rejected) {
+                // Rejected, already answered.
+                response = rejected;
+            } else {
+                if (request instanceof Request req) {
+                    response = this.handler.handleRequest(req);
+                } else {
+                    response = this.handler.handleRequest((String) request);
+                }
+                if (response == null) {
+                    // Not answered, no more in flight.
+                    synchronized (this) {
+                        this.inflightRequests--;
+                    }
+                }
+            }
+            if (response != null) {
+                // Only the encoding, the write is done later by the reactor.
+                long start = Metrics.startTimer();
+                ByteBuffer encoded;
+                if (this.binary) {
+                    encoded = BinaryProtocol.encodeResponse(response, this.bufferPool);
+                } else {
+                    encoded = response.toJSONBuffer(this.bufferPool, 0).flip();
+                }
+                Metrics.recordLatency(Stage.RESPONSE, start);
+                // In flight until written, the rejected ones were not counted.
+                this.queueResponse(encoded, !(request instanceof Response));
+                this.reactor.requestWrite(this);
+            }
+
+            if (this.handler.isExited()) {
+                synchronized (this) {
+                    this.closing = true;
+                    this.requests.clear();
+                }
+            }
+
+        }
+
+    }
+
+    /**
+     *
+     * Queues a response to write, counting its bytes.
+     *
+     * @param buffer The encoded response, ready to be written.
+     * @param inflight If the response answers a request in flight, not rejected.
+     *
+     */
+    private void queueResponse(ByteBuffer buffer, Boolean inflight) {
+
+        synchronized (this) {
+            this.queuedResponseBytes += buffer.remaining();
+        }
+        this.responses.add(new QueuedResponse(buffer, inflight));
+
+    }
+    /**
+     *
+     * Counts the responses written, releasing their requests in flight and resuming the reading if it was paused by them.
+     *
+     * Called only by the reactor, that resumes the reading after writing (see NioReactorThread).
+     *
+     * @param writtenBytes The bytes of the responses written.
+     * @param answered The requests in flight answered by them.
+     *
+     */
+    private void responsesWritten(long writtenBytes, int answered) {
+
+        if (writtenBytes == 0) {
+            return;
+        }
+        synchronized (this) {
+            this.queuedResponseBytes -= writtenBytes;
+            this.inflightRequests -= answered;
+            if (this.readPaused && !this.isQueueFull()) {
+                this.readPaused = false;
+            }
+        }
+
+    }
+    /**
+     *
+     * Checks if the queued responses or requests are over their limits, so the connection must not be read.
+     *
+     * Must be called holding the connection's lock.
+     *
+     * @return True if they are over their limits, false otherwise.
+     *
+     */
+    private Boolean isQueueFull() {
+
+        return this.queuedResponseBytes > MAX_QUEUED_RESPONSE_BYTES || this.requests.size() >= MAX_QUEUED_REQUESTS;
+
+    }
+
+    // GETTERS
+    /**
+     *
+     * Checks if the reading of the connection is paused, because the client doesn't read its responses fast enough.
+     *
+     * Pauses it if the queued responses or requests are over their limits.
+     * Called by the reactor, that doesn't select the channel for reading while it's paused.
+     *
+     * @return True if the connection must not be read, false otherwise.
+     *
+     */
+    public Boolean isReadPaused() {
+
+        synchronized (this) {
+            if (!this.readPaused && this.isQueueFull()) {
+                this.readPaused = true;
+            }
+            return this.readPaused;
+        }
+
+    }
+    /**
+     *
+     * Checks if the last reads stopped before the channel was empty, so there may be bytes to read without the channel being selected.
+     *
+     * With TLS, the bytes already received and decrypted are not signaled by the selector.
+     * Used only by the reactor.
+     *
+     * @return True if the connection must be read again, false otherwise.
+     *
+     */
+    public Boolean hasPendingInput() {
+
+        return this.pendingInput;
+
+    }
+    /**
+     *
+     * Getter for the client's channel.
+     *
+     * @return The client's channel.
+     *
+     */
+    public SocketChannel getChannel() {
+
+        return this.channel;
+
+    }
+    /**
+     *
+     * Getter for the selection key of the client's channel.
+     *
+     * @return The selection key, null if the channel is not registered yet.
+     *
+     */
+    public SelectionKey getKey() {
+
+        return this.key;
+
+    }
+
+    // SETTERS
+    /**
+     *
+     * Setter for the selection key of the client's channel, after its registration in the reactor's selector.
+     *
+     * @param key The selection key.
+     *
+     */
+    public void setKey(SelectionKey key) {
+
+        this.key = key;
+
+    }
+
+    @Override
+    public String toString() {
+
+        return String.format("NIO connection [IP [%s] - Port [%s]]", this.handler.getClientIP(), this.handler.getClientPort());
+
+    }
+
+    /**
+     *
+     * A response queued to write, with its encoded buffer and if it answers a request in flight.
+     *
+     */
+    private static class QueuedResponse {
+
+        private final ByteBuffer buffer;
+        private final Boolean inflight;
+
+        private QueuedResponse(ByteBuffer buffer, Boolean inflight) {
+
+            this.buffer = buffer;
+            this.inflight = inflight;
+
+        }
+
+    }
+
+}
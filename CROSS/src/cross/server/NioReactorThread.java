@@ -0,0 +1,463 @@
+package cross.server;
+
+import cross.logging.Log;
+import cross.logging.Log.Category;
+import cross.utils.AdmissionControl;
+import cross.utils.ByteBufferPool;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+/**
+ *
+ * This thread serves the clients' connections of the NIO transport, with a selector.
+ *
+ * The connections accepted by the NioAcceptThread are registered in the selector of one of these threads.
+ * Then, the thread reads the requests and writes the responses of all its connections, without blocking.
+ * The requests are not handled by this thread, but by the workers (see NioConnection), so a slow request doesn't stop the other connections.
+ *
+ * The workers ask this thread to write the responses and to close the connections through queues, waking up the selector.
+ * So the selection keys and the channels are used only by this thread.
+ *
+ * A connection is read a few times for each selection, the connections with bytes left are read again at the next round, without waiting in the selection.
+ * A connection whose client doesn't read its responses is not selected for reading, until they are written (see NioConnection).
+ *
+ * With TLS, each connection gets an SSLEngine of the server's context, so the sessions cached by the context are resumed by all the reactors.
+ *
+ * At the shutdown of the server, the thread is drained: it stops reading, the requests already received are answered, then the connections are closed and the thread ends.
+ *
+ * @version 1.0
+ * @author Giulio Nisi
+ *
+ * @see NioAcceptThread
+ * @see NioConnection
+ *
+ */
+class NioReactorThread extends Thread {
+
+    // Selector of the connections served by this thread.
+    private final Selector selector;
+
+    // Workers that handle the requests, the rate limiter, the admission control and the pool of the responses' buffers, shared by all the connections.
+    private final ExecutorService workers;
+    private final RateLimiter rateLimiter;
+    private final AdmissionControl admissionControl;
+    private final ByteBufferPool bufferPool;
+
+    // TLS context of the server, null without TLS.
+    private final SSLContext sslContext;
+
+    // Channels accepted and not registered yet, connections with responses to write and connections to close.
+    private final ConcurrentLinkedQueue<SocketChannel> newChannels = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<NioConnection> pendingWrites = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<NioConnection> pendingCloses = new ConcurrentLinkedQueue<>();
+    // Connections with bytes left after their reads, read again at the next round, used only by this thread.
+    private final ArrayDeque<NioConnection> pendingReads = new ArrayDeque<>();
+
+    // If the thread must drain its connections, or close them at once, asked by the NioAcceptThread at the shutdown.
+    // And if the drain is started, used only by this thread.
+    private volatile Boolean draining = false;
+    private volatile Boolean aborting = false;
+    private Boolean drainStarted = false;
+
+    // Max time to wait in a selection while draining, in milliseconds, to see when all the connections are closed.
+    private static final long DRAIN_SELECT_MILLIS = 100;
+
+    /**
+     *
+     * Constructor of the class.
+     *
+     * @param workers The workers that handle the requests.
+     * @param rateLimiter The rate limiter of the server, shared by all the clients.
+     * @param admissionControl The admission control of the server, shared by all the clients.
+     * @param bufferPool The pool of the responses' buffers, shared by all the clients.
+     * @param sslContext The TLS context of the server, null without TLS.
+     *
+     * @throws NullPointerException If the workers, the rate limiter, the admission control or the pool are null.
+     * @throws IOException If the selector cannot be opened.
+     *
+     */
+    public NioReactorThread(ExecutorService workers, RateLimiter rateLimiter, AdmissionControl admissionControl, ByteBufferPool bufferPool, SSLContext sslContext) throws NullPointerException, IOException {
+
+        // Null check.
+        if (workers == null || rateLimiter == null || admissionControl == null || bufferPool == null)
+            throw new NullPointerException("Workers, rate limiter, admission control and buffer pool of a NIO reactor thread cannot be null.");
+
+        this.workers = workers;
+        this.rateLimiter = rateLimiter;
+        this.admissionControl = admissionControl;
+        this.bufferPool = bufferPool;
+        this.sslContext = sslContext;
+        this.selector = Selector.open();
+
+    }
+
+    @Override
+    public void run() {
+
+        Log.info(Category.NETWORK, "I'm a thread that will serve NIO clients. My thread id: %d.", Thread.currentThread().threadId());
+
+        while (true) {
+
+            try {
+                if (!this.pendingReads.isEmpty() && !this.drainStarted) {
+                    this.selector.selectNow();
+                } else if (this.drainStarted) {
+                    this.selector.select(DRAIN_SELECT_MILLIS);
+                } else {
+                    this.selector.select();
+                }
+            } catch (IOException ex) {
+                // This is a dediacted thread, so I don't backward the exception, instead I print it and I try to continue.
+                Log.warn(Category.NETWORK, "An I/O error occurred while selecting the NIO clients. Trying to continue...");
+                continue;
+            }
+
+            if (this.aborting) {
+                this.closeConnections();
+                break;
+            }
+            if (this.draining && !this.drainStarted) {
+                this.drainConnections();
+            }
+            // The keys of the closed connections are removed by the selection.
+            if (this.drainStarted && this.selector.keys().isEmpty() && this.newChannels.isEmpty()) {
+                break;
+            }
+
+            this.registerNewChannels();
+            this.writePendingResponses();
+            this.closePendingConnections();
+            this.readPendingConnections();
+
+            Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                NioConnection connection = (NioConnection) key.attachment();
+                if (!key.isValid()) {
+                    continue;
+                }
+
+                try {
+                    if (key.isReadable() && !this.drainStarted && !this.readRequests(key, connection)) {
+                        continue;
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        this.writeResponses(connection);
+                    }
+                } catch (IOException ex) {
+                    Log.warn(Category.NETWORK, "An I/O error occurred with %s. Closing the connection and trying to continue...", connection.toString());
+                    key.cancel();
+                    connection.close();
+                }
+
+            }
+
+        } // End of while.
+
+        try {
+            this.selector.close();
+        } catch (IOException ex) {
+            Log.warn(Category.NETWORK, "Error while closing the selector of a NIO thread.");
+        }
+        Log.debug(Category.NETWORK, "NIO thread %d ended.", Thread.currentThread().threadId());
+
+    }
+
+    /**
+     *
+     * Registers a new client's channel in the selector of this thread.
+     *
+     * Called by the NioAcceptThread, the registration is done by this thread.
+     *
+     * @param channel The client's channel, non-blocking.
+     *
+     */
+    public void register(SocketChannel channel) {
+
+        this.newChannels.add(channel);
+        this.selector.wakeup();
+
+    }
+    /**
+     *
+     * Asks this thread to write the queued responses of a connection.
+     *
+     * Called by the workers.
+     *
+     * @param connection The connection with the responses to write.
+     *
+     */
+    public void requestWrite(NioConnection connection) {
+
+        this.pendingWrites.add(connection);
+        this.selector.wakeup();
+
+    }
+    /**
+     *
+     * Asks this thread to close a connection, after writing its queued responses.
+     *
+     * Called by the workers, after closing the client's session.
+     *
+     * @param connection The connection to close.
+     *
+     */
+    public void requestClose(NioConnection connection) {
+
+        this.pendingCloses.add(connection);
+        this.selector.wakeup();
+
+    }
+    /**
+     *
+     * Asks this thread to drain its connections, at the shutdown of the server, then to end.
+     *
+     * Called by the NioAcceptThread, after it stopped accepting.
+     *
+     */
+    public void drain() {
+
+        this.draining = true;
+        this.selector.wakeup();
+
+    }
+    /**
+     *
+     * Asks this thread to close its connections at once, without waiting for their responses, then to end.
+     *
+     * Called by the NioAcceptThread, when the drain is over its deadline.
+     *
+     */
+    public void abort() {
+
+        this.aborting = true;
+        this.selector.wakeup();
+
+    }
+
+    // SUPPORT METHODS
+    /**
+     *
+     * Registers the channels accepted since the last selection.
+     *
+     */
+    private void registerNewChannels() {
+
+        SocketChannel channel;
+        while ((channel = this.newChannels.poll()) != null) {
+            if (this.drainStarted) {
+                // Accepted just before the shutdown, closed without serving it.
+                try {
+                    channel.close();
+                } catch (IOException ex) {
+                    Log.warn(Category.NETWORK, "Error while closing a NIO client's channel. Trying to continue...");
+                }
+                this.admissionControl.releaseConnection();
+                continue;
+            }
+            NioTlsSession tls = null;
+            if (this.sslContext != null) {
+                SSLEngine engine = this.sslContext.createSSLEngine();
+                engine.setUseClientMode(false);
+                tls = new NioTlsSession(engine);
+            }
+            NioConnection connection = new NioConnection(channel, this, this.workers, this.rateLimiter, this.admissionControl, this.bufferPool, tls);
+            try {
+                connection.setKey(channel.register(this.selector, SelectionKey.OP_READ, connection));
+                Log.debug(Category.NETWORK, "%s registered in the NIO thread %d.", connection.toString(), Thread.currentThread().threadId());
+            } catch (ClosedChannelException ex) {
+                Log.warn(Category.NETWORK, "An error occurred while registering a NIO client's channel. Trying to continue...");
+                connection.close();
+            }
+        }
+
+    }
+    /**
+     *
+     * Writes the responses queued by the workers since the last selection.
+     *
+     */
+    private void writePendingResponses() {
+
+        NioConnection connection;
+        while ((connection = this.pendingWrites.poll()) != null) {
+            SelectionKey key = connection.getKey();
+            if (key == null || !key.isValid()) {
+                continue;
+            }
+            try {
+                this.writeResponses(connection);
+            } catch (IOException ex) {
+                Log.warn(Category.NETWORK, "An I/O error occurred while writing to %s. Closing the connection and trying to continue...", connection.toString());
+                key.cancel();
+                connection.close();
+            }
+        }
+
+    }
+    /**
+     *
+     * Closes the connections whose sessions were closed by the workers, writing their last responses, if possible.
+     *
+     */
+    private void closePendingConnections() {
+
+        NioConnection connection;
+        while ((connection = this.pendingCloses.poll()) != null) {
+            SelectionKey key = connection.getKey();
+            try {
+                if (key != null && key.isValid()) {
+                    connection.writeResponses();
+                    connection.closeTls();
+                }
+            } catch (IOException ex) {
+                // Closing anyway.
+            }
+            String description = connection.toString();
+            try {
+                connection.getChannel().close();
+                Log.debug(Category.NETWORK, "%s closed successfully.", description);
+            } catch (IOException ex) {
+                Log.warn(Category.NETWORK, "Error while closing %s. Trying to continue...", description);
+            }
+            // Admitted by the NioAcceptThread.
+            this.admissionControl.releaseConnection();
+        }
+
+    }
+    /**
+     *
+     * Reads again the connections with bytes left after their last reads.
+     *
+     * Only the connections queued before this round, the ones queued again are read at the next one.
+     *
+     */
+    private void readPendingConnections() {
+
+        for (int i = this.pendingReads.size(); i > 0; i--) {
+            NioConnection connection = this.pendingReads.poll();
+            SelectionKey key = connection.getKey();
+            if (this.drainStarted || key == null || !key.isValid() || !connection.hasPendingInput()) {
+                continue;
+            }
+            try {
+                this.readRequests(key, connection);
+            } catch (IOException ex) {
+                Log.warn(Category.NETWORK, "An I/O error occurred with %s. Closing the connection and trying to continue...", connection.toString());
+                key.cancel();
+                connection.close();
+            }
+        }
+
+    }
+    /**
+     *
+     * Reads the requests of a connection, closing it if the client closed it.
+     *
+     * Stops selecting the channel for reading while the reading is paused, queues the connection to read it again if it has bytes left.
+     *
+     * @param key The selection key of the connection.
+     * @param connection The connection.
+     *
+     * @return False if the client closed the connection, true otherwise.
+     *
+     * @throws IOException If an I/O error occurs.
+     *
+     */
+    private Boolean readRequests(SelectionKey key, NioConnection connection) throws IOException {
+
+        if (!connection.readRequests()) {
+            // Closed by the client.
+            key.cancel();
+            connection.close();
+            return false;
+        }
+        if (connection.isReadPaused()) {
+            // Resumed by writeResponses(), when the responses are written and the requests handled.
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        } else if (connection.hasPendingInput()) {
+            this.pendingReads.add(connection);
+        }
+        return true;
+
+    }
+    /**
+     *
+     * Writes the queued responses of a connection, selecting the channel for writing if they are not all written.
+     *
+     * The channel is selected for reading only if the reading of the connection is not paused, with the bytes left after a pause read again.
+     *
+     * @param connection The connection.
+     *
+     * @throws IOException If an I/O error occurs.
+     *
+     */
+    private void writeResponses(NioConnection connection) throws IOException {
+
+        SelectionKey key = connection.getKey();
+        Boolean written = connection.writeResponses();
+        // While draining or paused the connections are not read.
+        int read = this.drainStarted || connection.isReadPaused() ? 0 : SelectionKey.OP_READ;
+        if (read != 0 && (key.interestOps() & SelectionKey.OP_READ) == 0 && connection.hasPendingInput()) {
+            // Resumed after a pause.
+            this.pendingReads.add(connection);
+        }
+        if (written) {
+            key.interestOps(read);
+        } else {
+            key.interestOps(read | SelectionKey.OP_WRITE);
+        }
+
+    }
+    /**
+     *
+     * Starts the drain of the connections: they are not read anymore and each of them is closed after answering the requests already received.
+     *
+     */
+    private void drainConnections() {
+
+        this.drainStarted = true;
+        for (SelectionKey key : this.selector.keys()) {
+            if (!key.isValid()) {
+                continue;
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            ((NioConnection) key.attachment()).drain();
+        }
+
+    }
+    /**
+     *
+     * Closes the channels of all the connections, without writing their responses.
+     *
+     */
+    private void closeConnections() {
+
+        for (SelectionKey key : this.selector.keys()) {
+            if (!key.isValid()) {
+                continue;
+            }
+            try {
+                key.channel().close();
+            } catch (IOException ex) {
+                Log.warn(Category.NETWORK, "Error while closing %s. Trying to continue...", key.attachment().toString());
+            }
+            // Admitted by the NioAcceptThread.
+            this.admissionControl.releaseConnection();
+        }
+
+    }
+
+}
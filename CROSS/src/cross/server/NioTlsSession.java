@@ -0,0 +1,339 @@
+package cross.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+/**
+ *
+ * This class rapresent the TLS session of a client's connection served by the NIO transport.
+ *
+ * It wraps an SSLEngine between the non-blocking channel and the NioConnection, which reads and writes the plain bytes as without TLS.
+ * The bytes received are decrypted by read(), the responses are encrypted by write(), with a gathering wrap of the batch of responses.
+ * The handshake is driven by the same calls, without blocking: its messages are written when they are produced and its tasks are run in place.
+ * With the sessions resumed (see TLSContexts) the handshakes are short, so they are run by the reactor.
+ *
+ * The encrypted bytes not written yet, because the channel is full, are kept in a buffer and written first by the next call.
+ *
+ * Used only by the reactor of the connection.
+ *
+ * @version 1.0
+ * @author Giulio Nisi
+ *
+ * @see NioConnection
+ * @see cross.utils.TLSContexts
+ *
+ */
+class NioTlsSession {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SSLEngine engine;
+
+    // Encrypted bytes received and not decrypted yet, and encrypted bytes to write, both in write mode.
+    private ByteBuffer netIn;
+    private ByteBuffer netOut;
+    // Plain bytes decrypted and not read yet, in write mode.
+    private ByteBuffer appIn;
+
+    // If the client ended the session.
+    private Boolean inboundClosed = false;
+
+    /**
+     *
+     * Constructor of the class.
+     *
+     * @param engine The TLS engine of the connection, in server mode.
+     *
+     * @throws NullPointerException If the engine is null.
+     *
+     */
+    public NioTlsSession(SSLEngine engine) throws NullPointerException {
+
+        // Null check.
+        if (engine == null)
+            throw new NullPointerException("Engine of a NIO TLS session cannot be null.");
+
+        this.engine = engine;
+        this.netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+        this.netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+        this.appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+
+    }
+
+    /**
+     *
+     * Reads and decrypts the bytes available on the channel, going on with the handshake if it's not done.
+     *
+     * @param channel The client's channel.
+     * @param dst The buffer where to put the plain bytes.
+     *
+     * @return The plain bytes read, 0 if none is available now, -1 if the client ended the session or closed the connection.
+     *
+     * @throws IOException If an I/O error occurs or the TLS messages are not valid.
+     *
+     */
+    public int read(SocketChannel channel, ByteBuffer dst) throws IOException {
+
+        int start = dst.position();
+        while (true) {
+
+            this.drain(dst);
+            int read = dst.position() - start;
+            if (!dst.hasRemaining()) {
+                return read;
+            }
+
+            // First the encrypted bytes already received.
+            if (this.unwrap(channel)) {
+                continue;
+            }
+            if (this.inboundClosed) {
+                return read > 0 ? read : -1;
+            }
+
+            int received = channel.read(this.netIn);
+            if (received == -1) {
+                this.inboundClosed = true;
+                return read > 0 ? read : -1;
+            }
+            if (received == 0) {
+                return read;
+            }
+
+        }
+
+    }
+
+    /**
+     *
+     * Encrypts and writes the plain bytes of some buffers, until the channel accepts bytes.
+     *
+     * The bytes encrypted are consumed from the buffers, the ones not consumed must be written again when the channel is writable.
+     *
+     * @param channel The client's channel.
+     * @param srcs The buffers with the plain bytes.
+     * @param offset The first buffer.
+     * @param length The number of buffers.
+     *
+     * @throws IOException If an I/O error occurs or the session is closed.
+     *
+     */
+    public void write(SocketChannel channel, ByteBuffer[] srcs, int offset, int length) throws IOException {
+
+        while (this.flush(channel)) {
+
+            Boolean remaining = false;
+            for (int i = offset; i < offset + length && !remaining; i++) {
+                remaining = srcs[i].hasRemaining();
+            }
+            if (!remaining) {
+                return;
+            }
+
+            SSLEngineResult result = this.engine.wrap(srcs, offset, length, this.netOut);
+            switch (result.getStatus()) {
+                case BUFFER_OVERFLOW -> this.netOut = NioTlsSession.enlarge(this.netOut, this.engine.getSession().getPacketBufferSize());
+                case CLOSED -> throw new SSLException("TLS session closed.");
+                default -> {
+                    if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                        // Waiting for the handshake, the data is written after it.
+                        return;
+                    }
+                }
+            }
+
+        }
+
+    }
+
+    /**
+     *
+     * Writes the encrypted bytes not written yet, going on with the handshake if it needs to write.
+     *
+     * @param channel The client's channel.
+     *
+     * @return True if all the encrypted bytes are written, false if the channel is full.
+     *
+     * @throws IOException If an I/O error occurs.
+     *
+     */
+    public Boolean flush(SocketChannel channel) throws IOException {
+
+        if (!this.writeNetOut(channel)) {
+            return false;
+        }
+        this.handshake(channel);
+        return this.netOut.position() == 0;
+
+    }
+
+    /**
+     *
+     * Ends the session, writing its close message if the channel accepts it, without waiting for the client's one.
+     *
+     * @param channel The client's channel.
+     *
+     * @throws IOException If an I/O error occurs.
+     *
+     */
+    public void close(SocketChannel channel) throws IOException {
+
+        this.engine.closeOutbound();
+        this.flush(channel);
+
+    }
+
+    /**
+     *
+     * Checks if there are encrypted bytes not written yet, the channel must be selected for writing.
+     *
+     * @return True if there are encrypted bytes to write, false otherwise.
+     *
+     */
+    public Boolean hasPendingOutput() {
+
+        return this.netOut.position() > 0;
+
+    }
+
+    // SUPPORT METHODS
+    /**
+     *
+     * Decrypts the encrypted bytes received, running the handshake's steps between the TLS messages.
+     *
+     * @param channel The client's channel, to write the handshake's messages.
+     *
+     * @return True if some bytes are decrypted, or consumed by the handshake, false if a whole TLS message is not received yet.
+     *
+     * @throws IOException If an I/O error occurs or the TLS messages are not valid.
+     *
+     */
+    private Boolean unwrap(SocketChannel channel) throws IOException {
+
+        Boolean progress = false;
+        this.netIn.flip();
+        try {
+            while (this.netIn.hasRemaining() && !this.inboundClosed) {
+                SSLEngineResult result = this.engine.unwrap(this.netIn, this.appIn);
+                progress |= result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+                switch (result.getStatus()) {
+                    case BUFFER_UNDERFLOW -> {
+                        if (this.netIn.limit() == this.netIn.capacity() && this.netIn.position() == 0) {
+                            // A TLS message larger than the buffer.
+                            this.netIn.compact();
+                            this.netIn = NioTlsSession.enlarge(this.netIn, this.engine.getSession().getPacketBufferSize());
+                            this.netIn.flip();
+                            continue;
+                        }
+                        return progress;
+                    }
+                    case BUFFER_OVERFLOW -> {
+                        if (this.appIn.position() > 0) {
+                            // Read by the caller first.
+                            return progress;
+                        }
+                        this.appIn = NioTlsSession.enlarge(this.appIn, this.engine.getSession().getApplicationBufferSize());
+                        continue;
+                    }
+                    case CLOSED -> this.inboundClosed = true;
+                    default -> {}
+                }
+                try {
+                    this.handshake(channel);
+                } catch (IOException ex) {
+                    if (!this.inboundClosed) {
+                        throw ex;
+                    }
+                    // The client closed the connection after its close message, not answered.
+                }
+                if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                    return progress;
+                }
+            }
+        } finally {
+            this.netIn.compact();
+        }
+        return progress;
+
+    }
+    /**
+     *
+     * Runs the handshake's steps that don't need bytes from the client: its tasks and its messages to write.
+     *
+     * Stops if the channel is full, the handshake goes on with the next flush().
+     *
+     * @param channel The client's channel.
+     *
+     * @throws IOException If an I/O error occurs.
+     *
+     */
+    private void handshake(SocketChannel channel) throws IOException {
+
+        while (true) {
+            HandshakeStatus status = this.engine.getHandshakeStatus();
+            if (status == HandshakeStatus.NEED_TASK) {
+                Runnable task;
+                while ((task = this.engine.getDelegatedTask()) != null) {
+                    task.run();
+                }
+                continue;
+            }
+            if (status != HandshakeStatus.NEED_WRAP) {
+                return;
+            }
+            SSLEngineResult result = this.engine.wrap(EMPTY, this.netOut);
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                if (this.netOut.position() == 0) {
+                    this.netOut = NioTlsSession.enlarge(this.netOut, this.engine.getSession().getPacketBufferSize());
+                    continue;
+                }
+            }
+            if (!this.writeNetOut(channel) || result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                return;
+            }
+        }
+
+    }
+    private Boolean writeNetOut(SocketChannel channel) throws IOException {
+
+        if (this.netOut.position() == 0) {
+            return true;
+        }
+        this.netOut.flip();
+        try {
+            channel.write(this.netOut);
+        } finally {
+            this.netOut.compact();
+        }
+        return this.netOut.position() == 0;
+
+    }
+    private void drain(ByteBuffer dst) {
+
+        if (this.appIn.position() == 0) {
+            return;
+        }
+        this.appIn.flip();
+        int length = Math.min(this.appIn.remaining(), dst.remaining());
+        dst.put(dst.position(), this.appIn, this.appIn.position(), length);
+        dst.position(dst.position() + length);
+        this.appIn.position(this.appIn.position() + length);
+        this.appIn.compact();
+
+    }
+    private static ByteBuffer enlarge(ByteBuffer buffer, int size) {
+
+        // The bytes of a buffer in write mode kept.
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(size, buffer.capacity() * 2));
+        buffer.flip();
+        larger.put(buffer);
+        return larger;
+
+    }
+
+}
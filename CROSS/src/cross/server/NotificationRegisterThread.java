@@ -1,5 +1,8 @@
 package cross.server;
 
+import cross.logging.Log;
+import cross.logging.Log.Category;
+import cross.users.db.Users;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
@@ -16,10 +19,11 @@ public class NotificationRegisterThread extends Thread {
     @Override
     public void run() {
 
-        System.out.println("Notification register thread started.");
+        Log.info(Category.NETWORK, "Notification register thread started.");
 
         DatagramSocket datagramSocket = server.getDatagramSocket();
-        while (true) {
+        // Closed by the shutdown of the server.
+        while (!datagramSocket.isClosed()) {
             try {
                 byte[] buffer = new byte[1024];
                 DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
@@ -43,20 +47,34 @@ public class NotificationRegisterThread extends Thread {
 
                     // Avoid duplicate registrations
                     if (server.getUdpSocketAddressForTcpSocketAddress(parsedIpAndPortTCP) != null) {
-                        System.out.printf("Client %s:%d already registered for notifications.\n", socketAddressTCP.getAddress(), socketAddressTCP.getPort());
+                        Log.debug(Category.NETWORK, "Client %s:%d already registered for notifications.", socketAddressTCP.getAddress(), socketAddressTCP.getPort());
                         continue;
                     }
 
                     server.registerClientForNotifications(parsedIpAndPortTCP, socketAddressUDP);
-                    System.out.printf("Registered client: %s:%d for notifications binding to %s.\n", socketAddressUDP.getAddress(), socketAddressUDP.getPort(), parsedIpAndPortTCP);
+                    Log.debug(Category.NETWORK, "Registered client: %s:%d for notifications binding to %s.", socketAddressUDP.getAddress(), socketAddressUDP.getPort(), parsedIpAndPortTCP);
+
+                } else if (message.startsWith("retransmit")) {
+
+                    // A client asking the notifications of a gap, "retransmit <from> <to>", sent to its endpoint only.
+                    String[] seqs = message.split(" ");
+                    long fromSeq = Long.parseLong(seqs[1]);
+                    long toSeq = Long.parseLong(seqs[2]);
+                    InetSocketAddress socketAddressUDP = new InetSocketAddress(packet.getAddress(), packet.getPort());
+                    Users.retransmitNotifications(socketAddressUDP, fromSeq, toSeq);
 
                 }
             } catch (Exception ex) {
+                if (datagramSocket.isClosed()) {
+                    break;
+                }
                 // TODO: Handle exception.
                 ex.printStackTrace();
             }
         }
 
+        Log.info(Category.NETWORK, "Notification register thread ended.");
+
     }
     
 }
@@ -0,0 +1,149 @@
+package cross.server;
+
+import cross.users.User;
+import cross.utils.TokenBucket;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * This class rate limits the requests of the clients, with a token bucket for each connection and one for each user.
+ *
+ * Each request received by a ClientThread takes a token from the bucket of its connection and, if an user is logged in, from the bucket of the user.
+ * The user's bucket is shared by all the connections of the user, so opening more connections does not raise its limit.
+ * The check is done on the raw request line, before parsing it, so a throttled request costs only the check, it never reaches the order book nor the disk.
+ *
+ * The buckets are lock-free (see TokenBucket), the users' buckets are in a ConcurrentHashMap, created at the first request of the user.
+ * The throttled requests are counted, the counters are exposed as metrics by the server.
+ *
+ * A rate of zero disables the corresponding limit.
+ *
+ * Thread safe, shared by all the ClientThread threads of a server.
+ *
+ * Package-private, it's used only by the server's classes.
+ *
+ * @version 1.0
+ * @author Giulio Nisi
+ *
+ * @see TokenBucket
+ * @see ClientThread
+ * @see Server
+ *
+ */
+class RateLimiter {
+
+    // Requests per second and burst allowed for each connection and for each user, a rate of zero for no limit.
+    private final long connectionRate;
+    private final long connectionBurst;
+    private final long userRate;
+    private final long userBurst;
+
+    // Users' buckets, by username.
+    private final ConcurrentHashMap<String, TokenBucket> usersBuckets = new ConcurrentHashMap<>();
+
+    // Metrics.
+    private final AtomicLong allowedRequests = new AtomicLong(0);
+    private final AtomicLong connectionThrottledRequests = new AtomicLong(0);
+    private final AtomicLong userThrottledRequests = new AtomicLong(0);
+
+    /**
+     *
+     * Constructor of the class.
+     *
+     * @param connectionRate The requests per second allowed for each connection, zero for no limit.
+     * @param connectionBurst The burst allowed for each connection, zero for one second of requests.
+     * @param userRate The requests per second allowed for each user, zero for no limit.
+     * @param userBurst The burst allowed for each user, zero for one second of requests.
+     *
+     * @throws IllegalArgumentException If some value is negative.
+     *
+     */
+    public RateLimiter(long connectionRate, long connectionBurst, long userRate, long userBurst) throws IllegalArgumentException {
+
+        if (connectionRate < 0 || connectionBurst < 0 || userRate < 0 || userBurst < 0) {
+            throw new IllegalArgumentException("The rate limits cannot be negative.");
+        }
+
+        this.connectionRate = connectionRate;
+        this.connectionBurst = connectionBurst > 0 ? connectionBurst : connectionRate;
+        this.userRate = userRate;
+        this.userBurst = userBurst > 0 ? userBurst : userRate;
+
+    }
+
+    /**
+     *
+     * Creates the bucket of a new connection.
+     *
+     * @return The bucket of the connection, or null if the connections are not limited.
+     *
+     */
+    public TokenBucket newConnectionBucket() {
+
+        if (this.connectionRate == 0) {
+            return null;
+        }
+        return new TokenBucket(this.connectionRate, this.connectionBurst);
+
+    }
+
+    /**
+     *
+     * Checks if a request is allowed, taking a token from the bucket of its connection and from the bucket of its user.
+     *
+     * @param connectionBucket The bucket of the connection, null if the connections are not limited.
+     * @param user The user logged in with the connection, null if none.
+     *
+     * @return True if the request is allowed, false if it's throttled.
+     *
+     */
+    public Boolean tryAcquire(TokenBucket connectionBucket, User user) {
+
+        if (connectionBucket != null && !connectionBucket.tryAcquire()) {
+            this.connectionThrottledRequests.incrementAndGet();
+            return false;
+        }
+
+        if (user != null && this.userRate > 0) {
+            TokenBucket userBucket = this.usersBuckets.get(user.getUsername());
+            if (userBucket == null) {
+                userBucket = this.usersBuckets.computeIfAbsent(user.getUsername(), username -> new TokenBucket(this.userRate, this.userBurst));
+            }
+            if (!userBucket.tryAcquire()) {
+                this.userThrottledRequests.incrementAndGet();
+                return false;
+            }
+        }
+
+        this.allowedRequests.incrementAndGet();
+        return true;
+
+    }
+
+    // GETTERS
+    /**
+     *
+     * Gets the rate limiter metrics, by name.
+     *
+     * @return The counters of the allowed requests and of the requests throttled by the connections and by the users limits.
+     *
+     */
+    public LinkedHashMap<String, Long> getMetrics() {
+
+        LinkedHashMap<String, Long> metrics = new LinkedHashMap<>();
+        metrics.put("requests_allowed_total", this.allowedRequests.get());
+        metrics.put("requests_throttled_connection_total", this.connectionThrottledRequests.get());
+        metrics.put("requests_throttled_user_total", this.userThrottledRequests.get());
+        return metrics;
+
+    }
+
+    @Override
+    public String toString() {
+
+        return String.format("Rate Limiter [Connection rate [%d] - Connection burst [%d] - User rate [%d] - User burst [%d] - Metrics %s]", this.connectionRate, this.connectionBurst, this.userRate, this.userBurst, this.getMetrics().toString());
+
+    }
+
+}
@@ -3,12 +3,23 @@ package cross.server;
 import cross.exceptions.InvalidConfig;
 import cross.exceptions.InvalidOrder;
 import cross.exceptions.InvalidUser;
+import cross.logging.Log;
+import cross.logging.Log.Category;
+import cross.logging.Log.Level;
+import cross.metrics.Metrics;
 import cross.orderbook.OrderBook;
+import cross.orderbook.db.DBOrderBookEvents;
+import cross.orderbook.db.DBOrderBookSnapshot;
+import cross.orderbook.db.SnapshotThread;
 import cross.orders.db.DBOrdersInterface;
 import cross.orders.db.Orders;
 import cross.types.price.GenericPrice;
 import cross.users.db.DBUsersInterface;
 import cross.users.db.Users;
+import cross.utils.AdmissionControl;
+import cross.utils.ByteBufferPool;
+import cross.utils.DebugLogger;
+import cross.utils.TLSContexts;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
@@ -17,10 +28,15 @@ import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.UnknownHostException;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
 import java.util.Properties;
 import java.util.TreeMap;
 import com.google.gson.JsonSyntaxException;
 import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.security.GeneralSecurityException;
+import javax.net.ssl.SSLContext;
 
 /**
  *
@@ -34,11 +50,22 @@ import java.net.InetSocketAddress;
  *
  * The server uses a configuration file to set the server's IP and port to listen on.
  * The extension of the file must be .properties and its path passed as argument to the constructor.
+ * Optionally, the same file sets the order book snapshot file and interval, used to recover the resting orders on restart.
+ * And the memory-mapped file where to keep the orders history out of the heap, and the orders journal segments policy.
+ * And the per-user exposure limits on the resting orders, and if the resting orders of an user are cancelled when its last connection is closed.
+ * And the per-user balances, with the initial balances of each user in the two currencies of the pair.
+ * And the rate limits of the requests, for each connection and for each user.
+ * And the transport of the clients' connections: a thread for each client (AcceptThread), by default, a virtual thread for each client, or a few threads with selectors (NioAcceptThread).
+ * And TLS on the clients' connections, with all the transports, from a keystore with the server's key and certificate (see TLSContexts).
+ * The TLS sessions are cached and resumed by the reconnecting clients, with an abbreviated handshake. The notifications, on UDP, are not encrypted.
+ * And the deadline of the drain of the requests at the graceful shutdown, see shutdown().
+ * And the admin endpoint, an HTTP port with the metrics in the Prometheus text format and the order book depth (see AdminServer).
  *
  * @version 1.0
  * @author Giulio Nisi
  *
  * @see AcceptThread
+ * @see NioAcceptThread
  * 
  * @see InvalidConfig
  *
@@ -51,16 +78,88 @@ public class Server {
     private final Integer serverNotificationsPort;
     private final InetAddress serverAddress;
 
+    // Optional order book snapshot file path and interval between two snapshots, in seconds.
+    // If the path is not present, the order book is not recovered nor snapshotted.
+    // If the interval is zero, the order book is only recovered.
+    private final String orderBookSnapshotFilePath;
+    private final Long orderBookSnapshotIntervalSeconds;
+
+    // Optional memory-mapped file for the orders history, if not present the history is kept on the heap.
+    private final String ordersMappedFilePath;
+
+    // Optional orders journal segments policy, size (in bytes) over which the orders file is sealed in a segment and retention (in days) of the compacted segments.
+    // Zero to never seal and to keep the compacted segments forever.
+    private final Long ordersSegmentMaxBytes;
+    private final Long ordersSegmentRetentionDays;
+
+    // Optional per-user exposure limits on the resting orders, zero for no limit.
+    // And the optional cancellation of the resting orders of an user when its last connection is closed, false by default.
+    private final Integer userMaxOpenOrders;
+    private final Long userMaxOpenQuantity;
+    private final Boolean cancelOrdersOnDisconnect;
+
+    // Optional per-user balances, checked before accepting an order and settled on each fill, disabled by default.
+    private final Boolean balancesEnabled;
+    private final Long userInitialPrimaryBalance;
+    private final Long userInitialSecondaryBalance;
+
+    // Rate limiter of the clients' requests, per connection and per user, shared by all the ClientThread threads.
+    private final RateLimiter rateLimiter;
+
+    // Transport of the clients' connections, "threads" (a thread for each client), "virtual" (a virtual thread for each client) or "nio" (selectors), with the threads of the latter.
+    private final String transport;
+    private final Integer nioReactorThreads;
+    private final Integer nioWorkerThreads;
+    // Max connections accepted by the system and waiting for the accept, the ones over it are refused.
+    private final Integer acceptBacklog;
+
+    // Admission control of the connections and of the requests, shared by all the clients.
+    private final AdmissionControl admissionControl;
+
+    // Buffers of the encoded responses, JSON lines or binary frames, shared by all the clients.
+    // The responses are short, a larger one (e.g. many user's orders) is allocated and not pooled.
+    // Direct with the NIO transport, written by the channels without copies, heap buffers with the streams of the other transports.
+    private final ByteBufferPool bufferPool;
+
+    // Optional TLS context of the clients' connections, built once from the keystore, null without TLS.
+    // It caches the TLS sessions, up to the cache size and for the timeout, in seconds.
+    private final SSLContext sslContext;
+
+    // Requests logged with their response and the order book, one every debugSampleRate requests, 0 disabled.
+    private final Long debugSampleRate;
+
+    // Levels of the log's categories, and the size of the ring buffer of the log written in the background, 0 to write it directly.
+    private final EnumMap<Category, Level> logLevels = new EnumMap<>(Category.class);
+    private final Integer logBufferSize;
+
+    // Size of the ring buffer of the notifications delivered in the background, the ones over it are dropped.
+    private final Integer notificationBufferSize;
+
+    // Max time to drain the requests being handled at the shutdown, in seconds.
+    private final Long shutdownDrainTimeoutSeconds;
+
+    // Admin endpoint of the metrics and of the order book depth, null if not configured.
+    private final InetSocketAddress adminAddress;
+    private AdminServer adminServer = null;
+
     private Boolean isInitialized = false;
 
+    // If the server is shutting down, read by the accepting threads.
+    private volatile Boolean isShuttingDown = false;
+
     // TCP server socket.
+    // With the NIO transport, it's the socket of the server channel.
     private ServerSocket serverSocket = null;
+    private ServerSocketChannel serverSocketChannel = null;
 
     // UDP server socket.
     private DatagramSocket datagramSocket = null;
 
-    // Thread that accepts clients.
-    private AcceptThread acceptThread = null;
+    // Thread that accepts clients, an AcceptThread or a NioAcceptThread.
+    private Thread acceptThread = null;
+
+    // Thread that periodically snapshots the order book.
+    private SnapshotThread snapshotThread = null;
 
     /**
      *
@@ -119,6 +218,141 @@ public class Server {
             // Parsing IP.
             this.serverAddress = InetAddress.getByName(server);
 
+            // Parsing the optional order book snapshot parameters.
+            this.orderBookSnapshotFilePath = props.getProperty("orderbook_snapshot_file");
+            this.orderBookSnapshotIntervalSeconds = Long.valueOf(props.getProperty("orderbook_snapshot_interval_seconds", "0"));
+            if (this.orderBookSnapshotIntervalSeconds < 0) {
+                throw new InvalidConfig("Invalid order book snapshot interval in the server's configuration file.");
+            }
+
+            // Parsing the optional orders history mapped file.
+            this.ordersMappedFilePath = props.getProperty("orders_mapped_file");
+
+            // Parsing the optional orders journal segments policy.
+            this.ordersSegmentMaxBytes = Long.valueOf(props.getProperty("orders_segment_max_bytes", "0"));
+            this.ordersSegmentRetentionDays = Long.valueOf(props.getProperty("orders_segment_retention_days", "0"));
+            if (this.ordersSegmentMaxBytes < 0 || this.ordersSegmentRetentionDays < 0) {
+                throw new InvalidConfig("Invalid orders journal segments policy in the server's configuration file.");
+            }
+
+            // Parsing the optional per-user exposure limits and the cancellation on disconnect.
+            this.userMaxOpenOrders = Integer.valueOf(props.getProperty("user_max_open_orders", "0"));
+            this.userMaxOpenQuantity = Long.valueOf(props.getProperty("user_max_open_quantity", "0"));
+            if (this.userMaxOpenOrders < 0 || this.userMaxOpenQuantity < 0) {
+                throw new InvalidConfig("Invalid per-user exposure limits in the server's configuration file.");
+            }
+            this.cancelOrdersOnDisconnect = Boolean.valueOf(props.getProperty("cancel_orders_on_disconnect", "false").trim());
+
+            // Parsing the optional per-user balances.
+            this.balancesEnabled = Boolean.valueOf(props.getProperty("balances_enabled", "false").trim());
+            this.userInitialPrimaryBalance = Long.valueOf(props.getProperty("user_initial_primary_balance", "0"));
+            this.userInitialSecondaryBalance = Long.valueOf(props.getProperty("user_initial_secondary_balance", "0"));
+            if (this.userInitialPrimaryBalance < 0 || this.userInitialSecondaryBalance < 0) {
+                throw new InvalidConfig("Invalid per-user initial balances in the server's configuration file.");
+            }
+
+            // Parsing the optional rate limits.
+            Long connectionRate = Long.valueOf(props.getProperty("rate_limit_connection_per_second", "0"));
+            Long connectionBurst = Long.valueOf(props.getProperty("rate_limit_connection_burst", "0"));
+            Long userRate = Long.valueOf(props.getProperty("rate_limit_user_per_second", "0"));
+            Long userBurst = Long.valueOf(props.getProperty("rate_limit_user_burst", "0"));
+            if (connectionRate < 0 || connectionBurst < 0 || userRate < 0 || userBurst < 0) {
+                throw new InvalidConfig("Invalid rate limits in the server's configuration file.");
+            }
+            this.rateLimiter = new RateLimiter(connectionRate, connectionBurst, userRate, userBurst);
+
+            // Parsing the optional transport.
+            this.transport = props.getProperty("server_transport", "threads").trim().toLowerCase();
+            if (!this.transport.equals("threads") && !this.transport.equals("virtual") && !this.transport.equals("nio")) {
+                throw new InvalidConfig("Invalid server's transport in the server's configuration file. Must be threads, virtual or nio.");
+            }
+            Integer reactorThreads = Integer.valueOf(props.getProperty("nio_selector_threads", "0"));
+            Integer workerThreads = Integer.valueOf(props.getProperty("nio_worker_threads", "0"));
+            if (reactorThreads < 0 || workerThreads < 0) {
+                throw new InvalidConfig("Invalid NIO transport threads in the server's configuration file.");
+            }
+            this.nioReactorThreads = reactorThreads > 0 ? reactorThreads : 2;
+            this.nioWorkerThreads = workerThreads > 0 ? workerThreads : Runtime.getRuntime().availableProcessors();
+            this.acceptBacklog = Integer.valueOf(props.getProperty("server_accept_backlog", "1024"));
+            if (this.acceptBacklog <= 0) {
+                throw new InvalidConfig("Invalid server's accept backlog in the server's configuration file.");
+            }
+
+            // Parsing the optional admission control limits.
+            Integer maxConnections = Integer.valueOf(props.getProperty("server_max_connections", "0"));
+            Integer maxInflightRequests = Integer.valueOf(props.getProperty("connection_max_inflight_requests", "0"));
+            Integer maxEngineQueueDepth = Integer.valueOf(props.getProperty("engine_max_queue_depth", "0"));
+            if (maxConnections < 0 || maxInflightRequests < 0 || maxEngineQueueDepth < 0) {
+                throw new InvalidConfig("Invalid admission control limits in the server's configuration file.");
+            }
+            this.admissionControl = new AdmissionControl(maxConnections, maxInflightRequests, maxEngineQueueDepth);
+
+            // Parsing the optional TLS parameters, the keystore is read here, so an invalid one is reported at the start.
+            Boolean tlsEnabled = Boolean.valueOf(props.getProperty("tls_enabled", "false").trim());
+            if (tlsEnabled) {
+                String keystorePath = props.getProperty("tls_keystore");
+                String keystorePassword = props.getProperty("tls_keystore_password");
+                if (keystorePath == null || keystorePassword == null) {
+                    throw new InvalidConfig("Invalid (maybe null, not present) TLS keystore or its password in the server's configuration file.");
+                }
+                Integer sessionCacheSize = Integer.valueOf(props.getProperty("tls_session_cache_size", "10000"));
+                Integer sessionTimeoutSeconds = Integer.valueOf(props.getProperty("tls_session_timeout_seconds", "3600"));
+                if (sessionCacheSize < 0 || sessionTimeoutSeconds < 0) {
+                    throw new InvalidConfig("Invalid TLS sessions cache size or timeout in the server's configuration file.");
+                }
+                try {
+                    this.sslContext = TLSContexts.getServerContext(keystorePath.trim(), keystorePassword, sessionCacheSize, sessionTimeoutSeconds);
+                } catch (IOException | GeneralSecurityException ex) {
+                    throw new InvalidConfig("Invalid TLS keystore, or its password, in the server's configuration file.");
+                }
+            } else {
+                this.sslContext = null;
+            }
+
+            // With TLS the responses are copied by the encryption, so the direct buffers would not save a copy.
+            this.bufferPool = new ByteBufferPool(1024, 1024, this.transport.equals("nio") && this.sslContext == null);
+
+            // Parsing the optional debug sample rate.
+            this.debugSampleRate = Long.valueOf(props.getProperty("debug_sample_rate", "0"));
+            if (this.debugSampleRate < 0) {
+                throw new InvalidConfig("Invalid debug sample rate in the server's configuration file.");
+            }
+
+            // Parsing the optional log's levels, the one of all the categories and the ones of the categories configured over it.
+            Level logLevel = Server.parseLogLevel(props.getProperty("log_level", "info"));
+            for (Category category : Category.values()) {
+                String categoryLevel = props.getProperty("log_level_" + category.name().toLowerCase());
+                this.logLevels.put(category, categoryLevel != null ? Server.parseLogLevel(categoryLevel) : logLevel);
+            }
+            this.logBufferSize = Integer.valueOf(props.getProperty("log_buffer_size", "8192"));
+            if (this.logBufferSize < 0) {
+                throw new InvalidConfig("Invalid log buffer size in the server's configuration file.");
+            }
+
+            // Parsing the optional notifications buffer size.
+            this.notificationBufferSize = Integer.valueOf(props.getProperty("notification_buffer_size", "65536"));
+            if (this.notificationBufferSize <= 0 || this.notificationBufferSize > (1 << 30)) {
+                throw new InvalidConfig("Invalid notification buffer size in the server's configuration file.");
+            }
+
+            // Parsing the optional shutdown drain timeout.
+            this.shutdownDrainTimeoutSeconds = Long.valueOf(props.getProperty("shutdown_drain_timeout_seconds", "30"));
+            if (this.shutdownDrainTimeoutSeconds <= 0) {
+                throw new InvalidConfig("Invalid shutdown drain timeout in the server's configuration file. Must be positive.");
+            }
+
+            // Parsing the optional admin endpoint, on localhost by default.
+            String adminPort = props.getProperty("admin_port");
+            if (adminPort != null) {
+                Integer adminPortNumber = Integer.valueOf(adminPort.trim());
+                if (adminPortNumber < 0 || adminPortNumber > 65535) {
+                    throw new InvalidConfig("Invalid admin port number in the server's configuration file.");
+                }
+                this.adminAddress = new InetSocketAddress(InetAddress.getByName(props.getProperty("admin_ip", "127.0.0.1").trim()), adminPortNumber);
+            } else {
+                this.adminAddress = null;
+            }
+
             // Saving the path to the configuration file.
             this.pathToConfigPropertiesFile = pathToConfigPropertiesFile;
 
@@ -130,7 +364,7 @@ public class Server {
 
         // Throwed by getByName.
         catch (UnknownHostException ex) {
-            throw new InvalidConfig("Invalid server IP in the server's configuration file.");
+            throw new InvalidConfig("Invalid server or admin IP in the server's configuration file.");
         }
 
         // Throwed by Properties.load().
@@ -140,7 +374,7 @@ public class Server {
 
         // parseInt exception.
         catch (NumberFormatException ex) {
-            throw new InvalidConfig("Invalid server's port number in the server's configuration file.");
+            throw new InvalidConfig("Invalid server's port number, order book snapshot interval, orders journal segments policy, per-user exposure limits, initial balances, rate limits, NIO transport threads, accept backlog, admission control limits, debug sample rate, log buffer size, notification buffer size, TLS sessions parameters, shutdown drain timeout or admin port in the server's configuration file.");
         }
 
         // Throwed by Properties.load().
@@ -176,10 +410,25 @@ public class Server {
             throw new IllegalStateException("Server already initialized.");
         }
 
+        // The log first, so the initialization is logged with its levels.
+        for (Category category : Category.values()) {
+            Log.setLevel(category, this.logLevels.get(category));
+        }
+        if (this.logBufferSize > 0 && !Log.isAsync()) {
+            Log.startAsync(this.logBufferSize);
+        }
+
         OrderBook mainOrderBook = new OrderBook(new GenericPrice(1));
         OrderBook.setMainOrderBook(mainOrderBook);
+        mainOrderBook.setUserLimits(this.userMaxOpenOrders, this.userMaxOpenQuantity);
+        mainOrderBook.setCancelOrdersOnDisconnect(this.cancelOrdersOnDisconnect);
+        if (this.balancesEnabled) {
+            mainOrderBook.enableBalances(this.userInitialPrimaryBalance, this.userInitialSecondaryBalance);
+        }
         mainOrderBook.startStopOrdersExecutorThread();
 
+        DebugLogger.setSampleRate(this.debugSampleRate);
+
         DBUsersInterface.setFile(dbUsersFilePath);
         DBUsersInterface.readFile();
         try {
@@ -187,18 +436,35 @@ public class Server {
         } catch (JsonSyntaxException | IllegalStateException | NoSuchMethodException | IOException | InvalidUser ex) {
             throw new IOException("Error loading users from file.");
         }
-        System.out.printf("DEBUG: USERS DB: \n%s\n", Users.toStringUsers());
+        Log.debug(Category.PERSISTENCE, () -> "Users DB:\n" + Users.toStringUsers());
 
         DBOrdersInterface.setFile(dbOrdersFilePath);
+        DBOrdersInterface.setSegmentsPolicy(this.ordersSegmentMaxBytes, this.ordersSegmentRetentionDays);
         DBOrdersInterface.readFile();
+        if (this.ordersMappedFilePath != null) {
+            Orders.useMappedFile(this.ordersMappedFilePath);
+        }
         try {
             Orders.loadOrders(true, true);
         } catch (JsonSyntaxException | IllegalStateException | InvalidOrder | IOException | NoSuchMethodException ex) {
             throw new IOException("Error loading orders from file.");
         }
-        System.out.printf("DEBUG: ORDERS DB: \n%s\n", Orders.toStringOrders());
+        Log.debug(Category.PERSISTENCE, () -> "Orders DB:\n" + Orders.toStringOrders());
+
+        // Rebuilding the resting orders from the latest snapshot and the orders journal tail.
+        if (this.orderBookSnapshotFilePath != null) {
+            DBOrderBookSnapshot.setFile(this.orderBookSnapshotFilePath);
+            try {
+                DBOrderBookSnapshot.recoverOrderBook(mainOrderBook);
+            } catch (JsonSyntaxException | IllegalStateException ex) {
+                throw new IOException("Error recovering the order book from the snapshot file.");
+            }
+            if (this.orderBookSnapshotIntervalSeconds > 0) {
+                this.snapshotThread = SnapshotThread.startSnapshotThread(mainOrderBook, this.orderBookSnapshotIntervalSeconds * 1000);
+            }
+        }
 
-        System.out.println("Server successfully initialized.");
+        Log.info(Category.SERVER, "Server successfully initialized.");
 
         this.isInitialized = true;
 
@@ -235,12 +501,29 @@ public class Server {
         try {
 
             // Start the server.
-            this.serverSocket = new ServerSocket(serverPort, 0, serverAddress);
+            if (this.transport.equals("nio")) {
+                this.serverSocketChannel = ServerSocketChannel.open();
+                this.serverSocketChannel.bind(new InetSocketAddress(serverAddress, serverPort), this.acceptBacklog);
+                this.serverSocket = this.serverSocketChannel.socket();
+            } else if (this.sslContext != null) {
+                this.serverSocket = this.sslContext.getServerSocketFactory().createServerSocket(serverPort, this.acceptBacklog, serverAddress);
+            } else {
+                this.serverSocket = new ServerSocket(serverPort, this.acceptBacklog, serverAddress);
+            }
 
             // Start the UDP server socket.
             this.datagramSocket = new DatagramSocket(serverNotificationsPort);
+            // The notifications are delivered by a dedicated thread, out of the order book's lock.
+            Users.startNotificationDispatcher(this.notificationBufferSize);
+
+            // Start the admin endpoint, collecting the metrics only if they are exposed.
+            if (this.adminAddress != null) {
+                this.adminServer = new AdminServer(this, this.adminAddress);
+                Metrics.setEnabled(true);
+                this.adminServer.start();
+            }
 
-            System.out.printf("Started succesfully the server with these following args...\n%s\n", this.toString());
+            Log.info(Category.SERVER, "Started succesfully the server with these following args: %s", this.toString());
 
         } catch (IllegalArgumentException ex) {
             throw new IllegalArgumentException("Invalid socket arguments in server start.");
@@ -259,7 +542,7 @@ public class Server {
      * Synchronized method to avoid multiple starts from different threads.
      *
      * @throws IllegalStateException If the server is not initialized or not started.
-     * @throws RuntimeException If the server is already accepting clients.
+     * @throws RuntimeException If the server is already accepting clients, or if the NIO transport cannot be started.
      * 
      */
     public synchronized void startAccept() throws IllegalStateException, RuntimeException {
@@ -279,9 +562,18 @@ public class Server {
             throw new RuntimeException("Server already accepting clients.");
         }
 
-        AcceptThread acceptThreadF = new AcceptThread(this);
+        Thread acceptThreadF;
+        if (this.serverSocketChannel != null) {
+            try {
+                acceptThreadF = new NioAcceptThread(this, this.nioReactorThreads, this.nioWorkerThreads);
+            } catch (IOException ex) {
+                throw new RuntimeException("I/O error starting the NIO transport.");
+            }
+        } else {
+            acceptThreadF = new AcceptThread(this, this.transport.equals("virtual"));
+        }
         acceptThreadF.start();
-        System.out.println("Accepting clients thread started.");
+        Log.info(Category.SERVER, "Accepting clients thread started.");
         this.acceptThread = acceptThreadF;
 
     }
@@ -316,6 +608,122 @@ public class Server {
         this.tcpToUdpBindings.remove(tcpIpAndPort);
     }
 
+    /**
+     *
+     * Shuts down the server gracefully, so it can be restarted without losing or tearing any state.
+     *
+     * The steps, in order:
+     * - Stops accepting clients, closing the server socket.
+     * - Drains the clients' connections: the requests being handled (with NIO, the ones received) are answered, then the connections are closed.
+     *   A request not answered was not executed, so the client can send it again to the restarted server.
+     *   Over the drain deadline (shutdown_drain_timeout_seconds) the connections still open are closed, and the shutdown goes on.
+     * - Writes a last order book snapshot, if configured, so the restart doesn't replay the journal tail.
+     * - Stops the stop orders executor thread.
+     * - Closes the orders and users database files, waiting for the write in progress, so no record is left partial.
+     * - Delivers the notifications queued, stops the notifications registration, closing the UDP socket, and writes the log queued.
+     * - Stops the admin endpoint, if configured.
+     *
+     * Called by the shutdown hook, on SIGTERM or SIGINT, or by the "shutdown" command on the server's console (see MainServer).
+     * Then, the server's threads are ended and the JVM can exit.
+     *
+     * Synchronized method to avoid multiple shutdowns from different threads, the calls after the first one do nothing.
+     *
+     */
+    public synchronized void shutdown() {
+
+        if (this.isShuttingDown) {
+            return;
+        }
+        this.isShuttingDown = true;
+
+        long start = System.nanoTime();
+        Log.info(Category.SERVER, "Shutting down the server, draining the requests for up to %d seconds...", this.shutdownDrainTimeoutSeconds);
+
+        // Stop accepting, the accepting thread ends.
+        try {
+            if (this.serverSocketChannel != null) {
+                this.serverSocketChannel.close();
+            } else if (this.serverSocket != null) {
+                this.serverSocket.close();
+            }
+        } catch (IOException ex) {
+            Log.warn(Category.SERVER, "Error while closing the server socket. Trying to continue...");
+        }
+
+        // Drain the connections.
+        Boolean drained = true;
+        try {
+            if (this.acceptThread instanceof NioAcceptThread nioAcceptThread) {
+                drained = nioAcceptThread.drain(this.shutdownDrainTimeoutSeconds * 1000);
+            } else if (this.acceptThread instanceof AcceptThread blockingAcceptThread) {
+                drained = blockingAcceptThread.drain(this.shutdownDrainTimeoutSeconds * 1000);
+            }
+        } catch (InterruptedException ex) {
+            drained = false;
+            Log.warn(Category.SERVER, "Interrupted while draining the connections. Trying to continue...");
+        }
+
+        if (this.isInitialized) {
+
+            OrderBook mainOrderBook = OrderBook.getMainOrderBook();
+
+            // The last snapshot, while the stop orders executor can still execute the stop orders triggered by the last requests.
+            if (this.snapshotThread != null) {
+                this.snapshotThread.stopRunning();
+                this.snapshotThread.interrupt();
+                try {
+                    this.snapshotThread.join();
+                } catch (InterruptedException ex) {
+                }
+            }
+            if (this.orderBookSnapshotFilePath != null) {
+                try {
+                    if (DBOrderBookSnapshot.writeSnapshot(mainOrderBook) == null) {
+                        Log.warn(Category.PERSISTENCE, "Order book not at a cycle boundary, last snapshot skipped. The journal tail will be replayed.");
+                    }
+                } catch (IOException | IllegalStateException ex) {
+                    Log.warn(Category.PERSISTENCE, "Error writing the last order book snapshot: %s Trying to continue...", ex.getMessage());
+                }
+            }
+
+            mainOrderBook.stopStopOrdersExecutorThread();
+
+            // With the class locks, after the writes in progress.
+            try {
+                DBOrderBookEvents.closeFile();
+            } catch (IOException ex) {
+                Log.error(Category.PERSISTENCE, "%s", ex.getMessage());
+            }
+            try {
+                DBOrdersInterface.closeFile();
+            } catch (IOException ex) {
+                Log.error(Category.PERSISTENCE, "%s", ex.getMessage());
+            }
+            try {
+                DBUsersInterface.closeFile();
+            } catch (IOException ex) {
+                Log.error(Category.PERSISTENCE, "%s", ex.getMessage());
+            }
+
+        }
+
+        // The notifications queued are delivered, then the notification register thread ends.
+        Users.stopNotificationDispatcher();
+        if (this.datagramSocket != null) {
+            this.datagramSocket.close();
+        }
+
+        // Last, so the drain can be watched on the metrics.
+        if (this.adminServer != null) {
+            this.adminServer.stop();
+            Metrics.setEnabled(false);
+        }
+
+        Log.info(Category.SERVER, "Server shut down in %d ms, %s.", (System.nanoTime() - start) / 1000000, drained ? "all the connections drained" : "some connections closed over the drain deadline");
+        Log.stopAsync();
+
+    }
+
     // GETTERS
     /**
      *
@@ -412,6 +820,18 @@ public class Server {
 
         return this.notificationRegisterThread != null;
 
+    }
+    /**
+     *
+     * Get the server's shutting down status.
+     *
+     * @return Boolean rapresenting if the server is shutting down, or it's shut down.
+     *
+     */
+    public Boolean isShuttingDown() {
+
+        return this.isShuttingDown;
+
     }
     /**
      *
@@ -426,6 +846,32 @@ public class Server {
 
         return this.serverSocket;
 
+    }
+    /**
+     *
+     * Get the server's channel, with the NIO transport.
+     * 
+     * Package-private method to be used only by the NioAcceptThread class.
+     *
+     * @return ServerSocketChannel rapresenting the server's channel, null if the transport is not NIO.
+     *
+     */
+    ServerSocketChannel getServerSocketChannel() {
+
+        return this.serverSocketChannel;
+
+    }
+    /**
+     *
+     * Get the transport of the clients' connections.
+     *
+     * @return "threads", "virtual" or "nio".
+     *
+     */
+    public String getTransport() {
+
+        return this.transport;
+
     }
     /**
      *
@@ -440,12 +886,104 @@ public class Server {
 
         return this.datagramSocket;
 
+    }
+    /**
+     *
+     * Get the server's rate limiter.
+     *
+     * Package-private method to be used only by the AcceptThread and NioAcceptThread classes.
+     *
+     * @return The rate limiter of the clients' requests.
+     *
+     */
+    RateLimiter getRateLimiter() {
+
+        return this.rateLimiter;
+
+    }
+    /**
+     *
+     * Get the rate limits metrics: the requests allowed and the ones throttled by the connections and by the users limits.
+     *
+     * @return The metrics by name.
+     *
+     */
+    public LinkedHashMap<String, Long> getRateLimiterMetrics() {
+
+        return this.rateLimiter.getMetrics();
+
+    }
+    /**
+     *
+     * Get the server's admission control.
+     *
+     * Package-private method to be used only by the AcceptThread and NioAcceptThread classes.
+     *
+     * @return The admission control of the connections and of the requests.
+     *
+     */
+    AdmissionControl getAdmissionControl() {
+
+        return this.admissionControl;
+
+    }
+    /**
+     *
+     * Get the admission control metrics: the connections open and rejected, the requests rejected by the in flight limit, the requests in the engine, their peak and the ones rejected.
+     *
+     * @return The metrics by name.
+     *
+     */
+    public LinkedHashMap<String, Long> getAdmissionControlMetrics() {
+
+        return this.admissionControl.getMetrics();
+
+    }
+    /**
+     *
+     * Get the server's pool of the responses' buffers.
+     *
+     * Package-private method to be used only by the AcceptThread and NioAcceptThread classes.
+     *
+     * @return The pool of the buffers.
+     *
+     */
+    ByteBufferPool getBufferPool() {
+
+        return this.bufferPool;
+
+    }
+    /**
+     *
+     * Get the server's TLS context of the clients' connections.
+     *
+     * Package-private method to be used only by the AcceptThread and NioAcceptThread classes.
+     *
+     * @return The TLS context, null without TLS.
+     *
+     */
+    SSLContext getSSLContext() {
+
+        return this.sslContext;
+
+    }
+
+    // SUPPORT METHODS
+    // A log's level of the configuration file, case insensitive.
+    private static Level parseLogLevel(String level) throws InvalidConfig {
+
+        try {
+            return Level.valueOf(level.trim().toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            throw new InvalidConfig("Invalid log level in the server's configuration file. Must be debug, info, warn, error or off.");
+        }
+
     }
 
     @Override
     public String toString() {
 
-        return String.format("Server Info's [Server IP [%s] - Server port [%s] - Server notifications port [%s] - Configuration file path [%s] - Initialized [%s] - Started [%s] - Accepting [%s] - Notification registering [%s]]", this.getServerAddress(), this.getServerPort(), this.getServerNotificationsPort(), this.getPathToConfigPropertiesFile(), this.isInitialized() == true ? "Yes" : "No", this.isStarted() == true ? "Yes" : "No", this.isAccepting() == true ? "Yes" : "No", this.isNotificationRegistering() == true ? "Yes" : "No");
+        return String.format("Server Info's [Server IP [%s] - Server port [%s] - Server notifications port [%s] - Transport [%s] - TLS [%s] - Configuration file path [%s] - Initialized [%s] - Started [%s] - Accepting [%s] - Notification registering [%s] - Shutting down [%s]]", this.getServerAddress(), this.getServerPort(), this.getServerNotificationsPort(), this.getTransport(), this.getSSLContext() != null ? "Yes" : "No", this.getPathToConfigPropertiesFile(), this.isInitialized() == true ? "Yes" : "No", this.isStarted() == true ? "Yes" : "No", this.isAccepting() == true ? "Yes" : "No", this.isNotificationRegistering() == true ? "Yes" : "No", this.isShuttingDown() == true ? "Yes" : "No");
 
     }
 
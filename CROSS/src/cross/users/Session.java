@@ -0,0 +1,108 @@
+package cross.users;
+
+import java.net.Socket;
+
+/**
+ *
+ * This class rapresents a session, so the binding between a client's connection (its TCP socket) and the user logged in with it.
+ *
+ * It's created by the Users class when a login succeeds and it's kept by the client's thread, so to check the authorization on every request is a field read.
+ * The Users class also indexes the sessions by socket, for the lookups that don't have the session object.
+ *
+ * The user is volatile since it can be rebound (by the Users class) to the new user object after a credentials update.
+ *
+ * @version 1.0
+ * @author Giulio Nisi
+ *
+ * @see User
+ * @see cross.users.db.Users
+ *
+ */
+public class Session {
+
+    // The client's socket. Will not change, so it's final.
+    private final Socket socket;
+
+    // The user logged in with the socket.
+    private volatile User user;
+
+    /**
+     *
+     * Constructor of the class.
+     *
+     * @param socket The client's socket of the session.
+     * @param user The user logged in with the socket.
+     *
+     * @throws NullPointerException If the socket or the user are null.
+     *
+     */
+    public Session(Socket socket, User user) throws NullPointerException {
+
+        // Null checks.
+        if (socket == null) {
+            throw new NullPointerException("Socket of the session cannot be null.");
+        }
+        if (user == null) {
+            throw new NullPointerException("User of the session cannot be null.");
+        }
+
+        this.socket = socket;
+        this.user = user;
+
+    }
+
+    // GETTERS
+    /**
+     *
+     * Getter for the client's socket of the session.
+     *
+     * @return The client's socket of the session.
+     *
+     */
+    public Socket getSocket() {
+
+        return this.socket;
+
+    }
+    /**
+     *
+     * Getter for the user logged in with the session.
+     *
+     * @return The user logged in with the session.
+     *
+     */
+    public User getUser() {
+
+        return this.user;
+
+    }
+
+    // SETTERS
+    /**
+     *
+     * Rebinds the session to another user object, used after a credentials update since the user object is replaced.
+     *
+     * @param user The new user object, same username.
+     *
+     * @throws NullPointerException If the user is null.
+     *
+     */
+    public void setUser(User user) throws NullPointerException {
+
+        // Null check.
+        if (user == null) {
+            throw new NullPointerException("User of the session cannot be null.");
+        }
+
+        this.user = user;
+
+    }
+
+    @Override
+    public String toString() {
+
+        return String.format("Session [Socket [%s] - User [%s]]", this.socket.getRemoteSocketAddress(), this.user.getUsername());
+
+    }
+
+}
@@ -3,6 +3,7 @@ package cross.users;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.util.LinkedList;
+import java.util.regex.Pattern;
 
 /**
  *
@@ -24,6 +25,9 @@ import java.util.LinkedList;
  */
 public class User implements Comparable<User> {
 
+    // Compiled once, String.matches() compiles the regex at every user creation.
+    private static final Pattern USERNAME_PATTERN = Pattern.compile("[a-z0-9]+");
+
     // User's data.
     private final String username;
     private final String password;
@@ -48,6 +52,9 @@ public class User implements Comparable<User> {
 
     private transient LinkedList<InetSocketAddress> notificationsSocket;
 
+    // The two lists above are created lazily, at the first socket, as for the users deserialized by Gson.
+    // Most of the users loaded are not logged in, so a million users do not allocate two million empty lists.
+
     /**
      *
      * This constructor creates an User with a given username and a given password as strings.
@@ -83,14 +90,12 @@ public class User implements Comparable<User> {
         if (username.length() <= 3 || password.length() <= 3) {
             throw new IllegalArgumentException("Username or password in user creation is too short.");
         }
-        if (!username.matches("[a-z0-9]+")) {
+        if (!USERNAME_PATTERN.matcher(username).matches()) {
             throw new IllegalArgumentException("Username in user creation contains characters other than lowercase letters and numbers.");
         }
 
         this.username = username;
         this.password = password;
-        this.loggedSockets = new LinkedList<>();
-        this.notificationsSocket = new LinkedList<>();
 
     }
 
@@ -120,14 +125,12 @@ public class User implements Comparable<User> {
         if (username.length() <= 3 || username.length() > 40) {
             throw new IllegalArgumentException("Username in user creation is too short or too long.");
         }
-        if (!username.matches("[a-z0-9]+")) {
+        if (!USERNAME_PATTERN.matcher(username).matches()) {
             throw new IllegalArgumentException("Username in user creation contains characters other than lowercase letters and numbers.");
         }
 
         this.username = username;
         this.password = password;
-        this.loggedSockets = new LinkedList<>();
-        this.notificationsSocket = new LinkedList<>();
     }
 
     // GETTERS
@@ -140,7 +143,8 @@ public class User implements Comparable<User> {
      */
     public String getUsername() {
 
-        return String.format("%s", this.username);
+        // Strings are immutable, no copy. Called for every record at the loading and at every lookup.
+        return this.username;
 
     }
     // DISCLAIMER:
@@ -156,7 +160,8 @@ public class User implements Comparable<User> {
      */
     public String getPassword() {
 
-        return String.format("%s", this.password);
+        // Strings are immutable, no copy.
+        return this.password;
 
     }
     /**
@@ -312,6 +317,20 @@ public class User implements Comparable<User> {
         return this.loggedSockets.contains(socket);
 
     }
+    /**
+     *
+     * Gets the number of the sockets logged with this user, so of its open connections.
+     *
+     * Synchronized to avoid multiple threads to add / remove a socket during the count.
+     *
+     * @return The number of the sockets logged with this user.
+     *
+     */
+    public synchronized Integer getSocketsNumber() {
+
+        return this.loggedSockets == null ? 0 : this.loggedSockets.size();
+
+    }
 
 
     // NOTIFICATION SOCKETS
@@ -402,7 +421,7 @@ public class User implements Comparable<User> {
         return this.notificationsSocket.contains(socket);
 
     }
-    public LinkedList<InetSocketAddress> getNotificationsSockets() {
+    public synchronized LinkedList<InetSocketAddress> getNotificationsSockets() {
 
         if (this.notificationsSocket == null) {
             this.notificationsSocket = new LinkedList<>();
@@ -7,17 +7,34 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
 import com.google.gson.Gson;
 import com.google.gson.JsonSyntaxException;
 import cross.exceptions.InvalidUser;
+import cross.logging.Log;
+import cross.logging.Log.Category;
 import cross.users.User;
 import cross.utils.FileHandler;
+import cross.utils.WriteContext;
 
 /**
  *
  * This class is an interface to handle the users database file.
  * It's used by the Users class as support to load and save users from and to a JSON users database file.
  *
+ * The users database file is an append-only log of users records (still a valid JSON array, one record per line).
+ * A password change appends the updated user, the last record of an username wins when the file is loaded.
+ * The superseded records are dropped by a background compaction, that rewrites the file with only the live users.
+ *
  * Abstract class because I assume that I don't want to handle different users databases at the same time.
  * So I will use only static methods and variables.
  *
@@ -33,6 +50,9 @@ import cross.utils.FileHandler;
  */
 public abstract class DBUsersInterface {
     
+    // Lock of the users database file, a ReentrantLock (see ClientThread).
+    private static final ReentrantLock lock = new ReentrantLock();
+
     // Users database file path.
     private static String filePath = null;
 
@@ -46,13 +66,41 @@ public abstract class DBUsersInterface {
     private static BufferedOutputStream fileOutBuffered = null;
 
     // Users database file content as String.
+    // Kept only from readFile() to loadUsers(), the log is never read again.
     private static String fileContent = null;
+    private static Boolean fileReaded = false;
 
     // Number of empty lines in the file.
     // "empty" means that these lines have been overwritten with spaces after an user update (change of the user's credentials).
-    
+    // Only in the files written before the log, an update does not blank lines anymore.
     public static Long emptyFileLines = 0L;
 
+    // Users records in the log file, the superseded ones included.
+    private static Long fileRecords = 0L;
+    // Records superseded by a later record of the same username.
+    private static Long deadRecords = 0L;
+
+    // The log is compacted when its garbage (dead records and empty lines) is at least this AND at least the live users.
+    private static final Long COMPACTION_MIN_GARBAGE = 64L;
+    private static Boolean compactionScheduled = false;
+
+    // Single background thread for the compactions, so they never run concurrently.
+    private static final ExecutorService compactor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, DBUsersInterface.class.getSimpleName());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Shared, the Gson instances are thread safe.
+    private static final Gson gson = new Gson();
+
+    // The loader does not split the users database file content in chunks smaller than this.
+    private static final int LOAD_CHUNK_MIN_CHARS = 64 * 1024;
+
+    // Prefixes of an user record as written by Gson, decoded without Gson by the loader.
+    private static final String RECORD_USERNAME = "{\"username\":\"";
+    private static final String RECORD_PASSWORD = "\",\"password\":\"";
+
     // Costant for file handling.
     private static final String FILE_INIT = "[\n]\n";
 
@@ -60,16 +108,12 @@ public abstract class DBUsersInterface {
     // Used in the Users class to check if the users have been already loaded before getting / searching an user.
     private static Boolean usersLoaded = false;
 
-    // These methods names are used to check who calls some functions of this class, so to perform some different operations in case the call comes from one of them.
-    private static final String UPDATED_METHOD_NAME = "updateUserOnFile";
-    private static final String ADDUSER_METHOD_NAME = "addUser";
-
     // FILE HANDLING
     /**
      *
      * Sets the users database file to handle.
      *
-     * Synchronized ON CLASS to avoid multiple threads to set the file at the same time.
+     * Locked ON CLASS (with the class lock) to avoid multiple threads to set the file at the same time.
      * 
      * If the file is not found, it will be created with the initial content.
      *
@@ -83,7 +127,8 @@ public abstract class DBUsersInterface {
      */
     public static void setFile(String filePath) throws IllegalArgumentException, NullPointerException, IllegalStateException, IOException {
 
-        synchronized (DBUsersInterface.class) {
+        lock.lock();
+        try {
 
             // Null check.
             if (filePath == null) {
@@ -111,10 +156,10 @@ public abstract class DBUsersInterface {
 
                 DBUsersInterface.filePath = filePath;
 
-                System.out.printf("DB Users file %s attached.\n", filePath);
+                Log.info(Category.PERSISTENCE, "DB Users file %s attached.", filePath);
             } catch (FileNotFoundException ex) {
 
-                System.out.printf("DB Users file %s not found. Creating it.\n", filePath);
+                Log.info(Category.PERSISTENCE, "DB Users file %s not found. Creating it.", filePath);
 
                 // Create an empty file.
                 try {
@@ -131,13 +176,15 @@ public abstract class DBUsersInterface {
 
                     DBUsersInterface.filePath = filePath;
 
-                    System.out.printf("DB Users file %s created, initialized and attached.\n", filePath);
+                    Log.info(Category.PERSISTENCE, "DB Users file %s created, initialized and attached.", filePath);
                 } catch (IOException ex2) {
                     throw new IOException("Error creating the users database file.");
                 }
 
             }
 
+        } finally {
+            lock.unlock();
         }
 
     }
@@ -147,7 +194,7 @@ public abstract class DBUsersInterface {
      *
      * This fills the file content variable with the file content as String.
      *
-     * Synchronized ON CLASS to avoid multiple threads to read the file at the same time.
+     * Locked ON CLASS (with the class lock) to avoid multiple threads to read the file at the same time.
      *
      * @throws IOException If there's an I/O error reading the file.
      * @throws IllegalStateException If the file is not attached or the file content is already readed.
@@ -155,7 +202,8 @@ public abstract class DBUsersInterface {
      */
     public static void readFile() throws IOException, IllegalStateException {
 
-        synchronized (DBUsersInterface.class) {
+        lock.lock();
+        try {
 
             // File not attached.
             if (file == null || fileIn == null || DBUsersInterface.filePath == null) {
@@ -163,35 +211,26 @@ public abstract class DBUsersInterface {
             }
 
             // File content already readed.
-            if (DBUsersInterface.fileContent != null) {
+            if (DBUsersInterface.fileReaded) {
                 throw new IllegalStateException("Database users file already readed.");
             }
 
             // Initialize empty file lines.
             DBUsersInterface.emptyFileLines = Long.valueOf(0);
 
-            // Read file.
-            StringBuilder fileContentBuilder = new StringBuilder();
-            Integer buffSize = 1024;
-            byte[] buffer = new byte[buffSize];
+            // Read file, at once and decoded once.
+            // Decoding 1024 bytes at a time could split a multi-byte char.
             try {
+                DBUsersInterface.fileContent = new String(fileInBuffered.readAllBytes(), StandardCharsets.UTF_8);
+                DBUsersInterface.fileReaded = true;
 
-                while (true) {
-                    int bytesRead = fileInBuffered.read(buffer, 0, buffSize);
-                    if (bytesRead == -1) {
-                        // End of file.
-                        break;
-                    }
-                    fileContentBuilder.append(new String(buffer, 0, bytesRead));
-                }
-
-                DBUsersInterface.fileContent = fileContentBuilder.toString();
-
-                System.out.printf("DB Users file %s readed.\n", filePath);
-            } catch (IOException | IndexOutOfBoundsException ex) {
+                Log.info(Category.PERSISTENCE, "DB Users file %s readed.", filePath);
+            } catch (IOException ex) {
                 throw new IOException("Error reading the database users file.");
             }
 
+        } finally {
+            lock.unlock();
         }
 
     }
@@ -203,122 +242,126 @@ public abstract class DBUsersInterface {
      *
      * This appends the user to the users database file, at the end, without rewriting all the file.
      *
-     * Synchronized ON CLASS to avoid multiple threads to write on the file at the same time.
-     * Synchronized ON USER to avoid multiple threads to change the user's properties during the execution of this method.
+     * It's a live write, it's a wrapper for the writeUserOnFile() method with the write context.
      *
      * @param user The User to write (append) to the users database file.
      *
      * @throws IllegalStateException If the file content is not loaded.
-     * @throws NoSuchMethodException If the updateUserOnFile() method in this class is not found.
+     * @throws NoSuchMethodException Never thrown anymore, the write context is given explicitly. Kept for the callers.
      * @throws NullPointerException If the user is null.
      * @throws IOException If there's an I/O error.
      *
      */
     public static void writeUserOnFile(User user) throws IllegalStateException, NoSuchMethodException, NullPointerException, IOException {
 
-        synchronized (DBUsersInterface.class) {
+        writeUserOnFile(user, WriteContext.LIVE);
 
-            // Null check.
+    }
+    /**
+     *
+     * Appends an user to the users database file attached, in the write context given by the caller.
+     *
+     * With the UPDATE context (called from updateUserOnFile()) the appended record supersedes the previous one of the same username.
+     * So it's counted as garbage of the log, and a compaction is scheduled if there is enough.
+     *
+     * Locked ON CLASS (with the class lock) to avoid multiple threads to write on the file at the same time.
+     * Synchronized ON USER only while copying it in JSON, to avoid multiple threads to change the user's properties during the copy.
+     * The file I/O is done without the monitor of the user.
+     *
+     * @param user The User to write (append) to the users database file.
+     * @param context The write context.
+     *
+     * @throws IllegalStateException If the file content is not loaded.
+     * @throws NullPointerException If the user or the context are null.
+     * @throws IOException If there's an I/O error.
+     *
+     */
+    static void writeUserOnFile(User user, WriteContext context) throws IllegalStateException, NullPointerException, IOException {
+
+        lock.lock();
+        try {
+
+            // Null checks.
             if (user == null) {
                 throw new NullPointerException("User to append to the users database file cannot be null.");
             }
+            if (context == null) {
+                throw new NullPointerException("Write context to append an user to the users database file cannot be null.");
+            }
 
-            synchronized (user) {
-
-                // File not attached.
-                if (DBUsersInterface.fileContent == null) {
-                    throw new IllegalStateException("Users database file content is needed to append an user to the users database file. Call readFile() before.");
-                }
-
-                String newFileContent = String.format("%s", DBUsersInterface.fileContent);
-
-                // Remove last line.
-                try {
-                    FileHandler.removeLastLine(DBUsersInterface.file);
+            // File not attached.
+            if (DBUsersInterface.fileReaded == false) {
+                throw new IllegalStateException("Users database file content is needed to append an user to the users database file. Call readFile() before.");
+            }
 
-                    // Updating also the file content to keep it in sync with the file on disk without reading it again.
-                    int lastNewLine = newFileContent.lastIndexOf('\n');
-                    if (lastNewLine == -1) {
-                        throw new IOException();
-                    }
-                    newFileContent = newFileContent.substring(0, lastNewLine);
-                } catch (IOException | IndexOutOfBoundsException ex) {
-                    throw new IOException("Error removing the last line from the users database file.");
-                }
+            // The user is appended at the end of the file, so its line is the next one.
+            // Set here, with the class lock, since the users are added concurrently.
+            // The user copied in JSON holding its monitor, only in memory.
+            String jsonUser;
+            synchronized (user) {
+                user.setFileLineId(nextFileLine());
+                jsonUser = gson.toJson(user);
+            }
 
-                // Append user on file.
-                try {
+            // Remove last line.
+            try {
+                FileHandler.removeLastLine(DBUsersInterface.file);
+            } catch (IOException ex) {
+                throw new IOException("Error removing the last line from the users database file.");
+            }
 
-                    String jsonUser = new Gson().toJson(user);
-
-                    // Remove all the '\n' from the JSON user.
-                    jsonUser = String.join("", jsonUser.trim().split("\n"));
-                    if (fileContent.compareTo(FILE_INIT) == 0) {
-                        // First user.
-                        /*
-                        * [\n
-                        *
-                        */
-                        jsonUser = jsonUser + "\n" + "]";
-                    } else {
-                        // Other users.
-                        /*
-                        * [
-                        *  {user1}\n
-                        *
-                        */
-
-                        // Need to remove the last char "\n" before writing the ','.
-                        char c = FileHandler.removeLastChar(DBUsersInterface.file);
-                        try {
-                            newFileContent = newFileContent.substring(0, newFileContent.length() - 1);
-                        } catch (IndexOutOfBoundsException ex) {
-                            throw new IOException();
-                        }
-
-                        jsonUser = """
-                                   ,
-                                   """ + jsonUser + "\n]";
-
-                        // Check if this operation is part of an update user and if the user is the last in the file.
-                        StackTraceElement[] stackTrace = Thread.currentThread().getStackTrace();
-                        String method = null;
-                        try {
-                            method = DBUsersInterface.class.getMethod(UPDATED_METHOD_NAME, User.class, User.class).getName();
-                        }catch (NoSuchMethodException ex) {
-                            throw new NoSuchMethodException(String.format("Method %s in the DBUsersInterface not found.", UPDATED_METHOD_NAME));
-                        }
-                        
-                        for (StackTraceElement stackTraceElement : stackTrace) {
-                            if (method != null && stackTraceElement.getMethodName().compareToIgnoreCase(method) == 0) {
-                                // Remove the ',' if the user updated is the last in the file.
-                                if (c == ' ') {
-                                    jsonUser = jsonUser.substring(1);
-                                }
-                                break;
-                            }
-                        }
+            // Append user on file.
+            try {
 
+                // Remove all the '\n' from the JSON user.
+                jsonUser = String.join("", jsonUser.trim().split("\n"));
+                if (DBUsersInterface.fileRecords == 0) {
+                    // First user.
+                    /*
+                    * [\n
+                    *
+                    */
+                    jsonUser = jsonUser + "\n" + "]";
+                } else {
+                    // Other users.
+                    /*
+                    * [
+                    *  {user1}\n
+                    *
+                    */
+
+                    // Need to remove the last char "\n" before writing the ','.
+                    char c = FileHandler.removeLastChar(DBUsersInterface.file);
+
+                    jsonUser = """
+                               ,
+                               """ + jsonUser + "\n]";
+
+                    // Remove the ',' if the last line is an empty one of an old file, the record before it has already its ','.
+                    if (c == ' ') {
+                        jsonUser = jsonUser.substring(1);
                     }
 
-                    // Append to the file.
-                    fileOutBuffered.write(jsonUser.getBytes());
-                    fileOutBuffered.flush();
+                }
 
-                    // Update the file content by adding the new user.
-                    newFileContent = newFileContent + jsonUser;
+                // Append to the file.
+                fileOutBuffered.write(jsonUser.getBytes());
+                fileOutBuffered.flush();
 
-                    // Update the main file content variable.
-                    DBUsersInterface.fileContent = newFileContent;
+            } catch (IOException ex) {
+                throw new IOException("Error appending the new user to the users database file.");
+            }
 
-                } catch (IOException ex) {
-                    throw new IOException("Error appending the new user to the users database file.");
-                } catch (NoSuchMethodException ex) {
-                    throw new NoSuchMethodException(String.format("Method %s in the DBUsersInterface not found.", UPDATED_METHOD_NAME));
-                }
+            DBUsersInterface.fileRecords++;
 
+            // The previous record of this user is now garbage.
+            if (context == WriteContext.UPDATE) {
+                DBUsersInterface.deadRecords++;
+                scheduleCompactionIfNeeded();
             }
 
+        } finally {
+            lock.unlock();
         }
 
     }
@@ -328,15 +371,15 @@ public abstract class DBUsersInterface {
      * Updates an user in the users database file attached.
      * Updates means that the user's password is changed.
      *
-     * This overwrites the old user (the user with the old password) line in the users database file with spaces and appends the new user (the user with the new password) to the end of file.
-     * The old user position in the file is given by its file line id.
-     *
-     * This is done to avoid rewriting all the users database file.
+     * This appends the new user (the user with the new password) to the end of the log, the old user record is left as it is.
+     * When the file is loaded, the last record of an username wins, so a single append is enough.
      *
-     * WARNING: It creates fragmentation in the users database file, but that's the best I can do since the files are not perfect to be used as databases.
+     * This is done to avoid rewriting (or scanning) all the users database file.
+     * The old records are dropped later by the background compaction.
      *
-     * Synchronized ON CLASS to avoid multiple threads to update the users database file at the same time.
-     * Synchronized ON OLD USER and NEW USER to avoid multiple threads to change the users' properties during the execution of this method.
+     * Locked ON CLASS (with the class lock) to avoid multiple threads to update the users database file at the same time.
+     * Not synchronized on the users, their properties are read with their synchronized getters, and the new user is copied holding its monitor by writeUserOnFile().
+     * So no monitor is held during the file I/O.
      *
      * @param oldUser The old user to update.
      * @param newUser The new user to update with.
@@ -344,15 +387,16 @@ public abstract class DBUsersInterface {
      * @throws IllegalStateException If the users database file content is not loaded.
      * @throws NullPointerException If the old user or the new user are null.
      * @throws IllegalArgumentException If the old user file line id IS null or the new user file line id is NOT null or the new user username is different from the old user username.
-     * @throws IOException If there's an I/O error editing the old user line from the users database file or if an error occurs while writing the user on the users database file. 
-     * @throws RuntimeException If the old user file line id is wrong.
+     * @throws IOException If an error occurs while writing the user on the users database file.
+     * @throws RuntimeException Never thrown anymore, the old user line is not edited. Kept for the callers.
      * @throws InvalidUser If the NEW user already exists in the database.
-     * @throws NoSuchMethodException If the loadUsers() method is not found or if the updateUserOnFile() method in this class is not found in the DBUsersInterface class.
+     * @throws NoSuchMethodException Never thrown anymore, the write context is given explicitly. Kept for the callers.
      *
      */
     public static void updateUserOnFile(User oldUser, User newUser) throws IllegalStateException, NullPointerException, RuntimeException, IOException, InvalidUser, NoSuchMethodException, IllegalArgumentException {
 
-        synchronized (DBUsersInterface.class) {
+        lock.lock();
+        try {
 
             // Null check.
             if (oldUser == null) {
@@ -362,53 +406,65 @@ public abstract class DBUsersInterface {
                 throw new NullPointerException("The new user to update with in the users database file cannot be null.");
             }
 
-            synchronized (oldUser) {
-                synchronized (newUser) {
+            // File not attached.
+            if (DBUsersInterface.fileReaded == false) {
+                throw new IllegalStateException("Users database file content is needed to update an user in the users database file. Call readFile() before.");
+            }
 
-                    // File not attached.
-                    if (DBUsersInterface.fileContent == null) {
-                        throw new IllegalStateException("Users database file content is needed to update an user in the users database file. Call readFile() before.");
-                    }
+            // Null file line id checks.
+            if (oldUser.getFileLineId() == null) {
+                throw new IllegalArgumentException("Old user file line id to use to update an user in the users database file cannot be null.");
+            }
+            if (newUser.getFileLineId() != null) {
+                throw new IllegalArgumentException("New user file line id to use to update an user in the users database file MUST be null.");
+            }
 
-                    // Null file line id checks.
-                    if (oldUser.getFileLineId() == null) {
-                        throw new IllegalArgumentException("Old user file line id to use to update an user in the users database file cannot be null.");
-                    }
-                    if (newUser.getFileLineId() != null) {
-                        throw new IllegalArgumentException("New user file line id to use to update an user in the users database file MUST be null.");
-                    }
+            // Checking if the new user has the same username as the old user.
+            if (oldUser.getUsername().compareToIgnoreCase(newUser.getUsername()) != 0) {
+                throw new IllegalArgumentException("New user username to use to update an user in the users database file cannot be different from the old user username, only the password can be changed.");
+            }
 
-                    // Checking if the new user has the same username as the old user.
-                    if (oldUser.getUsername().compareToIgnoreCase(newUser.getUsername()) != 0) {
-                        throw new IllegalArgumentException("New user username to use to update an user in the users database file cannot be different from the old user username, only the password can be changed.");
-                    }
+            // Write the new user, it supersedes the old user record.
+            // The exceptions throwed are backwarded to the caller.
+            Users.addUser(newUser, WriteContext.UPDATE);
 
-                    // Removing the old user line from the users database file by overwriting it with spaces.
-                    try {
-                        FileHandler.editLine(DBUsersInterface.file, oldUser.getFileLineId());
-
-                        // Updating also the file content to keep it in sync with the file on disk without reading it again.
-                        String[] lines = DBUsersInterface.fileContent.split("\n");
-                        Integer spaces = lines[oldUser.getFileLineId().intValue()].length();
-                        String newLine = " ".repeat(spaces);
-                        lines[oldUser.getFileLineId().intValue()] = newLine;
-                        DBUsersInterface.fileContent = String.join("\n", lines);
-
-                        DBUsersInterface.emptyFileLines++;
-                    } catch (IllegalArgumentException | IndexOutOfBoundsException ex) {
-                        ex.printStackTrace();
-                        throw new RuntimeException("Error editing the old user line from the users database file, wrong line id.");
-                    } catch (IOException ex) {
-                        throw new IOException("I/O error editing the old user line from the users database file.");
-                    }
+        } finally {
+            lock.unlock();
+        }
 
-                    // Write the new user.
-                    // The exceptions throwed are backwarded to the caller.
-                    Users.addUser(newUser);
+    }
+    /**
+     *
+     * Closes the users database file attached, at the shutdown of the server.
+     *
+     * Locked ON CLASS (with the class lock), so it waits for the user being appended, and for the replacement of a compaction.
+     * After it, the writes are refused as without the file read, and no compaction is scheduled anymore.
+     *
+     * @throws IOException If there's an I/O error closing the file.
+     *
+     */
+    public static void closeFile() throws IOException {
 
-                }
+        lock.lock();
+        try {
+
+            // Not read or already closed.
+            if (DBUsersInterface.fileReaded == false) {
+                return;
+            }
+            DBUsersInterface.fileReaded = false;
+
+            try {
+                fileOutBuffered.close();
+                fileInBuffered.close();
+            } catch (IOException ex) {
+                throw new IOException("Error closing the users database file.");
             }
 
+            Log.info(Category.PERSISTENCE, "DB Users file %s closed.", DBUsersInterface.filePath);
+
+        } finally {
+            lock.unlock();
         }
 
     }
@@ -433,46 +489,52 @@ public abstract class DBUsersInterface {
      *
      * This is used to calculate the new file line id to assign it to a new user before adding it to the users database file.
      *
-     * Synchronized ON CLASS to avoid multiple threads to calculate the file lines at the same time.
+     * Locked ON CLASS (with the class lock) to avoid multiple threads to calculate the file lines at the same time.
      *
      * @return The number of lines in the users database file attached as Long.
      *
-     * @throws IllegalStateException If the file content is not readed or the users are not loaded and we are not in the addUser() method in the Users class used to load users.
-     * @throws NoSuchMethodException If the addUser() method in the Users class is not found.
+     * @throws IllegalStateException If the file content is not readed or the users are not loaded.
+     * @throws NoSuchMethodException Never thrown anymore, the write context is given explicitly. Kept for the callers.
      *
      */
     public static Long calculateFileLines() throws IllegalStateException, NoSuchMethodException {
 
-        synchronized (DBUsersInterface.class) {
-
-            // Need to skip this check if this method is called by the addUser() method in the Users class.
-            Boolean checkDatabaseLoaded = true;
-            String method = null;
-            try {
-                method = Users.class.getMethod(ADDUSER_METHOD_NAME, User.class).getName();
-            }catch (NoSuchMethodException ex) {
-                throw new NoSuchMethodException(String.format("Method %s in the Users class not found.", ADDUSER_METHOD_NAME));
-            }
+        lock.lock();
+        try {
 
-            String className = Users.class.getName();
-            StackTraceElement[] stackTrace = Thread.currentThread().getStackTrace();
-            for (StackTraceElement stackTraceElement : stackTrace) {
-                if (stackTraceElement.getClassName().compareToIgnoreCase(className) == 0 && stackTraceElement.getMethodName().compareToIgnoreCase(method) == 0) {
-                    checkDatabaseLoaded = false;
-                    break;
-                }
-            }
-            if (checkDatabaseLoaded && (DBUsersInterface.fileContent == null || DBUsersInterface.usersLoaded() == false)) {
+            if (DBUsersInterface.fileReaded == false || DBUsersInterface.usersLoaded() == false) {
                 throw new IllegalStateException("Database users file content must be readed and the users database must be loaded to calculate the file lines. Call readFile() and loadUsers() before.");
             }
 
-            // + 1 for the first line with "[".
-            // + emptyFileLines for the empty lines in the users database file, so the users database file lines where the users that have been updated and so the corresponding lines are overwritten with spaces.
-            // + Users.getUsersSize() for the users in the database, so the filled lines.
-            return 1 + Users.getUsersSize() + DBUsersInterface.emptyFileLines;
+            return nextFileLine();
 
+        } finally {
+            lock.unlock();
         }
 
+    }
+    /**
+     *
+     * Same as calculateFileLines(), but without the checks, since it's used by the addUser() method in the Users class also while loading the users.
+     *
+     * Package-private, used only by the Users class.
+     *
+     * @return The number of lines in the users database file attached as Long.
+     *
+     */
+    static Long nextFileLine() {
+
+        lock.lock();
+        try {
+
+            // + 1 for the first line with "[".
+            // + emptyFileLines for the empty lines of an old users database file, where the updated users were overwritten with spaces.
+            // + fileRecords for the users records in the log, so the filled lines (the superseded ones included).
+            return 1 + DBUsersInterface.fileRecords + DBUsersInterface.emptyFileLines;
+
+        } finally {
+            lock.unlock();
+        }
 
     }
 
@@ -494,28 +556,32 @@ public abstract class DBUsersInterface {
      *
      * Loads users from the users database file (previously readed and stored in the file content variable) to Users class (in RAM).
      *
-     * Synchronized ON CLASS to avoid multiple threads to load users at the same time.
+     * Locked ON CLASS (with the class lock) to avoid multiple threads to load users at the same time.
      *
      * Before using this method, the file must be readed with readFile().
      *
      * At all the users loaded is added an unique file line id. This is used to update the users database file on user update (password change) without rewriting all the file.
      *
+     * The file content is split in chunks of whole lines, parsed in parallel with the shared Gson.
+     * Then the chunks are replayed in file order (the last record of an username wins) and inserted in bulk, not one add per record.
+     *
      * THIS METHOD IS MEANT TO BE USED ONLY AS SUPPORT FROM THE Users CLASS.
      * CALL THIS METHOD FROM THE Users CLASS.
      *
      * @throws IllegalStateException If the file is not readed or the users are already loaded.
      * @throws JsonSyntaxException If there's an error parsing the JSON users database file content.
      * @throws InvalidUser If the user already exists in the database.
-     * @throws NoSuchMethodException If the loadUsers() method is not found or if the updateUserOnFile() method in this class is not found in the DBUsersInterface class.
+     * @throws NoSuchMethodException Never thrown anymore, the write context is given explicitly. Kept for the callers.
      * @throws IOException If an error occurs while writing the user on the users database file.
      * 
      */
     public static void loadUsers() throws IllegalStateException, JsonSyntaxException, InvalidUser, NoSuchMethodException, IOException {
 
-        synchronized (DBUsersInterface.class) {
+        lock.lock();
+        try {
 
             // Users database file content not readed check.
-            if (DBUsersInterface.fileContent == null) {
+            if (DBUsersInterface.fileReaded == false) {
                 throw new IllegalStateException("Database users file not read. Read it before with readFile().");
             }
 
@@ -524,44 +590,351 @@ public abstract class DBUsersInterface {
                 throw new IllegalStateException("Users database already loaded.");
             }
 
+            // Parsing the log in chunks of lines, in parallel.
+            List<ParsedChunk> chunks;
+            try {
+                chunks = splitInChunks(DBUsersInterface.fileContent).parallelStream().map(DBUsersInterface::parseChunk).toList();
+            } catch (JsonSyntaxException ex) {
+                throw new JsonSyntaxException("Error parsing the JSON users database file content.");
+            }
 
-            // IMPORTANT: The file could be already initialized before from the program, but no users has been added yet.
-            if (DBUsersInterface.fileContent.compareTo(FILE_INIT) == 0) {
+            // Replaying the log in order, the last record of an username wins.
+            // RAM only, it's already on file.
+            // Exceptions throwed by the addLoadedUsers() method are backwarded to the caller.
+            long lineOffset = 0;
+            for (ParsedChunk chunk : chunks) {
+                for (User user : chunk.records) {
+                    // Chunk's line id to file line id.
+                    user.setFileLineId(user.getFileLineId() + lineOffset);
+                }
+                DBUsersInterface.deadRecords += Users.addLoadedUsers(chunk.records);
+                DBUsersInterface.fileRecords += chunk.records.size();
+                DBUsersInterface.emptyFileLines += chunk.emptyLines;
+                lineOffset += chunk.lines;
+            }
 
-                DBUsersInterface.usersLoaded = true;
+            // Not needed anymore, the log is only appended from now on.
+            DBUsersInterface.fileContent = null;
 
-                System.out.printf("Users loaded from DB Users file %s.\n", DBUsersInterface.filePath);
+            DBUsersInterface.usersLoaded = true;
 
-                return;
+            Log.info(Category.PERSISTENCE, "Users loaded from DB Users file %s.", DBUsersInterface.filePath);
+
+            // An old file could be full of empty lines.
+            scheduleCompactionIfNeeded();
+
+        } finally {
+            lock.unlock();
+        }
+
+    }
+
+    // LOADING SUPPORT
+    /**
+     *
+     * A chunk of lines of the users database file, parsed.
+     *
+     * The records have as file line id their line in the chunk, the loader adds the lines of the chunks before.
+     *
+     */
+    private static final class ParsedChunk {
+
+        private final ArrayList<User> records = new ArrayList<>();
+        private long lines = 0;
+        private long emptyLines = 0;
+
+    }
+    /**
+     *
+     * Splits the users database file content in chunks of whole lines, to be parsed in parallel.
+     *
+     * @param content The users database file content.
+     *
+     * @return The chunks, in file order, as [start, end) offsets in the content.
+     *
+     */
+    private static List<int[]> splitInChunks(String content) {
+
+        int chunksCount = (int) Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() * 4L, content.length() / LOAD_CHUNK_MIN_CHARS));
+
+        ArrayList<int[]> chunks = new ArrayList<>(chunksCount);
+        int start = 0;
+        for (int i = 1; i <= chunksCount && start < content.length(); i++) {
+
+            int end = (int) ((long) content.length() * i / chunksCount);
+            if (i < chunksCount) {
+                // A chunk ends after a '\n', so it has only whole lines.
+                int newLine = content.indexOf('\n', Math.max(start, end - 1));
+                end = newLine == -1 ? content.length() : newLine + 1;
+            }
+            if (end > start) {
+                chunks.add(new int[] {start, end});
             }
+            start = end;
 
-            // Not empty file.
-            try {
+        }
+        return chunks;
+
+    }
+    /**
+     *
+     * Parses the lines of a chunk of the users database file content, with the shared Gson.
+     *
+     * The lines are trimmed instead of removing all their spaces with regexes, the array brackets lines are skipped.
+     *
+     * @param chunk The [start, end) offsets of the chunk in the users database file content.
+     *
+     * @return The chunk parsed.
+     *
+     * @throws JsonSyntaxException If a record is not a valid JSON user.
+     *
+     */
+    private static ParsedChunk parseChunk(int[] chunk) throws JsonSyntaxException {
+
+        String content = DBUsersInterface.fileContent;
+        ParsedChunk parsed = new ParsedChunk();
+
+        int lineStart = chunk[0];
+        while (lineStart < chunk[1]) {
+
+            int lineEnd = content.indexOf('\n', lineStart);
+            if (lineEnd == -1 || lineEnd > chunk[1]) {
+                lineEnd = chunk[1];
+            }
 
-                String[] lines = DBUsersInterface.fileContent.split("\n");
-                for (String line : lines) {
-                    if (line.compareTo("[") == 0 || line.compareTo("]") == 0) continue;
-                    line = line.replaceAll(" ", "").replaceAll("\\[", "").replaceAll("\\]", "");
-                    if (line.compareTo("") == 0) {
-                        DBUsersInterface.emptyFileLines++;
-                    }else {
-                        if (line.charAt(line.length() - 1) == ',') {
-                            line = line.substring(0, line.length() - 1);
-                        }
-                        User user = new Gson().fromJson(line, User.class);
-                        // Exceptions throwed by the addUser() method are backwarded to the caller.
-                        Users.addUser(user);
+            // Trimming, also the array brackets and the records separator.
+            int from = lineStart;
+            int to = lineEnd;
+            while (from < to && (Character.isWhitespace(content.charAt(from)) || content.charAt(from) == '[')) from++;
+            while (to > from && (Character.isWhitespace(content.charAt(to - 1)) || content.charAt(to - 1) == ']' || content.charAt(to - 1) == ',')) to--;
+
+            if (from == to) {
+                // The array brackets lines are not empty lines.
+                if (content.substring(lineStart, lineEnd).trim().isEmpty()) {
+                    parsed.emptyLines++;
+                }
+            } else {
+                User user = decodeRecord(content, from, to);
+                if (user == null) {
+                    // Not in the shape written by this class, the general parser.
+                    user = gson.fromJson(content.substring(from, to), User.class);
+                }
+                if (user == null) {
+                    throw new JsonSyntaxException("Invalid user record in the users database file.");
+                }
+                user.setFileLineId(parsed.lines);
+                parsed.records.add(user);
+            }
+
+            parsed.lines++;
+            lineStart = lineEnd + 1;
+
+        }
+        return parsed;
+
+    }
+
+    /**
+     *
+     * Decodes an user record in the exact shape written by Gson for an User ({"username":"...","password":"..."}), without reflection.
+     *
+     * Any other shape (other fields order, spaces, escaped chars) is left to Gson.
+     *
+     * @param content The users database file content.
+     * @param from The start of the record in the content.
+     * @param to The end (excluded) of the record in the content.
+     *
+     * @return The user decoded, or null if the record is not in the expected shape.
+     *
+     */
+    private static User decodeRecord(String content, int from, int to) {
+
+        if (to - from < RECORD_USERNAME.length() + RECORD_PASSWORD.length() + 2) {
+            return null;
+        }
+        if (!content.startsWith(RECORD_USERNAME, from) || content.charAt(to - 1) != '}' || content.charAt(to - 2) != '"') {
+            return null;
+        }
+
+        int usernameStart = from + RECORD_USERNAME.length();
+        int usernameEnd = content.indexOf('"', usernameStart);
+        if (usernameEnd == -1 || !content.startsWith(RECORD_PASSWORD, usernameEnd)) {
+            return null;
+        }
+
+        int passwordStart = usernameEnd + RECORD_PASSWORD.length();
+        int passwordEnd = to - 2;
+        if (passwordEnd < passwordStart || content.indexOf('"', passwordStart) != passwordEnd) {
+            return null;
+        }
+
+        String username = content.substring(usernameStart, usernameEnd);
+        String password = content.substring(passwordStart, passwordEnd);
+        if (username.indexOf('\\') != -1 || password.indexOf('\\') != -1) {
+            return null;
+        }
+
+        try {
+            // No password check, it's a stored one (a hash).
+            return new User(username, password, true);
+        } catch (IllegalArgumentException ex) {
+            // Left to Gson, as the records of the old loader.
+            return null;
+        }
+
+    }
+
+    // COMPACTION
+    /**
+     *
+     * Schedules a compaction of the users database file, even if its garbage is under the thresholds.
+     *
+     * Used after the migration of the plaintext passwords, so their superseded records don't stay on the disk until enough garbage.
+     *
+     * Package-private, used only by the Users class.
+     *
+     */
+    static void scheduleCompaction() {
+
+        scheduleCompaction(true);
+
+    }
+    private static void scheduleCompactionIfNeeded() {
+
+        scheduleCompaction(false);
+
+    }
+    private static void scheduleCompaction(Boolean force) {
+
+        lock.lock();
+        try {
+
+            Long garbage = DBUsersInterface.deadRecords + DBUsersInterface.emptyFileLines;
+            if (DBUsersInterface.fileReaded == false || compactionScheduled || garbage == 0 || (!force && (garbage < COMPACTION_MIN_GARBAGE || garbage < Users.getUsersSize()))) {
+                return;
+            }
+            compactionScheduled = true;
+
+            compactor.execute(() -> {
+                Boolean compacted = true;
+                try {
+                    compacted = compact();
+                } catch (IOException ex) {
+                    // This is a background thread, so I don't backward the exception, instead I print it and I try to continue.
+                    Log.warn(Category.PERSISTENCE, "Error compacting the users database file: %s Trying to continue...", ex.getMessage());
+                } finally {
+                    lock.lock();
+                    try {
+                        compactionScheduled = false;
+                    } finally {
+                        lock.unlock();
                     }
                 }
+                // Discarded since appended in the meantime, retrying now without waiting for the next update.
+                if (!compacted) {
+                    scheduleCompaction(force);
+                }
+            });
 
-            } catch (JsonSyntaxException ex) {
-                throw new JsonSyntaxException("Error parsing the JSON users database file content.");
+        } finally {
+            lock.unlock();
+        }
+
+    }
+    /**
+     *
+     * Rewrites the users database file with only the live users, one record per user.
+     *
+     * The live users are taken with the locks, but the new file is written without them.
+     * Then, with the locks, the new file replaces the log only if nothing has been appended in the meantime, otherwise it's discarded and retried.
+     *
+     * The write side of the Users registry lock is taken before the class lock, as the writes of the Users class do with the read side.
+     * So no user is in the middle of a write (added in the map but not on the file, or the opposite) while the users are taken.
+     *
+     * Called only by the compactor thread.
+     *
+     * @return True if the users database file has been compacted, false if the compacted file has been discarded.
+     *
+     * @throws IOException If the new file cannot be written or moved.
+     *
+     */
+    private static Boolean compact() throws IOException {
+
+        ArrayList<User> liveUsers;
+        Long records;
+        Users.registryLock.writeLock().lock();
+        try {
+            lock.lock();
+            try {
+                liveUsers = Users.getUsersSnapshot();
+                records = DBUsersInterface.fileRecords;
+            } finally {
+                lock.unlock();
             }
+        } finally {
+            Users.registryLock.writeLock().unlock();
+        }
 
-            DBUsersInterface.usersLoaded = true;
+        StringBuilder content = new StringBuilder("[\n");
+        for (int i = 0; i < liveUsers.size(); i++) {
+            String jsonUser = gson.toJson(liveUsers.get(i));
+            content.append(String.join("", jsonUser.trim().split("\n")));
+            content.append(i == liveUsers.size() - 1 ? "\n" : ",\n");
+        }
+        content.append(liveUsers.isEmpty() ? "]\n" : "]");
+
+        Path path = DBUsersInterface.file.toPath();
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            Files.write(temporary, content.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException ex) {
+            throw new IOException("Error writing the compacted users database file.");
+        }
 
-            System.out.printf("Users loaded from DB Users file %s.\n", DBUsersInterface.filePath);
+        Users.registryLock.writeLock().lock();
+        try {
+            lock.lock();
+            try {
+
+                // Closed in the meantime, at the shutdown of the server, the file is not replaced anymore.
+                if (DBUsersInterface.fileReaded == false) {
+                    Files.deleteIfExists(temporary);
+                    return true;
+                }
+
+                // Appended in the meantime, the compacted file is old.
+                if (records.compareTo(DBUsersInterface.fileRecords) != 0) {
+                    Files.deleteIfExists(temporary);
+                    return false;
+                }
+
+                try {
+                    fileOutBuffered.close();
+                    Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException ex) {
+                    throw new IOException("Error replacing the users database file with the compacted one.");
+                } finally {
+                    // The appends must go to the current file, the replaced one or the compacted one.
+                    fileOut = new FileOutputStream(DBUsersInterface.file, true);
+                    fileOutBuffered = new BufferedOutputStream(fileOut);
+                }
 
+                // The users are now one per line, in order.
+                for (int i = 0; i < liveUsers.size(); i++) {
+                    liveUsers.get(i).setFileLineId((long) i + 1);
+                }
+                DBUsersInterface.fileRecords = (long) liveUsers.size();
+                DBUsersInterface.deadRecords = 0L;
+                DBUsersInterface.emptyFileLines = 0L;
+
+                Log.info(Category.PERSISTENCE, "DB Users file %s compacted, %d users.", DBUsersInterface.filePath, liveUsers.size());
+                return true;
+
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            Users.registryLock.writeLock().unlock();
         }
 
     }
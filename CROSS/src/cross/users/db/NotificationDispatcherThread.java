@@ -0,0 +1,200 @@
+package cross.users.db;
+
+import cross.api.notifications.Notification;
+import cross.logging.Log;
+import cross.logging.Log.Category;
+import cross.metrics.Metrics;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ *
+ * This thread delivers the trades' notifications in the background, see Users.notifyUsers().
+ *
+ * The order book publishes the notifications in a ring buffer, a fixed array of slots, while holding its lock, without waiting for the UDP sends.
+ * A publishing thread claims the next slot moving the tail forward with a compareAndSet, then it publishes its notification in the slot.
+ * This thread takes the notifications in order from the head, freeing their slots, and delivers them in batches (see Users.deliverNotifications()).
+ * So the matching latency doesn't depend on how many users and endpoints are notified.
+ *
+ * The ring buffer is bounded, so a dispatcher slower than the matching cannot fill the heap.
+ * If it's full, the notification is dropped and counted (see Metrics.countNotificationDropped()), the count is logged with the next batch.
+ * A notification dropped has no sequence number, so the client cannot ask it again: the ring buffer must hold the bursts expected.
+ * The notifications of a user are delivered in the order they are published, since there is a single dispatcher.
+ *
+ * While the queue is empty this thread parks, and the publishing threads wake it up only if it's parked.
+ *
+ * @version 1.0
+ * @author Giulio Nisi
+ *
+ * @see Users
+ * @see Notification
+ *
+ */
+class NotificationDispatcherThread extends Thread {
+
+    // Max wait while parked, in nanoseconds, if a wake up is missed.
+    private static final long PARK_NANOS = 100_000_000L;
+
+    // Max time to deliver the notifications queued when stopping, in milliseconds.
+    private static final long SHUTDOWN_MILLIS = 5000;
+
+    // Max notifications delivered in a batch, so a burst doesn't delay the first ones of it.
+    private static final int MAX_BATCH = 256;
+
+    // Slots of the ring buffer, a power of two, null if free.
+    private final AtomicReferenceArray<Notification> slots;
+    private final int mask;
+
+    // Sequences of the next slot to claim and of the next slot to take, growing forever, the slot is the sequence masked.
+    // The head is moved only by this thread.
+    private final AtomicLong tail = new AtomicLong(0);
+    private volatile long head = 0;
+
+    // Notifications dropped with the ring buffer full, not logged yet.
+    private final AtomicLong dropped = new AtomicLong(0);
+
+    // If this thread is parked, or it's going to, waiting for notifications.
+    private volatile Boolean parked = false;
+
+    private volatile Boolean isRunning = true;
+
+    /**
+     *
+     * Constructor of the class.
+     *
+     * @param bufferSize The notifications held by the ring buffer, rounded up to a power of two.
+     *
+     * @throws IllegalArgumentException If the size is not positive or too large.
+     *
+     */
+    public NotificationDispatcherThread(int bufferSize) throws IllegalArgumentException {
+
+        if (bufferSize <= 0 || bufferSize > (1 << 30)) {
+            throw new IllegalArgumentException("The size of the notifications' ring buffer must be positive and at most 2^30.");
+        }
+
+        int capacity = Integer.highestOneBit(bufferSize);
+        if (capacity < bufferSize) {
+            capacity <<= 1;
+        }
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+
+        this.setName("notification-dispatcher");
+
+    }
+
+    /**
+     *
+     * Queues a notification to deliver, without blocking.
+     *
+     * @param notification The notification.
+     *
+     * @return True if the notification is queued or dropped with the ring buffer full, false if this thread is stopping and the caller must deliver it.
+     *
+     */
+    public Boolean offer(Notification notification) {
+
+        if (!this.isRunning) {
+            return false;
+        }
+
+        while (true) {
+            long sequence = this.tail.get();
+            if (sequence - this.head > this.mask) {
+                // Full.
+                this.dropped.incrementAndGet();
+                Metrics.countNotificationDropped();
+                return true;
+            }
+            if (this.tail.compareAndSet(sequence, sequence + 1)) {
+                this.slots.set((int) (sequence & this.mask), notification);
+                break;
+            }
+        }
+
+        if (this.parked) {
+            this.parked = false;
+            LockSupport.unpark(this);
+        }
+        return true;
+
+    }
+
+    /**
+     *
+     * Stops the thread, after delivering the notifications queued.
+     *
+     * The notifications published while stopping are delivered by the publishing threads.
+     *
+     */
+    public void shutdown() {
+
+        this.isRunning = false;
+        LockSupport.unpark(this);
+        try {
+            this.join(SHUTDOWN_MILLIS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+    }
+
+    @Override
+    public void run() {
+
+        Log.info(Category.NETWORK, "Notification dispatcher thread started.");
+
+        ArrayList<Notification> batch = new ArrayList<>(MAX_BATCH);
+        while (true) {
+
+            // The notifications published, in order, until a free slot or a slot claimed and not published yet.
+            long sequence = this.head;
+            Notification notification;
+            while (batch.size() < MAX_BATCH && (notification = this.slots.get((int) (sequence & this.mask))) != null) {
+                this.slots.set((int) (sequence & this.mask), null);
+                sequence++;
+                this.head = sequence;
+                batch.add(notification);
+            }
+
+            long lost = this.dropped.getAndSet(0);
+            if (lost > 0) {
+                Log.warn(Category.NETWORK, "%d notifications dropped, the notifications' ring buffer was full.", lost);
+            }
+
+            if (!batch.isEmpty()) {
+                try {
+                    Users.deliverNotifications(batch);
+                } catch (RuntimeException ex) {
+                    Log.warn(Category.NETWORK, "Error delivering %d notifications: %s Trying to continue...", batch.size(), ex.getMessage());
+                }
+                batch.clear();
+                continue;
+            }
+
+            if (this.tail.get() != sequence) {
+                // A slot claimed and not published yet, it's going to be.
+                Thread.onSpinWait();
+                continue;
+            }
+            if (!this.isRunning) {
+                break;
+            }
+
+            // Parked, then checked again, so a notification queued before the flag is seen is not missed.
+            this.parked = true;
+            if (this.tail.get() == sequence && this.isRunning) {
+                LockSupport.parkNanos(this, PARK_NANOS);
+            }
+            this.parked = false;
+
+        }
+
+        Log.info(Category.NETWORK, "Notification dispatcher thread ended.");
+
+    }
+
+}
@@ -0,0 +1,104 @@
+package cross.users.db;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * This class is the notifications history of a user: the sequence numbers of its notifications datagrams and the last ones sent.
+ *
+ * Each datagram sent to a user takes the next sequence number, from 1, so the client detects the lost and the reordered datagrams.
+ * A history has an epoch, sent in all its datagrams, so the client tells a new sequence (the server restarted, or the user logged in again) from a late duplicate.
+ * The epochs are the milliseconds of the creation of the histories, increased by one if taken in the same millisecond, so a newer history has a greater epoch, also after a restart.
+ * The last datagrams are kept in a ring buffer, indexed by their sequence number masked, to retransmit them when the client asks for a gap.
+ * An older datagram is overwritten, its retransmission is answered as lost.
+ *
+ * The datagrams are numbered by the notification dispatcher and read by the retransmissions, from the notification register thread.
+ * Synchronized methods, held only for the copy of a reference.
+ *
+ * Package-private, it's used only by the Users class.
+ *
+ * @version 1.0
+ * @author Giulio Nisi
+ *
+ * @see Users
+ * @see NotificationDispatcherThread
+ *
+ */
+class NotificationHistory {
+
+    // Datagrams kept for each user, a power of two.
+    public static final int SIZE = 256;
+    private static final int MASK = SIZE - 1;
+
+    // JSON of the last datagrams, by sequence number masked.
+    private final String[] datagrams = new String[SIZE];
+    // Sequence numbers of the datagrams kept, a slot taken and not kept yet has an older one.
+    private final long[] seqs = new long[SIZE];
+
+    // Last epoch taken by a history.
+    private static final AtomicLong lastEpoch = new AtomicLong(0);
+
+    // Epoch of the sequence numbers of this history.
+    private final long epoch = lastEpoch.accumulateAndGet(System.currentTimeMillis(), (last, now) -> Math.max(last + 1, now));
+
+    // Sequence number of the next datagram.
+    private long nextSeq = 1;
+
+    /**
+     *
+     * Getter for the epoch of the sequence numbers.
+     *
+     * @return The epoch, greater than the ones of the histories created before.
+     *
+     */
+    public long getEpoch() {
+
+        return this.epoch;
+
+    }
+    /**
+     *
+     * Takes the next sequence number, for a datagram to send.
+     *
+     * @return The sequence number.
+     *
+     */
+    public synchronized long nextSeq() {
+
+        return this.nextSeq++;
+
+    }
+    /**
+     *
+     * Keeps a datagram sent, for its retransmission.
+     *
+     * @param seq The sequence number of the datagram, taken with nextSeq().
+     * @param datagram The JSON of the datagram.
+     *
+     */
+    public synchronized void put(long seq, String datagram) {
+
+        this.datagrams[(int) (seq & MASK)] = datagram;
+        this.seqs[(int) (seq & MASK)] = seq;
+
+    }
+    /**
+     *
+     * Gets a datagram sent, to retransmit it.
+     *
+     * @param seq The sequence number of the datagram.
+     *
+     * @return The JSON of the datagram, null if not sent yet or no more kept.
+     *
+     */
+    public synchronized String get(long seq) {
+
+        if (seq < 1 || this.seqs[(int) (seq & MASK)] != seq) {
+            return null;
+        }
+
+        return this.datagrams[(int) (seq & MASK)];
+
+    }
+
+}
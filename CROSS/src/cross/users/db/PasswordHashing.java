@@ -0,0 +1,312 @@
+package cross.users.db;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.spec.KeySpec;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ *
+ * This class hashes and verifies the users' passwords, so the users database stores only salted hashes.
+ *
+ * The hash is PBKDF2 (HMAC-SHA512) from the JDK, with a random salt per password.
+ * A stored password is encoded as "pbkdf2-sha512$iterations$salt$hash" (salt and hash in Base64), so the iterations can be raised later without breaking the old hashes.
+ * A stored password without this prefix is a plaintext one of an old users database file, the Users class migrates them at the loading.
+ *
+ * The hashing is slow by design and CPU bound, so it's done by a fixed size executor, not by the client's threads.
+ * The tasks in progress are bounded, a caller waits for a free slot (backpressure) and gives up after a timeout.
+ *
+ * The successful verifications are cached for a short time, so a reconnection storm does not hash again.
+ * The cache never stores the passwords, only an HMAC of them with a random key of this process.
+ *
+ * Abstract and package-private, it's used only by the Users class with static methods.
+ *
+ * @version 1.0
+ * @author Giulio Nisi
+ *
+ * @see Users
+ *
+ */
+abstract class PasswordHashing {
+
+    private static final String PREFIX = "pbkdf2-sha512";
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA512";
+    private static final int ITERATIONS = 210_000;
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+
+    // Hashing executor, one thread per core since the hashing is CPU bound.
+    private static final int THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private static final AtomicInteger threadsCounter = new AtomicInteger(0);
+    private static final ExecutorService executor = Executors.newFixedThreadPool(THREADS, runnable -> {
+        Thread thread = new Thread(runnable, String.format("%s-%d", PasswordHashing.class.getSimpleName(), threadsCounter.incrementAndGet()));
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Tasks in progress (running or queued) at most, over this the callers wait.
+    private static final Semaphore slots = new Semaphore(THREADS * 8);
+    private static final long SLOT_TIMEOUT_MILLIS = 5_000;
+
+    // Verified credentials cache.
+    private static final long CACHE_TTL_NANOS = TimeUnit.SECONDS.toNanos(60);
+    private static final int CACHE_MAX_ENTRIES = 100_000;
+    private static final ConcurrentHashMap<String, CachedVerification> verified = new ConcurrentHashMap<>();
+    private static final byte[] cacheKey = new byte[32];
+
+    private static final SecureRandom random = new SecureRandom();
+
+    static {
+        random.nextBytes(cacheKey);
+    }
+
+    /**
+     *
+     * A successful verification, valid only against the same stored password and until it expires.
+     *
+     */
+    private static final class CachedVerification {
+
+        private final String storedPassword;
+        private final long expiresAt;
+
+        private CachedVerification(String storedPassword, long expiresAt) {
+
+            this.storedPassword = storedPassword;
+            this.expiresAt = expiresAt;
+
+        }
+
+    }
+
+    // HASHING
+    /**
+     *
+     * Hashes a password with a new random salt, on the hashing executor.
+     *
+     * @param password The plaintext password.
+     *
+     * @return The stored password, encoded with its algorithm, iterations and salt.
+     *
+     * @throws NullPointerException If the password is null.
+     * @throws IllegalStateException If the hashing executor is busy over the timeout or the hashing fails.
+     *
+     */
+    static String hash(String password) throws NullPointerException, IllegalStateException {
+
+        // Null check.
+        if (password == null) {
+            throw new NullPointerException("Password to hash cannot be null.");
+        }
+
+        return runOnExecutor(() -> hashNow(password));
+
+    }
+    /**
+     *
+     * Hashes many passwords in parallel on the hashing executor, without the slots bound.
+     *
+     * Used to migrate the plaintext passwords at the loading, before serving the clients.
+     *
+     * @param passwords The plaintext passwords.
+     *
+     * @return The stored passwords, in the same order.
+     *
+     * @throws NullPointerException If the passwords are null.
+     * @throws IllegalStateException If the hashing fails.
+     *
+     */
+    static List<String> hashAll(List<String> passwords) throws NullPointerException, IllegalStateException {
+
+        // Null check.
+        if (passwords == null) {
+            throw new NullPointerException("Passwords to hash cannot be null.");
+        }
+
+        ArrayList<Callable<String>> tasks = new ArrayList<>(passwords.size());
+        for (String password : passwords) {
+            tasks.add(() -> hashNow(password));
+        }
+
+        ArrayList<String> hashes = new ArrayList<>(passwords.size());
+        try {
+            for (Future<String> future : executor.invokeAll(tasks)) {
+                hashes.add(future.get());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while hashing the passwords.");
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException("Error hashing the passwords.");
+        }
+        return hashes;
+
+    }
+
+    // VERIFICATION
+    /**
+     *
+     * Verifies a plaintext password against a stored one, on the hashing executor.
+     *
+     * A recent successful verification of the same username, password and stored password is taken from the cache.
+     *
+     * @param username The username, part of the cache key.
+     * @param password The plaintext password to verify.
+     * @param storedPassword The stored password (a hash, or a plaintext one of an old users database file).
+     *
+     * @return True if the password matches, false otherwise.
+     *
+     * @throws NullPointerException If the username, the password or the stored password are null.
+     * @throws IllegalStateException If the hashing executor is busy over the timeout or the hashing fails.
+     *
+     */
+    static Boolean verify(String username, String password, String storedPassword) throws NullPointerException, IllegalStateException {
+
+        // Null checks.
+        if (username == null) {
+            throw new NullPointerException("Username of the password to verify cannot be null.");
+        }
+        if (password == null) {
+            throw new NullPointerException("Password to verify cannot be null.");
+        }
+        if (storedPassword == null) {
+            throw new NullPointerException("Stored password to verify against cannot be null.");
+        }
+
+        String key = cacheKey(username, password);
+        CachedVerification cached = verified.get(key);
+        long now = System.nanoTime();
+        if (cached != null && cached.expiresAt - now > 0 && cached.storedPassword.equals(storedPassword)) {
+            return true;
+        }
+
+        Boolean matches = runOnExecutor(() -> verifyNow(password, storedPassword));
+        if (matches) {
+            if (verified.size() >= CACHE_MAX_ENTRIES) {
+                evictExpired(now);
+            }
+            verified.put(key, new CachedVerification(storedPassword, now + CACHE_TTL_NANOS));
+        } else if (cached != null) {
+            verified.remove(key, cached);
+        }
+        return matches;
+
+    }
+    /**
+     *
+     * Checks if a stored password is a hash of this class, or a plaintext one of an old users database file.
+     *
+     * @param storedPassword The stored password.
+     *
+     * @return True if it's a hash, false otherwise.
+     *
+     */
+    static Boolean isHashed(String storedPassword) {
+
+        return storedPassword != null && storedPassword.startsWith(PREFIX + "$");
+
+    }
+
+    // SUPPORT METHODS
+    private static <T> T runOnExecutor(Callable<T> task) throws IllegalStateException {
+
+        try {
+            if (!slots.tryAcquire(SLOT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                throw new IllegalStateException("Too many passwords verifications in progress, try again later.");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting to verify the password.");
+        }
+
+        try {
+            return executor.submit(task).get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while verifying the password.");
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException("Error hashing the password.");
+        } finally {
+            slots.release();
+        }
+
+    }
+    private static String hashNow(String password) throws GeneralSecurityException {
+
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        byte[] hash = pbkdf2(password, salt, ITERATIONS);
+
+        Base64.Encoder encoder = Base64.getEncoder().withoutPadding();
+        return String.format("%s$%d$%s$%s", PREFIX, ITERATIONS, encoder.encodeToString(salt), encoder.encodeToString(hash));
+
+    }
+    private static Boolean verifyNow(String password, String storedPassword) throws GeneralSecurityException {
+
+        // Plaintext password of an old users database file, still compared in constant time.
+        if (!isHashed(storedPassword)) {
+            return MessageDigest.isEqual(password.getBytes(StandardCharsets.UTF_8), storedPassword.getBytes(StandardCharsets.UTF_8));
+        }
+
+        String[] parts = storedPassword.split("\\$");
+        if (parts.length != 4) {
+            return false;
+        }
+        try {
+            int iterations = Integer.parseInt(parts[1]);
+            byte[] salt = Base64.getDecoder().decode(parts[2]);
+            byte[] expected = Base64.getDecoder().decode(parts[3]);
+            return MessageDigest.isEqual(expected, pbkdf2(password, salt, iterations));
+        } catch (IllegalArgumentException ex) {
+            // Malformed stored password, never matches.
+            return false;
+        }
+
+    }
+    private static byte[] pbkdf2(String password, byte[] salt, int iterations) throws GeneralSecurityException {
+
+        KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+
+    }
+    private static String cacheKey(String username, String password) throws IllegalStateException {
+
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(cacheKey, "HmacSHA256"));
+            byte[] digest = mac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+            return username + "$" + Base64.getEncoder().withoutPadding().encodeToString(digest);
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException("Error computing the verified credentials cache key.");
+        }
+
+    }
+    private static void evictExpired(long now) {
+
+        verified.entrySet().removeIf(entry -> entry.getValue().expiresAt - now <= 0);
+
+        // Still full of live entries, starting again.
+        if (verified.size() >= CACHE_MAX_ENTRIES) {
+            verified.clear();
+        }
+
+    }
+
+}
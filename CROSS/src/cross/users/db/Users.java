@@ -3,13 +3,31 @@ package cross.users.db;
 import cross.api.notifications.Notification;
 import cross.api.notifications.Trade;
 import cross.exceptions.InvalidUser;
+import cross.logging.Log;
+import cross.logging.Log.Category;
+import cross.metrics.Metrics;
+import cross.metrics.Metrics.Stage;
 import cross.server.Server;
+import cross.users.Session;
 import cross.users.User;
+import cross.utils.WriteContext;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.TreeSet;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 import com.google.gson.JsonSyntaxException;
 
 /**
@@ -24,7 +42,16 @@ import com.google.gson.JsonSyntaxException;
  *
  * ALL OPERATIONS MUST BE DONE THROUGH THIS CLASS, THE DBUsersInterface CLASS IS NOT TO BE USED DIRECTLY.
  *
- * It uses a TreeSet to store the users in memory to add and search in complexity O(log n).
+ * It uses a ConcurrentHashMap, keyed by the case-folded username, to store the users in memory, so the lookups are lock free.
+ * The sessions (the users logged in) are indexed by socket in a concurrent map, so a socket lookup does not scan the users.
+ *
+ * There is no lock for the whole class. The operations on an user (add, update, login, logout) lock only a stripe, chosen by its username.
+ * So the operations on different users (and the users database file writes of one of them) proceed in parallel.
+ * The database file writes also hold the read side of the registry lock, the compaction of the users database file takes the write side.
+ *
+ * The trades' notifications are queued by the order book and delivered on UDP by a dedicated thread (see NotificationDispatcherThread).
+ * The notification endpoints of the users logged in are indexed by username, so a notification is delivered without scanning the users nor locking them.
+ * Each datagram of a user is numbered and kept in the user's history (see NotificationHistory), so the clients ask again the lost ones (see retransmitNotifications()).
  *
  * @version 1.0
  * @author Giulio Nisi
@@ -38,132 +65,232 @@ import com.google.gson.JsonSyntaxException;
  */
 public abstract class Users {
 
-    // Add and search users in complexity O(log n).
-    private final static TreeSet<User> users = new TreeSet<>();
+    // Users by case-folded username, read without locks.
+    private final static ConcurrentHashMap<String, User> users = new ConcurrentHashMap<>();
 
-    // These methods names are used to check who calls some functions of this class, so to perform some different operations in case the call comes from one of them.
-    private static final String LOADUSERS_METHOD_NAME = "loadUsers";
+    // Striped locks for the operations on an user, the stripe is chosen by the case-folded username.
+    private final static int LOCK_STRIPES = 64;
+    private final static ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+    static {
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    // Shared by the writes (map and users database file together), exclusive for the DBUsersInterface compaction.
+    // So the compaction sees the map and the file in sync.
+    static final ReentrantReadWriteLock registryLock = new ReentrantReadWriteLock();
+
+    // Sessions by client's socket, read without locks.
+    private final static ConcurrentHashMap<Socket, Session> sessions = new ConcurrentHashMap<>();
 
     private static Server server;
 
+    // Notification endpoints (UDP) by case-folded username, only of the users with some, read without locks.
+    // Each value is an array replaced as a whole, never modified.
+    private final static ConcurrentHashMap<String, InetSocketAddress[]> endpoints = new ConcurrentHashMap<>();
+
+    // Users by notification endpoint, the reverse of the endpoints index, to answer the retransmissions.
+    private final static ConcurrentHashMap<InetSocketAddress, String> endpointsOwners = new ConcurrentHashMap<>();
+
+    // Notifications history of each user, by case-folded username, with the sequence numbers of its datagrams.
+    private final static ConcurrentHashMap<String, NotificationHistory> histories = new ConcurrentHashMap<>();
+
+    // Max bytes of a notification datagram, the receive buffer of the older clients, and under the usual MTU, so it's never fragmented by IP.
+    // The notifications over it are split in more datagrams, the smaller ones are batched together.
+    private final static int NOTIFICATION_MAX_BYTES = 1024;
+
+    // Delivers the notifications in background, null if not started.
+    private static volatile NotificationDispatcherThread dispatcher = null;
+
     // USERS HANDLING
     /**
      *
      * Adds an user to the users database.
-     * The user is added BOTH to the TreeSet in memory and to the users database file if not present.
+     * The user is added BOTH to the map in memory and to the users database file if not present.
      *
      * If not present in the users database file, to add the user to it, the user's line id is set to the current size of the users database file, since it's appended at the end of the file.
      *
-     * Synchronized ON CLASS method to prevent multiple threads to add users at the same time.
-     * Synchronized ON USER object to prevent multiple threads change user's properties during the add operation.
+     * It's a live write, it's a wrapper for the addUser() method with the write context.
+     *
+     * The password is hashed (outside the locks, on the hashing executor), the user stored is a copy of the given one with the hash as password.
      *
      * @param user The user to add to the users database.
      *
      * @throws InvalidUser If the user already exists in the database.
      * @throws NullPointerException If the user is null.
-     * @throws NoSuchMethodException If the loadUsers() method is not found or if the updateUserOnFile() method in this class is not found in the DBUsersInterface class.
+     * @throws NoSuchMethodException Never thrown anymore, the write context is given explicitly. Kept for the callers.
      * @throws IOException If an error occurs while writing the user on the users database file.
-     * @throws IllegalStateException If the users database file content is not loaded.
+     * @throws IllegalStateException If the users database file content is not loaded or the hashing executor is busy.
      *
      */
     public static void addUser(User user) throws InvalidUser, NoSuchMethodException, NullPointerException, IOException, IllegalStateException {
 
-        synchronized (Users.class) {
+        // Null check.
+        if (user == null) {
+            throw new NullPointerException("User to add to the users database cannot be null.");
+        }
 
-            // Null checks.
-            if (user == null) {
-                throw new NullPointerException("User to add to the users database cannot be null.");
-            }
+        // Already exists check, before the slow hashing. Checked again with the lock.
+        if (users.containsKey(key(user.getUsername()))) {
+            throw new InvalidUser("User to add to the users database already exists.");
+        }
 
-            synchronized (user) {
+        // Only the hash is stored.
+        User userHashed = new User(user.getUsername(), PasswordHashing.hash(user.getPassword()), true);
+        addUser(userHashed, WriteContext.LIVE);
+
+    }
+    /**
+     *
+     * Adds an user to the users database, in the write context given by the caller.
+     *
+     * With the LOAD context (DBUsersInterface.loadUsers()) the user is added only in RAM, since it has just been read from the users database file.
+     * With the LIVE and UPDATE contexts the user is also appended to the users database file.
+     * The context replaces the old check of the caller's method on the stack trace, done at every add.
+     *
+     * Synchronized ON THE USERNAME STRIPE to prevent multiple threads to add the same user at the same time.
+     * Not synchronized on the user, it's copied holding its monitor by DBUsersInterface.writeUserOnFile(), so no monitor is held during the file I/O.
+     *
+     * Package-private, the contexts different from LIVE are used only by the DBUsersInterface class.
+     *
+     * @param user The user to add to the users database.
+     * @param context The write context.
+     *
+     * @throws InvalidUser If the user already exists in the database.
+     * @throws NullPointerException If the user or the context are null.
+     * @throws IOException If an error occurs while writing the user on the users database file.
+     * @throws IllegalStateException If the users database file content is not loaded.
+     *
+     */
+    static void addUser(User user, WriteContext context) throws InvalidUser, NullPointerException, IOException, IllegalStateException {
+
+        // Null checks.
+        if (user == null) {
+            throw new NullPointerException("User to add to the users database cannot be null.");
+        }
+        if (context == null) {
+            throw new NullPointerException("Write context to add an user to the users database cannot be null.");
+        }
+
+        String key = key(user.getUsername());
+        lockFor(key).lock();
+        try {
+
+            registryLock.readLock().lock();
+            try {
 
                 // Already exists check.
-                if (users.contains(user)) {
+                if (users.containsKey(key)) {
                     throw new InvalidUser("User to add to the users database already exists.");
                 }
 
-                // Adds user to the TreeSet.
-                users.add(user);
+                if (context == WriteContext.LOAD) {
+                    // Set the file line id if not present, the loaded users have it already.
+                    if (user.getFileLineId() == null) {
+                        user.setFileLineId(DBUsersInterface.nextFileLine());
+                    }
+                } else {
+                    // Write user on file, the file line id is set by the write.
+                    // Before adding it to the map, so a failed write leaves nothing to rollback.
+                    try {
+                        DBUsersInterface.writeUserOnFile(user, context);
+                    } catch (IOException ex) {
 
-                // Set the file line id if not present.
-                if (user.getFileLineId() == null) {
-                    user.setFileLineId(DBUsersInterface.calculateFileLines());
-                }
+                        // Remove file line id.
+                        user.setFileLineId(null);
 
-                // Prevent double file writes when the method is called from DBUsersInterface.loadUsers().
-                // That's because:
-                // DBUsersInterface.loadUsers() read from file user X -> call addUser() to add it in RAM -> writeUserOnFile() write user X on file AGAIN.
-                String method = null;
-                try {
-                    method = DBUsersInterface.class.getMethod(LOADUSERS_METHOD_NAME).getName();
-                }catch (NoSuchMethodException ex) {
-                    throw new NoSuchMethodException(String.format("Method %s in the Users class not found.", LOADUSERS_METHOD_NAME));
-                }
+                        // Forwarding the exception's message.
+                        throw new IOException(ex.getMessage());
 
-                StackTraceElement[] stackTrace = Thread.currentThread().getStackTrace();
-                String className = DBUsersInterface.class.getName();
-                for (StackTraceElement stackTraceElement : stackTrace) {
-                    // The method's name is needed since addUser is called not only from loadUsers but also from the updateUserOnFile method.
-                    // If the caller is loadUsers, then exit before writing on file, otherwise continue.
-                    if (stackTraceElement.getClassName().compareTo(className) == 0 && stackTraceElement.getMethodName().compareTo(method) == 0) {
-                        // Exit before writing on file.
-                        return;
-                    }
-                }
+                    } catch (IllegalStateException ex) {
 
-                // Write user on file.
-                try {
-                    DBUsersInterface.writeUserOnFile(user);
-                } catch (IOException ex) {
+                        // Remove file line id.
+                        user.setFileLineId(null);
 
-                    // Remove user from TreeSet.
-                    users.remove(user);
+                        // Forwarding the exception's message.
+                        throw new IllegalStateException(ex.getMessage());
 
-                    // Remove file line id.
-                    user.setFileLineId(null);
+                    }
+                }
 
-                    // Forwarding the exception's message.
-                    throw new IOException(ex.getMessage());
+                // Adds user to the map.
+                users.put(key, user);
 
-                } catch (IllegalStateException ex) {
+            } finally {
+                registryLock.readLock().unlock();
+            }
 
-                    // Remove user from TreeSet.
-                    users.remove(user);
+        } finally {
+            lockFor(key).unlock();
+        }
 
-                    // Remove file line id.
-                    user.setFileLineId(null);
+    }
 
-                    // Forwarding the exception's message.
-                    throw new IllegalStateException(ex.getMessage());
+    /**
+     *
+     * Adds in bulk the users records just loaded from the users database file, only in RAM.
+     *
+     * The records are in file order, so a record of an username replaces the one before it (the log's last record wins).
+     * The registry lock is taken once (write side) for all the records, instead of the username stripe and the read side for each one.
+     * The loaded users already have their file line id.
+     *
+     * Package-private, used only by the DBUsersInterface.loadUsers() method, called with the chunks of the file in order.
+     *
+     * @param records The users records loaded, in file order.
+     *
+     * @return The number of records replaced by a later one (superseded in the users database file).
+     *
+     * @throws InvalidUser If an user was already in the database before the loading.
+     * @throws NullPointerException If the records are null.
+     *
+     */
+    static Long addLoadedUsers(List<User> records) throws InvalidUser, NullPointerException {
 
-                } catch (NoSuchMethodException ex) {
+        // Null check.
+        if (records == null) {
+            throw new NullPointerException("Loaded users records to add to the users database cannot be null.");
+        }
 
-                    // Remove user from TreeSet.
-                    users.remove(user);
+        long replaced = 0;
+        registryLock.writeLock().lock();
+        try {
 
-                    // Remove file line id.
-                    user.setFileLineId(null);
+            for (User user : records) {
 
-                    // Forwarding the exception's message.
-                    throw new NoSuchMethodException(ex.getMessage());
+                User previous = users.put(key(user.getUsername()), user);
+                if (previous == null) {
+                    continue;
+                }
 
+                // Already exists check, only the loaded users have a file line id before it.
+                if (previous.getFileLineId() == null || previous.getFileLineId() >= user.getFileLineId()) {
+                    users.put(key(user.getUsername()), previous);
+                    throw new InvalidUser("User to add to the users database already exists.");
                 }
+                replaced++;
 
             }
 
+        } finally {
+            registryLock.writeLock().unlock();
         }
+        return replaced;
 
     }
-
     /**
      *
      * Updates an user in the users database.
-     * The user is updated BOTH in the TreeSet in memory and in the users database file.
+     * The user is updated BOTH in the map in memory and in the users database file.
      *
      * The method will update the password of the old user with the password of the new user.
+     * The new password is hashed, the new user stored is a copy of the given one with the hash as password.
+     *
+     * The old password is verified against the stored hash (skipped if the old user IS the stored user object) and the new password is hashed outside the locks, on the hashing executor.
+     * Then, with the locks, the stored user is checked to be the same verified before, otherwise the update is refused.
      *
-     * Synchronized ON CLASS method to prevent multiple threads to update an user at the same time.
-     * Synchronized ON USER objects to prevent multiple threads change users' properties during the update operation.
+     * Synchronized ON THE USERNAME STRIPE to prevent multiple threads to update an user at the same time.
+     * Not synchronized on the user, the username stripe serializes the updates of the same user, so no monitor is held during the file I/O.
      *
      * @param userOld The old user to update.
      * @param userNew The new user to replace the old one with (the password will be updated).
@@ -172,125 +299,85 @@ public abstract class Users {
      * @throws NullPointerException If the old user or the new user are null.
      * @throws IllegalArgumentException If the old user file line id IS null or the new user file line id is NOT null or the new user username is different from the old user username.
      * @throws IOException If an error occurs while writing the user on the users database file.
-     * @throws IllegalStateException If the users database file content is not loaded.
+     * @throws IllegalStateException If the users database file content is not loaded or the hashing executor is busy.
      * @throws RuntimeException If an error occurs while updating the user in the users database.
-     * @throws NoSuchMethodException If the loadUsers() method is not found or if the updateUserOnFile() method in this class is not found in the DBUsersInterface class.
-     * @throws IllegalAccessException If the old user password does not match the one in the users database.
+     * @throws NoSuchMethodException Never thrown anymore, the write context is given explicitly. Kept for the callers.
+     * @throws IllegalAccessException If the old user password does not match the one in the users database or the user has been updated in the meantime.
      * @throws SecurityException If the old user password is equal to the new user password.
      * 
      */
     public static void updateUser(User userOld, User userNew) throws InvalidUser, NullPointerException, IllegalArgumentException, IOException, IllegalStateException, RuntimeException, NoSuchMethodException, IllegalAccessException, SecurityException {
 
-        synchronized (Users.class) {
-
-            // Null checks.
-            if (userOld == null) {
-                throw new NullPointerException("Old user to update in the users database cannot be null.");
-            }
-            if (userNew == null) {
-                throw new NullPointerException("New user to update with in the users database cannot be null.");
-            }
-
-            // Users not loaded from the database users file yet.
-            if (DBUsersInterface.usersLoaded() == false) {
-                throw new IllegalStateException("Users not loaded from the database users file yet. Call loadUsers() before.");
-            }
-
-            synchronized (userOld) {
-                synchronized (userNew) {
-
-                    // User does not exist.
-                    if (!users.contains(userOld)) {
-                        throw new InvalidUser("Old user to update in the users database does not exist.");
-                    }   
-
-                    // Old password match check.
-                    User userOldDB = getUserByUsername(userOld.getUsername());
-                    if (userOld.getPassword().compareTo(userOldDB.getPassword()) != 0) {
-                        throw new IllegalAccessException("Old user password does not match the one in the users database.");
-                    }
-                    userOld = userOldDB;
-
-                    // Old password equals new password check.
-                    if (userOld.getPassword().compareTo(userNew.getPassword()) == 0) {
-                        throw new SecurityException("Old user password cannot be equal to the new user password.");
-                    }
-
-                    // Null file line id checks.
-                    if (userOld.getFileLineId() == null) {
-                        throw new IllegalArgumentException("Old user file line id in the users database cannot be null.");
-                    }
-                    if (userNew.getFileLineId() != null) {
-                        throw new IllegalArgumentException("New user file line id in the users database MUST be null.");
-                    }
-
-                    // Remove old user from TreeSet.
-                    users.remove(userOld);
-
-                    // Write the new user on file and remove old user from file.
-                    // Also add the new user to the TreeSet.
-                    try {
-                        DBUsersInterface.updateUserOnFile(userOld, userNew);
-                    } catch (IllegalStateException ex) {
-
-                        // Add the old user back to the TreeSet.
-                        if (!users.contains(userOld)) {
-                            users.add(userOld);
-                        }
-
-                        // Forwarding the exception's message.
-                        throw new IllegalStateException(ex.getMessage());
+        // Null checks.
+        if (userOld == null) {
+            throw new NullPointerException("Old user to update in the users database cannot be null.");
+        }
+        if (userNew == null) {
+            throw new NullPointerException("New user to update with in the users database cannot be null.");
+        }
 
-                    } catch (IOException ex) {
+        // Users not loaded from the database users file yet.
+        if (DBUsersInterface.usersLoaded() == false) {
+            throw new IllegalStateException("Users not loaded from the database users file yet. Call loadUsers() before.");
+        }
 
-                        // Add the old user back to the TreeSet.
-                        if (!users.contains(userOld)) {
-                            users.add(userOld);
-                        }
+        // User does not exist.
+        String key = key(userOld.getUsername());
+        User userOldDB = users.get(key);
+        if (userOldDB == null) {
+            throw new InvalidUser("Old user to update in the users database does not exist.");
+        }
 
-                        // Forwarding the exception's message.
-                        throw new IOException(ex.getMessage());
+        // Null file line id check, before the slow hashing.
+        if (userNew.getFileLineId() != null) {
+            throw new IllegalArgumentException("New user file line id in the users database MUST be null.");
+        }
 
-                    } catch (IllegalArgumentException ex) {
+        // Old password match check, the stored user object is already trusted.
+        if (userOld != userOldDB && !PasswordHashing.verify(userOldDB.getUsername(), userOld.getPassword(), userOldDB.getPassword())) {
+            throw new IllegalAccessException("Old user password does not match the one in the users database.");
+        }
 
-                        // Add the old user back to the TreeSet.
-                        if (!users.contains(userOld)) {
-                            users.add(userOld);
-                        }
+        // Old password equals new password check.
+        if (PasswordHashing.verify(userOldDB.getUsername(), userNew.getPassword(), userOldDB.getPassword())) {
+            throw new SecurityException("Old user password cannot be equal to the new user password.");
+        }
 
-                        // Forwarding the exception's message.
-                        throw new IllegalArgumentException(ex.getMessage());
+        // Only the hash is stored.
+        User userNewHashed = new User(userNew.getUsername(), PasswordHashing.hash(userNew.getPassword()), true);
 
-                    } catch (RuntimeException ex) {
+        // The new user has the same username, checked by DBUsersInterface.updateUserOnFile(), so the same stripe.
+        lockFor(key).lock();
+        try {
 
-                        // Add the old user back to the TreeSet.
-                        if (!users.contains(userOld)) {
-                            users.add(userOld);
-                        }
+            registryLock.readLock().lock();
+            try {
 
-                        // Forwarding the exception's message.
-                        throw new RuntimeException(ex.getMessage());
+                // Updated by someone else while hashing, the verification above is stale.
+                if (users.get(key) != userOldDB) {
+                    throw new IllegalAccessException("Old user has been updated in the meantime, try again.");
+                }
 
-                    } catch (NoSuchMethodException ex) {
+                // Null file line id check.
+                if (userOldDB.getFileLineId() == null) {
+                    throw new IllegalArgumentException("Old user file line id in the users database cannot be null.");
+                }
 
-                        // Add the old user back to the TreeSet.
-                        if (!users.contains(userOld)) {
-                            users.add(userOld);
-                        }
+                replaceUser(key, userOldDB, userNewHashed);
 
-                        // Forwarding the exception's message.
-                        throw new NoSuchMethodException(ex.getMessage());
-                    }
-                }
+            } finally {
+                registryLock.readLock().unlock();
             }
 
+        } finally {
+            lockFor(key).unlock();
         }
 
     }
     
     /**
      *
-     * Loads all the users from the JSON users database file in the TreeSet in memory.
+     * Loads all the users from the JSON users database file in the map in memory.
      *
      * Synchronized ON CLASS method to prevent multiple threads to load users from the file at the same time.
      *
@@ -299,7 +386,7 @@ public abstract class Users {
      * @throws IllegalStateException If the file is not readed or the users are already loaded.
      * @throws JsonSyntaxException If there's an error parsing the JSON users database file content.
      * @throws InvalidUser If the user already exists in the database.
-     * @throws NoSuchMethodException If the loadUsers() method is not found or if the updateUserOnFile() method in this class is not found in the DBUsersInterface class.
+     * @throws NoSuchMethodException Never thrown anymore, the write context is given explicitly. Kept for the callers.
      * @throws IOException If an error occurs while writing the user on the users database file.
      * 
      */
@@ -313,6 +400,9 @@ public abstract class Users {
             // Simply backward the exceptions to the caller.
             DBUsersInterface.loadUsers();
 
+            // Users of an old file could have plaintext passwords.
+            migratePlaintextPasswords();
+
         }
 
     }
@@ -322,6 +412,8 @@ public abstract class Users {
      *
      * Find an user by its username as String in the users database.
      *
+     * Lock free, the username is case-folded as the map key (the usernames are case insensitive).
+     *
      * @param username The username of the user to find as String.
      *
      * @return A User object found with the given username and its corresponding password if the user is found, null otherwise.
@@ -342,13 +434,7 @@ public abstract class Users {
             throw new IllegalStateException("Users not loaded from the database users file yet. Call loadUsers() before.");
         }
 
-        // Search by username, password is a placeholder, cannot be null due to check in User's constructor.
-        User toSearch = new User(username, "placeholder");
-        User result = users.ceiling(toSearch);
-        if (result != null && result.getUsername().equalsIgnoreCase(username)) {
-            return result;
-        }
-        return null;
+        return users.get(key(username));
 
     }
     /**
@@ -362,13 +448,29 @@ public abstract class Users {
 
         // If the database is not loaded yet, return 0, do not throw an exception, otherwise problems during the users loading.
 
-        return (Integer) users.size();
+        return users.size();
+
+    }
+    /**
+     *
+     * Get the number of sessions open, the users logged in on each connection.
+     *
+     * Lock free, it's a read of the sessions index.
+     *
+     * @return The number of sessions open as an Integer.
+     *
+     */
+    public static Integer getSessionsSize() {
+
+        return sessions.size();
 
     }
     /**
      *
      * Used to get the user (from the users database) currently logged in with a specific client socket if present.
      *
+     * Lock free, it's a read of the sessions index.
+     *
      * @param clientSocket The client socket to be used to get the user currently logged in with it.
      *
      * @return The user currently logged in with the given client socket if present, null otherwise.
@@ -378,29 +480,56 @@ public abstract class Users {
      */
     public static User getLoggedInUser(Socket clientSocket) throws NullPointerException {
 
-        synchronized (Users.class) {
+        Session session = getSession(clientSocket);
+        return session == null ? null : session.getUser();
 
-            // Null check.
-            if (clientSocket == null) {
-                throw new NullPointerException("Client socket to be used to get the user currently logged in cannot be null.");
-            }
+    }
+    /**
+     *
+     * Used to get the session of a specific client socket if present.
+     *
+     * Lock free, it's a read of the sessions index.
+     *
+     * @param clientSocket The client socket of the session.
+     *
+     * @return The session of the given client socket if present, null otherwise.
+     *
+     * @throws NullPointerException If the client socket is null.
+     *
+     */
+    public static Session getSession(Socket clientSocket) throws NullPointerException {
 
-            for (User user : users) {
-                if (user.containsSocket(clientSocket)) {
-                    return user;
-                }
-            }
-            return null;
+        // Null check.
+        if (clientSocket == null) {
+            throw new NullPointerException("Client socket to be used to get the session cannot be null.");
         }
 
+        return sessions.get(clientSocket);
+
     }
+    /**
+     *
+     * Get a copy of the users in the users database, ordered by username.
+     *
+     * Package-private, used by the DBUsersInterface class to compact the users database file.
+     * The caller must hold the write side of the registry lock, so no user is being written.
+     *
+     * @return The users of the users database as a new list.
+     *
+     */
+    static ArrayList<User> getUsersSnapshot() {
+
+        ArrayList<User> snapshot = new ArrayList<>(users.values());
+        Collections.sort(snapshot);
+        return snapshot;
 
+    }
     // TO STRING
     /**
      *
      * Get a string with the whole users database. Each user is on a new line.
      *
-     * Synchronized ON CLASS method to prevent multiple threads to modify the users database during the execution of this method.
+     * Not locked, the users added or updated during the execution of this method could be missing.
      *
      * @return The users database as list of string lines, joined in an unique string by '\n'.
      *
@@ -409,23 +538,23 @@ public abstract class Users {
      */
     public static String toStringUsers() throws IllegalStateException {
 
-        synchronized (Users.class) {
-
-            // Users not loaded from the database users file yet.
-            if (DBUsersInterface.usersLoaded() == false) {
-                throw new IllegalStateException("Users not loaded from the database users file yet. Call loadUsers() before.");
-            }
-
-            String result = "";
-            for (User user : Users.users) {
-                // To string is itself synchronized on the user object.
-                result += user.toString() + "\n";
-            }
+        // Users not loaded from the database users file yet.
+        if (DBUsersInterface.usersLoaded() == false) {
+            throw new IllegalStateException("Users not loaded from the database users file yet. Call loadUsers() before.");
+        }
 
-            return result;
+        // Ordered by username, as a weakly consistent view of the map.
+        ArrayList<User> ordered = new ArrayList<>(users.values());
+        Collections.sort(ordered);
 
+        StringBuilder result = new StringBuilder();
+        for (User user : ordered) {
+            // To string is itself synchronized on the user object.
+            result.append(user.toString()).append("\n");
         }
 
+        return result.toString();
+
     }
 
     // LOGIN
@@ -433,45 +562,67 @@ public abstract class Users {
      *
      * Used to login an user with its username and the client socket if its password matches the one in the users database.
      *
+     * On success a session is bound to the client socket, the caller keeps it to check the authorization of the next requests.
+     *
+     * The password is verified against the stored hash before taking the lock, on the hashing executor.
+     * A recent successful login with the same credentials is taken from the verified credentials cache, so a reconnection storm does not hash again.
+     *
+     * Synchronized ON THE USERNAME STRIPE, so the logins of different users proceed in parallel.
+     *
      * @param user The user to be used to login.
      * @param clientSocket The client socket to be used to login the user.
      *
+     * @return The session of the client socket, with the user logged in.
+     *
      * @throws NullPointerException If the user or the client socket are null.
-     * @throws IllegalStateException If the users database is not loaded.
+     * @throws IllegalStateException If the users database is not loaded or the hashing executor is busy.
      * @throws InvalidUser If the user does not exist in the users database or the password does not match.
-     * @throws IllegalAccessException If the user is already logged in with the given client socket.
+     * @throws IllegalAccessException If an user is already logged in with the given client socket.
      * 
      */
-    public static void login(User user, Socket clientSocket) throws NullPointerException, IllegalStateException, InvalidUser, IllegalAccessException {
+    public static Session login(User user, Socket clientSocket) throws NullPointerException, IllegalStateException, InvalidUser, IllegalAccessException {
 
-        synchronized (Users.class) {
+        // Null checks.
+        if (user == null) {
+            throw new NullPointerException("User to used to login cannot be null.");
+        }
+        if (clientSocket == null) {
+            throw new NullPointerException("Socket to be used to login an user cannot be null.");
+        }
 
-            // Null checks.
-            if (user == null) {
-                throw new NullPointerException("User to used to login cannot be null.");
-            }
-            if (clientSocket == null) {
-                throw new NullPointerException("Socket to be used to login an user cannot be null.");
-            }
+        User userFound;
+        try {
+            userFound = getUserByUsername(user.getUsername());
+        } catch (IllegalStateException ex) {
+            // Users database error.
+            throw new IllegalStateException(ex.getMessage());
+        }
 
-            synchronized (user) {
+        if (userFound == null) {
+            // User not found in the users database.
+            throw new InvalidUser("User to login does not exist in the users database.");
+        }
 
-                User userFound;
-                try {
-                    userFound = getUserByUsername(user.getUsername());
-                } catch (IllegalStateException ex) {
-                    // Users database error.
-                    throw new IllegalStateException(ex.getMessage());
-                }
+        // Verified outside the lock, on the hashing executor (or by the verified credentials cache).
+        if (!PasswordHashing.verify(userFound.getUsername(), user.getPassword(), userFound.getPassword())) {
+            // Password does not match.
+            throw new InvalidUser("Password provided to login does not match the one in the users database.");
+        }
+
+        ReentrantLock userLock = lockFor(key(user.getUsername()));
+        userLock.lock();
+        try {
+
+            synchronized (userFound) {
 
-                if (userFound == null) {
-                    // User not found in the users database.
-                    throw new InvalidUser("User to login does not exist in the users database.");
+                // Credentials updated while verifying, the verified password could be the old one.
+                if (users.get(key(user.getUsername())) != userFound) {
+                    throw new InvalidUser("User to login has been updated in the meantime, try again.");
                 }
 
-                if (userFound.getPassword().compareTo(user.getPassword()) != 0) {
-                    // Password does not match.
-                    throw new InvalidUser("Password provided to login does not match the one in the users database.");
+                // A socket has a single session.
+                if (sessions.containsKey(clientSocket)) {
+                    throw new IllegalAccessException("User already logged in.");
                 }
 
                 try {
@@ -490,10 +641,17 @@ public abstract class Users {
                 InetSocketAddress datagramSocket = server.getUdpSocketAddressForTcpSocketAddress(String.format("/%s:%d", clientSocket.getInetAddress().getHostAddress(), clientSocket.getPort()));
                 if (datagramSocket != null) {
                     userFound.addNotificationSocket(datagramSocket);
+                    indexEndpoints(userFound);
                 }
 
+                Session session = new Session(clientSocket, userFound);
+                sessions.put(clientSocket, session);
+                return session;
+
             }
 
+        } finally {
+            userLock.unlock();
         }
     
     }
@@ -513,21 +671,17 @@ public abstract class Users {
      */
     public static Boolean isLoggedIn(User user, Socket clientSocket) throws NullPointerException {
 
-        synchronized (Users.class) {
-
-            // Null checks.
-            if (user == null) {
-                throw new NullPointerException("User to be used to check if is logged in cannot be null.");
-            }
-            if (clientSocket == null) {
-                throw new NullPointerException("Socket to be used to check if the user is logged in cannot be null.");
-            }
-
-            synchronized (user) {
+        // Null checks.
+        if (user == null) {
+            throw new NullPointerException("User to be used to check if is logged in cannot be null.");
+        }
+        if (clientSocket == null) {
+            throw new NullPointerException("Socket to be used to check if the user is logged in cannot be null.");
+        }
 
-                return user.containsSocket(clientSocket);
+        synchronized (user) {
 
-            }
+            return user.containsSocket(clientSocket);
 
         }
 
@@ -545,7 +699,7 @@ public abstract class Users {
      */
     public static Boolean isLoggedIn(Socket clientSocket) throws NullPointerException {
 
-        return getLoggedInUser(clientSocket) != null;
+        return getSession(clientSocket) != null;
 
     }
 
@@ -554,6 +708,8 @@ public abstract class Users {
      *
      * Used to logout an user from a specific client socket.
      *
+     * Synchronized ON THE USERNAME STRIPE, so the logouts of different users proceed in parallel.
+     *
      * @param user The user to be used to logout.
      * @param clientSocket The socket to be used to logout the user.
      *
@@ -563,15 +719,17 @@ public abstract class Users {
      */
     public static void logout(User user, Socket clientSocket) throws NullPointerException, IllegalArgumentException {
 
-        synchronized (Users.class) {
+        // Null checks.
+        if (user == null) {
+            throw new NullPointerException("User to be used to logout cannot be null.");
+        }
+        if (clientSocket == null) {
+            throw new NullPointerException("Socket to be used to logout an user cannot be null.");
+        }
 
-            // Null checks.
-            if (user == null) {
-                throw new NullPointerException("User to be used to logout cannot be null.");
-            }
-            if (clientSocket == null) {
-                throw new NullPointerException("Socket to be used to logout an user cannot be null.");
-            }
+        ReentrantLock userLock = lockFor(key(user.getUsername()));
+        userLock.lock();
+        try {
 
             synchronized (user) {
 
@@ -582,16 +740,21 @@ public abstract class Users {
                     throw new IllegalArgumentException("User not logged in.");
                 }
 
+                sessions.remove(clientSocket);
+
                 // Remove the notification socket if present to not see notifications anymore after logout.
                 InetSocketAddress userNotificationSocket = server.getUdpSocketAddressForTcpSocketAddress(String.format("/%s:%d", clientSocket.getInetAddress().getHostAddress(), clientSocket.getPort()));
                 if (userNotificationSocket != null && user.containsNotificationSocket(userNotificationSocket)) {
 
                     user.removeNotificationSocket(userNotificationSocket);
+                    indexEndpoints(user);
 
                 }
 
             }
 
+        } finally {
+            userLock.unlock();
         }
         
     }
@@ -600,12 +763,9 @@ public abstract class Users {
     /**
      *
      * Updates an user in the users database.
-     * The user is updated BOTH in the TreeSet in memory and in the users database file.
+     * The user is updated BOTH in the map in memory and in the users database file.
      *
      * The method will update the password of the old user with the password of the new user.
-     *
-     * Synchronized ON CLASS method to prevent multiple threads to update an user at the same time.
-     * Synchronized ON USER objects to prevent multiple threads change users' properties during the update operation.
      * 
      * THIS METHOD IS A WRAPPER FOR THE updateUser() METHOD.
      *
@@ -618,52 +778,235 @@ public abstract class Users {
      * @throws IOException If an error occurs while writing the user on the users database file.
      * @throws IllegalStateException If the users database file content is not loaded.
      * @throws RuntimeException If an error occurs while updating the user in the users database.
-     * @throws NoSuchMethodException If the loadUsers() method is not found or if the updateUserOnFile() method in this class is not found in the DBUsersInterface class.
+     * @throws NoSuchMethodException Never thrown anymore, the write context is given explicitly. Kept for the callers.
      * @throws IllegalAccessException If the old user password does not match the one in the users database.
      * 
      */
     public static void updateCredentials(User userOld, User userNew) throws NullPointerException, InvalidUser, IllegalArgumentException, IOException, IllegalStateException, RuntimeException, NoSuchMethodException, IllegalAccessException {
 
-        synchronized (Users.class) {
+        // Null checks.
+        if (userOld == null) {
+            throw new NullPointerException("Old user to be used to update credentials cannot be null.");
+        }
+        if (userNew == null) {
+            throw new NullPointerException("New user to be used to update credentials cannot be null.");
+        }
+
+        // Update the user in the users database.
+        try {
+            updateUser(userOld, userNew);
+        } catch (InvalidUser ex) {
+            throw new InvalidUser(ex.getMessage());
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException(ex.getMessage());
+        } catch (IOException ex) {
+            throw new IOException(ex.getMessage());
+        } catch (IllegalStateException ex) {
+            throw new IllegalStateException(ex.getMessage());
+        } catch (RuntimeException ex) {
+            throw new RuntimeException(ex.getMessage());
+        } catch (NoSuchMethodException ex) {
+            throw new NoSuchMethodException(ex.getMessage());
+        } catch (IllegalAccessException ex) {
+            throw new IllegalAccessException(ex.getMessage());
+        }
+
+    }
+    
+
+    // SUPPORT METHODS
+    /**
+     *
+     * Replaces an user object with a new one, BOTH in the map in memory and in the users database file.
+     *
+     * The new user is appended on the users database file, it supersedes the old user record.
+     * If the write fails the old user is put back in the map.
+     * Then the sessions of the old user object are moved to the new one.
+     *
+     * The caller must hold the username stripe lock and the read side of the registry lock.
+     *
+     * @param key The case-folded username of the users.
+     * @param userOld The user object to replace, the stored one.
+     * @param userNew The new user object, same username.
+     *
+     */
+    private static void replaceUser(String key, User userOld, User userNew) throws InvalidUser, IllegalArgumentException, IOException, IllegalStateException, RuntimeException, NoSuchMethodException {
+
+        // Remove old user from the map.
+        users.remove(key, userOld);
+
+        // Write the new user on file, it supersedes the old user record.
+        // Also add the new user to the map.
+        try {
+            DBUsersInterface.updateUserOnFile(userOld, userNew);
+        } catch (IllegalStateException ex) {
 
-            // Null checks.
-            if (userOld == null) {
-                throw new NullPointerException("Old user to be used to update credentials cannot be null.");
+            // Add the old user back to the map.
+            users.putIfAbsent(key, userOld);
+
+            // Forwarding the exception's message.
+            throw new IllegalStateException(ex.getMessage());
+
+        } catch (IOException ex) {
+
+            // Add the old user back to the map.
+            users.putIfAbsent(key, userOld);
+
+            // Forwarding the exception's message.
+            throw new IOException(ex.getMessage());
+
+        } catch (IllegalArgumentException ex) {
+
+            // Add the old user back to the map.
+            users.putIfAbsent(key, userOld);
+
+            // Forwarding the exception's message.
+            throw new IllegalArgumentException(ex.getMessage());
+
+        } catch (RuntimeException ex) {
+
+            // Add the old user back to the map.
+            users.putIfAbsent(key, userOld);
+
+            // Forwarding the exception's message.
+            throw new RuntimeException(ex.getMessage());
+
+        } catch (NoSuchMethodException ex) {
+
+            // Add the old user back to the map.
+            users.putIfAbsent(key, userOld);
+
+            // Forwarding the exception's message.
+            throw new NoSuchMethodException(ex.getMessage());
+        }
+
+        // The sessions of the old user object now belong to the new one.
+        rebindSessions(userOld, userNew);
+
+    }
+    /**
+     *
+     * Hashes the plaintext passwords of an old users database file, so after the loading only hashes are stored.
+     *
+     * The passwords are hashed in parallel, then every migrated user supersedes its plaintext record on the users database file.
+     * The plaintext records are dropped by a compaction scheduled at the end, whatever the garbage of the file.
+     *
+     * Called only at the loading, before serving the clients.
+     *
+     */
+    private static void migratePlaintextPasswords() throws InvalidUser, IllegalArgumentException, IOException, IllegalStateException, RuntimeException, NoSuchMethodException {
+
+        ArrayList<User> plaintextUsers = new ArrayList<>();
+        ArrayList<String> plaintextPasswords = new ArrayList<>();
+        for (User user : users.values()) {
+            if (!PasswordHashing.isHashed(user.getPassword())) {
+                plaintextUsers.add(user);
+                plaintextPasswords.add(user.getPassword());
             }
-            if (userNew == null) {
-                throw new NullPointerException("New user to be used to update credentials cannot be null.");
+        }
+        if (plaintextUsers.isEmpty()) {
+            return;
+        }
+
+        List<String> hashes = PasswordHashing.hashAll(plaintextPasswords);
+        for (int i = 0; i < plaintextUsers.size(); i++) {
+
+            User userOld = plaintextUsers.get(i);
+            String key = key(userOld.getUsername());
+            lockFor(key).lock();
+            try {
+
+                registryLock.readLock().lock();
+                try {
+                    replaceUser(key, userOld, new User(userOld.getUsername(), hashes.get(i), true));
+                } finally {
+                    registryLock.readLock().unlock();
+                }
+
+            } finally {
+                lockFor(key).unlock();
             }
 
-            synchronized (userOld) {
-                synchronized (userNew) {
+        }
 
-                    // Update the user in the users database.
-                    try {
-                        updateUser(userOld, userNew);
-                    } catch (InvalidUser ex) {
-                        throw new InvalidUser(ex.getMessage());
-                    } catch (IllegalArgumentException ex) {
-                        throw new IllegalArgumentException(ex.getMessage());
-                    } catch (IOException ex) {
-                        throw new IOException(ex.getMessage());
-                    } catch (IllegalStateException ex) {
-                        throw new IllegalStateException(ex.getMessage());
-                    } catch (RuntimeException ex) {
-                        throw new RuntimeException(ex.getMessage());
-                    } catch (NoSuchMethodException ex) {
-                        throw new NoSuchMethodException(ex.getMessage());
-                    } catch (IllegalAccessException ex) {
-                        throw new IllegalAccessException(ex.getMessage());
+        // The plaintext records are superseded, but still on the disk.
+        DBUsersInterface.scheduleCompaction();
+
+        Log.info(Category.PERSISTENCE, "Migrated %d plaintext passwords to hashes.", plaintextUsers.size());
+
+    }
+    /**
+     *
+     * Moves the sessions (and the sockets) of an user object to the one that replaced it after a credentials update.
+     *
+     * The caller must hold the username stripe lock, so no login or logout of the same username runs meanwhile.
+     * The monitors of both the user objects are taken anyway, since isLoggedIn reads the sockets without the stripe lock.
+     * No other path holds two user monitors, so nesting them cannot deadlock.
+     *
+     * @param userOld The replaced user object.
+     * @param userNew The new user object, same username.
+     *
+     */
+    private static void rebindSessions(User userOld, User userNew) {
+
+        synchronized (userOld) {
+            synchronized (userNew) {
+
+                for (Session session : sessions.values()) {
+
+                    if (session.getUser() != userOld) {
+                        continue;
                     }
 
+                    userOld.removeSocket(session.getSocket());
+                    userNew.addSocket(session.getSocket());
+                    session.setUser(userNew);
+
                 }
-            }
 
+                for (InetSocketAddress notificationSocket : userOld.getNotificationsSockets()) {
+                    if (!userNew.containsNotificationSocket(notificationSocket)) {
+                        userNew.addNotificationSocket(notificationSocket);
+                    }
+                }
+                userOld.getNotificationsSockets().clear();
+                indexEndpoints(userNew);
+
+            }
         }
+
     }
-    
+    private static String key(String username) {
 
-    public static void notifyUsers(Notification notification) {
+        // The usernames are case insensitive.
+        return username.toLowerCase(Locale.ROOT);
+
+    }
+    private static ReentrantLock lockFor(String key) {
+
+        // Spreading the hash, the stripes are a power of two.
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return locks[hash & (LOCK_STRIPES - 1)];
+
+    }
+
+    // NOTIFICATIONS
+    /**
+     *
+     * Notifies the users of the trades of a notification, on their notification endpoints (UDP).
+     *
+     * Called by the order book while holding its lock, for each fill.
+     * With the dispatcher started (see startNotificationDispatcher()), the notification is only queued, without blocking, and delivered by the dispatcher thread, or dropped if its ring buffer is full.
+     * Otherwise, or while the dispatcher is stopping, it's delivered by the calling thread.
+     *
+     * @param notification The notification to deliver.
+     *
+     * @throws NullPointerException If the notification is null.
+     * @throws IllegalStateException If the server is not initialized.
+     *
+     */
+    public static void notifyUsers(Notification notification) throws NullPointerException, IllegalStateException {
 
         // Null checks.
         if (notification == null) {
@@ -675,38 +1018,292 @@ public abstract class Users {
             throw new IllegalStateException("Server not initialized. Cannot send the notification to the user.");
         }
 
+        NotificationDispatcherThread dispatcher = Users.dispatcher;
+        if (dispatcher != null && dispatcher.offer(notification)) {
+            return;
+        }
 
-        // set to prevent dispatching the same notification to the same user multiple times.
-        // because if the user has 2 orders in the trade, the notification will be sent twice.
-        TreeSet<User> usersSet = new TreeSet<>();
-        for (Trade trade : notification.getTrades()) {
-            
-            for (User user : users) {
+        ArrayList<Notification> batch = new ArrayList<>(1);
+        batch.add(notification);
+        Users.deliverNotifications(batch);
 
-                if (trade.getUser().compareTo(user) == 0) {
+    }
+    /**
+     *
+     * Delivers a batch of notifications to their users, on their notification endpoints (UDP).
+     *
+     * Each notification is converted to JSON once, then the trades of the batch are grouped by user, the users of a notification are notified of all its trades.
+     * The trades of a user are batched in as few datagrams as possible, each one a notification with its trades, under NOTIFICATION_MAX_BYTES.
+     * A notification over it is split in parts of whole trades, each one in a datagram with its part and the number of parts.
+     * Each datagram of a user takes the next sequence number of the user, and it's kept in the user's history to be retransmitted (see retransmitNotifications()).
+     * The users are resolved by the endpoints index, without locks.
+     *
+     * Package-private, called by the NotificationDispatcherThread, or by notifyUsers() without it.
+     *
+     * @param batch The notifications, in publishing order.
+     *
+     */
+    static void deliverNotifications(List<Notification> batch) {
 
-                    usersSet.add(user);
+        long start = Metrics.startTimer();
 
-                }
+        // The JSON trades of each notification, grouped by user, in order.
+        LinkedHashMap<String, ArrayList<String[]>> tradesByUser = new LinkedHashMap<>();
+        for (Notification notification : batch) {
 
+            String[] tradesJSON = null;
+            // A set, the user of more trades of the notification is notified once.
+            LinkedHashSet<String> recipients = new LinkedHashSet<>();
+            for (Trade trade : notification.getTrades()) {
+                if (trade.getUser() != null) {
+                    recipients.add(key(trade.getUser().getUsername()));
+                }
+            }
+            for (String recipient : recipients) {
+                if (!endpoints.containsKey(recipient)) {
+                    continue;
+                }
+                if (tradesJSON == null) {
+                    tradesJSON = notification.toJSONTrades();
+                }
+                tradesByUser.computeIfAbsent(recipient, k -> new ArrayList<>()).add(tradesJSON);
             }
 
         }
 
-        for (User user : usersSet) {
-            for (InetSocketAddress socket : user.getNotificationsSockets()) {
+        ArrayList<String> datagramTrades = new ArrayList<>();
+        for (Map.Entry<String, ArrayList<String[]>> userTrades : tradesByUser.entrySet()) {
 
-                String msg = notification.toJSONString();
-                byte[] data = msg.getBytes();
-                DatagramPacket sendPacket = new DatagramPacket(data, data.length, socket);
-                try {
-                    server.getDatagramSocket().send(sendPacket);
-                } catch (IOException ex) {
-                    System.err.println("DEBUG: Error sending notification to " + socket.getAddress() + ":" + socket.getPort() + ".");
+            InetSocketAddress[] userEndpoints = endpoints.get(userTrades.getKey());
+            if (userEndpoints == null) {
+                // Logged out in the meantime.
+                continue;
+            }
+            NotificationHistory history = histories.computeIfAbsent(userTrades.getKey(), k -> new NotificationHistory());
+
+            int length = 0;
+            for (String[] notificationTrades : userTrades.getValue()) {
+
+                int notificationLength = Users.tradesLength(notificationTrades, 0, notificationTrades.length);
+                if (Notification.MAX_ENVELOPE_BYTES + notificationLength > NOTIFICATION_MAX_BYTES) {
+                    // Too large, split in parts of whole trades, after the notifications batched before it.
+                    if (!datagramTrades.isEmpty()) {
+                        Users.sendNotification(history, null, null, datagramTrades, userEndpoints);
+                        datagramTrades.clear();
+                        length = 0;
+                    }
+                    Users.sendSplitNotification(history, notificationTrades, userEndpoints);
+                    continue;
                 }
-                System.out.println("DEBUG: Sent to " + socket.getAddress() + ":" + socket.getPort() + " a notification: " + msg);
 
+                if (!datagramTrades.isEmpty() && Notification.MAX_ENVELOPE_BYTES + length + notificationLength > NOTIFICATION_MAX_BYTES) {
+                    Users.sendNotification(history, null, null, datagramTrades, userEndpoints);
+                    datagramTrades.clear();
+                    length = 0;
+                }
+                Collections.addAll(datagramTrades, notificationTrades);
+                length += notificationLength;
+
+            }
+            if (!datagramTrades.isEmpty()) {
+                Users.sendNotification(history, null, null, datagramTrades, userEndpoints);
+                datagramTrades.clear();
+            }
+
+        }
+
+        Metrics.recordLatency(Stage.NOTIFY, start);
+
+    }
+    // Splits a notification in parts of whole trades under the max bytes of a datagram, and sends them.
+    private static void sendSplitNotification(NotificationHistory history, String[] notificationTrades, InetSocketAddress[] userEndpoints) {
+
+        // The bounds of the parts, at least a trade each.
+        ArrayList<Integer> bounds = new ArrayList<>();
+        bounds.add(0);
+        int length = 0;
+        for (int i = 0; i < notificationTrades.length; i++) {
+            int tradeLength = notificationTrades[i].length() + 1;
+            if (i > bounds.getLast() && Notification.MAX_ENVELOPE_BYTES + length + tradeLength > NOTIFICATION_MAX_BYTES) {
+                bounds.add(i);
+                length = 0;
             }
+            length += tradeLength;
+        }
+        bounds.add(notificationTrades.length);
+
+        int parts = bounds.size() - 1;
+        for (int part = 1; part <= parts; part++) {
+            List<String> partTrades = Arrays.asList(notificationTrades).subList(bounds.get(part - 1), bounds.get(part));
+            Users.sendNotification(history, part, parts, partTrades, userEndpoints);
+        }
+
+    }
+    // Numbers a datagram, keeps it in the history of its user and sends it on the endpoints of the user.
+    private static void sendNotification(NotificationHistory history, Integer part, Integer parts, List<String> datagramTrades, InetSocketAddress[] userEndpoints) {
+
+        long seq = history.nextSeq();
+        String msg = Notification.toJSONString(history.getEpoch(), seq, part, parts, datagramTrades);
+        history.put(seq, msg);
+
+        byte[] data = msg.getBytes(StandardCharsets.UTF_8);
+        for (InetSocketAddress socket : userEndpoints) {
+            Users.sendDatagram(data, socket);
+            Log.debug(Category.NETWORK, "Sent to %s:%d a notification: %s", socket.getAddress(), socket.getPort(), msg);
+        }
+
+    }
+    private static void sendDatagram(byte[] data, InetSocketAddress socket) {
+
+        DatagramPacket sendPacket = new DatagramPacket(data, data.length, socket);
+        try {
+            server.getDatagramSocket().send(sendPacket);
+            Metrics.countNotificationSent();
+        } catch (IOException ex) {
+            Metrics.countNotificationDropped();
+            Log.warn(Category.NETWORK, "Error sending notification to %s:%d. Trying to continue...", socket.getAddress(), socket.getPort());
+        }
+
+    }
+    // Bytes of some JSON trades in a datagram, with their separators.
+    private static int tradesLength(String[] tradesJSON, int from, int to) {
+
+        int length = 0;
+        for (int i = from; i < to; i++) {
+            length += tradesJSON[i].length() + 1;
+        }
+        return length;
+
+    }
+    /**
+     *
+     * Retransmits the notifications datagrams of a gap, asked by a client that received the datagrams after it.
+     *
+     * The datagrams are sent only to the endpoint asking, and only if it's the notification endpoint of a user logged in, the owner of the datagrams.
+     * The ones no more in the user's history are answered as lost (see Notification.toLostJSONString()), so the client stops waiting for them.
+     *
+     * Called by the notification register thread, concurrently with the notification dispatcher.
+     *
+     * @param endpoint The notification endpoint asking.
+     * @param fromSeq The first sequence number of the gap.
+     * @param toSeq The last sequence number of the gap, at most NotificationHistory.SIZE after the first.
+     *
+     * @throws NullPointerException If the endpoint is null.
+     *
+     */
+    public static void retransmitNotifications(InetSocketAddress endpoint, long fromSeq, long toSeq) throws NullPointerException {
+
+        // Null check.
+        if (endpoint == null) {
+            throw new NullPointerException("Endpoint asking the notifications retransmission cannot be null.");
+        }
+
+        String owner = endpointsOwners.get(endpoint);
+        if (owner == null || server == null) {
+            Log.debug(Category.NETWORK, "Notifications retransmission asked by %s, not the endpoint of a user logged in. Ignoring it.", endpoint);
+            return;
+        }
+        NotificationHistory history = histories.get(owner);
+        if (history == null) {
+            // No datagrams sent since the last login, the gap is of an older sequence, that the client drops at the next datagram.
+            Log.debug(Category.NETWORK, "Notifications retransmission asked by %s, without notifications sent. Ignoring it.", endpoint);
+            return;
+        }
+
+        toSeq = Math.min(toSeq, fromSeq + NotificationHistory.SIZE - 1);
+        for (long seq = Math.max(fromSeq, 1); seq <= toSeq; seq++) {
+            String msg = history.get(seq);
+            if (msg == null) {
+                msg = Notification.toLostJSONString(history.getEpoch(), seq);
+            }
+            Users.sendDatagram(msg.getBytes(StandardCharsets.UTF_8), endpoint);
+            Metrics.countNotificationRetransmitted();
+        }
+        Log.debug(Category.NETWORK, "Retransmitted to %s the notifications from %d to %d.", endpoint, fromSeq, toSeq);
+
+    }
+    /**
+     *
+     * Starts the notification dispatcher thread, after it the notifications are delivered in background.
+     *
+     * Synchronized on the class to avoid multiple starts from different threads.
+     *
+     * @param bufferSize The notifications held by the ring buffer of the dispatcher, the ones over it are dropped.
+     *
+     * @throws IllegalArgumentException If the size is not positive or too large.
+     * @throws IllegalStateException If the dispatcher is already started.
+     *
+     */
+    public static void startNotificationDispatcher(int bufferSize) throws IllegalArgumentException, IllegalStateException {
+
+        synchronized (Users.class) {
+
+            if (Users.dispatcher != null) {
+                throw new IllegalStateException("Notification dispatcher already started.");
+            }
+
+            NotificationDispatcherThread dispatcherThread = new NotificationDispatcherThread(bufferSize);
+            dispatcherThread.start();
+            Users.dispatcher = dispatcherThread;
+
+        }
+
+    }
+    /**
+     *
+     * Stops the notification dispatcher thread, after delivering the notifications queued.
+     * After it, the notifications are delivered by the threads publishing them.
+     *
+     * Synchronized on the class to avoid multiple stops from different threads, does nothing if not started.
+     *
+     */
+    public static void stopNotificationDispatcher() {
+
+        synchronized (Users.class) {
+
+            if (Users.dispatcher == null) {
+                return;
+            }
+
+            Users.dispatcher.shutdown();
+            Users.dispatcher = null;
+
+        }
+
+    }
+    /**
+     *
+     * Updates the endpoints index, and its reverse, with the current notification endpoints of a user.
+     *
+     * Called after every change of the notification endpoints of a user, the index is read by the notifications delivery without locks.
+     *
+     * @param user The user, the registered object.
+     *
+     */
+    private static void indexEndpoints(User user) {
+
+        synchronized (user) {
+
+            String key = key(user.getUsername());
+            LinkedList<InetSocketAddress> userEndpoints = user.getNotificationsSockets();
+            InetSocketAddress[] previous;
+            if (userEndpoints.isEmpty()) {
+                previous = endpoints.remove(key);
+                // Logged out everywhere, the next login restarts the sequence numbers from 1.
+                histories.remove(key);
+            } else {
+                previous = endpoints.put(key, userEndpoints.toArray(new InetSocketAddress[0]));
+            }
+
+            if (previous != null) {
+                for (InetSocketAddress endpoint : previous) {
+                    endpointsOwners.remove(endpoint, key);
+                }
+            }
+            for (InetSocketAddress endpoint : userEndpoints) {
+                endpointsOwners.put(endpoint, key);
+            }
+
         }
 
     }
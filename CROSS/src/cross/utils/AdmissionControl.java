@@ -0,0 +1,207 @@
+package cross.utils;
+
+import cross.api.responses.Response;
+import cross.api.responses.ResponseCode;
+import cross.api.responses.ResponseCode.ResponseContent;
+import cross.api.responses.ResponseCode.ResponseType;
+import cross.api.responses.user.UserResponse;
+
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * This class bounds the load accepted by the server, rejecting the excess early instead of queuing it without limit.
+ *
+ * Three limits are checked:
+ * - The connections open at the same time, checked at the accept. A connection over it receives a server busy response and it's closed, before creating its thread or its NIO state.
+ * - The requests in flight of a connection, received and not answered yet, checked when a request is received. Only the NIO transport can have more than one, since the blocking transports read the next request only after answering the previous.
+ * - The requests in the engine, being handled at the same time by all the clients, waiting for or holding the locks of the order book and of the databases. Checked before parsing the request.
+ * A request over a limit receives a server busy response (see serverBusyResponse()), without reaching the order book nor the disk.
+ *
+ * The counters are atomic, the checks are lock-free.
+ * The current values, their peaks and the rejections are exposed as metrics by the server, to scale out before the latency collapses.
+ *
+ * A limit of zero disables the corresponding check, but the values are still counted.
+ *
+ * Thread safe, shared by all the clients of a server.
+ *
+ * @version 1.0
+ * @author Giulio Nisi
+ *
+ * @see cross.server.Server
+ * @see cross.server.AcceptThread
+ * @see cross.server.NioConnection
+ * @see cross.server.ClientThread
+ *
+ */
+public class AdmissionControl {
+
+    // Max connections, requests in flight for each connection and requests in the engine, zero for no limit.
+    private final int maxConnections;
+    private final int maxInflightRequests;
+    private final int maxEngineQueueDepth;
+
+    // Current values.
+    private final AtomicInteger activeConnections = new AtomicInteger(0);
+    private final AtomicInteger engineQueueDepth = new AtomicInteger(0);
+
+    // Metrics.
+    private final AtomicInteger engineQueueDepthPeak = new AtomicInteger(0);
+    private final AtomicLong rejectedConnections = new AtomicLong(0);
+    private final AtomicLong inflightRejectedRequests = new AtomicLong(0);
+    private final AtomicLong engineRejectedRequests = new AtomicLong(0);
+
+    /**
+     *
+     * Constructor of the class.
+     *
+     * @param maxConnections The max connections open at the same time, zero for no limit.
+     * @param maxInflightRequests The max requests in flight for each connection, zero for no limit.
+     * @param maxEngineQueueDepth The max requests in the engine at the same time, zero for no limit.
+     *
+     * @throws IllegalArgumentException If some value is negative.
+     *
+     */
+    public AdmissionControl(int maxConnections, int maxInflightRequests, int maxEngineQueueDepth) throws IllegalArgumentException {
+
+        if (maxConnections < 0 || maxInflightRequests < 0 || maxEngineQueueDepth < 0) {
+            throw new IllegalArgumentException("The admission control limits cannot be negative.");
+        }
+
+        this.maxConnections = maxConnections;
+        this.maxInflightRequests = maxInflightRequests;
+        this.maxEngineQueueDepth = maxEngineQueueDepth;
+
+    }
+
+    /**
+     *
+     * Admits a new connection, if the connections open are under their limit.
+     *
+     * An admitted connection must be released with releaseConnection() when closed.
+     *
+     * @return True if the connection is admitted, false if it must be rejected.
+     *
+     */
+    public Boolean tryAdmitConnection() {
+
+        int connections = this.activeConnections.incrementAndGet();
+        if (this.maxConnections > 0 && connections > this.maxConnections) {
+            this.activeConnections.decrementAndGet();
+            this.rejectedConnections.incrementAndGet();
+            return false;
+        }
+        return true;
+
+    }
+    /**
+     *
+     * Releases an admitted connection, after its closing.
+     *
+     */
+    public void releaseConnection() {
+
+        this.activeConnections.decrementAndGet();
+
+    }
+
+    /**
+     *
+     * Checks if a connection can receive one more request.
+     *
+     * @param inflightRequests The requests of the connection received and not answered yet, without the new one.
+     *
+     * @return True if the request is admitted, false if it must be rejected.
+     *
+     */
+    public Boolean admitsInflightRequest(int inflightRequests) {
+
+        if (this.maxInflightRequests > 0 && inflightRequests >= this.maxInflightRequests) {
+            this.inflightRejectedRequests.incrementAndGet();
+            return false;
+        }
+        return true;
+
+    }
+
+    /**
+     *
+     * Enters a request in the engine, if the requests in it are under their limit.
+     *
+     * An entered request must exit with exitEngine() when handled.
+     *
+     * @return True if the request is admitted, false if it must be rejected.
+     *
+     */
+    public Boolean tryEnterEngine() {
+
+        int depth = this.engineQueueDepth.incrementAndGet();
+        if (this.maxEngineQueueDepth > 0 && depth > this.maxEngineQueueDepth) {
+            this.engineQueueDepth.decrementAndGet();
+            this.engineRejectedRequests.incrementAndGet();
+            return false;
+        }
+        this.engineQueueDepthPeak.accumulateAndGet(depth, Math::max);
+        return true;
+
+    }
+    /**
+     *
+     * Exits a request from the engine, after its handling.
+     *
+     */
+    public void exitEngine() {
+
+        this.engineQueueDepth.decrementAndGet();
+
+    }
+
+    /**
+     *
+     * Builds the server busy response, sent instead of the response of a request rejected, or at a connection rejected.
+     *
+     * @param requestId The request id of the request rejected, null for none.
+     *
+     * @return The server busy response.
+     *
+     */
+    public static Response serverBusyResponse(Long requestId) {
+
+        ResponseCode serverBusyCode = new ResponseCode(ResponseType.SERVER_BUSY, ResponseContent.SERVER_BUSY);
+        Response serverBusyResponse = new Response(new UserResponse(serverBusyCode, serverBusyCode.getDefaultMessage()), null);
+        serverBusyResponse.setRequestId(requestId);
+        return serverBusyResponse;
+
+    }
+
+    // GETTERS
+    /**
+     *
+     * Gets the admission control metrics, by name.
+     *
+     * @return The connections open and rejected, the requests rejected by the in flight limit, the requests in the engine, their peak and the ones rejected.
+     *
+     */
+    public LinkedHashMap<String, Long> getMetrics() {
+
+        LinkedHashMap<String, Long> metrics = new LinkedHashMap<>();
+        metrics.put("connections_active", (long) this.activeConnections.get());
+        metrics.put("connections_rejected_total", this.rejectedConnections.get());
+        metrics.put("requests_inflight_rejected_total", this.inflightRejectedRequests.get());
+        metrics.put("engine_queue_depth", (long) this.engineQueueDepth.get());
+        metrics.put("engine_queue_depth_peak", (long) this.engineQueueDepthPeak.get());
+        metrics.put("engine_rejected_total", this.engineRejectedRequests.get());
+        return metrics;
+
+    }
+
+    @Override
+    public String toString() {
+
+        return String.format("Admission Control [Max connections [%d] - Max in flight requests [%d] - Max engine queue depth [%d] - Metrics %s]", this.maxConnections, this.maxInflightRequests, this.maxEngineQueueDepth, this.getMetrics().toString());
+
+    }
+
+}
@@ -0,0 +1,261 @@
+package cross.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ * Class to reuse ByteBuffer objects of a fixed size, instead of allocating a new buffer for each message.
+ *
+ * A buffer is taken with acquire() and given back with release() when it's not used anymore, so it can be taken again.
+ * The free buffers are in a lock-free queue, at most maxPooled of them are kept, the others are left to the garbage collector.
+ * A buffer larger than the size of the pool is allocated when requested and never pooled.
+ *
+ * The buffers can be direct, outside of the heap, so a channel writes them without copying them in a temporary direct buffer.
+ * Direct buffers are expensive to allocate, so they are worth only if pooled, and they have no backing array.
+ * A text is encoded with encode(), in UTF-8, directly in a buffer of the pool, without building its byte[].
+ *
+ * A released buffer must not be used anymore by who released it.
+ *
+ * Thread safe.
+ *
+ * @version 1.0
+ * @author Giulio Nisi
+ *
+ */
+public class ByteBufferPool {
+
+    // Max bytes of a char encoded in UTF-8, a surrogate pair is 4 bytes for 2 chars.
+    private static final int UTF8_MAX_BYTES_PER_CHAR = 3;
+
+    // Encoders of the texts, a CharsetEncoder is not thread safe.
+    // The malformed chars are replaced, as String.getBytes() does.
+    private static final ThreadLocal<CharsetEncoder> encoders = ThreadLocal.withInitial(() -> StandardCharsets.UTF_8.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE));
+
+    // Size of the pooled buffers, in bytes, and the max free buffers kept.
+    private final int bufferSize;
+    private final int maxPooled;
+
+    // If the buffers are direct.
+    private final Boolean direct;
+
+    // Free buffers, and their count, ConcurrentLinkedQueue.size() is not constant time.
+    private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger(0);
+
+    /**
+     *
+     * Constructor of the class.
+     *
+     * The pool starts empty, the buffers are allocated by the first acquires.
+     *
+     * @param bufferSize The size of the pooled buffers, in bytes.
+     * @param maxPooled The max free buffers kept.
+     * @param direct If the buffers are direct, otherwise they are heap buffers, with a backing array.
+     *
+     * @throws NullPointerException If the direct flag is null.
+     * @throws IllegalArgumentException If the size or the max free buffers are not positive.
+     *
+     */
+    public ByteBufferPool(int bufferSize, int maxPooled, Boolean direct) throws NullPointerException, IllegalArgumentException {
+
+        // Null check.
+        if (direct == null) {
+            throw new NullPointerException("The direct flag of a buffer pool cannot be null.");
+        }
+
+        if (bufferSize <= 0 || maxPooled <= 0) {
+            throw new IllegalArgumentException("The buffers size and the max pooled buffers of a buffer pool must be positive.");
+        }
+
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+        this.direct = direct;
+
+    }
+    /**
+     *
+     * Constructor of the class, with heap buffers.
+     *
+     * @param bufferSize The size of the pooled buffers, in bytes.
+     * @param maxPooled The max free buffers kept.
+     *
+     * @throws IllegalArgumentException If the size or the max free buffers are not positive.
+     *
+     */
+    public ByteBufferPool(int bufferSize, int maxPooled) throws IllegalArgumentException {
+
+        this(bufferSize, maxPooled, false);
+
+    }
+
+    /**
+     *
+     * Takes a buffer of at least the given capacity, cleared.
+     *
+     * @param capacity The min capacity, in bytes.
+     *
+     * @return A pooled buffer, or a new one if the capacity is over the size of the pool.
+     *
+     */
+    public ByteBuffer acquire(int capacity) {
+
+        if (capacity > this.bufferSize) {
+            return this.allocate(capacity);
+        }
+
+        ByteBuffer buffer = this.buffers.poll();
+        if (buffer == null) {
+            return this.allocate(this.bufferSize);
+        }
+        this.pooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+
+    }
+    /**
+     *
+     * Gives back a buffer taken with acquire().
+     *
+     * @param buffer The buffer, ignored if null or not of the size of the pool.
+     *
+     */
+    public void release(ByteBuffer buffer) {
+
+        if (buffer == null || buffer.capacity() != this.bufferSize || buffer.isDirect() != this.direct || buffer.isReadOnly()) {
+            return;
+        }
+
+        if (this.pooled.incrementAndGet() > this.maxPooled) {
+            this.pooled.decrementAndGet();
+            return;
+        }
+        this.buffers.add(buffer);
+
+    }
+    /**
+     *
+     * Encodes a text in UTF-8 in a buffer of the pool.
+     *
+     * The buffer is taken for the length of the text, enough for an ASCII text, like the JSONs.
+     * Only if the encoded text doesn't fit, it's encoded again in a buffer large enough for any text of that length.
+     *
+     * @param text The text.
+     * @param headroom The bytes left free before the text, for a header written later by the caller.
+     *
+     * @return A buffer with the text after the headroom, in write mode, its position at the end of the text.
+     *
+     * @throws NullPointerException If the text is null.
+     * @throws IllegalArgumentException If the headroom is negative.
+     *
+     */
+    public ByteBuffer encode(CharSequence text, int headroom) throws NullPointerException, IllegalArgumentException {
+
+        // Null check.
+        if (text == null) {
+            throw new NullPointerException("Text to encode in a pooled buffer cannot be null.");
+        }
+
+        if (headroom < 0) {
+            throw new IllegalArgumentException("The headroom of a text encoded in a pooled buffer cannot be negative.");
+        }
+
+        ByteBuffer buffer = this.acquire(headroom + text.length());
+        if (this.encode(text, buffer, headroom)) {
+            return buffer;
+        }
+        this.release(buffer);
+        buffer = this.acquire(headroom + text.length() * UTF8_MAX_BYTES_PER_CHAR);
+        this.encode(text, buffer, headroom);
+        return buffer;
+
+    }
+    /**
+     *
+     * Encodes a text in UTF-8 in a buffer of the pool, ready to be written.
+     *
+     * @param text The text.
+     *
+     * @return A buffer with the text, in read mode.
+     *
+     * @throws NullPointerException If the text is null.
+     *
+     */
+    public ByteBuffer encode(CharSequence text) throws NullPointerException {
+
+        return this.encode(text, 0).flip();
+
+    }
+
+    // GETTERS
+    /**
+     *
+     * Getter for the size of the pooled buffers.
+     *
+     * @return The size of the pooled buffers, in bytes.
+     *
+     */
+    public int getBufferSize() {
+
+        return this.bufferSize;
+
+    }
+    /**
+     *
+     * Getter for the free buffers.
+     *
+     * @return The free buffers in the pool.
+     *
+     */
+    public int getPooled() {
+
+        return this.pooled.get();
+
+    }
+
+    /**
+     *
+     * Getter for the kind of the pooled buffers.
+     *
+     * @return True if the buffers are direct, false if they are heap buffers.
+     *
+     */
+    public Boolean isDirect() {
+
+        return this.direct;
+
+    }
+
+    // SUPPORT METHODS
+    private ByteBuffer allocate(int capacity) {
+
+        return this.direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+
+    }
+    // False if the text doesn't fit in the buffer.
+    private Boolean encode(CharSequence text, ByteBuffer buffer, int headroom) {
+
+        CharsetEncoder encoder = encoders.get().reset();
+        buffer.position(headroom);
+        CoderResult result = encoder.encode(CharBuffer.wrap(text), buffer, true);
+        if (result.isUnderflow()) {
+            result = encoder.flush(buffer);
+        }
+        return !result.isOverflow();
+
+    }
+
+    @Override
+    public String toString() {
+
+        return String.format("ByteBufferPool [Buffer size [%d] - Max pooled [%d] - Direct [%s] - Pooled [%d]]", this.bufferSize, this.maxPooled, this.direct ? "Yes" : "No", this.pooled.get());
+
+    }
+
+}
@@ -0,0 +1,177 @@
+package cross.utils;
+
+import java.io.Writer;
+import java.nio.ByteBuffer;
+
+/**
+ *
+ * Class to write a text, in UTF-8, directly in a buffer of a ByteBufferPool, without building its String or its byte[].
+ *
+ * Used to serialize the JSON messages (see JSONAPIMessage.toJSONBuffer()), the Gson's JsonWriter writes the chars in it.
+ * The buffer is taken from the pool, and when it's full a larger one is taken and the old one is given back.
+ *
+ * The chars are encoded one by one, a surrogate pair split between two writes is encoded correctly.
+ * A malformed char (a surrogate without its pair) is replaced by '?', as String.getBytes() does.
+ *
+ * The buffer is given to the caller with getBuffer(), closing the writer doesn't release it.
+ *
+ * Not thread safe, used by a single thread at a time.
+ *
+ * @version 1.0
+ * @author Giulio Nisi
+ *
+ * @see ByteBufferPool
+ *
+ */
+public class ByteBufferWriter extends Writer {
+
+    // Min bytes free needed to encode any char, a surrogate pair is 4 bytes.
+    private static final int MAX_CHAR_BYTES = 4;
+
+    // Initial capacity asked to the pool after the headroom, a pooled buffer is usually larger.
+    private static final int INITIAL_BYTES = 64;
+
+    private final ByteBufferPool pool;
+    private ByteBuffer buffer;
+
+    // High surrogate waiting for its pair, 0 for none.
+    private char highSurrogate = 0;
+
+    /**
+     *
+     * Constructor of the class.
+     *
+     * @param pool The pool of the buffers.
+     * @param headroom The bytes left free before the text, for a header written later by the caller.
+     *
+     * @throws NullPointerException If the pool is null.
+     * @throws IllegalArgumentException If the headroom is negative.
+     *
+     */
+    public ByteBufferWriter(ByteBufferPool pool, int headroom) throws NullPointerException, IllegalArgumentException {
+
+        // Null check.
+        if (pool == null) {
+            throw new NullPointerException("The pool of a buffer writer cannot be null.");
+        }
+
+        if (headroom < 0) {
+            throw new IllegalArgumentException("The headroom of a buffer writer cannot be negative.");
+        }
+
+        this.pool = pool;
+        this.buffer = pool.acquire(headroom + INITIAL_BYTES);
+        this.buffer.position(headroom);
+
+    }
+
+    @Override
+    public void write(int c) {
+
+        this.ensureRemaining(MAX_CHAR_BYTES);
+        this.put((char) c);
+
+    }
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+
+        for (int i = off; i < off + len; i++) {
+            this.ensureRemaining(MAX_CHAR_BYTES);
+            this.put(cbuf[i]);
+        }
+
+    }
+    @Override
+    public void write(String str, int off, int len) {
+
+        for (int i = off; i < off + len; i++) {
+            this.ensureRemaining(MAX_CHAR_BYTES);
+            this.put(str.charAt(i));
+        }
+
+    }
+    @Override
+    public void flush() {
+
+        // Nothing buffered outside of the buffer.
+
+    }
+    @Override
+    public void close() {
+
+        // The buffer is not released, it's given to the caller.
+
+    }
+
+    // GETTERS
+    /**
+     *
+     * Getter for the buffer with the text written.
+     *
+     * A high surrogate still waiting for its pair is written as '?'.
+     * The writer must not be used anymore after it.
+     *
+     * @return The buffer with the text after the headroom, in write mode, its position at the end of the text.
+     *
+     */
+    public ByteBuffer getBuffer() {
+
+        if (this.highSurrogate != 0) {
+            this.ensureRemaining(1);
+            this.buffer.put((byte) '?');
+            this.highSurrogate = 0;
+        }
+        return this.buffer;
+
+    }
+
+    // SUPPORT METHODS
+    // Encodes a char, at least MAX_CHAR_BYTES must be free.
+    private void put(char c) {
+
+        if (this.highSurrogate != 0) {
+            char high = this.highSurrogate;
+            this.highSurrogate = 0;
+            if (Character.isLowSurrogate(c)) {
+                int codePoint = Character.toCodePoint(high, c);
+                this.buffer.put((byte) (0xF0 | (codePoint >> 18)));
+                this.buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                this.buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                this.buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+                return;
+            }
+            // Not paired, the 3 bytes left are enough for the char.
+            this.buffer.put((byte) '?');
+        }
+
+        if (c < 0x80) {
+            this.buffer.put((byte) c);
+        } else if (c < 0x800) {
+            this.buffer.put((byte) (0xC0 | (c >> 6)));
+            this.buffer.put((byte) (0x80 | (c & 0x3F)));
+        } else if (Character.isHighSurrogate(c)) {
+            this.highSurrogate = c;
+        } else if (Character.isLowSurrogate(c)) {
+            this.buffer.put((byte) '?');
+        } else {
+            this.buffer.put((byte) (0xE0 | (c >> 12)));
+            this.buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+            this.buffer.put((byte) (0x80 | (c & 0x3F)));
+        }
+
+    }
+    // Takes a larger buffer if less than the given bytes are free, copying the bytes written.
+    private void ensureRemaining(int bytes) {
+
+        if (this.buffer.remaining() >= bytes) {
+            return;
+        }
+        ByteBuffer larger = this.pool.acquire(Math.max(this.buffer.capacity() * 2, this.buffer.position() + bytes));
+        this.buffer.flip();
+        larger.put(this.buffer);
+        this.pool.release(this.buffer);
+        this.buffer = larger;
+
+    }
+
+}
@@ -83,6 +83,11 @@ public abstract class ClientActionsUtils {
         INSERT_STOP_ORDER,
         CANCEL_ORDER,
 
+        // Added by me. User's orders requests, answered by the per-user index of the order book.
+        GET_OPEN_ORDERS,
+        GET_MY_TRADES,
+        GET_BALANCES,
+
         // Price history requests.
         GET_PRICE_HISTORY,
 
@@ -106,6 +111,10 @@ public abstract class ClientActionsUtils {
             put(ClientActions.INSERT_STOP_ORDER, "insertStopOrder(type, size, stopPrice)");
             put(ClientActions.CANCEL_ORDER, "cancelOrder(orderID)");
 
+            put(ClientActions.GET_OPEN_ORDERS, "getOpenOrders()");
+            put(ClientActions.GET_MY_TRADES, "getMyTrades()");
+            put(ClientActions.GET_BALANCES, "getBalances()");
+
             put(ClientActions.GET_PRICE_HISTORY, "getPriceHistory(month)");
 
             put(ClientActions.EXIT, "exit()");
@@ -0,0 +1,135 @@
+package cross.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import cross.logging.Log;
+import cross.logging.Log.Category;
+import cross.logging.Log.Level;
+
+/**
+ *
+ * Class to log the debug details of the server, sampled, off the requests path when disabled.
+ *
+ * The events are logged at the DEBUG level of their category of the log (see Log), they are sampled only if that level is enabled.
+ *
+ * Dumping the whole order book for each request makes the response latency grow with the book's depth, so only one event every sample rate events is logged.
+ * The caller asks isSampled() before building the details, so the events not logged cost only a counter increment, and nothing when disabled.
+ *
+ * Each event is a single message, structured as key=value fields after the event's name, so it can be filtered and parsed.
+ * The values with spaces, quotes or new lines are quoted, escaping the quotes and the new lines.
+ *
+ * Disabled by default, see setSampleRate().
+ *
+ * Thread safe.
+ *
+ * @version 1.0
+ * @author Giulio Nisi
+ *
+ */
+public abstract class DebugLogger {
+
+    // One event logged every sampleRate events, 0 disabled.
+    private static volatile long sampleRate = 0;
+
+    // Events counted, to choose the sampled ones.
+    private static final AtomicLong events = new AtomicLong(0);
+
+    /**
+     *
+     * Sets the sample rate of the debug events.
+     *
+     * @param rate One event logged every rate events, 1 to log all of them, 0 to disable the logging.
+     *
+     * @throws IllegalArgumentException If the rate is negative.
+     *
+     */
+    public static void setSampleRate(long rate) throws IllegalArgumentException {
+
+        if (rate < 0) {
+            throw new IllegalArgumentException("The sample rate of the debug logger cannot be negative.");
+        }
+
+        sampleRate = rate;
+
+    }
+
+    /**
+     *
+     * Counts an event, checking if it must be logged.
+     *
+     * @param category The category of the event.
+     *
+     * @return True if the event is sampled and must be logged with log(), false otherwise.
+     *
+     */
+    public static Boolean isSampled(Category category) {
+
+        long rate = sampleRate;
+        if (rate == 0 || !Log.isEnabled(category, Level.DEBUG)) {
+            return false;
+        }
+        return events.getAndIncrement() % rate == 0;
+
+    }
+
+    /**
+     *
+     * Logs an event, at the DEBUG level.
+     *
+     * @param category The category of the event.
+     * @param event The name of the event.
+     * @param fields The fields of the event, as key, value pairs. A null value is logged as null.
+     *
+     * @throws NullPointerException If the category, the event's name or the fields are null.
+     * @throws IllegalArgumentException If the fields are not key, value pairs.
+     *
+     */
+    public static void log(Category category, String event, Object... fields) throws NullPointerException, IllegalArgumentException {
+
+        // Null check.
+        if (category == null || event == null || fields == null) {
+            throw new NullPointerException("Category, event's name and fields of a debug event cannot be null.");
+        }
+
+        if (fields.length % 2 != 0) {
+            throw new IllegalArgumentException("The fields of a debug event must be key, value pairs.");
+        }
+
+        StringBuilder line = new StringBuilder("event=").append(event);
+        for (int i = 0; i < fields.length; i += 2) {
+            line.append(' ').append(fields[i]).append('=');
+            DebugLogger.appendValue(line, String.valueOf(fields[i + 1]));
+        }
+        Log.debug(category, line.toString());
+
+    }
+
+    // SUPPORT METHODS
+    private static void appendValue(StringBuilder line, String value) {
+
+        Boolean quoted = value.isEmpty();
+        for (int i = 0; i < value.length() && !quoted; i++) {
+            char c = value.charAt(i);
+            quoted = c == ' ' || c == '"' || c == '\n' || c == '\r' || c == '\t';
+        }
+        if (!quoted) {
+            line.append(value);
+            return;
+        }
+
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> line.append("\\\"");
+                case '\\' -> line.append("\\\\");
+                case '\n' -> line.append("\\n");
+                case '\r' -> line.append("\\r");
+                case '\t' -> line.append("\\t");
+                default -> line.append(c);
+            }
+        }
+        line.append('"');
+
+    }
+
+}
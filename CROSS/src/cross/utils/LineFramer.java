@@ -0,0 +1,140 @@
+package cross.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ *
+ * Class to split a stream of bytes, received in chunks of any size, in the '\n' terminated lines of the text protocol.
+ *
+ * The bytes of a line are accumulated in a buffer reused for all the lines, grown up to the max length of a line and shrunk back after a long line.
+ * A '\r' before the '\n' is dropped, as BufferedReader.readLine() does for the blocking transport, the blank lines are skipped.
+ * The bytes of a line are decoded in UTF-8 only once the whole line is received, so a character split between two chunks is decoded correctly.
+ *
+ * When the stream ends, the line not terminated is discarded (see finish()), it's never delivered as a complete one.
+ *
+ * Not thread safe, used by a single thread at a time.
+ *
+ * @version 1.0
+ * @author Giulio Nisi
+ *
+ */
+public class LineFramer {
+
+    // Initial size of the line buffer and max length of a line, in bytes.
+    private final int initialBytes;
+    private final int maxLineBytes;
+
+    // Bytes of the line not terminated yet.
+    private byte[] lineBuffer;
+    private int lineLength = 0;
+
+    /**
+     *
+     * Constructor of the class.
+     *
+     * @param initialBytes The initial size of the line buffer, in bytes.
+     * @param maxLineBytes The max length of a line, in bytes, without the terminator.
+     *
+     * @throws IllegalArgumentException If the sizes are not positive or the initial size is over the max length.
+     *
+     */
+    public LineFramer(int initialBytes, int maxLineBytes) throws IllegalArgumentException {
+
+        if (initialBytes <= 0 || maxLineBytes <= 0 || initialBytes > maxLineBytes) {
+            throw new IllegalArgumentException("The sizes of a line framer must be positive, with the initial size not over the max length of a line.");
+        }
+
+        this.initialBytes = initialBytes;
+        this.maxLineBytes = maxLineBytes;
+        this.lineBuffer = new byte[initialBytes];
+
+    }
+
+    /**
+     *
+     * Consumes all the bytes remaining in a chunk, passing each complete line, not blank, to the consumer.
+     *
+     * The bytes after the last '\n' are kept for the next chunk.
+     *
+     * @param chunk The bytes received, from its position to its limit, consumed.
+     * @param lines The consumer of the complete lines, without the terminator.
+     *
+     * @throws NullPointerException If the chunk or the consumer are null.
+     * @throws IOException If a line is longer than the max length, the stream cannot be framed anymore.
+     *
+     */
+    public void feed(ByteBuffer chunk, Consumer<String> lines) throws NullPointerException, IOException {
+
+        // Null check.
+        if (chunk == null || lines == null)
+            throw new NullPointerException("The chunk and the lines' consumer of a line framer cannot be null.");
+
+        while (chunk.hasRemaining()) {
+            byte b = chunk.get();
+            if (b == '\n') {
+                int length = this.lineLength;
+                if (length > 0 && this.lineBuffer[length - 1] == '\r') {
+                    length--;
+                }
+                String line = new String(this.lineBuffer, 0, length, StandardCharsets.UTF_8);
+                this.lineLength = 0;
+                if (!line.isBlank()) {
+                    lines.accept(line);
+                }
+                continue;
+            }
+            if (this.lineLength == this.lineBuffer.length) {
+                if (this.lineLength >= this.maxLineBytes) {
+                    throw new IOException("Request line too long.");
+                }
+                byte[] larger = new byte[Math.min(this.lineBuffer.length * 2, this.maxLineBytes)];
+                System.arraycopy(this.lineBuffer, 0, larger, 0, this.lineLength);
+                this.lineBuffer = larger;
+            }
+            this.lineBuffer[this.lineLength++] = b;
+        }
+
+        // A buffer grown by a long line is not kept.
+        if (this.lineLength <= this.initialBytes && this.lineBuffer.length > this.initialBytes * 8) {
+            byte[] smaller = new byte[this.initialBytes];
+            System.arraycopy(this.lineBuffer, 0, smaller, 0, this.lineLength);
+            this.lineBuffer = smaller;
+        }
+
+    }
+
+    /**
+     *
+     * Ends the stream, discarding the line not terminated, if any.
+     *
+     * The framer can be reused for a new stream after it.
+     *
+     * @return The bytes of the line discarded, 0 if the stream ended after a '\n'.
+     *
+     */
+    public int finish() {
+
+        int discarded = this.lineLength;
+        this.lineLength = 0;
+        return discarded;
+
+    }
+
+    // GETTERS
+    /**
+     *
+     * Getter for the bytes of the line not terminated yet.
+     *
+     * @return The bytes received after the last '\n'.
+     *
+     */
+    public int getPendingBytes() {
+
+        return this.lineLength;
+
+    }
+
+}
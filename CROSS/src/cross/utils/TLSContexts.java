@@ -0,0 +1,139 @@
+package cross.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ *
+ * Class to build the TLS contexts of the server and of the clients, once for each keystore.
+ *
+ * An SSLContext holds the cache of the TLS sessions: a connection resumes a session cached by the same context, with an abbreviated handshake without the certificate's signature and verification.
+ * So the contexts are cached too, and each connection of the server, and each connection of the clients to the same server, uses the same context.
+ * A new context for each connection would always do the full handshake, the expensive part of a TLS connection.
+ *
+ * The server's context has the keystore with the private key and the certificate of the server.
+ * The clients' context has the truststore with the certificates trusted, by default the ones trusted by the JVM.
+ * The keystores are PKCS12 or JKS files, e.g. a self-signed one made with the JDK's keytool:
+ *     keytool -genkeypair -alias cross -keyalg EC -validity 365 -dname CN=localhost -ext SAN=ip:127.0.0.1,dns:localhost -storetype PKCS12 -keystore cross.p12 -storepass changeit
+ * The same file can be the truststore of the clients, its certificate is trusted.
+ *
+ * Thread safe.
+ *
+ * @version 1.0
+ * @author Giulio Nisi
+ *
+ */
+public abstract class TLSContexts {
+
+    // Contexts built, by role, keystore's path and sessions' parameters.
+    private static final ConcurrentHashMap<String, SSLContext> contexts = new ConcurrentHashMap<>();
+
+    /**
+     *
+     * Gets the TLS context of the server, built the first time.
+     *
+     * @param keystorePath The path of the keystore with the private key and the certificate of the server.
+     * @param keystorePassword The password of the keystore, and of its key.
+     * @param sessionCacheSize The max sessions cached, resumed by the clients, 0 for no limit.
+     * @param sessionTimeoutSeconds The time a session can be resumed, in seconds, 0 for no limit.
+     *
+     * @return The context.
+     *
+     * @throws NullPointerException If the keystore's path or its password are null.
+     * @throws IllegalArgumentException If the sessions' parameters are negative.
+     * @throws IOException If the keystore cannot be read, or its password is wrong.
+     * @throws GeneralSecurityException If the keystore or its key are not valid.
+     *
+     */
+    public static SSLContext getServerContext(String keystorePath, String keystorePassword, int sessionCacheSize, int sessionTimeoutSeconds) throws NullPointerException, IllegalArgumentException, IOException, GeneralSecurityException {
+
+        // Null check.
+        if (keystorePath == null || keystorePassword == null) {
+            throw new NullPointerException("Keystore's path and password of a server's TLS context cannot be null.");
+        }
+
+        String key = TLSContexts.key("server", keystorePath, sessionCacheSize, sessionTimeoutSeconds);
+        SSLContext context = contexts.get(key);
+        if (context != null) {
+            return context;
+        }
+
+        KeyStore keystore = KeyStore.getInstance(new File(keystorePath), keystorePassword.toCharArray());
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keystore, keystorePassword.toCharArray());
+
+        context = SSLContext.getInstance("TLS");
+        context.init(keyManagers.getKeyManagers(), null, null);
+        TLSContexts.setSessions(context.getServerSessionContext(), sessionCacheSize, sessionTimeoutSeconds);
+
+        // Built twice only by a race, the first one is kept.
+        SSLContext previous = contexts.putIfAbsent(key, context);
+        return previous != null ? previous : context;
+
+    }
+    /**
+     *
+     * Gets the TLS context of the clients, built the first time.
+     *
+     * @param truststorePath The path of the truststore with the certificates trusted, null for the ones trusted by the JVM.
+     * @param truststorePassword The password of the truststore, null if not checked.
+     * @param sessionCacheSize The max sessions cached, to resume them connecting again, 0 for no limit.
+     * @param sessionTimeoutSeconds The time a session can be resumed, in seconds, 0 for no limit.
+     *
+     * @return The context.
+     *
+     * @throws IllegalArgumentException If the sessions' parameters are negative.
+     * @throws IOException If the truststore cannot be read, or its password is wrong.
+     * @throws GeneralSecurityException If the truststore is not valid.
+     *
+     */
+    public static SSLContext getClientContext(String truststorePath, String truststorePassword, int sessionCacheSize, int sessionTimeoutSeconds) throws IllegalArgumentException, IOException, GeneralSecurityException {
+
+        String key = TLSContexts.key("client", truststorePath, sessionCacheSize, sessionTimeoutSeconds);
+        SSLContext context = contexts.get(key);
+        if (context != null) {
+            return context;
+        }
+
+        KeyStore truststore = null;
+        if (truststorePath != null) {
+            truststore = KeyStore.getInstance(new File(truststorePath), truststorePassword != null ? truststorePassword.toCharArray() : null);
+        }
+        TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(truststore);
+
+        context = SSLContext.getInstance("TLS");
+        context.init(null, trustManagers.getTrustManagers(), null);
+        TLSContexts.setSessions(context.getClientSessionContext(), sessionCacheSize, sessionTimeoutSeconds);
+
+        // Built twice only by a race, the first one is kept.
+        SSLContext previous = contexts.putIfAbsent(key, context);
+        return previous != null ? previous : context;
+
+    }
+
+    // SUPPORT METHODS
+    private static String key(String role, String path, int sessionCacheSize, int sessionTimeoutSeconds) throws IllegalArgumentException {
+
+        if (sessionCacheSize < 0 || sessionTimeoutSeconds < 0) {
+            throw new IllegalArgumentException("The sessions' cache size and timeout of a TLS context cannot be negative.");
+        }
+
+        return String.format("%s|%s|%d|%d", role, path != null ? new File(path).getAbsolutePath() : "", sessionCacheSize, sessionTimeoutSeconds);
+
+    }
+    private static void setSessions(SSLSessionContext sessions, int sessionCacheSize, int sessionTimeoutSeconds) {
+
+        sessions.setSessionCacheSize(sessionCacheSize);
+        sessions.setSessionTimeout(sessionTimeoutSeconds);
+
+    }
+
+}
@@ -0,0 +1,100 @@
+package cross.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * Class to rate limit an activity with a token bucket.
+ *
+ * The bucket holds up to capacity tokens and is refilled with a fixed rate of tokens per second, each allowed action takes one token.
+ * So, on average, rate actions per second are allowed, with bursts of up to capacity actions.
+ *
+ * It's implemented without locks, with a single AtomicLong: the time (in nanoseconds) at which the bucket will be full again.
+ * Taking a token moves that time forward by the refill interval of a token, so the tokens left are how much that time is in the past, over the refill interval.
+ * A token is taken with a compareAndSet, retried only if another thread took a token at the same moment.
+ *
+ * Thread safe.
+ *
+ * @version 1.0
+ * @author Giulio Nisi
+ *
+ */
+public class TokenBucket {
+
+    // Nanoseconds needed to refill a single token.
+    private final long refillNanos;
+
+    // Nanoseconds needed to refill the whole bucket, the capacity times the refill of a token.
+    private final long capacityNanos;
+
+    // When the bucket will be full again, in System.nanoTime() units.
+    private final AtomicLong fullAt;
+
+    /**
+     *
+     * Constructor of the class.
+     *
+     * The bucket starts full.
+     *
+     * @param tokensPerSecond The tokens added to the bucket every second.
+     * @param capacity The max tokens in the bucket, the max burst.
+     *
+     * @throws IllegalArgumentException If the rate or the capacity are not positive.
+     *
+     */
+    public TokenBucket(long tokensPerSecond, long capacity) throws IllegalArgumentException {
+
+        if (tokensPerSecond <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("The rate and the capacity of a token bucket must be positive.");
+        }
+
+        this.refillNanos = Math.max(1, 1_000_000_000L / tokensPerSecond);
+        this.capacityNanos = this.refillNanos * capacity;
+        this.fullAt = new AtomicLong(System.nanoTime());
+
+    }
+
+    /**
+     *
+     * Takes a token from the bucket, if any.
+     *
+     * @return True if a token has been taken and the action is allowed, false if the bucket is empty.
+     *
+     */
+    public Boolean tryAcquire() {
+
+        return this.tryAcquire(System.nanoTime());
+
+    }
+    /**
+     *
+     * Takes a token from the bucket, if any, at the given time.
+     *
+     * The time is passed to test the bucket without waiting the real time.
+     *
+     * @param nowNanos The current time, in System.nanoTime() units.
+     *
+     * @return True if a token has been taken and the action is allowed, false if the bucket is empty.
+     *
+     */
+    public Boolean tryAcquire(long nowNanos) {
+
+        while (true) {
+
+            long current = this.fullAt.get();
+
+            // A bucket full in the past is full now, the tokens over the capacity are lost.
+            long next = Math.max(current, nowNanos) + this.refillNanos;
+            if (next - nowNanos > this.capacityNanos) {
+                return false;
+            }
+
+            if (this.fullAt.compareAndSet(current, next)) {
+                return true;
+            }
+
+        }
+
+    }
+
+}
@@ -18,6 +18,8 @@ public class UniqueNumber {
     private static Long lastTimeMillis = System.nanoTime();
     // A counter to be used in case of same timestamp requests.
     private static Long counter = 0L;
+    // The last number generated, used to keep the numbers strictly increasing also after a restore from an order book snapshot.
+    private static Long lastNumber = 0L;
 
     private final Long number;
 
@@ -54,7 +56,67 @@ public class UniqueNumber {
                 counter = 0L;
             }
 
-            this.number = currentTime  + counter;
+            Long generated = currentTime  + counter;
+
+            // System.nanoTime() has an arbitrary origin that changes between runs, so the last number generated (or restored) is used as floor.
+            if (generated <= lastNumber) {
+                generated = lastNumber + 1;
+            }
+            lastNumber = generated;
+
+            this.number = generated;
+
+        }
+
+    }
+
+    // GENERATOR STATE
+    /**
+     *
+     * Get the last number generated.
+     *
+     * Used to save the generator state in the order book snapshots.
+     *
+     * Synchronized ON CLASS to avoid conflicts with the numbers generation.
+     *
+     * @return The last number generated as Long.
+     *
+     */
+    public static Long getLastNumber() {
+
+        synchronized (UniqueNumber.class) {
+
+            return lastNumber;
+
+        }
+
+    }
+    /**
+     *
+     * Restore the generator state from a previously saved last number.
+     *
+     * After the call, all the numbers generated will be strictly greater than the given one.
+     * If the given number is less than the last number already generated, nothing changes.
+     *
+     * Synchronized ON CLASS to avoid conflicts with the numbers generation.
+     *
+     * @param number The last number generated to restore.
+     *
+     * @throws NullPointerException If the number is null.
+     *
+     */
+    public static void restoreLastNumber(Long number) throws NullPointerException {
+
+        // Null check.
+        if (number == null) {
+            throw new NullPointerException("Last number to restore in the unique number generator cannot be null.");
+        }
+
+        synchronized (UniqueNumber.class) {
+
+            if (number > lastNumber) {
+                lastNumber = number;
+            }
 
         }
 
@@ -0,0 +1,26 @@
+package cross.utils;
+
+/**
+ *
+ * Enum that represents the context of a write to a database (users or orders), given explicitly by the caller.
+ *
+ * Used by the Users and Orders classes (and their DB interfaces) to know if a record must also be written on the database file.
+ *
+ * LOAD: bulk import, the record is added only in memory (e.g. it has just been read from the database file).
+ * LIVE: the record is added in memory and appended on the database file.
+ * UPDATE: as LIVE, but the record replaces an updated one (an user after a password change).
+ *
+ * @version 1.0
+ * @author Giulio Nisi
+ *
+ * @see cross.users.db.Users
+ * @see cross.orders.db.Orders
+ *
+ */
+public enum WriteContext {
+
+    LOAD,
+    LIVE,
+    UPDATE
+
+}